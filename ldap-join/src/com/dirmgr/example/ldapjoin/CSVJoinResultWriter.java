@@ -0,0 +1,207 @@
+/*
+ * Copyright 2019 Neil A. Wilson
+ * All Rights Reserved.
+ */
+/*
+ * Copyright (C) 2019 Neil A. Wilson
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPLv2 only)
+ * or the terms of the GNU Lesser General Public License (LGPLv2.1 only)
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, see <http://www.gnu.org/licenses>.
+ */
+/*
+ * Copyright 2019 Neil A. Wilson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dirmgr.example.ldapjoin;
+
+
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import com.unboundid.ldap.sdk.Entry;
+import com.unboundid.util.ByteStringBuffer;
+import com.unboundid.util.ThreadSafety;
+import com.unboundid.util.ThreadSafetyLevel;
+
+
+
+/**
+ * This class provides a join result writer that writes each row as a line of
+ * comma-separated values, as described in RFC 4180.  The first line is a
+ * header with the column names, which are "userType", "dn", and the names of
+ * the configured attributes.  A single byte string buffer is reused for every
+ * row, and its contents are written directly to the output stream, so no
+ * intermediate string is created for each row.
+ */
+@ThreadSafety(level=ThreadSafetyLevel.NOT_THREADSAFE)
+public final class CSVJoinResultWriter
+       implements JoinResultWriter
+{
+  /**
+   * The line terminator that RFC 4180 requires.
+   */
+  private static final byte[] CRLF = { '\r', '\n' };
+
+
+
+  // The buffer that will be used to encode each row.
+  private final ByteStringBuffer buffer;
+
+  // The output stream to which the rows will be written.
+  private final OutputStream outputStream;
+
+  // The names of the attributes to include in each row.
+  private final String[] attributeNames;
+
+
+
+  /**
+   * Creates a new instance of this writer that will write to the provided
+   * output stream.
+   *
+   * @param  outputStream    The output stream to which the rows will be
+   *                         written.  It should be buffered.
+   * @param  attributeNames  The names of the attributes to include in each
+   *                         row.
+   */
+  public CSVJoinResultWriter(final OutputStream outputStream,
+                             final String... attributeNames)
+  {
+    this.outputStream = outputStream;
+    this.attributeNames = attributeNames;
+
+    buffer = new ByteStringBuffer(256);
+  }
+
+
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override()
+  public void writeHeader()
+         throws IOException
+  {
+    buffer.clear();
+    appendField("userType", false);
+    appendField("dn", true);
+    for (final String attributeName : attributeNames)
+    {
+      appendField(attributeName, true);
+    }
+    buffer.append(CRLF);
+
+    buffer.write(outputStream);
+  }
+
+
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override()
+  public void writeRow(final String userType, final Entry entry)
+         throws IOException
+  {
+    buffer.clear();
+    appendField(userType, false);
+    appendField(entry.getDN(), true);
+    for (final String attributeName : attributeNames)
+    {
+      appendField(entry.getAttributeValue(attributeName), true);
+    }
+    buffer.append(CRLF);
+
+    buffer.write(outputStream);
+  }
+
+
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override()
+  public void flush()
+         throws IOException
+  {
+    outputStream.flush();
+  }
+
+
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override()
+  public void close()
+         throws IOException
+  {
+    outputStream.close();
+  }
+
+
+
+  /**
+   * Appends the provided field to the buffer, quoting it if necessary.
+   *
+   * @param  value           The value to append.  It may be {@code null} if
+   *                         the field should be empty.
+   * @param  needsSeparator  Indicates whether a comma should be appended
+   *                         before the field.
+   */
+  private void appendField(final String value, final boolean needsSeparator)
+  {
+    if (needsSeparator)
+    {
+      buffer.append(',');
+    }
+
+    if (value == null)
+    {
+      return;
+    }
+
+    boolean needsQuotes = false;
+    for (int i=0; i < value.length(); i++)
+    {
+      final char c = value.charAt(i);
+      if ((c == ',') || (c == '"') || (c == '\r') || (c == '\n'))
+      {
+        needsQuotes = true;
+        break;
+      }
+    }
+
+    if (! needsQuotes)
+    {
+      buffer.append(value);
+      return;
+    }
+
+    buffer.append('"');
+    buffer.append(value.replace("\"", "\"\""));
+    buffer.append('"');
+  }
+}
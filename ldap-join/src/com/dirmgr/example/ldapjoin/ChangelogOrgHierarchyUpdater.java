@@ -0,0 +1,697 @@
+/*
+ * Copyright 2019 Neil A. Wilson
+ * All Rights Reserved.
+ */
+/*
+ * Copyright (C) 2019 Neil A. Wilson
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPLv2 only)
+ * or the terms of the GNU Lesser General Public License (LGPLv2.1 only)
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, see <http://www.gnu.org/licenses>.
+ */
+/*
+ * Copyright 2019 Neil A. Wilson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dirmgr.example.ldapjoin;
+
+
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.TreeMap;
+
+import com.unboundid.ldap.sdk.Attribute;
+import com.unboundid.ldap.sdk.ChangeLogEntry;
+import com.unboundid.ldap.sdk.DN;
+import com.unboundid.ldap.sdk.Entry;
+import com.unboundid.ldap.sdk.Filter;
+import com.unboundid.ldap.sdk.LDAPException;
+import com.unboundid.ldap.sdk.LDAPInterface;
+import com.unboundid.ldap.sdk.Modification;
+import com.unboundid.ldap.sdk.ModificationType;
+import com.unboundid.ldap.sdk.ResultCode;
+import com.unboundid.ldap.sdk.RootDSE;
+import com.unboundid.ldap.sdk.SearchRequest;
+import com.unboundid.ldap.sdk.SearchResult;
+import com.unboundid.ldap.sdk.SearchResultEntry;
+import com.unboundid.ldap.sdk.SearchResultListener;
+import com.unboundid.ldap.sdk.SearchResultReference;
+import com.unboundid.ldap.sdk.SearchScope;
+import com.unboundid.ldif.LDIFReader;
+import com.unboundid.ldif.LDIFWriter;
+import com.unboundid.util.Debug;
+import com.unboundid.util.StaticUtils;
+import com.unboundid.util.ThreadSafety;
+import com.unboundid.util.ThreadSafetyLevel;
+
+
+
+/**
+ * This class provides a mechanism for keeping an {@link OrgHierarchy} up to
+ * date by tailing the LDAP changelog (as described in
+ * draft-good-ldap-changelog) rather than periodically rescanning the entire
+ * directory.  The hierarchy is populated with a full search the first time it
+ * is initialized, and after that, only the adds, deletes, renames, and changes
+ * to the manager attribute that have been recorded in the changelog will be
+ * applied to it.
+ * <BR><BR>
+ * The hierarchy and the number of the last change that was applied to it can
+ * be saved to a state file, so that a restarted updater can resume from where
+ * it left off instead of performing another full search.  Applying a change
+ * more than once will not cause any problems, so it is safe to resume from a
+ * state file that was saved before some of the changes were processed.  If the
+ * changelog has been purged past the last change that was applied, then the
+ * updater will fall back to a full reload.
+ */
+@ThreadSafety(level=ThreadSafetyLevel.NOT_THREADSAFE)
+public final class ChangelogOrgHierarchyUpdater
+{
+  /**
+   * The name of the attribute that holds the DN of a user's manager.
+   */
+  private static final String ATTR_MANAGER = "manager";
+
+
+
+  /**
+   * The name of the attribute used to hold the last change number in the state
+   * file.
+   */
+  private static final String ATTR_LAST_CHANGE_NUMBER = "lastChangeNumber";
+
+
+
+  /**
+   * The DN of the entry that holds the last change number in the state file.
+   */
+  private static final String STATE_ENTRY_DN = "cn=Org Hierarchy State";
+
+
+
+  /**
+   * The DN of the changelog base entry to use if the server does not advertise
+   * one in its root DSE.
+   */
+  private static final String DEFAULT_CHANGELOG_BASE_DN = "cn=changelog";
+
+
+
+  /**
+   * The default maximum number of changelog entries to retrieve in a single
+   * search.
+   */
+  private static final int DEFAULT_MAX_CHANGES_PER_SEARCH = 1000;
+
+
+
+  // The base DN below which user entries reside.
+  private final DN baseDN;
+
+  // The state file used to persist the hierarchy and the last change number.
+  // It may be null if the state should not be persisted.
+  private final File stateFile;
+
+  // The filter used to identify user entries.
+  private final Filter userFilter;
+
+  // The maximum number of changelog entries to retrieve in a single search.
+  private final int maxChangesPerSearch;
+
+  // The connection to use to communicate with the directory server.
+  private final LDAPInterface connection;
+
+  // The number of the last change that has been applied to the hierarchy.
+  private long lastChangeNumber;
+
+  // The hierarchy that will be kept up to date.
+  private final OrgHierarchy hierarchy;
+
+
+
+  /**
+   * Creates a new changelog org hierarchy updater with the provided
+   * information.
+   *
+   * @param  connection  The connection to use to communicate with the
+   *                     directory server.  It may be a connection or a
+   *                     connection pool, and it must not be {@code null}.
+   * @param  baseDN      The base DN below which user entries reside.  It must
+   *                     not be {@code null}.
+   * @param  userFilter  The filter used to identify user entries.  It must not
+   *                     be {@code null}.
+   * @param  stateFile   The file used to persist the hierarchy and the last
+   *                     change number across restarts.  It may be
+   *                     {@code null} if the state should not be persisted.
+   *
+   * @throws  LDAPException  If the provided base DN cannot be parsed.
+   */
+  public ChangelogOrgHierarchyUpdater(final LDAPInterface connection,
+                                      final String baseDN,
+                                      final Filter userFilter,
+                                      final File stateFile)
+         throws LDAPException
+  {
+    this.connection = connection;
+    this.baseDN = new DN(baseDN);
+    this.userFilter = userFilter;
+    this.stateFile = stateFile;
+
+    maxChangesPerSearch = DEFAULT_MAX_CHANGES_PER_SEARCH;
+    hierarchy = new OrgHierarchy();
+    lastChangeNumber = -1L;
+  }
+
+
+
+  /**
+   * Retrieves the hierarchy that is maintained by this updater.
+   *
+   * @return  The hierarchy that is maintained by this updater.
+   */
+  public OrgHierarchy getHierarchy()
+  {
+    return hierarchy;
+  }
+
+
+
+  /**
+   * Retrieves the number of the last change that has been applied to the
+   * hierarchy.
+   *
+   * @return  The number of the last change that has been applied to the
+   *          hierarchy, or -1 if the updater has not yet been initialized.
+   */
+  public long getLastChangeNumber()
+  {
+    return lastChangeNumber;
+  }
+
+
+
+  /**
+   * Initializes the hierarchy.  If a state file was provided and it exists,
+   * then the hierarchy and last change number will be read from it.
+   * Otherwise, the hierarchy will be populated with a full search of the
+   * directory.
+   *
+   * @return  {@code true} if the state was loaded from the state file, or
+   *          {@code false} if a full search was performed.
+   *
+   * @throws  LDAPException  If a problem occurs while reading the state file
+   *                         or searching the directory.
+   */
+  public boolean initialize()
+         throws LDAPException
+  {
+    if ((stateFile != null) && stateFile.exists())
+    {
+      loadState();
+      return true;
+    }
+
+    reload();
+    return false;
+  }
+
+
+
+  /**
+   * Discards the current content of the hierarchy and repopulates it with a
+   * full search of the directory.  The last change number is obtained from the
+   * root DSE before the search is issued, so that any changes made while the
+   * search is in progress will be picked up by the next call to
+   * {@link #applyNewChanges()}.
+   *
+   * @throws  LDAPException  If a problem occurs while searching the directory.
+   */
+  public void reload()
+         throws LDAPException
+  {
+    final Long currentChangeNumber = getRootDSE().getLastChangeNumber();
+    if (currentChangeNumber == null)
+    {
+      throw new LDAPException(ResultCode.UNWILLING_TO_PERFORM,
+           "The directory server root DSE does not include a " +
+                "lastChangeNumber attribute.  Make sure that the server " +
+                "has been configured to maintain an LDAP changelog.");
+    }
+
+    // Stream the entries into the hierarchy as they are returned rather than
+    // holding the entire result set in memory.
+    hierarchy.clear();
+    final SearchResultListener listener = new SearchResultListener()
+    {
+      private static final long serialVersionUID = 1L;
+
+      @Override()
+      public void searchEntryReturned(final SearchResultEntry entry)
+      {
+        try
+        {
+          hierarchy.putUser(entry.getParsedDN(), getManagerDN(entry));
+        }
+        catch (final LDAPException e)
+        {
+          Debug.debugException(e);
+        }
+      }
+
+      @Override()
+      public void searchReferenceReturned(
+                       final SearchResultReference reference)
+      {
+        // No implementation is required.
+      }
+    };
+
+    connection.search(new SearchRequest(listener, baseDN.toString(),
+         SearchScope.SUB, userFilter, ATTR_MANAGER));
+    lastChangeNumber = currentChangeNumber;
+  }
+
+
+
+  /**
+   * Retrieves any changes that have been recorded in the changelog since the
+   * last change that was applied, and updates the hierarchy to reflect them.
+   *
+   * @return  The number of changelog entries that were processed, or -1 if the
+   *          changelog no longer contained all of the necessary changes and a
+   *          full reload was performed instead.
+   *
+   * @throws  LDAPException  If a problem occurs while communicating with the
+   *                         directory server.
+   */
+  public int applyNewChanges()
+         throws LDAPException
+  {
+    final RootDSE rootDSE = getRootDSE();
+    final Long firstAvailableChangeNumber = rootDSE.getFirstChangeNumber();
+    final Long lastAvailableChangeNumber = rootDSE.getLastChangeNumber();
+    if (lastAvailableChangeNumber == null)
+    {
+      throw new LDAPException(ResultCode.UNWILLING_TO_PERFORM,
+           "The directory server root DSE does not include a " +
+                "lastChangeNumber attribute.  Make sure that the server " +
+                "has been configured to maintain an LDAP changelog.");
+    }
+
+    if (lastChangeNumber < 0L)
+    {
+      throw new LDAPException(ResultCode.LOCAL_ERROR,
+           "The updater must be initialized before changes can be applied.");
+    }
+
+    // If some of the changes that we need have already been purged from the
+    // changelog, then we have no choice but to reload everything.
+    if ((firstAvailableChangeNumber != null) &&
+         (firstAvailableChangeNumber > (lastChangeNumber + 1L)) &&
+         (lastAvailableChangeNumber > lastChangeNumber))
+    {
+      reload();
+      return -1;
+    }
+
+    String changelogBaseDN = rootDSE.getChangelogDN();
+    if (changelogBaseDN == null)
+    {
+      changelogBaseDN = DEFAULT_CHANGELOG_BASE_DN;
+    }
+
+    int changesProcessed = 0;
+    while (lastChangeNumber < lastAvailableChangeNumber)
+    {
+      final long lowerBound = lastChangeNumber + 1L;
+      final long upperBound = Math.min(lastAvailableChangeNumber,
+           lastChangeNumber + maxChangesPerSearch);
+      final SearchRequest searchRequest = new SearchRequest(changelogBaseDN,
+           SearchScope.ONE,
+           Filter.createANDFilter(
+                Filter.createGreaterOrEqualFilter(
+                     ChangeLogEntry.ATTR_CHANGE_NUMBER,
+                     String.valueOf(lowerBound)),
+                Filter.createLessOrEqualFilter(
+                     ChangeLogEntry.ATTR_CHANGE_NUMBER,
+                     String.valueOf(upperBound))));
+      final SearchResult searchResult = connection.search(searchRequest);
+
+      // The server isn't required to return the changes in order, so sort
+      // them by change number before applying them.
+      final TreeMap<Long,ChangeLogEntry> changes = new TreeMap<>();
+      for (final SearchResultEntry entry : searchResult.getSearchEntries())
+      {
+        final ChangeLogEntry changeLogEntry = new ChangeLogEntry(entry);
+        changes.put(changeLogEntry.getChangeNumber(), changeLogEntry);
+      }
+
+      for (final Map.Entry<Long,ChangeLogEntry> e : changes.entrySet())
+      {
+        applyChange(e.getValue());
+        lastChangeNumber = e.getKey();
+        changesProcessed++;
+      }
+
+      // There may be gaps in the change number sequence, so make sure that we
+      // don't request the same range again.
+      lastChangeNumber = upperBound;
+    }
+
+    return changesProcessed;
+  }
+
+
+
+  /**
+   * Updates the hierarchy to reflect the provided changelog entry.
+   *
+   * @param  changeLogEntry  The changelog entry to apply.
+   *
+   * @throws  LDAPException  If a problem occurs while processing the change.
+   */
+  private void applyChange(final ChangeLogEntry changeLogEntry)
+          throws LDAPException
+  {
+    final DN targetDN = new DN(changeLogEntry.getTargetDN());
+    switch (changeLogEntry.getChangeType())
+    {
+      case ADD:
+        if (targetDN.isDescendantOf(baseDN, true))
+        {
+          final Entry addedEntry =
+               new Entry(targetDN, changeLogEntry.getAddAttributes());
+          if (userFilter.matchesEntry(addedEntry))
+          {
+            hierarchy.putUser(targetDN, getManagerDN(addedEntry));
+          }
+        }
+        break;
+
+      case DELETE:
+        hierarchy.removeUser(targetDN);
+        break;
+
+      case MODIFY:
+        applyModifications(targetDN, changeLogEntry);
+        break;
+
+      case MODIFY_DN:
+        final DN newDN = new DN(changeLogEntry.getNewDN());
+        if (newDN.isDescendantOf(baseDN, true))
+        {
+          hierarchy.renameEntry(targetDN, newDN);
+        }
+        else
+        {
+          hierarchy.removeUser(targetDN);
+        }
+        break;
+    }
+  }
+
+
+
+  /**
+   * Updates the hierarchy to reflect any changes to the manager attribute in
+   * the provided modify changelog entry.
+   *
+   * @param  targetDN        The DN of the entry that was modified.
+   * @param  changeLogEntry  The changelog entry for the modify operation.
+   *
+   * @throws  LDAPException  If a problem occurs while processing the change.
+   */
+  private void applyModifications(final DN targetDN,
+                                  final ChangeLogEntry changeLogEntry)
+          throws LDAPException
+  {
+    boolean managerChanged = false;
+    DN managerDN = hierarchy.getManager(targetDN);
+    for (final Modification m : changeLogEntry.getModifications())
+    {
+      if (! m.getAttributeName().equalsIgnoreCase(ATTR_MANAGER))
+      {
+        continue;
+      }
+
+      managerChanged = true;
+      final String[] values = m.getValues();
+      final ModificationType modType = m.getModificationType();
+      if (modType.equals(ModificationType.REPLACE) ||
+           modType.equals(ModificationType.ADD))
+      {
+        if (values.length == 0)
+        {
+          managerDN = null;
+        }
+        else
+        {
+          managerDN = parseManagerDN(values[0]);
+        }
+      }
+      else if (modType.equals(ModificationType.DELETE))
+      {
+        if (values.length == 0)
+        {
+          managerDN = null;
+        }
+        else
+        {
+          for (final String value : values)
+          {
+            final DN deletedDN = parseManagerDN(value);
+            if ((deletedDN != null) && deletedDN.equals(managerDN))
+            {
+              managerDN = null;
+            }
+          }
+        }
+      }
+    }
+
+    if (! managerChanged)
+    {
+      return;
+    }
+
+    if (hierarchy.containsUser(targetDN))
+    {
+      hierarchy.putUser(targetDN, managerDN);
+    }
+    else if (targetDN.isDescendantOf(baseDN, true))
+    {
+      // We don't know anything about this entry, so we need to retrieve it to
+      // determine whether it's a user that should be added to the hierarchy.
+      final SearchResultEntry entry =
+           connection.getEntry(targetDN.toString());
+      if ((entry != null) && userFilter.matchesEntry(entry))
+      {
+        hierarchy.putUser(targetDN, getManagerDN(entry));
+      }
+    }
+  }
+
+
+
+  /**
+   * Writes the hierarchy and last change number to the state file.  The file
+   * will be written in LDIF form, and it will be written to a temporary file
+   * that is then moved into place so that a failure during the write will not
+   * corrupt an existing state file.
+   *
+   * @throws  LDAPException  If no state file was configured, or if a problem
+   *                         occurs while writing it.
+   */
+  public void saveState()
+         throws LDAPException
+  {
+    if (stateFile == null)
+    {
+      throw new LDAPException(ResultCode.PARAM_ERROR,
+           "No state file was configured.");
+    }
+
+    final File tempFile = new File(stateFile.getAbsolutePath() + ".tmp");
+    try (LDIFWriter ldifWriter = new LDIFWriter(tempFile))
+    {
+      ldifWriter.writeEntry(new Entry(STATE_ENTRY_DN,
+           new Attribute(ATTR_LAST_CHANGE_NUMBER,
+                String.valueOf(lastChangeNumber))));
+
+      for (final Map.Entry<DN,DN> e : hierarchy.getManagerMap().entrySet())
+      {
+        final Entry userEntry = new Entry(e.getKey());
+        if (e.getValue() != null)
+        {
+          userEntry.addAttribute(ATTR_MANAGER, e.getValue().toString());
+        }
+
+        ldifWriter.writeEntry(userEntry);
+      }
+    }
+    catch (final Exception e)
+    {
+      Debug.debugException(e);
+      throw new LDAPException(ResultCode.LOCAL_ERROR,
+           "Unable to write state file '" + tempFile.getAbsolutePath() +
+                "':  " + StaticUtils.getExceptionMessage(e),
+           e);
+    }
+
+    try
+    {
+      Files.move(tempFile.toPath(), stateFile.toPath(),
+           StandardCopyOption.REPLACE_EXISTING,
+           StandardCopyOption.ATOMIC_MOVE);
+    }
+    catch (final Exception e)
+    {
+      Debug.debugException(e);
+      throw new LDAPException(ResultCode.LOCAL_ERROR,
+           "Unable to move temporary state file '" +
+                tempFile.getAbsolutePath() + "' to '" +
+                stateFile.getAbsolutePath() + "':  " +
+                StaticUtils.getExceptionMessage(e),
+           e);
+    }
+  }
+
+
+
+  /**
+   * Reads the hierarchy and last change number from the state file.
+   *
+   * @throws  LDAPException  If a problem occurs while reading the state file.
+   */
+  private void loadState()
+          throws LDAPException
+  {
+    hierarchy.clear();
+    try (LDIFReader ldifReader = new LDIFReader(stateFile))
+    {
+      final Entry stateEntry = ldifReader.readEntry();
+      if ((stateEntry == null) ||
+           (! stateEntry.getParsedDN().equals(new DN(STATE_ENTRY_DN))) ||
+           (! stateEntry.hasAttribute(ATTR_LAST_CHANGE_NUMBER)))
+      {
+        throw new LDAPException(ResultCode.DECODING_ERROR,
+             "State file '" + stateFile.getAbsolutePath() + "' does not " +
+                  "start with the expected '" + STATE_ENTRY_DN + "' entry.");
+      }
+
+      lastChangeNumber =
+           stateEntry.getAttributeValueAsLong(ATTR_LAST_CHANGE_NUMBER);
+
+      while (true)
+      {
+        final Entry userEntry = ldifReader.readEntry();
+        if (userEntry == null)
+        {
+          break;
+        }
+
+        hierarchy.putUser(userEntry.getParsedDN(), getManagerDN(userEntry));
+      }
+    }
+    catch (final LDAPException e)
+    {
+      Debug.debugException(e);
+      throw e;
+    }
+    catch (final Exception e)
+    {
+      Debug.debugException(e);
+      throw new LDAPException(ResultCode.LOCAL_ERROR,
+           "Unable to read state file '" + stateFile.getAbsolutePath() +
+                "':  " + StaticUtils.getExceptionMessage(e),
+           e);
+    }
+  }
+
+
+
+  /**
+   * Retrieves the root DSE from the directory server.
+   *
+   * @return  The root DSE from the directory server.
+   *
+   * @throws  LDAPException  If the root DSE cannot be retrieved.
+   */
+  private RootDSE getRootDSE()
+          throws LDAPException
+  {
+    final RootDSE rootDSE = connection.getRootDSE();
+    if (rootDSE == null)
+    {
+      throw new LDAPException(ResultCode.NO_SUCH_OBJECT,
+           "Unable to retrieve the directory server root DSE.");
+    }
+
+    return rootDSE;
+  }
+
+
+
+  /**
+   * Retrieves the DN of the manager from the provided entry.
+   *
+   * @param  entry  The entry from which to retrieve the manager DN.
+   *
+   * @return  The DN of the manager from the provided entry, or {@code null} if
+   *          the entry does not have a valid manager DN.
+   */
+  private static DN getManagerDN(final Entry entry)
+  {
+    return parseManagerDN(entry.getAttributeValue(ATTR_MANAGER));
+  }
+
+
+
+  /**
+   * Parses the provided manager attribute value as a DN.
+   *
+   * @param  value  The value to parse.  It may be {@code null}.
+   *
+   * @return  The parsed DN, or {@code null} if the provided value was
+   *          {@code null} or could not be parsed as a DN.
+   */
+  private static DN parseManagerDN(final String value)
+  {
+    if (value == null)
+    {
+      return null;
+    }
+
+    try
+    {
+      return new DN(value);
+    }
+    catch (final LDAPException e)
+    {
+      Debug.debugException(e);
+      return null;
+    }
+  }
+}
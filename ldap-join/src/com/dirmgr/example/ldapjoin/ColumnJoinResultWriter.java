@@ -0,0 +1,160 @@
+/*
+ * Copyright 2019 Neil A. Wilson
+ * All Rights Reserved.
+ */
+/*
+ * Copyright (C) 2019 Neil A. Wilson
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPLv2 only)
+ * or the terms of the GNU Lesser General Public License (LGPLv2.1 only)
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, see <http://www.gnu.org/licenses>.
+ */
+/*
+ * Copyright 2019 Neil A. Wilson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dirmgr.example.ldapjoin;
+
+
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import com.unboundid.ldap.sdk.Entry;
+import com.unboundid.util.ColumnFormatter;
+import com.unboundid.util.FormattableColumn;
+import com.unboundid.util.HorizontalAlignment;
+import com.unboundid.util.StaticUtils;
+import com.unboundid.util.ThreadSafety;
+import com.unboundid.util.ThreadSafetyLevel;
+
+
+
+/**
+ * This class provides a join result writer that uses a column formatter to
+ * write the rows as a fixed-width table that is intended to be read by a
+ * person.
+ */
+@ThreadSafety(level=ThreadSafetyLevel.NOT_THREADSAFE)
+public final class ColumnJoinResultWriter
+       implements JoinResultWriter
+{
+  // The column formatter that will be used to format the rows.
+  private final ColumnFormatter columnFormatter;
+
+  // The output stream to which the rows will be written.
+  private final OutputStream outputStream;
+
+
+
+  /**
+   * Creates a new instance of this writer that will write to the provided
+   * output stream.
+   *
+   * @param  outputStream  The output stream to which the rows will be
+   *                       written.  It should be buffered.
+   */
+  public ColumnJoinResultWriter(final OutputStream outputStream)
+  {
+    this.outputStream = outputStream;
+
+    columnFormatter = new ColumnFormatter(
+         new FormattableColumn(9, HorizontalAlignment.LEFT, "User Type"),
+         new FormattableColumn(10, HorizontalAlignment.LEFT, "First Name"),
+         new FormattableColumn(10, HorizontalAlignment.LEFT, "Last Name"),
+         new FormattableColumn(32, HorizontalAlignment.LEFT, "Email Address"),
+         new FormattableColumn(15, HorizontalAlignment.LEFT, "Phone Number"));
+  }
+
+
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override()
+  public void writeHeader()
+         throws IOException
+  {
+    for (final String headerLine : columnFormatter.getHeaderLines(true))
+    {
+      writeLine(headerLine);
+    }
+  }
+
+
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override()
+  public void writeRow(final String userType, final Entry entry)
+         throws IOException
+  {
+    writeLine(columnFormatter.formatRow(
+         userType,
+         entry.getAttributeValue("givenName"),
+         entry.getAttributeValue("sn"),
+         entry.getAttributeValue("mail"),
+         entry.getAttributeValue("telephoneNumber")));
+  }
+
+
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override()
+  public void flush()
+         throws IOException
+  {
+    outputStream.flush();
+  }
+
+
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override()
+  public void close()
+         throws IOException
+  {
+    outputStream.close();
+  }
+
+
+
+  /**
+   * Writes the provided line, followed by an end-of-line marker.
+   *
+   * @param  line  The line to write.
+   *
+   * @throws  IOException  If a problem occurs while writing the line.
+   */
+  private void writeLine(final String line)
+          throws IOException
+  {
+    outputStream.write(StaticUtils.getBytes(line));
+    outputStream.write(StaticUtils.EOL_BYTES);
+  }
+}
@@ -0,0 +1,865 @@
+/*
+ * Copyright 2019 Neil A. Wilson
+ * All Rights Reserved.
+ */
+/*
+ * Copyright (C) 2019 Neil A. Wilson
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPLv2 only)
+ * or the terms of the GNU Lesser General Public License (LGPLv2.1 only)
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, see <http://www.gnu.org/licenses>.
+ */
+/*
+ * Copyright 2019 Neil A. Wilson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dirmgr.example.ldapjoin;
+
+
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.unboundid.ldap.sdk.AsyncRequestID;
+import com.unboundid.ldap.sdk.AsyncSearchResultListener;
+import com.unboundid.ldap.sdk.IntermediateResponse;
+import com.unboundid.ldap.sdk.IntermediateResponseListener;
+import com.unboundid.ldap.sdk.LDAPConnection;
+import com.unboundid.ldap.sdk.LDAPException;
+import com.unboundid.ldap.sdk.LDAPSearchException;
+import com.unboundid.ldap.sdk.ResultCode;
+import com.unboundid.ldap.sdk.SearchRequest;
+import com.unboundid.ldap.sdk.SearchResult;
+import com.unboundid.ldap.sdk.SearchResultEntry;
+import com.unboundid.ldap.sdk.SearchResultListener;
+import com.unboundid.ldap.sdk.SearchResultReference;
+import com.unboundid.util.Debug;
+import com.unboundid.util.ObjectPair;
+import com.unboundid.util.StaticUtils;
+import com.unboundid.util.ThreadSafety;
+import com.unboundid.util.ThreadSafetyLevel;
+
+
+
+/**
+ * This class provides a mechanism for issuing hedged searches against a pair
+ * of replicated directory servers.  Each search is first sent to the primary
+ * server.  If the primary server has not returned a result within a delay
+ * based on a percentile of its recent response times, then a duplicate of the
+ * search is sent to the secondary server.  The result that arrives first is
+ * used, and the other search is abandoned.  This keeps an occasional slow
+ * response from one server (for example, because of a garbage collection
+ * pause or a busy disk) from determining the latency of the lookup, while
+ * only sending a small fraction of the searches to both servers.
+ * <BR><BR>
+ * The first server to return an entry, reference, or intermediate response
+ * wins, and the other search is abandoned right away.  If the provided
+ * search request has a search result listener, then the entries from the
+ * winning server are passed to it as they arrive, so the amount of memory
+ * required doesn't depend on the number of entries, and they will not be
+ * included in the returned search result.  Any follow-up searches should be
+ * sent to the winning server, which is identified by the
+ * {@link #searchAndGetConnection} method.
+ */
+@ThreadSafety(level=ThreadSafetyLevel.COMPLETELY_THREADSAFE)
+public final class HedgedJoinSearch
+{
+  /**
+   * The default percentile of recent primary server response times that will
+   * be used as the hedge delay.
+   */
+  public static final double DEFAULT_HEDGE_PERCENTILE = 95.0d;
+
+
+
+  /**
+   * The default number of recent primary server response times that will be
+   * used to compute the hedge delay.
+   */
+  public static final int DEFAULT_LATENCY_WINDOW_SIZE = 100;
+
+
+
+  /**
+   * The default hedge delay, in milliseconds, that will be used until enough
+   * response times have been recorded to compute a percentile.
+   */
+  public static final long DEFAULT_INITIAL_HEDGE_DELAY_MILLIS = 50L;
+
+
+
+  /**
+   * The minimum number of response times that must be recorded before the
+   * hedge delay will be computed from them.
+   */
+  private static final int MIN_LATENCY_SAMPLES = 10;
+
+
+
+  // The number of searches that were sent to the secondary server.
+  private final AtomicLong hedgedSearches;
+
+  // The number of searches processed.
+  private final AtomicLong totalSearches;
+
+  // The number of searches for which the result from the secondary server was
+  // used.
+  private final AtomicLong secondaryWins;
+
+  // The percentile of recent primary server response times to use as the
+  // hedge delay.
+  private final double hedgePercentile;
+
+  // The circular buffer of recent primary server response times, in
+  // nanoseconds.
+  private final long[] latencyWindow;
+
+  // The connection to the primary server.
+  private final LDAPConnection primaryConnection;
+
+  // The connection to the secondary server.
+  private final LDAPConnection secondaryConnection;
+
+  // The hedge delay, in nanoseconds, that will be used until enough response
+  // times have been recorded.
+  private final long initialHedgeDelayNanos;
+
+  // The number of response times that have been recorded in the latency
+  // window, which may be larger than the size of the window.
+  private long latencySamples;
+
+
+
+  /**
+   * Creates a new hedged join search instance with the default settings.
+   *
+   * @param  primaryConnection    The connection to the primary server.  It
+   *                              must not be {@code null}.
+   * @param  secondaryConnection  The connection to the secondary server.  It
+   *                              must not be {@code null}.
+   */
+  public HedgedJoinSearch(final LDAPConnection primaryConnection,
+                          final LDAPConnection secondaryConnection)
+  {
+    this(primaryConnection, secondaryConnection, DEFAULT_HEDGE_PERCENTILE,
+         DEFAULT_LATENCY_WINDOW_SIZE, DEFAULT_INITIAL_HEDGE_DELAY_MILLIS);
+  }
+
+
+
+  /**
+   * Creates a new hedged join search instance with the provided settings.
+   *
+   * @param  primaryConnection        The connection to the primary server.
+   *                                  It must not be {@code null}.
+   * @param  secondaryConnection      The connection to the secondary server.
+   *                                  It must not be {@code null}.
+   * @param  hedgePercentile          The percentile of recent primary server
+   *                                  response times to use as the hedge
+   *                                  delay.  It must be greater than zero and
+   *                                  less than or equal to 100.
+   * @param  latencyWindowSize        The number of recent primary server
+   *                                  response times to use to compute the
+   *                                  hedge delay.  It must be greater than
+   *                                  zero.
+   * @param  initialHedgeDelayMillis  The hedge delay, in milliseconds, to use
+   *                                  until enough response times have been
+   *                                  recorded to compute a percentile.
+   */
+  public HedgedJoinSearch(final LDAPConnection primaryConnection,
+                          final LDAPConnection secondaryConnection,
+                          final double hedgePercentile,
+                          final int latencyWindowSize,
+                          final long initialHedgeDelayMillis)
+  {
+    this.primaryConnection = primaryConnection;
+    this.secondaryConnection = secondaryConnection;
+    this.hedgePercentile = hedgePercentile;
+
+    latencyWindow = new long[latencyWindowSize];
+    latencySamples = 0L;
+    initialHedgeDelayNanos =
+         TimeUnit.MILLISECONDS.toNanos(initialHedgeDelayMillis);
+
+    totalSearches = new AtomicLong(0L);
+    hedgedSearches = new AtomicLong(0L);
+    secondaryWins = new AtomicLong(0L);
+  }
+
+
+
+  /**
+   * Processes the provided search request, sending it to the secondary server
+   * as well if the primary server does not respond within the hedge delay.
+   *
+   * @param  searchRequest  The search request to process.  It must not be
+   *                        {@code null}.
+   *
+   * @return  The result of the search from whichever server responded first.
+   *          If both servers responded, and only one of the results was
+   *          successful, then the successful result will be returned.
+   *
+   * @throws  LDAPException  If the search could not be sent to either server,
+   *                         if the thread was interrupted while waiting for a
+   *                         result, or if the result was not successful.
+   */
+  public SearchResult search(final SearchRequest searchRequest)
+         throws LDAPException
+  {
+    return searchAndGetConnection(searchRequest).getFirst();
+  }
+
+
+
+  /**
+   * Processes the provided search request, sending it to the secondary server
+   * as well if the primary server does not respond within the hedge delay,
+   * and indicates which server's response was used.  Any follow-up requests
+   * that depend on the result (for example, paged searches for entries that
+   * were too numerous to include in it) should be sent over the returned
+   * connection, so that they see the same data.
+   *
+   * @param  searchRequest  The search request to process.  It must not be
+   *                        {@code null}.
+   *
+   * @return  A pair whose first element is the result of the search from
+   *          whichever server responded first (or the successful result if
+   *          the first result was not successful and the other server was
+   *          still working on the search), and whose second element is the
+   *          connection to the server that provided it.
+   *
+   * @throws  LDAPException  If the search could not be sent to either server,
+   *                         if the thread was interrupted while waiting for a
+   *                         result, or if the result was not successful.
+   */
+  public ObjectPair<SearchResult,LDAPConnection> searchAndGetConnection(
+              final SearchRequest searchRequest)
+         throws LDAPException
+  {
+    totalSearches.incrementAndGet();
+
+    final LinkedBlockingQueue<StreamingListener> eventQueue =
+         new LinkedBlockingQueue<>();
+    final AtomicReference<StreamingListener> streamOwner =
+         new AtomicReference<>();
+    final StreamingListener primaryListener = new StreamingListener(
+         searchRequest, eventQueue, streamOwner, true);
+    final StreamingListener secondaryListener = new StreamingListener(
+         searchRequest, eventQueue, streamOwner, false);
+
+    final long startTime = System.nanoTime();
+    AsyncRequestID primaryRequestID = null;
+    AsyncRequestID secondaryRequestID = null;
+    int outstandingSearches = 0;
+    LDAPException sendException = null;
+    try
+    {
+      primaryRequestID = primaryConnection.asyncSearch(copySearchRequest(
+           searchRequest, primaryListener, primaryConnection));
+      outstandingSearches++;
+    }
+    catch (final LDAPException e)
+    {
+      Debug.debugException(e);
+      sendException = e;
+    }
+
+    try
+    {
+      StreamingListener event = null;
+      if (primaryRequestID != null)
+      {
+        event = eventQueue.poll(getHedgeDelayNanos(), TimeUnit.NANOSECONDS);
+      }
+
+      if (event == null)
+      {
+        try
+        {
+          secondaryRequestID = secondaryConnection.asyncSearch(
+               copySearchRequest(searchRequest, secondaryListener,
+                    secondaryConnection));
+          outstandingSearches++;
+          hedgedSearches.incrementAndGet();
+        }
+        catch (final LDAPException e)
+        {
+          Debug.debugException(e);
+          if (sendException == null)
+          {
+            sendException = e;
+          }
+        }
+
+        if (outstandingSearches == 0)
+        {
+          throw sendException;
+        }
+
+        event = eventQueue.take();
+      }
+
+      // The first server to return an entry, reference, or intermediate
+      // response owns the stream, and its responses are passed straight
+      // through to the caller.  If a server returns a result without
+      // anything else, then use it unless it wasn't successful and the other
+      // server is still working on the search.
+      StreamingListener winner = streamOwner.get();
+      while (winner == null)
+      {
+        if (event.getResult() != null)
+        {
+          outstandingSearches--;
+          if (((event.getResult().getResultCode() == ResultCode.SUCCESS) ||
+               (outstandingSearches == 0)) &&
+              streamOwner.compareAndSet(null, event))
+          {
+            winner = event;
+            break;
+          }
+        }
+
+        winner = streamOwner.get();
+        if (winner == null)
+        {
+          event = eventQueue.take();
+          winner = streamOwner.get();
+        }
+      }
+
+      // Record how long the primary server took to start responding.  If it
+      // hadn't responded by the time the other server won, then the elapsed
+      // time is still a useful lower bound for its response time.
+      if (primaryRequestID != null)
+      {
+        if (primaryListener.getFirstResponseTime() >= 0L)
+        {
+          recordPrimaryLatency(
+               primaryListener.getFirstResponseTime() - startTime);
+        }
+        else
+        {
+          recordPrimaryLatency(System.nanoTime() - startTime);
+        }
+      }
+
+      // Cancel the search that lost, and wait for the winner to finish.
+      final LDAPConnection winningConnection;
+      if (winner.isPrimary())
+      {
+        winningConnection = primaryConnection;
+        if ((secondaryRequestID != null) &&
+            (secondaryListener.getResult() == null))
+        {
+          abandon(secondaryConnection, secondaryRequestID);
+        }
+      }
+      else
+      {
+        winningConnection = secondaryConnection;
+        secondaryWins.incrementAndGet();
+        if ((primaryRequestID != null) &&
+            (primaryListener.getResult() == null))
+        {
+          abandon(primaryConnection, primaryRequestID);
+        }
+      }
+
+      while (winner.getResult() == null)
+      {
+        eventQueue.take();
+      }
+
+      return new ObjectPair<>(winner.createSearchResult(), winningConnection);
+    }
+    catch (final InterruptedException e)
+    {
+      Debug.debugException(e);
+      Thread.currentThread().interrupt();
+
+      if (primaryRequestID != null)
+      {
+        abandon(primaryConnection, primaryRequestID);
+      }
+      if (secondaryRequestID != null)
+      {
+        abandon(secondaryConnection, secondaryRequestID);
+      }
+
+      throw new LDAPException(ResultCode.LOCAL_ERROR,
+           "Interrupted while waiting for a search result:  " +
+                StaticUtils.getExceptionMessage(e),
+           e);
+    }
+  }
+
+
+
+  /**
+   * Retrieves the delay, in milliseconds, that will be used before sending
+   * the next search to the secondary server.
+   *
+   * @return  The delay, in milliseconds, that will be used before sending the
+   *          next search to the secondary server.
+   */
+  public long getHedgeDelayMillis()
+  {
+    return TimeUnit.NANOSECONDS.toMillis(getHedgeDelayNanos());
+  }
+
+
+
+  /**
+   * Retrieves the total number of searches that have been processed.
+   *
+   * @return  The total number of searches that have been processed.
+   */
+  public long getTotalSearches()
+  {
+    return totalSearches.get();
+  }
+
+
+
+  /**
+   * Retrieves the number of searches that were sent to the secondary server
+   * because the primary server did not respond within the hedge delay.
+   *
+   * @return  The number of searches that were sent to the secondary server.
+   */
+  public long getHedgedSearches()
+  {
+    return hedgedSearches.get();
+  }
+
+
+
+  /**
+   * Retrieves the number of searches for which the result from the secondary
+   * server was used.
+   *
+   * @return  The number of searches for which the result from the secondary
+   *          server was used.
+   */
+  public long getSecondaryWins()
+  {
+    return secondaryWins.get();
+  }
+
+
+
+  /**
+   * Computes the current hedge delay from the recent primary server response
+   * times.
+   *
+   * @return  The current hedge delay, in nanoseconds.
+   */
+  private synchronized long getHedgeDelayNanos()
+  {
+    if (latencySamples < MIN_LATENCY_SAMPLES)
+    {
+      return initialHedgeDelayNanos;
+    }
+
+    final int numSamples = (int) Math.min(latencySamples, latencyWindow.length);
+    final long[] sortedLatencies = Arrays.copyOf(latencyWindow, numSamples);
+    Arrays.sort(sortedLatencies);
+
+    final int index =
+         (int) Math.ceil(hedgePercentile / 100.0d * numSamples) - 1;
+    return sortedLatencies[Math.max(0, Math.min(index, numSamples - 1))];
+  }
+
+
+
+  /**
+   * Records a primary server response time in the latency window.
+   *
+   * @param  latencyNanos  The response time to record, in nanoseconds.
+   */
+  private synchronized void recordPrimaryLatency(final long latencyNanos)
+  {
+    latencyWindow[(int) (latencySamples % latencyWindow.length)] =
+         latencyNanos;
+    latencySamples++;
+  }
+
+
+
+  /**
+   * Creates a copy of the provided search request that will use the given
+   * listener for the search result entries, references, and any intermediate
+   * responses, and that has the same settings as the original request.
+   *
+   * @param  searchRequest  The search request to copy.
+   * @param  listener       The listener to use for the copy.
+   * @param  connection     The connection on which the copy will be sent.
+   *
+   * @return  The copy of the search request.
+   */
+  private static SearchRequest copySearchRequest(
+                                    final SearchRequest searchRequest,
+                                    final StreamingListener listener,
+                                    final LDAPConnection connection)
+  {
+    // A search request's listener can't be replaced, so take a snapshot of
+    // the request and create a new one with the same settings.
+    final SearchRequest duplicate = searchRequest.duplicate();
+    final SearchRequest copy = new SearchRequest(listener,
+         duplicate.getControls(), duplicate.getBaseDN(), duplicate.getScope(),
+         duplicate.getDereferencePolicy(), duplicate.getSizeLimit(),
+         duplicate.getTimeLimitSeconds(), duplicate.typesOnly(),
+         duplicate.getFilter(), duplicate.getAttributes());
+    copy.setResponseTimeoutMillis(duplicate.getResponseTimeoutMillis(
+         connection));
+    copy.setFollowReferrals(duplicate.followReferrals(connection));
+    copy.setReferralConnector(duplicate.getReferralConnector(connection));
+    if (duplicate.getIntermediateResponseListener() != null)
+    {
+      copy.setIntermediateResponseListener(listener);
+    }
+
+    return copy;
+  }
+
+
+
+  /**
+   * Abandons the specified search, ignoring any problem that occurs, since
+   * the result of that search is no longer needed.
+   *
+   * @param  connection  The connection on which the search was sent.
+   * @param  requestID   The async request ID for the search.
+   */
+  private static void abandon(final LDAPConnection connection,
+                              final AsyncRequestID requestID)
+  {
+    try
+    {
+      connection.abandon(requestID);
+    }
+    catch (final LDAPException e)
+    {
+      Debug.debugException(e);
+    }
+  }
+
+
+
+  /**
+   * This class provides an async search result listener for the copy of a
+   * search that is sent to one of the servers.  The first listener to receive
+   * an entry, reference, or intermediate response claims the stream, and
+   * from then on, its responses are passed directly to the caller's
+   * listeners as they arrive, while any responses that the other listener
+   * receives are discarded.  A listener adds itself to an event queue when it
+   * claims the stream and when it receives the search result.
+   */
+  private static final class StreamingListener
+          implements AsyncSearchResultListener, IntermediateResponseListener
+  {
+    /**
+     * The serial version UID for this serializable class.
+     */
+    private static final long serialVersionUID = 1L;
+
+
+
+    // The reference to the listener that owns the stream, which is shared by
+    // the listeners for both servers.
+    private final AtomicReference<StreamingListener> streamOwner;
+
+    // Indicates whether this listener is used for the primary server.
+    private final boolean isPrimary;
+
+    // The intermediate response listener from the caller's search request.
+    private final IntermediateResponseListener callerIntermediateListener;
+
+    // The queue to which this listener will be added when it claims the
+    // stream and when the search is complete.
+    private final LinkedBlockingQueue<StreamingListener> eventQueue;
+
+    // The entries to include in the search result, if the caller's search
+    // request doesn't have a listener.
+    private final List<SearchResultEntry> entries;
+
+    // The references to include in the search result, if the caller's search
+    // request doesn't have a listener.
+    private final List<SearchResultReference> references;
+
+    // The search result listener from the caller's search request.
+    private final SearchResultListener callerListener;
+
+    // The number of entries that have been passed to the caller.
+    private int entryCount;
+
+    // The number of references that have been passed to the caller.
+    private int referenceCount;
+
+    // The time that the first response was received.
+    private volatile long firstResponseTime;
+
+    // The search result.
+    private volatile SearchResult result;
+
+
+
+    /**
+     * Creates a new streaming listener.
+     *
+     * @param  searchRequest  The caller's search request.
+     * @param  eventQueue     The queue to which this listener will be added
+     *                        when it claims the stream and when the search is
+     *                        complete.
+     * @param  streamOwner    The reference to the listener that owns the
+     *                        stream.
+     * @param  isPrimary      Indicates whether this listener is used for the
+     *                        primary server.
+     */
+    private StreamingListener(final SearchRequest searchRequest,
+                 final LinkedBlockingQueue<StreamingListener> eventQueue,
+                 final AtomicReference<StreamingListener> streamOwner,
+                 final boolean isPrimary)
+    {
+      this.eventQueue = eventQueue;
+      this.streamOwner = streamOwner;
+      this.isPrimary = isPrimary;
+
+      callerListener = searchRequest.getSearchResultListener();
+      callerIntermediateListener =
+           searchRequest.getIntermediateResponseListener();
+      if (callerListener == null)
+      {
+        entries = new ArrayList<>(10);
+        references = new ArrayList<>(0);
+      }
+      else
+      {
+        entries = null;
+        references = null;
+      }
+
+      entryCount = 0;
+      referenceCount = 0;
+      firstResponseTime = -1L;
+      result = null;
+    }
+
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override()
+    public void searchEntryReturned(final SearchResultEntry searchEntry)
+    {
+      if (! claimStream())
+      {
+        return;
+      }
+
+      entryCount++;
+      if (callerListener == null)
+      {
+        entries.add(searchEntry);
+      }
+      else
+      {
+        callerListener.searchEntryReturned(searchEntry);
+      }
+    }
+
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override()
+    public void searchReferenceReturned(
+                     final SearchResultReference searchReference)
+    {
+      if (! claimStream())
+      {
+        return;
+      }
+
+      referenceCount++;
+      if (callerListener == null)
+      {
+        references.add(searchReference);
+      }
+      else
+      {
+        callerListener.searchReferenceReturned(searchReference);
+      }
+    }
+
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override()
+    public void intermediateResponseReturned(
+                     final IntermediateResponse intermediateResponse)
+    {
+      if (claimStream() && (callerIntermediateListener != null))
+      {
+        callerIntermediateListener.intermediateResponseReturned(
+             intermediateResponse);
+      }
+    }
+
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override()
+    public void searchResultReceived(final AsyncRequestID requestID,
+                                     final SearchResult searchResult)
+    {
+      if (firstResponseTime < 0L)
+      {
+        firstResponseTime = System.nanoTime();
+      }
+
+      result = searchResult;
+      eventQueue.offer(this);
+    }
+
+
+
+    /**
+     * Attempts to claim the stream for this listener, if no listener has
+     * claimed it yet.
+     *
+     * @return  {@code true} if this listener owns the stream, or {@code false}
+     *          if the other listener owns it.
+     */
+    private boolean claimStream()
+    {
+      if (firstResponseTime < 0L)
+      {
+        firstResponseTime = System.nanoTime();
+      }
+
+      if (streamOwner.get() == this)
+      {
+        return true;
+      }
+
+      if (streamOwner.compareAndSet(null, this))
+      {
+        eventQueue.offer(this);
+        return true;
+      }
+
+      return false;
+    }
+
+
+
+    /**
+     * Indicates whether this listener is used for the primary server.
+     *
+     * @return  {@code true} if this listener is used for the primary server,
+     *          or {@code false} if it is used for the secondary server.
+     */
+    boolean isPrimary()
+    {
+      return isPrimary;
+    }
+
+
+
+    /**
+     * Retrieves the time that the first response was received.
+     *
+     * @return  The time that the first response was received, as reported by
+     *          {@code System.nanoTime}, or -1 if no response has been
+     *          received.
+     */
+    long getFirstResponseTime()
+    {
+      return firstResponseTime;
+    }
+
+
+
+    /**
+     * Retrieves the search result received by this listener.
+     *
+     * @return  The search result received by this listener, or {@code null}
+     *          if it has not been received.
+     */
+    SearchResult getResult()
+    {
+      return result;
+    }
+
+
+
+    /**
+     * Creates the search result to return to the caller.  If the caller's
+     * search request doesn't have a listener, then it will include the
+     * entries and references.
+     *
+     * @return  The search result to return to the caller.
+     *
+     * @throws  LDAPException  If the search result was not successful.
+     */
+    SearchResult createSearchResult()
+            throws LDAPException
+    {
+      final SearchResult searchResult;
+      if (callerListener == null)
+      {
+        searchResult = new SearchResult(result.getMessageID(),
+             result.getResultCode(), result.getDiagnosticMessage(),
+             result.getMatchedDN(), result.getReferralURLs(), entries,
+             references, entryCount, referenceCount,
+             result.getResponseControls());
+      }
+      else
+      {
+        searchResult = new SearchResult(result.getMessageID(),
+             result.getResultCode(), result.getDiagnosticMessage(),
+             result.getMatchedDN(), result.getReferralURLs(), entryCount,
+             referenceCount, result.getResponseControls());
+      }
+
+      if (searchResult.getResultCode() != ResultCode.SUCCESS)
+      {
+        throw new LDAPSearchException(searchResult);
+      }
+
+      return searchResult;
+    }
+  }
+}
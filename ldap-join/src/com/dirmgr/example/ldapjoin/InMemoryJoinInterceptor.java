@@ -0,0 +1,1087 @@
+/*
+ * Copyright 2019 Neil A. Wilson
+ * All Rights Reserved.
+ */
+/*
+ * Copyright (C) 2019 Neil A. Wilson
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPLv2 only)
+ * or the terms of the GNU Lesser General Public License (LGPLv2.1 only)
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, see <http://www.gnu.org/licenses>.
+ */
+/*
+ * Copyright 2019 Neil A. Wilson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dirmgr.example.ldapjoin;
+
+
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import com.unboundid.ldap.listener.InMemoryDirectoryServer;
+import com.unboundid.ldap.listener.interceptor.InMemoryInterceptedAddResult;
+import com.unboundid.ldap.listener.interceptor.InMemoryInterceptedDeleteResult;
+import com.unboundid.ldap.listener.interceptor.
+            InMemoryInterceptedModifyDNResult;
+import com.unboundid.ldap.listener.interceptor.InMemoryInterceptedModifyResult;
+import com.unboundid.ldap.listener.interceptor.InMemoryInterceptedSearchEntry;
+import com.unboundid.ldap.listener.interceptor.InMemoryInterceptedSearchRequest;
+import com.unboundid.ldap.listener.interceptor.InMemoryOperationInterceptor;
+import com.unboundid.ldap.sdk.Attribute;
+import com.unboundid.ldap.sdk.Control;
+import com.unboundid.ldap.sdk.DN;
+import com.unboundid.ldap.sdk.Entry;
+import com.unboundid.ldap.sdk.Filter;
+import com.unboundid.ldap.sdk.LDAPException;
+import com.unboundid.ldap.sdk.RDN;
+import com.unboundid.ldap.sdk.ReadOnlyModifyDNRequest;
+import com.unboundid.ldap.sdk.ResultCode;
+import com.unboundid.ldap.sdk.SearchRequest;
+import com.unboundid.ldap.sdk.SearchResult;
+import com.unboundid.ldap.sdk.SearchResultEntry;
+import com.unboundid.ldap.sdk.SearchScope;
+import com.unboundid.ldap.sdk.schema.AttributeTypeDefinition;
+import com.unboundid.ldap.sdk.schema.Schema;
+import com.unboundid.ldap.sdk.unboundidds.controls.JoinBaseDN;
+import com.unboundid.ldap.sdk.unboundidds.controls.JoinRequestControl;
+import com.unboundid.ldap.sdk.unboundidds.controls.JoinRequestValue;
+import com.unboundid.ldap.sdk.unboundidds.controls.JoinResultControl;
+import com.unboundid.ldap.sdk.unboundidds.controls.JoinRule;
+import com.unboundid.ldap.sdk.unboundidds.controls.JoinedEntry;
+import com.unboundid.util.Debug;
+import com.unboundid.util.ObjectPair;
+import com.unboundid.util.StaticUtils;
+import com.unboundid.util.ThreadSafety;
+import com.unboundid.util.ThreadSafetyLevel;
+
+
+
+/**
+ * This class provides an in-memory operation interceptor that allows the
+ * UnboundID in-memory directory server to process search requests that
+ * include the join request control, so that programs like
+ * {@link RetrieveUserManagerAndPeers} and {@link RetrieveManagementChain} can
+ * be run without access to a server that supports that control.  The join
+ * request control is removed from the search request before it is passed to
+ * the in-memory server, and the join result control is attached to each
+ * search result entry as it is returned.
+ * <BR><BR>
+ * DN joins, reverse DN joins, and AND and OR combinations of them are
+ * supported, as are the join base DN, scope, filter, size limit, requested
+ * attributes, require match, and nested join elements of the join request.
+ * Equality and contains joins are not supported, and a search that attempts
+ * to use them will be rejected with an unwilling to perform result.
+ * <BR><BR>
+ * DN joins are processed by retrieving the entries referenced by the source
+ * entry directly.  Reverse DN joins are processed using an index that maps the
+ * normalized DN values of each indexed attribute to the DNs of the entries
+ * that contain them, so they do not require examining every entry in the
+ * server.  The set of indexed attributes must be provided when the
+ * interceptor is created, and the index is kept up to date as add, delete,
+ * modify, and modify DN operations are processed over LDAP connections.  Any
+ * changes made directly through the {@code InMemoryDirectoryServer} methods
+ * (including LDIF imports) bypass operation interceptors, so the
+ * {@link #rebuildIndex} method must be called after making such changes.
+ * <BR><BR>
+ * An example of setting up an in-memory server with this interceptor is:
+ * <PRE>
+ *   InMemoryJoinInterceptor joinInterceptor =
+ *        new InMemoryJoinInterceptor("manager");
+ *   InMemoryDirectoryServerConfig config =
+ *        new InMemoryDirectoryServerConfig("dc=example,dc=com");
+ *   config.addInMemoryOperationInterceptor(joinInterceptor);
+ *
+ *   InMemoryDirectoryServer ds = new InMemoryDirectoryServer(config);
+ *   ds.importFromLDIF(true, "example.ldif");
+ *   joinInterceptor.setDirectoryServer(ds);
+ *   ds.startListening();
+ * </PRE>
+ */
+@ThreadSafety(level=ThreadSafetyLevel.COMPLETELY_THREADSAFE)
+public final class InMemoryJoinInterceptor
+       extends InMemoryOperationInterceptor
+{
+  /**
+   * The name of the operation property used to hold the join request value
+   * from a search request so that it is available when processing the entries
+   * returned by that search.
+   */
+  private static final String JOIN_REQUEST_VALUE_PROPERTY =
+       InMemoryJoinInterceptor.class.getName() + ".joinRequestValue";
+
+
+
+  // The in-memory directory server with which this interceptor is associated.
+  private volatile InMemoryDirectoryServer directoryServer;
+
+  // The reverse DN join index, mapped from the lowercase name of each indexed
+  // attribute to a map from each normalized DN value of that attribute to the
+  // DNs of the entries that contain that value.
+  private final Map<String,Map<DN,Set<DN>>> reverseDNIndex;
+
+  // The values that have been indexed for each entry, mapped from the entry
+  // DN to a list of the indexed attribute names and values, so that they can
+  // be removed from the index when that entry is changed.
+  private final Map<DN,List<ObjectPair<String,DN>>> indexedValues;
+
+  // The names of the attributes that will be indexed for reverse DN joins.
+  private final Set<String> indexedAttributes;
+
+
+
+  /**
+   * Creates a new in-memory join interceptor that will maintain a reverse DN
+   * join index for the specified attributes.  The
+   * {@link #setDirectoryServer} method must be called after the in-memory
+   * directory server has been created and before any searches with the join
+   * request control are processed.
+   *
+   * @param  indexedAttributes  The names of the attributes for which reverse
+   *                            DN joins should be supported.  Each of them
+   *                            must be DN-valued.
+   */
+  public InMemoryJoinInterceptor(final String... indexedAttributes)
+  {
+    this.indexedAttributes = new LinkedHashSet<>(indexedAttributes.length);
+    for (final String attributeName : indexedAttributes)
+    {
+      this.indexedAttributes.add(StaticUtils.toLowerCase(attributeName));
+    }
+
+    reverseDNIndex = new HashMap<>(this.indexedAttributes.size());
+    for (final String attributeName : this.indexedAttributes)
+    {
+      reverseDNIndex.put(attributeName, new HashMap<DN,Set<DN>>(100));
+    }
+
+    indexedValues = new HashMap<>(100);
+    directoryServer = null;
+  }
+
+
+
+  /**
+   * Associates this interceptor with the provided in-memory directory server
+   * and builds the reverse DN join index from the entries that it contains.
+   *
+   * @param  directoryServer  The in-memory directory server with which this
+   *                          interceptor is associated.  It must be the same
+   *                          server whose configuration includes this
+   *                          interceptor.
+   *
+   * @throws  LDAPException  If a problem occurs while building the index.
+   */
+  public void setDirectoryServer(final InMemoryDirectoryServer directoryServer)
+         throws LDAPException
+  {
+    this.directoryServer = directoryServer;
+    rebuildIndex();
+  }
+
+
+
+  /**
+   * Discards the current reverse DN join index and builds a new one from the
+   * entries in the in-memory directory server.  This must be called after
+   * making any changes to the server that do not go through an LDAP
+   * connection.
+   *
+   * @throws  LDAPException  If a problem occurs while building the index.
+   */
+  public void rebuildIndex()
+         throws LDAPException
+  {
+    final InMemoryDirectoryServer ds = getDirectoryServer();
+
+    final List<Filter> presenceFilters =
+         new ArrayList<>(indexedAttributes.size());
+    for (final String attributeName : indexedAttributes)
+    {
+      presenceFilters.add(Filter.createPresenceFilter(attributeName));
+    }
+
+    final List<Entry> entries = new ArrayList<>(100);
+    if (! presenceFilters.isEmpty())
+    {
+      final String[] attributes =
+           indexedAttributes.toArray(StaticUtils.NO_STRINGS);
+      for (final DN baseDN : ds.getBaseDNs())
+      {
+        final SearchResult searchResult = ds.search(new SearchRequest(
+             baseDN.toString(), SearchScope.SUB,
+             Filter.createORFilter(presenceFilters), attributes));
+        entries.addAll(searchResult.getSearchEntries());
+      }
+    }
+
+    synchronized (reverseDNIndex)
+    {
+      for (final Map<DN,Set<DN>> valueMap : reverseDNIndex.values())
+      {
+        valueMap.clear();
+      }
+      indexedValues.clear();
+
+      for (final Entry entry : entries)
+      {
+        indexEntry(entry);
+      }
+    }
+  }
+
+
+
+  /**
+   * Retrieves the number of distinct values currently held in the reverse DN
+   * join index for the specified attribute.
+   *
+   * @param  attributeName  The name of the attribute for which to retrieve
+   *                        the number of indexed values.
+   *
+   * @return  The number of distinct values currently held in the index for the
+   *          specified attribute, or -1 if that attribute is not indexed.
+   */
+  public int getIndexedValueCount(final String attributeName)
+  {
+    synchronized (reverseDNIndex)
+    {
+      final Map<DN,Set<DN>> valueMap =
+           reverseDNIndex.get(StaticUtils.toLowerCase(attributeName));
+      if (valueMap == null)
+      {
+        return -1;
+      }
+
+      return valueMap.size();
+    }
+  }
+
+
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override()
+  public void processSearchRequest(final InMemoryInterceptedSearchRequest
+                                        request)
+         throws LDAPException
+  {
+    final SearchRequest searchRequest = request.getRequest().duplicate();
+    final Control control =
+         searchRequest.getControl(JoinRequestControl.JOIN_REQUEST_OID);
+    if (control == null)
+    {
+      return;
+    }
+
+    final JoinRequestValue joinRequestValue =
+         new JoinRequestControl(control).getJoinRequestValue();
+    validateJoinRequestValue(joinRequestValue);
+
+    // Remove the join request control from the request before it is passed
+    // to the in-memory server, since it would otherwise be rejected as an
+    // unsupported critical control.
+    final List<Control> remainingControls =
+         new ArrayList<>(searchRequest.getControlList());
+    remainingControls.remove(control);
+    searchRequest.setControls(remainingControls);
+
+    request.setRequest(searchRequest);
+    request.setProperty(JOIN_REQUEST_VALUE_PROPERTY, joinRequestValue);
+  }
+
+
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override()
+  public void processSearchEntry(final InMemoryInterceptedSearchEntry entry)
+  {
+    final JoinRequestValue joinRequestValue =
+         (JoinRequestValue) entry.getProperty(JOIN_REQUEST_VALUE_PROPERTY);
+    final SearchResultEntry searchEntry = entry.getSearchEntry();
+    if ((joinRequestValue == null) || (searchEntry == null))
+    {
+      return;
+    }
+
+    JoinResultControl joinResultControl;
+    try
+    {
+      final DN searchBaseDN = new DN(entry.getRequest().getBaseDN());
+      final SearchScope searchScope = entry.getRequest().getScope();
+      final ObjectPair<List<JoinedEntry>,Boolean> joinResults = processJoin(
+           searchEntry.getParsedDN(), joinRequestValue, searchBaseDN,
+           searchScope);
+      if (joinRequestValue.requireMatch() && joinResults.getFirst().isEmpty())
+      {
+        entry.setSearchEntry(null);
+        return;
+      }
+
+      if (joinResults.getSecond())
+      {
+        joinResultControl = new JoinResultControl(
+             ResultCode.SIZE_LIMIT_EXCEEDED,
+             "The join size limit was exceeded", null, null,
+             joinResults.getFirst());
+      }
+      else
+      {
+        joinResultControl = new JoinResultControl(joinResults.getFirst());
+      }
+    }
+    catch (final LDAPException e)
+    {
+      Debug.debugException(e);
+      joinResultControl = new JoinResultControl(e.getResultCode(),
+           e.getMessage(), e.getMatchedDN(), null,
+           Collections.<JoinedEntry>emptyList());
+    }
+
+    final List<Control> controls =
+         new ArrayList<>(searchEntry.getControls().length + 1);
+    Collections.addAll(controls, searchEntry.getControls());
+    controls.add(joinResultControl);
+    entry.setSearchEntry(new SearchResultEntry(searchEntry.getMessageID(),
+         searchEntry, controls.toArray(StaticUtils.NO_CONTROLS)));
+  }
+
+
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override()
+  public void processAddResult(final InMemoryInterceptedAddResult result)
+  {
+    if (result.getResult().getResultCode() == ResultCode.SUCCESS)
+    {
+      try
+      {
+        reindexEntries(Collections.<DN>emptyList(),
+             Collections.singletonList(
+                  new DN(result.getRequest().getDN())));
+      }
+      catch (final LDAPException e)
+      {
+        Debug.debugException(e);
+      }
+    }
+  }
+
+
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override()
+  public void processDeleteResult(final InMemoryInterceptedDeleteResult result)
+  {
+    if (result.getResult().getResultCode() == ResultCode.SUCCESS)
+    {
+      try
+      {
+        reindexEntries(
+             Collections.singletonList(new DN(result.getRequest().getDN())),
+             Collections.<DN>emptyList());
+      }
+      catch (final LDAPException e)
+      {
+        Debug.debugException(e);
+      }
+    }
+  }
+
+
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override()
+  public void processModifyResult(final InMemoryInterceptedModifyResult result)
+  {
+    if (result.getResult().getResultCode() == ResultCode.SUCCESS)
+    {
+      try
+      {
+        final List<DN> dnList =
+             Collections.singletonList(new DN(result.getRequest().getDN()));
+        reindexEntries(dnList, dnList);
+      }
+      catch (final LDAPException e)
+      {
+        Debug.debugException(e);
+      }
+    }
+  }
+
+
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override()
+  public void processModifyDNResult(
+                   final InMemoryInterceptedModifyDNResult result)
+  {
+    if (result.getResult().getResultCode() != ResultCode.SUCCESS)
+    {
+      return;
+    }
+
+    try
+    {
+      final ReadOnlyModifyDNRequest request = result.getRequest();
+      final DN oldDN = new DN(request.getDN());
+      final DN newParentDN;
+      if (request.getNewSuperiorDN() == null)
+      {
+        newParentDN = oldDN.getParent();
+      }
+      else
+      {
+        newParentDN = new DN(request.getNewSuperiorDN());
+      }
+      final DN newDN = new DN(new RDN(request.getNewRDN()), newParentDN);
+
+      // Any indexed entries at or below the renamed entry need to be removed
+      // from the index under their old DNs and added under their new DNs.
+      final List<DN> oldDNs = new ArrayList<>(10);
+      synchronized (reverseDNIndex)
+      {
+        for (final DN indexedDN : indexedValues.keySet())
+        {
+          if (indexedDN.isDescendantOf(oldDN, true))
+          {
+            oldDNs.add(indexedDN);
+          }
+        }
+      }
+
+      final List<DN> newDNs = new ArrayList<>(oldDNs.size() + 1);
+      newDNs.add(newDN);
+      for (final DN indexedDN : oldDNs)
+      {
+        if (! indexedDN.equals(oldDN))
+        {
+          final RDN[] indexedRDNs = indexedDN.getRDNs();
+          final int numSubordinateRDNs =
+               indexedRDNs.length - oldDN.getRDNs().length;
+          final List<RDN> renamedRDNs = new ArrayList<>(
+               numSubordinateRDNs + newDN.getRDNs().length);
+          for (int i=0; i < numSubordinateRDNs; i++)
+          {
+            renamedRDNs.add(indexedRDNs[i]);
+          }
+          Collections.addAll(renamedRDNs, newDN.getRDNs());
+          newDNs.add(new DN(renamedRDNs));
+        }
+      }
+
+      reindexEntries(oldDNs, newDNs);
+    }
+    catch (final LDAPException e)
+    {
+      Debug.debugException(e);
+    }
+  }
+
+
+
+  /**
+   * Ensures that the provided join request value (and any nested join
+   * request values) only use features that this interceptor supports.
+   *
+   * @param  joinRequestValue  The join request value to validate.
+   *
+   * @throws  LDAPException  If the join request value uses a feature that is
+   *                         not supported.
+   */
+  private void validateJoinRequestValue(final JoinRequestValue joinRequestValue)
+          throws LDAPException
+  {
+    validateJoinRule(joinRequestValue.getJoinRule());
+
+    final JoinRequestValue nestedJoin = joinRequestValue.getNestedJoin();
+    if (nestedJoin != null)
+    {
+      validateJoinRequestValue(nestedJoin);
+    }
+  }
+
+
+
+  /**
+   * Ensures that the provided join rule (and any components it contains) is
+   * supported by this interceptor.
+   *
+   * @param  joinRule  The join rule to validate.
+   *
+   * @throws  LDAPException  If the join rule is not supported.
+   */
+  private void validateJoinRule(final JoinRule joinRule)
+          throws LDAPException
+  {
+    switch (joinRule.getType())
+    {
+      case JoinRule.JOIN_TYPE_AND:
+      case JoinRule.JOIN_TYPE_OR:
+        for (final JoinRule component : joinRule.getComponents())
+        {
+          validateJoinRule(component);
+        }
+        break;
+
+      case JoinRule.JOIN_TYPE_DN:
+        break;
+
+      case JoinRule.JOIN_TYPE_REVERSE_DN:
+        if (! indexedAttributes.contains(
+                   StaticUtils.toLowerCase(joinRule.getTargetAttribute())))
+        {
+          throw new LDAPException(ResultCode.UNWILLING_TO_PERFORM,
+               "Reverse DN joins are not supported for attribute " +
+                    joinRule.getTargetAttribute() + " because it is not " +
+                    "indexed.");
+        }
+        break;
+
+      default:
+        throw new LDAPException(ResultCode.UNWILLING_TO_PERFORM,
+             "Unsupported join rule " + joinRule + ".  Only DN, reverse DN, " +
+                  "AND, and OR join rules are supported.");
+    }
+  }
+
+
+
+  /**
+   * Processes the provided join request value for the specified source
+   * entry.
+   *
+   * @param  sourceDN          The DN of the source entry.
+   * @param  joinRequestValue  The join request value to process.
+   * @param  searchBaseDN      The base DN for the search request.
+   * @param  searchScope       The scope for the search request.
+   *
+   * @return  An object pair in which the first element is the list of joined
+   *          entries and the second element indicates whether the join size
+   *          limit was exceeded.
+   *
+   * @throws  LDAPException  If a problem occurs while processing the join.
+   */
+  private ObjectPair<List<JoinedEntry>,Boolean> processJoin(final DN sourceDN,
+               final JoinRequestValue joinRequestValue, final DN searchBaseDN,
+               final SearchScope searchScope)
+          throws LDAPException
+  {
+    final InMemoryDirectoryServer ds = getDirectoryServer();
+    final Entry sourceEntry = ds.getEntry(sourceDN.toString());
+    if (sourceEntry == null)
+    {
+      return new ObjectPair<List<JoinedEntry>,Boolean>(
+           Collections.<JoinedEntry>emptyList(), false);
+    }
+
+    final DN joinBaseDN;
+    final JoinBaseDN baseDN = joinRequestValue.getBaseDN();
+    switch (baseDN.getType())
+    {
+      case JoinBaseDN.BASE_TYPE_SOURCE_ENTRY_DN:
+        joinBaseDN = sourceDN;
+        break;
+      case JoinBaseDN.BASE_TYPE_CUSTOM:
+        joinBaseDN = new DN(baseDN.getCustomBaseDN());
+        break;
+      case JoinBaseDN.BASE_TYPE_SEARCH_BASE:
+      default:
+        joinBaseDN = searchBaseDN;
+        break;
+    }
+
+    final SearchScope joinScope;
+    if (joinRequestValue.getScope() == null)
+    {
+      joinScope = searchScope;
+    }
+    else
+    {
+      joinScope = joinRequestValue.getScope();
+    }
+
+    final int sizeLimit;
+    if ((joinRequestValue.getSizeLimit() == null) ||
+        (joinRequestValue.getSizeLimit() <= 0))
+    {
+      sizeLimit = Integer.MAX_VALUE;
+    }
+    else
+    {
+      sizeLimit = joinRequestValue.getSizeLimit();
+    }
+
+    final Schema schema = ds.getSchema();
+    final Filter joinFilter = joinRequestValue.getFilter();
+    final JoinRequestValue nestedJoin = joinRequestValue.getNestedJoin();
+
+    // Use a sorted set so that the joined entries are always returned in a
+    // consistent order.
+    final Set<DN> candidateDNs =
+         new TreeSet<>(getCandidateDNs(joinRequestValue.getJoinRule(),
+              sourceEntry));
+    final List<JoinedEntry> joinedEntries = new ArrayList<>(10);
+    for (final DN candidateDN : candidateDNs)
+    {
+      if (! candidateDN.matchesBaseAndScope(joinBaseDN, joinScope))
+      {
+        continue;
+      }
+
+      final Entry candidateEntry = ds.getEntry(candidateDN.toString());
+      if (candidateEntry == null)
+      {
+        continue;
+      }
+
+      if ((joinFilter != null) &&
+          (! joinFilter.matchesEntry(candidateEntry, schema)))
+      {
+        continue;
+      }
+
+      List<JoinedEntry> nestedJoinResults = null;
+      boolean nestedSizeLimitExceeded = false;
+      if (nestedJoin != null)
+      {
+        final ObjectPair<List<JoinedEntry>,Boolean> nestedResults =
+             processJoin(candidateDN, nestedJoin, searchBaseDN, searchScope);
+        if (nestedJoin.requireMatch() && nestedResults.getFirst().isEmpty())
+        {
+          continue;
+        }
+
+        nestedJoinResults = nestedResults.getFirst();
+        nestedSizeLimitExceeded = nestedResults.getSecond();
+      }
+
+      if (joinedEntries.size() >= sizeLimit)
+      {
+        return new ObjectPair<>(joinedEntries, true);
+      }
+
+      joinedEntries.add(new JoinedEntry(
+           getRequestedAttributes(candidateEntry,
+                joinRequestValue.getAttributes(), schema),
+           nestedJoinResults));
+
+      // The join result control can only convey a single result code, so a
+      // nested join that exceeded its size limit is reported in the same way
+      // as the outer join exceeding its own, with the partial results that
+      // have been gathered so far.
+      if (nestedSizeLimitExceeded)
+      {
+        return new ObjectPair<>(joinedEntries, true);
+      }
+    }
+
+    return new ObjectPair<>(joinedEntries, false);
+  }
+
+
+
+  /**
+   * Retrieves the DNs of the entries that may be joined with the provided
+   * source entry using the given join rule.  The base DN, scope, and filter
+   * for the join will not have been taken into account, and the entries may
+   * not exist.
+   *
+   * @param  joinRule     The join rule to evaluate.
+   * @param  sourceEntry  The source entry for the join.
+   *
+   * @return  The DNs of the entries that may be joined with the provided
+   *          source entry.
+   *
+   * @throws  LDAPException  If a problem occurs while evaluating the join
+   *                         rule.
+   */
+  private Set<DN> getCandidateDNs(final JoinRule joinRule,
+                                  final Entry sourceEntry)
+          throws LDAPException
+  {
+    switch (joinRule.getType())
+    {
+      case JoinRule.JOIN_TYPE_DN:
+        final String[] values =
+             sourceEntry.getAttributeValues(joinRule.getSourceAttribute());
+        if (values == null)
+        {
+          return Collections.emptySet();
+        }
+
+        final Set<DN> dnSet = new LinkedHashSet<>(values.length);
+        for (final String value : values)
+        {
+          try
+          {
+            dnSet.add(new DN(value));
+          }
+          catch (final LDAPException e)
+          {
+            // Values that are not valid DNs cannot match any entry.
+            Debug.debugException(e);
+          }
+        }
+        return dnSet;
+
+      case JoinRule.JOIN_TYPE_REVERSE_DN:
+        synchronized (reverseDNIndex)
+        {
+          final Map<DN,Set<DN>> valueMap = reverseDNIndex.get(
+               StaticUtils.toLowerCase(joinRule.getTargetAttribute()));
+          final Set<DN> entryDNs = valueMap.get(sourceEntry.getParsedDN());
+          if (entryDNs == null)
+          {
+            return Collections.emptySet();
+          }
+
+          return new LinkedHashSet<>(entryDNs);
+        }
+
+      case JoinRule.JOIN_TYPE_AND:
+        Set<DN> intersection = null;
+        for (final JoinRule component : joinRule.getComponents())
+        {
+          final Set<DN> componentDNs = getCandidateDNs(component, sourceEntry);
+          if (intersection == null)
+          {
+            intersection = new LinkedHashSet<>(componentDNs);
+          }
+          else
+          {
+            intersection.retainAll(componentDNs);
+          }
+
+          if (intersection.isEmpty())
+          {
+            break;
+          }
+        }
+        if (intersection == null)
+        {
+          return Collections.emptySet();
+        }
+        return intersection;
+
+      case JoinRule.JOIN_TYPE_OR:
+        final Set<DN> union = new LinkedHashSet<>(10);
+        for (final JoinRule component : joinRule.getComponents())
+        {
+          union.addAll(getCandidateDNs(component, sourceEntry));
+        }
+        return union;
+
+      default:
+        throw new LDAPException(ResultCode.UNWILLING_TO_PERFORM,
+             "Unsupported join rule " + joinRule + '.');
+    }
+  }
+
+
+
+  /**
+   * Creates a copy of the provided entry that only includes the requested
+   * attributes.
+   *
+   * @param  entry                The entry to be copied.
+   * @param  requestedAttributes  The names of the requested attributes, which
+   *                              may include the special values "*" and "+".
+   *                              If this is {@code null} or empty, then all
+   *                              user attributes will be included.
+   * @param  schema               The schema to use to determine whether an
+   *                              attribute is operational.  It may be
+   *                              {@code null} if no schema is available.
+   *
+   * @return  A copy of the provided entry with only the requested attributes.
+   */
+  private static Entry getRequestedAttributes(final Entry entry,
+                            final String[] requestedAttributes,
+                            final Schema schema)
+  {
+    boolean allUserAttributes = false;
+    boolean allOperationalAttributes = false;
+    final Set<String> attributeNames = new HashSet<>(10);
+    if ((requestedAttributes == null) || (requestedAttributes.length == 0))
+    {
+      allUserAttributes = true;
+    }
+    else
+    {
+      for (final String attributeName : requestedAttributes)
+      {
+        if (attributeName.equals("*"))
+        {
+          allUserAttributes = true;
+        }
+        else if (attributeName.equals("+"))
+        {
+          allOperationalAttributes = true;
+        }
+        else
+        {
+          attributeNames.add(StaticUtils.toLowerCase(
+               Attribute.getBaseName(attributeName)));
+        }
+      }
+    }
+
+    final List<Attribute> attributes =
+         new ArrayList<>(entry.getAttributes().size());
+    for (final Attribute attribute : entry.getAttributes())
+    {
+      final String baseName =
+           StaticUtils.toLowerCase(attribute.getBaseName());
+      if (attributeNames.contains(baseName))
+      {
+        attributes.add(attribute);
+        continue;
+      }
+
+      boolean isOperational = false;
+      if (schema != null)
+      {
+        final AttributeTypeDefinition attributeType =
+             schema.getAttributeType(baseName);
+        if (attributeType != null)
+        {
+          isOperational = attributeType.isOperational();
+
+          // The attribute may have been requested by its OID or by a
+          // different name than the one used in the entry.
+          boolean requestedByAlias = attributeNames.contains(
+               StaticUtils.toLowerCase(attributeType.getOID()));
+          for (final String name : attributeType.getNames())
+          {
+            if (attributeNames.contains(StaticUtils.toLowerCase(name)))
+            {
+              requestedByAlias = true;
+              break;
+            }
+          }
+
+          if (requestedByAlias)
+          {
+            attributes.add(attribute);
+            continue;
+          }
+        }
+      }
+
+      if ((isOperational && allOperationalAttributes) ||
+          ((! isOperational) && allUserAttributes))
+      {
+        attributes.add(attribute);
+      }
+    }
+
+    return new Entry(entry.getDN(), attributes);
+  }
+
+
+
+  /**
+   * Updates the reverse DN join index to remove the values for the entries
+   * with the specified old DNs and add the values for the entries with the
+   * specified new DNs.
+   *
+   * @param  oldDNs  The DNs of the entries to remove from the index.
+   * @param  newDNs  The DNs of the entries to add to the index, using their
+   *                 current contents in the in-memory directory server.
+   *
+   * @throws  LDAPException  If a problem occurs while retrieving any of the
+   *                         entries.
+   */
+  private void reindexEntries(final List<DN> oldDNs, final List<DN> newDNs)
+          throws LDAPException
+  {
+    // Retrieve the new entries before acquiring the lock on the index, since
+    // search entries are processed while the in-memory server holds its own
+    // lock, and the locks must always be acquired in the same order.
+    final InMemoryDirectoryServer ds = getDirectoryServer();
+    final List<Entry> newEntries = new ArrayList<>(newDNs.size());
+    for (final DN newDN : newDNs)
+    {
+      final Entry newEntry = ds.getEntry(newDN.toString());
+      if (newEntry != null)
+      {
+        newEntries.add(newEntry);
+      }
+    }
+
+    synchronized (reverseDNIndex)
+    {
+      for (final DN oldDN : oldDNs)
+      {
+        unindexEntry(oldDN);
+      }
+
+      for (final Entry newEntry : newEntries)
+      {
+        indexEntry(newEntry);
+      }
+    }
+  }
+
+
+
+  /**
+   * Adds the values of the indexed attributes in the provided entry to the
+   * reverse DN join index.  The caller must hold the lock on the index.
+   *
+   * @param  entry  The entry to be indexed.
+   */
+  private void indexEntry(final Entry entry)
+  {
+    final DN entryDN;
+    try
+    {
+      entryDN = entry.getParsedDN();
+    }
+    catch (final LDAPException e)
+    {
+      Debug.debugException(e);
+      return;
+    }
+
+    unindexEntry(entryDN);
+
+    final List<ObjectPair<String,DN>> entryValues = new ArrayList<>(5);
+    for (final Map.Entry<String,Map<DN,Set<DN>>> indexEntry :
+         reverseDNIndex.entrySet())
+    {
+      final String[] values = entry.getAttributeValues(indexEntry.getKey());
+      if (values == null)
+      {
+        continue;
+      }
+
+      for (final String value : values)
+      {
+        final DN valueDN;
+        try
+        {
+          valueDN = new DN(value);
+        }
+        catch (final LDAPException e)
+        {
+          Debug.debugException(e);
+          continue;
+        }
+
+        Set<DN> entryDNs = indexEntry.getValue().get(valueDN);
+        if (entryDNs == null)
+        {
+          entryDNs = new LinkedHashSet<>(10);
+          indexEntry.getValue().put(valueDN, entryDNs);
+        }
+
+        entryDNs.add(entryDN);
+        entryValues.add(new ObjectPair<>(indexEntry.getKey(), valueDN));
+      }
+    }
+
+    if (! entryValues.isEmpty())
+    {
+      indexedValues.put(entryDN, entryValues);
+    }
+  }
+
+
+
+  /**
+   * Removes any values for the specified entry from the reverse DN join index.
+   * The caller must hold the lock on the index.
+   *
+   * @param  entryDN  The DN of the entry to remove from the index.
+   */
+  private void unindexEntry(final DN entryDN)
+  {
+    final List<ObjectPair<String,DN>> entryValues =
+         indexedValues.remove(entryDN);
+    if (entryValues == null)
+    {
+      return;
+    }
+
+    for (final ObjectPair<String,DN> value : entryValues)
+    {
+      final Map<DN,Set<DN>> valueMap = reverseDNIndex.get(value.getFirst());
+      final Set<DN> entryDNs = valueMap.get(value.getSecond());
+      if (entryDNs != null)
+      {
+        entryDNs.remove(entryDN);
+        if (entryDNs.isEmpty())
+        {
+          valueMap.remove(value.getSecond());
+        }
+      }
+    }
+  }
+
+
+
+  /**
+   * Retrieves the in-memory directory server with which this interceptor is
+   * associated.
+   *
+   * @return  The in-memory directory server with which this interceptor is
+   *          associated.
+   *
+   * @throws  LDAPException  If the interceptor has not yet been associated
+   *                         with an in-memory directory server.
+   */
+  private InMemoryDirectoryServer getDirectoryServer()
+          throws LDAPException
+  {
+    final InMemoryDirectoryServer ds = directoryServer;
+    if (ds == null)
+    {
+      throw new LDAPException(ResultCode.UNAVAILABLE_CRITICAL_EXTENSION,
+           "The join request control cannot be processed because the join " +
+                "interceptor has not been associated with an in-memory " +
+                "directory server.");
+    }
+
+    return ds;
+  }
+}
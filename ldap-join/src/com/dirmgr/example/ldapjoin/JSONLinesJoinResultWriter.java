@@ -0,0 +1,153 @@
+/*
+ * Copyright 2019 Neil A. Wilson
+ * All Rights Reserved.
+ */
+/*
+ * Copyright (C) 2019 Neil A. Wilson
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPLv2 only)
+ * or the terms of the GNU Lesser General Public License (LGPLv2.1 only)
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, see <http://www.gnu.org/licenses>.
+ */
+/*
+ * Copyright 2019 Neil A. Wilson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dirmgr.example.ldapjoin;
+
+
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import com.unboundid.ldap.sdk.Entry;
+import com.unboundid.util.ThreadSafety;
+import com.unboundid.util.ThreadSafetyLevel;
+import com.unboundid.util.json.JSONBuffer;
+
+
+
+/**
+ * This class provides a join result writer that writes each row as a JSON
+ * object on its own line (sometimes called JSON Lines or newline-delimited
+ * JSON).  Each object has a "userType" field, a "dn" field, and a field for
+ * each of the configured attributes that is present in the entry.  A single
+ * JSON buffer is reused for every row, and its contents are written directly
+ * to the output stream, so no intermediate string is created for each row.
+ */
+@ThreadSafety(level=ThreadSafetyLevel.NOT_THREADSAFE)
+public final class JSONLinesJoinResultWriter
+       implements JoinResultWriter
+{
+  // The buffer that will be used to encode each row.
+  private final JSONBuffer jsonBuffer;
+
+  // The output stream to which the rows will be written.
+  private final OutputStream outputStream;
+
+  // The names of the attributes to include in each row.
+  private final String[] attributeNames;
+
+
+
+  /**
+   * Creates a new instance of this writer that will write to the provided
+   * output stream.
+   *
+   * @param  outputStream    The output stream to which the rows will be
+   *                         written.  It should be buffered.
+   * @param  attributeNames  The names of the attributes to include in each
+   *                         row.
+   */
+  public JSONLinesJoinResultWriter(final OutputStream outputStream,
+                                   final String... attributeNames)
+  {
+    this.outputStream = outputStream;
+    this.attributeNames = attributeNames;
+
+    jsonBuffer = new JSONBuffer();
+  }
+
+
+
+  /**
+   * {@inheritDoc}  The JSON Lines format does not use a header, so this method
+   * does not write anything.
+   */
+  @Override()
+  public void writeHeader()
+  {
+    // No implementation is required.
+  }
+
+
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override()
+  public void writeRow(final String userType, final Entry entry)
+         throws IOException
+  {
+    jsonBuffer.clear();
+    jsonBuffer.beginObject();
+    jsonBuffer.appendString("userType", userType);
+    jsonBuffer.appendString("dn", entry.getDN());
+    for (final String attributeName : attributeNames)
+    {
+      final String value = entry.getAttributeValue(attributeName);
+      if (value != null)
+      {
+        jsonBuffer.appendString(attributeName, value);
+      }
+    }
+    jsonBuffer.endObject();
+
+    jsonBuffer.writeTo(outputStream);
+    outputStream.write('\n');
+  }
+
+
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override()
+  public void flush()
+         throws IOException
+  {
+    outputStream.flush();
+  }
+
+
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override()
+  public void close()
+         throws IOException
+  {
+    outputStream.close();
+  }
+}
@@ -0,0 +1,847 @@
+/*
+ * Copyright 2019 Neil A. Wilson
+ * All Rights Reserved.
+ */
+/*
+ * Copyright (C) 2019 Neil A. Wilson
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPLv2 only)
+ * or the terms of the GNU Lesser General Public License (LGPLv2.1 only)
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, see <http://www.gnu.org/licenses>.
+ */
+/*
+ * Copyright 2019 Neil A. Wilson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dirmgr.example.ldapjoin;
+
+
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import com.unboundid.ldap.listener.InMemoryDirectoryServer;
+import com.unboundid.ldap.listener.InMemoryDirectoryServerConfig;
+import com.unboundid.ldap.sdk.DN;
+import com.unboundid.ldap.sdk.Entry;
+import com.unboundid.ldap.sdk.Filter;
+import com.unboundid.ldap.sdk.LDAPConnection;
+import com.unboundid.ldap.sdk.LDAPException;
+import com.unboundid.ldap.sdk.ResultCode;
+import com.unboundid.ldap.sdk.SearchRequest;
+import com.unboundid.ldap.sdk.SearchResult;
+import com.unboundid.ldap.sdk.SearchResultEntry;
+import com.unboundid.ldap.sdk.SearchScope;
+import com.unboundid.util.ColumnFormatter;
+import com.unboundid.util.FormattableColumn;
+import com.unboundid.util.HorizontalAlignment;
+import com.unboundid.util.LDAPTestUtils;
+import com.unboundid.util.StaticUtils;
+import com.unboundid.util.args.ArgumentException;
+import com.unboundid.util.args.ArgumentParser;
+import com.unboundid.util.args.IntegerArgument;
+import com.unboundid.util.args.StringArgument;
+
+
+
+/**
+ * This class provides a benchmark that compares three different ways of
+ * retrieving a user's manager and peers:
+ * <UL>
+ *   <LI>A single search that uses the same join request control as the
+ *       {@link RetrieveUserManagerAndPeers} program.</LI>
+ *   <LI>A client-side join that uses separate searches to retrieve the user,
+ *       the manager, and the peers.</LI>
+ *   <LI>A lookup in a locally cached copy of the org hierarchy (and the
+ *       requested attributes from each user entry), which is loaded with a
+ *       single search before the lookups begin.</LI>
+ * </UL>
+ * For each requested org shape, it creates an in-memory directory server with
+ * the {@link InMemoryJoinInterceptor} to handle the join control, populates it
+ * with a synthetic org tree that has the requested depth, fan-out, and size,
+ * and performs the same randomly selected set of lookups with each approach
+ * over an LDAP connection.  It then writes a table with the throughput and
+ * latency for each approach.
+ * <BR><BR>
+ * Since the in-memory directory server does not behave like a production
+ * server (and since the client and server share the same JVM), the absolute
+ * numbers should not be taken as representative of a real deployment.  The
+ * benchmark is more useful for comparing how each approach scales with the
+ * shape of the org tree.
+ */
+public final class JoinBenchmark
+{
+  /**
+   * The base DN for the synthetic data.
+   */
+  private static final String BASE_DN = "dc=example,dc=com";
+
+
+
+  /**
+   * The DN of the entry below which the synthetic users will be created.
+   */
+  private static final String PEOPLE_BASE_DN = "ou=People," + BASE_DN;
+
+
+
+  /**
+   * The attributes requested for each user.
+   */
+  private static final String[] REQUESTED_ATTRIBUTES =
+  {
+    "givenName",
+    "sn",
+    "mail",
+    "telephoneNumber"
+  };
+
+
+
+  /**
+   * The seed used to select the users to look up, so that repeated runs will
+   * perform the same lookups.
+   */
+  private static final long RANDOM_SEED = 0x4A6F696EL;
+
+
+
+  /**
+   * Runs the benchmark with the provided set of arguments.
+   *
+   * @param  args  The command-line arguments provided to this program.  The
+   *               "--orgShape" argument may be provided one or more times to
+   *               specify the org shapes to benchmark, each in the form
+   *               "depth:fanOut:size".  The "--lookups" and "--warmUpLookups"
+   *               arguments may be used to specify the number of timed and
+   *               untimed lookups to perform with each approach.
+   *
+   * @throws  LDAPException  If a problem is encountered while processing the
+   *                         arguments or while interacting with the
+   *                         in-memory directory server.
+   */
+  public static void main(final String... args)
+         throws LDAPException
+  {
+    final StringArgument orgShapeArgument;
+    final IntegerArgument lookupsArgument;
+    final IntegerArgument warmUpLookupsArgument;
+    try
+    {
+      final ArgumentParser parser = new ArgumentParser("join-benchmark",
+           "Compares the performance of retrieving a user's manager and " +
+                "peers with the join control, with a client-side join, and " +
+                "with a locally cached org hierarchy.");
+
+      orgShapeArgument = new StringArgument(null, // No short identifier
+           "orgShape", // Long identifier
+           false, // Not required
+           0, // Unlimited occurrences
+           "{depth:fanOut:size}", // Value placeholder
+           "The shape of a synthetic org tree to benchmark, in the form " +
+                "depth:fanOut:size.  The depth is the number of levels in " +
+                "the tree, the fan-out is the number of direct reports for " +
+                "each manager, and the size is the maximum number of users.",
+           Arrays.asList("5:10:10000", "3:100:10000", "13:2:8191"));
+      orgShapeArgument.addLongIdentifier("org-shape", true);
+      parser.addArgument(orgShapeArgument);
+
+      lookupsArgument = new IntegerArgument(null, // No short identifier
+           "lookups", // Long identifier
+           false, // Not required
+           1, // Only one occurrence
+           "{count}", // Value placeholder
+           "The number of timed lookups to perform with each approach.",
+           1, // Lower bound
+           Integer.MAX_VALUE, // Upper bound
+           1000); // Default value
+      parser.addArgument(lookupsArgument);
+
+      warmUpLookupsArgument = new IntegerArgument(null, // No short identifier
+           "warmUpLookups", // Long identifier
+           false, // Not required
+           1, // Only one occurrence
+           "{count}", // Value placeholder
+           "The number of untimed lookups to perform with each approach " +
+                "before the timed lookups begin.",
+           0, // Lower bound
+           Integer.MAX_VALUE, // Upper bound
+           200); // Default value
+      warmUpLookupsArgument.addLongIdentifier("warm-up-lookups", true);
+      parser.addArgument(warmUpLookupsArgument);
+
+      parser.parse(args);
+    }
+    catch (final ArgumentException e)
+    {
+      throw new LDAPException(ResultCode.PARAM_ERROR,
+           "Invalid command-line arguments:  " + e.getMessage(), e);
+    }
+
+    for (final String orgShape : orgShapeArgument.getValues())
+    {
+      final String[] shapeElements = orgShape.split(":");
+      final int depth;
+      final int fanOut;
+      final int size;
+      try
+      {
+        depth = Integer.parseInt(shapeElements[0].trim());
+        fanOut = Integer.parseInt(shapeElements[1].trim());
+        size = Integer.parseInt(shapeElements[2].trim());
+      }
+      catch (final Exception e)
+      {
+        throw new LDAPException(ResultCode.PARAM_ERROR,
+             "Unable to parse org shape '" + orgShape + "' in the form " +
+                  "depth:fanOut:size:  " + StaticUtils.getExceptionMessage(e),
+             e);
+      }
+
+      if ((shapeElements.length != 3) || (depth < 1) || (fanOut < 1) ||
+          (size < 1))
+      {
+        throw new LDAPException(ResultCode.PARAM_ERROR,
+             "Invalid org shape '" + orgShape + "'.  The depth, fan-out, " +
+                  "and size must all be positive integers.");
+      }
+
+      runBenchmark(depth, fanOut, size, lookupsArgument.getValue(),
+           warmUpLookupsArgument.getValue());
+    }
+  }
+
+
+
+  /**
+   * Runs the benchmark for a single org shape and writes the results to
+   * standard output.
+   *
+   * @param  depth          The number of levels in the org tree.
+   * @param  fanOut         The number of direct reports for each manager.
+   * @param  size           The maximum number of users in the org tree.
+   * @param  lookups        The number of timed lookups to perform with each
+   *                        approach.
+   * @param  warmUpLookups  The number of untimed lookups to perform with each
+   *                        approach before the timed lookups.
+   *
+   * @throws  LDAPException  If a problem is encountered while interacting
+   *                         with the in-memory directory server.
+   */
+  private static void runBenchmark(final int depth, final int fanOut,
+                                   final int size, final int lookups,
+                                   final int warmUpLookups)
+          throws LDAPException
+  {
+    final InMemoryJoinInterceptor joinInterceptor =
+         new InMemoryJoinInterceptor("manager");
+    final InMemoryDirectoryServerConfig config =
+         new InMemoryDirectoryServerConfig(BASE_DN);
+    config.addInMemoryOperationInterceptor(joinInterceptor);
+
+    // Maintain equality indexes for the attributes used in search filters, as
+    // a production server would, so that the searches don't need to examine
+    // every entry.
+    config.setEqualityIndexAttributes("uid", "manager");
+
+    final InMemoryDirectoryServer ds = new InMemoryDirectoryServer(config);
+    try
+    {
+      final int numUsers = populateOrgTree(ds, depth, fanOut, size);
+      joinInterceptor.setDirectoryServer(ds);
+      ds.startListening();
+
+      final Random random = new Random(RANDOM_SEED);
+      final String[] userIDs = new String[warmUpLookups + lookups];
+      for (int i=0; i < userIDs.length; i++)
+      {
+        userIDs[i] = "user." + random.nextInt(numUsers);
+      }
+
+      System.out.println("Org shape:  depth=" + depth + ", fanOut=" + fanOut +
+           ", users=" + numUsers);
+
+      final ColumnFormatter columnFormatter = new ColumnFormatter(
+           new FormattableColumn(18, HorizontalAlignment.LEFT, "Approach"),
+           new FormattableColumn(8, HorizontalAlignment.RIGHT, "Lookups"),
+           new FormattableColumn(9, HorizontalAlignment.RIGHT, "Rows"),
+           new FormattableColumn(11, HorizontalAlignment.RIGHT,
+                "Lookups/Sec"),
+           new FormattableColumn(10, HorizontalAlignment.RIGHT, "Mean (us)"),
+           new FormattableColumn(9, HorizontalAlignment.RIGHT, "p50 (us)"),
+           new FormattableColumn(9, HorizontalAlignment.RIGHT, "p95 (us)"),
+           new FormattableColumn(9, HorizontalAlignment.RIGHT, "p99 (us)"),
+           new FormattableColumn(9, HorizontalAlignment.RIGHT, "Max (us)"));
+
+      try (LDAPConnection connection = ds.getConnection())
+      {
+        final long[] joinRows = new long[1];
+        final long[] joinLatencies = runLookups(userIDs, warmUpLookups,
+             joinRows, new Lookup()
+             {
+               @Override()
+               public int lookUp(final String userID)
+                      throws LDAPException
+               {
+                 return lookUpWithJoin(connection, userID);
+               }
+             });
+
+        final long[] clientSideRows = new long[1];
+        final long[] clientSideLatencies = runLookups(userIDs, warmUpLookups,
+             clientSideRows, new Lookup()
+             {
+               @Override()
+               public int lookUp(final String userID)
+                      throws LDAPException
+               {
+                 return lookUpWithClientSideJoin(connection, userID);
+               }
+             });
+
+        final long cacheLoadStartTime = System.nanoTime();
+        final OrgHierarchy hierarchy = new OrgHierarchy();
+        final Map<DN,Entry> entryCache = new HashMap<>(numUsers * 2);
+        final Map<String,DN> userDNs = new HashMap<>(numUsers * 2);
+        loadCache(connection, hierarchy, entryCache, userDNs);
+        final long cacheLoadMillis =
+             (System.nanoTime() - cacheLoadStartTime) / 1_000_000L;
+
+        final long[] cachedRows = new long[1];
+        final long[] cachedLatencies = runLookups(userIDs, warmUpLookups,
+             cachedRows, new Lookup()
+             {
+               @Override()
+               public int lookUp(final String userID)
+               {
+                 return lookUpInCache(hierarchy, entryCache, userDNs, userID);
+               }
+             });
+
+        for (final String headerLine : columnFormatter.getHeaderLines(true))
+        {
+          System.out.println(headerLine);
+        }
+        printResults(columnFormatter, "Join Control", joinLatencies,
+             joinRows[0]);
+        printResults(columnFormatter, "Client-Side Join", clientSideLatencies,
+             clientSideRows[0]);
+        printResults(columnFormatter, "Local Cache", cachedLatencies,
+             cachedRows[0]);
+        System.out.println("Local cache load time:  " + cacheLoadMillis +
+             " ms");
+
+        System.out.println();
+
+        // The numbers can only be compared if every approach did the same
+        // work.
+        if ((joinRows[0] != clientSideRows[0]) ||
+            (joinRows[0] != cachedRows[0]))
+        {
+          throw new LDAPException(ResultCode.LOCAL_ERROR,
+               "The approaches did not return the same number of rows " +
+                    "(join control:  " + joinRows[0] + ", client-side " +
+                    "join:  " + clientSideRows[0] + ", local cache:  " +
+                    cachedRows[0] + ").");
+        }
+      }
+    }
+    finally
+    {
+      ds.shutDown(true);
+    }
+  }
+
+
+
+  /**
+   * Populates the provided in-memory directory server with a synthetic org
+   * tree.  The user with user ID "user.0" will be at the top of the tree, and
+   * users will be added level by level, with each manager having the
+   * specified number of direct reports, until either the maximum depth or the
+   * maximum number of users has been reached.
+   *
+   * @param  ds      The in-memory directory server to populate.
+   * @param  depth   The maximum number of levels in the org tree.
+   * @param  fanOut  The number of direct reports for each manager.
+   * @param  size    The maximum number of users in the org tree.
+   *
+   * @return  The number of users that were added.
+   *
+   * @throws  LDAPException  If a problem is encountered while adding the
+   *                         entries.
+   */
+  private static int populateOrgTree(final InMemoryDirectoryServer ds,
+                                     final int depth, final int fanOut,
+                                     final int size)
+          throws LDAPException
+  {
+    final Entry baseEntry = new Entry(BASE_DN);
+    baseEntry.addAttribute("objectClass", "top", "domain");
+    baseEntry.addAttribute("dc", "example");
+    ds.add(baseEntry);
+
+    final Entry peopleEntry = new Entry(PEOPLE_BASE_DN);
+    peopleEntry.addAttribute("objectClass", "top", "organizationalUnit");
+    peopleEntry.addAttribute("ou", "People");
+    ds.add(peopleEntry);
+
+    ds.add(createUserEntry(0, -1));
+    int numUsers = 1;
+
+    // Each element of the queue holds the number of a user who may be given
+    // direct reports, along with the level of that user in the tree.
+    final ArrayDeque<int[]> managerQueue = new ArrayDeque<>(100);
+    managerQueue.add(new int[] { 0, 1 });
+    while ((numUsers < size) && (! managerQueue.isEmpty()))
+    {
+      final int[] manager = managerQueue.removeFirst();
+      if (manager[1] >= depth)
+      {
+        continue;
+      }
+
+      for (int i=0; (i < fanOut) && (numUsers < size); i++)
+      {
+        ds.add(createUserEntry(numUsers, manager[0]));
+        managerQueue.add(new int[] { numUsers, manager[1] + 1 });
+        numUsers++;
+      }
+    }
+
+    return numUsers;
+  }
+
+
+
+  /**
+   * Creates an entry for a synthetic user.
+   *
+   * @param  userNumber     The number of the user to create.
+   * @param  managerNumber  The number of the user's manager, or -1 if the
+   *                        user does not have a manager.
+   *
+   * @return  The entry that was created.
+   */
+  private static Entry createUserEntry(final int userNumber,
+                                       final int managerNumber)
+  {
+    final Entry entry = new Entry(getUserDN(userNumber));
+    entry.addAttribute("objectClass", "top", "person", "organizationalPerson",
+         "inetOrgPerson");
+    entry.addAttribute("uid", "user." + userNumber);
+    entry.addAttribute("givenName", "User");
+    entry.addAttribute("sn", String.valueOf(userNumber));
+    entry.addAttribute("cn", "User " + userNumber);
+    entry.addAttribute("mail", "user." + userNumber + "@example.com");
+    entry.addAttribute("telephoneNumber",
+         String.format("+1 555 %03d %04d", (userNumber / 10_000) % 1000,
+              userNumber % 10_000));
+    if (managerNumber >= 0)
+    {
+      entry.addAttribute("manager", getUserDN(managerNumber));
+    }
+
+    return entry;
+  }
+
+
+
+  /**
+   * Retrieves the DN for the synthetic user with the specified number.
+   *
+   * @param  userNumber  The number of the user for whom to retrieve the DN.
+   *
+   * @return  The DN for the specified user.
+   */
+  private static String getUserDN(final int userNumber)
+  {
+    return "uid=user." + userNumber + ',' + PEOPLE_BASE_DN;
+  }
+
+
+
+  /**
+   * Performs the warm-up and timed lookups for an approach.
+   *
+   * @param  userIDs        The user IDs of the users to look up.  The first
+   *                        {@code warmUpLookups} of them will be used for the
+   *                        untimed lookups.
+   * @param  warmUpLookups  The number of untimed lookups to perform.
+   * @param  rowCount       A single-element array that will be updated with
+   *                        the total number of rows returned by the timed
+   *                        lookups.
+   * @param  lookup         The lookup to perform.
+   *
+   * @return  An array with the latency, in nanoseconds, of each timed lookup.
+   *
+   * @throws  LDAPException  If a problem is encountered while performing any
+   *                         of the lookups.
+   */
+  private static long[] runLookups(final String[] userIDs,
+                                   final int warmUpLookups,
+                                   final long[] rowCount, final Lookup lookup)
+          throws LDAPException
+  {
+    for (int i=0; i < warmUpLookups; i++)
+    {
+      lookup.lookUp(userIDs[i]);
+    }
+
+    final long[] latencies = new long[userIDs.length - warmUpLookups];
+    for (int i=0; i < latencies.length; i++)
+    {
+      final long startTime = System.nanoTime();
+      rowCount[0] += lookup.lookUp(userIDs[warmUpLookups + i]);
+      latencies[i] = System.nanoTime() - startTime;
+    }
+
+    return latencies;
+  }
+
+
+
+  /**
+   * Retrieves the manager and peers for the specified user with a single
+   * search that uses the same join request control as the
+   * {@link RetrieveUserManagerAndPeers} program.  If the manager has more
+   * direct reports than the nested join's size limit, then the peers are
+   * retrieved with the same paged search that the program uses, so that this
+   * approach retrieves the same rows as the others.
+   *
+   * @param  connection  The connection to use for the search.
+   * @param  userID      The user ID of the user to look up.
+   *
+   * @return  The number of rows (the user, manager, and peers) retrieved.
+   *
+   * @throws  LDAPException  If a problem is encountered while processing the
+   *                         search.
+   */
+  private static int lookUpWithJoin(final LDAPConnection connection,
+                                    final String userID)
+          throws LDAPException
+  {
+    final ManagerAndPeersSearchResultListener listener =
+         new ManagerAndPeersSearchResultListener(
+              new DiscardingJoinResultWriter());
+    final SearchRequest searchRequest = new SearchRequest(listener, BASE_DN,
+         SearchScope.SUB, Filter.createEqualityFilter("uid", userID),
+         REQUESTED_ATTRIBUTES);
+    searchRequest.addControl(RetrieveUserManagerAndPeers.
+         createJoinRequestControl(userID, REQUESTED_ATTRIBUTES,
+              RetrieveUserManagerAndPeers.DEFAULT_MAX_NESTED_JOIN_PEERS));
+
+    final SearchResult searchResult = connection.search(searchRequest);
+    LDAPTestUtils.assertEntriesReturnedEquals(searchResult, 1);
+
+    listener.retrieveDeferredPeers(connection, BASE_DN, REQUESTED_ATTRIBUTES,
+         RetrieveUserManagerAndPeers.DEFAULT_PEER_PAGE_SIZE);
+
+    if (listener.getFirstException() != null)
+    {
+      throw listener.getFirstException();
+    }
+
+    return (int) listener.getRowsWritten();
+  }
+
+
+
+  /**
+   * Retrieves the manager and peers for the specified user with a client-side
+   * join that issues separate searches for the user, the manager, and the
+   * peers.
+   *
+   * @param  connection  The connection to use for the searches.
+   * @param  userID      The user ID of the user to look up.
+   *
+   * @return  The number of rows (the user, manager, and peers) retrieved.
+   *
+   * @throws  LDAPException  If a problem is encountered while processing any
+   *                         of the searches.
+   */
+  private static int lookUpWithClientSideJoin(final LDAPConnection connection,
+                                              final String userID)
+          throws LDAPException
+  {
+    final String[] userAttributes =
+         Arrays.copyOf(REQUESTED_ATTRIBUTES, REQUESTED_ATTRIBUTES.length + 1);
+    userAttributes[REQUESTED_ATTRIBUTES.length] = "manager";
+
+    final SearchResultEntry userEntry = connection.searchForEntry(BASE_DN,
+         SearchScope.SUB, Filter.createEqualityFilter("uid", userID),
+         userAttributes);
+    if (userEntry == null)
+    {
+      throw new LDAPException(ResultCode.NO_SUCH_OBJECT,
+           "User " + userID + " was not found.");
+    }
+
+    int rows = 1;
+    final String managerDN = userEntry.getAttributeValue("manager");
+    if (managerDN == null)
+    {
+      return rows;
+    }
+
+    final SearchResultEntry managerEntry =
+         connection.getEntry(managerDN, REQUESTED_ATTRIBUTES);
+    if (managerEntry == null)
+    {
+      return rows;
+    }
+    rows++;
+
+    final SearchResult peerSearchResult = connection.search(BASE_DN,
+         SearchScope.SUB,
+         Filter.createANDFilter(
+              Filter.createEqualityFilter("manager", managerDN),
+              Filter.createNOTFilter(
+                   Filter.createEqualityFilter("uid", userID))),
+         REQUESTED_ATTRIBUTES);
+    return rows + peerSearchResult.getEntryCount();
+  }
+
+
+
+  /**
+   * Loads the org hierarchy and the requested attributes for every user into
+   * the provided local cache with a single search.
+   *
+   * @param  connection  The connection to use for the search.
+   * @param  hierarchy   The org hierarchy to populate.
+   * @param  entryCache  The map to populate with the entry for each user.
+   * @param  userDNs     The map to populate with the DN for each user ID.
+   *
+   * @throws  LDAPException  If a problem is encountered while processing the
+   *                         search.
+   */
+  private static void loadCache(final LDAPConnection connection,
+                                final OrgHierarchy hierarchy,
+                                final Map<DN,Entry> entryCache,
+                                final Map<String,DN> userDNs)
+          throws LDAPException
+  {
+    final String[] userAttributes =
+         Arrays.copyOf(REQUESTED_ATTRIBUTES, REQUESTED_ATTRIBUTES.length + 2);
+    userAttributes[REQUESTED_ATTRIBUTES.length] = "uid";
+    userAttributes[REQUESTED_ATTRIBUTES.length + 1] = "manager";
+
+    final SearchResult searchResult = connection.search(PEOPLE_BASE_DN,
+         SearchScope.ONE, Filter.createEqualityFilter("objectClass", "person"),
+         userAttributes);
+    for (final SearchResultEntry entry : searchResult.getSearchEntries())
+    {
+      final DN userDN = entry.getParsedDN();
+      final String managerDN = entry.getAttributeValue("manager");
+      if (managerDN == null)
+      {
+        hierarchy.putUser(userDN, null);
+      }
+      else
+      {
+        hierarchy.putUser(userDN, new DN(managerDN));
+      }
+
+      entryCache.put(userDN, entry);
+      userDNs.put(entry.getAttributeValue("uid"), userDN);
+    }
+  }
+
+
+
+  /**
+   * Retrieves the manager and peers for the specified user from the local
+   * cache.
+   *
+   * @param  hierarchy   The cached org hierarchy.
+   * @param  entryCache  The cached entry for each user.
+   * @param  userDNs     The cached DN for each user ID.
+   * @param  userID      The user ID of the user to look up.
+   *
+   * @return  The number of rows (the user, manager, and peers) retrieved.
+   */
+  private static int lookUpInCache(final OrgHierarchy hierarchy,
+                                   final Map<DN,Entry> entryCache,
+                                   final Map<String,DN> userDNs,
+                                   final String userID)
+  {
+    final DN userDN = userDNs.get(userID);
+    if ((userDN == null) || (entryCache.get(userDN) == null))
+    {
+      return 0;
+    }
+
+    int rows = 1;
+    final DN managerDN = hierarchy.getManager(userDN);
+    if ((managerDN == null) || (entryCache.get(managerDN) == null))
+    {
+      return rows;
+    }
+    rows++;
+
+    for (final DN peerDN : hierarchy.getPeers(userDN))
+    {
+      if (entryCache.get(peerDN) != null)
+      {
+        rows++;
+      }
+    }
+
+    return rows;
+  }
+
+
+
+  /**
+   * Writes a row of the results table for an approach.
+   *
+   * @param  columnFormatter  The column formatter to use for the row.
+   * @param  approach         The name of the approach.
+   * @param  latencies        The latency, in nanoseconds, of each timed
+   *                          lookup.  The array will be sorted.
+   * @param  rows             The total number of rows returned by the timed
+   *                          lookups.
+   */
+  private static void printResults(final ColumnFormatter columnFormatter,
+                                   final String approach,
+                                   final long[] latencies, final long rows)
+  {
+    long totalNanos = 0L;
+    for (final long latency : latencies)
+    {
+      totalNanos += latency;
+    }
+
+    Arrays.sort(latencies);
+    final double lookupsPerSecond =
+         latencies.length * 1_000_000_000.0d / Math.max(totalNanos, 1L);
+    System.out.println(columnFormatter.formatRow(
+         approach,
+         latencies.length,
+         rows,
+         String.format("%.1f", lookupsPerSecond),
+         String.format("%.1f", totalNanos / 1000.0d / latencies.length),
+         getPercentileMicros(latencies, 50.0d),
+         getPercentileMicros(latencies, 95.0d),
+         getPercentileMicros(latencies, 99.0d),
+         latencies[latencies.length - 1] / 1000L));
+  }
+
+
+
+  /**
+   * Retrieves the specified percentile from the provided sorted set of
+   * latencies.
+   *
+   * @param  sortedLatencies  The sorted latencies, in nanoseconds.
+   * @param  percentile       The percentile to retrieve.
+   *
+   * @return  The latency at the specified percentile, in microseconds.
+   */
+  private static long getPercentileMicros(final long[] sortedLatencies,
+                                          final double percentile)
+  {
+    final int index = (int) Math.ceil(
+         percentile / 100.0d * sortedLatencies.length) - 1;
+    return sortedLatencies[Math.max(0, index)] / 1000L;
+  }
+
+
+
+  /**
+   * This interface defines a single manager and peers lookup performed by one
+   * of the benchmarked approaches.
+   */
+  private interface Lookup
+  {
+    /**
+     * Retrieves the manager and peers for the specified user.
+     *
+     * @param  userID  The user ID of the user to look up.
+     *
+     * @return  The number of rows (the user, manager, and peers) retrieved.
+     *
+     * @throws  LDAPException  If a problem is encountered during the lookup.
+     */
+    int lookUp(String userID)
+        throws LDAPException;
+  }
+
+
+
+  /**
+   * This class provides a join result writer that discards every row, so that
+   * the join control approach can use the same search result listener as the
+   * {@link RetrieveUserManagerAndPeers} program without including the cost of
+   * formatting the output.
+   */
+  private static final class DiscardingJoinResultWriter
+          implements JoinResultWriter
+  {
+    /**
+     * {@inheritDoc}
+     */
+    @Override()
+    public void writeHeader()
+    {
+      // No implementation is required.
+    }
+
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override()
+    public void writeRow(final String userType, final Entry entry)
+    {
+      // No implementation is required.
+    }
+
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override()
+    public void flush()
+    {
+      // No implementation is required.
+    }
+
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override()
+    public void close()
+    {
+      // No implementation is required.
+    }
+  }
+}
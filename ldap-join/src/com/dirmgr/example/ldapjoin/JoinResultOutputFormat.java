@@ -0,0 +1,200 @@
+/*
+ * Copyright 2019 Neil A. Wilson
+ * All Rights Reserved.
+ */
+/*
+ * Copyright (C) 2019 Neil A. Wilson
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPLv2 only)
+ * or the terms of the GNU Lesser General Public License (LGPLv2.1 only)
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, see <http://www.gnu.org/licenses>.
+ */
+/*
+ * Copyright 2019 Neil A. Wilson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dirmgr.example.ldapjoin;
+
+
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import com.unboundid.util.StaticUtils;
+
+
+
+/**
+ * This enum defines the output formats that may be used when writing the
+ * results of a join search.
+ */
+public enum JoinResultOutputFormat
+{
+  /**
+   * The output format that writes a fixed-width table that is intended to be
+   * read by a person.
+   */
+  COLUMNS("columns"),
+
+
+
+  /**
+   * The output format that writes each row as a JSON object on its own line.
+   */
+  JSON_LINES("json-lines"),
+
+
+
+  /**
+   * The output format that writes each row as a line of comma-separated
+   * values.
+   */
+  CSV("csv");
+
+
+
+  /**
+   * The size, in bytes, to use for the output buffer.
+   */
+  private static final int OUTPUT_BUFFER_SIZE = 65_536;
+
+
+
+  // The name for this output format.
+  private final String name;
+
+
+
+  /**
+   * Creates a new output format with the provided name.
+   *
+   * @param  name  The name for this output format.
+   */
+  JoinResultOutputFormat(final String name)
+  {
+    this.name = name;
+  }
+
+
+
+  /**
+   * Retrieves the name for this output format.
+   *
+   * @return  The name for this output format.
+   */
+  public String getName()
+  {
+    return name;
+  }
+
+
+
+  /**
+   * Creates a writer that will write rows in this format to the provided
+   * output stream.
+   *
+   * @param  outputStream    The output stream to which the rows should be
+   *                         written.  It must not be {@code null}.  It will be
+   *                         wrapped in a buffered output stream, so it does
+   *                         not need to be buffered itself.  It will be
+   *                         closed when the writer is closed, unless it is
+   *                         standard output or standard error, which will
+   *                         only be flushed.
+   * @param  compress        Indicates whether to gzip-compress the output as
+   *                         it is written.
+   * @param  attributeNames  The names of the attributes to include in each
+   *                         row.  They will be ignored by the columns format,
+   *                         which always uses the same set of columns.
+   *
+   * @return  The writer that was created.
+   *
+   * @throws  IOException  If a problem occurs while creating the writer.
+   */
+  public JoinResultWriter createWriter(final OutputStream outputStream,
+                                       final boolean compress,
+                                       final String... attributeNames)
+         throws IOException
+  {
+    final OutputStream targetOutputStream;
+    if ((outputStream == System.out) || (outputStream == System.err))
+    {
+      targetOutputStream = new NonClosingOutputStream(outputStream);
+    }
+    else
+    {
+      targetOutputStream = outputStream;
+    }
+
+    final OutputStream bufferedOutputStream;
+    if (compress)
+    {
+      bufferedOutputStream = new BufferedOutputStream(
+           new GZIPOutputStream(targetOutputStream, OUTPUT_BUFFER_SIZE),
+           OUTPUT_BUFFER_SIZE);
+    }
+    else
+    {
+      bufferedOutputStream =
+           new BufferedOutputStream(targetOutputStream, OUTPUT_BUFFER_SIZE);
+    }
+
+    switch (this)
+    {
+      case JSON_LINES:
+        return new JSONLinesJoinResultWriter(bufferedOutputStream,
+             attributeNames);
+      case CSV:
+        return new CSVJoinResultWriter(bufferedOutputStream, attributeNames);
+      case COLUMNS:
+      default:
+        return new ColumnJoinResultWriter(bufferedOutputStream);
+    }
+  }
+
+
+
+  /**
+   * Retrieves the output format with the specified name.
+   *
+   * @param  name  The name of the output format to retrieve.  It must not be
+   *               {@code null}.
+   *
+   * @return  The requested output format, or {@code null} if there is no
+   *          output format with the specified name.
+   */
+  public static JoinResultOutputFormat forName(final String name)
+  {
+    final String lowerName = StaticUtils.toLowerCase(name).replace('_', '-');
+    for (final JoinResultOutputFormat format : values())
+    {
+      if (format.name.equals(lowerName))
+      {
+        return format;
+      }
+    }
+
+    return null;
+  }
+}
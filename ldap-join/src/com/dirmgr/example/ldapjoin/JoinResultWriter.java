@@ -0,0 +1,92 @@
+/*
+ * Copyright 2019 Neil A. Wilson
+ * All Rights Reserved.
+ */
+/*
+ * Copyright (C) 2019 Neil A. Wilson
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPLv2 only)
+ * or the terms of the GNU Lesser General Public License (LGPLv2.1 only)
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, see <http://www.gnu.org/licenses>.
+ */
+/*
+ * Copyright 2019 Neil A. Wilson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dirmgr.example.ldapjoin;
+
+
+
+import java.io.Closeable;
+import java.io.IOException;
+
+import com.unboundid.ldap.sdk.Entry;
+
+
+
+/**
+ * This interface defines a set of methods for writing the rows generated from
+ * the results of a join search.  Each row represents a single entry (the
+ * employee, the employee's boss, or one of the employee's peers).
+ * Implementations should write each row to the underlying output stream as it
+ * is provided rather than accumulating them in memory.  Closing the writer
+ * will flush any buffered output and close the underlying output stream,
+ * except that standard output is only flushed so that it remains usable.
+ */
+public interface JoinResultWriter
+       extends Closeable
+{
+  /**
+   * Writes any header that should appear before the first row.  This must be
+   * called before any rows are written.
+   *
+   * @throws  IOException  If a problem occurs while writing the header.
+   */
+  void writeHeader()
+       throws IOException;
+
+
+
+  /**
+   * Writes a row for the provided entry.
+   *
+   * @param  userType  The user type for the row (for example, "Employee",
+   *                   "Boss", or "Peer").  It must not be {@code null}.
+   * @param  entry     The entry for which to write the row.  It must not be
+   *                   {@code null}.
+   *
+   * @throws  IOException  If a problem occurs while writing the row.
+   */
+  void writeRow(String userType, Entry entry)
+       throws IOException;
+
+
+
+  /**
+   * Flushes any buffered output to the underlying output stream.
+   *
+   * @throws  IOException  If a problem occurs while flushing the output.
+   */
+  void flush()
+       throws IOException;
+}
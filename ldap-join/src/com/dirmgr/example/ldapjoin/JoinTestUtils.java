@@ -0,0 +1,79 @@
+/*
+ * Copyright 2019 Neil A. Wilson
+ * All Rights Reserved.
+ */
+/*
+ * Copyright (C) 2019 Neil A. Wilson
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPLv2 only)
+ * or the terms of the GNU Lesser General Public License (LGPLv2.1 only)
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, see <http://www.gnu.org/licenses>.
+ */
+/*
+ * Copyright 2019 Neil A. Wilson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dirmgr.example.ldapjoin;
+
+
+
+import com.unboundid.util.ThreadSafety;
+import com.unboundid.util.ThreadSafetyLevel;
+
+
+
+/**
+ * This class provides assertion helpers that are shared by the tests in the
+ * ldap-join example and that aren't already covered by
+ * {@code com.unboundid.util.LDAPTestUtils}.
+ */
+@ThreadSafety(level=ThreadSafetyLevel.COMPLETELY_THREADSAFE)
+final class JoinTestUtils
+{
+  /**
+   * Prevents this utility class from being instantiated.
+   */
+  private JoinTestUtils()
+  {
+    // No implementation is required.
+  }
+
+
+
+  /**
+   * Ensures that the provided condition is true.
+   *
+   * @param  condition  The condition to check.
+   * @param  message    The message to use if the condition is false.
+   *
+   * @throws  AssertionError  If the provided condition is false.
+   */
+  static void assertTrue(final boolean condition, final String message)
+         throws AssertionError
+  {
+    if (! condition)
+    {
+      throw new AssertionError(message);
+    }
+  }
+}
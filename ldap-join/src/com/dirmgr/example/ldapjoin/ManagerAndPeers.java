@@ -0,0 +1,157 @@
+/*
+ * Copyright 2019 Neil A. Wilson
+ * All Rights Reserved.
+ */
+/*
+ * Copyright (C) 2019 Neil A. Wilson
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPLv2 only)
+ * or the terms of the GNU Lesser General Public License (LGPLv2.1 only)
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, see <http://www.gnu.org/licenses>.
+ */
+/*
+ * Copyright 2019 Neil A. Wilson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dirmgr.example.ldapjoin;
+
+
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.unboundid.ldap.sdk.ReadOnlyEntry;
+import com.unboundid.util.NotMutable;
+import com.unboundid.util.ThreadSafety;
+import com.unboundid.util.ThreadSafetyLevel;
+
+
+
+/**
+ * This class holds the result of looking up a user's manager and peers.  It
+ * is immutable, so a single instance may be safely shared by all of the
+ * callers whose lookups were coalesced by the
+ * {@link ManagerAndPeersLookupService}.
+ */
+@NotMutable()
+@ThreadSafety(level=ThreadSafetyLevel.COMPLETELY_THREADSAFE)
+public final class ManagerAndPeers
+{
+  // The entries for the user's peers.
+  private final List<ReadOnlyEntry> peerEntries;
+
+  // The entry for the user's manager.
+  private final ReadOnlyEntry managerEntry;
+
+  // The entry for the user.
+  private final ReadOnlyEntry userEntry;
+
+
+
+  /**
+   * Creates a new manager and peers result with the provided information.
+   *
+   * @param  userEntry     The entry for the user.  It must not be
+   *                       {@code null}.
+   * @param  managerEntry  The entry for the user's manager.  It may be
+   *                       {@code null} if the user does not have a manager.
+   * @param  peerEntries   The entries for the user's peers.  It must not be
+   *                       {@code null}, but may be empty.
+   */
+  public ManagerAndPeers(final ReadOnlyEntry userEntry,
+                         final ReadOnlyEntry managerEntry,
+                         final List<ReadOnlyEntry> peerEntries)
+  {
+    this.userEntry = userEntry;
+    this.managerEntry = managerEntry;
+    this.peerEntries =
+         Collections.unmodifiableList(new ArrayList<>(peerEntries));
+  }
+
+
+
+  /**
+   * Retrieves the entry for the user.
+   *
+   * @return  The entry for the user.
+   */
+  public ReadOnlyEntry getUserEntry()
+  {
+    return userEntry;
+  }
+
+
+
+  /**
+   * Retrieves the entry for the user's manager.
+   *
+   * @return  The entry for the user's manager, or {@code null} if the user
+   *          does not have a manager.
+   */
+  public ReadOnlyEntry getManagerEntry()
+  {
+    return managerEntry;
+  }
+
+
+
+  /**
+   * Retrieves the entries for the user's peers.
+   *
+   * @return  The entries for the user's peers, or an empty list if the user
+   *          does not have any peers.
+   */
+  public List<ReadOnlyEntry> getPeerEntries()
+  {
+    return peerEntries;
+  }
+
+
+
+  /**
+   * Retrieves a string representation of this manager and peers result.
+   *
+   * @return  A string representation of this manager and peers result.
+   */
+  @Override()
+  public String toString()
+  {
+    final StringBuilder buffer = new StringBuilder();
+    buffer.append("ManagerAndPeers(userDN='");
+    buffer.append(userEntry.getDN());
+    buffer.append('\'');
+
+    if (managerEntry != null)
+    {
+      buffer.append(", managerDN='");
+      buffer.append(managerEntry.getDN());
+      buffer.append('\'');
+    }
+
+    buffer.append(", numPeers=");
+    buffer.append(peerEntries.size());
+    buffer.append(')');
+    return buffer.toString();
+  }
+}
@@ -0,0 +1,639 @@
+/*
+ * Copyright 2019 Neil A. Wilson
+ * All Rights Reserved.
+ */
+/*
+ * Copyright (C) 2019 Neil A. Wilson
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPLv2 only)
+ * or the terms of the GNU Lesser General Public License (LGPLv2.1 only)
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, see <http://www.gnu.org/licenses>.
+ */
+/*
+ * Copyright 2019 Neil A. Wilson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dirmgr.example.ldapjoin;
+
+
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.unboundid.asn1.ASN1OctetString;
+import com.unboundid.ldap.sdk.AbstractConnectionPool;
+import com.unboundid.ldap.sdk.DN;
+import com.unboundid.ldap.sdk.Filter;
+import com.unboundid.ldap.sdk.LDAPConnection;
+import com.unboundid.ldap.sdk.LDAPException;
+import com.unboundid.ldap.sdk.LDAPInterface;
+import com.unboundid.ldap.sdk.ReadOnlyEntry;
+import com.unboundid.ldap.sdk.ResultCode;
+import com.unboundid.ldap.sdk.SearchRequest;
+import com.unboundid.ldap.sdk.SearchResult;
+import com.unboundid.ldap.sdk.SearchResultEntry;
+import com.unboundid.ldap.sdk.SearchResultListener;
+import com.unboundid.ldap.sdk.SearchResultReference;
+import com.unboundid.ldap.sdk.SearchScope;
+import com.unboundid.ldap.sdk.controls.SimplePagedResultsControl;
+import com.unboundid.ldap.sdk.unboundidds.controls.JoinResultControl;
+import com.unboundid.ldap.sdk.unboundidds.controls.JoinedEntry;
+import com.unboundid.util.Debug;
+import com.unboundid.util.StaticUtils;
+import com.unboundid.util.ThreadSafety;
+import com.unboundid.util.ThreadSafetyLevel;
+
+
+
+/**
+ * This class provides a reusable service for retrieving a user's manager and
+ * peers with the same join search used by the
+ * {@link RetrieveUserManagerAndPeers} program.  It is intended to be shared by
+ * many threads, and it coalesces concurrent lookups:  if a lookup is requested
+ * for a user (with a given set of attributes) while an identical lookup is
+ * already in progress, then the caller will wait for that lookup to complete
+ * and will receive the same result, rather than sending another search to the
+ * directory server.  Results are not retained after the lookup completes, so
+ * a later lookup for the same user will always reflect the current contents
+ * of the directory.
+ * <BR><BR>
+ * The provided connection should generally be a connection pool, so that
+ * lookups for different users can be processed in parallel.
+ */
+@ThreadSafety(level=ThreadSafetyLevel.COMPLETELY_THREADSAFE)
+public final class ManagerAndPeersLookupService
+{
+  // The number of lookups that were satisfied by waiting for an identical
+  // lookup that was already in progress.
+  private final AtomicLong coalescedLookups;
+
+  // The number of lookups that required a search of the directory server.
+  private final AtomicLong freshLookups;
+
+  // The lookups that are currently in progress, mapped from the lookup key to
+  // the future that will hold the result.
+  private final ConcurrentHashMap<LookupKey,CompletableFuture<ManagerAndPeers>>
+       inProgressLookups;
+
+  // The size limit to use for the nested join that retrieves the peers.
+  private final int maxNestedJoinPeers;
+
+  // The connection to use to communicate with the directory server.
+  private final LDAPInterface connection;
+
+  // The base DN to use for the searches.
+  private final String searchBaseDN;
+
+  // The attributes to request by default.
+  private final String[] defaultRequestedAttributes;
+
+
+
+  /**
+   * Creates a new manager and peers lookup service with the provided
+   * information.
+   *
+   * @param  connection                  The connection to use to communicate
+   *                                     with the directory server.  It should
+   *                                     generally be a connection pool.
+   * @param  searchBaseDN                The base DN to use for the searches.
+   * @param  maxNestedJoinPeers          The size limit to use for the nested
+   *                                     join that retrieves the peers.  If a
+   *                                     manager has more direct reports than
+   *                                     this, then the peers will be retrieved
+   *                                     with a paged search instead.
+   * @param  defaultRequestedAttributes  The attributes to request when a
+   *                                     lookup does not specify them.
+   */
+  public ManagerAndPeersLookupService(final LDAPInterface connection,
+              final String searchBaseDN, final int maxNestedJoinPeers,
+              final String... defaultRequestedAttributes)
+  {
+    this.connection = connection;
+    this.searchBaseDN = searchBaseDN;
+    this.maxNestedJoinPeers = maxNestedJoinPeers;
+    this.defaultRequestedAttributes = defaultRequestedAttributes;
+
+    inProgressLookups = new ConcurrentHashMap<>(100);
+    freshLookups = new AtomicLong(0L);
+    coalescedLookups = new AtomicLong(0L);
+  }
+
+
+
+  /**
+   * Retrieves the manager and peers for the specified user, requesting the
+   * default set of attributes.
+   *
+   * @param  userID  The user ID of the user to look up.
+   *
+   * @return  The manager and peers for the specified user.
+   *
+   * @throws  LDAPException  If a problem is encountered while processing the
+   *                         lookup, or if the user does not exist.
+   */
+  public ManagerAndPeers lookUp(final String userID)
+         throws LDAPException
+  {
+    return lookUp(userID, defaultRequestedAttributes);
+  }
+
+
+
+  /**
+   * Retrieves the manager and peers for the specified user, requesting the
+   * given set of attributes.
+   *
+   * @param  userID               The user ID of the user to look up.
+   * @param  requestedAttributes  The attributes to request for the user,
+   *                              manager, and peers.
+   *
+   * @return  The manager and peers for the specified user.
+   *
+   * @throws  LDAPException  If a problem is encountered while processing the
+   *                         lookup, or if the user does not exist.
+   */
+  public ManagerAndPeers lookUp(final String userID,
+                                final String... requestedAttributes)
+         throws LDAPException
+  {
+    final LookupKey key = new LookupKey(userID, requestedAttributes);
+    final CompletableFuture<ManagerAndPeers> newFuture =
+         new CompletableFuture<>();
+    final CompletableFuture<ManagerAndPeers> existingFuture =
+         inProgressLookups.putIfAbsent(key, newFuture);
+    if (existingFuture != null)
+    {
+      coalescedLookups.incrementAndGet();
+      return awaitResult(existingFuture);
+    }
+
+    freshLookups.incrementAndGet();
+    try
+    {
+      final ManagerAndPeers result = search(userID, requestedAttributes);
+      newFuture.complete(result);
+      return result;
+    }
+    catch (final LDAPException | RuntimeException | Error e)
+    {
+      // Make sure that any callers waiting for this lookup will see the
+      // failure rather than waiting forever.
+      newFuture.completeExceptionally(e);
+      throw e;
+    }
+    finally
+    {
+      inProgressLookups.remove(key, newFuture);
+    }
+  }
+
+
+
+  /**
+   * Retrieves the number of lookups that required a search of the directory
+   * server.
+   *
+   * @return  The number of lookups that required a search of the directory
+   *          server.
+   */
+  public long getFreshLookups()
+  {
+    return freshLookups.get();
+  }
+
+
+
+  /**
+   * Retrieves the number of lookups that were satisfied by waiting for an
+   * identical lookup that was already in progress.
+   *
+   * @return  The number of lookups that were coalesced with another lookup.
+   */
+  public long getCoalescedLookups()
+  {
+    return coalescedLookups.get();
+  }
+
+
+
+  /**
+   * Retrieves the number of distinct lookups currently in progress.
+   *
+   * @return  The number of distinct lookups currently in progress.
+   */
+  public int getInProgressLookups()
+  {
+    return inProgressLookups.size();
+  }
+
+
+
+  /**
+   * Waits for the provided future to complete and returns its result.
+   *
+   * @param  future  The future for which to wait.
+   *
+   * @return  The result of the lookup.
+   *
+   * @throws  LDAPException  If the lookup failed, or if the thread was
+   *                         interrupted while waiting.
+   */
+  private static ManagerAndPeers awaitResult(
+                      final CompletableFuture<ManagerAndPeers> future)
+          throws LDAPException
+  {
+    try
+    {
+      return future.get();
+    }
+    catch (final InterruptedException e)
+    {
+      Debug.debugException(e);
+      Thread.currentThread().interrupt();
+      throw new LDAPException(ResultCode.LOCAL_ERROR,
+           "Interrupted while waiting for a lookup in progress:  " +
+                StaticUtils.getExceptionMessage(e),
+           e);
+    }
+    catch (final ExecutionException e)
+    {
+      Debug.debugException(e);
+
+      // Create a new exception for this caller so that its stack trace
+      // reflects where it was thrown, while preserving the original cause.
+      final Throwable cause = e.getCause();
+      if (cause instanceof LDAPException)
+      {
+        final LDAPException le = (LDAPException) cause;
+        throw new LDAPException(le.toLDAPResult(), le);
+      }
+
+      throw new LDAPException(ResultCode.LOCAL_ERROR,
+           "The lookup in progress failed:  " +
+                StaticUtils.getExceptionMessage(cause),
+           cause);
+    }
+  }
+
+
+
+  /**
+   * Uses a search with the join control to retrieve the manager and peers for
+   * the specified user.
+   *
+   * @param  userID               The user ID of the user to look up.
+   * @param  requestedAttributes  The attributes to request.
+   *
+   * @return  The manager and peers for the specified user.
+   *
+   * @throws  LDAPException  If a problem is encountered while processing the
+   *                         search, or if the user does not exist.
+   */
+  private ManagerAndPeers search(final String userID,
+                                 final String[] requestedAttributes)
+          throws LDAPException
+  {
+    final SearchRequest searchRequest = new SearchRequest(searchBaseDN,
+         SearchScope.SUB, Filter.createEqualityFilter("uid", userID),
+         requestedAttributes);
+    searchRequest.addControl(
+         RetrieveUserManagerAndPeers.createJoinRequestControl(userID,
+              requestedAttributes, maxNestedJoinPeers));
+
+    final SearchResult searchResult = connection.search(searchRequest);
+    if (searchResult.getEntryCount() != 1)
+    {
+      throw new LDAPException(ResultCode.NO_RESULTS_RETURNED,
+           "Expected exactly one entry for user " + userID + ", but found " +
+                searchResult.getEntryCount() + '.');
+    }
+
+    final SearchResultEntry userEntry = searchResult.getSearchEntries().get(0);
+    final JoinResultControl joinResultControl =
+         JoinResultControl.get(userEntry);
+    if (joinResultControl == null)
+    {
+      throw new LDAPException(ResultCode.CONTROL_NOT_FOUND,
+           "The entry for user " + userID + " did not include a join " +
+                "result control.");
+    }
+
+    ReadOnlyEntry managerEntry = null;
+    final List<ReadOnlyEntry> peerEntries = new ArrayList<>(10);
+    for (final JoinedEntry joinedManagerEntry :
+         joinResultControl.getJoinResults())
+    {
+      managerEntry = joinedManagerEntry;
+      peerEntries.addAll(joinedManagerEntry.getNestedJoinResults());
+    }
+
+    // If there were too many peers to return in the nested join, then
+    // retrieve them with a paged search instead.
+    if ((managerEntry != null) && isNestedJoinTruncated(joinResultControl))
+    {
+      peerEntries.clear();
+      retrievePagedPeers(connection, searchBaseDN, managerEntry.getDN(),
+           userEntry.getParsedDN(), requestedAttributes, maxNestedJoinPeers,
+           new SearchResultListener()
+           {
+             private static final long serialVersionUID = 1L;
+
+             @Override()
+             public void searchEntryReturned(
+                              final SearchResultEntry peerEntry)
+             {
+               peerEntries.add(new ReadOnlyEntry(peerEntry));
+             }
+
+             @Override()
+             public void searchReferenceReturned(
+                              final SearchResultReference searchReference)
+             {
+               // No implementation is required.
+             }
+           });
+    }
+
+    return new ManagerAndPeers(new ReadOnlyEntry(userEntry), managerEntry,
+         peerEntries);
+  }
+
+
+
+  /**
+   * Indicates whether the nested join that retrieves the peers in the provided
+   * join result was cut short because the manager has more direct reports
+   * than its size limit allows.  In that case, the peers should be retrieved
+   * with {@link #retrievePagedPeers} instead.
+   *
+   * @param  joinResultControl  The join result control to examine.
+   *
+   * @return  {@code true} if the nested join was cut short, or {@code false}
+   *          if it returned all of the peers.
+   */
+  static boolean isNestedJoinTruncated(
+                      final JoinResultControl joinResultControl)
+  {
+    final ResultCode joinResultCode = joinResultControl.getResultCode();
+    return ((joinResultCode == ResultCode.SIZE_LIMIT_EXCEEDED) ||
+         (joinResultCode == ResultCode.ADMIN_LIMIT_EXCEEDED));
+  }
+
+
+
+  /**
+   * Uses a series of searches with the simple paged results control to
+   * retrieve the direct reports for the specified manager (other than the
+   * specified user), and passes each of them to the provided listener as it
+   * is returned.  If the provided connection is a connection pool, then a
+   * single connection will be checked out of it and used for every page,
+   * since the paged results cookie is only valid on the connection that
+   * received it.
+   *
+   * @param  connection           The connection to use to communicate with
+   *                              the directory server.
+   * @param  searchBaseDN         The base DN to use for the searches.
+   * @param  managerDN            The DN of the manager whose direct reports
+   *                              should be retrieved.
+   * @param  userDN               The DN of the user, who should not be
+   *                              included in the peers.
+   * @param  requestedAttributes  The attributes to request for each peer.
+   * @param  pageSize             The maximum number of peers to request in
+   *                              each page.
+   * @param  peerListener         The listener to which the peer entries
+   *                              should be passed.
+   *
+   * @return  The number of peers that were passed to the listener.
+   *
+   * @throws  LDAPException  If a problem is encountered while processing any
+   *                         of the searches.
+   */
+  static long retrievePagedPeers(final LDAPInterface connection,
+                   final String searchBaseDN, final String managerDN,
+                   final DN userDN, final String[] requestedAttributes,
+                   final int pageSize, final SearchResultListener peerListener)
+         throws LDAPException
+  {
+    if (! (connection instanceof AbstractConnectionPool))
+    {
+      return searchPeerPages(connection, searchBaseDN, managerDN, userDN,
+           requestedAttributes, pageSize, peerListener);
+    }
+
+    final AbstractConnectionPool pool = (AbstractConnectionPool) connection;
+    final LDAPConnection pooledConnection = pool.getConnection();
+    boolean connectionUsable = true;
+    try
+    {
+      return searchPeerPages(pooledConnection, searchBaseDN, managerDN,
+           userDN, requestedAttributes, pageSize, peerListener);
+    }
+    catch (final LDAPException le)
+    {
+      Debug.debugException(le);
+      connectionUsable = ResultCode.isConnectionUsable(le.getResultCode());
+      throw le;
+    }
+    finally
+    {
+      if (connectionUsable)
+      {
+        pool.releaseConnection(pooledConnection);
+      }
+      else
+      {
+        pool.releaseDefunctConnection(pooledConnection);
+      }
+    }
+  }
+
+
+
+  /**
+   * Uses a series of searches with the simple paged results control to
+   * retrieve the direct reports for the specified manager (other than the
+   * specified user) over the provided connection, which must not be a
+   * connection pool.
+   *
+   * @param  connection           The connection to use for every page.
+   * @param  searchBaseDN         The base DN to use for the searches.
+   * @param  managerDN            The DN of the manager whose direct reports
+   *                              should be retrieved.
+   * @param  userDN               The DN of the user, who should not be
+   *                              included in the peers.
+   * @param  requestedAttributes  The attributes to request for each peer.
+   * @param  pageSize             The maximum number of peers to request in
+   *                              each page.
+   * @param  peerListener         The listener to which the peer entries
+   *                              should be passed.
+   *
+   * @return  The number of peers that were passed to the listener.
+   *
+   * @throws  LDAPException  If a problem is encountered while processing any
+   *                         of the searches.
+   */
+  private static long searchPeerPages(final LDAPInterface connection,
+                   final String searchBaseDN, final String managerDN,
+                   final DN userDN, final String[] requestedAttributes,
+                   final int pageSize, final SearchResultListener peerListener)
+          throws LDAPException
+  {
+    final long[] peersReturned = new long[1];
+    final SearchResultListener filteringListener = new SearchResultListener()
+    {
+      private static final long serialVersionUID = 1L;
+
+      @Override()
+      public void searchEntryReturned(final SearchResultEntry peerEntry)
+      {
+        try
+        {
+          if (peerEntry.getParsedDN().equals(userDN))
+          {
+            return;
+          }
+        }
+        catch (final LDAPException e)
+        {
+          // This should never happen, since the DN came from the server.
+          Debug.debugException(e);
+        }
+
+        peerListener.searchEntryReturned(peerEntry);
+        peersReturned[0]++;
+      }
+
+      @Override()
+      public void searchReferenceReturned(
+                       final SearchResultReference searchReference)
+      {
+        // No implementation is required.
+      }
+    };
+
+    ASN1OctetString cookie = null;
+    while (true)
+    {
+      final SearchRequest searchRequest = new SearchRequest(filteringListener,
+           searchBaseDN, SearchScope.SUB,
+           Filter.createEqualityFilter("manager", managerDN),
+           requestedAttributes);
+      searchRequest.addControl(
+           new SimplePagedResultsControl(pageSize, cookie, true));
+
+      final SearchResult searchResult = connection.search(searchRequest);
+      final SimplePagedResultsControl responseControl =
+           SimplePagedResultsControl.get(searchResult);
+      if ((responseControl == null) ||
+           (! responseControl.moreResultsToReturn()))
+      {
+        return peersReturned[0];
+      }
+
+      cookie = responseControl.getCookie();
+    }
+  }
+
+
+
+  /**
+   * This class provides the key used to identify identical lookups.  Two
+   * lookups are identical if they are for the same user and request the same
+   * attributes, regardless of the case or order of the attribute names.
+   */
+  private static final class LookupKey
+  {
+    // The hash code for this key.
+    private final int hashCode;
+
+    // The sorted, lowercase names of the requested attributes.
+    private final List<String> requestedAttributes;
+
+    // The lowercase user ID.
+    private final String userID;
+
+
+
+    /**
+     * Creates a new lookup key with the provided information.
+     *
+     * @param  userID               The user ID of the user to look up.
+     * @param  requestedAttributes  The attributes to request.
+     */
+    private LookupKey(final String userID, final String[] requestedAttributes)
+    {
+      this.userID = StaticUtils.toLowerCase(userID);
+
+      final String[] attributeNames = new String[requestedAttributes.length];
+      for (int i=0; i < requestedAttributes.length; i++)
+      {
+        attributeNames[i] = StaticUtils.toLowerCase(requestedAttributes[i]);
+      }
+      Arrays.sort(attributeNames);
+      this.requestedAttributes = Arrays.asList(attributeNames);
+
+      hashCode = this.userID.hashCode() * 31 +
+           this.requestedAttributes.hashCode();
+    }
+
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override()
+    public int hashCode()
+    {
+      return hashCode;
+    }
+
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override()
+    public boolean equals(final Object o)
+    {
+      if (o == this)
+      {
+        return true;
+      }
+
+      if (! (o instanceof LookupKey))
+      {
+        return false;
+      }
+
+      final LookupKey k = (LookupKey) o;
+      return (hashCode == k.hashCode) && userID.equals(k.userID) &&
+           requestedAttributes.equals(k.requestedAttributes);
+    }
+  }
+}
@@ -0,0 +1,341 @@
+/*
+ * Copyright 2019 Neil A. Wilson
+ * All Rights Reserved.
+ */
+/*
+ * Copyright (C) 2019 Neil A. Wilson
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPLv2 only)
+ * or the terms of the GNU Lesser General Public License (LGPLv2.1 only)
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, see <http://www.gnu.org/licenses>.
+ */
+/*
+ * Copyright 2019 Neil A. Wilson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dirmgr.example.ldapjoin;
+
+
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.unboundid.ldap.sdk.DN;
+import com.unboundid.ldap.sdk.Entry;
+import com.unboundid.ldap.sdk.LDAPException;
+import com.unboundid.ldap.sdk.LDAPInterface;
+import com.unboundid.ldap.sdk.ResultCode;
+import com.unboundid.ldap.sdk.SearchResultEntry;
+import com.unboundid.ldap.sdk.SearchResultListener;
+import com.unboundid.ldap.sdk.SearchResultReference;
+import com.unboundid.ldap.sdk.unboundidds.controls.JoinResultControl;
+import com.unboundid.ldap.sdk.unboundidds.controls.JoinedEntry;
+import com.unboundid.util.Debug;
+import com.unboundid.util.ObjectPair;
+import com.unboundid.util.StaticUtils;
+import com.unboundid.util.ThreadSafety;
+import com.unboundid.util.ThreadSafetyLevel;
+
+
+
+/**
+ * This class provides a search result listener that can be used to display
+ * the results of a search that includes the join request control created by
+ * the {@link RetrieveUserManagerAndPeers} program.  Rather than waiting for
+ * the entire search to complete, it uses a {@link JoinResultWriter} to write
+ * the row for each employee, along with the rows for that employee's boss and
+ * peers, as soon as the search result entry is returned.  None of the
+ * entries are retained after they have been written, so the amount of memory
+ * required does not depend on the number of entries returned.
+ * <BR><BR>
+ * If the server indicates that the nested join used to retrieve the peers
+ * exceeded its size limit, then the peers from that join will not be written.
+ * Instead, the listener will keep track of the employee and boss so that the
+ * peers can be retrieved separately in pages with the simple paged results
+ * control, by calling {@link #retrieveDeferredPeers}, once the search has
+ * completed.
+ */
+@ThreadSafety(level=ThreadSafetyLevel.NOT_THREADSAFE)
+public final class ManagerAndPeersSearchResultListener
+       implements SearchResultListener
+{
+  /**
+   * The serial version UID for this serializable class.
+   */
+  private static final long serialVersionUID = -2516484009419232071L;
+
+
+
+  // The first exception caught while processing an entry, if any.
+  private volatile LDAPException firstException;
+
+  // The number of rows that have been written.
+  private volatile long rowsWritten;
+
+  // The employee and boss DNs for the peer sets that were too large to be
+  // returned in the nested join and will need to be retrieved with a paged
+  // search.
+  private final List<ObjectPair<String,String>> deferredPeerSearches;
+
+  // The writer that will be used to write the rows.
+  private final JoinResultWriter writer;
+
+
+
+  /**
+   * Creates a new instance of this listener that will use the provided writer.
+   *
+   * @param  writer  The writer that will be used to write the rows.  It must
+   *                 not be {@code null}, and its header should already have
+   *                 been written.
+   */
+  public ManagerAndPeersSearchResultListener(final JoinResultWriter writer)
+  {
+    this.writer = writer;
+
+    firstException = null;
+    rowsWritten = 0L;
+    deferredPeerSearches = new ArrayList<>(1);
+  }
+
+
+
+  /**
+   * Indicates that the provided search result entry has been returned by the
+   * server.  The rows for the employee and for any joined boss and peer
+   * entries will be written immediately.
+   *
+   * @param  searchEntry  The search result entry that has been returned by the
+   *                      server.
+   */
+  @Override()
+  public void searchEntryReturned(final SearchResultEntry searchEntry)
+  {
+    writeRow("Employee", searchEntry);
+
+    // Extract the join result control from the search result entry.
+    final JoinResultControl joinResultControl;
+    try
+    {
+      joinResultControl = JoinResultControl.get(searchEntry);
+    }
+    catch (final LDAPException e)
+    {
+      Debug.debugException(e);
+      recordException(e);
+      return;
+    }
+
+    if (joinResultControl == null)
+    {
+      recordException(new LDAPException(ResultCode.CONTROL_NOT_FOUND,
+           "Search result entry " + searchEntry.getDN() + " did not " +
+                "include a join result control."));
+      return;
+    }
+
+    // If the nested join matched more peers than its size limit allows, then
+    // write the boss entries but defer the peers to a paged search.
+    final boolean deferPeers =
+         ManagerAndPeersLookupService.isNestedJoinTruncated(joinResultControl);
+
+    // Iterate through the joined entries and write the results.
+    for (final JoinedEntry bossEntry : joinResultControl.getJoinResults())
+    {
+      writeRow("Boss", bossEntry);
+
+      if (deferPeers)
+      {
+        deferredPeerSearches.add(
+             new ObjectPair<>(searchEntry.getDN(), bossEntry.getDN()));
+        continue;
+      }
+
+      for (final JoinedEntry peerEntry : bossEntry.getNestedJoinResults())
+      {
+        writeRow("Peer", peerEntry);
+      }
+    }
+  }
+
+
+
+  /**
+   * Indicates that the provided search result reference has been returned by
+   * the server.  References will be ignored.
+   *
+   * @param  searchReference  The search result reference that has been
+   *                          returned by the server.
+   */
+  @Override()
+  public void searchReferenceReturned(
+                   final SearchResultReference searchReference)
+  {
+    // No implementation is required.
+  }
+
+
+
+  /**
+   * Retrieves the number of rows that have been written.
+   *
+   * @return  The number of rows that have been written.
+   */
+  public long getRowsWritten()
+  {
+    return rowsWritten;
+  }
+
+
+
+  /**
+   * Retrieves a list of the peer sets that could not be returned in the nested
+   * join because they exceeded its size limit, and that should instead be
+   * retrieved with a paged search.
+   *
+   * @return  A list of the peer sets that should be retrieved with a paged
+   *          search.  The first element of each pair is the DN of the
+   *          employee (who should be excluded from the peers), and the second
+   *          is the DN of the boss.
+   */
+  public List<ObjectPair<String,String>> getDeferredPeerSearches()
+  {
+    return Collections.unmodifiableList(deferredPeerSearches);
+  }
+
+
+
+  /**
+   * Uses paged searches to retrieve each of the peer sets that could not be
+   * returned in the nested join, and writes a peer row for each of those peers
+   * (other than the employee).  This should be called after the search that
+   * used this listener has completed.
+   *
+   * @param  connection           The connection to use to communicate with
+   *                              the directory server.  If it is a
+   *                              connection pool, then each peer set will be
+   *                              retrieved over a single connection from it.
+   * @param  searchBaseDN         The base DN to use for the searches.
+   * @param  requestedAttributes  The attributes to request for each peer.
+   * @param  pageSize             The maximum number of peers to request in
+   *                              each page.
+   *
+   * @return  The number of peer rows that were written.
+   *
+   * @throws  LDAPException  If a problem is encountered while communicating
+   *                         with the directory server.
+   */
+  public long retrieveDeferredPeers(final LDAPInterface connection,
+                                    final String searchBaseDN,
+                                    final String[] requestedAttributes,
+                                    final int pageSize)
+         throws LDAPException
+  {
+    final SearchResultListener peerListener = new SearchResultListener()
+    {
+      private static final long serialVersionUID = 1L;
+
+      @Override()
+      public void searchEntryReturned(final SearchResultEntry peerEntry)
+      {
+        writeRow("Peer", peerEntry);
+      }
+
+      @Override()
+      public void searchReferenceReturned(
+                       final SearchResultReference searchReference)
+      {
+        // No implementation is required.
+      }
+    };
+
+    long peersWritten = 0L;
+    for (final ObjectPair<String,String> deferredPeerSearch :
+         deferredPeerSearches)
+    {
+      peersWritten += ManagerAndPeersLookupService.retrievePagedPeers(
+           connection, searchBaseDN, deferredPeerSearch.getSecond(),
+           new DN(deferredPeerSearch.getFirst()), requestedAttributes,
+           pageSize, peerListener);
+    }
+
+    return peersWritten;
+  }
+
+
+
+  /**
+   * Retrieves the first exception that was caught while processing a search
+   * result entry (for example, because it did not include a join result
+   * control, or because that control could not be decoded).
+   *
+   * @return  The first exception that was caught while processing a search
+   *          result entry, or {@code null} if no problems were encountered.
+   */
+  public LDAPException getFirstException()
+  {
+    return firstException;
+  }
+
+
+
+  /**
+   * Writes a row for the provided entry.
+   *
+   * @param  userType  The user type for the row.
+   * @param  entry     The entry for which to write the row.
+   */
+  void writeRow(final String userType, final Entry entry)
+  {
+    try
+    {
+      writer.writeRow(userType, entry);
+      rowsWritten++;
+    }
+    catch (final IOException e)
+    {
+      Debug.debugException(e);
+      recordException(new LDAPException(ResultCode.LOCAL_ERROR,
+           "Unable to write the row for entry " + entry.getDN() + ":  " +
+                StaticUtils.getExceptionMessage(e),
+           e));
+    }
+  }
+
+
+
+  /**
+   * Records the provided exception if it is the first one to be caught.
+   *
+   * @param  e  The exception to record.
+   */
+  private void recordException(final LDAPException e)
+  {
+    if (firstException == null)
+    {
+      firstException = e;
+    }
+  }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2019 Neil A. Wilson
+ * All Rights Reserved.
+ */
+/*
+ * Copyright (C) 2019 Neil A. Wilson
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPLv2 only)
+ * or the terms of the GNU Lesser General Public License (LGPLv2.1 only)
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, see <http://www.gnu.org/licenses>.
+ */
+/*
+ * Copyright 2019 Neil A. Wilson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dirmgr.example.ldapjoin;
+
+
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import com.unboundid.util.ThreadSafety;
+import com.unboundid.util.ThreadSafetyLevel;
+
+
+
+/**
+ * This class provides an output stream that passes everything through to
+ * another output stream, but only flushes that stream when it is closed.  It
+ * is used when writing the results to standard output, so that closing the
+ * writer (which must still finish any gzip compression) doesn't also close
+ * {@code System.out} and discard anything the program writes after that.
+ */
+@ThreadSafety(level=ThreadSafetyLevel.NOT_THREADSAFE)
+final class NonClosingOutputStream
+       extends FilterOutputStream
+{
+  /**
+   * Creates a new instance of this output stream that wraps the provided
+   * stream.
+   *
+   * @param  outputStream  The output stream to which everything should be
+   *                       written.  It will not be closed when this stream
+   *                       is closed.
+   */
+  NonClosingOutputStream(final OutputStream outputStream)
+  {
+    super(outputStream);
+  }
+
+
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override()
+  public void write(final byte[] b, final int off, final int len)
+         throws IOException
+  {
+    out.write(b, off, len);
+  }
+
+
+
+  /**
+   * Flushes the wrapped output stream without closing it.
+   *
+   * @throws  IOException  If a problem occurs while flushing the wrapped
+   *                       output stream.
+   */
+  @Override()
+  public void close()
+         throws IOException
+  {
+    out.flush();
+  }
+}
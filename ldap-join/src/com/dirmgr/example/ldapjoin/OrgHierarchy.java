@@ -0,0 +1,362 @@
+/*
+ * Copyright 2019 Neil A. Wilson
+ * All Rights Reserved.
+ */
+/*
+ * Copyright (C) 2019 Neil A. Wilson
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPLv2 only)
+ * or the terms of the GNU Lesser General Public License (LGPLv2.1 only)
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, see <http://www.gnu.org/licenses>.
+ */
+/*
+ * Copyright 2019 Neil A. Wilson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dirmgr.example.ldapjoin;
+
+
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.unboundid.ldap.sdk.DN;
+import com.unboundid.ldap.sdk.RDN;
+import com.unboundid.util.ThreadSafety;
+import com.unboundid.util.ThreadSafetyLevel;
+
+
+
+/**
+ * This class provides an in-memory representation of the management hierarchy
+ * defined by the manager attribute in user entries.  It keeps track of the
+ * manager for each known user, as well as the reverse mapping from each
+ * manager to their direct reports, so that it is possible to retrieve a user's
+ * manager and peers without any communication with the directory server.
+ */
+@ThreadSafety(level=ThreadSafetyLevel.COMPLETELY_THREADSAFE)
+public final class OrgHierarchy
+{
+  // A map of the users in the hierarchy, mapped from the user DN to the DN of
+  // that user's manager.  The manager DN may be null for users that do not
+  // have a manager.
+  private final Map<DN,DN> managers;
+
+  // A map of the direct reports for each manager, mapped from the manager DN to
+  // the DNs of the users that have that manager.
+  private final Map<DN,Set<DN>> directReports;
+
+
+
+  /**
+   * Creates a new, empty org hierarchy.
+   */
+  public OrgHierarchy()
+  {
+    managers = new LinkedHashMap<>(100);
+    directReports = new HashMap<>(100);
+  }
+
+
+
+  /**
+   * Adds the specified user to the hierarchy, or updates the manager for that
+   * user if they are already present.
+   *
+   * @param  userDN     The DN of the user to add or update.  It must not be
+   *                    {@code null}.
+   * @param  managerDN  The DN of the user's manager.  It may be {@code null} if
+   *                    the user does not have a manager.
+   */
+  public synchronized void putUser(final DN userDN, final DN managerDN)
+  {
+    final DN previousManagerDN = managers.put(userDN, managerDN);
+    if (previousManagerDN != null)
+    {
+      removeDirectReport(previousManagerDN, userDN);
+    }
+
+    if (managerDN != null)
+    {
+      Set<DN> reports = directReports.get(managerDN);
+      if (reports == null)
+      {
+        reports = new LinkedHashSet<>(10);
+        directReports.put(managerDN, reports);
+      }
+
+      reports.add(userDN);
+    }
+  }
+
+
+
+  /**
+   * Removes the specified user from the hierarchy.  Any users that reference
+   * the removed user as their manager will continue to do so, since that is
+   * also what the directory will do unless the referential integrity plugin
+   * is enabled (in which case the changes that it makes will be processed
+   * separately).
+   *
+   * @param  userDN  The DN of the user to remove.  It must not be
+   *                 {@code null}.
+   *
+   * @return  {@code true} if the user was removed, or {@code false} if the user
+   *          was not present in the hierarchy.
+   */
+  public synchronized boolean removeUser(final DN userDN)
+  {
+    if (! managers.containsKey(userDN))
+    {
+      return false;
+    }
+
+    final DN managerDN = managers.remove(userDN);
+    if (managerDN != null)
+    {
+      removeDirectReport(managerDN, userDN);
+    }
+
+    return true;
+  }
+
+
+
+  /**
+   * Updates the hierarchy to reflect a modify DN operation that renamed the
+   * entry with the provided old DN so that it has the given new DN.  If the
+   * renamed entry had subordinates (for example, if an organizational unit
+   * was renamed), then any users below that entry will also be renamed.
+   *
+   * @param  oldDN  The DN of the entry before it was renamed.  It must not be
+   *                {@code null}.
+   * @param  newDN  The DN of the entry after it was renamed.  It must not be
+   *                {@code null}.
+   *
+   * @return  The number of users that were renamed.
+   */
+  public synchronized int renameEntry(final DN oldDN, final DN newDN)
+  {
+    final List<DN> renamedUserDNs = new ArrayList<>(10);
+    if (managers.containsKey(oldDN))
+    {
+      renamedUserDNs.add(oldDN);
+    }
+    else
+    {
+      for (final DN userDN : managers.keySet())
+      {
+        if (userDN.isDescendantOf(oldDN, false))
+        {
+          renamedUserDNs.add(userDN);
+        }
+      }
+    }
+
+    for (final DN userDN : renamedUserDNs)
+    {
+      final DN managerDN = managers.get(userDN);
+      removeUser(userDN);
+
+      final DN renamedUserDN;
+      if (userDN.equals(oldDN))
+      {
+        renamedUserDN = newDN;
+      }
+      else
+      {
+        // Keep the subordinate RDN components as they are, and replace the
+        // portion of the DN that came from the renamed entry.
+        final RDN[] userRDNs = userDN.getRDNs();
+        final RDN[] newRDNs = newDN.getRDNs();
+        final int numSubordinateRDNs =
+             userRDNs.length - oldDN.getRDNs().length;
+        final List<RDN> renamedRDNs =
+             new ArrayList<>(numSubordinateRDNs + newRDNs.length);
+        for (int i=0; i < numSubordinateRDNs; i++)
+        {
+          renamedRDNs.add(userRDNs[i]);
+        }
+        Collections.addAll(renamedRDNs, newRDNs);
+        renamedUserDN = new DN(renamedRDNs);
+      }
+
+      putUser(renamedUserDN, managerDN);
+    }
+
+    return renamedUserDNs.size();
+  }
+
+
+
+  /**
+   * Retrieves the DN of the manager for the specified user.
+   *
+   * @param  userDN  The DN of the user for whom to retrieve the manager.  It
+   *                 must not be {@code null}.
+   *
+   * @return  The DN of the manager for the specified user, or {@code null} if
+   *          the user is not in the hierarchy or does not have a manager.
+   */
+  public synchronized DN getManager(final DN userDN)
+  {
+    return managers.get(userDN);
+  }
+
+
+
+  /**
+   * Indicates whether the specified user is present in the hierarchy.
+   *
+   * @param  userDN  The DN of the user for whom to make the determination.  It
+   *                 must not be {@code null}.
+   *
+   * @return  {@code true} if the specified user is present in the hierarchy,
+   *          or {@code false} if not.
+   */
+  public synchronized boolean containsUser(final DN userDN)
+  {
+    return managers.containsKey(userDN);
+  }
+
+
+
+  /**
+   * Retrieves the DNs of the direct reports for the specified manager.
+   *
+   * @param  managerDN  The DN of the manager for whom to retrieve the direct
+   *                    reports.  It must not be {@code null}.
+   *
+   * @return  The DNs of the direct reports for the specified manager, or an
+   *          empty list if the manager does not have any direct reports.
+   */
+  public synchronized List<DN> getDirectReports(final DN managerDN)
+  {
+    final Set<DN> reports = directReports.get(managerDN);
+    if (reports == null)
+    {
+      return Collections.emptyList();
+    }
+
+    return Collections.unmodifiableList(new ArrayList<>(reports));
+  }
+
+
+
+  /**
+   * Retrieves the DNs of the peers for the specified user.  The peers are the
+   * other direct reports of the user's manager.
+   *
+   * @param  userDN  The DN of the user for whom to retrieve the peers.  It
+   *                 must not be {@code null}.
+   *
+   * @return  The DNs of the peers for the specified user, or an empty list if
+   *          the user does not have a manager or does not have any peers.
+   */
+  public synchronized List<DN> getPeers(final DN userDN)
+  {
+    final DN managerDN = managers.get(userDN);
+    if (managerDN == null)
+    {
+      return Collections.emptyList();
+    }
+
+    final Set<DN> reports = directReports.get(managerDN);
+    final List<DN> peers = new ArrayList<>(reports.size());
+    for (final DN reportDN : reports)
+    {
+      if (! reportDN.equals(userDN))
+      {
+        peers.add(reportDN);
+      }
+    }
+
+    return Collections.unmodifiableList(peers);
+  }
+
+
+
+  /**
+   * Retrieves a snapshot of the user-to-manager mappings in this hierarchy.
+   *
+   * @return  A snapshot of the user-to-manager mappings in this hierarchy.
+   *          The manager DN will be {@code null} for users without a
+   *          manager.
+   */
+  public synchronized Map<DN,DN> getManagerMap()
+  {
+    return Collections.unmodifiableMap(new LinkedHashMap<>(managers));
+  }
+
+
+
+  /**
+   * Retrieves the number of users in this hierarchy.
+   *
+   * @return  The number of users in this hierarchy.
+   */
+  public synchronized int size()
+  {
+    return managers.size();
+  }
+
+
+
+  /**
+   * Removes all users from this hierarchy.
+   */
+  public synchronized void clear()
+  {
+    managers.clear();
+    directReports.clear();
+  }
+
+
+
+  /**
+   * Removes the specified user from the set of direct reports for the given
+   * manager.
+   *
+   * @param  managerDN  The DN of the manager.
+   * @param  userDN     The DN of the user to remove from the manager's direct
+   *                    reports.
+   */
+  private void removeDirectReport(final DN managerDN, final DN userDN)
+  {
+    final Set<DN> reports = directReports.get(managerDN);
+    if (reports != null)
+    {
+      reports.remove(userDN);
+      if (reports.isEmpty())
+      {
+        directReports.remove(managerDN);
+      }
+    }
+  }
+}
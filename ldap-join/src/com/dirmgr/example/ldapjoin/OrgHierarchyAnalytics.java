@@ -0,0 +1,917 @@
+/*
+ * Copyright 2019 Neil A. Wilson
+ * All Rights Reserved.
+ */
+/*
+ * Copyright (C) 2019 Neil A. Wilson
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPLv2 only)
+ * or the terms of the GNU Lesser General Public License (LGPLv2.1 only)
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, see <http://www.gnu.org/licenses>.
+ */
+/*
+ * Copyright 2019 Neil A. Wilson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dirmgr.example.ldapjoin;
+
+
+
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import com.unboundid.asn1.ASN1OctetString;
+import com.unboundid.ldap.sdk.DN;
+import com.unboundid.ldap.sdk.Filter;
+import com.unboundid.ldap.sdk.LDAPConnection;
+import com.unboundid.ldap.sdk.LDAPException;
+import com.unboundid.ldap.sdk.LDAPInterface;
+import com.unboundid.ldap.sdk.ResultCode;
+import com.unboundid.ldap.sdk.SearchRequest;
+import com.unboundid.ldap.sdk.SearchResult;
+import com.unboundid.ldap.sdk.SearchResultEntry;
+import com.unboundid.ldap.sdk.SearchResultListener;
+import com.unboundid.ldap.sdk.SearchResultReference;
+import com.unboundid.ldap.sdk.SearchScope;
+import com.unboundid.ldap.sdk.controls.SimplePagedResultsControl;
+import com.unboundid.util.Debug;
+import com.unboundid.util.LDAPTestUtils;
+import com.unboundid.util.StaticUtils;
+import com.unboundid.util.ThreadSafety;
+import com.unboundid.util.ThreadSafetyLevel;
+import com.unboundid.util.args.ArgumentException;
+import com.unboundid.util.args.ArgumentParser;
+import com.unboundid.util.args.BooleanArgument;
+import com.unboundid.util.args.FileArgument;
+import com.unboundid.util.args.StringArgument;
+
+
+
+/**
+ * This class provides a mechanism for computing metrics about the management
+ * hierarchy for every user in the directory, including the depth of each user
+ * below the top of the organization, the number of direct reports for each
+ * manager (their span of control), and the total number of users in each
+ * manager's reporting subtree.
+ * <BR><BR>
+ * Rather than issuing a join search for each manager, the manager
+ * relationships are loaded once with a paged search that only retrieves the
+ * manager attribute.  Each user is then assigned an integer index, and the
+ * hierarchy is represented with primitive arrays:  the index of each user's
+ * manager, and a compressed list of each manager's direct reports.  The
+ * metrics are computed with a fork/join traversal of that hierarchy, so the
+ * work for separate parts of the organization is spread across all of the
+ * available processors.
+ * <BR><BR>
+ * Users whose manager is not among the loaded users are treated as being at
+ * the top of the organization.  Users in a management cycle (or below one)
+ * cannot be reached from the top of the organization, so they are reported
+ * with a depth of -1.
+ */
+@ThreadSafety(level=ThreadSafetyLevel.NOT_THREADSAFE)
+public final class OrgHierarchyAnalytics
+{
+  /**
+   * The maximum depth at which a separate fork/join task will be created for
+   * each manager.  Subtrees below this depth will be processed iteratively by
+   * the task that reaches them, so that an unusually deep hierarchy cannot
+   * exhaust the thread stack.
+   */
+  private static final int MAX_FORK_DEPTH = 64;
+
+
+
+  /**
+   * The number of entries to request in each page when loading the manager
+   * relationships.
+   */
+  private static final int LOAD_PAGE_SIZE = 1000;
+
+
+
+  /**
+   * The number of low-order bits of a report sort key that hold the user
+   * index.
+   */
+  private static final int USER_INDEX_BITS = 31;
+
+
+
+  /**
+   * The mask used to extract the user index from a report sort key.
+   */
+  private static final long USER_INDEX_MASK = (1L << USER_INDEX_BITS) - 1L;
+
+
+
+  /**
+   * The sort orders that may be used for the report.
+   */
+  public enum SortOrder
+  {
+    /**
+     * Sort by the total number of users in each manager's reporting subtree,
+     * in descending order.
+     */
+    TOTAL_REPORTS,
+
+
+
+    /**
+     * Sort by the number of direct reports for each manager, in descending
+     * order.
+     */
+    DIRECT_REPORTS,
+
+
+
+    /**
+     * Sort by the depth of each user in the hierarchy, in descending order.
+     */
+    DEPTH;
+  }
+
+
+
+  // The index of the first direct report for each user in the directReports
+  // array.  The direct reports for user i are at positions
+  // directReportStart[i] (inclusive) through directReportStart[i+1]
+  // (exclusive).  The last user index is a virtual root whose direct reports
+  // are the users at the top of the organization.
+  private final int[] directReportStart;
+
+  // The indexes of the direct reports for each user, grouped by manager.
+  private final int[] directReports;
+
+  // The depth of each user below the top of the organization, or -1 for
+  // users that cannot be reached from the top of the organization.
+  private final int[] depths;
+
+  // The number of users in each user's reporting subtree (not including that
+  // user).
+  private final int[] totalReports;
+
+  // The number of users whose manager was not among the loaded users.
+  private final int danglingManagerReferences;
+
+  // The DNs of the users, in the order that they were loaded.
+  private final String[] userDNs;
+
+
+
+  /**
+   * Creates a new set of org hierarchy analytics from the provided
+   * information and computes the metrics for all users.
+   *
+   * @param  userDNs                    The DNs of the users in the
+   *                                    hierarchy.
+   * @param  managerIndexes             The index (in the userDNs array) of
+   *                                    each user's manager, or -1 for a user
+   *                                    that doesn't have a manager among the
+   *                                    provided users.
+   * @param  danglingManagerReferences  The number of users whose manager was
+   *                                    not among the provided users.
+   * @param  pool                       The fork/join pool to use to compute
+   *                                    the metrics.
+   */
+  private OrgHierarchyAnalytics(final String[] userDNs,
+                                final int[] managerIndexes,
+                                final int danglingManagerReferences,
+                                final ForkJoinPool pool)
+  {
+    this.userDNs = userDNs;
+    this.danglingManagerReferences = danglingManagerReferences;
+
+    // Build the compressed direct reports arrays, using an extra index for
+    // a virtual root above all of the users that don't have a manager.
+    final int numUsers = userDNs.length;
+    final int virtualRoot = numUsers;
+    directReportStart = new int[numUsers + 2];
+    for (int i=0; i < numUsers; i++)
+    {
+      final int managerIndex =
+           (managerIndexes[i] < 0) ? virtualRoot : managerIndexes[i];
+      directReportStart[managerIndex + 1]++;
+    }
+
+    for (int i=1; i < directReportStart.length; i++)
+    {
+      directReportStart[i] += directReportStart[i-1];
+    }
+
+    directReports = new int[numUsers];
+    final int[] nextPosition =
+         Arrays.copyOf(directReportStart, numUsers + 1);
+    for (int i=0; i < numUsers; i++)
+    {
+      final int managerIndex =
+           (managerIndexes[i] < 0) ? virtualRoot : managerIndexes[i];
+      directReports[nextPosition[managerIndex]++] = i;
+    }
+
+    depths = new int[numUsers + 1];
+    Arrays.fill(depths, -1);
+    totalReports = new int[numUsers + 1];
+
+    pool.invoke(new SubtreeTask(virtualRoot, -1));
+  }
+
+
+
+  /**
+   * Computes the metrics for the provided user-to-manager mappings, like
+   * those maintained in an {@link OrgHierarchy}.
+   *
+   * @param  managerMap  A map of the users in the hierarchy, mapped from the
+   *                     user DN to the DN of that user's manager (which may
+   *                     be {@code null}).
+   *
+   * @return  The computed analytics.
+   */
+  public static OrgHierarchyAnalytics analyze(final Map<DN,DN> managerMap)
+  {
+    final String[] userDNs = new String[managerMap.size()];
+    final Map<DN,Integer> userIndexes = new HashMap<>(managerMap.size() * 2);
+    int i = 0;
+    for (final DN userDN : managerMap.keySet())
+    {
+      userDNs[i] = userDN.toString();
+      userIndexes.put(userDN, i++);
+    }
+
+    final int[] managerIndexes = new int[userDNs.length];
+    int danglingManagerReferences = 0;
+    i = 0;
+    for (final DN managerDN : managerMap.values())
+    {
+      final Integer managerIndex =
+           (managerDN == null) ? null : userIndexes.get(managerDN);
+      if (managerIndex == null)
+      {
+        managerIndexes[i++] = -1;
+        if (managerDN != null)
+        {
+          danglingManagerReferences++;
+        }
+      }
+      else
+      {
+        managerIndexes[i++] = managerIndex;
+      }
+    }
+
+    return new OrgHierarchyAnalytics(userDNs, managerIndexes,
+         danglingManagerReferences, ForkJoinPool.commonPool());
+  }
+
+
+
+  /**
+   * Loads the manager relationships for all users that match the provided
+   * filter with a paged search, and computes the metrics for all of them.
+   *
+   * @param  connection  The connection to use to communicate with the
+   *                     directory server.
+   * @param  baseDN      The base DN to use for the search.
+   * @param  userFilter  The filter to use to identify user entries.
+   *
+   * @return  The computed analytics.
+   *
+   * @throws  LDAPException  If a problem is encountered while loading the
+   *                         manager relationships.
+   */
+  public static OrgHierarchyAnalytics load(final LDAPInterface connection,
+                                           final String baseDN,
+                                           final Filter userFilter)
+         throws LDAPException
+  {
+    final List<String> userDNList = new ArrayList<>(10_000);
+    final List<String> managerDNList = new ArrayList<>(10_000);
+    final Map<String,Integer> userIndexes = new HashMap<>(20_000);
+    final SearchResultListener listener = new SearchResultListener()
+    {
+      private static final long serialVersionUID = 1L;
+
+      @Override()
+      public void searchEntryReturned(final SearchResultEntry entry)
+      {
+        final String normalizedDN;
+        try
+        {
+          normalizedDN = entry.getParsedDN().toNormalizedString();
+        }
+        catch (final LDAPException e)
+        {
+          // This should never happen, since the DN came from the server.
+          Debug.debugException(e);
+          return;
+        }
+
+        userIndexes.put(normalizedDN, userDNList.size());
+        userDNList.add(entry.getDN());
+
+        // Store the normalized manager DN so that it can be resolved to an
+        // index once all of the users have been loaded.
+        String normalizedManagerDN = null;
+        final String managerDN = entry.getAttributeValue("manager");
+        if (managerDN != null)
+        {
+          try
+          {
+            normalizedManagerDN = DN.normalize(managerDN);
+          }
+          catch (final LDAPException e)
+          {
+            Debug.debugException(e);
+          }
+        }
+        managerDNList.add(normalizedManagerDN);
+      }
+
+      @Override()
+      public void searchReferenceReturned(
+                       final SearchResultReference searchReference)
+      {
+        // No implementation is required.
+      }
+    };
+
+    ASN1OctetString cookie = null;
+    while (true)
+    {
+      final SearchRequest searchRequest = new SearchRequest(listener, baseDN,
+           SearchScope.SUB, userFilter, "manager");
+      searchRequest.addControl(
+           new SimplePagedResultsControl(LOAD_PAGE_SIZE, cookie, true));
+
+      final SearchResult searchResult = connection.search(searchRequest);
+      LDAPTestUtils.assertResultCodeEquals(searchResult, ResultCode.SUCCESS);
+
+      final SimplePagedResultsControl responseControl =
+           SimplePagedResultsControl.get(searchResult);
+      if ((responseControl == null) ||
+           (! responseControl.moreResultsToReturn()))
+      {
+        break;
+      }
+
+      cookie = responseControl.getCookie();
+    }
+
+    final int[] managerIndexes = new int[userDNList.size()];
+    int danglingManagerReferences = 0;
+    for (int i=0; i < managerIndexes.length; i++)
+    {
+      final String managerDN = managerDNList.get(i);
+      final Integer managerIndex =
+           (managerDN == null) ? null : userIndexes.get(managerDN);
+      if (managerIndex == null)
+      {
+        managerIndexes[i] = -1;
+        if (managerDN != null)
+        {
+          danglingManagerReferences++;
+        }
+      }
+      else
+      {
+        managerIndexes[i] = managerIndex;
+      }
+    }
+
+    return new OrgHierarchyAnalytics(
+         userDNList.toArray(StaticUtils.NO_STRINGS), managerIndexes,
+         danglingManagerReferences, ForkJoinPool.commonPool());
+  }
+
+
+
+  /**
+   * Loads the manager relationships from the directory server, computes the
+   * metrics for every user, and writes a sorted report.
+   *
+   * @param  args  The command-line arguments provided to this program.  The
+   *               "--sortBy" argument may be used to sort the report by
+   *               "totalReports" (the default), "directReports", or "depth".
+   *               The "--outputFile" argument may be used to write the report
+   *               to a file instead of standard output, and the
+   *               "--includeAllUsers" argument may be used to include users
+   *               without any direct reports in the report.
+   *
+   * @throws  LDAPException  If a problem is encountered while communicating
+   *                         with the directory server.
+   *
+   * @throws  IOException  If a problem is encountered while writing the
+   *                       report.
+   */
+  public static void main(final String... args)
+         throws LDAPException, IOException
+  {
+    final StringArgument sortByArgument;
+    final FileArgument outputFileArgument;
+    final BooleanArgument includeAllUsersArgument;
+    try
+    {
+      final ArgumentParser parser = new ArgumentParser(
+           "org-hierarchy-analytics",
+           "Computes the depth, span of control, and total number of " +
+                "reports for every user in the directory.");
+
+      final LinkedHashSet<String> sortByAllowedValues =
+           new LinkedHashSet<>(3);
+      sortByAllowedValues.add("totalReports");
+      sortByAllowedValues.add("directReports");
+      sortByAllowedValues.add("depth");
+      sortByArgument = new StringArgument(null, // No short identifier
+           "sortBy", // Long identifier
+           false, // Not required
+           1, // Only one occurrence
+           "{totalReports|directReports|depth}", // Value placeholder
+           "The metric by which the report should be sorted, in descending " +
+                "order.",
+           sortByAllowedValues,
+           "totalReports"); // Default value
+      sortByArgument.addLongIdentifier("sort-by", true);
+      parser.addArgument(sortByArgument);
+
+      outputFileArgument = new FileArgument(null, // No short identifier
+           "outputFile", // Long identifier
+           false, // Not required
+           1, // Only one occurrence
+           "{path}", // Value placeholder
+           "The path to a file to which the report should be written.  If " +
+                "this is not provided, then the report will be written to " +
+                "standard output.",
+           false, // File doesn't need to exist
+           true, // Parent must exist
+           true, // Must be file
+           false); // Must be directory
+      outputFileArgument.addLongIdentifier("output-file", true);
+      parser.addArgument(outputFileArgument);
+
+      includeAllUsersArgument = new BooleanArgument(null, // No short identifier
+           "includeAllUsers", // Long identifier
+           "Indicates that the report should include users who do not have " +
+                "any direct reports.");
+      includeAllUsersArgument.addLongIdentifier("include-all-users", true);
+      parser.addArgument(includeAllUsersArgument);
+
+      parser.parse(args);
+    }
+    catch (final ArgumentException e)
+    {
+      throw new LDAPException(ResultCode.PARAM_ERROR,
+           "Invalid command-line arguments:  " + e.getMessage(), e);
+    }
+
+    final SortOrder sortOrder;
+    if (sortByArgument.getValue().equalsIgnoreCase("directReports"))
+    {
+      sortOrder = SortOrder.DIRECT_REPORTS;
+    }
+    else if (sortByArgument.getValue().equalsIgnoreCase("depth"))
+    {
+      sortOrder = SortOrder.DEPTH;
+    }
+    else
+    {
+      sortOrder = SortOrder.TOTAL_REPORTS;
+    }
+
+    final long loadStartTime = System.nanoTime();
+    final OrgHierarchyAnalytics analytics;
+    try (LDAPConnection connection =
+              RetrieveUserManagerAndPeers.getConnection())
+    {
+      analytics = load(connection, "dc=example,dc=com",
+           Filter.createEqualityFilter("objectClass", "person"));
+    }
+    final long loadMillis = (System.nanoTime() - loadStartTime) / 1_000_000L;
+
+    final long reportStartTime = System.nanoTime();
+    if (outputFileArgument.isPresent())
+    {
+      try (OutputStream outputStream =
+                new FileOutputStream(outputFileArgument.getValue()))
+      {
+        analytics.writeReport(outputStream, sortOrder,
+             includeAllUsersArgument.isPresent());
+      }
+    }
+    else
+    {
+      analytics.writeReport(System.out, sortOrder,
+           includeAllUsersArgument.isPresent());
+    }
+    final long reportMillis =
+         (System.nanoTime() - reportStartTime) / 1_000_000L;
+
+    System.err.println("Users:  " + analytics.getUserCount());
+    System.err.println("Maximum depth:  " + analytics.getMaxDepth());
+    System.err.println("Users in or below a management cycle:  " +
+         analytics.getUnreachableUserCount());
+    System.err.println("Users whose manager was not found:  " +
+         analytics.getDanglingManagerReferences());
+    System.err.println("Load and analysis time:  " + loadMillis + " ms");
+    System.err.println("Report time:  " + reportMillis + " ms");
+  }
+
+
+
+  /**
+   * Retrieves the number of users in the hierarchy.
+   *
+   * @return  The number of users in the hierarchy.
+   */
+  public int getUserCount()
+  {
+    return userDNs.length;
+  }
+
+
+
+  /**
+   * Retrieves the DN of the user with the specified index.
+   *
+   * @param  userIndex  The index of the user.
+   *
+   * @return  The DN of the user with the specified index.
+   */
+  public String getUserDN(final int userIndex)
+  {
+    return userDNs[userIndex];
+  }
+
+
+
+  /**
+   * Retrieves the depth of the specified user below the top of the
+   * organization.  Users without a manager have a depth of zero.
+   *
+   * @param  userIndex  The index of the user.
+   *
+   * @return  The depth of the specified user, or -1 if the user is in or
+   *          below a management cycle.
+   */
+  public int getDepth(final int userIndex)
+  {
+    return depths[userIndex];
+  }
+
+
+
+  /**
+   * Retrieves the number of direct reports (the span of control) for the
+   * specified user.
+   *
+   * @param  userIndex  The index of the user.
+   *
+   * @return  The number of direct reports for the specified user.
+   */
+  public int getDirectReportCount(final int userIndex)
+  {
+    return directReportStart[userIndex + 1] - directReportStart[userIndex];
+  }
+
+
+
+  /**
+   * Retrieves the total number of users in the specified user's reporting
+   * subtree, not including that user.
+   *
+   * @param  userIndex  The index of the user.
+   *
+   * @return  The total number of users in the specified user's reporting
+   *          subtree, or zero if the user is in or below a management cycle.
+   */
+  public int getTotalReportCount(final int userIndex)
+  {
+    return totalReports[userIndex];
+  }
+
+
+
+  /**
+   * Retrieves the maximum depth of any user in the hierarchy.
+   *
+   * @return  The maximum depth of any user in the hierarchy, or -1 if there
+   *          are no reachable users.
+   */
+  public int getMaxDepth()
+  {
+    int maxDepth = -1;
+    for (int i=0; i < userDNs.length; i++)
+    {
+      maxDepth = Math.max(maxDepth, depths[i]);
+    }
+
+    return maxDepth;
+  }
+
+
+
+  /**
+   * Retrieves the number of users that cannot be reached from the top of the
+   * organization because they are in or below a management cycle.
+   *
+   * @return  The number of users in or below a management cycle.
+   */
+  public int getUnreachableUserCount()
+  {
+    int count = 0;
+    for (int i=0; i < userDNs.length; i++)
+    {
+      if (depths[i] < 0)
+      {
+        count++;
+      }
+    }
+
+    return count;
+  }
+
+
+
+  /**
+   * Retrieves the number of users whose manager was not among the loaded
+   * users.  Those users are treated as being at the top of the organization.
+   *
+   * @return  The number of users whose manager was not among the loaded
+   *          users.
+   */
+  public int getDanglingManagerReferences()
+  {
+    return danglingManagerReferences;
+  }
+
+
+
+  /**
+   * Writes a report with the metrics for each user, in CSV format, sorted in
+   * descending order of the specified metric.  Users with the same value for
+   * that metric are written in the order that they were loaded.
+   *
+   * @param  outputStream     The output stream to which the report should be
+   *                          written.  It will be flushed but not closed.
+   * @param  sortOrder        The metric by which to sort the report.
+   * @param  includeAllUsers  Indicates whether to include users who don't
+   *                          have any direct reports.
+   *
+   * @throws  IOException  If a problem is encountered while writing the
+   *                       report.
+   */
+  public void writeReport(final OutputStream outputStream,
+                          final SortOrder sortOrder,
+                          final boolean includeAllUsers)
+         throws IOException
+  {
+    // Pack the (inverted) sort key into the upper bits of a long and the user
+    // index into the lower 31 bits, so that the users can be sorted with a
+    // primitive parallel sort rather than by boxing them.  The metric can be
+    // -1 (the depth of a user in a management cycle), so the inverted value
+    // is computed as a long and can be as large as 2^31.  Shifting it by 31
+    // rather than 32 keeps the key positive, so those users sort last.
+    long[] sortKeys = new long[userDNs.length];
+    int numKeys = 0;
+    for (int i=0; i < userDNs.length; i++)
+    {
+      if ((! includeAllUsers) && (getDirectReportCount(i) == 0))
+      {
+        continue;
+      }
+
+      final int metric;
+      switch (sortOrder)
+      {
+        case DIRECT_REPORTS:
+          metric = getDirectReportCount(i);
+          break;
+        case DEPTH:
+          metric = depths[i];
+          break;
+        case TOTAL_REPORTS:
+        default:
+          metric = totalReports[i];
+          break;
+      }
+
+      sortKeys[numKeys++] =
+           ((((long) Integer.MAX_VALUE) - metric) << USER_INDEX_BITS) | i;
+    }
+
+    sortKeys = Arrays.copyOf(sortKeys, numKeys);
+    Arrays.parallelSort(sortKeys);
+
+    final BufferedWriter writer = new BufferedWriter(
+         new OutputStreamWriter(outputStream, StandardCharsets.UTF_8),
+         65_536);
+    writer.write("dn,depth,directReports,totalReports");
+    writer.newLine();
+
+    final StringBuilder buffer = new StringBuilder(200);
+    for (final long sortKey : sortKeys)
+    {
+      final int userIndex = (int) (sortKey & USER_INDEX_MASK);
+
+      buffer.setLength(0);
+      buffer.append('"');
+      buffer.append(userDNs[userIndex].replace("\"", "\"\""));
+      buffer.append("\",");
+      buffer.append(depths[userIndex]);
+      buffer.append(',');
+      buffer.append(getDirectReportCount(userIndex));
+      buffer.append(',');
+      buffer.append(totalReports[userIndex]);
+
+      writer.append(buffer);
+      writer.newLine();
+    }
+
+    writer.flush();
+  }
+
+
+
+  /**
+   * Computes the depth of each user in a reporting subtree, and the total
+   * number of reports for each manager in that subtree, using an explicit
+   * stack rather than recursion.
+   *
+   * @param  rootIndex  The index of the user at the top of the subtree.
+   * @param  rootDepth  The depth of the user at the top of the subtree.
+   *
+   * @return  The number of users in the subtree, including the user at the
+   *          top.
+   */
+  private int computeSubtreeIteratively(final int rootIndex,
+                                        final int rootDepth)
+  {
+    // Visit the users in depth-first preorder, recording the order in which
+    // they were visited.  Processing them in the reverse of that order
+    // guarantees that every user's reports are processed before the user.
+    int[] visitOrder = new int[16];
+    int numVisited = 0;
+    int[] stack = new int[16];
+    int stackSize = 0;
+
+    depths[rootIndex] = rootDepth;
+    stack[stackSize++] = rootIndex;
+    while (stackSize > 0)
+    {
+      final int userIndex = stack[--stackSize];
+      if (numVisited == visitOrder.length)
+      {
+        visitOrder = Arrays.copyOf(visitOrder, numVisited * 2);
+      }
+      visitOrder[numVisited++] = userIndex;
+
+      final int childDepth = depths[userIndex] + 1;
+      for (int p = directReportStart[userIndex];
+           p < directReportStart[userIndex + 1]; p++)
+      {
+        final int reportIndex = directReports[p];
+        depths[reportIndex] = childDepth;
+        if (stackSize == stack.length)
+        {
+          stack = Arrays.copyOf(stack, stackSize * 2);
+        }
+        stack[stackSize++] = reportIndex;
+      }
+    }
+
+    for (int v = numVisited - 1; v >= 0; v--)
+    {
+      final int userIndex = visitOrder[v];
+      int subtreeReports = 0;
+      for (int p = directReportStart[userIndex];
+           p < directReportStart[userIndex + 1]; p++)
+      {
+        subtreeReports += totalReports[directReports[p]] + 1;
+      }
+      totalReports[userIndex] = subtreeReports;
+    }
+
+    return numVisited;
+  }
+
+
+
+  /**
+   * This class provides a fork/join task that computes the metrics for a
+   * reporting subtree, forking a separate task for each direct report who is
+   * also a manager.
+   */
+  private final class SubtreeTask
+          extends RecursiveTask<Integer>
+  {
+    /**
+     * The serial version UID for this serializable class.
+     */
+    private static final long serialVersionUID = 1L;
+
+
+
+    // The depth of the user at the top of the subtree.
+    private final int depth;
+
+    // The index of the user at the top of the subtree.
+    private final int userIndex;
+
+
+
+    /**
+     * Creates a new subtree task.
+     *
+     * @param  userIndex  The index of the user at the top of the subtree.
+     * @param  depth      The depth of the user at the top of the subtree.
+     */
+    private SubtreeTask(final int userIndex, final int depth)
+    {
+      this.userIndex = userIndex;
+      this.depth = depth;
+    }
+
+
+
+    /**
+     * Computes the metrics for the subtree.
+     *
+     * @return  The number of users in the subtree, including the user at the
+     *          top.
+     */
+    @Override()
+    protected Integer compute()
+    {
+      if (depth >= MAX_FORK_DEPTH)
+      {
+        return computeSubtreeIteratively(userIndex, depth);
+      }
+
+      depths[userIndex] = depth;
+
+      final List<SubtreeTask> forkedTasks = new ArrayList<>(
+           directReportStart[userIndex + 1] - directReportStart[userIndex]);
+      int subtreeReports = 0;
+      for (int p = directReportStart[userIndex];
+           p < directReportStart[userIndex + 1]; p++)
+      {
+        final int reportIndex = directReports[p];
+        if (directReportStart[reportIndex + 1] ==
+            directReportStart[reportIndex])
+        {
+          // Handle users without any reports inline rather than creating a
+          // task for each of them.
+          depths[reportIndex] = depth + 1;
+          totalReports[reportIndex] = 0;
+          subtreeReports++;
+        }
+        else
+        {
+          final SubtreeTask task = new SubtreeTask(reportIndex, depth + 1);
+          task.fork();
+          forkedTasks.add(task);
+        }
+      }
+
+      for (int i = forkedTasks.size() - 1; i >= 0; i--)
+      {
+        subtreeReports += forkedTasks.get(i).join();
+      }
+
+      totalReports[userIndex] = subtreeReports;
+      return subtreeReports + 1;
+    }
+  }
+}
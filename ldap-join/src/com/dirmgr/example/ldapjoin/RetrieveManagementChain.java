@@ -0,0 +1,672 @@
+/*
+ * Copyright 2019 Neil A. Wilson
+ * All Rights Reserved.
+ */
+/*
+ * Copyright (C) 2019 Neil A. Wilson
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPLv2 only)
+ * or the terms of the GNU Lesser General Public License (LGPLv2.1 only)
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, see <http://www.gnu.org/licenses>.
+ */
+/*
+ * Copyright 2019 Neil A. Wilson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dirmgr.example.ldapjoin;
+
+
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.unboundid.ldap.sdk.DN;
+import com.unboundid.ldap.sdk.DereferencePolicy;
+import com.unboundid.ldap.sdk.Entry;
+import com.unboundid.ldap.sdk.Filter;
+import com.unboundid.ldap.sdk.LDAPConnection;
+import com.unboundid.ldap.sdk.LDAPException;
+import com.unboundid.ldap.sdk.LDAPInterface;
+import com.unboundid.ldap.sdk.ResultCode;
+import com.unboundid.ldap.sdk.SearchRequest;
+import com.unboundid.ldap.sdk.SearchResult;
+import com.unboundid.ldap.sdk.SearchResultEntry;
+import com.unboundid.ldap.sdk.SearchScope;
+import com.unboundid.ldap.sdk.unboundidds.controls.JoinBaseDN;
+import com.unboundid.ldap.sdk.unboundidds.controls.JoinRequestControl;
+import com.unboundid.ldap.sdk.unboundidds.controls.JoinRequestValue;
+import com.unboundid.ldap.sdk.unboundidds.controls.JoinResultControl;
+import com.unboundid.ldap.sdk.unboundidds.controls.JoinRule;
+import com.unboundid.ldap.sdk.unboundidds.controls.JoinedEntry;
+import com.unboundid.util.ColumnFormatter;
+import com.unboundid.util.Debug;
+import com.unboundid.util.FormattableColumn;
+import com.unboundid.util.HorizontalAlignment;
+import com.unboundid.util.ThreadSafety;
+import com.unboundid.util.ThreadSafetyLevel;
+
+
+
+/**
+ * This class provides a sample program that retrieves the entire management
+ * chain for one or more users, from the user's manager all the way up to the
+ * top of the organization.  If the server supports the LDAP join control,
+ * then it will use a set of nested DN joins on the manager attribute to
+ * retrieve several levels of the chain in a single search, and will only issue
+ * another search if the chain is deeper than the configured join depth.  If
+ * the server does not support the join control, then it will fall back to a
+ * breadth-first traversal that retrieves all of the managers at the same level
+ * of the hierarchy (for all of the target users) in a single search.  Either
+ * way, the number of searches required depends on the depth of the hierarchy
+ * rather than on the number of entries in the chains.
+ * <BR><BR>
+ * Each chain will stop if it encounters an entry that it has already seen,
+ * so that a manager attribute that points back down the chain cannot cause an
+ * infinite loop.
+ */
+@ThreadSafety(level=ThreadSafetyLevel.NOT_THREADSAFE)
+public final class RetrieveManagementChain
+{
+  /**
+   * The name of the attribute that holds the DN of a user's manager.
+   */
+  private static final String ATTR_MANAGER = "manager";
+
+
+
+  /**
+   * The name of the attribute that holds a user's user ID.
+   */
+  private static final String ATTR_USER_ID = "uid";
+
+
+
+  /**
+   * The default number of levels of the management chain that will be
+   * requested in each search that uses the join control.
+   */
+  public static final int DEFAULT_MAX_JOIN_DEPTH = 10;
+
+
+
+  /**
+   * The maximum number of components to include in a single OR filter.
+   */
+  private static final int MAX_FILTER_COMPONENTS = 500;
+
+
+
+  // Indicates whether to attempt to use the join control.
+  private boolean useJoinControl;
+
+  // The maximum number of levels to request in a single nested join.
+  private final int maxJoinDepth;
+
+  // The connection to use to communicate with the directory server.
+  private final LDAPInterface connection;
+
+  // The number of searches that have been issued.
+  private long searchCount;
+
+  // The base DN to use for all searches.
+  private final String searchBaseDN;
+
+  // The attributes to request from each entry.
+  private final String[] requestedAttributes;
+
+
+
+  /**
+   * Runs this program with the provided set of arguments.
+   *
+   * @param  args  The command-line arguments provided to this program.  If
+   *               any arguments are provided, then they will be used as the
+   *               user IDs of the users whose management chains should be
+   *               retrieved.  Otherwise, the chain for the same user as in
+   *               {@link RetrieveUserManagerAndPeers} will be retrieved.
+   *
+   * @throws  LDAPException  If a problem is encountered while communicating
+   *                         with the Directory Server.
+   */
+  public static void main(final String... args)
+         throws LDAPException
+  {
+    final String[] targetUserIDs;
+    if (args.length > 0)
+    {
+      targetUserIDs = args;
+    }
+    else
+    {
+      targetUserIDs = new String[] { "ernest.employee" };
+    }
+
+    try (LDAPConnection connection =
+              RetrieveUserManagerAndPeers.getConnection())
+    {
+      final RetrieveManagementChain chainRetriever =
+           new RetrieveManagementChain(connection, "dc=example,dc=com",
+                DEFAULT_MAX_JOIN_DEPTH, "givenName", "sn", "mail",
+                "telephoneNumber");
+      final Map<String,List<Entry>> chains =
+           chainRetriever.getManagementChains(targetUserIDs);
+
+      final ColumnFormatter columnFormatter = new ColumnFormatter(
+           new FormattableColumn(5, HorizontalAlignment.RIGHT, "Level"),
+           new FormattableColumn(10, HorizontalAlignment.LEFT, "First Name"),
+           new FormattableColumn(10, HorizontalAlignment.LEFT, "Last Name"),
+           new FormattableColumn(32, HorizontalAlignment.LEFT, "Email Address"),
+           new FormattableColumn(15, HorizontalAlignment.LEFT, "Phone Number"));
+      for (final Map.Entry<String,List<Entry>> e : chains.entrySet())
+      {
+        System.out.println("Management chain for user " + e.getKey() + ':');
+        for (final String headerLine : columnFormatter.getHeaderLines(true))
+        {
+          System.out.println(headerLine);
+        }
+
+        int level = 0;
+        for (final Entry chainEntry : e.getValue())
+        {
+          System.out.println(columnFormatter.formatRow(
+               level++,
+               chainEntry.getAttributeValue("givenName"),
+               chainEntry.getAttributeValue("sn"),
+               chainEntry.getAttributeValue("mail"),
+               chainEntry.getAttributeValue("telephoneNumber")));
+        }
+
+        System.out.println();
+      }
+
+      System.out.println("Searches issued:  " +
+           chainRetriever.getSearchCount());
+    }
+  }
+
+
+
+  /**
+   * Creates a new instance of this management chain retriever with the
+   * provided information.
+   *
+   * @param  connection           The connection to use to communicate with
+   *                              the directory server.  It must not be
+   *                              {@code null}.
+   * @param  searchBaseDN         The base DN to use for all searches.  It
+   *                              must not be {@code null}.
+   * @param  maxJoinDepth         The maximum number of levels of the
+   *                              management chain to request in a single
+   *                              search that uses the join control.  It must
+   *                              be greater than zero.
+   * @param  requestedAttributes  The attributes to request from each entry in
+   *                              the chain.  The uid and manager attributes
+   *                              will always be requested.
+   */
+  public RetrieveManagementChain(final LDAPInterface connection,
+                                 final String searchBaseDN,
+                                 final int maxJoinDepth,
+                                 final String... requestedAttributes)
+  {
+    this.connection = connection;
+    this.searchBaseDN = searchBaseDN;
+    this.maxJoinDepth = Math.max(1, maxJoinDepth);
+
+    final LinkedHashSet<String> attributeSet =
+         new LinkedHashSet<>(Arrays.asList(requestedAttributes));
+    attributeSet.add(ATTR_USER_ID);
+    attributeSet.add(ATTR_MANAGER);
+    this.requestedAttributes = attributeSet.toArray(new String[0]);
+
+    useJoinControl = true;
+    searchCount = 0L;
+  }
+
+
+
+  /**
+   * Retrieves the management chains for the users with the specified user
+   * IDs.
+   *
+   * @param  userIDs  The user IDs of the users for whom to retrieve the
+   *                  management chains.
+   *
+   * @return  A map of the management chains that were retrieved, mapped from
+   *          the user ID.  Each chain starts with the entry for the user,
+   *          followed by that user's manager, and so on up to the top of the
+   *          organization.  Users that could not be found will not be
+   *          included in the map.
+   *
+   * @throws  LDAPException  If a problem is encountered while communicating
+   *                         with the Directory Server.
+   */
+  public Map<String,List<Entry>> getManagementChains(final String... userIDs)
+         throws LDAPException
+  {
+    final List<Filter> userFilters = new ArrayList<>(userIDs.length);
+    for (final String userID : userIDs)
+    {
+      userFilters.add(Filter.createEqualityFilter(ATTR_USER_ID, userID));
+    }
+
+    if (useJoinControl)
+    {
+      try
+      {
+        return getChainsWithJoin(userFilters);
+      }
+      catch (final LDAPException e)
+      {
+        Debug.debugException(e);
+        if (e.getResultCode() != ResultCode.UNAVAILABLE_CRITICAL_EXTENSION)
+        {
+          throw e;
+        }
+
+        // The server doesn't support the join control, so don't try to use it
+        // again.
+        useJoinControl = false;
+      }
+    }
+
+    return getChainsWithBreadthFirstSearch(userFilters);
+  }
+
+
+
+  /**
+   * Indicates whether this chain retriever will attempt to use the join
+   * control.  This will be set to {@code false} if the server rejects a
+   * search that includes the join control because it does not support it.
+   *
+   * @return  {@code true} if this chain retriever will attempt to use the join
+   *          control, or {@code false} if not.
+   */
+  public boolean useJoinControl()
+  {
+    return useJoinControl;
+  }
+
+
+
+  /**
+   * Specifies whether this chain retriever should attempt to use the join
+   * control.
+   *
+   * @param  useJoinControl  Indicates whether this chain retriever should
+   *                         attempt to use the join control.
+   */
+  public void setUseJoinControl(final boolean useJoinControl)
+  {
+    this.useJoinControl = useJoinControl;
+  }
+
+
+
+  /**
+   * Retrieves the number of searches that have been issued by this chain
+   * retriever.
+   *
+   * @return  The number of searches that have been issued by this chain
+   *          retriever.
+   */
+  public long getSearchCount()
+  {
+    return searchCount;
+  }
+
+
+
+  /**
+   * Retrieves the management chains using nested DN joins.
+   *
+   * @param  userFilters  The filters that identify the target users.
+   *
+   * @return  A map of the management chains that were retrieved.
+   *
+   * @throws  LDAPException  If a problem is encountered while communicating
+   *                         with the Directory Server.
+   */
+  private Map<String,List<Entry>> getChainsWithJoin(
+                                       final List<Filter> userFilters)
+          throws LDAPException
+  {
+    // Build the nested join.  Each level uses the DN join rule to retrieve the
+    // manager of the entry from the level above it.
+    JoinRequestValue joinRequestValue = null;
+    for (int i=0; i < maxJoinDepth; i++)
+    {
+      joinRequestValue = new JoinRequestValue(
+           JoinRule.createDNJoin(ATTR_MANAGER),
+           JoinBaseDN.createUseCustomBaseDN(searchBaseDN),
+           SearchScope.SUB,
+           DereferencePolicy.NEVER,
+           null, // No size limit.
+           null, // No additional filter.
+           requestedAttributes,
+           false, // Include the entry even if it doesn't have a manager.
+           joinRequestValue);
+    }
+    final JoinRequestControl joinRequestControl =
+         new JoinRequestControl(joinRequestValue);
+
+    // Retrieve the entries for the target users, along with the first set of
+    // levels of their management chains.
+    final Map<String,List<Entry>> chains = new LinkedHashMap<>(10);
+    final Map<DN,List<List<Entry>>> incompleteChains = new HashMap<>(10);
+    for (final SearchResultEntry userEntry :
+         search(userFilters, joinRequestControl))
+    {
+      final List<Entry> chain = new ArrayList<>(10);
+      chain.add(userEntry);
+      chains.put(userEntry.getAttributeValue(ATTR_USER_ID), chain);
+      appendJoinedChain(chain, userEntry, incompleteChains);
+    }
+
+    // Keep going for any chains that are deeper than the nested join.  All of
+    // the chains that need to be continued will be handled in the same search.
+    while (! incompleteChains.isEmpty())
+    {
+      final Map<DN,List<List<Entry>>> continuedChains =
+           new HashMap<>(incompleteChains);
+      incompleteChains.clear();
+
+      final List<Filter> entryDNFilters =
+           new ArrayList<>(continuedChains.size());
+      for (final DN dn : continuedChains.keySet())
+      {
+        entryDNFilters.add(
+             Filter.createEqualityFilter("entryDN", dn.toString()));
+      }
+
+      for (final SearchResultEntry entry :
+           search(entryDNFilters, joinRequestControl))
+      {
+        final List<List<Entry>> chainsForEntry =
+             continuedChains.get(entry.getParsedDN());
+        if (chainsForEntry == null)
+        {
+          continue;
+        }
+
+        for (final List<Entry> chain : chainsForEntry)
+        {
+          appendJoinedChain(chain, entry, incompleteChains);
+        }
+      }
+    }
+
+    return chains;
+  }
+
+
+
+  /**
+   * Appends the entries from the nested join results in the provided entry to
+   * the given chain.  If the chain was cut off by the maximum join depth, then
+   * it will be added to the provided map so that it can be continued.
+   *
+   * @param  chain             The chain to which the entries should be
+   *                           appended.
+   * @param  entry             The entry that includes the join result
+   *                           control.  It must be the last entry in the
+   *                           chain.
+   * @param  incompleteChains  A map of the chains that should be continued,
+   *                           mapped from the DN of the last entry in each
+   *                           chain.
+   *
+   * @throws  LDAPException  If a problem is encountered while decoding the
+   *                         join result control.
+   */
+  private void appendJoinedChain(final List<Entry> chain,
+                                 final SearchResultEntry entry,
+                                 final Map<DN,List<List<Entry>>>
+                                      incompleteChains)
+          throws LDAPException
+  {
+    final JoinResultControl joinResultControl = JoinResultControl.get(entry);
+    if (joinResultControl == null)
+    {
+      throw new LDAPException(ResultCode.CONTROL_NOT_FOUND,
+           "Search result entry " + entry.getDN() + " did not include a " +
+                "join result control.");
+    }
+
+    final Set<DN> chainDNs = new HashSet<>(chain.size() * 2);
+    for (final Entry chainEntry : chain)
+    {
+      chainDNs.add(chainEntry.getParsedDN());
+    }
+
+    int depth = 0;
+    List<JoinedEntry> joinResults = joinResultControl.getJoinResults();
+    while (! joinResults.isEmpty())
+    {
+      // A user should only have a single manager, but if there are more, then
+      // we'll just follow the first.
+      final JoinedEntry managerEntry = joinResults.get(0);
+      if (! chainDNs.add(managerEntry.getParsedDN()))
+      {
+        // The management chain has a cycle.
+        return;
+      }
+
+      chain.add(managerEntry);
+      depth++;
+      joinResults = managerEntry.getNestedJoinResults();
+    }
+
+    // If we stopped because we reached the maximum join depth, and the last
+    // entry has a manager that isn't already in the chain, then the chain
+    // will need to be continued.
+    final Entry lastEntry = chain.get(chain.size() - 1);
+    final DN managerDN = getManagerDN(lastEntry);
+    if ((depth == maxJoinDepth) && (managerDN != null) &&
+         (! chainDNs.contains(managerDN)))
+    {
+      List<List<Entry>> chainsForEntry =
+           incompleteChains.get(lastEntry.getParsedDN());
+      if (chainsForEntry == null)
+      {
+        chainsForEntry = new ArrayList<>(1);
+        incompleteChains.put(lastEntry.getParsedDN(), chainsForEntry);
+      }
+
+      chainsForEntry.add(chain);
+    }
+  }
+
+
+
+  /**
+   * Retrieves the management chains using a breadth-first traversal of the
+   * hierarchy, in which all of the managers at the same level are retrieved
+   * in a single search.
+   *
+   * @param  userFilters  The filters that identify the target users.
+   *
+   * @return  A map of the management chains that were retrieved.
+   *
+   * @throws  LDAPException  If a problem is encountered while communicating
+   *                         with the Directory Server.
+   */
+  private Map<String,List<Entry>> getChainsWithBreadthFirstSearch(
+                                       final List<Filter> userFilters)
+          throws LDAPException
+  {
+    final List<SearchResultEntry> userEntries = search(userFilters, null);
+
+    // Retrieve all of the managers one level at a time.  Keep track of every
+    // DN that we have requested so that a cycle (or a manager that doesn't
+    // exist) doesn't cause us to keep requesting the same entries.
+    final Map<DN,Entry> entriesByDN = new HashMap<>(100);
+    final Set<DN> requestedDNs = new HashSet<>(100);
+    List<? extends Entry> currentLevel = userEntries;
+    while (! currentLevel.isEmpty())
+    {
+      final Set<DN> nextLevelDNs = new LinkedHashSet<>(currentLevel.size());
+      for (final Entry entry : currentLevel)
+      {
+        entriesByDN.put(entry.getParsedDN(), entry);
+        requestedDNs.add(entry.getParsedDN());
+      }
+
+      for (final Entry entry : currentLevel)
+      {
+        final DN managerDN = getManagerDN(entry);
+        if ((managerDN != null) && (! requestedDNs.contains(managerDN)))
+        {
+          nextLevelDNs.add(managerDN);
+        }
+      }
+
+      if (nextLevelDNs.isEmpty())
+      {
+        break;
+      }
+
+      requestedDNs.addAll(nextLevelDNs);
+      final List<Filter> entryDNFilters = new ArrayList<>(nextLevelDNs.size());
+      for (final DN dn : nextLevelDNs)
+      {
+        entryDNFilters.add(
+             Filter.createEqualityFilter("entryDN", dn.toString()));
+      }
+
+      currentLevel = search(entryDNFilters, null);
+    }
+
+    // Assemble the chains from the entries that we retrieved.
+    final Map<String,List<Entry>> chains =
+         new LinkedHashMap<>(userEntries.size());
+    for (final Entry userEntry : userEntries)
+    {
+      final List<Entry> chain = new ArrayList<>(10);
+      final Set<DN> chainDNs = new HashSet<>(20);
+      Entry chainEntry = userEntry;
+      while ((chainEntry != null) && chainDNs.add(chainEntry.getParsedDN()))
+      {
+        chain.add(chainEntry);
+
+        final DN managerDN = getManagerDN(chainEntry);
+        if (managerDN == null)
+        {
+          break;
+        }
+
+        chainEntry = entriesByDN.get(managerDN);
+      }
+
+      chains.put(userEntry.getAttributeValue(ATTR_USER_ID), chain);
+    }
+
+    return chains;
+  }
+
+
+
+  /**
+   * Issues a search to retrieve the entries matching any of the provided
+   * filters.  If there are a large number of filters, then they will be split
+   * across multiple searches so that no single filter becomes too large.
+   *
+   * @param  filters  The filters for the entries to retrieve.
+   * @param  control  An optional control to include in the search request.  It
+   *                  may be {@code null} if no control is needed.
+   *
+   * @return  The entries that were returned.
+   *
+   * @throws  LDAPException  If a problem is encountered while communicating
+   *                         with the Directory Server.
+   */
+  private List<SearchResultEntry> search(final List<Filter> filters,
+                                         final JoinRequestControl control)
+          throws LDAPException
+  {
+    final List<SearchResultEntry> entries = new ArrayList<>(filters.size());
+    for (int i=0; i < filters.size(); i += MAX_FILTER_COMPONENTS)
+    {
+      final List<Filter> filterSubset = filters.subList(i,
+           Math.min(filters.size(), (i + MAX_FILTER_COMPONENTS)));
+
+      final Filter filter;
+      if (filterSubset.size() == 1)
+      {
+        filter = filterSubset.get(0);
+      }
+      else
+      {
+        filter = Filter.createORFilter(filterSubset);
+      }
+
+      final SearchRequest searchRequest = new SearchRequest(searchBaseDN,
+           SearchScope.SUB, filter, requestedAttributes);
+      if (control != null)
+      {
+        searchRequest.addControl(control);
+      }
+
+      searchCount++;
+      final SearchResult searchResult = connection.search(searchRequest);
+      entries.addAll(searchResult.getSearchEntries());
+    }
+
+    return entries;
+  }
+
+
+
+  /**
+   * Retrieves the DN of the manager from the provided entry.
+   *
+   * @param  entry  The entry from which to retrieve the manager DN.
+   *
+   * @return  The DN of the manager from the provided entry, or {@code null} if
+   *          the entry does not have a valid manager DN.
+   */
+  private static DN getManagerDN(final Entry entry)
+  {
+    final String managerDNString = entry.getAttributeValue(ATTR_MANAGER);
+    if (managerDNString == null)
+    {
+      return null;
+    }
+
+    try
+    {
+      return new DN(managerDNString);
+    }
+    catch (final LDAPException e)
+    {
+      Debug.debugException(e);
+      return null;
+    }
+  }
+}
@@ -37,8 +37,13 @@ package com.dirmgr.example.ldapjoin;
 
 
 
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.LinkedHashSet;
 import javax.net.ssl.SSLSocketFactory;
 
+import com.unboundid.ldap.sdk.DN;
 import com.unboundid.ldap.sdk.DereferencePolicy;
 import com.unboundid.ldap.sdk.Filter;
 import com.unboundid.ldap.sdk.LDAPConnection;
@@ -46,19 +51,20 @@ import com.unboundid.ldap.sdk.LDAPException;
 import com.unboundid.ldap.sdk.ResultCode;
 import com.unboundid.ldap.sdk.SearchRequest;
 import com.unboundid.ldap.sdk.SearchResult;
-import com.unboundid.ldap.sdk.SearchResultEntry;
 import com.unboundid.ldap.sdk.SearchScope;
 import com.unboundid.ldap.sdk.unboundidds.controls.JoinBaseDN;
 import com.unboundid.ldap.sdk.unboundidds.controls.JoinRequestControl;
 import com.unboundid.ldap.sdk.unboundidds.controls.JoinRequestValue;
-import com.unboundid.ldap.sdk.unboundidds.controls.JoinResultControl;
 import com.unboundid.ldap.sdk.unboundidds.controls.JoinRule;
-import com.unboundid.ldap.sdk.unboundidds.controls.JoinedEntry;
-import com.unboundid.util.ColumnFormatter;
-import com.unboundid.util.FormattableColumn;
-import com.unboundid.util.HorizontalAlignment;
 import com.unboundid.util.LDAPTestUtils;
+import com.unboundid.util.ObjectPair;
 import com.unboundid.util.StaticUtils;
+import com.unboundid.util.args.ArgumentException;
+import com.unboundid.util.args.ArgumentParser;
+import com.unboundid.util.args.BooleanArgument;
+import com.unboundid.util.args.FileArgument;
+import com.unboundid.util.args.IntegerArgument;
+import com.unboundid.util.args.StringArgument;
 import com.unboundid.util.ssl.AggregateTrustManager;
 import com.unboundid.util.ssl.JVMDefaultTrustManager;
 import com.unboundid.util.ssl.PromptTrustManager;
@@ -74,26 +80,68 @@ import com.unboundid.util.ssl.SSLUtil;
  * request control that uses a DN join to retrieve entry for that user's
  * manager, and a nested join that also uses a reverse DN join to retrieve the
  * entries for the manager's direct reports.
+ * <BR><BR>
+ * The nested join includes a size limit so that a manager with a very large
+ * number of direct reports will not cause the server to return a single
+ * enormous join result control.  If that limit is exceeded, then the peers
+ * will instead be retrieved with a separate search that uses the simple paged
+ * results control, so that they are returned (and written) a page at a time.
  */
 public final class RetrieveUserManagerAndPeers
 {
+  /**
+   * The default maximum number of peers that should be returned in the nested
+   * join.  If a manager has more direct reports than this, then the peers will
+   * be retrieved with a paged search instead.
+   */
+  static final int DEFAULT_MAX_NESTED_JOIN_PEERS = 1000;
+
+
+
+  /**
+   * The default number of peers that should be requested in each page when
+   * retrieving them with a paged search.
+   */
+  static final int DEFAULT_PEER_PAGE_SIZE = 500;
+
+
+
   /**
    * Runs this program with the provided set of arguments.
    *
    * @param  args  The command-line arguments provided to this program.  This
-   *               program obtains all of the necessary information
-   *               interactively and therefore does not require any command-line
-   *               arguments.
+   *               program obtains all of the necessary connection information
+   *               interactively.  The optional arguments only control how the
+   *               results are written:  "--outputFormat" may be used to select
+   *               the "columns" (the default), "json-lines", or "csv" format,
+   *               "--outputFile" may be used to write to a file instead of
+   *               standard output, and "--compressOutput" may be used to
+   *               gzip-compress the output as it is written.  In addition,
+   *               "--secondaryServerAddress" and "--secondaryServerPort" may
+   *               be used to identify a replica to which the join search
+   *               will also be sent if the primary server is slow to respond.
+   *               "--maxNestedJoinPeers" may be used to set the size limit
+   *               for the nested join that retrieves the peers, and
+   *               "--peerPageSize" may be used to set the page size for the
+   *               paged search used if that limit is exceeded.
    *
    * @throws  LDAPException  If a problem is encountered while communicating
    *                         with the Directory Server, or if it does not
    *                         contain the expected data.
+   *
+   * @throws  IOException  If a problem is encountered while writing the
+   *                       results.
    */
   public static void main(final String... args)
-         throws LDAPException
+         throws LDAPException, IOException
   {
-    // Establish a connection to the Directory Server.
-    try (LDAPConnection connection = getConnection())
+    // Establish a connection to the Directory Server (and to the secondary
+    // server, if one was specified), and create the writer that will be used
+    // to write the results.
+    final ArgumentParser parser = parseArguments(args);
+    try (LDAPConnection connection = getConnection();
+         LDAPConnection secondaryConnection = getSecondaryConnection(parser);
+         JoinResultWriter writer = createWriter(parser))
     {
       // Create a search request to retrieve a specified user from the server.
       final String searchBaseDN = "dc=example,dc=com";
@@ -105,101 +153,283 @@ public final class RetrieveUserManagerAndPeers
         "mail",
         "telephoneNumber"
       };
-      final SearchRequest searchRequest = new SearchRequest(searchBaseDN,
-           SearchScope.SUB, Filter.createEqualityFilter("uid", targetUserID),
+
+      // The search result listener will write the rows for each entry (and
+      // its joined entries) as soon as that entry is returned, rather than
+      // having the LDAP SDK hold the entire result set in memory until the
+      // search is complete.
+      writer.writeHeader();
+      final ManagerAndPeersSearchResultListener searchResultListener =
+           new ManagerAndPeersSearchResultListener(writer);
+      final SearchRequest searchRequest = new SearchRequest(
+           searchResultListener, searchBaseDN, SearchScope.SUB,
+           Filter.createEqualityFilter("uid", targetUserID),
            requestedAttributes);
 
-      // Create the join request control.  The outer join will use the DN join
-      // rule to associate target the user with their boss via the manager
-      // attribute in the user's entry.  The nested join will use the reverse DN
-      // join to associate the manager with their direct reports, via the
-      // manager attribute in the peer's entries.
-      final JoinRequestValue nestedJoin = new JoinRequestValue(
-           JoinRule.createReverseDNJoin("manager"),
-           JoinBaseDN.createUseSearchBaseDN(),
-           SearchScope.SUB,
-           DereferencePolicy.NEVER,
-           null, // No size limit.
-           Filter.createNOTFilter(// Don't include employee in nested results
-                Filter.createEqualityFilter("uid", targetUserID)),
-           requestedAttributes,
-           false, // Include outer join entry even if not joined with anything.
-           null); // No nested join.
-      final JoinRequestValue outerJoin = new JoinRequestValue(
-           JoinRule.createDNJoin("manager"),
-           JoinBaseDN.createUseSearchBaseDN(),
-           SearchScope.SUB,
-           DereferencePolicy.NEVER,
-           null, // No size limit.
-           null, // No additional filter
+      // Add a join request control to retrieve the user's manager and peers.
+      searchRequest.addControl(createJoinRequestControl(targetUserID,
            requestedAttributes,
-           false, // Include outer join entry even if not joined with anything.
-           nestedJoin); // No nested join.
-      final JoinRequestControl joinRequestControl =
-           new JoinRequestControl(outerJoin);
-      searchRequest.addControl(joinRequestControl);
-
-      // Send the search to the server and get the results back.  Make sure that
-      // the search succeeded and returned exactly one entry.
-      final SearchResult searchResult = connection.search(searchRequest);
+           parser.getIntegerArgument("maxNestedJoinPeers").getValue()));
+
+      // Send the search to the server.  The listener will display each entry
+      // as it is returned.  Make sure that the search succeeded and returned
+      // exactly one entry, and that the listener didn't have any problems
+      // with it.  If there is a secondary server, then use a hedged search so
+      // that the search will also be sent to that server if the primary
+      // server doesn't respond quickly.  Any paged peer searches will be
+      // sent to whichever server answered the join search, so that they see
+      // the same data.
+      final SearchResult searchResult;
+      final LDAPConnection peerConnection;
+      if (secondaryConnection == null)
+      {
+        searchResult = connection.search(searchRequest);
+        peerConnection = connection;
+      }
+      else
+      {
+        final ObjectPair<SearchResult,LDAPConnection> hedgedResult =
+             new HedgedJoinSearch(connection, secondaryConnection).
+                  searchAndGetConnection(searchRequest);
+        searchResult = hedgedResult.getFirst();
+        peerConnection = hedgedResult.getSecond();
+      }
       LDAPTestUtils.assertResultCodeEquals(searchResult, ResultCode.SUCCESS);
       LDAPTestUtils.assertEntriesReturnedEquals(searchResult, 1);
+      if (searchResultListener.getFirstException() != null)
+      {
+        throw searchResultListener.getFirstException();
+      }
+
+      // If any of the peer sets were too large to be returned in the nested
+      // join, then retrieve them a page at a time.
+      searchResultListener.retrieveDeferredPeers(peerConnection, searchBaseDN,
+           requestedAttributes,
+           parser.getIntegerArgument("peerPageSize").getValue());
 
-      // Create a column formatter that will be used to display the
-      // results.
-      final ColumnFormatter columnFormatter = new ColumnFormatter(
-           new FormattableColumn(9, HorizontalAlignment.LEFT, "User Type"),
-           new FormattableColumn(10, HorizontalAlignment.LEFT, "First Name"),
-           new FormattableColumn(10, HorizontalAlignment.LEFT, "Last Name"),
-           new FormattableColumn(32, HorizontalAlignment.LEFT, "Email Address"),
-           new FormattableColumn(15, HorizontalAlignment.LEFT, "Phone Number"));
-      for (final String headerLine : columnFormatter.getHeaderLines(true))
+      if (searchResultListener.getFirstException() != null)
       {
-        System.out.println(headerLine);
+        throw searchResultListener.getFirstException();
       }
+    }
+  }
+
 
-      // Get the search result entry and add it to the table.
-      final SearchResultEntry employeeEntry =
-           searchResult.getSearchEntries().get(0);
-      System.out.println(columnFormatter.formatRow(
-           "Employee",
-           employeeEntry.getAttributeValue("givenName"),
-           employeeEntry.getAttributeValue("sn"),
-           employeeEntry.getAttributeValue("mail"),
-           employeeEntry.getAttributeValue("telephoneNumber")));
-
-      // Extract the join result control from the search result entry.
-      LDAPTestUtils.assertHasControl(employeeEntry,
-           JoinResultControl.JOIN_RESULT_OID);
-      JoinResultControl joinResultControl =
-           JoinResultControl.get(employeeEntry);
-
-      // Iterate through the joined entries and print the results.
-      for (final JoinedEntry bossEntry : joinResultControl.getJoinResults())
+
+  /**
+   * Creates the join request control that will be used to retrieve the
+   * manager and peers for the specified user.
+   *
+   * @param  targetUserID         The user ID of the employee, who should not
+   *                              be included in the peers.
+   * @param  requestedAttributes  The attributes to request for the joined
+   *                              entries.
+   * @param  maxNestedJoinPeers   The size limit to use for the nested join
+   *                              that retrieves the peers.
+   *
+   * @return  The join request control that was created.
+   */
+  static JoinRequestControl createJoinRequestControl(
+              final String targetUserID, final String[] requestedAttributes,
+              final int maxNestedJoinPeers)
+  {
+    // Create the join request control.  The outer join will use the DN join
+    // rule to associate target the user with their boss via the manager
+    // attribute in the user's entry.  The nested join will use the reverse DN
+    // join to associate the manager with their direct reports, via the
+    // manager attribute in the peer's entries.
+    final JoinRequestValue nestedJoin = new JoinRequestValue(
+         JoinRule.createReverseDNJoin("manager"),
+         JoinBaseDN.createUseSearchBaseDN(),
+         SearchScope.SUB,
+         DereferencePolicy.NEVER,
+         maxNestedJoinPeers, // Fall back to paging if there are more.
+         Filter.createNOTFilter(// Don't include employee in nested results
+              Filter.createEqualityFilter("uid", targetUserID)),
+         requestedAttributes,
+         false, // Include outer join entry even if not joined with anything.
+         null); // No nested join.
+    final JoinRequestValue outerJoin = new JoinRequestValue(
+         JoinRule.createDNJoin("manager"),
+         JoinBaseDN.createUseSearchBaseDN(),
+         SearchScope.SUB,
+         DereferencePolicy.NEVER,
+         null, // No size limit.
+         null, // No additional filter
+         requestedAttributes,
+         false, // Include outer join entry even if not joined with anything.
+         nestedJoin); // No nested join.
+    return new JoinRequestControl(outerJoin);
+  }
+
+
+
+  /**
+   * Parses the provided command-line arguments.
+   *
+   * @param  args  The command-line arguments provided to this program.
+   *
+   * @return  The argument parser that was used to parse the arguments.
+   *
+   * @throws  LDAPException  If the provided arguments are not valid.
+   */
+  private static ArgumentParser parseArguments(final String... args)
+          throws LDAPException
+  {
+    try
+    {
+      final ArgumentParser parser = new ArgumentParser(
+           "retrieve-user-manager-and-peers",
+           "Retrieves a user, that user's manager, and that user's peers " +
+                "with a single search that uses the LDAP join control.");
+
+      final LinkedHashSet<String> outputFormatAllowedValues =
+           new LinkedHashSet<>(3);
+      for (final JoinResultOutputFormat format :
+           JoinResultOutputFormat.values())
       {
-        System.out.println(columnFormatter.formatRow(
-             "Boss",
-             bossEntry.getAttributeValue("givenName"),
-             bossEntry.getAttributeValue("sn"),
-             bossEntry.getAttributeValue("mail"),
-             bossEntry.getAttributeValue("telephoneNumber")));
-
-        for (final JoinedEntry peerEntry :
-             bossEntry.getNestedJoinResults())
-        {
-          System.out.println(columnFormatter.formatRow(
-               "Peer",
-               peerEntry.getAttributeValue("givenName"),
-               peerEntry.getAttributeValue("sn"),
-               peerEntry.getAttributeValue("mail"),
-               peerEntry.getAttributeValue("telephoneNumber")));
-        }
+        outputFormatAllowedValues.add(format.getName());
       }
+      final StringArgument outputFormatArgument = new StringArgument(
+           null, // No short identifier
+           "outputFormat", // Long identifier
+           false, // Not required
+           1, // Only one occurrence
+           "{columns|json-lines|csv}", // Value placeholder
+           "The format to use for the results.",
+           outputFormatAllowedValues,
+           JoinResultOutputFormat.COLUMNS.getName()); // Default value
+      outputFormatArgument.addLongIdentifier("output-format", true);
+      parser.addArgument(outputFormatArgument);
+
+      final FileArgument outputFileArgument = new FileArgument(
+           null, // No short identifier
+           "outputFile", // Long identifier
+           false, // Not required
+           1, // Only one occurrence
+           "{path}", // Value placeholder
+           "The path to a file to which the results should be written.  If " +
+                "this is not provided, then the results will be written to " +
+                "standard output.",
+           false, // File doesn't need to exist
+           true, // Parent must exist
+           true, // Must be file
+           false); // Must be directory
+      outputFileArgument.addLongIdentifier("output-file", true);
+      parser.addArgument(outputFileArgument);
+
+      final BooleanArgument compressOutputArgument = new BooleanArgument(
+           null, // No short identifier
+           "compressOutput", // Long identifier
+           "Indicates that the output should be gzip-compressed.");
+      compressOutputArgument.addLongIdentifier("compress-output", true);
+      parser.addArgument(compressOutputArgument);
+
+      final StringArgument secondaryServerAddressArgument = new StringArgument(
+           null, // No short identifier
+           "secondaryServerAddress", // Long identifier
+           false, // Not required
+           1, // Only one occurrence
+           "{address}", // Value placeholder
+           "The address of a replica to which the join search should also " +
+                "be sent if the primary server does not respond quickly.");
+      secondaryServerAddressArgument.addLongIdentifier(
+           "secondary-server-address", true);
+      parser.addArgument(secondaryServerAddressArgument);
+
+      final IntegerArgument secondaryServerPortArgument = new IntegerArgument(
+           null, // No short identifier
+           "secondaryServerPort", // Long identifier
+           false, // Not required
+           1, // Only one occurrence
+           "{port}", // Value placeholder
+           "The port to use to communicate with the secondary server.",
+           1, // Lower bound
+           65_535, // Upper bound
+           636); // Default value
+      secondaryServerPortArgument.addLongIdentifier("secondary-server-port",
+           true);
+      parser.addArgument(secondaryServerPortArgument);
+
+      final IntegerArgument maxNestedJoinPeersArgument = new IntegerArgument(
+           null, // No short identifier
+           "maxNestedJoinPeers", // Long identifier
+           false, // Not required
+           1, // Only one occurrence
+           "{count}", // Value placeholder
+           "The maximum number of peers to retrieve with the nested join.  " +
+                "If the manager has more direct reports than this, then the " +
+                "peers will be retrieved with a paged search instead.",
+           1, // Lower bound
+           Integer.MAX_VALUE, // Upper bound
+           DEFAULT_MAX_NESTED_JOIN_PEERS); // Default value
+      maxNestedJoinPeersArgument.addLongIdentifier("max-nested-join-peers",
+           true);
+      parser.addArgument(maxNestedJoinPeersArgument);
+
+      final IntegerArgument peerPageSizeArgument = new IntegerArgument(
+           null, // No short identifier
+           "peerPageSize", // Long identifier
+           false, // Not required
+           1, // Only one occurrence
+           "{count}", // Value placeholder
+           "The maximum number of peers to request in each page when they " +
+                "are retrieved with a paged search because there were too " +
+                "many to retrieve with the nested join.",
+           1, // Lower bound
+           Integer.MAX_VALUE, // Upper bound
+           DEFAULT_PEER_PAGE_SIZE); // Default value
+      peerPageSizeArgument.addLongIdentifier("peer-page-size", true);
+      parser.addArgument(peerPageSizeArgument);
+
+      parser.parse(args);
+      return parser;
+    }
+    catch (final ArgumentException e)
+    {
+      throw new LDAPException(ResultCode.PARAM_ERROR,
+           "Invalid command-line arguments:  " + e.getMessage(), e);
     }
   }
 
 
 
+  /**
+   * Creates the writer that will be used to write the results, based on the
+   * provided command-line arguments.
+   *
+   * @param  parser  The argument parser that was used to parse the
+   *                 command-line arguments.
+   *
+   * @return  The writer that was created.
+   *
+   * @throws  IOException  If a problem is encountered while creating the
+   *                       writer.
+   */
+  private static JoinResultWriter createWriter(final ArgumentParser parser)
+          throws IOException
+  {
+    final FileArgument outputFileArgument =
+         parser.getFileArgument("outputFile");
+    final OutputStream outputStream;
+    if (outputFileArgument.isPresent())
+    {
+      outputStream = new FileOutputStream(outputFileArgument.getValue());
+    }
+    else
+    {
+      outputStream = System.out;
+    }
+
+    final JoinResultOutputFormat outputFormat = JoinResultOutputFormat.forName(
+         parser.getStringArgument("outputFormat").getValue());
+    return outputFormat.createWriter(outputStream,
+         parser.getBooleanArgument("compressOutput").isPresent(), "givenName",
+         "sn", "mail", "telephoneNumber");
+  }
+
+
+
   /**
    * Establishes a connection to the directory server and authenticates it as a
    * specified user.
@@ -209,7 +439,58 @@ public final class RetrieveUserManagerAndPeers
    * @throws  LDAPException  If a problem is encountered while establishing or
    *                         authenticating the connection.
    */
-  private static LDAPConnection getConnection()
+  static LDAPConnection getConnection()
+          throws LDAPException
+  {
+    return getConnection("ds.example.com", 636);
+  }
+
+
+
+  /**
+   * Establishes a secure connection to the secondary Directory Server, if one
+   * was specified in the command-line arguments.
+   *
+   * @param  parser  The argument parser that was used to parse the
+   *                 command-line arguments.
+   *
+   * @return  The connection to the secondary server, or {@code null} if no
+   *          secondary server was specified.
+   *
+   * @throws  LDAPException  If a problem is encountered while establishing or
+   *                         authenticating the connection.
+   */
+  private static LDAPConnection getSecondaryConnection(
+                                     final ArgumentParser parser)
+          throws LDAPException
+  {
+    final StringArgument secondaryServerAddressArgument =
+         parser.getStringArgument("secondaryServerAddress");
+    if (! secondaryServerAddressArgument.isPresent())
+    {
+      return null;
+    }
+
+    return getConnection(secondaryServerAddressArgument.getValue(),
+         parser.getIntegerArgument("secondaryServerPort").getValue());
+  }
+
+
+
+  /**
+   * Establishes a secure connection to the specified Directory Server and
+   * authenticates that connection.
+   *
+   * @param  serverAddress  The address of the Directory Server.
+   * @param  serverPort     The port of the Directory Server.
+   *
+   * @return  The connection that has been established.
+   *
+   * @throws  LDAPException  If a problem is encountered while establishing or
+   *                         authenticating the connection.
+   */
+  private static LDAPConnection getConnection(final String serverAddress,
+                                              final int serverPort)
           throws LDAPException
   {
     // Create an SSL socket factory that will automatically accept the
@@ -235,8 +516,6 @@ public final class RetrieveUserManagerAndPeers
     }
 
     // Establish a secure connection to the Directory Server.
-    final String serverAddress = "ds.example.com";
-    final int serverPort = 636;
     final LDAPConnection connection = new LDAPConnection(sslSocketFactory,
          serverAddress, serverPort);
 
@@ -0,0 +1,239 @@
+/*
+ * Copyright 2019 Neil A. Wilson
+ * All Rights Reserved.
+ */
+/*
+ * Copyright (C) 2019 Neil A. Wilson
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPLv2 only)
+ * or the terms of the GNU Lesser General Public License (LGPLv2.1 only)
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, see <http://www.gnu.org/licenses>.
+ */
+/*
+ * Copyright 2019 Neil A. Wilson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dirmgr.example.ldapjoin;
+
+
+
+import java.io.File;
+
+import com.unboundid.ldap.listener.InMemoryDirectoryServer;
+import com.unboundid.ldap.listener.InMemoryDirectoryServerConfig;
+import com.unboundid.ldap.sdk.DN;
+import com.unboundid.ldap.sdk.Filter;
+import com.unboundid.ldap.sdk.LDAPConnection;
+import com.unboundid.ldap.sdk.Modification;
+import com.unboundid.ldap.sdk.ModificationType;
+
+
+
+/**
+ * This class demonstrates how to use the {@link ChangelogOrgHierarchyUpdater}
+ * and performs some basic testing of it against an in-memory directory server
+ * instance that has been configured to maintain an LDAP changelog.
+ */
+public class TestChangelogOrgHierarchyUpdater
+{
+  /**
+   * Creates an in-memory directory server instance with a changelog, populates
+   * it with a few users, and verifies that changes made to those users are
+   * reflected in the org hierarchy.
+   *
+   * @param  args  The provided command-line arguments.
+   *
+   * @throws  Exception  If an unexpected problem occurs.
+   */
+  public static void main(final String... args)
+         throws Exception
+  {
+    final InMemoryDirectoryServerConfig config =
+         new InMemoryDirectoryServerConfig("dc=example,dc=com");
+    config.setMaxChangeLogEntries(1000);
+
+    final InMemoryDirectoryServer ds = new InMemoryDirectoryServer(config);
+    ds.startListening();
+
+    final File stateFile = File.createTempFile("org-hierarchy-", ".ldif");
+    stateFile.delete();
+
+    try (final LDAPConnection conn = ds.getConnection())
+    {
+      conn.add(
+           "dn: dc=example,dc=com",
+           "objectClass: top",
+           "objectClass: domain",
+           "dc: example");
+      conn.add(
+           "dn: ou=People,dc=example,dc=com",
+           "objectClass: top",
+           "objectClass: organizationalUnit",
+           "ou: People");
+      addUser(conn, "betty.boss", null);
+      addUser(conn, "ernest.employee", "betty.boss");
+      addUser(conn, "charlie.coworker", "betty.boss");
+
+      // Perform the initial load, which will require a full search.
+      final Filter userFilter =
+           Filter.createEqualityFilter("objectClass", "person");
+      ChangelogOrgHierarchyUpdater updater = new ChangelogOrgHierarchyUpdater(
+           conn, "dc=example,dc=com", userFilter, stateFile);
+      JoinTestUtils.assertTrue(! updater.initialize(),
+           "Expected the initial load to use a full search");
+
+      final OrgHierarchy hierarchy = updater.getHierarchy();
+      JoinTestUtils.assertTrue(hierarchy.size() == 3,
+           "Expected 3 users after the initial load, got " + hierarchy.size());
+      JoinTestUtils.assertTrue(
+           hierarchy.getDirectReports(userDN("betty.boss")).size() == 2,
+           "Expected betty.boss to have two direct reports");
+      System.out.println("Initial load yielded the expected hierarchy.");
+
+
+      // Make a set of changes and verify that they are picked up from the
+      // changelog.
+      addUser(conn, "patricia.peer", "betty.boss");
+      conn.modify(userDN("ernest.employee").toString(),
+           new Modification(ModificationType.REPLACE, "manager",
+                userDN("charlie.coworker").toString()));
+      conn.modifyDN(userDN("patricia.peer").toString(), "uid=pat.peer", true);
+      conn.delete(userDN("charlie.coworker").toString());
+
+      final int changesApplied = updater.applyNewChanges();
+      JoinTestUtils.assertTrue(changesApplied == 4,
+           "Expected 4 changes to be applied, got " + changesApplied);
+      JoinTestUtils.assertTrue(userDN("charlie.coworker").equals(
+                              hierarchy.getManager(userDN("ernest.employee"))),
+           "Expected ernest.employee to report to charlie.coworker");
+      JoinTestUtils.assertTrue(
+           ! hierarchy.containsUser(userDN("charlie.coworker")),
+           "Expected charlie.coworker to have been removed");
+      JoinTestUtils.assertTrue(
+           ! hierarchy.containsUser(userDN("patricia.peer")),
+           "Expected patricia.peer to have been renamed");
+      JoinTestUtils.assertTrue(userDN("betty.boss").equals(
+                              hierarchy.getManager(userDN("pat.peer"))),
+           "Expected pat.peer to report to betty.boss");
+      System.out.println("Changelog processing yielded the expected " +
+           "hierarchy.");
+
+
+      // Save the state, make another change, and verify that a new updater
+      // resumes from the saved change number rather than reloading.
+      updater.saveState();
+      final long savedChangeNumber = updater.getLastChangeNumber();
+      conn.modify(userDN("pat.peer").toString(),
+           new Modification(ModificationType.DELETE, "manager"));
+
+      updater = new ChangelogOrgHierarchyUpdater(conn, "dc=example,dc=com",
+           userFilter, stateFile);
+      JoinTestUtils.assertTrue(updater.initialize(),
+           "Expected the restarted updater to use the state file");
+      JoinTestUtils.assertTrue(
+           updater.getLastChangeNumber() == savedChangeNumber,
+           "Expected the restarted updater to resume from change number " +
+                savedChangeNumber);
+      JoinTestUtils.assertTrue(updater.applyNewChanges() == 1,
+           "Expected the restarted updater to apply exactly one change");
+      JoinTestUtils.assertTrue(
+           updater.getHierarchy().containsUser(userDN("pat.peer")) &&
+           (updater.getHierarchy().getManager(userDN("pat.peer")) ==
+                null),
+           "Expected pat.peer to no longer have a manager");
+      System.out.println("The restarted updater resumed from the last " +
+           "saved change number.");
+
+      System.out.println("All tests yielded the expected results.");
+    }
+    finally
+    {
+      stateFile.delete();
+      ds.shutDown(true);
+    }
+  }
+
+
+
+  /**
+   * Adds a user entry with the provided user ID and manager.
+   *
+   * @param  conn             The connection to use to add the entry.
+   * @param  userID           The user ID for the entry to add.
+   * @param  managerUserID    The user ID of the user's manager, or
+   *                          {@code null} if the user should not have a
+   *                          manager.
+   *
+   * @throws  Exception  If the entry cannot be added.
+   */
+  private static void addUser(final LDAPConnection conn, final String userID,
+                              final String managerUserID)
+          throws Exception
+  {
+    final String[] nameParts = userID.split("\\.");
+    if (managerUserID == null)
+    {
+      conn.add(
+           "dn: " + userDN(userID),
+           "objectClass: top",
+           "objectClass: person",
+           "objectClass: organizationalPerson",
+           "objectClass: inetOrgPerson",
+           "uid: " + userID,
+           "givenName: " + nameParts[0],
+           "sn: " + nameParts[1],
+           "cn: " + nameParts[0] + ' ' + nameParts[1]);
+    }
+    else
+    {
+      conn.add(
+           "dn: " + userDN(userID),
+           "objectClass: top",
+           "objectClass: person",
+           "objectClass: organizationalPerson",
+           "objectClass: inetOrgPerson",
+           "uid: " + userID,
+           "givenName: " + nameParts[0],
+           "sn: " + nameParts[1],
+           "cn: " + nameParts[0] + ' ' + nameParts[1],
+           "manager: " + userDN(managerUserID));
+    }
+  }
+
+
+
+  /**
+   * Retrieves the DN for the user with the provided user ID.
+   *
+   * @param  userID  The user ID for which to retrieve the DN.
+   *
+   * @return  The DN for the user with the provided user ID.
+   *
+   * @throws  Exception  If the DN cannot be constructed.
+   */
+  private static DN userDN(final String userID)
+          throws Exception
+  {
+    return new DN("uid=" + userID + ",ou=People,dc=example,dc=com");
+  }
+}
@@ -0,0 +1,435 @@
+/*
+ * Copyright 2019 Neil A. Wilson
+ * All Rights Reserved.
+ */
+/*
+ * Copyright (C) 2019 Neil A. Wilson
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPLv2 only)
+ * or the terms of the GNU Lesser General Public License (LGPLv2.1 only)
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, see <http://www.gnu.org/licenses>.
+ */
+/*
+ * Copyright 2019 Neil A. Wilson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dirmgr.example.ldapjoin;
+
+
+
+import com.unboundid.ldap.listener.InMemoryDirectoryServer;
+import com.unboundid.ldap.listener.InMemoryDirectoryServerConfig;
+import com.unboundid.ldap.listener.interceptor.InMemoryInterceptedSearchRequest;
+import com.unboundid.ldap.listener.interceptor.InMemoryOperationInterceptor;
+import com.unboundid.ldap.sdk.Entry;
+import com.unboundid.ldap.sdk.Filter;
+import com.unboundid.ldap.sdk.LDAPConnection;
+import com.unboundid.ldap.sdk.SearchRequest;
+import com.unboundid.ldap.sdk.SearchResult;
+import com.unboundid.ldap.sdk.SearchResultEntry;
+import com.unboundid.ldap.sdk.SearchResultListener;
+import com.unboundid.ldap.sdk.SearchResultReference;
+import com.unboundid.ldap.sdk.SearchScope;
+import com.unboundid.ldap.sdk.unboundidds.controls.JoinResultControl;
+import com.unboundid.util.LDAPTestUtils;
+import com.unboundid.util.ObjectPair;
+
+
+
+/**
+ * This class demonstrates how to use the {@link HedgedJoinSearch} class and
+ * performs some basic testing of it against a pair of in-memory directory
+ * server instances that hold identical data, one of which can be configured
+ * to delay its responses to search requests.
+ */
+public class TestHedgedJoinSearch
+{
+  /**
+   * The attributes requested by the join searches.
+   */
+  private static final String[] REQUESTED_ATTRIBUTES =
+  {
+    "givenName",
+    "sn",
+    "mail"
+  };
+
+
+
+  /**
+   * Creates the in-memory directory server instances and verifies that hedged
+   * searches use the result from the faster server.
+   *
+   * @param  args  The provided command-line arguments.
+   *
+   * @throws  Exception  If an unexpected problem occurs.
+   */
+  public static void main(final String... args)
+         throws Exception
+  {
+    final DelayInterceptor primaryDelayInterceptor = new DelayInterceptor();
+    final InMemoryDirectoryServer primaryServer =
+         createServer(primaryDelayInterceptor);
+    final InMemoryDirectoryServer secondaryServer =
+         createServer(new DelayInterceptor());
+
+    try (final LDAPConnection primaryConnection =
+              primaryServer.getConnection();
+         final LDAPConnection secondaryConnection =
+              secondaryServer.getConnection())
+    {
+      final HedgedJoinSearch hedgedSearch = new HedgedJoinSearch(
+           primaryConnection, secondaryConnection,
+           HedgedJoinSearch.DEFAULT_HEDGE_PERCENTILE,
+           HedgedJoinSearch.DEFAULT_LATENCY_WINDOW_SIZE, 100L);
+
+
+      // When the primary server is responsive, the secondary server should
+      // rarely be used.  A search that is slower than the recent ones will
+      // still be hedged, so a few hedged searches are expected.
+      for (int i=0; i < 20; i++)
+      {
+        verifyJoinResult(hedgedSearch.search(createJoinSearchRequest()));
+      }
+      final long fastHedgedSearches = hedgedSearch.getHedgedSearches();
+      final long fastSecondaryWins = hedgedSearch.getSecondaryWins();
+      JoinTestUtils.assertTrue(fastHedgedSearches <= 5L,
+           "Expected few hedged searches when the primary server is fast, " +
+                "got " + fastHedgedSearches);
+      JoinTestUtils.assertTrue(hedgedSearch.getHedgeDelayMillis() < 100L,
+           "Expected the hedge delay to adapt to the primary server's " +
+                "response time, got " + hedgedSearch.getHedgeDelayMillis() +
+                "ms");
+      System.out.println(fastHedgedSearches + " of 20 searches against a " +
+           "fast primary server were hedged.  The hedge delay is now " +
+           hedgedSearch.getHedgeDelayMillis() + "ms.");
+
+
+      // Make the primary server slow, and verify that the search completes
+      // well before it would have if it had waited for the primary server.
+      primaryDelayInterceptor.setDelayMillis(2000L);
+      final long startTime = System.currentTimeMillis();
+      verifyJoinResult(hedgedSearch.search(createJoinSearchRequest()));
+      final long elapsedMillis = System.currentTimeMillis() - startTime;
+      JoinTestUtils.assertTrue(elapsedMillis < 1000L,
+           "Expected the hedged search to complete quickly, but it took " +
+                elapsedMillis + "ms");
+      JoinTestUtils.assertTrue(
+           hedgedSearch.getHedgedSearches() == (fastHedgedSearches + 1L),
+           "Expected one more hedged search, got " +
+                (hedgedSearch.getHedgedSearches() - fastHedgedSearches));
+      JoinTestUtils.assertTrue(
+           hedgedSearch.getSecondaryWins() == (fastSecondaryWins + 1L),
+           "Expected the secondary server to win, got " +
+                (hedgedSearch.getSecondaryWins() - fastSecondaryWins));
+      System.out.println("A search against a slow primary server was " +
+           "answered by the secondary server in " + elapsedMillis + "ms.");
+
+
+      // Make sure that a search result listener in the provided request gets
+      // the entries from only the winning server, that they are passed to it
+      // as they arrive rather than after the search completes, and that the
+      // connection to the winning server is identified so that follow-up
+      // searches can be sent to it.
+      final CountingListener listener = new CountingListener();
+      final SearchRequest listenerRequest = createJoinSearchRequest();
+      final SearchRequest requestWithListener = new SearchRequest(listener,
+           listenerRequest.getControls(), listenerRequest.getBaseDN(),
+           listenerRequest.getScope(), listenerRequest.getDereferencePolicy(),
+           0, 0, false, listenerRequest.getFilter(), REQUESTED_ATTRIBUTES);
+      final ObjectPair<SearchResult,LDAPConnection> listenerResult =
+           hedgedSearch.searchAndGetConnection(requestWithListener);
+      JoinTestUtils.assertTrue(
+           (listenerResult.getFirst().getEntryCount() == 1) &&
+           (listener.getEntryCount() == 1),
+           "Expected the listener to receive exactly one entry, got " +
+                listener.getEntryCount());
+      JoinTestUtils.assertTrue(
+           listenerResult.getSecond() == secondaryConnection,
+           "Expected the secondary connection to be returned for a search " +
+                "that it won");
+      JoinTestUtils.assertTrue(
+           (listener.getDeliveryThread() != null) &&
+           (listener.getDeliveryThread() != Thread.currentThread()),
+           "Expected the entry to be streamed to the listener from the " +
+                "connection reader thread, but it was delivered by " +
+                listener.getDeliveryThread());
+      System.out.println("A search result listener received the entries " +
+           "from only one server as they arrived.");
+    }
+    finally
+    {
+      primaryDelayInterceptor.setDelayMillis(0L);
+      primaryServer.shutDown(true);
+      secondaryServer.shutDown(true);
+    }
+
+    System.out.println("All tests yielded the expected results.");
+  }
+
+
+
+  /**
+   * Creates and starts an in-memory directory server instance with the join
+   * interceptor, the provided delay interceptor, and a small set of users.
+   *
+   * @param  delayInterceptor  The interceptor that may be used to delay
+   *                           search requests.
+   *
+   * @return  The in-memory directory server instance that was created.
+   *
+   * @throws  Exception  If a problem occurs while creating the server.
+   */
+  private static InMemoryDirectoryServer createServer(
+                      final DelayInterceptor delayInterceptor)
+          throws Exception
+  {
+    final InMemoryJoinInterceptor joinInterceptor =
+         new InMemoryJoinInterceptor("manager");
+    final InMemoryDirectoryServerConfig config =
+         new InMemoryDirectoryServerConfig("dc=example,dc=com");
+    config.addInMemoryOperationInterceptor(delayInterceptor);
+    config.addInMemoryOperationInterceptor(joinInterceptor);
+
+    final InMemoryDirectoryServer ds = new InMemoryDirectoryServer(config);
+    ds.add(
+         "dn: dc=example,dc=com",
+         "objectClass: top",
+         "objectClass: domain",
+         "dc: example");
+    ds.add(
+         "dn: ou=People,dc=example,dc=com",
+         "objectClass: top",
+         "objectClass: organizationalUnit",
+         "ou: People");
+    ds.add(userEntry("betty.boss", null));
+    ds.add(userEntry("ernest.employee", "betty.boss"));
+    ds.add(userEntry("charlie.coworker", "betty.boss"));
+    ds.add(userEntry("patricia.peer", "betty.boss"));
+
+    joinInterceptor.setDirectoryServer(ds);
+    ds.startListening();
+    return ds;
+  }
+
+
+
+  /**
+   * Creates the search request used to retrieve ernest.employee, along with
+   * that user's manager and peers.
+   *
+   * @return  The search request that was created.
+   */
+  private static SearchRequest createJoinSearchRequest()
+  {
+    final SearchRequest searchRequest = new SearchRequest(
+         "dc=example,dc=com", SearchScope.SUB,
+         Filter.createEqualityFilter("uid", "ernest.employee"),
+         REQUESTED_ATTRIBUTES);
+    searchRequest.addControl(
+         RetrieveUserManagerAndPeers.createJoinRequestControl(
+              "ernest.employee", REQUESTED_ATTRIBUTES,
+              RetrieveUserManagerAndPeers.DEFAULT_MAX_NESTED_JOIN_PEERS));
+    return searchRequest;
+  }
+
+
+
+  /**
+   * Ensures that the provided search result contains the expected entry with
+   * the expected join results.
+   *
+   * @param  searchResult  The search result to verify.
+   *
+   * @throws  Exception  If an unexpected problem occurs.
+   */
+  private static void verifyJoinResult(final SearchResult searchResult)
+          throws Exception
+  {
+    LDAPTestUtils.assertEntriesReturnedEquals(searchResult, 1);
+
+    final SearchResultEntry entry = searchResult.getSearchEntries().get(0);
+    final JoinResultControl joinResultControl = JoinResultControl.get(entry);
+    JoinTestUtils.assertTrue((joinResultControl != null) &&
+                            (joinResultControl.getJoinResults().size() == 1) &&
+                            (joinResultControl.getJoinResults().get(0).
+                                 getNestedJoinResults().size() == 2),
+         "Expected the boss and two peers in the join result, got " +
+              joinResultControl);
+  }
+
+
+
+  /**
+   * Creates an entry for the user with the provided user ID.
+   *
+   * @param  userID         The user ID for the user to create.
+   * @param  managerUserID  The user ID of the user's manager.  It may be
+   *                        {@code null} if the user does not have a manager.
+   *
+   * @return  The entry that was created.
+   */
+  private static Entry userEntry(final String userID,
+                                 final String managerUserID)
+  {
+    final String[] nameParts = userID.split("\\.");
+    final Entry entry =
+         new Entry("uid=" + userID + ",ou=People,dc=example,dc=com");
+    entry.addAttribute("objectClass", "top", "person", "organizationalPerson",
+         "inetOrgPerson");
+    entry.addAttribute("uid", userID);
+    entry.addAttribute("givenName", nameParts[0]);
+    entry.addAttribute("sn", nameParts[1]);
+    entry.addAttribute("cn", nameParts[0] + ' ' + nameParts[1]);
+    entry.addAttribute("mail", userID + "@example.com");
+    if (managerUserID != null)
+    {
+      entry.addAttribute("manager",
+           "uid=" + managerUserID + ",ou=People,dc=example,dc=com");
+    }
+
+    return entry;
+  }
+
+
+
+  /**
+   * This class provides an in-memory operation interceptor that can be used
+   * to delay the processing of search requests, in order to simulate a
+   * server that is slow to respond.
+   */
+  private static final class DelayInterceptor
+          extends InMemoryOperationInterceptor
+  {
+    // The length of time, in milliseconds, to delay each search request.
+    private volatile long delayMillis = 0L;
+
+
+
+    /**
+     * Specifies the length of time to delay each search request.
+     *
+     * @param  delayMillis  The length of time, in milliseconds, to delay each
+     *                      search request.
+     */
+    void setDelayMillis(final long delayMillis)
+    {
+      this.delayMillis = delayMillis;
+    }
+
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override()
+    public void processSearchRequest(
+                     final InMemoryInterceptedSearchRequest request)
+    {
+      final long delay = delayMillis;
+      if (delay > 0L)
+      {
+        try
+        {
+          Thread.sleep(delay);
+        }
+        catch (final InterruptedException e)
+        {
+          Thread.currentThread().interrupt();
+        }
+      }
+    }
+  }
+
+
+
+  /**
+   * This class provides a search result listener that counts the entries
+   * that it receives.
+   */
+  private static final class CountingListener
+          implements SearchResultListener
+  {
+    /**
+     * The serial version UID for this serializable class.
+     */
+    private static final long serialVersionUID = 1L;
+
+
+
+    // The number of entries received.
+    private int entryCount = 0;
+
+    // The thread that delivered the last entry.
+    private volatile Thread deliveryThread = null;
+
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override()
+    public void searchEntryReturned(final SearchResultEntry searchEntry)
+    {
+      entryCount++;
+      deliveryThread = Thread.currentThread();
+    }
+
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override()
+    public void searchReferenceReturned(
+                     final SearchResultReference searchReference)
+    {
+      // No implementation is required.
+    }
+
+
+
+    /**
+     * Retrieves the number of entries received.
+     *
+     * @return  The number of entries received.
+     */
+    int getEntryCount()
+    {
+      return entryCount;
+    }
+
+
+
+    /**
+     * Retrieves the thread that delivered the last entry.
+     *
+     * @return  The thread that delivered the last entry, or {@code null} if
+     *          no entries have been received.
+     */
+    Thread getDeliveryThread()
+    {
+      return deliveryThread;
+    }
+  }
+}
@@ -0,0 +1,394 @@
+/*
+ * Copyright 2019 Neil A. Wilson
+ * All Rights Reserved.
+ */
+/*
+ * Copyright (C) 2019 Neil A. Wilson
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPLv2 only)
+ * or the terms of the GNU Lesser General Public License (LGPLv2.1 only)
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, see <http://www.gnu.org/licenses>.
+ */
+/*
+ * Copyright 2019 Neil A. Wilson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dirmgr.example.ldapjoin;
+
+
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import com.unboundid.ldap.listener.InMemoryDirectoryServer;
+import com.unboundid.ldap.listener.InMemoryDirectoryServerConfig;
+import com.unboundid.ldap.sdk.DN;
+import com.unboundid.ldap.sdk.DereferencePolicy;
+import com.unboundid.ldap.sdk.Entry;
+import com.unboundid.ldap.sdk.Filter;
+import com.unboundid.ldap.sdk.LDAPConnection;
+import com.unboundid.ldap.sdk.LDAPSearchException;
+import com.unboundid.ldap.sdk.Modification;
+import com.unboundid.ldap.sdk.ModificationType;
+import com.unboundid.ldap.sdk.ResultCode;
+import com.unboundid.ldap.sdk.SearchRequest;
+import com.unboundid.ldap.sdk.SearchResult;
+import com.unboundid.ldap.sdk.SearchScope;
+import com.unboundid.ldap.sdk.unboundidds.controls.JoinBaseDN;
+import com.unboundid.ldap.sdk.unboundidds.controls.JoinRequestControl;
+import com.unboundid.ldap.sdk.unboundidds.controls.JoinRequestValue;
+import com.unboundid.ldap.sdk.unboundidds.controls.JoinResultControl;
+import com.unboundid.ldap.sdk.unboundidds.controls.JoinRule;
+import com.unboundid.util.LDAPTestUtils;
+
+
+
+/**
+ * This class demonstrates how to use the {@link InMemoryJoinInterceptor} and
+ * performs some basic testing of it by running the searches used by the
+ * {@link RetrieveUserManagerAndPeers} and {@link RetrieveManagementChain}
+ * programs against an in-memory directory server instance.
+ */
+public class TestInMemoryJoinInterceptor
+{
+  /**
+   * The attributes requested by the {@link RetrieveUserManagerAndPeers}
+   * program.
+   */
+  private static final String[] REQUESTED_ATTRIBUTES =
+  {
+    "givenName",
+    "sn",
+    "mail",
+    "telephoneNumber"
+  };
+
+
+
+  /**
+   * Creates an in-memory directory server instance with the join interceptor,
+   * populates it with a small org hierarchy, and verifies that join searches
+   * return the expected results.
+   *
+   * @param  args  The provided command-line arguments.
+   *
+   * @throws  Exception  If an unexpected problem occurs.
+   */
+  public static void main(final String... args)
+         throws Exception
+  {
+    final InMemoryJoinInterceptor joinInterceptor =
+         new InMemoryJoinInterceptor("manager");
+    final InMemoryDirectoryServerConfig config =
+         new InMemoryDirectoryServerConfig("dc=example,dc=com");
+    config.addInMemoryOperationInterceptor(joinInterceptor);
+
+    final InMemoryDirectoryServer ds = new InMemoryDirectoryServer(config);
+    try
+    {
+      // Add some entries directly to the server, which bypasses the
+      // interceptor, so that the initial index will need to be built from
+      // them.
+      ds.add(
+           "dn: dc=example,dc=com",
+           "objectClass: top",
+           "objectClass: domain",
+           "dc: example");
+      ds.add(
+           "dn: ou=People,dc=example,dc=com",
+           "objectClass: top",
+           "objectClass: organizationalUnit",
+           "ou: People");
+      ds.add(userEntry("carol.ceo", null));
+      ds.add(userEntry("vic.vicepresident", "carol.ceo"));
+      ds.add(userEntry("betty.boss", "vic.vicepresident"));
+      joinInterceptor.setDirectoryServer(ds);
+      JoinTestUtils.assertTrue(
+           joinInterceptor.getIndexedValueCount("manager") == 2,
+           "Expected two indexed manager values after the initial build");
+
+      ds.startListening();
+      try (final LDAPConnection conn = ds.getConnection())
+      {
+        // Add the rest of the users over LDAP, so that the interceptor will
+        // update the index as they are added.
+        conn.add(userEntry("ernest.employee", "betty.boss"));
+        conn.add(userEntry("charlie.coworker", "betty.boss"));
+        conn.add(userEntry("patricia.peer", "betty.boss"));
+        conn.add(userEntry("sam.sidekick", "betty.boss"));
+        JoinTestUtils.assertTrue(
+             joinInterceptor.getIndexedValueCount("manager") == 3,
+             "Expected three indexed manager values after adding users");
+
+
+        // Run the search used by RetrieveUserManagerAndPeers and make sure
+        // that it returns the boss and the three peers.
+        ManagerAndPeersSearchResultListener listener =
+             searchForManagerAndPeers(conn, 1000);
+        JoinTestUtils.assertTrue(listener.getRowsWritten() == 5,
+             "Expected 5 rows for the manager and peers search, got " +
+                  listener.getRowsWritten());
+        JoinTestUtils.assertTrue(listener.getDeferredPeerSearches().isEmpty(),
+             "Expected no deferred peer searches");
+        System.out.println("The manager and peers search yielded the " +
+             "expected results.");
+
+
+        // Run the search again with a nested join size limit that is smaller
+        // than the number of peers, and make sure that the peers can be
+        // retrieved with paged searches instead.
+        listener = searchForManagerAndPeers(conn, 2);
+        JoinTestUtils.assertTrue(listener.getRowsWritten() == 2,
+             "Expected only the employee and boss rows when the nested " +
+                  "join size limit is exceeded, got " +
+                  listener.getRowsWritten());
+        JoinTestUtils.assertTrue(listener.getDeferredPeerSearches().size() == 1,
+             "Expected one deferred peer search");
+
+        final long peersWritten = listener.retrieveDeferredPeers(conn,
+             "dc=example,dc=com", REQUESTED_ATTRIBUTES, 2);
+        JoinTestUtils.assertTrue(peersWritten == 3,
+             "Expected 3 peers from the paged search, got " + peersWritten);
+        System.out.println("The nested join size limit fallback yielded the " +
+             "expected results.");
+
+
+        // Move one of the peers to a different manager and rename another,
+        // and make sure that the reverse DN join reflects the changes.
+        conn.modify(userDN("charlie.coworker").toString(),
+             new Modification(ModificationType.REPLACE, "manager",
+                  userDN("vic.vicepresident").toString()));
+        conn.modifyDN(userDN("patricia.peer").toString(), "uid=pat.peer",
+             true);
+
+        final List<DN> peerDNs = getReverseJoinDNs(conn, "betty.boss");
+        JoinTestUtils.assertTrue(peerDNs.size() == 3,
+             "Expected 3 direct reports for betty.boss, got " + peerDNs);
+        JoinTestUtils.assertTrue(
+             peerDNs.contains(userDN("pat.peer")) &&
+             (! peerDNs.contains(userDN("patricia.peer"))) &&
+             (! peerDNs.contains(userDN("charlie.coworker"))),
+             "Unexpected direct reports for betty.boss:  " + peerDNs);
+
+        conn.delete(userDN("sam.sidekick").toString());
+        JoinTestUtils.assertTrue(
+             getReverseJoinDNs(conn, "betty.boss").size() == 2,
+             "Expected 2 direct reports for betty.boss after a delete");
+        System.out.println("The index was updated for write operations.");
+
+
+        // Make sure that RetrieveManagementChain gets the entire chain using
+        // the join control.
+        final RetrieveManagementChain chainRetriever =
+             new RetrieveManagementChain(conn, "dc=example,dc=com",
+                  RetrieveManagementChain.DEFAULT_MAX_JOIN_DEPTH, "cn");
+        final Map<String,List<Entry>> chains =
+             chainRetriever.getManagementChains("ernest.employee");
+        final List<Entry> chain = chains.get("ernest.employee");
+        JoinTestUtils.assertTrue((chain != null) && (chain.size() == 4),
+             "Expected a management chain of 4 entries, got " + chain);
+        JoinTestUtils.assertTrue(
+             chain.get(3).getParsedDN().equals(userDN("carol.ceo")),
+             "Expected the chain to end with carol.ceo");
+        JoinTestUtils.assertTrue(chainRetriever.useJoinControl(),
+             "Expected the management chain to use the join control");
+        JoinTestUtils.assertTrue(chainRetriever.getSearchCount() == 1,
+             "Expected the management chain to require one search, got " +
+                  chainRetriever.getSearchCount());
+        System.out.println("The management chain search yielded the " +
+             "expected results.");
+
+
+        // Make sure that unsupported join rules are rejected.
+        final SearchRequest equalityJoinRequest = new SearchRequest(
+             "dc=example,dc=com", SearchScope.SUB,
+             Filter.createEqualityFilter("uid", "ernest.employee"));
+        equalityJoinRequest.addControl(new JoinRequestControl(
+             new JoinRequestValue(
+                  JoinRule.createEqualityJoin("sn", "sn", false),
+                  JoinBaseDN.createUseSearchBaseDN(), SearchScope.SUB,
+                  DereferencePolicy.NEVER, null, null, null, false, null)));
+        try
+        {
+          conn.search(equalityJoinRequest);
+          throw new AssertionError("Expected an equality join to be " +
+               "rejected");
+        }
+        catch (final LDAPSearchException e)
+        {
+          LDAPTestUtils.assertResultCodeEquals(e,
+               ResultCode.UNWILLING_TO_PERFORM);
+        }
+        System.out.println("An unsupported join rule was rejected.");
+      }
+    }
+    finally
+    {
+      ds.shutDown(true);
+    }
+
+    System.out.println("All tests yielded the expected results.");
+  }
+
+
+
+  /**
+   * Runs the search used by the {@link RetrieveUserManagerAndPeers} program
+   * to retrieve the manager and peers for ernest.employee.
+   *
+   * @param  conn                The connection to use for the search.
+   * @param  maxNestedJoinPeers  The size limit to use for the nested join.
+   *
+   * @return  The listener used to process the search results.
+   *
+   * @throws  Exception  If an unexpected problem occurs.
+   */
+  private static ManagerAndPeersSearchResultListener searchForManagerAndPeers(
+                      final LDAPConnection conn, final int maxNestedJoinPeers)
+          throws Exception
+  {
+    final JoinResultWriter writer = JoinResultOutputFormat.CSV.createWriter(
+         new ByteArrayOutputStream(), false, REQUESTED_ATTRIBUTES);
+    writer.writeHeader();
+
+    final ManagerAndPeersSearchResultListener listener =
+         new ManagerAndPeersSearchResultListener(writer);
+    final SearchRequest searchRequest = new SearchRequest(listener,
+         "dc=example,dc=com", SearchScope.SUB,
+         Filter.createEqualityFilter("uid", "ernest.employee"),
+         REQUESTED_ATTRIBUTES);
+    searchRequest.addControl(
+         RetrieveUserManagerAndPeers.createJoinRequestControl(
+              "ernest.employee", REQUESTED_ATTRIBUTES, maxNestedJoinPeers));
+
+    final SearchResult searchResult = conn.search(searchRequest);
+    writer.close();
+
+    LDAPTestUtils.assertResultCodeEquals(searchResult, ResultCode.SUCCESS);
+    LDAPTestUtils.assertEntriesReturnedEquals(searchResult, 1);
+    if (listener.getFirstException() != null)
+    {
+      throw listener.getFirstException();
+    }
+
+    return listener;
+  }
+
+
+
+  /**
+   * Uses a reverse DN join to retrieve the DNs of the direct reports for the
+   * specified manager.
+   *
+   * @param  conn           The connection to use for the search.
+   * @param  managerUserID  The user ID of the manager.
+   *
+   * @return  The DNs of the direct reports for the specified manager.
+   *
+   * @throws  Exception  If an unexpected problem occurs.
+   */
+  private static List<DN> getReverseJoinDNs(final LDAPConnection conn,
+                                            final String managerUserID)
+          throws Exception
+  {
+    final SearchRequest searchRequest = new SearchRequest(
+         userDN(managerUserID).toString(), SearchScope.BASE,
+         Filter.createPresenceFilter("objectClass"), "1.1");
+    searchRequest.addControl(new JoinRequestControl(new JoinRequestValue(
+         JoinRule.createReverseDNJoin("manager"),
+         JoinBaseDN.createUseCustomBaseDN("ou=People,dc=example,dc=com"),
+         SearchScope.ONE, DereferencePolicy.NEVER, null, null,
+         new String[] { "1.1" }, false, null)));
+
+    final SearchResult searchResult = conn.search(searchRequest);
+    final JoinResultControl joinResultControl =
+         JoinResultControl.get(searchResult.getSearchEntries().get(0));
+    JoinTestUtils.assertTrue(
+         joinResultControl.getResultCode() == ResultCode.SUCCESS,
+         "Expected a successful join result, got " + joinResultControl);
+
+    final List<DN> dnList = new ArrayList<>(
+         joinResultControl.getJoinResults().size());
+    for (final Entry joinedEntry : joinResultControl.getJoinResults())
+    {
+      dnList.add(joinedEntry.getParsedDN());
+    }
+    return dnList;
+  }
+
+
+
+  /**
+   * Creates an entry for the user with the provided user ID.
+   *
+   * @param  userID         The user ID for the user to create.
+   * @param  managerUserID  The user ID of the user's manager.  It may be
+   *                        {@code null} if the user does not have a manager.
+   *
+   * @return  The entry that was created.
+   *
+   * @throws  Exception  If the entry cannot be created.
+   */
+  private static Entry userEntry(final String userID,
+                                 final String managerUserID)
+          throws Exception
+  {
+    final String[] nameParts = userID.split("\\.");
+    final Entry entry = new Entry(
+         "dn: " + userDN(userID),
+         "objectClass: top",
+         "objectClass: person",
+         "objectClass: organizationalPerson",
+         "objectClass: inetOrgPerson",
+         "uid: " + userID,
+         "givenName: " + nameParts[0],
+         "sn: " + nameParts[1],
+         "cn: " + nameParts[0] + ' ' + nameParts[1],
+         "mail: " + userID + "@example.com");
+    if (managerUserID != null)
+    {
+      entry.addAttribute("manager", userDN(managerUserID).toString());
+    }
+
+    return entry;
+  }
+
+
+
+  /**
+   * Retrieves the DN for the user with the provided user ID.
+   *
+   * @param  userID  The user ID for which to retrieve the DN.
+   *
+   * @return  The DN for the user with the provided user ID.
+   *
+   * @throws  Exception  If the DN cannot be constructed.
+   */
+  private static DN userDN(final String userID)
+          throws Exception
+  {
+    return new DN("uid=" + userID + ",ou=People,dc=example,dc=com");
+  }
+}
@@ -0,0 +1,661 @@
+/*
+ * Copyright 2019 Neil A. Wilson
+ * All Rights Reserved.
+ */
+/*
+ * Copyright (C) 2019 Neil A. Wilson
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPLv2 only)
+ * or the terms of the GNU Lesser General Public License (LGPLv2.1 only)
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, see <http://www.gnu.org/licenses>.
+ */
+/*
+ * Copyright 2019 Neil A. Wilson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dirmgr.example.ldapjoin;
+
+
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.unboundid.ldap.listener.InMemoryDirectoryServer;
+import com.unboundid.ldap.listener.InMemoryDirectoryServerConfig;
+import com.unboundid.ldap.listener.interceptor.InMemoryInterceptedSearchRequest;
+import com.unboundid.ldap.listener.interceptor.InMemoryOperationInterceptor;
+import com.unboundid.ldap.sdk.Entry;
+import com.unboundid.ldap.sdk.LDAPConnectionPool;
+import com.unboundid.ldap.sdk.LDAPException;
+import com.unboundid.ldap.sdk.ReadOnlyEntry;
+import com.unboundid.ldap.sdk.ResultCode;
+import com.unboundid.ldap.sdk.controls.SimplePagedResultsControl;
+import com.unboundid.ldap.sdk.unboundidds.controls.JoinRequestControl;
+import com.unboundid.util.LDAPTestUtils;
+
+
+
+/**
+ * This class demonstrates how to use the
+ * {@link ManagerAndPeersLookupService} class and performs some basic testing
+ * of it against an in-memory directory server instance.  The server can be
+ * made to hold join searches until they are released, so that the test can
+ * be sure that lookups overlap.
+ */
+public class TestManagerAndPeersLookupService
+{
+  /**
+   * The number of threads that will look up the same user at the same time.
+   */
+  private static final int NUM_THREADS = 8;
+
+
+
+  /**
+   * The attributes requested by the lookups.
+   */
+  private static final String[] REQUESTED_ATTRIBUTES =
+  {
+    "givenName",
+    "sn",
+    "mail"
+  };
+
+
+
+  /**
+   * The maximum length of time, in milliseconds, to wait for the lookups to
+   * reach an expected state.
+   */
+  private static final long MAX_WAIT_MILLIS = 30_000L;
+
+
+
+  /**
+   * Creates the in-memory directory server instance and verifies that
+   * concurrent lookups for the same user share a single search, and that the
+   * service's counters reflect that.
+   *
+   * @param  args  The provided command-line arguments.
+   *
+   * @throws  Exception  If an unexpected problem occurs.
+   */
+  public static void main(final String... args)
+         throws Exception
+  {
+    final GateInterceptor gate = new GateInterceptor();
+    final InMemoryDirectoryServer ds = createServer(gate);
+    final ExecutorService executor = Executors.newFixedThreadPool(NUM_THREADS);
+
+    try (final LDAPConnectionPool pool =
+              new LDAPConnectionPool(ds.getConnection(), 1, 4))
+    {
+      final ManagerAndPeersLookupService service =
+           new ManagerAndPeersLookupService(pool, "dc=example,dc=com",
+                RetrieveUserManagerAndPeers.DEFAULT_MAX_NESTED_JOIN_PEERS,
+                REQUESTED_ATTRIBUTES);
+
+
+      // Hold the join search while several threads look up the same user.
+      // Only the first should send a search, and the others should wait for
+      // it and get the same result.
+      gate.close();
+      final List<Future<ManagerAndPeers>> sameUserFutures =
+           submitLookups(executor, service, "ernest.employee", NUM_THREADS,
+                REQUESTED_ATTRIBUTES);
+      waitForCoalescedLookups(service, NUM_THREADS - 1);
+      waitForHeldSearches(gate, 1);
+      JoinTestUtils.assertTrue(service.getInProgressLookups() == 1,
+           "Expected one lookup in progress, got " +
+                service.getInProgressLookups());
+      gate.open();
+
+      final ManagerAndPeers sharedResult = sameUserFutures.get(0).get();
+      verifyLookupResult(sharedResult);
+      for (final Future<ManagerAndPeers> f : sameUserFutures)
+      {
+        JoinTestUtils.assertTrue(f.get() == sharedResult,
+             "Expected every concurrent lookup to receive the same result");
+      }
+
+      assertCounters(service, gate, 1, 1L, NUM_THREADS - 1);
+      System.out.println(NUM_THREADS + " concurrent lookups for the same " +
+           "user shared a single search.");
+
+
+      // Results are not retained once a lookup completes, so another lookup
+      // for the same user should send another search.
+      verifyLookupResult(service.lookUp("ernest.employee"));
+      assertCounters(service, gate, 2, 2L, NUM_THREADS - 1);
+      System.out.println("A later lookup for the same user sent a new " +
+           "search.");
+
+
+      // Lookups for different users, or for the same user with different
+      // attributes, must not be coalesced.
+      gate.close();
+      final List<Future<ManagerAndPeers>> distinctFutures = new ArrayList<>(3);
+      distinctFutures.addAll(submitLookups(executor, service,
+           "ernest.employee", 1, REQUESTED_ATTRIBUTES));
+      distinctFutures.addAll(submitLookups(executor, service,
+           "ernest.employee", 1, "cn"));
+      distinctFutures.addAll(submitLookups(executor, service,
+           "charlie.coworker", 1, REQUESTED_ATTRIBUTES));
+      waitForHeldSearches(gate, 3);
+      gate.open();
+      for (final Future<ManagerAndPeers> f : distinctFutures)
+      {
+        f.get();
+      }
+
+      assertCounters(service, gate, 5, 5L, NUM_THREADS - 1);
+      System.out.println("Lookups for different users or attributes were " +
+           "not coalesced.");
+
+
+      // If the shared search fails, then every caller waiting for it should
+      // get an exception rather than waiting forever.
+      gate.close();
+      final List<Future<ManagerAndPeers>> missingUserFutures =
+           submitLookups(executor, service, "nobody.here", NUM_THREADS,
+                REQUESTED_ATTRIBUTES);
+      waitForCoalescedLookups(service, 2 * (NUM_THREADS - 1));
+      waitForHeldSearches(gate, 1);
+      gate.open();
+      for (final Future<ManagerAndPeers> f : missingUserFutures)
+      {
+        try
+        {
+          f.get();
+          throw new AssertionError(
+               "Expected the lookup for a missing user to fail");
+        }
+        catch (final ExecutionException e)
+        {
+          JoinTestUtils.assertTrue(e.getCause() instanceof LDAPException,
+               "Expected an LDAP exception, got " + e.getCause());
+          LDAPTestUtils.assertResultCodeEquals((LDAPException) e.getCause(),
+               ResultCode.NO_RESULTS_RETURNED);
+        }
+      }
+
+      assertCounters(service, gate, 6, 6L, 2 * (NUM_THREADS - 1));
+      System.out.println("A failed search was reported to all " +
+           NUM_THREADS + " callers waiting for it.");
+
+
+      // Make sure that a manager with more direct reports than the nested
+      // join will return has the peers retrieved with a paged search, and
+      // that every page is requested over the same pooled connection, since
+      // the paged results cookie is only valid on that connection.  The pool
+      // should hold several connections after the concurrent lookups above.
+      JoinTestUtils.assertTrue(
+           pool.getConnectionPoolStatistics().getNumAvailableConnections() > 1,
+           "Expected the pool to have more than one available connection");
+      final ManagerAndPeersLookupService pagedService =
+           new ManagerAndPeersLookupService(pool, "dc=example,dc=com", 1,
+                REQUESTED_ATTRIBUTES);
+      verifyLookupResult(pagedService.lookUp("ernest.employee"));
+      JoinTestUtils.assertTrue((pagedService.getFreshLookups() == 1L) &&
+                              (pagedService.getCoalescedLookups() == 0L),
+           "Expected one fresh lookup and no coalesced lookups, got " +
+                pagedService.getFreshLookups() + " and " +
+                pagedService.getCoalescedLookups());
+      JoinTestUtils.assertTrue((gate.getPagedSearches() == 3) &&
+                              (gate.getPagedSearchConnectionIDs().size() == 1),
+           "Expected 3 paged searches over one connection, got " +
+                gate.getPagedSearches() + " over connections " +
+                gate.getPagedSearchConnectionIDs());
+      System.out.println("Peers that didn't fit in the nested join were " +
+           "retrieved with a paged search over a single connection.");
+    }
+    finally
+    {
+      gate.open();
+      executor.shutdownNow();
+      ds.shutDown(true);
+    }
+
+    System.out.println("All tests yielded the expected results.");
+  }
+
+
+
+  /**
+   * Creates and starts an in-memory directory server instance with the
+   * provided gate interceptor, the join interceptor, and a small set of
+   * users.
+   *
+   * @param  gate  The interceptor that may be used to hold join searches.
+   *
+   * @return  The in-memory directory server instance that was created.
+   *
+   * @throws  Exception  If a problem occurs while creating the server.
+   */
+  private static InMemoryDirectoryServer createServer(
+                      final GateInterceptor gate)
+          throws Exception
+  {
+    final InMemoryJoinInterceptor joinInterceptor =
+         new InMemoryJoinInterceptor("manager");
+    final InMemoryDirectoryServerConfig config =
+         new InMemoryDirectoryServerConfig("dc=example,dc=com");
+    config.addInMemoryOperationInterceptor(gate);
+    config.addInMemoryOperationInterceptor(joinInterceptor);
+
+    final InMemoryDirectoryServer ds = new InMemoryDirectoryServer(config);
+    ds.add(
+         "dn: dc=example,dc=com",
+         "objectClass: top",
+         "objectClass: domain",
+         "dc: example");
+    ds.add(
+         "dn: ou=People,dc=example,dc=com",
+         "objectClass: top",
+         "objectClass: organizationalUnit",
+         "ou: People");
+    ds.add(userEntry("betty.boss", null));
+    ds.add(userEntry("ernest.employee", "betty.boss"));
+    ds.add(userEntry("charlie.coworker", "betty.boss"));
+    ds.add(userEntry("patricia.peer", "betty.boss"));
+
+    joinInterceptor.setDirectoryServer(ds);
+    ds.startListening();
+    return ds;
+  }
+
+
+
+  /**
+   * Submits the specified number of lookups for the given user.
+   *
+   * @param  executor             The executor to use to process the lookups.
+   * @param  service              The lookup service to use.
+   * @param  userID               The user ID of the user to look up.
+   * @param  numLookups           The number of lookups to submit.
+   * @param  requestedAttributes  The attributes to request.
+   *
+   * @return  The futures for the lookups that were submitted.
+   */
+  private static List<Future<ManagerAndPeers>> submitLookups(
+                      final ExecutorService executor,
+                      final ManagerAndPeersLookupService service,
+                      final String userID, final int numLookups,
+                      final String... requestedAttributes)
+  {
+    final List<Future<ManagerAndPeers>> futures = new ArrayList<>(numLookups);
+    for (int i=0; i < numLookups; i++)
+    {
+      futures.add(executor.submit(new Callable<ManagerAndPeers>()
+      {
+        @Override()
+        public ManagerAndPeers call()
+               throws LDAPException
+        {
+          return service.lookUp(userID, requestedAttributes);
+        }
+      }));
+    }
+
+    return futures;
+  }
+
+
+
+  /**
+   * Waits until the service reports the expected number of coalesced lookups.
+   *
+   * @param  service   The lookup service to check.
+   * @param  expected  The expected number of coalesced lookups.
+   *
+   * @throws  Exception  If the expected number of coalesced lookups is not
+   *                     reached in time.
+   */
+  private static void waitForCoalescedLookups(
+                      final ManagerAndPeersLookupService service,
+                      final long expected)
+          throws Exception
+  {
+    final long stopTime = System.currentTimeMillis() + MAX_WAIT_MILLIS;
+    while (service.getCoalescedLookups() < expected)
+    {
+      JoinTestUtils.assertTrue(System.currentTimeMillis() < stopTime,
+           "Timed out waiting for " + expected + " coalesced lookups.  " +
+                "Only " + service.getCoalescedLookups() + " were seen.");
+      Thread.sleep(10L);
+    }
+  }
+
+
+
+  /**
+   * Waits until the gate interceptor is holding the expected number of join
+   * searches.
+   *
+   * @param  gate      The gate interceptor to check.
+   * @param  expected  The expected number of held join searches.
+   *
+   * @throws  Exception  If the expected number of held join searches is not
+   *                     reached in time.
+   */
+  private static void waitForHeldSearches(final GateInterceptor gate,
+                                          final int expected)
+          throws Exception
+  {
+    final long stopTime = System.currentTimeMillis() + MAX_WAIT_MILLIS;
+    while (gate.getHeldSearches() < expected)
+    {
+      JoinTestUtils.assertTrue(System.currentTimeMillis() < stopTime,
+           "Timed out waiting for " + expected + " held join searches.  " +
+                "Only " + gate.getHeldSearches() + " were seen.");
+      Thread.sleep(10L);
+    }
+  }
+
+
+
+  /**
+   * Ensures that the service and the server agree about the number of
+   * searches that have been processed, and that no lookups remain in
+   * progress.
+   *
+   * @param  service                    The lookup service to check.
+   * @param  gate                       The gate interceptor to check.
+   * @param  expectedJoinSearches       The expected number of join searches
+   *                                    received by the server.
+   * @param  expectedFreshLookups       The expected number of fresh lookups.
+   * @param  expectedCoalescedLookups   The expected number of coalesced
+   *                                    lookups.
+   *
+   * @throws  AssertionError  If any of the counters do not have the expected
+   *                          value.
+   */
+  private static void assertCounters(
+                      final ManagerAndPeersLookupService service,
+                      final GateInterceptor gate,
+                      final int expectedJoinSearches,
+                      final long expectedFreshLookups,
+                      final long expectedCoalescedLookups)
+          throws AssertionError
+  {
+    JoinTestUtils.assertTrue(gate.getJoinSearches() == expectedJoinSearches,
+         "Expected the server to receive " + expectedJoinSearches +
+              " join searches, got " + gate.getJoinSearches());
+    JoinTestUtils.assertTrue(service.getFreshLookups() == expectedFreshLookups,
+         "Expected " + expectedFreshLookups + " fresh lookups, got " +
+              service.getFreshLookups());
+    JoinTestUtils.assertTrue(
+         service.getCoalescedLookups() == expectedCoalescedLookups,
+         "Expected " + expectedCoalescedLookups + " coalesced lookups, got " +
+              service.getCoalescedLookups());
+    JoinTestUtils.assertTrue(service.getInProgressLookups() == 0,
+         "Expected no lookups in progress, got " +
+              service.getInProgressLookups());
+  }
+
+
+
+  /**
+   * Ensures that the provided result has ernest.employee's manager and the
+   * expected two peers.
+   *
+   * @param  result  The lookup result to verify.
+   *
+   * @throws  Exception  If the result is not what was expected.
+   */
+  private static void verifyLookupResult(final ManagerAndPeers result)
+          throws Exception
+  {
+    JoinTestUtils.assertTrue(
+         getUserID(result.getUserEntry()).equals("ernest.employee"),
+         "Expected the entry for ernest.employee, got " +
+              result.getUserEntry().getDN());
+    JoinTestUtils.assertTrue(
+         (result.getManagerEntry() != null) &&
+         getUserID(result.getManagerEntry()).equals("betty.boss"),
+         "Expected betty.boss as the manager, got " +
+              result.getManagerEntry());
+
+    final List<String> peerIDs = new ArrayList<>(2);
+    for (final ReadOnlyEntry peerEntry : result.getPeerEntries())
+    {
+      peerIDs.add(getUserID(peerEntry));
+    }
+    JoinTestUtils.assertTrue((peerIDs.size() == 2) &&
+                            peerIDs.contains("charlie.coworker") &&
+                            peerIDs.contains("patricia.peer"),
+         "Expected charlie.coworker and patricia.peer as the peers, got " +
+              peerIDs);
+  }
+
+
+
+  /**
+   * Retrieves the user ID from the RDN of the provided entry, since the
+   * lookups don't request the uid attribute.
+   *
+   * @param  entry  The entry for which to retrieve the user ID.
+   *
+   * @return  The user ID from the RDN of the provided entry.
+   *
+   * @throws  LDAPException  If the entry's DN cannot be parsed.
+   */
+  private static String getUserID(final ReadOnlyEntry entry)
+          throws LDAPException
+  {
+    return entry.getRDN().getAttributeValues()[0];
+  }
+
+
+
+  /**
+   * Creates an entry for the user with the provided user ID.
+   *
+   * @param  userID         The user ID for the user to create.
+   * @param  managerUserID  The user ID of the user's manager.  It may be
+   *                        {@code null} if the user does not have a manager.
+   *
+   * @return  The entry that was created.
+   */
+  private static Entry userEntry(final String userID,
+                                 final String managerUserID)
+  {
+    final String[] nameParts = userID.split("\\.");
+    final Entry entry =
+         new Entry("uid=" + userID + ",ou=People,dc=example,dc=com");
+    entry.addAttribute("objectClass", "top", "person", "organizationalPerson",
+         "inetOrgPerson");
+    entry.addAttribute("uid", userID);
+    entry.addAttribute("givenName", nameParts[0]);
+    entry.addAttribute("sn", nameParts[1]);
+    entry.addAttribute("cn", nameParts[0] + ' ' + nameParts[1]);
+    entry.addAttribute("mail", userID + "@example.com");
+    if (managerUserID != null)
+    {
+      entry.addAttribute("manager",
+           "uid=" + managerUserID + ",ou=People,dc=example,dc=com");
+    }
+
+    return entry;
+  }
+
+
+
+  /**
+   * This class provides an in-memory operation interceptor that counts the
+   * search requests that include the join request control, and that can hold
+   * them until they are released, so that the test can control when a lookup
+   * completes.  It also records the connections used for searches that
+   * include the simple paged results control.
+   */
+  private static final class GateInterceptor
+          extends InMemoryOperationInterceptor
+  {
+    // The number of join searches currently being held.
+    private final AtomicInteger heldSearches = new AtomicInteger(0);
+
+    // The number of join searches received.
+    private final AtomicInteger joinSearches = new AtomicInteger(0);
+
+    // The number of paged searches received.
+    private final AtomicInteger pagedSearches = new AtomicInteger(0);
+
+    // The IDs of the connections on which paged searches were received.
+    private final Set<Long> pagedSearchConnectionIDs =
+         Collections.newSetFromMap(new ConcurrentHashMap<Long,Boolean>(4));
+
+    // The latch that join searches will wait on, or null if they should not
+    // be held.
+    private volatile CountDownLatch latch = null;
+
+
+
+    /**
+     * Causes subsequent join searches to be held until {@link #open} is
+     * called.
+     */
+    void close()
+    {
+      latch = new CountDownLatch(1);
+    }
+
+
+
+    /**
+     * Releases any held join searches, and allows subsequent join searches to
+     * proceed without waiting.
+     */
+    void open()
+    {
+      final CountDownLatch l = latch;
+      latch = null;
+      if (l != null)
+      {
+        l.countDown();
+      }
+    }
+
+
+
+    /**
+     * Retrieves the number of join searches currently being held.
+     *
+     * @return  The number of join searches currently being held.
+     */
+    int getHeldSearches()
+    {
+      return heldSearches.get();
+    }
+
+
+
+    /**
+     * Retrieves the number of join searches received.
+     *
+     * @return  The number of join searches received.
+     */
+    int getJoinSearches()
+    {
+      return joinSearches.get();
+    }
+
+
+
+    /**
+     * Retrieves the number of paged searches received.
+     *
+     * @return  The number of paged searches received.
+     */
+    int getPagedSearches()
+    {
+      return pagedSearches.get();
+    }
+
+
+
+    /**
+     * Retrieves the IDs of the connections on which paged searches were
+     * received.
+     *
+     * @return  The IDs of the connections on which paged searches were
+     *          received.
+     */
+    Set<Long> getPagedSearchConnectionIDs()
+    {
+      return pagedSearchConnectionIDs;
+    }
+
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override()
+    public void processSearchRequest(
+                     final InMemoryInterceptedSearchRequest request)
+    {
+      if (request.getRequest().hasControl(
+           SimplePagedResultsControl.PAGED_RESULTS_OID))
+      {
+        pagedSearches.incrementAndGet();
+        pagedSearchConnectionIDs.add(request.getConnectionID());
+      }
+
+      if (! request.getRequest().hasControl(
+           JoinRequestControl.JOIN_REQUEST_OID))
+      {
+        return;
+      }
+
+      joinSearches.incrementAndGet();
+      final CountDownLatch l = latch;
+      if (l != null)
+      {
+        heldSearches.incrementAndGet();
+        try
+        {
+          l.await(MAX_WAIT_MILLIS, TimeUnit.MILLISECONDS);
+        }
+        catch (final InterruptedException e)
+        {
+          Thread.currentThread().interrupt();
+        }
+        finally
+        {
+          heldSearches.decrementAndGet();
+        }
+      }
+    }
+  }
+}
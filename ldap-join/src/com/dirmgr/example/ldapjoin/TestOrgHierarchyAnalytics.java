@@ -0,0 +1,326 @@
+/*
+ * Copyright 2019 Neil A. Wilson
+ * All Rights Reserved.
+ */
+/*
+ * Copyright (C) 2019 Neil A. Wilson
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPLv2 only)
+ * or the terms of the GNU Lesser General Public License (LGPLv2.1 only)
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, see <http://www.gnu.org/licenses>.
+ */
+/*
+ * Copyright 2019 Neil A. Wilson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dirmgr.example.ldapjoin;
+
+
+
+import java.io.ByteArrayOutputStream;
+
+import com.unboundid.ldap.listener.InMemoryDirectoryServer;
+import com.unboundid.ldap.listener.InMemoryDirectoryServerConfig;
+import com.unboundid.ldap.sdk.DN;
+import com.unboundid.ldap.sdk.Filter;
+import com.unboundid.ldap.sdk.LDAPConnection;
+import com.unboundid.util.StaticUtils;
+
+
+
+/**
+ * This class demonstrates how to use the {@link OrgHierarchyAnalytics} class
+ * and performs some basic testing of it against an in-memory directory server
+ * instance.  The directory holds a small organization, a pair of users who
+ * manage each other (along with a user who reports to one of them), and a
+ * user whose manager is not among the loaded users.
+ */
+public class TestOrgHierarchyAnalytics
+{
+  /**
+   * Creates an in-memory directory server instance, populates it with a few
+   * users, and verifies the metrics computed for each of them.
+   *
+   * @param  args  The provided command-line arguments.
+   *
+   * @throws  Exception  If an unexpected problem occurs.
+   */
+  public static void main(final String... args)
+         throws Exception
+  {
+    final InMemoryDirectoryServerConfig config =
+         new InMemoryDirectoryServerConfig("dc=example,dc=com");
+    final InMemoryDirectoryServer ds = new InMemoryDirectoryServer(config);
+    ds.startListening();
+
+    try (final LDAPConnection conn = ds.getConnection())
+    {
+      conn.add(
+           "dn: dc=example,dc=com",
+           "objectClass: top",
+           "objectClass: domain",
+           "dc: example");
+      conn.add(
+           "dn: ou=People,dc=example,dc=com",
+           "objectClass: top",
+           "objectClass: organizationalUnit",
+           "ou: People");
+
+      // A three-level organization with the CEO at the top.
+      addUser(conn, "carol.ceo", null);
+      addUser(conn, "betty.boss", "carol.ceo");
+      addUser(conn, "ernest.employee", "betty.boss");
+      addUser(conn, "charlie.coworker", "betty.boss");
+      addUser(conn, "patricia.peer", "betty.boss");
+      addUser(conn, "victor.vp", "carol.ceo");
+
+      // A user whose manager doesn't exist in the directory.
+      addUser(conn, "oscar.orphan", "nobody.here");
+
+      // Two users who manage each other, and a user who reports to one of
+      // them.
+      addUser(conn, "alice.cycle", "bob.cycle");
+      addUser(conn, "bob.cycle", "alice.cycle");
+      addUser(conn, "dora.below", "alice.cycle");
+
+      final OrgHierarchyAnalytics analytics = OrgHierarchyAnalytics.load(
+           conn, "dc=example,dc=com",
+           Filter.createEqualityFilter("objectClass", "person"));
+      JoinTestUtils.assertTrue(analytics.getUserCount() == 10,
+           "Expected 10 users to be loaded, got " + analytics.getUserCount());
+
+
+      // Verify the depth of each user.
+      assertDepth(analytics, "carol.ceo", 0);
+      assertDepth(analytics, "betty.boss", 1);
+      assertDepth(analytics, "victor.vp", 1);
+      assertDepth(analytics, "ernest.employee", 2);
+      assertDepth(analytics, "patricia.peer", 2);
+      JoinTestUtils.assertTrue(analytics.getMaxDepth() == 2,
+           "Expected a maximum depth of 2, got " + analytics.getMaxDepth());
+      System.out.println("Every user had the expected depth.");
+
+
+      // Verify the direct and total reports for each manager.
+      assertReports(analytics, "carol.ceo", 2, 5);
+      assertReports(analytics, "betty.boss", 3, 3);
+      assertReports(analytics, "victor.vp", 0, 0);
+      assertReports(analytics, "charlie.coworker", 0, 0);
+      System.out.println("Every manager had the expected direct and total " +
+           "reports.");
+
+
+      // Verify that the users in and below the management cycle can't be
+      // reached, and that they don't report any subtree.
+      assertDepth(analytics, "alice.cycle", -1);
+      assertDepth(analytics, "bob.cycle", -1);
+      assertDepth(analytics, "dora.below", -1);
+      assertReports(analytics, "alice.cycle", 2, 0);
+      JoinTestUtils.assertTrue(analytics.getUnreachableUserCount() == 3,
+           "Expected 3 unreachable users, got " +
+                analytics.getUnreachableUserCount());
+      System.out.println("The users in and below the management cycle were " +
+           "reported as unreachable.");
+
+
+      // Verify that the user whose manager wasn't loaded is treated as being
+      // at the top of the organization.
+      assertDepth(analytics, "oscar.orphan", 0);
+      assertReports(analytics, "oscar.orphan", 0, 0);
+      JoinTestUtils.assertTrue(analytics.getDanglingManagerReferences() == 1,
+           "Expected one dangling manager reference, got " +
+                analytics.getDanglingManagerReferences());
+      System.out.println("The user with a missing manager was placed at the " +
+           "top of the organization.");
+
+
+      // Verify that the report is sorted by total reports and only includes
+      // managers by default.
+      final ByteArrayOutputStream reportBytes = new ByteArrayOutputStream();
+      analytics.writeReport(reportBytes,
+           OrgHierarchyAnalytics.SortOrder.TOTAL_REPORTS, false);
+      final String report = StaticUtils.toUTF8String(reportBytes.toByteArray());
+      final int carolPos = report.indexOf(userDN("carol.ceo").toString());
+      final int bettyPos = report.indexOf(userDN("betty.boss").toString());
+      JoinTestUtils.assertTrue((carolPos >= 0) && (carolPos < bettyPos),
+           "Expected carol.ceo to be listed before betty.boss in report:" +
+                StaticUtils.EOL + report);
+      JoinTestUtils.assertTrue(
+           ! report.contains(userDN("ernest.employee").toString()),
+           "Expected users without reports to be omitted from report:" +
+                StaticUtils.EOL + report);
+      System.out.println("The report was sorted by total reports.");
+
+      System.out.println("All tests yielded the expected results.");
+    }
+    finally
+    {
+      ds.shutDown(true);
+    }
+  }
+
+
+
+  /**
+   * Ensures that the specified user has the expected depth.
+   *
+   * @param  analytics      The analytics to examine.
+   * @param  userID         The user ID of the user to examine.
+   * @param  expectedDepth  The expected depth for the user.
+   *
+   * @throws  Exception  If the user doesn't have the expected depth.
+   */
+  private static void assertDepth(final OrgHierarchyAnalytics analytics,
+                                  final String userID,
+                                  final int expectedDepth)
+          throws Exception
+  {
+    final int depth = analytics.getDepth(getUserIndex(analytics, userID));
+    JoinTestUtils.assertTrue(depth == expectedDepth,
+         "Expected " + userID + " to have a depth of " + expectedDepth +
+              ", got " + depth);
+  }
+
+
+
+  /**
+   * Ensures that the specified user has the expected numbers of direct and
+   * total reports.
+   *
+   * @param  analytics             The analytics to examine.
+   * @param  userID                The user ID of the user to examine.
+   * @param  expectedDirectCount   The expected number of direct reports.
+   * @param  expectedTotalCount    The expected total number of reports.
+   *
+   * @throws  Exception  If the user doesn't have the expected numbers of
+   *                     reports.
+   */
+  private static void assertReports(final OrgHierarchyAnalytics analytics,
+                                    final String userID,
+                                    final int expectedDirectCount,
+                                    final int expectedTotalCount)
+          throws Exception
+  {
+    final int userIndex = getUserIndex(analytics, userID);
+    final int directCount = analytics.getDirectReportCount(userIndex);
+    final int totalCount = analytics.getTotalReportCount(userIndex);
+    JoinTestUtils.assertTrue(
+         (directCount == expectedDirectCount) &&
+         (totalCount == expectedTotalCount),
+         "Expected " + userID + " to have " + expectedDirectCount +
+              " direct and " + expectedTotalCount + " total reports, got " +
+              directCount + " and " + totalCount);
+  }
+
+
+
+  /**
+   * Retrieves the index of the specified user in the provided analytics.
+   *
+   * @param  analytics  The analytics to examine.
+   * @param  userID     The user ID of the user to find.
+   *
+   * @return  The index of the specified user.
+   *
+   * @throws  Exception  If the user was not loaded.
+   */
+  private static int getUserIndex(final OrgHierarchyAnalytics analytics,
+                                  final String userID)
+          throws Exception
+  {
+    final DN userDN = userDN(userID);
+    for (int i=0; i < analytics.getUserCount(); i++)
+    {
+      if (userDN.equals(new DN(analytics.getUserDN(i))))
+      {
+        return i;
+      }
+    }
+
+    throw new AssertionError("Expected user " + userID + " to be loaded");
+  }
+
+
+
+  /**
+   * Adds a user entry with the provided user ID and manager.
+   *
+   * @param  conn             The connection to use to add the entry.
+   * @param  userID           The user ID for the entry to add.
+   * @param  managerUserID    The user ID of the user's manager, or
+   *                          {@code null} if the user should not have a
+   *                          manager.
+   *
+   * @throws  Exception  If the entry cannot be added.
+   */
+  private static void addUser(final LDAPConnection conn, final String userID,
+                              final String managerUserID)
+          throws Exception
+  {
+    final String[] nameParts = userID.split("\\.");
+    if (managerUserID == null)
+    {
+      conn.add(
+           "dn: " + userDN(userID),
+           "objectClass: top",
+           "objectClass: person",
+           "objectClass: organizationalPerson",
+           "objectClass: inetOrgPerson",
+           "uid: " + userID,
+           "givenName: " + nameParts[0],
+           "sn: " + nameParts[1],
+           "cn: " + nameParts[0] + ' ' + nameParts[1]);
+    }
+    else
+    {
+      conn.add(
+           "dn: " + userDN(userID),
+           "objectClass: top",
+           "objectClass: person",
+           "objectClass: organizationalPerson",
+           "objectClass: inetOrgPerson",
+           "uid: " + userID,
+           "givenName: " + nameParts[0],
+           "sn: " + nameParts[1],
+           "cn: " + nameParts[0] + ' ' + nameParts[1],
+           "manager: " + userDN(managerUserID));
+    }
+  }
+
+
+
+  /**
+   * Retrieves the DN for the user with the provided user ID.
+   *
+   * @param  userID  The user ID for which to retrieve the DN.
+   *
+   * @return  The DN for the user with the provided user ID.
+   *
+   * @throws  Exception  If the DN cannot be constructed.
+   */
+  private static DN userDN(final String userID)
+          throws Exception
+  {
+    return new DN("uid=" + userID + ",ou=People,dc=example,dc=com");
+  }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright 2019 Neil A. Wilson
+ * All Rights Reserved.
+ */
+/*
+ * Copyright (C) 2019 Neil A. Wilson
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPLv2 only)
+ * or the terms of the GNU Lesser General Public License (LGPLv2.1 only)
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, see <http://www.gnu.org/licenses>.
+ */
+/*
+ * Copyright 2019 Neil A. Wilson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dirmgr.example.multiupdate;
+
+
+
+import com.unboundid.util.ThreadSafety;
+import com.unboundid.util.ThreadSafetyLevel;
+
+
+
+/**
+ * This class provides a controller that adjusts the maximum number of changes
+ * to include in each batch based on how long the server took to process the
+ * previous batches.  It uses an additive-increase, multiplicative-decrease
+ * (AIMD) approach:  when a batch that was limited by the number of changes is
+ * processed within the target response time, the limit for later batches is
+ * increased by a fixed step, and when any batch takes longer than the target
+ * response time, the limit is cut in half.  Batches that are small enough to
+ * be processed quickly waste round trips, while batches that are too large
+ * hold locks in the server for longer and are more likely to run into its
+ * maximum request size, so the limit will settle into a sawtooth pattern
+ * around the largest size that the server can process within the target.
+ * <BR><BR>
+ * Because the next batch is usually read while earlier batches are still being
+ * processed, some batches will have been read with a limit that has since been
+ * changed.  Those batches can't cause the limit to increase, and a batch that
+ * takes too long can't reduce the limit below half the number of changes that
+ * it contained, so the limit won't be cut repeatedly in response to batches
+ * that were all read before the first reduction took effect.
+ * <BR><BR>
+ * This class only adjusts the number of changes in a batch.  A limit on the
+ * encoded size of each batch should be enforced separately, and a batch that
+ * reaches that limit before it reaches the limit on the number of changes will
+ * not cause the number of changes to increase.
+ */
+@ThreadSafety(level=ThreadSafetyLevel.NOT_THREADSAFE)
+public final class AdaptiveBatchSizer
+{
+  /**
+   * The largest batch size that will be chosen, which leaves plenty of room to
+   * add the increment without overflowing.
+   */
+  private static final int MAX_BATCH_SIZE = Integer.MAX_VALUE / 2;
+
+
+
+  // The current maximum number of changes to include in a batch.
+  private int batchSize;
+
+  // The number of changes by which the batch size will be increased after a
+  // batch is processed within the target response time.
+  private final int increment;
+
+  // The target response time, in nanoseconds.
+  private final long targetResponseTimeNanos;
+
+
+
+  /**
+   * Creates a new adaptive batch sizer with the provided settings.
+   *
+   * @param  initialBatchSize          The maximum number of changes to include
+   *                                   in the first batch.  It will also be
+   *                                   used as the step by which the batch size
+   *                                   is increased.  It must be greater than
+   *                                   zero.
+   * @param  targetResponseTimeMillis  The target response time for each batch,
+   *                                   in milliseconds.  It must be greater
+   *                                   than zero.
+   */
+  public AdaptiveBatchSizer(final int initialBatchSize,
+                            final long targetResponseTimeMillis)
+  {
+    batchSize = Math.min(initialBatchSize, MAX_BATCH_SIZE);
+    increment = batchSize;
+    targetResponseTimeNanos = targetResponseTimeMillis * 1_000_000L;
+  }
+
+
+
+  /**
+   * Retrieves the maximum number of changes that should be included in the
+   * next batch.
+   *
+   * @return  The maximum number of changes that should be included in the
+   *          next batch.
+   */
+  public int getBatchSize()
+  {
+    return batchSize;
+  }
+
+
+
+  /**
+   * Updates the batch size to reflect the time required to process a batch.
+   *
+   * @param  batchSizeLimit     The maximum number of changes that the batch
+   *                            was allowed to contain when it was read.
+   * @param  changeCount        The number of changes that were included in the
+   *                            batch.
+   * @param  responseTimeNanos  The length of time, in nanoseconds, between
+   *                            sending the batch and receiving the result.
+   *
+   * @return  The maximum number of changes that should be included in the
+   *          next batch.
+   */
+  public int update(final int batchSizeLimit, final int changeCount,
+                    final long responseTimeNanos)
+  {
+    if (responseTimeNanos > targetResponseTimeNanos)
+    {
+      // The batch may have been smaller than the limit if it reached the
+      // maximum encoded size or the end of the LDIF file, so base the
+      // reduction on the number of changes that it actually contained.
+      batchSize = Math.max(1, Math.min(batchSize, (changeCount / 2)));
+    }
+    else if ((batchSizeLimit == batchSize) && (changeCount >= batchSize))
+    {
+      batchSize = Math.min(MAX_BATCH_SIZE, (batchSize + increment));
+    }
+
+    return batchSize;
+  }
+}
@@ -0,0 +1,453 @@
+/*
+ * Copyright 2019 Neil A. Wilson
+ * All Rights Reserved.
+ */
+/*
+ * Copyright (C) 2019 Neil A. Wilson
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPLv2 only)
+ * or the terms of the GNU Lesser General Public License (LGPLv2.1 only)
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, see <http://www.gnu.org/licenses>.
+ */
+/*
+ * Copyright 2019 Neil A. Wilson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dirmgr.example.multiupdate;
+
+
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.unboundid.ldap.sdk.AddRequest;
+import com.unboundid.ldap.sdk.Entry;
+import com.unboundid.ldap.sdk.LDAPException;
+import com.unboundid.ldap.sdk.LDAPRequest;
+import com.unboundid.ldap.sdk.Modification;
+import com.unboundid.ldap.sdk.ModifyRequest;
+import com.unboundid.ldap.sdk.OperationType;
+import com.unboundid.util.Debug;
+import com.unboundid.util.ThreadSafety;
+import com.unboundid.util.ThreadSafetyLevel;
+
+
+
+/**
+ * This class provides a mechanism for reducing the number of operations in a
+ * batch of changes before it is sent to the server, without altering the
+ * final state that the changes would produce.  It makes a single pass over the
+ * changes and applies the following rules:
+ * <UL>
+ *   <LI>Consecutive modify operations that target the same entry are merged
+ *       into a single modify operation with all of their modifications, in
+ *       their original order.</LI>
+ *   <LI>Modify operations that immediately follow an add operation for the
+ *       same entry are folded into that add operation, so that the entry is
+ *       created with the modifications already applied.  If the
+ *       modifications can't be applied to the entry locally, then they will
+ *       instead be merged into a single modify operation that follows the
+ *       add.</LI>
+ *   <LI>An add operation, any modify operations folded into it, and a delete
+ *       operation for the same entry that immediately follows them are
+ *       removed entirely.</LI>
+ * </UL>
+ * Changes count as consecutive if the only changes between them were removed
+ * by the last rule, so an entry whose children were added and then deleted
+ * can itself be removed if it is deleted afterward.  Changes that include
+ * controls are never merged or removed, since doing so could alter the effect
+ * of those controls.  Only changes within the same batch are considered.
+ * <BR><BR>
+ * These rules assume that every change would have succeeded.  For example, if
+ * an add would have failed because the entry already existed, then removing
+ * it along with the delete that follows it leaves that existing entry in
+ * place, and if one modify in a merged sequence would have failed, then none
+ * of the modifications in the merged operation will be applied.
+ */
+@ThreadSafety(level=ThreadSafetyLevel.COMPLETELY_THREADSAFE)
+public final class ChangeCoalescer
+{
+  // The number of changes in the original batch.
+  private final int originalChangeCount;
+
+  // The number of changes that were removed because they were part of an add
+  // and delete sequence for the same entry.
+  private final int cancelledChangeCount;
+
+  // The number of modify operations that were folded into an add operation.
+  private final int foldedModifyCount;
+
+  // The number of modify operations that were merged into an earlier modify
+  // operation.
+  private final int mergedModifyCount;
+
+  // The coalesced batch.
+  private final MultiUpdateBatch coalescedBatch;
+
+
+
+  /**
+   * Creates a new change coalescer with the provided information.
+   *
+   * @param  coalescedBatch        The coalesced batch.
+   * @param  originalChangeCount   The number of changes in the original
+   *                               batch.
+   * @param  mergedModifyCount     The number of modify operations that were
+   *                               merged into an earlier modify operation.
+   * @param  foldedModifyCount     The number of modify operations that were
+   *                               folded into an add operation.
+   * @param  cancelledChangeCount  The number of changes that were removed
+   *                               because they were part of an add and delete
+   *                               sequence for the same entry.
+   */
+  private ChangeCoalescer(final MultiUpdateBatch coalescedBatch,
+                          final int originalChangeCount,
+                          final int mergedModifyCount,
+                          final int foldedModifyCount,
+                          final int cancelledChangeCount)
+  {
+    this.coalescedBatch = coalescedBatch;
+    this.originalChangeCount = originalChangeCount;
+    this.mergedModifyCount = mergedModifyCount;
+    this.foldedModifyCount = foldedModifyCount;
+    this.cancelledChangeCount = cancelledChangeCount;
+  }
+
+
+
+  /**
+   * Coalesces the changes in the provided batch.
+   *
+   * @param  batch  The batch to coalesce.  It must not be {@code null}, and it
+   *                must not already have been coalesced, so each of its
+   *                requests must correspond to exactly one change record.
+   *
+   * @return  The change coalescer with the coalesced batch and information
+   *          about the changes that were removed.
+   *
+   * @throws  LDAPException  If any of the changes has a malformed DN or is of
+   *                         an unsupported type.
+   */
+  public static ChangeCoalescer coalesce(final MultiUpdateBatch batch)
+         throws LDAPException
+  {
+    // Group the changes into runs.  Each run is a sequence of changes to the
+    // same entry that can be combined into a single operation, and an open
+    // run is one to which later changes may still be added.  The runs are
+    // kept on a stack, so that when an add and delete sequence is removed,
+    // the run before it becomes eligible for merging again.
+    final List<LDAPRequest> changes = batch.getRequests();
+    final boolean[] cancelled = new boolean[changes.size()];
+    final List<ChangeRun> runs = new ArrayList<>(changes.size());
+    int cancelledChangeCount = 0;
+    for (int i=0; i < changes.size(); i++)
+    {
+      final LDAPRequest change = changes.get(i);
+      final String normalizedDN = ChangeDependencyAnalyzer.getTargetDNs(
+           change).get(0).toNormalizedString();
+      final ChangeRun lastRun;
+      if (runs.isEmpty())
+      {
+        lastRun = null;
+      }
+      else
+      {
+        lastRun = runs.get(runs.size() - 1);
+      }
+
+      final boolean continuesLastRun = (lastRun != null) && lastRun.open &&
+           (! change.hasControl()) &&
+           lastRun.normalizedDN.equals(normalizedDN);
+      final OperationType operationType = change.getOperationType();
+      if (continuesLastRun && (operationType == OperationType.MODIFY))
+      {
+        lastRun.changeIndexes.add(i);
+      }
+      else if (continuesLastRun && (operationType == OperationType.DELETE) &&
+           (lastRun.operationType == OperationType.ADD))
+      {
+        runs.remove(runs.size() - 1);
+        for (final Integer changeIndex : lastRun.changeIndexes)
+        {
+          cancelled[changeIndex] = true;
+        }
+        cancelled[i] = true;
+        cancelledChangeCount += lastRun.changeIndexes.size() + 1;
+      }
+      else
+      {
+        final boolean open = (! change.hasControl()) &&
+             ((operationType == OperationType.ADD) ||
+              (operationType == OperationType.MODIFY));
+        runs.add(new ChangeRun(operationType, normalizedDN, open, i));
+      }
+    }
+
+
+    // Create a request for each run.  Keep track of the index of the last
+    // change covered by each request so that checkpoints can be mapped back to
+    // positions in the LDIF file.
+    final List<LDAPRequest> requests = new ArrayList<>(runs.size());
+    final List<Integer> lastChangeIndexes = new ArrayList<>(runs.size());
+    int mergedModifyCount = 0;
+    int foldedModifyCount = 0;
+    for (final ChangeRun run : runs)
+    {
+      final int firstIndex = run.changeIndexes.get(0);
+      final int lastIndex =
+           run.changeIndexes.get(run.changeIndexes.size() - 1);
+      if (run.changeIndexes.size() == 1)
+      {
+        requests.add(changes.get(firstIndex));
+        lastChangeIndexes.add(firstIndex);
+        continue;
+      }
+
+      final int firstModifyPosition;
+      if (run.operationType == OperationType.ADD)
+      {
+        firstModifyPosition = 1;
+      }
+      else
+      {
+        firstModifyPosition = 0;
+      }
+
+      final List<Modification> modifications = new ArrayList<>(10);
+      for (int p=firstModifyPosition; p < run.changeIndexes.size(); p++)
+      {
+        modifications.addAll(((ModifyRequest)
+             changes.get(run.changeIndexes.get(p))).getModifications());
+      }
+
+      if (run.operationType == OperationType.ADD)
+      {
+        final AddRequest addRequest = (AddRequest) changes.get(firstIndex);
+        try
+        {
+          final Entry entry = Entry.applyModifications(addRequest.toEntry(),
+               false, modifications);
+          requests.add(new AddRequest(entry));
+          lastChangeIndexes.add(lastIndex);
+          foldedModifyCount += run.changeIndexes.size() - 1;
+          continue;
+        }
+        catch (final LDAPException e)
+        {
+          // The modifications can't be applied to the entry locally, so they
+          // will be sent in a separate modify operation and the server can
+          // decide what to do with them.
+          Debug.debugException(e);
+          requests.add(addRequest);
+          lastChangeIndexes.add(firstIndex);
+        }
+      }
+
+      final int modifyCount = run.changeIndexes.size() - firstModifyPosition;
+      if (modifyCount == 1)
+      {
+        requests.add(changes.get(lastIndex));
+      }
+      else
+      {
+        requests.add(new ModifyRequest(
+             ((ModifyRequest) changes.get(lastIndex)).getDN(),
+             modifications));
+        mergedModifyCount += modifyCount - 1;
+      }
+      lastChangeIndexes.add(lastIndex);
+    }
+
+
+    // Determine how far through the LDIF file processing will have gotten
+    // once each number of requests has been acknowledged.  That is everything
+    // up to the last change covered by the last acknowledged request, plus
+    // any removed changes that come immediately after it.  Because runs are
+    // only combined when everything between them was removed, the removed
+    // changes always form complete add and delete sequences.
+    final long firstChangeNumber = batch.getFirstChangeNumber();
+    final long[] checkpointChangeNumbers = new long[requests.size() + 1];
+    final long[] checkpointOffsets = new long[requests.size() + 1];
+    for (int r=0; r <= requests.size(); r++)
+    {
+      int processedChanges;
+      if (r == 0)
+      {
+        processedChanges = 0;
+      }
+      else
+      {
+        processedChanges = lastChangeIndexes.get(r - 1) + 1;
+      }
+
+      while ((processedChanges < changes.size()) &&
+           cancelled[processedChanges])
+      {
+        processedChanges++;
+      }
+
+      checkpointChangeNumbers[r] = firstChangeNumber + processedChanges - 1L;
+      if (processedChanges == 0)
+      {
+        checkpointOffsets[r] = -1L;
+      }
+      else
+      {
+        checkpointOffsets[r] = batch.getCheckpointOffset(processedChanges);
+      }
+    }
+
+    final MultiUpdateBatch coalescedBatch = new MultiUpdateBatch(
+         batch.getBatchNumber(), firstChangeNumber,
+         batch.getLastChangeNumber(), requests, checkpointChangeNumbers,
+         checkpointOffsets, batch.getEncodedSize());
+    return new ChangeCoalescer(coalescedBatch, changes.size(),
+         mergedModifyCount, foldedModifyCount, cancelledChangeCount);
+  }
+
+
+
+  /**
+   * Retrieves the coalesced batch.
+   *
+   * @return  The coalesced batch.
+   */
+  public MultiUpdateBatch getCoalescedBatch()
+  {
+    return coalescedBatch;
+  }
+
+
+
+  /**
+   * Retrieves the number of changes in the original batch.
+   *
+   * @return  The number of changes in the original batch.
+   */
+  public int getOriginalChangeCount()
+  {
+    return originalChangeCount;
+  }
+
+
+
+  /**
+   * Retrieves the total number of operations that were removed from the
+   * original batch, whether by merging, folding, or cancellation.
+   *
+   * @return  The total number of operations that were removed from the
+   *          original batch.
+   */
+  public int getRemovedChangeCount()
+  {
+    return originalChangeCount - coalescedBatch.getRequests().size();
+  }
+
+
+
+  /**
+   * Retrieves the number of modify operations that were merged into an earlier
+   * modify operation for the same entry.
+   *
+   * @return  The number of modify operations that were merged into an earlier
+   *          modify operation for the same entry.
+   */
+  public int getMergedModifyCount()
+  {
+    return mergedModifyCount;
+  }
+
+
+
+  /**
+   * Retrieves the number of modify operations that were folded into an add
+   * operation for the same entry.
+   *
+   * @return  The number of modify operations that were folded into an add
+   *          operation for the same entry.
+   */
+  public int getFoldedModifyCount()
+  {
+    return foldedModifyCount;
+  }
+
+
+
+  /**
+   * Retrieves the number of changes that were removed because they were part
+   * of an add and delete sequence for the same entry.
+   *
+   * @return  The number of changes that were removed because they were part of
+   *          an add and delete sequence for the same entry.
+   */
+  public int getCancelledChangeCount()
+  {
+    return cancelledChangeCount;
+  }
+
+
+
+  /**
+   * This class holds information about a sequence of changes to the same entry
+   * that may be combined into a single operation.
+   */
+  private static final class ChangeRun
+  {
+    // Indicates whether later changes may still be added to this run.
+    private final boolean open;
+
+    // The indexes of the changes in this run.
+    private final List<Integer> changeIndexes;
+
+    // The type of operation for the first change in this run.
+    private final OperationType operationType;
+
+    // The normalized DN of the entry targeted by this run.
+    private final String normalizedDN;
+
+
+
+    /**
+     * Creates a new change run with the provided information.
+     *
+     * @param  operationType  The type of operation for the first change in
+     *                        this run.
+     * @param  normalizedDN   The normalized DN of the entry targeted by this
+     *                        run.
+     * @param  open           Indicates whether later changes may still be
+     *                        added to this run.
+     * @param  changeIndex    The index of the first change in this run.
+     */
+    private ChangeRun(final OperationType operationType,
+                      final String normalizedDN, final boolean open,
+                      final int changeIndex)
+    {
+      this.operationType = operationType;
+      this.normalizedDN = normalizedDN;
+      this.open = open;
+
+      changeIndexes = new ArrayList<>(1);
+      changeIndexes.add(changeIndex);
+    }
+  }
+}
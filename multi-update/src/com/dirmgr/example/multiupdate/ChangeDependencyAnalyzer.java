@@ -0,0 +1,575 @@
+/*
+ * Copyright 2019 Neil A. Wilson
+ * All Rights Reserved.
+ */
+/*
+ * Copyright (C) 2019 Neil A. Wilson
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPLv2 only)
+ * or the terms of the GNU Lesser General Public License (LGPLv2.1 only)
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, see <http://www.gnu.org/licenses>.
+ */
+/*
+ * Copyright 2019 Neil A. Wilson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dirmgr.example.multiupdate;
+
+
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+import com.unboundid.ldap.sdk.AddRequest;
+import com.unboundid.ldap.sdk.DN;
+import com.unboundid.ldap.sdk.DeleteRequest;
+import com.unboundid.ldap.sdk.LDAPException;
+import com.unboundid.ldap.sdk.LDAPRequest;
+import com.unboundid.ldap.sdk.ModifyDNRequest;
+import com.unboundid.ldap.sdk.ModifyRequest;
+import com.unboundid.ldap.sdk.OperationType;
+import com.unboundid.ldap.sdk.RDN;
+import com.unboundid.ldap.sdk.ResultCode;
+import com.unboundid.util.ThreadSafety;
+import com.unboundid.util.ThreadSafetyLevel;
+
+
+
+/**
+ * This class provides a mechanism for analyzing the dependencies between a
+ * sequence of changes so that changes that do not depend on each other may be
+ * applied in parallel.  It builds a directed acyclic graph in which each change
+ * has an edge to every earlier change that must be applied before it, using
+ * the following rules:
+ * <UL>
+ *   <LI>Every change depends on the most recent earlier change that targets
+ *       the same entry.</LI>
+ *   <LI>Every change depends on the most recent earlier add, delete, or modify
+ *       DN operation that targets any of its ancestors.  For example, an entry
+ *       can't be added or modified until its parent has been added or
+ *       renamed.</LI>
+ *   <LI>Every add, delete, and modify DN operation depends on all earlier
+ *       changes that target the same entry or any of its descendants.  For
+ *       example, an entry can't be deleted until all of its children have been
+ *       deleted.</LI>
+ * </UL>
+ * A modify DN operation is treated as a change to both the original DN and the
+ * new DN.  DNs are compared in normalized form.  An edge that is already
+ * implied by a path through a later add, delete, or modify DN operation may
+ * be omitted, since it doesn't change the order in which the changes must be
+ * applied.
+ * <BR><BR>
+ * The changes are then grouped into connected components.  Changes in
+ * different components are completely independent of each other and may be
+ * applied concurrently, while the changes within a component must be applied
+ * in their original order.  The length of the longest dependency chain (the
+ * critical path) provides a lower bound on the number of sequential steps
+ * needed to apply the changes, no matter how many connections are used.
+ */
+@ThreadSafety(level=ThreadSafetyLevel.COMPLETELY_THREADSAFE)
+public final class ChangeDependencyAnalyzer
+{
+  // The number of changes in each component, indexed by component number.
+  private final int[] componentSizes;
+
+  // The component number for each change.  Components are numbered in the
+  // order in which their first change appears.
+  private final int[] components;
+
+  // The length of the longest dependency chain that ends with each change.
+  private final int[] chainLengths;
+
+  // The indexes of the earlier changes on which each change directly depends,
+  // in ascending order.
+  private final int[][] dependencies;
+
+  // The length of the longest dependency chain.
+  private final int criticalPathLength;
+
+  // The total number of direct dependencies between changes.
+  private final long dependencyCount;
+
+
+
+  /**
+   * Creates a new change dependency analyzer with the provided dependency
+   * graph.
+   *
+   * @param  dependencies  The indexes of the earlier changes on which each
+   *                       change directly depends.
+   */
+  private ChangeDependencyAnalyzer(final int[][] dependencies)
+  {
+    this.dependencies = dependencies;
+
+    final int numChanges = dependencies.length;
+    final int[] unionFindParents = new int[numChanges];
+    chainLengths = new int[numChanges];
+
+    long numDependencies = 0L;
+    int longestChain = 0;
+    for (int i=0; i < numChanges; i++)
+    {
+      unionFindParents[i] = i;
+
+      // Dependencies always refer to earlier changes, so the input order is a
+      // topological order of the graph.
+      int chainLength = 1;
+      for (final int d : dependencies[i])
+      {
+        chainLength = Math.max(chainLength, chainLengths[d] + 1);
+        union(unionFindParents, i, d);
+        numDependencies++;
+      }
+
+      chainLengths[i] = chainLength;
+      longestChain = Math.max(longestChain, chainLength);
+    }
+
+    dependencyCount = numDependencies;
+    criticalPathLength = longestChain;
+
+
+    // Assign component numbers in the order that each component first
+    // appears.
+    components = new int[numChanges];
+    final int[] componentForRoot = new int[numChanges];
+    Arrays.fill(componentForRoot, -1);
+    int numComponents = 0;
+    for (int i=0; i < numChanges; i++)
+    {
+      final int root = find(unionFindParents, i);
+      if (componentForRoot[root] < 0)
+      {
+        componentForRoot[root] = numComponents++;
+      }
+
+      components[i] = componentForRoot[root];
+    }
+
+    componentSizes = new int[numComponents];
+    for (final int c : components)
+    {
+      componentSizes[c]++;
+    }
+  }
+
+
+
+  /**
+   * Analyzes the dependencies between the provided changes.
+   *
+   * @param  changes  The changes to analyze, in the order in which they would
+   *                  be applied.  It must not be {@code null}, and it must only
+   *                  contain add, delete, modify, and modify DN requests.
+   *
+   * @return  The change dependency analyzer with the results of the analysis.
+   *
+   * @throws  LDAPException  If any of the changes has a malformed DN or is of
+   *                         an unsupported type.
+   */
+  public static ChangeDependencyAnalyzer analyze(
+                     final List<? extends LDAPRequest> changes)
+         throws LDAPException
+  {
+    // The most recent change that targets each normalized DN.
+    final Map<String,Integer> lastChangeForDN = new HashMap<>(changes.size());
+
+    // The most recent add, delete, or modify DN operation that targets each
+    // normalized DN.
+    final Map<String,Integer> lastStructuralChangeForDN =
+         new HashMap<>(changes.size());
+
+    // The changes that target each entry since the last add, delete, or
+    // modify DN operation for that entry or any of its ancestors.  Any change
+    // that precedes that operation is already an indirect dependency.  Each
+    // changed DN is only stored once, rather than once for each ancestor.
+    final ChangeTargetIndex<Integer> pendingChanges = new ChangeTargetIndex<>();
+
+    final int[][] dependencies = new int[changes.size()][];
+    for (int i=0; i < changes.size(); i++)
+    {
+      final LDAPRequest change = changes.get(i);
+      final List<DN> targetDNs = getTargetDNs(change);
+      final boolean structural =
+           (change.getOperationType() != OperationType.MODIFY);
+
+      final TreeSet<Integer> changeDependencies = new TreeSet<>();
+      for (final DN targetDN : targetDNs)
+      {
+        final String normalizedDN = targetDN.toNormalizedString();
+        final Integer lastChange = lastChangeForDN.get(normalizedDN);
+        if (lastChange != null)
+        {
+          changeDependencies.add(lastChange);
+        }
+
+        if (structural)
+        {
+          pendingChanges.removeSubtree(targetDN, changeDependencies);
+        }
+
+        DN ancestorDN = targetDN.getParent();
+        while (ancestorDN != null)
+        {
+          final Integer lastStructuralChange = lastStructuralChangeForDN.get(
+               ancestorDN.toNormalizedString());
+          if (lastStructuralChange != null)
+          {
+            changeDependencies.add(lastStructuralChange);
+          }
+
+          ancestorDN = ancestorDN.getParent();
+        }
+      }
+
+      dependencies[i] = new int[changeDependencies.size()];
+      int pos = 0;
+      for (final Integer d : changeDependencies)
+      {
+        dependencies[i][pos++] = d;
+      }
+
+
+      // Record this change so that later changes can depend on it.
+      for (final DN targetDN : targetDNs)
+      {
+        final String normalizedDN = targetDN.toNormalizedString();
+        lastChangeForDN.put(normalizedDN, i);
+        if (structural)
+        {
+          lastStructuralChangeForDN.put(normalizedDN, i);
+        }
+
+        pendingChanges.add(targetDN, structural, i);
+      }
+    }
+
+    return new ChangeDependencyAnalyzer(dependencies);
+  }
+
+
+
+  /**
+   * Retrieves the DNs of the entries targeted by the provided change.  For a
+   * modify DN operation, this will include both the original DN and the new
+   * DN.
+   *
+   * @param  change  The change for which to retrieve the target DNs.
+   *
+   * @return  The DNs of the entries targeted by the provided change.
+   *
+   * @throws  LDAPException  If a DN is malformed or the change is of an
+   *                         unsupported type.
+   */
+  static List<DN> getTargetDNs(final LDAPRequest change)
+         throws LDAPException
+  {
+    switch (change.getOperationType())
+    {
+      case ADD:
+        return Collections.singletonList(
+             new DN(((AddRequest) change).getDN()));
+      case DELETE:
+        return Collections.singletonList(
+             new DN(((DeleteRequest) change).getDN()));
+      case MODIFY:
+        return Collections.singletonList(
+             new DN(((ModifyRequest) change).getDN()));
+      case MODIFY_DN:
+        final ModifyDNRequest modifyDNRequest = (ModifyDNRequest) change;
+        final DN currentDN = new DN(modifyDNRequest.getDN());
+        final DN newParentDN;
+        if (modifyDNRequest.getNewSuperiorDN() == null)
+        {
+          newParentDN = currentDN.getParent();
+        }
+        else
+        {
+          newParentDN = new DN(modifyDNRequest.getNewSuperiorDN());
+        }
+
+        final RDN newRDN = new RDN(modifyDNRequest.getNewRDN());
+        final DN newDN;
+        if (newParentDN == null)
+        {
+          newDN = new DN(newRDN);
+        }
+        else
+        {
+          newDN = new DN(newRDN, newParentDN);
+        }
+
+        return Arrays.asList(currentDN, newDN);
+      default:
+        throw new LDAPException(ResultCode.NOT_SUPPORTED,
+             "Unable to analyze dependencies for a change of type " +
+                  change.getOperationType().name() + '.');
+    }
+  }
+
+
+
+  /**
+   * Finds the root of the union-find set that contains the specified element,
+   * compressing the path along the way.
+   *
+   * @param  parents  The union-find parent array.
+   * @param  element  The element for which to find the root.
+   *
+   * @return  The root of the set that contains the specified element.
+   */
+  private static int find(final int[] parents, final int element)
+  {
+    int e = element;
+    while (parents[e] != e)
+    {
+      parents[e] = parents[parents[e]];
+      e = parents[e];
+    }
+
+    return e;
+  }
+
+
+
+  /**
+   * Merges the union-find sets that contain the specified elements.
+   *
+   * @param  parents  The union-find parent array.
+   * @param  first    The first element.
+   * @param  second   The second element.
+   */
+  private static void union(final int[] parents, final int first,
+                            final int second)
+  {
+    final int firstRoot = find(parents, first);
+    final int secondRoot = find(parents, second);
+    if (firstRoot != secondRoot)
+    {
+      // Keep the earlier change as the root so that roots are stable.
+      if (firstRoot < secondRoot)
+      {
+        parents[secondRoot] = firstRoot;
+      }
+      else
+      {
+        parents[firstRoot] = secondRoot;
+      }
+    }
+  }
+
+
+
+  /**
+   * Retrieves the number of changes that were analyzed.
+   *
+   * @return  The number of changes that were analyzed.
+   */
+  public int getChangeCount()
+  {
+    return dependencies.length;
+  }
+
+
+
+  /**
+   * Retrieves the indexes of the earlier changes on which the specified change
+   * directly depends.
+   *
+   * @param  changeIndex  The index of the change for which to retrieve the
+   *                      dependencies.
+   *
+   * @return  The indexes of the earlier changes on which the specified change
+   *          directly depends, in ascending order.
+   */
+  public int[] getDependencies(final int changeIndex)
+  {
+    return dependencies[changeIndex].clone();
+  }
+
+
+
+  /**
+   * Retrieves the total number of direct dependencies between changes, which
+   * is the number of edges in the dependency graph.
+   *
+   * @return  The total number of direct dependencies between changes.
+   */
+  public long getDependencyCount()
+  {
+    return dependencyCount;
+  }
+
+
+
+  /**
+   * Retrieves the number of independent components.
+   *
+   * @return  The number of independent components.
+   */
+  public int getComponentCount()
+  {
+    return componentSizes.length;
+  }
+
+
+
+  /**
+   * Retrieves the number of the component that contains the specified change.
+   * Components are numbered starting at zero in the order in which their first
+   * change appears.
+   *
+   * @param  changeIndex  The index of the change.
+   *
+   * @return  The number of the component that contains the specified change.
+   */
+  public int getComponent(final int changeIndex)
+  {
+    return components[changeIndex];
+  }
+
+
+
+  /**
+   * Retrieves the number of changes in the largest component.
+   *
+   * @return  The number of changes in the largest component, or zero if there
+   *          were no changes.
+   */
+  public int getLargestComponentSize()
+  {
+    int largest = 0;
+    for (final int size : componentSizes)
+    {
+      largest = Math.max(largest, size);
+    }
+
+    return largest;
+  }
+
+
+
+  /**
+   * Retrieves the length of the longest chain of dependent changes.  This is
+   * the minimum number of changes that must be applied one after another, no
+   * matter how many connections are used.
+   *
+   * @return  The length of the longest chain of dependent changes, or zero if
+   *          there were no changes.
+   */
+  public int getCriticalPathLength()
+  {
+    return criticalPathLength;
+  }
+
+
+
+  /**
+   * Retrieves the length of the longest chain of dependent changes that ends
+   * with the specified change.
+   *
+   * @param  changeIndex  The index of the change.
+   *
+   * @return  The length of the longest chain of dependent changes that ends
+   *          with the specified change.
+   */
+  public int getChainLength(final int changeIndex)
+  {
+    return chainLengths[changeIndex];
+  }
+
+
+
+  /**
+   * Divides the changes into up to the specified number of lanes that can be
+   * applied concurrently.  All of the changes in a component will be assigned
+   * to the same lane, and the changes in each lane will be in their original
+   * order, so every dependency chain keeps its order.  Components are assigned
+   * largest first to the lane with the fewest changes so far, which keeps the
+   * lanes as balanced as the components allow.
+   *
+   * @param  maxLanes  The maximum number of lanes to use.  It must be greater
+   *                   than zero.
+   *
+   * @return  A list of the lanes, each of which is a list of change indexes in
+   *          ascending order.  There will be no more lanes than there are
+   *          components, and none of the lanes will be empty.
+   */
+  public List<List<Integer>> scheduleLanes(final int maxLanes)
+  {
+    final int numLanes = Math.min(maxLanes, componentSizes.length);
+    if (numLanes <= 0)
+    {
+      return Collections.emptyList();
+    }
+
+
+    // Sort the components by size, largest first.  Pack the size and the
+    // component number into a single long so the sort is on primitives.
+    final long[] sortKeys = new long[componentSizes.length];
+    for (int c=0; c < componentSizes.length; c++)
+    {
+      sortKeys[c] = (((long) componentSizes[c]) << 32) | c;
+    }
+    Arrays.sort(sortKeys);
+
+
+    // Assign each component to the least loaded lane.
+    final int[] laneForComponent = new int[componentSizes.length];
+    final long[] laneSizes = new long[numLanes];
+    for (int k=sortKeys.length - 1; k >= 0; k--)
+    {
+      final int component = (int) (sortKeys[k] & 0xFFFF_FFFFL);
+      int lane = 0;
+      for (int l=1; l < numLanes; l++)
+      {
+        if (laneSizes[l] < laneSizes[lane])
+        {
+          lane = l;
+        }
+      }
+
+      laneForComponent[component] = lane;
+      laneSizes[lane] += componentSizes[component];
+    }
+
+    final List<List<Integer>> lanes = new ArrayList<>(numLanes);
+    for (int l=0; l < numLanes; l++)
+    {
+      lanes.add(new ArrayList<Integer>((int) laneSizes[l]));
+    }
+
+    for (int i=0; i < components.length; i++)
+    {
+      lanes.get(laneForComponent[components[i]]).add(i);
+    }
+
+    return lanes;
+  }
+}
@@ -0,0 +1,1030 @@
+/*
+ * Copyright 2019 Neil A. Wilson
+ * All Rights Reserved.
+ */
+/*
+ * Copyright (C) 2019 Neil A. Wilson
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPLv2 only)
+ * or the terms of the GNU Lesser General Public License (LGPLv2.1 only)
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, see <http://www.gnu.org/licenses>.
+ */
+/*
+ * Copyright 2019 Neil A. Wilson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dirmgr.example.multiupdate;
+
+
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ThreadLocalRandom;
+
+import com.unboundid.ldap.sdk.DN;
+import com.unboundid.ldap.sdk.LDAPException;
+import com.unboundid.ldap.sdk.LDAPRequest;
+import com.unboundid.ldap.sdk.LDAPResult;
+import com.unboundid.ldap.sdk.OperationType;
+import com.unboundid.ldap.sdk.ResultCode;
+import com.unboundid.ldap.sdk.unboundidds.extensions.MultiUpdateExtendedResult;
+import com.unboundid.util.Debug;
+import com.unboundid.util.ObjectPair;
+import com.unboundid.util.ThreadSafety;
+import com.unboundid.util.ThreadSafetyLevel;
+
+
+
+/**
+ * This class keeps track of changes that failed with a result code that
+ * indicates a transient problem in the server, like {@code BUSY},
+ * {@code UNAVAILABLE}, or {@code TIME_LIMIT_EXCEEDED}, and schedules them to
+ * be sent again in a later batch.  It is intended for use with the
+ * continue-on-error behavior, in which a failed change doesn't affect whether
+ * the other changes in the same batch are attempted.
+ * <BR><BR>
+ * The changes from a batch that should be retried are grouped into a retry
+ * batch of their own, which becomes ready after an exponentially increasing
+ * delay, with random jitter so that several clients backing off at the same
+ * time don't all retry at the same moment.  A change is attempted at most one
+ * more time than the configured maximum number of retry attempts.  The
+ * scheduler also records the outcome of every change that was retried and
+ * every change that ultimately failed, so that permanent failures can be
+ * reported separately from the changes that eventually succeeded.
+ * <BR><BR>
+ * Retrying a change never makes it overtake a later change that conflicts
+ * with it.  Two changes conflict if they target the same entry, or if one of
+ * them is an add, delete, or modify DN operation that targets an ancestor of
+ * the entry targeted by the other, as described in the
+ * {@link ChangeTargetIndex} class.  To keep that guarantee, every batch must be
+ * passed to the {@link #recordSentBatch} method when it is sent, and its
+ * results must be passed to the {@link #processResults} method in the same
+ * order in which the batches were sent.  A failed change is only retried if
+ * every later conflicting change that has already been sent is retried along
+ * with it, in the same retry batch and in the same order.  If a conflicting
+ * change is sent while a change is waiting to be retried, then the retry is
+ * cancelled.  In either case, the change is recorded as a permanent failure
+ * that was superseded by a later change.  A modify DN operation affects both
+ * its original DN and its new DN.
+ */
+@ThreadSafety(level=ThreadSafetyLevel.NOT_THREADSAFE)
+public final class ChangeRetryScheduler
+{
+  // Indicates whether retrying has been stopped.
+  private boolean stopped;
+
+  // The maximum number of times that a change may be retried.
+  private final int maxRetryAttempts;
+
+  // The number of changes that failed with a transient result code on their
+  // first attempt while retrying was enabled.
+  private long transientFailureCount;
+
+  // The number of changes that were scheduled to be retried but were given
+  // up on without succeeding.
+  private long abandonedRetryCount;
+
+  // A counter used to keep retry batches that become ready at the same time in
+  // the order in which they were scheduled.
+  private long retrySequence;
+
+  // The delay in milliseconds before the first retry of a change.
+  private final long initialDelayMillis;
+
+  // The maximum delay in milliseconds before any retry of a change.
+  private final long maxDelayMillis;
+
+  // The changes that failed and won't be retried.
+  private final List<ChangeOutcome> permanentFailures;
+
+  // The changes that succeeded after being retried.
+  private final List<ChangeOutcome> recoveredChanges;
+
+  // The outcomes of the changes that are waiting to be retried or are being
+  // retried, keyed by the request used to send each change.
+  private final Map<LDAPRequest,ChangeOutcome> changesBeingRetried;
+
+  // The changes that are waiting to be retried, indexed by the DNs of the
+  // entries that they target.
+  private final ChangeTargetIndex<LDAPRequest> waitingChanges;
+
+  // The retry batches that have not yet been sent, ordered by the time at
+  // which they become ready.
+  private final PriorityQueue<RetryBatch> pendingRetryBatches;
+
+  // The batches that have been sent but whose results have not yet been
+  // processed, in the order in which they were sent.
+  private final ArrayDeque<SentBatch> unprocessedBatches;
+
+
+
+  /**
+   * Creates a new change retry scheduler with the provided settings.
+   *
+   * @param  maxRetryAttempts    The maximum number of times that a change may
+   *                             be retried.  It must be greater than zero.
+   * @param  initialDelayMillis  The delay in milliseconds before the first
+   *                             retry of a change.  It must be greater than
+   *                             zero.
+   * @param  maxDelayMillis      The maximum delay in milliseconds before any
+   *                             retry of a change.  It must be greater than or
+   *                             equal to the initial delay.
+   */
+  public ChangeRetryScheduler(final int maxRetryAttempts,
+                              final long initialDelayMillis,
+                              final long maxDelayMillis)
+  {
+    this.maxRetryAttempts = maxRetryAttempts;
+    this.initialDelayMillis = initialDelayMillis;
+    this.maxDelayMillis = maxDelayMillis;
+
+    stopped = false;
+    transientFailureCount = 0L;
+    abandonedRetryCount = 0L;
+    retrySequence = 0L;
+    permanentFailures = new ArrayList<>(10);
+    recoveredChanges = new ArrayList<>(10);
+    changesBeingRetried = new IdentityHashMap<>(100);
+    waitingChanges = new ChangeTargetIndex<>();
+    unprocessedBatches = new ArrayDeque<>(10);
+    pendingRetryBatches = new PriorityQueue<>(10,
+         (final RetryBatch b1, final RetryBatch b2) ->
+         {
+           final int timeComparison =
+                Long.compare(b1.readyTimeNanos - b2.readyTimeNanos, 0L);
+           if (timeComparison != 0)
+           {
+             return timeComparison;
+           }
+
+           return Long.compare(b1.sequence, b2.sequence);
+         });
+  }
+
+
+
+  /**
+   * Indicates whether the provided result code represents a transient problem
+   * for which a change may be retried.
+   *
+   * @param  resultCode  The result code for which to make the determination.
+   *
+   * @return  {@code true} if the provided result code represents a transient
+   *          problem, or {@code false} if not.
+   */
+  public static boolean isRetryable(final ResultCode resultCode)
+  {
+    return (resultCode == ResultCode.BUSY) ||
+         (resultCode == ResultCode.UNAVAILABLE) ||
+         (resultCode == ResultCode.TIME_LIMIT_EXCEEDED);
+  }
+
+
+
+  /**
+   * Records that the provided batch is being sent to the server.  Any change
+   * that is waiting to be retried and conflicts with one of the changes in the
+   * batch will no longer be retried, since the retry would otherwise be applied
+   * after the later change.
+   *
+   * @param  batch  The batch that is being sent.  It may be a batch that was
+   *                read from the LDIF file or a retry batch returned by the
+   *                {@link #nextRetryBatch} method.
+   */
+  public void recordSentBatch(final MultiUpdateBatch batch)
+  {
+    unprocessedBatches.addLast(new SentBatch(batch));
+    if (waitingChanges.isEmpty())
+    {
+      return;
+    }
+
+
+    // The changes in a retry batch are no longer waiting once it is sent.
+    // Any other change that conflicts with a waiting change supersedes it.
+    final List<LDAPRequest> otherRequests =
+         new ArrayList<>(batch.getRequests().size());
+    for (final LDAPRequest request : batch.getRequests())
+    {
+      if (changesBeingRetried.containsKey(request))
+      {
+        for (final DN dn : getTargetDNs(request))
+        {
+          waitingChanges.remove(dn, request);
+        }
+      }
+      else
+      {
+        otherRequests.add(request);
+      }
+    }
+
+    final List<LDAPRequest> supersededChanges = new ArrayList<>(10);
+    for (final LDAPRequest request : otherRequests)
+    {
+      for (final DN dn : getTargetDNs(request))
+      {
+        waitingChanges.getConflictingValues(dn, isStructural(request),
+             supersededChanges);
+      }
+    }
+
+    for (final LDAPRequest supersededChange : supersededChanges)
+    {
+      final ChangeOutcome outcome =
+           changesBeingRetried.remove(supersededChange);
+      if (outcome != null)
+      {
+        for (final DN dn : getTargetDNs(supersededChange))
+        {
+          waitingChanges.remove(dn, supersededChange);
+        }
+
+        outcome.superseded = true;
+        permanentFailures.add(outcome);
+        abandonedRetryCount++;
+      }
+    }
+  }
+
+
+
+  /**
+   * Examines the results of the changes in the provided batch, records the
+   * outcome of each one that failed or was being retried, and schedules the
+   * changes that failed with a transient result code to be retried if they
+   * haven't already been retried the maximum number of times, and if doing so
+   * won't cause them to be applied after a later conflicting change.  A
+   * change that wasn't attempted is treated as if it failed with the result
+   * code for the batch as a whole.
+   *
+   * @param  batch              The batch of changes that was processed.  It
+   *                            may be a batch that was read from the LDIF file
+   *                            or a retry batch created by this scheduler.
+   * @param  multiUpdateResult  The multi-update extended result for the batch.
+   *
+   * @return  The retry batch that was scheduled for the changes that will be
+   *          retried, or {@code null} if none of them will be retried.
+   */
+  public RetryBatch processResults(final MultiUpdateBatch batch,
+                         final MultiUpdateExtendedResult multiUpdateResult)
+  {
+    // Any batches that were sent before this one but never had their results
+    // processed are no longer of interest.  The batches that remain were sent
+    // after this one.
+    while (! unprocessedBatches.isEmpty())
+    {
+      if (unprocessedBatches.removeFirst().batch == batch)
+      {
+        break;
+      }
+    }
+
+    final List<LDAPRequest> requests = batch.getRequests();
+    final List<ObjectPair<OperationType,LDAPResult>> results =
+         multiUpdateResult.getResults();
+    final ResultCode[] resultCodes = new ResultCode[requests.size()];
+    final boolean[] retryable = new boolean[requests.size()];
+    boolean anyRetryable = false;
+    for (int i=0; i < requests.size(); i++)
+    {
+      if (i < results.size())
+      {
+        resultCodes[i] = results.get(i).getSecond().getResultCode();
+      }
+      else
+      {
+        resultCodes[i] = multiUpdateResult.getResultCode();
+      }
+
+      final ChangeOutcome outcome = changesBeingRetried.get(requests.get(i));
+      final int attempts = (outcome == null) ? 1 : (outcome.attempts + 1);
+      retryable[i] = (! stopped) && isRetryable(resultCodes[i]) &&
+           (attempts <= maxRetryAttempts);
+      anyRetryable |= retryable[i];
+    }
+
+
+    // Work backward through the changes, so that a change is only retried if
+    // every later conflicting change in this batch is retried along with it,
+    // and no batch sent after this one includes a conflicting change.
+    final boolean[] superseded = new boolean[requests.size()];
+    final List<List<DN>> targetDNs = new ArrayList<>(requests.size());
+    if (anyRetryable)
+    {
+      final boolean[] retried = new boolean[requests.size()];
+      final ChangeTargetIndex<Integer> laterChanges = new ChangeTargetIndex<>();
+      final List<Integer> conflictingChanges = new ArrayList<>(10);
+      for (int i=requests.size() - 1; i >= 0; i--)
+      {
+        final List<DN> dns = getTargetDNs(requests.get(i));
+        final boolean structural = isStructural(requests.get(i));
+        targetDNs.add(dns);
+
+        boolean retry = retryable[i];
+        for (final DN dn : dns)
+        {
+          if (! retry)
+          {
+            break;
+          }
+
+          conflictingChanges.clear();
+          laterChanges.getConflictingValues(dn, structural,
+               conflictingChanges);
+          for (final int laterChange : conflictingChanges)
+          {
+            retry &= retried[laterChange];
+          }
+
+          retry &= (! conflictsWithUnprocessedBatch(dn, structural));
+        }
+
+        for (final DN dn : dns)
+        {
+          laterChanges.add(dn, structural, i);
+        }
+
+        retried[i] = retry;
+        superseded[i] = (retryable[i] && (! retry));
+      }
+
+      Collections.reverse(targetDNs);
+    }
+
+
+    final List<LDAPRequest> retryRequests = new ArrayList<>(10);
+    int attempts = 1;
+    for (int i=0; i < requests.size(); i++)
+    {
+      final LDAPRequest request = requests.get(i);
+      final ResultCode resultCode = resultCodes[i];
+      ChangeOutcome outcome = changesBeingRetried.remove(request);
+      final boolean wasBeingRetried = (outcome != null);
+      if (outcome == null)
+      {
+        if (resultCode == ResultCode.SUCCESS)
+        {
+          continue;
+        }
+
+        outcome = new ChangeOutcome(request, batch.getBatchNumber());
+        if (retryable[i])
+        {
+          transientFailureCount++;
+        }
+      }
+      else
+      {
+        outcome.attempts++;
+      }
+
+      outcome.resultCode = resultCode;
+      if (resultCode == ResultCode.SUCCESS)
+      {
+        recoveredChanges.add(outcome);
+      }
+      else if (retryable[i] && (! superseded[i]))
+      {
+        attempts = outcome.attempts;
+        changesBeingRetried.put(request, outcome);
+        retryRequests.add(request);
+        for (final DN dn : targetDNs.get(i))
+        {
+          waitingChanges.add(dn, isStructural(request), request);
+        }
+      }
+      else
+      {
+        outcome.superseded = superseded[i];
+        permanentFailures.add(outcome);
+        if (wasBeingRetried)
+        {
+          abandonedRetryCount++;
+        }
+      }
+    }
+
+    if (retryRequests.isEmpty())
+    {
+      return null;
+    }
+
+
+    // Double the delay for each retry, up to the maximum, and then choose a
+    // random delay between half of that value and the full value.
+    long delayMillis = initialDelayMillis;
+    for (int i=1; (i < attempts) && (delayMillis < maxDelayMillis); i++)
+    {
+      delayMillis *= 2L;
+    }
+    delayMillis = Math.min(delayMillis, maxDelayMillis);
+    delayMillis = (delayMillis / 2L) +
+         ThreadLocalRandom.current().nextLong((delayMillis / 2L) + 1L);
+
+    final RetryBatch scheduledBatch = new RetryBatch(
+         createRetryBatch(batch, retryRequests), (attempts + 1), delayMillis,
+         (System.nanoTime() + (delayMillis * 1_000_000L)), retrySequence++);
+    pendingRetryBatches.add(scheduledBatch);
+    return scheduledBatch;
+  }
+
+
+
+  /**
+   * Creates a batch with the provided changes from the given batch.
+   *
+   * @param  batch           The batch from which the changes were taken.
+   * @param  retryRequests   The changes to include in the batch.
+   *
+   * @return  The batch that was created.
+   */
+  private static MultiUpdateBatch createRetryBatch(
+                      final MultiUpdateBatch batch,
+                      final List<LDAPRequest> retryRequests)
+  {
+    // The retry batch covers the same range of the LDIF file as the batch it
+    // came from, but it can never be used to advance a checkpoint, since the
+    // changes before it may have been acknowledged out of order.
+    final long[] checkpointChangeNumbers = new long[retryRequests.size() + 1];
+    final long[] checkpointOffsets = new long[retryRequests.size() + 1];
+    for (int i=0; i < checkpointChangeNumbers.length; i++)
+    {
+      checkpointChangeNumbers[i] = batch.getFirstChangeNumber() - 1L;
+      checkpointOffsets[i] = -1L;
+    }
+
+    return new MultiUpdateBatch(batch.getBatchNumber(),
+         batch.getFirstChangeNumber(), batch.getLastChangeNumber(),
+         retryRequests, checkpointChangeNumbers, checkpointOffsets,
+         batch.getEncodedSize());
+  }
+
+
+
+  /**
+   * Indicates whether any batch that has been sent but whose results have not
+   * yet been processed includes a change that conflicts with a change to the
+   * entry with the specified DN.
+   *
+   * @param  dn          The DN of the entry.
+   * @param  structural  Indicates whether the change to the entry is an add,
+   *                     delete, or modify DN operation.
+   *
+   * @return  {@code true} if an unprocessed batch includes a conflicting
+   *          change, or {@code false} if not.
+   */
+  private boolean conflictsWithUnprocessedBatch(final DN dn,
+                                                final boolean structural)
+  {
+    for (final SentBatch sentBatch : unprocessedBatches)
+    {
+      if (sentBatch.hasConflictingChange(dn, structural))
+      {
+        return true;
+      }
+    }
+
+    return false;
+  }
+
+
+
+  /**
+   * Retrieves the DNs of the entries targeted by the provided change.
+   *
+   * @param  change  The change for which to retrieve the target DNs.
+   *
+   * @return  The DNs of the entries targeted by the provided change, or an
+   *          empty list if they cannot be determined.  A change with a
+   *          malformed DN won't be applied anyway.
+   */
+  private static List<DN> getTargetDNs(final LDAPRequest change)
+  {
+    try
+    {
+      return ChangeDependencyAnalyzer.getTargetDNs(change);
+    }
+    catch (final LDAPException e)
+    {
+      Debug.debugException(e);
+      return Collections.emptyList();
+    }
+  }
+
+
+
+  /**
+   * Indicates whether the provided change is an add, delete, or modify DN
+   * operation, which conflicts with changes to the descendants of its entry.
+   *
+   * @param  change  The change for which to make the determination.
+   *
+   * @return  {@code true} if the change is an add, delete, or modify DN
+   *          operation, or {@code false} if it is a modify operation.
+   */
+  private static boolean isStructural(final LDAPRequest change)
+  {
+    return (change.getOperationType() != OperationType.MODIFY);
+  }
+
+
+
+  /**
+   * Indicates whether there are any retry batches that have not yet been
+   * returned by the {@link #nextRetryBatch} method.
+   *
+   * @return  {@code true} if there are any retry batches waiting to be sent,
+   *          or {@code false} if not.
+   */
+  public boolean hasPendingRetries()
+  {
+    return (! pendingRetryBatches.isEmpty());
+  }
+
+
+
+  /**
+   * Indicates whether there are any changes that are waiting to be retried or
+   * whose retry is in progress, so that their final outcome isn't yet known.
+   *
+   * @return  {@code true} if there are any changes whose final outcome isn't
+   *          yet known, or {@code false} if not.
+   */
+  public boolean hasUnresolvedRetries()
+  {
+    return (! changesBeingRetried.isEmpty());
+  }
+
+
+
+  /**
+   * Indicates whether the provided change is waiting to be retried or is
+   * being retried.
+   *
+   * @param  request  The request used to send the change.
+   *
+   * @return  {@code true} if the change is waiting to be retried or is being
+   *          retried, or {@code false} if not.
+   */
+  public boolean isBeingRetried(final LDAPRequest request)
+  {
+    return changesBeingRetried.containsKey(request);
+  }
+
+
+
+  /**
+   * Retrieves the length of time until the next retry batch will be ready.
+   *
+   * @return  The length of time in milliseconds until the next retry batch
+   *          will be ready, zero if a retry batch is already ready, or -1 if
+   *          there are no retry batches waiting to be sent.
+   */
+  public long getMillisUntilNextRetry()
+  {
+    final RetryBatch nextBatch = pendingRetryBatches.peek();
+    if (nextBatch == null)
+    {
+      return -1L;
+    }
+
+    final long remainingNanos = nextBatch.readyTimeNanos - System.nanoTime();
+    if (remainingNanos <= 0L)
+    {
+      return 0L;
+    }
+
+    return Math.max(1L, (remainingNanos / 1_000_000L));
+  }
+
+
+
+  /**
+   * Retrieves the next retry batch if it is ready to be sent.
+   *
+   * @return  The next retry batch, or {@code null} if there are no retry
+   *          batches that are ready to be sent.
+   */
+  public RetryBatch nextRetryBatch()
+  {
+    while (getMillisUntilNextRetry() == 0L)
+    {
+      // Leave out any changes whose retries were cancelled because a later
+      // conflicting change was sent.
+      final RetryBatch retryBatch = pendingRetryBatches.poll();
+      final List<LDAPRequest> requests = retryBatch.batch.getRequests();
+      final List<LDAPRequest> remainingRequests =
+           new ArrayList<>(requests.size());
+      for (final LDAPRequest request : requests)
+      {
+        if (changesBeingRetried.containsKey(request))
+        {
+          remainingRequests.add(request);
+        }
+      }
+
+      if (remainingRequests.size() == requests.size())
+      {
+        return retryBatch;
+      }
+      else if (! remainingRequests.isEmpty())
+      {
+        return new RetryBatch(
+             createRetryBatch(retryBatch.batch, remainingRequests),
+             retryBatch.attempt, retryBatch.delayMillis,
+             retryBatch.readyTimeNanos, retryBatch.sequence);
+      }
+    }
+
+    return null;
+  }
+
+
+
+  /**
+   * Stops scheduling retries.  The changes in any retry batches that have not
+   * yet been sent, along with any changes that fail after this point, will be
+   * recorded as permanent failures.
+   */
+  public void stopRetrying()
+  {
+    stopped = true;
+    while (! pendingRetryBatches.isEmpty())
+    {
+      final RetryBatch retryBatch = pendingRetryBatches.poll();
+      for (final LDAPRequest request : retryBatch.getBatch().getRequests())
+      {
+        final ChangeOutcome outcome = changesBeingRetried.remove(request);
+        if (outcome != null)
+        {
+          permanentFailures.add(outcome);
+          abandonedRetryCount++;
+        }
+      }
+    }
+
+    waitingChanges.clear();
+  }
+
+
+
+  /**
+   * Retrieves the maximum number of times that a change may be retried.
+   *
+   * @return  The maximum number of times that a change may be retried.
+   */
+  public int getMaxRetryAttempts()
+  {
+    return maxRetryAttempts;
+  }
+
+
+
+  /**
+   * Retrieves the number of changes that failed with a transient result code
+   * on their first attempt while retrying was enabled.  Each of them was
+   * either scheduled to be retried or superseded by a later conflicting
+   * change.
+   *
+   * @return  The number of changes that failed with a transient result code.
+   */
+  public long getTransientFailureCount()
+  {
+    return transientFailureCount;
+  }
+
+
+
+  /**
+   * Retrieves the number of changes that were scheduled to be retried but
+   * were given up on without succeeding, because they ran out of attempts,
+   * failed with a result code that isn't transient, were superseded by a
+   * later conflicting change, or were still waiting when retrying was
+   * stopped.
+   *
+   * @return  The number of changes whose retries were given up on.
+   */
+  public long getAbandonedRetryCount()
+  {
+    return abandonedRetryCount;
+  }
+
+
+
+  /**
+   * Retrieves the outcomes of the changes that succeeded after being retried,
+   * in the order in which they succeeded.
+   *
+   * @return  The outcomes of the changes that succeeded after being retried.
+   */
+  public List<ChangeOutcome> getRecoveredChanges()
+  {
+    return Collections.unmodifiableList(recoveredChanges);
+  }
+
+
+
+  /**
+   * Retrieves the outcomes of the changes that failed and will not be retried,
+   * either because the failure was not transient, because the change was
+   * already retried the maximum number of times, or because it was superseded
+   * by a later conflicting change.  They are listed in the order in
+   * which the scheduler gave up on them.
+   *
+   * @return  The outcomes of the changes that failed and will not be retried.
+   */
+  public List<ChangeOutcome> getPermanentFailures()
+  {
+    return Collections.unmodifiableList(permanentFailures);
+  }
+
+
+
+  /**
+   * This class holds information about the outcome of a change that failed at
+   * least once.
+   */
+  @ThreadSafety(level=ThreadSafetyLevel.NOT_THREADSAFE)
+  public static final class ChangeOutcome
+  {
+    // Indicates whether the change was not retried because a later
+    // conflicting change had already been sent.
+    private boolean superseded;
+
+    // The number of times that the change has been attempted.
+    private int attempts;
+
+    // The number of the batch in which the change was first sent.
+    private final int batchNumber;
+
+    // The request used to send the change.
+    private final LDAPRequest request;
+
+    // The result code from the most recent attempt.
+    private ResultCode resultCode;
+
+
+
+    /**
+     * Creates a new change outcome for a change that failed on its first
+     * attempt.
+     *
+     * @param  request      The request used to send the change.
+     * @param  batchNumber  The number of the batch in which the change was
+     *                      first sent.
+     */
+    private ChangeOutcome(final LDAPRequest request, final int batchNumber)
+    {
+      this.request = request;
+      this.batchNumber = batchNumber;
+
+      superseded = false;
+      attempts = 1;
+      resultCode = null;
+    }
+
+
+
+    /**
+     * Retrieves the request used to send the change.
+     *
+     * @return  The request used to send the change.
+     */
+    public LDAPRequest getRequest()
+    {
+      return request;
+    }
+
+
+
+    /**
+     * Retrieves the number of the batch in which the change was first sent.
+     *
+     * @return  The number of the batch in which the change was first sent.
+     */
+    public int getBatchNumber()
+    {
+      return batchNumber;
+    }
+
+
+
+    /**
+     * Retrieves the number of times that the change has been attempted.
+     *
+     * @return  The number of times that the change has been attempted.
+     */
+    public int getAttempts()
+    {
+      return attempts;
+    }
+
+
+
+    /**
+     * Retrieves the result code from the most recent attempt to apply the
+     * change.
+     *
+     * @return  The result code from the most recent attempt to apply the
+     *          change.
+     */
+    public ResultCode getResultCode()
+    {
+      return resultCode;
+    }
+
+
+
+    /**
+     * Indicates whether the change was not retried because a later
+     * conflicting change had already been sent, so that retrying it would
+     * have applied the conflicting changes out of order.
+     *
+     * @return  {@code true} if the change was superseded by a later
+     *          conflicting change, or {@code false} if not.
+     */
+    public boolean wasSuperseded()
+    {
+      return superseded;
+    }
+  }
+
+
+
+  /**
+   * This class holds a batch of changes that should be retried, along with
+   * information about when it should be sent.
+   */
+  @ThreadSafety(level=ThreadSafetyLevel.COMPLETELY_THREADSAFE)
+  public static final class RetryBatch
+  {
+    // The number of the attempt for which the changes will be sent.
+    private final int attempt;
+
+    // The delay in milliseconds that was chosen before the batch is sent.
+    private final long delayMillis;
+
+    // The value of System.nanoTime() at which the batch becomes ready.
+    private final long readyTimeNanos;
+
+    // The order in which the batch was scheduled.
+    private final long sequence;
+
+    // The batch of changes to retry.
+    private final MultiUpdateBatch batch;
+
+
+
+    /**
+     * Creates a new retry batch with the provided information.
+     *
+     * @param  batch           The batch of changes to retry.
+     * @param  attempt         The number of the attempt for which the changes
+     *                         will be sent.
+     * @param  delayMillis     The delay in milliseconds that was chosen before
+     *                         the batch is sent.
+     * @param  readyTimeNanos  The value of {@code System.nanoTime()} at which
+     *                         the batch becomes ready.
+     * @param  sequence        The order in which the batch was scheduled.
+     */
+    private RetryBatch(final MultiUpdateBatch batch, final int attempt,
+                       final long delayMillis, final long readyTimeNanos,
+                       final long sequence)
+    {
+      this.batch = batch;
+      this.attempt = attempt;
+      this.delayMillis = delayMillis;
+      this.readyTimeNanos = readyTimeNanos;
+      this.sequence = sequence;
+    }
+
+
+
+    /**
+     * Retrieves the batch of changes to retry.  It has the same batch number
+     * as the batch in which the changes were originally sent.
+     *
+     * @return  The batch of changes to retry.
+     */
+    public MultiUpdateBatch getBatch()
+    {
+      return batch;
+    }
+
+
+
+    /**
+     * Retrieves the number of the attempt for which the changes will be sent,
+     * where the original attempt is attempt one.
+     *
+     * @return  The number of the attempt for which the changes will be sent.
+     */
+    public int getAttempt()
+    {
+      return attempt;
+    }
+
+
+
+    /**
+     * Retrieves the delay that was chosen before the batch is sent.
+     *
+     * @return  The delay in milliseconds that was chosen before the batch is
+     *          sent.
+     */
+    public long getDelayMillis()
+    {
+      return delayMillis;
+    }
+  }
+
+
+
+  /**
+   * This class holds a batch that has been sent but whose results have not
+   * yet been processed, along with an index of the entries that its changes
+   * target, which is only built if it is needed.
+   */
+  @ThreadSafety(level=ThreadSafetyLevel.NOT_THREADSAFE)
+  private static final class SentBatch
+  {
+    // The batch that was sent.
+    private final MultiUpdateBatch batch;
+
+    // The changes in the batch, indexed by the DNs of the entries that they
+    // target.
+    private ChangeTargetIndex<LDAPRequest> changeIndex;
+
+
+
+    /**
+     * Creates a new sent batch for the provided batch.
+     *
+     * @param  batch  The batch that was sent.
+     */
+    private SentBatch(final MultiUpdateBatch batch)
+    {
+      this.batch = batch;
+
+      changeIndex = null;
+    }
+
+
+
+    /**
+     * Indicates whether the batch includes a change that conflicts with a
+     * change to the entry with the specified DN.
+     *
+     * @param  dn          The DN of the entry.
+     * @param  structural  Indicates whether the change to the entry is an
+     *                     add, delete, or modify DN operation.
+     *
+     * @return  {@code true} if the batch includes a conflicting change, or
+     *          {@code false} if not.
+     */
+    private boolean hasConflictingChange(final DN dn, final boolean structural)
+    {
+      if (changeIndex == null)
+      {
+        changeIndex = new ChangeTargetIndex<>();
+        for (final LDAPRequest request : batch.getRequests())
+        {
+          for (final DN targetDN : getTargetDNs(request))
+          {
+            changeIndex.add(targetDN, isStructural(request), request);
+          }
+        }
+      }
+
+      final List<LDAPRequest> conflictingChanges = new ArrayList<>(1);
+      changeIndex.getConflictingValues(dn, structural, conflictingChanges);
+      return (! conflictingChanges.isEmpty());
+    }
+  }
+}
@@ -0,0 +1,222 @@
+/*
+ * Copyright 2019 Neil A. Wilson
+ * All Rights Reserved.
+ */
+/*
+ * Copyright (C) 2019 Neil A. Wilson
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPLv2 only)
+ * or the terms of the GNU Lesser General Public License (LGPLv2.1 only)
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, see <http://www.gnu.org/licenses>.
+ */
+/*
+ * Copyright 2019 Neil A. Wilson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dirmgr.example.multiupdate;
+
+
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.unboundid.ldap.sdk.AddRequest;
+import com.unboundid.ldap.sdk.Attribute;
+import com.unboundid.ldap.sdk.Entry;
+import com.unboundid.ldap.sdk.LDAPRequest;
+import com.unboundid.ldap.sdk.Modification;
+import com.unboundid.ldap.sdk.ModificationType;
+import com.unboundid.ldap.sdk.ModifyRequest;
+import com.unboundid.ldap.sdk.schema.AttributeTypeDefinition;
+import com.unboundid.ldap.sdk.schema.EntryValidator;
+import com.unboundid.ldap.sdk.schema.Schema;
+import com.unboundid.util.ThreadSafety;
+import com.unboundid.util.ThreadSafetyLevel;
+
+
+
+/**
+ * This class provides a mechanism for checking the changes to be sent in a
+ * multi-update request against the server schema before they are sent, so
+ * that a schema violation can be reported without waiting for the server to
+ * reject it (and, with the atomic error behavior, without wasting the work
+ * that the server did on the changes before it).
+ * <BR><BR>
+ * The entry in an add request is checked with an {@link EntryValidator} in the
+ * same way that the server would check it.  A modify request can't be checked
+ * as thoroughly, since the result depends on the current contents of the
+ * entry, but each modification is checked to ensure that it targets an
+ * attribute type that is defined in the schema and that clients are allowed to
+ * modify, that any values being added conform to the attribute syntax, that
+ * no more than one value is provided for a single-valued attribute, and that
+ * any object classes being added are defined.  Delete and modify DN requests
+ * are not checked.
+ * <BR><BR>
+ * Once it has been created, a validator may be used by multiple threads at the
+ * same time.
+ */
+@ThreadSafety(level=ThreadSafetyLevel.COMPLETELY_THREADSAFE)
+public final class ChangeSchemaValidator
+{
+  // The validator that will be used to check the entries in add requests.
+  private final EntryValidator entryValidator;
+
+  // The validator that will be used to check the values in modifications.  It
+  // only checks the attributes themselves, and not whether they're allowed by
+  // the entry's object classes.
+  private final EntryValidator modificationValidator;
+
+  // The schema against which the changes will be checked.
+  private final Schema schema;
+
+
+
+  /**
+   * Creates a new change schema validator that will check changes against the
+   * provided schema.
+   *
+   * @param  schema  The schema against which to check changes.  It must not be
+   *                 {@code null}.
+   */
+  public ChangeSchemaValidator(final Schema schema)
+  {
+    this.schema = schema;
+
+    // Servers add any missing superior object classes themselves, so their
+    // absence from an entry being added isn't a reason to reject it.
+    entryValidator = new EntryValidator(schema);
+    entryValidator.setCheckMissingSuperiorObjectClasses(false);
+
+    modificationValidator = new EntryValidator(schema);
+    modificationValidator.setCheckEntryMissingRDNValues(false);
+    modificationValidator.setCheckMissingAttributes(false);
+    modificationValidator.setCheckMissingSuperiorObjectClasses(false);
+    modificationValidator.setCheckNameForms(false);
+    modificationValidator.setCheckProhibitedAttributes(false);
+    modificationValidator.setCheckProhibitedObjectClasses(false);
+    modificationValidator.setCheckStructuralObjectClasses(false);
+    modificationValidator.setCheckUndefinedObjectClasses(false);
+  }
+
+
+
+  /**
+   * Checks the provided change against the schema.
+   *
+   * @param  change  The change to check.  It must not be {@code null}.
+   *
+   * @return  A list of the reasons that the change violates the schema, or an
+   *          empty list if no problems were found.
+   */
+  public List<String> validate(final LDAPRequest change)
+  {
+    final List<String> problems = new ArrayList<>(5);
+    switch (change.getOperationType())
+    {
+      case ADD:
+        entryValidator.entryIsValid(((AddRequest) change).toEntry(), problems);
+        break;
+      case MODIFY:
+        final ModifyRequest modifyRequest = (ModifyRequest) change;
+        for (final Modification m : modifyRequest.getModifications())
+        {
+          validateModification(modifyRequest.getDN(), m, problems);
+        }
+        break;
+      default:
+        // Delete and modify DN requests don't include any attribute values
+        // to check.
+        break;
+    }
+
+    return problems;
+  }
+
+
+
+  /**
+   * Checks the provided modification against the schema.
+   *
+   * @param  dn        The DN of the entry targeted by the modification.
+   * @param  m         The modification to check.
+   * @param  problems  A list to which any problems with the modification will
+   *                   be added.
+   */
+  private void validateModification(final String dn, final Modification m,
+                                    final List<String> problems)
+  {
+    final String attributeName = m.getAttributeName();
+    final AttributeTypeDefinition attributeType =
+         schema.getAttributeType(Attribute.getBaseName(attributeName));
+    if (attributeType == null)
+    {
+      problems.add("Attribute type " + attributeName + " is not defined in " +
+           "the schema.");
+      return;
+    }
+
+    if (attributeType.isNoUserModification())
+    {
+      problems.add("Attribute type " + attributeName + " is declared " +
+           "NO-USER-MODIFICATION, so it can't be modified.");
+    }
+
+    if (! m.hasValue())
+    {
+      return;
+    }
+
+    final ModificationType modificationType = m.getModificationType();
+    if ((modificationType != ModificationType.ADD) &&
+         (modificationType != ModificationType.REPLACE))
+    {
+      return;
+    }
+
+
+    // The object class attribute doesn't need to go through the entry
+    // validator, but any object classes that are being added must be defined.
+    if (attributeType.hasNameOrOID("objectClass"))
+    {
+      for (final String value : m.getValues())
+      {
+        if (schema.getObjectClass(value) == null)
+        {
+          problems.add("Object class " + value + " is not defined in the " +
+               "schema.");
+        }
+      }
+
+      return;
+    }
+
+
+    // Use the entry validator to check the syntax of the values and whether a
+    // single-valued attribute has more than one value.  The entry needs an
+    // object class, but the validator has been configured so that it won't
+    // check whether the attribute is allowed by that class.
+    final Entry entry = new Entry(dn,
+         new Attribute("objectClass", "top"), m.getAttribute());
+    modificationValidator.entryIsValid(entry, problems);
+  }
+}
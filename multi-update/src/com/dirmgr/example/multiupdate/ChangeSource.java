@@ -0,0 +1,74 @@
+/*
+ * Copyright 2019 Neil A. Wilson
+ * All Rights Reserved.
+ */
+/*
+ * Copyright (C) 2019 Neil A. Wilson
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPLv2 only)
+ * or the terms of the GNU Lesser General Public License (LGPLv2.1 only)
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, see <http://www.gnu.org/licenses>.
+ */
+/*
+ * Copyright 2019 Neil A. Wilson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dirmgr.example.multiupdate;
+
+
+
+import java.io.Closeable;
+import java.io.IOException;
+
+import com.unboundid.ldap.sdk.LDAPException;
+import com.unboundid.ldif.LDIFException;
+
+
+
+/**
+ * This interface defines a source of changes that can be grouped into batches
+ * by a {@link MultiUpdateBatchReader}.  The changes may be read from an LDIF
+ * file, as with the {@link ParallelLDIFChangeReader}, or they may be generated
+ * in some other way, as with the {@link SyncChangeGenerator}.
+ */
+public interface ChangeSource
+       extends Closeable
+{
+  /**
+   * Reads the next change from this source.
+   *
+   * @return  The next change from this source, or {@code null} if there are no
+   *          more changes to read.
+   *
+   * @throws  IOException  If a problem occurs while reading from the
+   *                       underlying data.
+   *
+   * @throws  LDIFException  If the underlying data contains a malformed LDIF
+   *                         record.
+   *
+   * @throws  LDAPException  If a change cannot be created or cannot be
+   *                         included in a multi-update request.
+   */
+  ParsedLDIFChange read()
+       throws IOException, LDIFException, LDAPException;
+}
@@ -0,0 +1,358 @@
+/*
+ * Copyright 2019 Neil A. Wilson
+ * All Rights Reserved.
+ */
+/*
+ * Copyright (C) 2019 Neil A. Wilson
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPLv2 only)
+ * or the terms of the GNU Lesser General Public License (LGPLv2.1 only)
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, see <http://www.gnu.org/licenses>.
+ */
+/*
+ * Copyright 2019 Neil A. Wilson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dirmgr.example.multiupdate;
+
+
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.unboundid.ldap.sdk.DN;
+import com.unboundid.util.ThreadSafety;
+import com.unboundid.util.ThreadSafetyLevel;
+
+
+
+/**
+ * This class indexes changes by the DNs of the entries that they target, so
+ * that the changes that conflict with another change can be found quickly.
+ * Two changes conflict if they target the same entry, or if one of them is an
+ * add, delete, or modify DN operation that targets an ancestor of the entry
+ * targeted by the other.  These are the same rules that the
+ * {@link ChangeDependencyAnalyzer} uses to decide that one change depends on
+ * another.
+ * <BR><BR>
+ * Each indexed DN is stored once, keyed by its normalized form, and is linked
+ * to its parent by walking up the DN when it is first indexed.  Changes to the
+ * ancestors of an entry are found by walking up its parents, and changes to
+ * its descendants are found by following the links down from it, so a change
+ * never has to be recorded under each of its ancestors.
+ *
+ * @param  <T>  The type of value used to identify each indexed change.
+ */
+@ThreadSafety(level=ThreadSafetyLevel.NOT_THREADSAFE)
+final class ChangeTargetIndex<T>
+{
+  // The indexed DNs, and the ancestors of those DNs, keyed by normalized DN.
+  private final Map<String,IndexedDN<T>> indexedDNs;
+
+
+
+  /**
+   * Creates a new empty change target index.
+   */
+  ChangeTargetIndex()
+  {
+    indexedDNs = new HashMap<>(100);
+  }
+
+
+
+  /**
+   * Indicates whether this index is empty.
+   *
+   * @return  {@code true} if this index is empty, or {@code false} if not.
+   */
+  boolean isEmpty()
+  {
+    return indexedDNs.isEmpty();
+  }
+
+
+
+  /**
+   * Removes all of the changes from this index.
+   */
+  void clear()
+  {
+    indexedDNs.clear();
+  }
+
+
+
+  /**
+   * Adds a change to this index.
+   *
+   * @param  dn          The DN of the entry targeted by the change.
+   * @param  structural  Indicates whether the change is an add, delete, or
+   *                     modify DN operation.
+   * @param  value       The value that identifies the change.
+   */
+  void add(final DN dn, final boolean structural, final T value)
+  {
+    final String normalizedDN = dn.toNormalizedString();
+    IndexedDN<T> indexedDN = indexedDNs.get(normalizedDN);
+    if (indexedDN == null)
+    {
+      indexedDN = new IndexedDN<>();
+      indexedDNs.put(normalizedDN, indexedDN);
+      link(dn, normalizedDN);
+    }
+
+    indexedDN.values.add(value);
+    if (structural)
+    {
+      indexedDN.structuralValues.add(value);
+    }
+  }
+
+
+
+  /**
+   * Removes a change from this index.
+   *
+   * @param  dn     The DN of the entry targeted by the change.
+   * @param  value  The value that identifies the change.
+   */
+  void remove(final DN dn, final T value)
+  {
+    final String normalizedDN = dn.toNormalizedString();
+    final IndexedDN<T> indexedDN = indexedDNs.get(normalizedDN);
+    if (indexedDN == null)
+    {
+      return;
+    }
+
+    indexedDN.values.remove(value);
+    indexedDN.structuralValues.remove(value);
+    if (indexedDN.isEmpty())
+    {
+      indexedDNs.remove(normalizedDN);
+      unlink(dn, normalizedDN);
+    }
+  }
+
+
+
+  /**
+   * Removes the changes that target the specified entry or any of its
+   * descendants from this index.
+   *
+   * @param  dn             The base DN of the subtree to remove.
+   * @param  removedValues  The collection to which the values for the removed
+   *                        changes should be added.
+   */
+  void removeSubtree(final DN dn, final Collection<? super T> removedValues)
+  {
+    final String normalizedDN = dn.toNormalizedString();
+    if (! indexedDNs.containsKey(normalizedDN))
+    {
+      return;
+    }
+
+    final ArrayDeque<String> dnsToVisit = new ArrayDeque<>();
+    dnsToVisit.add(normalizedDN);
+    while (! dnsToVisit.isEmpty())
+    {
+      final IndexedDN<T> indexedDN = indexedDNs.remove(dnsToVisit.removeLast());
+      removedValues.addAll(indexedDN.values);
+      dnsToVisit.addAll(indexedDN.childDNs);
+    }
+
+    unlink(dn, normalizedDN);
+  }
+
+
+
+  /**
+   * Adds the values for all of the changes that conflict with a change to the
+   * specified entry to the provided collection.  Those are the changes that
+   * target the same entry, the add, delete, and modify DN operations that
+   * target any of its ancestors, and, for an add, delete, or modify DN
+   * operation, the changes that target any of its descendants.
+   *
+   * @param  dn              The DN of the entry targeted by the change.
+   * @param  structural      Indicates whether the change is an add, delete, or
+   *                         modify DN operation.
+   * @param  conflictValues  The collection to which the values for the
+   *                         conflicting changes should be added.
+   */
+  void getConflictingValues(final DN dn, final boolean structural,
+                            final Collection<? super T> conflictValues)
+  {
+    DN ancestorDN = dn.getParent();
+    while (ancestorDN != null)
+    {
+      final IndexedDN<T> indexedDN =
+           indexedDNs.get(ancestorDN.toNormalizedString());
+      if (indexedDN != null)
+      {
+        conflictValues.addAll(indexedDN.structuralValues);
+      }
+
+      ancestorDN = ancestorDN.getParent();
+    }
+
+    final IndexedDN<T> indexedDN = indexedDNs.get(dn.toNormalizedString());
+    if (indexedDN == null)
+    {
+      return;
+    }
+
+    conflictValues.addAll(indexedDN.values);
+    if (! structural)
+    {
+      return;
+    }
+
+    final ArrayDeque<String> dnsToVisit = new ArrayDeque<>(indexedDN.childDNs);
+    while (! dnsToVisit.isEmpty())
+    {
+      final IndexedDN<T> descendantDN = indexedDNs.get(dnsToVisit.removeLast());
+      conflictValues.addAll(descendantDN.values);
+      dnsToVisit.addAll(descendantDN.childDNs);
+    }
+  }
+
+
+
+  /**
+   * Links a newly indexed DN to its parent, walking up until reaching a
+   * parent that was already in the index.
+   *
+   * @param  dn            The DN that was indexed.
+   * @param  normalizedDN  The normalized form of that DN.
+   */
+  private void link(final DN dn, final String normalizedDN)
+  {
+    String childDN = normalizedDN;
+    DN parentDN = dn.getParent();
+    while (parentDN != null)
+    {
+      final String normalizedParentDN = parentDN.toNormalizedString();
+      IndexedDN<T> indexedParentDN = indexedDNs.get(normalizedParentDN);
+      if (indexedParentDN != null)
+      {
+        indexedParentDN.childDNs.add(childDN);
+        return;
+      }
+
+      indexedParentDN = new IndexedDN<>();
+      indexedParentDN.childDNs.add(childDN);
+      indexedDNs.put(normalizedParentDN, indexedParentDN);
+
+      childDN = normalizedParentDN;
+      parentDN = parentDN.getParent();
+    }
+  }
+
+
+
+  /**
+   * Unlinks a DN that was removed from the index from its parent, walking up
+   * and removing any parents that are left without changes or children.
+   *
+   * @param  dn            The DN that was removed.
+   * @param  normalizedDN  The normalized form of that DN.
+   */
+  private void unlink(final DN dn, final String normalizedDN)
+  {
+    String childDN = normalizedDN;
+    DN parentDN = dn.getParent();
+    while (parentDN != null)
+    {
+      final String normalizedParentDN = parentDN.toNormalizedString();
+      final IndexedDN<T> indexedParentDN = indexedDNs.get(normalizedParentDN);
+      if (indexedParentDN == null)
+      {
+        return;
+      }
+
+      indexedParentDN.childDNs.remove(childDN);
+      if (! indexedParentDN.isEmpty())
+      {
+        return;
+      }
+
+      indexedDNs.remove(normalizedParentDN);
+      childDN = normalizedParentDN;
+      parentDN = parentDN.getParent();
+    }
+  }
+
+
+
+  /**
+   * This class holds the changes that target a single DN, along with the
+   * normalized DNs of its children that are in the index.
+   *
+   * @param  <T>  The type of value used to identify each indexed change.
+   */
+  @ThreadSafety(level=ThreadSafetyLevel.NOT_THREADSAFE)
+  private static final class IndexedDN<T>
+  {
+    // The values for the changes that target this DN.
+    private final List<T> values;
+
+    // The values for the add, delete, and modify DN operations that target
+    // this DN.  They are also included in the list of all values.
+    private final List<T> structuralValues;
+
+    // The normalized DNs of the children of this DN that are in the index.
+    private final Set<String> childDNs;
+
+
+
+    /**
+     * Creates a new indexed DN without any changes or children.
+     */
+    private IndexedDN()
+    {
+      values = new ArrayList<>(1);
+      structuralValues = new ArrayList<>(1);
+      childDNs = new HashSet<>(4);
+    }
+
+
+
+    /**
+     * Indicates whether this DN has no changes and no children in the index.
+     *
+     * @return  {@code true} if this DN has no changes and no children, or
+     *          {@code false} if not.
+     */
+    private boolean isEmpty()
+    {
+      return values.isEmpty() && childDNs.isEmpty();
+    }
+  }
+}
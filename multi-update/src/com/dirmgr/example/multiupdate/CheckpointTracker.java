@@ -0,0 +1,202 @@
+/*
+ * Copyright 2019 Neil A. Wilson
+ * All Rights Reserved.
+ */
+/*
+ * Copyright (C) 2019 Neil A. Wilson
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPLv2 only)
+ * or the terms of the GNU Lesser General Public License (LGPLv2.1 only)
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, see <http://www.gnu.org/licenses>.
+ */
+/*
+ * Copyright 2019 Neil A. Wilson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dirmgr.example.multiupdate;
+
+
+
+import java.io.File;
+import java.io.IOException;
+
+import com.unboundid.util.ThreadSafety;
+import com.unboundid.util.ThreadSafetyLevel;
+
+
+
+/**
+ * This class keeps the checkpoint file for a multi-update run up to date as
+ * the results of its batches are received.  The checkpoint is advanced past
+ * the requests at the start of each batch that the server has acknowledged,
+ * but once a batch has a request that wasn't acknowledged, the checkpoint is
+ * frozen before it and is never advanced again, even if batches that were
+ * already outstanding are acknowledged later.
+ * <BR><BR>
+ * A change that failed with a transient result code and is waiting to be
+ * retried counts as acknowledged, but while any retries are unresolved, the
+ * checkpoint is held where it is and the position that it should move to is
+ * only remembered.  Once every retry has succeeded, the checkpoint is written
+ * at that position.  If any retry is abandoned, because it ran out of
+ * attempts or was superseded by a later change, then the checkpoint is frozen
+ * where it was held.  A retry batch never moves the checkpoint itself, since
+ * its changes come from a batch that has already been completed.
+ */
+@ThreadSafety(level=ThreadSafetyLevel.NOT_THREADSAFE)
+public final class CheckpointTracker
+{
+  // Indicates whether the checkpoint can no longer be advanced.
+  private boolean frozen;
+
+  // The checkpoint that should be written once there are no unresolved
+  // retries, or null if there is no such checkpoint.
+  private MultiUpdateCheckpoint heldCheckpoint;
+
+  // The file to which the checkpoint is written.
+  private final File checkpointFile;
+
+  // The absolute path to the LDIF file to which the checkpoint applies.
+  private final String ldifFilePath;
+
+
+
+  /**
+   * Creates a new checkpoint tracker with the provided information.
+   *
+   * @param  checkpointFile  The file to which the checkpoint is written.
+   * @param  ldifFilePath    The absolute path to the LDIF file to which the
+   *                         checkpoint applies.
+   */
+  public CheckpointTracker(final File checkpointFile, final String ldifFilePath)
+  {
+    this.checkpointFile = checkpointFile;
+    this.ldifFilePath = ldifFilePath;
+
+    frozen = false;
+    heldCheckpoint = null;
+  }
+
+
+
+  /**
+   * Retrieves the file to which the checkpoint is written.
+   *
+   * @return  The file to which the checkpoint is written.
+   */
+  public File getCheckpointFile()
+  {
+    return checkpointFile;
+  }
+
+
+
+  /**
+   * Indicates whether the checkpoint has been frozen, so that it will no
+   * longer be advanced.
+   *
+   * @return  {@code true} if the checkpoint has been frozen, or {@code false}
+   *          if not.
+   */
+  public boolean isFrozen()
+  {
+    return frozen;
+  }
+
+
+
+  /**
+   * Advances the checkpoint past the requests at the start of the provided
+   * batch that the server has acknowledged, unless the checkpoint has already
+   * been frozen.  If not all of the requests in the batch were acknowledged,
+   * then the checkpoint is frozen after it is written.  While any retries are
+   * unresolved, the checkpoint is held rather than written, and it is written
+   * at the latest position once they have all succeeded.
+   *
+   * @param  batch                 The batch whose results were received.
+   * @param  acknowledgedRequests  The number of requests at the start of the
+   *                               batch that the server has acknowledged or
+   *                               that are waiting to be retried.
+   * @param  retryScheduler        The scheduler used to retry changes, or
+   *                               {@code null} if changes are not retried.
+   *                               The results of the batch must already have
+   *                               been passed to it.
+   *
+   * @throws  IOException  If a problem occurs while writing the checkpoint.
+   *                       The checkpoint will be frozen.
+   */
+  public void batchCompleted(final MultiUpdateBatch batch,
+                             final int acknowledgedRequests,
+                             final ChangeRetryScheduler retryScheduler)
+         throws IOException
+  {
+    if (frozen && (heldCheckpoint == null))
+    {
+      return;
+    }
+
+    if (! frozen)
+    {
+      frozen = (acknowledgedRequests < batch.getRequests().size());
+      final long checkpointChangeNumber =
+           batch.getCheckpointChangeNumber(acknowledgedRequests);
+      if (checkpointChangeNumber >= batch.getFirstChangeNumber())
+      {
+        heldCheckpoint = new MultiUpdateCheckpoint(ldifFilePath,
+             checkpointChangeNumber,
+             batch.getCheckpointOffset(acknowledgedRequests));
+      }
+    }
+
+    if (retryScheduler != null)
+    {
+      if (retryScheduler.getAbandonedRetryCount() > 0L)
+      {
+        // A change before the held position will never be applied.
+        frozen = true;
+        heldCheckpoint = null;
+        return;
+      }
+      else if (retryScheduler.hasUnresolvedRetries())
+      {
+        return;
+      }
+    }
+
+    if (heldCheckpoint == null)
+    {
+      return;
+    }
+
+    final MultiUpdateCheckpoint checkpoint = heldCheckpoint;
+    heldCheckpoint = null;
+    try
+    {
+      checkpoint.write(checkpointFile);
+    }
+    catch (final IOException e)
+    {
+      frozen = true;
+      throw e;
+    }
+  }
+}
@@ -0,0 +1,606 @@
+/*
+ * Copyright 2019 Neil A. Wilson
+ * All Rights Reserved.
+ */
+/*
+ * Copyright (C) 2019 Neil A. Wilson
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPLv2 only)
+ * or the terms of the GNU Lesser General Public License (LGPLv2.1 only)
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, see <http://www.gnu.org/licenses>.
+ */
+/*
+ * Copyright 2019 Neil A. Wilson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dirmgr.example.multiupdate;
+
+
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import com.unboundid.ldap.sdk.DN;
+import com.unboundid.ldap.sdk.Entry;
+import com.unboundid.ldap.sdk.LDAPException;
+import com.unboundid.ldap.sdk.schema.Schema;
+import com.unboundid.ldif.LDIFException;
+import com.unboundid.ldif.LDIFReader;
+import com.unboundid.ldif.LDIFWriter;
+import com.unboundid.util.Debug;
+import com.unboundid.util.ObjectPair;
+import com.unboundid.util.ThreadSafety;
+import com.unboundid.util.ThreadSafetyLevel;
+
+
+
+/**
+ * This class provides a mechanism for sorting an arbitrarily large set of
+ * entries by DN while holding only a bounded number of them in memory.  The
+ * entries are sorted hierarchically, so an entry will always be returned
+ * before any of its subordinates.  Entries are added to an in-memory buffer,
+ * and whenever that buffer fills up, it is sorted and written to a temporary
+ * LDIF file as a sorted run.  Once all of the entries have been added, the
+ * runs are merged as they are read, so only the entry at the head of each run
+ * needs to be held in memory.  If all of the entries fit in the buffer, then
+ * no temporary files will be written.
+ * <BR><BR>
+ * No more than a fixed number of runs are ever open at once, so that the
+ * number of open files and read buffers doesn't grow with the number of
+ * entries.  If there are more runs than that, then groups of them are first
+ * merged into larger runs, in as many passes as needed.
+ * <BR><BR>
+ * Entries are returned with the schema provided when the sorter was created,
+ * so that their DNs and attribute values will be compared using the
+ * appropriate matching rules.
+ */
+@ThreadSafety(level=ThreadSafetyLevel.NOT_THREADSAFE)
+public final class ExternalEntrySorter
+       implements Closeable
+{
+  /**
+   * The maximum number of runs that will be merged at once, if no other value
+   * is specified.
+   */
+  static final int DEFAULT_MAX_MERGE_FAN_IN = 32;
+
+
+
+  // Indicates whether all of the entries have been added and the sorted
+  // entries are being read.
+  private boolean reading;
+
+  // The maximum number of entries to hold in memory before writing them to a
+  // temporary file.
+  private final int maxEntriesInMemory;
+
+  // The maximum number of runs that will be open at once.
+  private final int maxMergeFanIn;
+
+  // The number of passes in which runs were merged into larger runs before
+  // the sorted entries could be read.
+  private int mergePassCount;
+
+  // The number of sorted runs that were written from the buffer.
+  private int runCount;
+
+  // The entries that have been added but not yet written to a temporary file,
+  // each paired with its parsed DN.
+  private final List<ObjectPair<DN,Entry>> buffer;
+
+  // An iterator over the sorted buffer, if all of the entries fit in memory.
+  private Iterator<ObjectPair<DN,Entry>> bufferIterator;
+
+  // The total number of entries that have been added.
+  private long entryCount;
+
+  // The temporary files that hold the sorted runs.
+  private final List<File> runFiles;
+
+  // The runs that still have entries to be read, ordered by the DN of the
+  // next entry in each run.
+  private final PriorityQueue<SortedRun> runQueue;
+
+  // The schema to use for the entries.
+  private final Schema schema;
+
+
+
+  /**
+   * Creates a new external entry sorter.
+   *
+   * @param  schema              The schema to use when comparing DNs and
+   *                             reading entries.  It may be {@code null} if
+   *                             no schema is available.
+   * @param  maxEntriesInMemory  The maximum number of entries to hold in
+   *                             memory before writing them to a temporary
+   *                             file.  It must be greater than zero.
+   */
+  public ExternalEntrySorter(final Schema schema, final int maxEntriesInMemory)
+  {
+    this(schema, maxEntriesInMemory, DEFAULT_MAX_MERGE_FAN_IN);
+  }
+
+
+
+  /**
+   * Creates a new external entry sorter with the provided limit on the number
+   * of runs that will be merged at once.
+   *
+   * @param  schema              The schema to use when comparing DNs and
+   *                             reading entries.  It may be {@code null} if
+   *                             no schema is available.
+   * @param  maxEntriesInMemory  The maximum number of entries to hold in
+   *                             memory before writing them to a temporary
+   *                             file.  It must be greater than zero.
+   * @param  maxMergeFanIn       The maximum number of runs that will be open
+   *                             at once.  It must be at least two.
+   */
+  ExternalEntrySorter(final Schema schema, final int maxEntriesInMemory,
+                      final int maxMergeFanIn)
+  {
+    this.schema = schema;
+    this.maxEntriesInMemory = maxEntriesInMemory;
+    this.maxMergeFanIn = maxMergeFanIn;
+
+    buffer = new ArrayList<>(Math.min(maxEntriesInMemory, 10_000));
+    runFiles = new ArrayList<>(10);
+    runQueue = new PriorityQueue<>(10,
+         Comparator.comparing((final SortedRun r) -> r.currentDN));
+    bufferIterator = null;
+    entryCount = 0L;
+    mergePassCount = 0;
+    runCount = 0;
+    reading = false;
+  }
+
+
+
+  /**
+   * Adds the provided entry to the set of entries to be sorted.  This must not
+   * be called once the sorted entries have started being read.
+   *
+   * @param  entry  The entry to add.  It must not be {@code null}.
+   *
+   * @throws  IOException  If a problem occurs while writing a sorted run to a
+   *                       temporary file.
+   *
+   * @throws  LDAPException  If the entry's DN cannot be parsed.
+   */
+  public void add(final Entry entry)
+         throws IOException, LDAPException
+  {
+    final Entry e = new Entry(entry.getDN(), schema, entry.getAttributes());
+    buffer.add(new ObjectPair<>(e.getParsedDN(), e));
+    entryCount++;
+
+    if (buffer.size() >= maxEntriesInMemory)
+    {
+      writeRun();
+    }
+  }
+
+
+
+  /**
+   * Retrieves the total number of entries that have been added to this
+   * sorter.
+   *
+   * @return  The total number of entries that have been added to this sorter.
+   */
+  public long getEntryCount()
+  {
+    return entryCount;
+  }
+
+
+
+  /**
+   * Retrieves the number of sorted runs that have been written to temporary
+   * files from the in-memory buffer, not counting the larger runs that they
+   * were merged into.
+   *
+   * @return  The number of sorted runs that have been written to temporary
+   *          files from the in-memory buffer.
+   */
+  public int getRunCount()
+  {
+    return runCount;
+  }
+
+
+
+  /**
+   * Retrieves the number of passes in which runs were merged into larger runs
+   * because there were too many of them to merge at once.  It will be zero
+   * until the sorted entries have started being read.
+   *
+   * @return  The number of passes in which runs were merged into larger runs.
+   */
+  public int getMergePassCount()
+  {
+    return mergePassCount;
+  }
+
+
+
+  /**
+   * Retrieves the next entry in sorted order.  Once this has been called, no
+   * more entries may be added.
+   *
+   * @return  The next entry in sorted order, or {@code null} if all of the
+   *          entries have been read.
+   *
+   * @throws  IOException  If a problem occurs while reading from a temporary
+   *                       file.
+   *
+   * @throws  LDIFException  If a temporary file contains a malformed entry.
+   *
+   * @throws  LDAPException  If the DN of an entry read from a temporary file
+   *                         cannot be parsed.
+   */
+  public Entry next()
+         throws IOException, LDIFException, LDAPException
+  {
+    if (! reading)
+    {
+      startReading();
+    }
+
+    if (bufferIterator != null)
+    {
+      if (bufferIterator.hasNext())
+      {
+        return bufferIterator.next().getSecond();
+      }
+      else
+      {
+        return null;
+      }
+    }
+
+    final SortedRun run = runQueue.poll();
+    if (run == null)
+    {
+      return null;
+    }
+
+    final Entry entry = run.currentEntry;
+    if (run.advance())
+    {
+      runQueue.add(run);
+    }
+
+    return entry;
+  }
+
+
+
+  /**
+   * Closes any temporary files that are still open and deletes all of them.
+   */
+  @Override()
+  public void close()
+  {
+    for (final SortedRun run : runQueue)
+    {
+      run.close();
+    }
+    runQueue.clear();
+
+    for (final File f : runFiles)
+    {
+      if (! f.delete())
+      {
+        f.deleteOnExit();
+      }
+    }
+
+    buffer.clear();
+    bufferIterator = null;
+  }
+
+
+
+  /**
+   * Prepares to read the sorted entries.  If all of the entries are still in
+   * memory, then they will simply be sorted.  Otherwise, any remaining entries
+   * will be written as a final run, the runs will be merged into larger runs
+   * until there are few enough of them to be merged at once, and the first
+   * entry of each run will be read.
+   *
+   * @throws  IOException  If a problem occurs while writing or reading a
+   *                       temporary file.
+   *
+   * @throws  LDIFException  If a temporary file contains a malformed entry.
+   *
+   * @throws  LDAPException  If the DN of an entry read from a temporary file
+   *                         cannot be parsed.
+   */
+  private void startReading()
+          throws IOException, LDIFException, LDAPException
+  {
+    reading = true;
+    if (runFiles.isEmpty())
+    {
+      buffer.sort(Comparator.comparing(ObjectPair::getFirst));
+      bufferIterator = buffer.iterator();
+      return;
+    }
+
+    if (! buffer.isEmpty())
+    {
+      writeRun();
+    }
+
+    // Each pass merges the oldest runs into a new run at the end of the list,
+    // so every run takes part in a pass before any run is merged again.
+    int runsLeftInPass = 0;
+    while (runFiles.size() > maxMergeFanIn)
+    {
+      if (runsLeftInPass <= 0)
+      {
+        mergePassCount++;
+        runsLeftInPass = runFiles.size();
+      }
+
+      final int mergeCount = Math.min(maxMergeFanIn, runsLeftInPass);
+      if (mergeCount == 1)
+      {
+        // There's nothing to merge the last run with, so just move it to the
+        // end of the list for the next pass.
+        runFiles.add(runFiles.remove(0));
+      }
+      else
+      {
+        mergeRuns(mergeCount);
+      }
+
+      runsLeftInPass -= mergeCount;
+    }
+
+    openRuns(runFiles);
+  }
+
+
+
+  /**
+   * Opens the provided runs and adds each one that isn't empty to the queue
+   * of runs to be merged.
+   *
+   * @param  files  The temporary files that hold the runs to open.
+   *
+   * @throws  IOException  If a problem occurs while reading a temporary file.
+   *
+   * @throws  LDIFException  If a temporary file contains a malformed entry.
+   *
+   * @throws  LDAPException  If the DN of an entry read from a temporary file
+   *                         cannot be parsed.
+   */
+  private void openRuns(final List<File> files)
+          throws IOException, LDIFException, LDAPException
+  {
+    for (final File f : files)
+    {
+      final SortedRun run = new SortedRun(f, schema);
+      if (run.advance())
+      {
+        runQueue.add(run);
+      }
+    }
+  }
+
+
+
+  /**
+   * Merges the specified number of runs from the start of the list into a new
+   * run at the end of it, and deletes the runs that were merged.
+   *
+   * @param  mergeCount  The number of runs to merge.
+   *
+   * @throws  IOException  If a problem occurs while reading or writing a
+   *                       temporary file.
+   *
+   * @throws  LDIFException  If a temporary file contains a malformed entry.
+   *
+   * @throws  LDAPException  If the DN of an entry read from a temporary file
+   *                         cannot be parsed.
+   */
+  private void mergeRuns(final int mergeCount)
+          throws IOException, LDIFException, LDAPException
+  {
+    final List<File> mergedFiles =
+         new ArrayList<>(runFiles.subList(0, mergeCount));
+    final File runFile = createRunFile();
+
+    openRuns(mergedFiles);
+    try (LDIFWriter writer = new LDIFWriter(runFile))
+    {
+      SortedRun run = runQueue.poll();
+      while (run != null)
+      {
+        writer.writeEntry(run.currentEntry);
+        if (run.advance())
+        {
+          runQueue.add(run);
+        }
+
+        run = runQueue.poll();
+      }
+    }
+
+    runFiles.subList(0, mergeCount).clear();
+    for (final File f : mergedFiles)
+    {
+      if (! f.delete())
+      {
+        f.deleteOnExit();
+      }
+    }
+  }
+
+
+
+  /**
+   * Sorts the entries in the buffer, writes them to a new temporary file, and
+   * clears the buffer.
+   *
+   * @throws  IOException  If a problem occurs while writing the file.
+   */
+  private void writeRun()
+          throws IOException
+  {
+    buffer.sort(Comparator.comparing(ObjectPair::getFirst));
+
+    final File runFile = createRunFile();
+    runCount++;
+    try (LDIFWriter writer = new LDIFWriter(runFile))
+    {
+      for (final ObjectPair<DN,Entry> p : buffer)
+      {
+        writer.writeEntry(p.getSecond());
+      }
+    }
+
+    buffer.clear();
+  }
+
+
+
+  /**
+   * Creates a new temporary file to hold a sorted run and adds it to the end
+   * of the list of runs.
+   *
+   * @return  The temporary file that was created.
+   *
+   * @throws  IOException  If a problem occurs while creating the file.
+   */
+  private File createRunFile()
+          throws IOException
+  {
+    final File runFile = File.createTempFile("multi-update-sort-", ".ldif");
+    runFile.deleteOnExit();
+    runFiles.add(runFile);
+    return runFile;
+  }
+
+
+
+  /**
+   * This class provides a reader for a sorted run that keeps track of the
+   * next entry to be returned from it.
+   */
+  private static final class SortedRun
+  {
+    // The parsed DN of the next entry in the run.
+    private DN currentDN;
+
+    // The next entry in the run.
+    private Entry currentEntry;
+
+    // The reader for the temporary file that holds the run.
+    private final LDIFReader reader;
+
+
+
+    /**
+     * Opens the provided temporary file for reading.
+     *
+     * @param  runFile  The file that holds the run.
+     * @param  schema   The schema to use for the entries in the run.
+     *
+     * @throws  IOException  If a problem occurs while opening the file.
+     */
+    private SortedRun(final File runFile, final Schema schema)
+            throws IOException
+    {
+      reader = new LDIFReader(runFile);
+      reader.setSchema(schema);
+      currentDN = null;
+      currentEntry = null;
+    }
+
+
+
+    /**
+     * Reads the next entry in the run.  If the end of the run has been
+     * reached, then the file will be closed.
+     *
+     * @return  {@code true} if another entry was read, or {@code false} if the
+     *          end of the run has been reached.
+     *
+     * @throws  IOException  If a problem occurs while reading the file.
+     *
+     * @throws  LDIFException  If the file contains a malformed entry.
+     *
+     * @throws  LDAPException  If the DN of the entry cannot be parsed.
+     */
+    private boolean advance()
+            throws IOException, LDIFException, LDAPException
+    {
+      try
+      {
+        currentEntry = reader.readEntry();
+      }
+      catch (final IOException | LDIFException e)
+      {
+        Debug.debugException(e);
+        close();
+        throw e;
+      }
+
+      if (currentEntry == null)
+      {
+        currentDN = null;
+        close();
+        return false;
+      }
+
+      currentDN = currentEntry.getParsedDN();
+      return true;
+    }
+
+
+
+    /**
+     * Closes the reader for the run.
+     */
+    private void close()
+    {
+      try
+      {
+        reader.close();
+      }
+      catch (final IOException e)
+      {
+        Debug.debugException(e);
+      }
+    }
+  }
+}
@@ -0,0 +1,602 @@
+/*
+ * Copyright 2019 Neil A. Wilson
+ * All Rights Reserved.
+ */
+/*
+ * Copyright (C) 2019 Neil A. Wilson
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPLv2 only)
+ * or the terms of the GNU Lesser General Public License (LGPLv2.1 only)
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, see <http://www.gnu.org/licenses>.
+ */
+/*
+ * Copyright 2019 Neil A. Wilson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dirmgr.example.multiupdate;
+
+
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.unboundid.ldap.listener.InMemoryDirectoryServerSnapshot;
+import com.unboundid.ldap.listener.InMemoryExtendedOperationHandler;
+import com.unboundid.ldap.listener.InMemoryRequestHandler;
+import com.unboundid.ldap.protocol.AddRequestProtocolOp;
+import com.unboundid.ldap.protocol.DeleteRequestProtocolOp;
+import com.unboundid.ldap.protocol.GenericResponseProtocolOp;
+import com.unboundid.ldap.protocol.LDAPMessage;
+import com.unboundid.ldap.protocol.ModifyDNRequestProtocolOp;
+import com.unboundid.ldap.protocol.ModifyRequestProtocolOp;
+import com.unboundid.ldap.sdk.AddRequest;
+import com.unboundid.ldap.sdk.Control;
+import com.unboundid.ldap.sdk.DN;
+import com.unboundid.ldap.sdk.DeleteRequest;
+import com.unboundid.ldap.sdk.Entry;
+import com.unboundid.ldap.sdk.ExtendedRequest;
+import com.unboundid.ldap.sdk.ExtendedResult;
+import com.unboundid.ldap.sdk.LDAPException;
+import com.unboundid.ldap.sdk.LDAPRequest;
+import com.unboundid.ldap.sdk.LDAPResult;
+import com.unboundid.ldap.sdk.ModifyDNRequest;
+import com.unboundid.ldap.sdk.Modification;
+import com.unboundid.ldap.sdk.ModifyRequest;
+import com.unboundid.ldap.sdk.OperationType;
+import com.unboundid.ldap.sdk.RDN;
+import com.unboundid.ldap.sdk.ReadOnlyEntry;
+import com.unboundid.ldap.sdk.ResultCode;
+import com.unboundid.ldap.sdk.controls.SubtreeDeleteRequestControl;
+import com.unboundid.ldap.sdk.unboundidds.extensions.MultiUpdateChangesApplied;
+import com.unboundid.ldap.sdk.unboundidds.extensions.MultiUpdateErrorBehavior;
+import com.unboundid.ldap.sdk.unboundidds.extensions.MultiUpdateExtendedRequest;
+import com.unboundid.ldap.sdk.unboundidds.extensions.MultiUpdateExtendedResult;
+import com.unboundid.util.Debug;
+import com.unboundid.util.ObjectPair;
+import com.unboundid.util.StaticUtils;
+import com.unboundid.util.ThreadSafety;
+import com.unboundid.util.ThreadSafetyLevel;
+
+
+
+/**
+ * This class provides an implementation of the multi-update extended operation
+ * that may be used with the UnboundID LDAP SDK's in-memory directory server,
+ * so that the {@link MultiUpdateLDAPModify} tool can be exercised and
+ * benchmarked without access to a Ping Identity Directory Server.  The changes
+ * in each request are processed in order, and the result includes the result
+ * of each change that was attempted.  All three error behaviors are supported:
+ * <UL>
+ *   <LI>With the {@code ATOMIC} error behavior, the original content of the
+ *       entry targeted by each change is recorded before the change is
+ *       applied, and if any of the changes fails, then the changes that were
+ *       applied are reverted in reverse order.  The result will include an
+ *       entry for every change in the request, with a {@code CANCELED} result
+ *       for each change that was reverted or not attempted.</LI>
+ *   <LI>With the {@code ABORT_ON_ERROR} error behavior, processing will stop
+ *       after the first failed change, and changes that were successfully
+ *       applied before that failure will be retained.</LI>
+ *   <LI>With the {@code CONTINUE_ON_ERROR} error behavior, every change will
+ *       be attempted regardless of whether earlier changes failed.</LI>
+ * </UL>
+ * Because the in-memory directory server holds a lock while processing an
+ * extended operation, no other operations will be processed while a
+ * multi-update request is in progress.
+ * <BR><BR>
+ * Recording the original entry for each change keeps the cost of an atomic
+ * request proportional to the number of changes it contains, rather than to
+ * the size of the data set, as it would be if a snapshot of the whole server
+ * were taken for each request.  The exception is a delete that includes the
+ * subtree delete request control, which may remove any number of entries, so
+ * a snapshot is taken before that change is processed, and it is used to
+ * revert that change and any later changes in the request.  Reverting changes
+ * in this way has some visible effects that restoring a snapshot would not:
+ * the modifiersName and modifyTimestamp attributes of reverted entries will
+ * reflect the time of the rollback, and if the server maintains a changelog,
+ * then the reverting changes will be recorded in it.  Changes that the server
+ * makes to other entries as a side effect of a change (for example, to
+ * maintain referential integrity) are not reverted.
+ */
+@ThreadSafety(level=ThreadSafetyLevel.COMPLETELY_THREADSAFE)
+public final class InMemoryMultiUpdateExtendedOperationHandler
+       extends InMemoryExtendedOperationHandler
+{
+  /**
+   * The diagnostic message that will be used for changes that were applied but
+   * then reverted because of a later failure in an atomic request.
+   */
+  static final String REVERTED_DIAGNOSTIC_MESSAGE = "Although this update " +
+       "initially succeeded, it was reverted because the multi-update " +
+       "request had an error behavior of 'ATOMIC' and a failure was " +
+       "encountered while processing a subsequent update in the request";
+
+
+
+  /**
+   * The diagnostic message that will be used for changes that were not
+   * attempted because of an earlier failure in an atomic request.
+   */
+  static final String NOT_ATTEMPTED_DIAGNOSTIC_MESSAGE = "This update was " +
+       "not attempted because the multi-update request had an error " +
+       "behavior of 'ATOMIC' and a failure was encountered while " +
+       "processing a previous update in the request";
+
+
+
+  /**
+   * Creates a new instance of this extended operation handler.
+   */
+  public InMemoryMultiUpdateExtendedOperationHandler()
+  {
+    // No implementation is required.
+  }
+
+
+
+  /**
+   * Retrieves the name for this extended operation handler.
+   *
+   * @return  The name for this extended operation handler.
+   */
+  @Override()
+  public String getExtendedOperationHandlerName()
+  {
+    return "Multi-Update";
+  }
+
+
+
+  /**
+   * Retrieves a list of the extended request OIDs supported by this extended
+   * operation handler.
+   *
+   * @return  A list of the extended request OIDs supported by this extended
+   *          operation handler.
+   */
+  @Override()
+  public List<String> getSupportedExtendedRequestOIDs()
+  {
+    return Collections.singletonList(
+         MultiUpdateExtendedRequest.MULTI_UPDATE_REQUEST_OID);
+  }
+
+
+
+  /**
+   * Performs the processing for the provided multi-update extended request.
+   *
+   * @param  handler    The in-memory request handler that accepted the
+   *                    extended request.
+   * @param  messageID  The message ID for the LDAP message that the client
+   *                    used to send the request.
+   * @param  request    The extended request to process.
+   *
+   * @return  The multi-update extended result that should be returned to the
+   *          client.
+   */
+  @Override()
+  public ExtendedResult processExtendedOperation(
+                             final InMemoryRequestHandler handler,
+                             final int messageID,
+                             final ExtendedRequest request)
+  {
+    // Decode the request.
+    final MultiUpdateExtendedRequest multiUpdateRequest;
+    try
+    {
+      multiUpdateRequest = new MultiUpdateExtendedRequest(request);
+    }
+    catch (final LDAPException e)
+    {
+      Debug.debugException(e);
+      return new ExtendedResult(messageID, ResultCode.PROTOCOL_ERROR,
+           "Unable to decode the multi-update extended request:  " +
+                e.getMessage(),
+           null, null, null, null, null);
+    }
+
+    final MultiUpdateErrorBehavior errorBehavior =
+         multiUpdateRequest.getErrorBehavior();
+    final List<LDAPRequest> requests = multiUpdateRequest.getRequests();
+
+
+    // Process each of the changes in order.  If the changes are to be
+    // processed atomically, then record how to revert each change that is
+    // applied, so that we can roll back if a later change fails.  The request
+    // handler holds its lock for the duration of the extended operation, so
+    // nothing else can change the content in the meantime.
+    final boolean atomic = (errorBehavior == MultiUpdateErrorBehavior.ATOMIC);
+    final List<ChangeInverse> inverses = new ArrayList<>(requests.size());
+    InMemoryDirectoryServerSnapshot snapshot = null;
+    final List<ObjectPair<OperationType,LDAPResult>> results =
+         new ArrayList<>(requests.size());
+    int successCount = 0;
+    int failureCount = 0;
+    for (final LDAPRequest r : requests)
+    {
+      ChangeInverse inverse = null;
+      if (atomic && (snapshot == null))
+      {
+        if (r.hasControl(
+             SubtreeDeleteRequestControl.SUBTREE_DELETE_REQUEST_OID))
+        {
+          snapshot = handler.createSnapshot();
+        }
+        else
+        {
+          try
+          {
+            inverse = ChangeInverse.create(handler, r);
+          }
+          catch (final LDAPException e)
+          {
+            // The change's target DN can't be parsed, so the change should
+            // fail, but take a snapshot in case it doesn't.
+            Debug.debugException(e);
+            snapshot = handler.createSnapshot();
+          }
+        }
+      }
+
+      final LDAPResult result = processChange(handler, messageID, r);
+      results.add(new ObjectPair<>(r.getOperationType(), result));
+      if (result.getResultCode() == ResultCode.SUCCESS)
+      {
+        successCount++;
+        if (inverse != null)
+        {
+          inverses.add(inverse);
+        }
+      }
+      else
+      {
+        failureCount++;
+        if (errorBehavior != MultiUpdateErrorBehavior.CONTINUE_ON_ERROR)
+        {
+          break;
+        }
+      }
+    }
+
+
+    // If an atomic request had a failure, then roll back the changes and
+    // replace the results so that they reflect what actually happened.
+    final MultiUpdateChangesApplied changesApplied;
+    if (failureCount == 0)
+    {
+      changesApplied = MultiUpdateChangesApplied.ALL;
+    }
+    else if (atomic)
+    {
+      // Revert the changes in the reverse of the order in which they were
+      // applied.  If a snapshot was taken, then restoring it reverts the
+      // change that it was taken for and everything after it.
+      try
+      {
+        if (snapshot != null)
+        {
+          handler.restoreSnapshot(snapshot);
+        }
+
+        for (int i=(inverses.size() - 1); i >= 0; i--)
+        {
+          inverses.get(i).revert(handler);
+        }
+      }
+      catch (final LDAPException e)
+      {
+        Debug.debugException(e);
+        return new ExtendedResult(messageID, ResultCode.OTHER,
+             "Unable to revert the changes from an atomic multi-update " +
+                  "request after a failure:  " +
+                  StaticUtils.getExceptionMessage(e),
+             null, null, null, null, null);
+      }
+
+      for (int i=0; i < requests.size(); i++)
+      {
+        final OperationType operationType = requests.get(i).getOperationType();
+        if (i >= results.size())
+        {
+          results.add(new ObjectPair<>(operationType,
+               new LDAPResult(messageID, ResultCode.CANCELED,
+                    NOT_ATTEMPTED_DIAGNOSTIC_MESSAGE, null,
+                    StaticUtils.NO_STRINGS, StaticUtils.NO_CONTROLS)));
+        }
+        else if (results.get(i).getSecond().getResultCode() ==
+             ResultCode.SUCCESS)
+        {
+          results.set(i, new ObjectPair<>(operationType,
+               new LDAPResult(messageID, ResultCode.CANCELED,
+                    REVERTED_DIAGNOSTIC_MESSAGE, null, StaticUtils.NO_STRINGS,
+                    StaticUtils.NO_CONTROLS)));
+        }
+      }
+
+      changesApplied = MultiUpdateChangesApplied.NONE;
+    }
+    else if (successCount > 0)
+    {
+      changesApplied = MultiUpdateChangesApplied.PARTIAL;
+    }
+    else
+    {
+      changesApplied = MultiUpdateChangesApplied.NONE;
+    }
+
+    try
+    {
+      return new MultiUpdateExtendedResult(messageID, ResultCode.SUCCESS, null,
+           null, null, changesApplied, results, StaticUtils.NO_CONTROLS);
+    }
+    catch (final LDAPException e)
+    {
+      Debug.debugException(e);
+      return new ExtendedResult(messageID, ResultCode.OTHER,
+           "Unable to encode the multi-update extended result:  " +
+                StaticUtils.getExceptionMessage(e),
+           null, null, null, null, null);
+    }
+  }
+
+
+
+  /**
+   * Processes a single change from a multi-update request.
+   *
+   * @param  handler    The in-memory request handler to use to process the
+   *                    change.
+   * @param  messageID  The message ID for the multi-update request.
+   * @param  request    The change to process.
+   *
+   * @return  The result of processing the change.
+   */
+  private static LDAPResult processChange(final InMemoryRequestHandler handler,
+                                          final int messageID,
+                                          final LDAPRequest request)
+  {
+    final List<Control> controls;
+    if (request.hasControl())
+    {
+      controls = StaticUtils.toList(request.getControls());
+    }
+    else
+    {
+      controls = Collections.emptyList();
+    }
+
+    final LDAPMessage responseMessage;
+    final GenericResponseProtocolOp responseOp;
+    switch (request.getOperationType())
+    {
+      case ADD:
+        responseMessage = handler.processAddRequest(messageID,
+             new AddRequestProtocolOp((AddRequest) request), controls);
+        responseOp = responseMessage.getAddResponseProtocolOp();
+        break;
+      case DELETE:
+        responseMessage = handler.processDeleteRequest(messageID,
+             new DeleteRequestProtocolOp((DeleteRequest) request), controls);
+        responseOp = responseMessage.getDeleteResponseProtocolOp();
+        break;
+      case MODIFY:
+        responseMessage = handler.processModifyRequest(messageID,
+             new ModifyRequestProtocolOp((ModifyRequest) request), controls);
+        responseOp = responseMessage.getModifyResponseProtocolOp();
+        break;
+      case MODIFY_DN:
+        responseMessage = handler.processModifyDNRequest(messageID,
+             new ModifyDNRequestProtocolOp((ModifyDNRequest) request),
+             controls);
+        responseOp = responseMessage.getModifyDNResponseProtocolOp();
+        break;
+      default:
+        return new LDAPResult(messageID, ResultCode.UNWILLING_TO_PERFORM,
+             "Operation type " + request.getOperationType().name() +
+                  " is not supported in a multi-update request.",
+             null, StaticUtils.NO_STRINGS, StaticUtils.NO_CONTROLS);
+    }
+
+    final List<Control> responseControls = responseMessage.getControls();
+    final Control[] responseControlArray =
+         new Control[responseControls.size()];
+    return responseOp.toLDAPResult(
+         responseControls.toArray(responseControlArray));
+  }
+
+
+
+  /**
+   * This class holds the information needed to revert a change that was
+   * applied as part of an atomic multi-update request.
+   */
+  private static final class ChangeInverse
+  {
+    // The DN of the targeted entry after the change was applied.
+    private final DN changedDN;
+
+    // The type of operation for the change.
+    private final OperationType operationType;
+
+    // The targeted entry as it was before the change was applied, or null if
+    // the change was an add.
+    private final ReadOnlyEntry originalEntry;
+
+
+
+    /**
+     * Creates a new change inverse with the provided information.
+     *
+     * @param  operationType  The type of operation for the change.
+     * @param  changedDN      The DN of the targeted entry after the change
+     *                        was applied.
+     * @param  originalEntry  The targeted entry as it was before the change
+     *                        was applied, or {@code null} if the change was
+     *                        an add.
+     */
+    private ChangeInverse(final OperationType operationType,
+                          final DN changedDN,
+                          final ReadOnlyEntry originalEntry)
+    {
+      this.operationType = operationType;
+      this.changedDN = changedDN;
+      this.originalEntry = originalEntry;
+    }
+
+
+
+    /**
+     * Records the information needed to revert the provided change.  This
+     * must be called before the change is applied.
+     *
+     * @param  handler  The in-memory request handler that will process the
+     *                  change.
+     * @param  request  The change that is about to be applied.
+     *
+     * @return  The information needed to revert the change.
+     *
+     * @throws  LDAPException  If the change's target DN, or its new RDN or
+     *                         superior DN, cannot be parsed.
+     */
+    static ChangeInverse create(final InMemoryRequestHandler handler,
+                                final LDAPRequest request)
+           throws LDAPException
+    {
+      switch (request.getOperationType())
+      {
+        case ADD:
+          return new ChangeInverse(OperationType.ADD,
+               new DN(((AddRequest) request).getDN()), null);
+
+        case DELETE:
+          final DN deleteDN = new DN(((DeleteRequest) request).getDN());
+          return new ChangeInverse(OperationType.DELETE, deleteDN,
+               handler.getEntry(deleteDN));
+
+        case MODIFY:
+          final DN modifyDN = new DN(((ModifyRequest) request).getDN());
+          return new ChangeInverse(OperationType.MODIFY, modifyDN,
+               handler.getEntry(modifyDN));
+
+        case MODIFY_DN:
+          final ModifyDNRequest modifyDNRequest = (ModifyDNRequest) request;
+          final DN originalDN = new DN(modifyDNRequest.getDN());
+          final DN newParentDN;
+          if (modifyDNRequest.getNewSuperiorDN() == null)
+          {
+            newParentDN = originalDN.getParent();
+          }
+          else
+          {
+            newParentDN = new DN(modifyDNRequest.getNewSuperiorDN());
+          }
+
+          final RDN newRDN = new RDN(modifyDNRequest.getNewRDN());
+          final DN newDN;
+          if (newParentDN == null)
+          {
+            newDN = new DN(newRDN);
+          }
+          else
+          {
+            newDN = new DN(newRDN, newParentDN);
+          }
+
+          return new ChangeInverse(OperationType.MODIFY_DN, newDN,
+               handler.getEntry(originalDN));
+
+        default:
+          // Other types of changes are rejected without being applied, so
+          // there is nothing to revert.
+          return new ChangeInverse(request.getOperationType(), null, null);
+      }
+    }
+
+
+
+    /**
+     * Reverts the change.  Any changes that were applied after it must
+     * already have been reverted.
+     *
+     * @param  handler  The in-memory request handler that processed the
+     *                  change.
+     *
+     * @throws  LDAPException  If a problem occurs while reverting the change.
+     */
+    void revert(final InMemoryRequestHandler handler)
+         throws LDAPException
+    {
+      switch (operationType)
+      {
+        case ADD:
+          handler.delete(new DeleteRequest(changedDN));
+          break;
+
+        case DELETE:
+          handler.add(new AddRequest(originalEntry));
+          break;
+
+        case MODIFY:
+          restoreAttributes(handler);
+          break;
+
+        case MODIFY_DN:
+          // Keep the RDN values from the new RDN when moving the entry back,
+          // since they may have been in the original entry.  Any that
+          // weren't will be removed when the attributes are restored.
+          handler.modifyDN(new ModifyDNRequest(changedDN,
+               originalEntry.getRDN(), false,
+               originalEntry.getParsedDN().getParent()));
+          restoreAttributes(handler);
+          break;
+
+        default:
+          break;
+      }
+    }
+
+
+
+    /**
+     * Replaces the attributes of the targeted entry, which must have the same
+     * DN as the original entry, with those of the original entry.
+     *
+     * @param  handler  The in-memory request handler that processed the
+     *                  change.
+     *
+     * @throws  LDAPException  If a problem occurs while updating the entry.
+     */
+    private void restoreAttributes(final InMemoryRequestHandler handler)
+            throws LDAPException
+    {
+      final DN dn = originalEntry.getParsedDN();
+      final List<Modification> modifications =
+           Entry.diff(handler.getEntry(dn), originalEntry, false, false);
+      if (! modifications.isEmpty())
+      {
+        handler.modify(new ModifyRequest(dn, modifications));
+      }
+    }
+  }
+}
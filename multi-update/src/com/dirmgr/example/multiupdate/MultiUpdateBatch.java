@@ -0,0 +1,267 @@
+/*
+ * Copyright 2019 Neil A. Wilson
+ * All Rights Reserved.
+ */
+/*
+ * Copyright (C) 2019 Neil A. Wilson
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPLv2 only)
+ * or the terms of the GNU Lesser General Public License (LGPLv2.1 only)
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, see <http://www.gnu.org/licenses>.
+ */
+/*
+ * Copyright 2019 Neil A. Wilson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dirmgr.example.multiupdate;
+
+
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.unboundid.ldap.sdk.LDAPRequest;
+import com.unboundid.util.ThreadSafety;
+import com.unboundid.util.ThreadSafetyLevel;
+
+
+
+/**
+ * This class defines a batch of changes read from an LDIF file that should be
+ * sent to the server together in a single multi-update extended request.
+ * <BR><BR>
+ * Usually, each request in a batch corresponds to exactly one change record,
+ * but if the batch has been coalesced, then a request may stand in for several
+ * consecutive change records, and some records may not be represented at all.
+ * For that reason, the batch keeps track of how far through the LDIF file
+ * processing will have progressed once each of its requests has been
+ * acknowledged, so that a checkpoint can be recorded at that point.
+ */
+@ThreadSafety(level=ThreadSafetyLevel.COMPLETELY_THREADSAFE)
+public final class MultiUpdateBatch
+{
+  // The one-based position of this batch in the sequence of batches read from
+  // the LDIF file.
+  private final int batchNumber;
+
+  // The one-based position in the LDIF file of the first change record
+  // included in this batch.
+  private final long firstChangeNumber;
+
+  // The one-based position in the LDIF file of the last change record
+  // included in this batch.
+  private final long lastChangeNumber;
+
+  // The approximate number of bytes needed to encode the requests in this
+  // batch.
+  private final long encodedSize;
+
+  // The record number of the last change record that will have been fully
+  // processed once each number of requests at the start of this batch has
+  // been acknowledged, indexed by the number of acknowledged requests.
+  private final long[] checkpointChangeNumbers;
+
+  // The byte offset in the LDIF file immediately after the change record
+  // identified by the corresponding element of checkpointChangeNumbers.
+  private final long[] checkpointOffsets;
+
+  // The requests included in this batch.
+  private final List<LDAPRequest> requests;
+
+
+
+  /**
+   * Creates a new multi-update batch with the provided information.
+   *
+   * @param  batchNumber              The one-based position of this batch in
+   *                                  the sequence of batches read from the
+   *                                  LDIF file.
+   * @param  firstChangeNumber        The one-based position in the LDIF file
+   *                                  of the first change record included in
+   *                                  this batch.
+   * @param  lastChangeNumber         The one-based position in the LDIF file
+   *                                  of the last change record included in
+   *                                  this batch.
+   * @param  requests                 The requests included in this batch.  It
+   *                                  must not be {@code null}, and it may only
+   *                                  be empty if all of the change records in
+   *                                  the batch were coalesced away.
+   * @param  checkpointChangeNumbers  The record number of the last change
+   *                                  record that will have been fully
+   *                                  processed once each number of requests
+   *                                  at the start of this batch has been
+   *                                  acknowledged, indexed by the number of
+   *                                  acknowledged requests.  It must have one
+   *                                  more element than the list of requests.
+   * @param  checkpointOffsets        The byte offset in the LDIF file
+   *                                  immediately after the change record
+   *                                  identified by the corresponding element
+   *                                  of the checkpoint change numbers.  It
+   *                                  must have one more element than the list
+   *                                  of requests.
+   * @param  encodedSize              The approximate number of bytes needed to
+   *                                  encode the requests in this batch.
+   */
+  public MultiUpdateBatch(final int batchNumber, final long firstChangeNumber,
+                          final long lastChangeNumber,
+                          final List<LDAPRequest> requests,
+                          final long[] checkpointChangeNumbers,
+                          final long[] checkpointOffsets,
+                          final long encodedSize)
+  {
+    this.batchNumber = batchNumber;
+    this.firstChangeNumber = firstChangeNumber;
+    this.lastChangeNumber = lastChangeNumber;
+    this.encodedSize = encodedSize;
+    this.checkpointChangeNumbers = checkpointChangeNumbers.clone();
+    this.checkpointOffsets = checkpointOffsets.clone();
+    this.requests = Collections.unmodifiableList(new ArrayList<>(requests));
+  }
+
+
+
+  /**
+   * Retrieves the one-based position of this batch in the sequence of batches
+   * read from the LDIF file.
+   *
+   * @return  The one-based position of this batch in the sequence of batches
+   *          read from the LDIF file.
+   */
+  public int getBatchNumber()
+  {
+    return batchNumber;
+  }
+
+
+
+  /**
+   * Retrieves the one-based position in the LDIF file of the first change
+   * record included in this batch.
+   *
+   * @return  The one-based position in the LDIF file of the first change record
+   *          included in this batch.
+   */
+  public long getFirstChangeNumber()
+  {
+    return firstChangeNumber;
+  }
+
+
+
+  /**
+   * Retrieves the one-based position in the LDIF file of the last change record
+   * included in this batch.
+   *
+   * @return  The one-based position in the LDIF file of the last change record
+   *          included in this batch.
+   */
+  public long getLastChangeNumber()
+  {
+    return lastChangeNumber;
+  }
+
+
+
+  /**
+   * Retrieves the number of change records included in this batch.  This may
+   * be greater than the number of requests if the batch has been coalesced.
+   *
+   * @return  The number of change records included in this batch.
+   */
+  public int getChangeCount()
+  {
+    return (int) (lastChangeNumber - firstChangeNumber + 1L);
+  }
+
+
+
+  /**
+   * Retrieves the record number of the last change record in the LDIF file
+   * that will have been fully processed once the specified number of requests
+   * at the start of this batch have been acknowledged by the server.
+   *
+   * @param  acknowledgedRequests  The number of requests at the start of this
+   *                               batch that have been acknowledged.  It must
+   *                               be between zero and the number of requests,
+   *                               inclusive.
+   *
+   * @return  The record number of the last change record in the LDIF file that
+   *          will have been fully processed, or a value that is less than the
+   *          first change number for this batch if a checkpoint can't be
+   *          advanced into this batch.
+   */
+  public long getCheckpointChangeNumber(final int acknowledgedRequests)
+  {
+    return checkpointChangeNumbers[acknowledgedRequests];
+  }
+
+
+
+  /**
+   * Retrieves the byte offset in the LDIF file immediately after the change
+   * record identified by the {@link #getCheckpointChangeNumber} method for the
+   * same number of acknowledged requests.  Reading may be resumed at that
+   * offset to skip that change and all of the changes before it.
+   *
+   * @param  acknowledgedRequests  The number of requests at the start of this
+   *                               batch that have been acknowledged.  It must
+   *                               be between zero and the number of requests,
+   *                               inclusive.
+   *
+   * @return  The byte offset in the LDIF file immediately after the
+   *          corresponding change record, or -1 if a checkpoint can't be
+   *          advanced into this batch.
+   */
+  public long getCheckpointOffset(final int acknowledgedRequests)
+  {
+    return checkpointOffsets[acknowledgedRequests];
+  }
+
+
+
+  /**
+   * Retrieves the approximate number of bytes needed to encode the requests in
+   * this batch.
+   *
+   * @return  The approximate number of bytes needed to encode the requests in
+   *          this batch.
+   */
+  public long getEncodedSize()
+  {
+    return encodedSize;
+  }
+
+
+
+  /**
+   * Retrieves the requests included in this batch, in the order in which they
+   * should be sent to the server.
+   *
+   * @return  The requests included in this batch.
+   */
+  public List<LDAPRequest> getRequests()
+  {
+    return requests;
+  }
+}
@@ -0,0 +1,424 @@
+/*
+ * Copyright 2019 Neil A. Wilson
+ * All Rights Reserved.
+ */
+/*
+ * Copyright (C) 2019 Neil A. Wilson
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPLv2 only)
+ * or the terms of the GNU Lesser General Public License (LGPLv2.1 only)
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, see <http://www.gnu.org/licenses>.
+ */
+/*
+ * Copyright 2019 Neil A. Wilson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dirmgr.example.multiupdate;
+
+
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.unboundid.asn1.ASN1Buffer;
+import com.unboundid.ldap.sdk.AddRequest;
+import com.unboundid.ldap.sdk.Control;
+import com.unboundid.ldap.sdk.DeleteRequest;
+import com.unboundid.ldap.sdk.LDAPException;
+import com.unboundid.ldap.sdk.LDAPRequest;
+import com.unboundid.ldap.sdk.ModifyDNRequest;
+import com.unboundid.ldap.sdk.ModifyRequest;
+import com.unboundid.ldap.sdk.ResultCode;
+import com.unboundid.ldif.LDIFAddChangeRecord;
+import com.unboundid.ldif.LDIFChangeRecord;
+import com.unboundid.ldif.LDIFDeleteChangeRecord;
+import com.unboundid.ldif.LDIFException;
+import com.unboundid.ldif.LDIFModifyChangeRecord;
+import com.unboundid.ldif.LDIFModifyDNChangeRecord;
+import com.unboundid.util.ThreadSafety;
+import com.unboundid.util.ThreadSafetyLevel;
+
+
+
+/**
+ * This class provides a mechanism for lazily reading changes from a change
+ * source, like an LDIF file, and grouping them into batches that can each be
+ * sent to the server in a separate multi-update extended request.  A batch
+ * will be completed when it reaches a maximum number of changes or when adding
+ * the next change would cause the encoded size of the batch to exceed a
+ * maximum number of bytes, whichever comes first.  Only the changes for the
+ * batch currently being assembled, plus the bounded number of changes that the
+ * {@link ChangeSource} has read ahead, are held in memory, so the amount of
+ * memory required is bounded by the batch size rather than by the size of the
+ * LDIF source.
+ */
+@ThreadSafety(level=ThreadSafetyLevel.NOT_THREADSAFE)
+public final class MultiUpdateBatchReader
+       implements Closeable
+{
+  /**
+   * A rough estimate of the number of bytes that the multi-update extended
+   * request needs to wrap each operation in the sequence that holds the
+   * operation and its controls.
+   */
+  private static final int PER_REQUEST_ENCODING_OVERHEAD = 6;
+
+
+
+  // A buffer that will be reused to compute the encoded size of each request.
+  private final ASN1Buffer sizeBuffer;
+
+  // The maximum number of changes to include in a batch.
+  private int maxChangesPerBatch;
+
+  // The number of batches that have been returned so far.
+  private int batchesRead;
+
+  // The encoded size of the pending request, if there is one.
+  private long pendingRequestSize;
+
+  // Indicates whether the size of each change should include the pre-read
+  // request control that will be attached to it for the undo log.
+  private final boolean includePreReadControls;
+
+  // The maximum encoded size in bytes for a batch.
+  private final long maxBatchSizeBytes;
+
+  // The number of change records that have been read from the LDIF source so
+  // far.
+  private long changesRead;
+
+  // A change that was read from the LDIF source but could not be included in
+  // the previous batch because it would have caused that batch to exceed the
+  // maximum size.
+  private ParsedLDIFChange pendingChange;
+
+  // The reader from which the changes will be read.
+  private final ChangeSource changeReader;
+
+
+
+  /**
+   * Creates a new multi-update batch reader with the provided information.
+   *
+   * @param  changeReader        The source from which to read the changes.
+   *                             It must not be {@code null}.
+   * @param  maxChangesPerBatch  The maximum number of changes to include in
+   *                             each batch.  A value that is less than or
+   *                             equal to zero indicates that there should not
+   *                             be any limit.
+   * @param  maxBatchSizeBytes   The maximum encoded size in bytes for each
+   *                             batch.  A value that is less than or equal to
+   *                             zero indicates that there should not be any
+   *                             limit.  A single change that is larger than
+   *                             this limit will be sent in a batch by itself.
+   * @param  includePreReadControls  Indicates whether the size of each change
+   *                                 should include the pre-read request
+   *                                 control that the
+   *                                 {@link UndoLogWriter#addPreReadControl}
+   *                                 method will attach to it.  The control is
+   *                                 not attached by this reader, since changes
+   *                                 with controls can't be coalesced, so it
+   *                                 must be counted here for the batch to
+   *                                 stay within the maximum size.
+   */
+  public MultiUpdateBatchReader(final ChangeSource changeReader,
+                                final int maxChangesPerBatch,
+                                final long maxBatchSizeBytes,
+                                final boolean includePreReadControls)
+  {
+    this.changeReader = changeReader;
+    this.includePreReadControls = includePreReadControls;
+
+    if (maxChangesPerBatch > 0)
+    {
+      this.maxChangesPerBatch = maxChangesPerBatch;
+    }
+    else
+    {
+      this.maxChangesPerBatch = Integer.MAX_VALUE;
+    }
+
+    if (maxBatchSizeBytes > 0L)
+    {
+      this.maxBatchSizeBytes = maxBatchSizeBytes;
+    }
+    else
+    {
+      this.maxBatchSizeBytes = Long.MAX_VALUE;
+    }
+
+    sizeBuffer = new ASN1Buffer();
+    batchesRead = 0;
+    changesRead = 0L;
+    pendingChange = null;
+    pendingRequestSize = 0L;
+  }
+
+
+
+  /**
+   * Reads the next batch of changes from the LDIF source.
+   *
+   * @return  The next batch of changes from the LDIF source, or {@code null} if
+   *          there are no more changes to read.
+   *
+   * @throws  IOException  If a problem occurs while reading from the LDIF
+   *                       source.
+   *
+   * @throws  LDIFException  If the LDIF source contains a malformed change
+   *                         record.
+   *
+   * @throws  LDAPException  If the LDIF source contains a change record that
+   *                         cannot be included in a multi-update request.
+   */
+  public MultiUpdateBatch nextBatch()
+         throws IOException, LDIFException, LDAPException
+  {
+    final List<LDAPRequest> requests =
+         new ArrayList<>(Math.min(maxChangesPerBatch, 1000));
+    final List<Long> endOffsets =
+         new ArrayList<>(Math.min(maxChangesPerBatch, 1000));
+    long firstChangeNumber = -1L;
+    long batchSize = 0L;
+    if (pendingChange != null)
+    {
+      firstChangeNumber = pendingChange.getRecordNumber();
+      requests.add(pendingChange.getRequest());
+      endOffsets.add(pendingChange.getEndOffset());
+      batchSize = pendingRequestSize;
+      pendingChange = null;
+      pendingRequestSize = 0L;
+    }
+
+    while (requests.size() < maxChangesPerBatch)
+    {
+      final ParsedLDIFChange change = changeReader.read();
+      if (change == null)
+      {
+        break;
+      }
+
+      changesRead++;
+      final long requestSize = getEncodedSize(change.getRequest());
+      if ((! requests.isEmpty()) &&
+           (batchSize + requestSize > maxBatchSizeBytes))
+      {
+        pendingChange = change;
+        pendingRequestSize = requestSize;
+        break;
+      }
+
+      if (requests.isEmpty())
+      {
+        firstChangeNumber = change.getRecordNumber();
+      }
+
+      requests.add(change.getRequest());
+      endOffsets.add(change.getEndOffset());
+      batchSize += requestSize;
+    }
+
+    if (requests.isEmpty())
+    {
+      return null;
+    }
+
+    // Each request corresponds to exactly one change record, so once a given
+    // number of requests has been acknowledged, that many records have been
+    // processed.
+    final long[] checkpointChangeNumbers = new long[requests.size() + 1];
+    final long[] checkpointOffsets = new long[requests.size() + 1];
+    checkpointChangeNumbers[0] = firstChangeNumber - 1L;
+    checkpointOffsets[0] = -1L;
+    for (int i=0; i < requests.size(); i++)
+    {
+      checkpointChangeNumbers[i+1] = firstChangeNumber + i;
+      checkpointOffsets[i+1] = endOffsets.get(i);
+    }
+
+    batchesRead++;
+    return new MultiUpdateBatch(batchesRead, firstChangeNumber,
+         (firstChangeNumber + requests.size() - 1L), requests,
+         checkpointChangeNumbers, checkpointOffsets, batchSize);
+  }
+
+
+
+  /**
+   * Retrieves the maximum number of changes to include in each batch.
+   *
+   * @return  The maximum number of changes to include in each batch, or
+   *          {@code Integer.MAX_VALUE} if there is no limit.
+   */
+  public int getMaxChangesPerBatch()
+  {
+    return maxChangesPerBatch;
+  }
+
+
+
+  /**
+   * Specifies the maximum number of changes to include in each batch read
+   * after this point.  Batches that have already been read are not affected.
+   *
+   * @param  maxChangesPerBatch  The maximum number of changes to include in
+   *                             each batch.  A value that is less than or
+   *                             equal to zero indicates that there should not
+   *                             be any limit.
+   */
+  public void setMaxChangesPerBatch(final int maxChangesPerBatch)
+  {
+    if (maxChangesPerBatch > 0)
+    {
+      this.maxChangesPerBatch = maxChangesPerBatch;
+    }
+    else
+    {
+      this.maxChangesPerBatch = Integer.MAX_VALUE;
+    }
+  }
+
+
+
+  /**
+   * Retrieves the number of change records that have been read from the LDIF
+   * source so far.
+   *
+   * @return  The number of change records that have been read from the LDIF
+   *          source so far.
+   */
+  public long getChangesRead()
+  {
+    return changesRead;
+  }
+
+
+
+  /**
+   * Closes the underlying change reader.
+   *
+   * @throws  IOException  If a problem occurs while closing the reader.
+   */
+  @Override()
+  public void close()
+         throws IOException
+  {
+    changeReader.close();
+  }
+
+
+
+  /**
+   * Converts the provided LDIF change record to an LDAP request that may be
+   * included in a multi-update extended request.
+   *
+   * @param  changeRecord  The change record to convert.
+   *
+   * @return  The LDAP request created from the provided change record.
+   *
+   * @throws  LDAPException  If the change record cannot be converted to a
+   *                         request that may be included in a multi-update
+   *                         extended request.
+   */
+  static LDAPRequest toLDAPRequest(final LDIFChangeRecord changeRecord)
+         throws LDAPException
+  {
+    switch (changeRecord.getChangeType())
+    {
+      case ADD:
+        return ((LDIFAddChangeRecord) changeRecord).toAddRequest();
+      case DELETE:
+        return ((LDIFDeleteChangeRecord) changeRecord).toDeleteRequest();
+      case MODIFY:
+        return ((LDIFModifyChangeRecord) changeRecord).toModifyRequest();
+      case MODIFY_DN:
+        return ((LDIFModifyDNChangeRecord) changeRecord).toModifyDNRequest();
+      default:
+        // This should never happen.
+        throw new LDAPException(ResultCode.NOT_SUPPORTED,
+             "Unsupported change record:  " + changeRecord.toLDIFString());
+    }
+  }
+
+
+
+  /**
+   * Computes the number of bytes needed to encode the provided request, along
+   * with its controls (including the pre-read request control that will be
+   * attached to it later, if appropriate), in a multi-update extended request.
+   * If the changes are coalesced before they are sent, then a merged modify
+   * only gets one pre-read request control and a folded add gets none, so
+   * the sizes computed here remain an upper bound for the coalesced batch.
+   *
+   * @param  request  The request for which to compute the encoded size.
+   *
+   * @return  The number of bytes needed to encode the provided request.
+   *
+   * @throws  LDAPException  If the pre-read request control for the request
+   *                         cannot be created.
+   */
+  private long getEncodedSize(final LDAPRequest request)
+          throws LDAPException
+  {
+    sizeBuffer.clear();
+    switch (request.getOperationType())
+    {
+      case ADD:
+        ((AddRequest) request).writeTo(sizeBuffer);
+        break;
+      case DELETE:
+        ((DeleteRequest) request).writeTo(sizeBuffer);
+        break;
+      case MODIFY:
+        ((ModifyRequest) request).writeTo(sizeBuffer);
+        break;
+      case MODIFY_DN:
+        ((ModifyDNRequest) request).writeTo(sizeBuffer);
+        break;
+    }
+
+    long size = sizeBuffer.length() + PER_REQUEST_ENCODING_OVERHEAD;
+    Control[] controls = request.getControls();
+    if (includePreReadControls)
+    {
+      final Control preReadControl =
+           UndoLogWriter.createPreReadControl(request);
+      if (preReadControl != null)
+      {
+        controls = Arrays.copyOf(controls, controls.length + 1);
+        controls[controls.length - 1] = preReadControl;
+      }
+    }
+
+    if (controls.length > 0)
+    {
+      size += Control.encodeControls(controls).encode().length;
+    }
+
+    return size;
+  }
+}
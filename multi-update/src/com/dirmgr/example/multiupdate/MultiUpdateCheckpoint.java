@@ -0,0 +1,281 @@
+/*
+ * Copyright 2019 Neil A. Wilson
+ * All Rights Reserved.
+ */
+/*
+ * Copyright (C) 2019 Neil A. Wilson
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPLv2 only)
+ * or the terms of the GNU Lesser General Public License (LGPLv2.1 only)
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, see <http://www.gnu.org/licenses>.
+ */
+/*
+ * Copyright 2019 Neil A. Wilson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dirmgr.example.multiupdate;
+
+
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+
+import com.unboundid.util.Debug;
+import com.unboundid.util.ThreadSafety;
+import com.unboundid.util.ThreadSafetyLevel;
+
+
+
+/**
+ * This class defines a checkpoint that records how far a multi-update run has
+ * progressed through an LDIF file.  It holds the record number of the last
+ * change that the server has acknowledged, along with the byte offset in the
+ * LDIF file immediately after that change, so that a later run can seek
+ * directly to that offset and continue with the next change without having to
+ * read or parse any of the changes that were already applied.
+ * <BR><BR>
+ * A checkpoint is stored in a small properties file.  Whenever it is updated,
+ * the new contents are written to a temporary file that then replaces the
+ * existing one, so that the checkpoint file will always hold either the old
+ * checkpoint or the new one, even if the tool is killed while writing it.
+ */
+@ThreadSafety(level=ThreadSafetyLevel.COMPLETELY_THREADSAFE)
+public final class MultiUpdateCheckpoint
+{
+  /**
+   * The name of the checkpoint property that holds the path to the LDIF file.
+   */
+  private static final String PROPERTY_LDIF_FILE = "ldifFile";
+
+
+
+  /**
+   * The name of the checkpoint property that holds the record number of the
+   * last acknowledged change.
+   */
+  private static final String PROPERTY_RECORD_NUMBER = "recordNumber";
+
+
+
+  /**
+   * The name of the checkpoint property that holds the byte offset immediately
+   * after the last acknowledged change.
+   */
+  private static final String PROPERTY_BYTE_OFFSET = "byteOffset";
+
+
+
+  // The absolute path to the LDIF file to which this checkpoint applies.
+  private final String ldifFilePath;
+
+  // The byte offset in the LDIF file immediately after the last acknowledged
+  // change.
+  private final long byteOffset;
+
+  // The one-based record number of the last acknowledged change, or zero if
+  // no changes have been acknowledged.
+  private final long recordNumber;
+
+
+
+  /**
+   * Creates a new checkpoint with the provided information.
+   *
+   * @param  ldifFilePath  The absolute path to the LDIF file to which this
+   *                       checkpoint applies.  It must not be {@code null}.
+   * @param  recordNumber  The one-based record number of the last change that
+   *                       the server has acknowledged, or zero if no changes
+   *                       have been acknowledged.
+   * @param  byteOffset    The byte offset in the LDIF file immediately after
+   *                       the last acknowledged change.  For a compressed
+   *                       file, this is the offset in the uncompressed data.
+   */
+  public MultiUpdateCheckpoint(final String ldifFilePath,
+                               final long recordNumber, final long byteOffset)
+  {
+    this.ldifFilePath = ldifFilePath;
+    this.recordNumber = recordNumber;
+    this.byteOffset = byteOffset;
+  }
+
+
+
+  /**
+   * Retrieves the absolute path to the LDIF file to which this checkpoint
+   * applies.
+   *
+   * @return  The absolute path to the LDIF file to which this checkpoint
+   *          applies.
+   */
+  public String getLDIFFilePath()
+  {
+    return ldifFilePath;
+  }
+
+
+
+  /**
+   * Retrieves the one-based record number of the last change that the server
+   * has acknowledged.
+   *
+   * @return  The one-based record number of the last change that the server
+   *          has acknowledged, or zero if no changes have been acknowledged.
+   */
+  public long getRecordNumber()
+  {
+    return recordNumber;
+  }
+
+
+
+  /**
+   * Retrieves the byte offset in the LDIF file immediately after the last
+   * acknowledged change.  For a compressed file, this is the offset in the
+   * uncompressed data.
+   *
+   * @return  The byte offset in the LDIF file immediately after the last
+   *          acknowledged change.
+   */
+  public long getByteOffset()
+  {
+    return byteOffset;
+  }
+
+
+
+  /**
+   * Reads a checkpoint from the specified file.
+   *
+   * @param  checkpointFile  The file from which to read the checkpoint.  It
+   *                         must not be {@code null}.
+   *
+   * @return  The checkpoint that was read.
+   *
+   * @throws  IOException  If a problem occurs while reading the file, or if it
+   *                       does not contain a valid checkpoint.
+   */
+  public static MultiUpdateCheckpoint read(final File checkpointFile)
+         throws IOException
+  {
+    final Properties properties = new Properties();
+    try (InputStream inputStream = new FileInputStream(checkpointFile))
+    {
+      properties.load(inputStream);
+    }
+
+    final String ldifFilePath = properties.getProperty(PROPERTY_LDIF_FILE);
+    final String recordNumberString =
+         properties.getProperty(PROPERTY_RECORD_NUMBER);
+    final String byteOffsetString =
+         properties.getProperty(PROPERTY_BYTE_OFFSET);
+    if ((ldifFilePath == null) || (recordNumberString == null) ||
+         (byteOffsetString == null))
+    {
+      throw new IOException("Checkpoint file '" +
+           checkpointFile.getAbsolutePath() + "' is missing one or more of " +
+           "the " + PROPERTY_LDIF_FILE + ", " + PROPERTY_RECORD_NUMBER +
+           ", and " + PROPERTY_BYTE_OFFSET + " properties.");
+    }
+
+    final long recordNumber;
+    final long byteOffset;
+    try
+    {
+      recordNumber = Long.parseLong(recordNumberString.trim());
+      byteOffset = Long.parseLong(byteOffsetString.trim());
+    }
+    catch (final NumberFormatException e)
+    {
+      Debug.debugException(e);
+      throw new IOException("Checkpoint file '" +
+           checkpointFile.getAbsolutePath() + "' has a malformed " +
+           PROPERTY_RECORD_NUMBER + " or " + PROPERTY_BYTE_OFFSET +
+           " value.", e);
+    }
+
+    if ((recordNumber < 0L) || (byteOffset < 0L))
+    {
+      throw new IOException("Checkpoint file '" +
+           checkpointFile.getAbsolutePath() + "' has a negative " +
+           PROPERTY_RECORD_NUMBER + " or " + PROPERTY_BYTE_OFFSET +
+           " value.");
+    }
+
+    return new MultiUpdateCheckpoint(ldifFilePath, recordNumber, byteOffset);
+  }
+
+
+
+  /**
+   * Writes this checkpoint to the specified file, replacing any checkpoint
+   * that it already contains.
+   *
+   * @param  checkpointFile  The file to which the checkpoint should be
+   *                         written.  It must not be {@code null}.
+   *
+   * @throws  IOException  If a problem occurs while writing the file.
+   */
+  public void write(final File checkpointFile)
+         throws IOException
+  {
+    final Properties properties = new Properties();
+    properties.setProperty(PROPERTY_LDIF_FILE, ldifFilePath);
+    properties.setProperty(PROPERTY_RECORD_NUMBER,
+         String.valueOf(recordNumber));
+    properties.setProperty(PROPERTY_BYTE_OFFSET, String.valueOf(byteOffset));
+
+    final File absoluteFile = checkpointFile.getAbsoluteFile();
+    final File tempFile = new File(absoluteFile.getParentFile(),
+         absoluteFile.getName() + ".tmp");
+    try (FileOutputStream outputStream = new FileOutputStream(tempFile))
+    {
+      properties.store(outputStream, "multi-update-ldapmodify checkpoint");
+      outputStream.getFD().sync();
+    }
+
+    Files.move(tempFile.toPath(), absoluteFile.toPath(),
+         StandardCopyOption.REPLACE_EXISTING,
+         StandardCopyOption.ATOMIC_MOVE);
+  }
+
+
+
+  /**
+   * Retrieves a string representation of this checkpoint.
+   *
+   * @return  A string representation of this checkpoint.
+   */
+  @Override()
+  public String toString()
+  {
+    return "MultiUpdateCheckpoint(ldifFile='" + ldifFilePath +
+         "', recordNumber=" + recordNumber + ", byteOffset=" + byteOffset +
+         ')';
+  }
+}
@@ -0,0 +1,430 @@
+/*
+ * Copyright 2019 Neil A. Wilson
+ * All Rights Reserved.
+ */
+/*
+ * Copyright (C) 2019 Neil A. Wilson
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPLv2 only)
+ * or the terms of the GNU Lesser General Public License (LGPLv2.1 only)
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, see <http://www.gnu.org/licenses>.
+ */
+/*
+ * Copyright 2019 Neil A. Wilson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dirmgr.example.multiupdate;
+
+
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Future;
+
+import com.unboundid.asn1.ASN1Buffer;
+import com.unboundid.ldap.listener.InMemoryDirectoryServer;
+import com.unboundid.ldap.listener.InMemoryDirectoryServerConfig;
+import com.unboundid.ldap.sdk.AddRequest;
+import com.unboundid.ldap.sdk.Attribute;
+import com.unboundid.ldap.sdk.ExtendedRequest;
+import com.unboundid.ldap.sdk.LDAPConnection;
+import com.unboundid.ldap.sdk.LDAPRequest;
+import com.unboundid.ldap.sdk.Modification;
+import com.unboundid.ldap.sdk.ModificationType;
+import com.unboundid.ldap.sdk.ModifyRequest;
+import com.unboundid.ldap.sdk.ResultCode;
+import com.unboundid.ldap.sdk.unboundidds.extensions.MultiUpdateErrorBehavior;
+import com.unboundid.ldap.sdk.unboundidds.extensions.MultiUpdateExtendedRequest;
+import com.unboundid.ldap.sdk.unboundidds.extensions.MultiUpdateExtendedResult;
+
+
+
+/**
+ * This class provides a simple benchmark that compares the original approach
+ * of encoding each multi-update extended request on the thread that sends it
+ * with the approach used by the {@link MultiUpdateRequestEncoder}, in which the
+ * next request is encoded into a reused buffer on a separate thread while the
+ * current request is being processed.  It first compares the time required to
+ * encode the requests on their own, and then the wall-clock time required to
+ * send all of them to an in-memory directory server instance with the
+ * {@link InMemoryMultiUpdateExtendedOperationHandler}.  The requests are sent
+ * with the {@code CONTINUE_ON_ERROR} error behavior, so that the time
+ * required for the server to prepare for rolling back an atomic request
+ * doesn't hide the time spent encoding them, and the server doesn't use a
+ * schema, so that it doesn't need to look up matching rules every time it
+ * compares two DNs.
+ * <BR><BR>
+ * Even so, the server takes much longer to process each request than the
+ * client takes to encode it, so the difference in wall-clock time is small
+ * compared with the variation between runs.  For that reason, the benchmark
+ * also reports the time that the sending thread spends blocked on encoding:
+ * the time spent creating each request for the original approach, and the
+ * time spent waiting for the encoder to finish the next request for the
+ * pipelined approach.  That is the time that pipelining is meant to remove.
+ * <BR><BR>
+ * It accepts up to three optional arguments:  the total number of changes to
+ * send (default 50000), the number of changes in each request (default 500),
+ * and the number of timed iterations for each approach (default 5).  Each
+ * approach is also run once before timing starts to warm up the JVM.
+ */
+public class MultiUpdateEncodingBenchmark
+{
+  /**
+   * Runs the benchmark.
+   *
+   * @param  args  The provided command-line arguments.
+   *
+   * @throws  Exception  If an unexpected problem occurs.
+   */
+  public static void main(final String... args)
+         throws Exception
+  {
+    final int numChanges =
+         (args.length > 0) ? Integer.parseInt(args[0]) : 50_000;
+    final int changesPerRequest =
+         (args.length > 1) ? Integer.parseInt(args[1]) : 500;
+    final int iterations =
+         (args.length > 2) ? Integer.parseInt(args[2]) : 5;
+
+    final List<List<LDAPRequest>> requestChanges =
+         createRequestChanges(numChanges, changesPerRequest);
+    final MultiUpdateErrorBehavior errorBehavior =
+         MultiUpdateErrorBehavior.ATOMIC;
+
+    System.out.println("Using " + requestChanges.size() + " requests with " +
+         "up to " + changesPerRequest + " changes each, for a total of " +
+         numChanges + " changes.");
+    System.out.println();
+
+
+    // Make sure that the encoder creates exactly the same value as the SDK.
+    final ASN1Buffer buffer = new ASN1Buffer(0);
+    for (final List<LDAPRequest> changes : requestChanges)
+    {
+      final byte[] encoderValue = MultiUpdateRequestEncoder.encodeRequest(
+           buffer, errorBehavior, changes).getValue().getValue();
+      final byte[] sdkValue = new MultiUpdateExtendedRequest(errorBehavior,
+           changes).getValue().getValue();
+      if (! Arrays.equals(encoderValue, sdkValue))
+      {
+        throw new AssertionError("The encoder created a different value " +
+             "than the SDK for a request with " + changes.size() +
+             " changes.");
+      }
+    }
+
+
+    // Compare the time required just to encode the requests.
+    for (int i=0; i <= iterations; i++)
+    {
+      final long sdkStartTime = System.nanoTime();
+      for (final List<LDAPRequest> changes : requestChanges)
+      {
+        new MultiUpdateExtendedRequest(errorBehavior, changes);
+      }
+      final long sdkNanos = System.nanoTime() - sdkStartTime;
+
+      final long encoderStartTime = System.nanoTime();
+      for (final List<LDAPRequest> changes : requestChanges)
+      {
+        MultiUpdateRequestEncoder.encodeRequest(buffer, errorBehavior,
+             changes);
+      }
+      final long encoderNanos = System.nanoTime() - encoderStartTime;
+
+      if (i > 0)
+      {
+        System.out.println("Encoding iteration " + i + ":  SDK " +
+             toMillis(sdkNanos) + " ms, reused buffer " +
+             toMillis(encoderNanos) + " ms");
+      }
+    }
+    System.out.println();
+
+
+    // Compare the wall-clock time required to send the requests.  None of
+    // the changes will fail, so using the continue-on-error behavior doesn't
+    // change what the server does with them, but it keeps the server from
+    // doing any extra work to be able to roll them back.  Without a schema,
+    // the server compares DN values with the default matching rule rather
+    // than looking up the matching rule for each attribute in the schema.
+    final MultiUpdateErrorBehavior sendErrorBehavior =
+         MultiUpdateErrorBehavior.CONTINUE_ON_ERROR;
+    final InMemoryDirectoryServerConfig config =
+         new InMemoryDirectoryServerConfig("dc=example,dc=com");
+    config.addExtendedOperationHandler(
+         new InMemoryMultiUpdateExtendedOperationHandler());
+    config.setSchema(null);
+
+    final InMemoryDirectoryServer ds = new InMemoryDirectoryServer(config);
+    ds.startListening();
+
+    long totalSequentialNanos = 0L;
+    long totalSequentialBlockedNanos = 0L;
+    long totalPipelinedNanos = 0L;
+    long totalPipelinedBlockedNanos = 0L;
+    try (LDAPConnection conn = ds.getConnection();
+         MultiUpdateRequestEncoder encoder = new MultiUpdateRequestEncoder())
+    {
+      for (int i=0; i <= iterations; i++)
+      {
+        resetServer(ds);
+        final long[] sequentialNanos =
+             sendSequentially(conn, sendErrorBehavior, requestChanges);
+
+        resetServer(ds);
+        final long[] pipelinedNanos =
+             sendPipelined(conn, encoder, sendErrorBehavior, requestChanges);
+
+        if (i > 0)
+        {
+          System.out.println("Send iteration " + i + ":  sequential " +
+               toMillis(sequentialNanos[0]) + " ms (" +
+               toMillis(sequentialNanos[1]) + " ms blocked on encoding), " +
+               "pipelined " + toMillis(pipelinedNanos[0]) + " ms (" +
+               toMillis(pipelinedNanos[1]) + " ms blocked on encoding)");
+          totalSequentialNanos += sequentialNanos[0];
+          totalSequentialBlockedNanos += sequentialNanos[1];
+          totalPipelinedNanos += pipelinedNanos[0];
+          totalPipelinedBlockedNanos += pipelinedNanos[1];
+        }
+      }
+    }
+    finally
+    {
+      ds.shutDown(true);
+    }
+
+    System.out.println();
+    System.out.println("Average wall-clock time:  sequential " +
+         toMillis(totalSequentialNanos / iterations) + " ms, pipelined " +
+         toMillis(totalPipelinedNanos / iterations) + " ms");
+    System.out.println("Average time blocked on encoding:  sequential " +
+         toMillis(totalSequentialBlockedNanos / iterations) +
+         " ms, pipelined " +
+         toMillis(totalPipelinedBlockedNanos / iterations) + " ms");
+  }
+
+
+
+  /**
+   * Creates the changes to include in each of the requests.  Each user entry
+   * is added and then modified in the same request.
+   *
+   * @param  numChanges         The total number of changes to create.
+   * @param  changesPerRequest  The maximum number of changes to include in
+   *                            each request.
+   *
+   * @return  The changes to include in each of the requests.
+   */
+  private static List<List<LDAPRequest>> createRequestChanges(
+                      final int numChanges, final int changesPerRequest)
+  {
+    final List<List<LDAPRequest>> requestChanges = new ArrayList<>();
+    List<LDAPRequest> changes = new ArrayList<>(changesPerRequest);
+    for (int i=0; i < numChanges; i++)
+    {
+      final int userNumber = i / 2;
+      final String userID = "user." + userNumber;
+      final String dn = "uid=" + userID + ",ou=People,dc=example,dc=com";
+      if ((i % 2) == 0)
+      {
+        changes.add(new AddRequest(dn,
+             new Attribute("objectClass", "top", "person",
+                  "organizationalPerson", "inetOrgPerson"),
+             new Attribute("uid", userID),
+             new Attribute("givenName", "User"),
+             new Attribute("sn", String.valueOf(userNumber)),
+             new Attribute("cn", "User " + userNumber),
+             new Attribute("mail", userID + "@example.com"),
+             new Attribute("telephoneNumber",
+                  String.format("+1 555 555 %04d", userNumber % 10_000))));
+      }
+      else
+      {
+        changes.add(new ModifyRequest(dn,
+             new Modification(ModificationType.REPLACE, "description",
+                  "Modified description for " + userID)));
+      }
+
+      if (changes.size() >= changesPerRequest)
+      {
+        requestChanges.add(changes);
+        changes = new ArrayList<>(changesPerRequest);
+      }
+    }
+
+    if (! changes.isEmpty())
+    {
+      requestChanges.add(changes);
+    }
+
+    return requestChanges;
+  }
+
+
+
+  /**
+   * Removes all of the data from the provided server and adds the base
+   * entries.
+   *
+   * @param  ds  The server to reset.
+   *
+   * @throws  Exception  If an unexpected problem occurs.
+   */
+  private static void resetServer(final InMemoryDirectoryServer ds)
+          throws Exception
+  {
+    ds.clear();
+    ds.add(
+         "dn: dc=example,dc=com",
+         "objectClass: top",
+         "objectClass: domain",
+         "dc: example");
+    ds.add(
+         "dn: ou=People,dc=example,dc=com",
+         "objectClass: top",
+         "objectClass: organizationalUnit",
+         "ou: People");
+  }
+
+
+
+  /**
+   * Sends the requests in the original way, with each request encoded on the
+   * sending thread just before it is sent.
+   *
+   * @param  conn            The connection to use to send the requests.
+   * @param  errorBehavior   The error behavior to use for the requests.
+   * @param  requestChanges  The changes to include in each of the requests.
+   *
+   * @return  A two-element array in which the first element is the wall-clock
+   *          time in nanoseconds required to send all of the requests and
+   *          receive their results, and the second is the time in
+   *          nanoseconds that the sending thread spent blocked on encoding.
+   *
+   * @throws  Exception  If an unexpected problem occurs.
+   */
+  private static long[] sendSequentially(final LDAPConnection conn,
+                             final MultiUpdateErrorBehavior errorBehavior,
+                             final List<List<LDAPRequest>> requestChanges)
+          throws Exception
+  {
+    long blockedNanos = 0L;
+    final long startTime = System.nanoTime();
+    for (final List<LDAPRequest> changes : requestChanges)
+    {
+      final long encodeStartTime = System.nanoTime();
+      final MultiUpdateExtendedRequest request =
+           new MultiUpdateExtendedRequest(errorBehavior, changes);
+      blockedNanos += System.nanoTime() - encodeStartTime;
+
+      assertSuccess((MultiUpdateExtendedResult)
+           conn.processExtendedOperation(request));
+    }
+
+    return new long[] { System.nanoTime() - startTime, blockedNanos };
+  }
+
+
+
+  /**
+   * Sends the requests with the provided encoder, so that each request is
+   * encoded on the encoder thread while the previous one is being processed.
+   *
+   * @param  conn            The connection to use to send the requests.
+   * @param  encoder         The encoder to use to encode the requests.
+   * @param  errorBehavior   The error behavior to use for the requests.
+   * @param  requestChanges  The changes to include in each of the requests.
+   *
+   * @return  A two-element array in which the first element is the wall-clock
+   *          time in nanoseconds required to send all of the requests and
+   *          receive their results, and the second is the time in
+   *          nanoseconds that the sending thread spent blocked on encoding.
+   *
+   * @throws  Exception  If an unexpected problem occurs.
+   */
+  private static long[] sendPipelined(final LDAPConnection conn,
+                             final MultiUpdateRequestEncoder encoder,
+                             final MultiUpdateErrorBehavior errorBehavior,
+                             final List<List<LDAPRequest>> requestChanges)
+          throws Exception
+  {
+    long blockedNanos = 0L;
+    final long startTime = System.nanoTime();
+    Future<List<ExtendedRequest>> nextRequest = encoder.encode(errorBehavior,
+         Collections.singletonList(requestChanges.get(0)));
+    for (int i=0; i < requestChanges.size(); i++)
+    {
+      final long waitStartTime = System.nanoTime();
+      final ExtendedRequest request = nextRequest.get().get(0);
+      blockedNanos += System.nanoTime() - waitStartTime;
+
+      if ((i + 1) < requestChanges.size())
+      {
+        nextRequest = encoder.encode(errorBehavior,
+             Collections.singletonList(requestChanges.get(i + 1)));
+      }
+
+      assertSuccess(new MultiUpdateExtendedResult(
+           conn.processExtendedOperation(request)));
+    }
+
+    return new long[] { System.nanoTime() - startTime, blockedNanos };
+  }
+
+
+
+  /**
+   * Ensures that the provided result indicates that all of the changes were
+   * applied.
+   *
+   * @param  result  The result to examine.
+   *
+   * @throws  AssertionError  If the result does not indicate success.
+   */
+  private static void assertSuccess(final MultiUpdateExtendedResult result)
+          throws AssertionError
+  {
+    if (result.getResultCode() != ResultCode.SUCCESS)
+    {
+      throw new AssertionError("Unexpected multi-update result " + result);
+    }
+  }
+
+
+
+  /**
+   * Converts the provided duration from nanoseconds to milliseconds.
+   *
+   * @param  nanos  The duration in nanoseconds.
+   *
+   * @return  The duration in milliseconds.
+   */
+  private static long toMillis(final long nanos)
+  {
+    return nanos / 1_000_000L;
+  }
+}
@@ -0,0 +1,832 @@
+/*
+ * Copyright 2019 Neil A. Wilson
+ * All Rights Reserved.
+ */
+/*
+ * Copyright (C) 2019 Neil A. Wilson
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPLv2 only)
+ * or the terms of the GNU Lesser General Public License (LGPLv2.1 only)
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, see <http://www.gnu.org/licenses>.
+ */
+/*
+ * Copyright 2019 Neil A. Wilson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dirmgr.example.multiupdate;
+
+
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.unboundid.asn1.ASN1OctetString;
+import com.unboundid.ldap.sdk.AddRequest;
+import com.unboundid.ldap.sdk.AsyncRequestID;
+import com.unboundid.ldap.sdk.Control;
+import com.unboundid.ldap.sdk.DN;
+import com.unboundid.ldap.sdk.DeleteRequest;
+import com.unboundid.ldap.sdk.ExtendedResult;
+import com.unboundid.ldap.sdk.LDAPConnection;
+import com.unboundid.ldap.sdk.LDAPConnectionPool;
+import com.unboundid.ldap.sdk.LDAPException;
+import com.unboundid.ldap.sdk.LDAPRequest;
+import com.unboundid.ldap.sdk.LDAPResult;
+import com.unboundid.ldap.sdk.ModifyDNRequest;
+import com.unboundid.ldap.sdk.ModifyRequest;
+import com.unboundid.ldap.sdk.OperationType;
+import com.unboundid.ldap.sdk.ResultCode;
+import com.unboundid.ldap.sdk.UpdatableLDAPRequest;
+import com.unboundid.ldap.sdk.controls.TransactionSpecificationRequestControl;
+import com.unboundid.ldap.sdk.extensions.EndTransactionExtendedRequest;
+import com.unboundid.ldap.sdk.extensions.EndTransactionExtendedResult;
+import com.unboundid.ldap.sdk.extensions.StartTransactionExtendedRequest;
+import com.unboundid.ldap.sdk.extensions.StartTransactionExtendedResult;
+import com.unboundid.ldap.sdk.unboundidds.extensions.MultiUpdateChangesApplied;
+import com.unboundid.ldap.sdk.unboundidds.extensions.MultiUpdateErrorBehavior;
+import com.unboundid.ldap.sdk.unboundidds.extensions.MultiUpdateExtendedRequest;
+import com.unboundid.ldap.sdk.unboundidds.extensions.MultiUpdateExtendedResult;
+import com.unboundid.util.Debug;
+import com.unboundid.util.ObjectPair;
+import com.unboundid.util.StaticUtils;
+import com.unboundid.util.ThreadSafety;
+import com.unboundid.util.ThreadSafetyLevel;
+
+
+
+/**
+ * This class provides a means of processing the changes in a multi-update
+ * extended request with a directory server that does not support the
+ * multi-update extended operation.  The changes are sent as ordinary LDAP
+ * operations, and their results are used to construct a multi-update extended
+ * result that looks like the one the server would have returned, so that it
+ * can be reported in the same way.  The approach depends on the error
+ * behavior:
+ * <UL>
+ *   <LI>With the {@code ATOMIC} error behavior, the changes are processed in
+ *       an LDAP transaction as described in RFC 5805.  Each change is sent
+ *       without waiting for the server to accept the previous one, and the
+ *       transaction is committed once all of them have been accepted.  If the
+ *       server does not support transactions, then the changes can't be
+ *       processed atomically.</LI>
+ *   <LI>With the {@code CONTINUE_ON_ERROR} error behavior, the changes are
+ *       sent asynchronously over a single connection, with up to a configured
+ *       number of them outstanding at any time.  Because the server may
+ *       process operations received on the same connection concurrently, a
+ *       change will not be sent while an earlier change that targets the same
+ *       entry, or any of its ancestors or descendants, is still
+ *       outstanding.</LI>
+ *   <LI>With the {@code ABORT_ON_ERROR} error behavior, the changes are sent
+ *       one at a time, since a change that is sent before the result of the
+ *       previous change is known could be applied even if the previous change
+ *       fails.</LI>
+ * </UL>
+ */
+@ThreadSafety(level=ThreadSafetyLevel.COMPLETELY_THREADSAFE)
+public final class MultiUpdateFallbackProcessor
+{
+  /**
+   * The diagnostic message that will be used for changes that were not
+   * applied because the transaction that included them was aborted.
+   */
+  static final String TRANSACTION_ABORTED_DIAGNOSTIC_MESSAGE = "This update " +
+       "was not applied because the changes were being processed atomically " +
+       "in a transaction, and that transaction was aborted after a failure " +
+       "was encountered while processing another update";
+
+
+
+  // Indicates whether the server supports LDAP transactions.
+  private final boolean useTransactions;
+
+  // The maximum number of operations that may be outstanding on a connection
+  // at any time.
+  private final int maxOutstandingOperations;
+
+  // The connection pool to use to communicate with the server.
+  private final LDAPConnectionPool pool;
+
+
+
+  /**
+   * Creates a new fallback processor with the provided settings.
+   *
+   * @param  pool                      The connection pool to use to
+   *                                   communicate with the server.  It must
+   *                                   not be {@code null}.
+   * @param  useTransactions           Indicates whether the server supports
+   *                                   LDAP transactions, so that they may be
+   *                                   used to process changes atomically.
+   * @param  maxOutstandingOperations  The maximum number of operations that
+   *                                   may be outstanding on a connection at
+   *                                   any time.  It must be greater than zero.
+   */
+  public MultiUpdateFallbackProcessor(final LDAPConnectionPool pool,
+                                      final boolean useTransactions,
+                                      final int maxOutstandingOperations)
+  {
+    this.pool = pool;
+    this.useTransactions = useTransactions;
+    this.maxOutstandingOperations = maxOutstandingOperations;
+  }
+
+
+
+  /**
+   * Indicates whether this processor will use LDAP transactions to process
+   * changes atomically.
+   *
+   * @return  {@code true} if this processor will use LDAP transactions to
+   *          process changes atomically, or {@code false} if it can't process
+   *          changes atomically.
+   */
+  public boolean useTransactions()
+  {
+    return useTransactions;
+  }
+
+
+
+  /**
+   * Retrieves the maximum number of operations that may be outstanding on a
+   * connection at any time.
+   *
+   * @return  The maximum number of operations that may be outstanding on a
+   *          connection at any time.
+   */
+  public int getMaxOutstandingOperations()
+  {
+    return maxOutstandingOperations;
+  }
+
+
+
+  /**
+   * Processes the changes in the provided multi-update extended request as
+   * individual operations.
+   *
+   * @param  request  The multi-update extended request with the changes to
+   *                  process.  It must not be {@code null}.
+   *
+   * @return  A multi-update extended result with the outcome of each change
+   *          that was attempted.
+   *
+   * @throws  LDAPException  If the changes can't be processed with the
+   *                         requested error behavior, or if a problem occurs
+   *                         that prevents the outcome of the changes from
+   *                         being determined.
+   */
+  public MultiUpdateExtendedResult process(
+              final MultiUpdateExtendedRequest request)
+         throws LDAPException
+  {
+    return process(request.getErrorBehavior(), request.getRequests());
+  }
+
+
+
+  /**
+   * Processes the provided changes as individual operations, using the same
+   * semantics that a multi-update extended request with the given error
+   * behavior would have.
+   *
+   * @param  errorBehavior  The behavior to exhibit if a change fails.  It must
+   *                        not be {@code null}.
+   * @param  changes        The changes to process.  It must not be
+   *                        {@code null}.
+   *
+   * @return  A multi-update extended result with the outcome of each change
+   *          that was attempted.
+   *
+   * @throws  LDAPException  If the changes can't be processed with the
+   *                         requested error behavior, or if a problem occurs
+   *                         that prevents the outcome of the changes from
+   *                         being determined.
+   */
+  public MultiUpdateExtendedResult process(
+              final MultiUpdateErrorBehavior errorBehavior,
+              final List<LDAPRequest> changes)
+         throws LDAPException
+  {
+    // Determine the entries targeted by each change before sending anything,
+    // so that a malformed DN can't cause a failure after some of the changes
+    // have already been applied.
+    final List<List<DN>> targetDNs = new ArrayList<>(changes.size());
+    for (final LDAPRequest change : changes)
+    {
+      targetDNs.add(ChangeDependencyAnalyzer.getTargetDNs(change));
+    }
+
+    switch (errorBehavior)
+    {
+      case ATOMIC:
+        if (! useTransactions)
+        {
+          throw new LDAPException(ResultCode.UNWILLING_TO_PERFORM,
+               "The server does not support the multi-update extended " +
+                    "operation or LDAP transactions, so the changes can't " +
+                    "be processed atomically.");
+        }
+
+        return processInTransaction(changes);
+
+      case ABORT_ON_ERROR:
+        return processIndividually(changes, targetDNs, false, 1);
+
+      case CONTINUE_ON_ERROR:
+      default:
+        return processIndividually(changes, targetDNs, true,
+             maxOutstandingOperations);
+    }
+  }
+
+
+
+  /**
+   * Processes the provided changes as individual operations, outside of any
+   * transaction.
+   *
+   * @param  changes          The changes to process.
+   * @param  targetDNs        The DNs of the entries targeted by each of the
+   *                          changes.
+   * @param  continueOnError  Indicates whether to continue processing after a
+   *                          change fails.
+   * @param  windowSize       The maximum number of changes that may be
+   *                          outstanding at any time.
+   *
+   * @return  A multi-update extended result with the outcome of each change
+   *          that was attempted.
+   *
+   * @throws  LDAPException  If a connection can't be obtained or the result
+   *                         can't be created.
+   */
+  private MultiUpdateExtendedResult processIndividually(
+               final List<LDAPRequest> changes,
+               final List<List<DN>> targetDNs,
+               final boolean continueOnError, final int windowSize)
+          throws LDAPException
+  {
+    final List<ObjectPair<OperationType,LDAPResult>> results =
+         new ArrayList<>(changes.size());
+    final ArrayDeque<OutstandingChange> outstanding =
+         new ArrayDeque<>(windowSize);
+    ResultCode resultCode = ResultCode.SUCCESS;
+    String diagnosticMessage = null;
+    boolean stop = false;
+    boolean connectionUsable = true;
+
+    final LDAPConnection connection = pool.getConnection();
+    try
+    {
+      for (int i=0; (i < changes.size()) && (! stop); i++)
+      {
+        // Wait until there is room in the window and no outstanding change
+        // targets a related entry.  Results are always collected from the
+        // oldest outstanding change, so they stay in the order of the changes.
+        while ((! stop) && (! outstanding.isEmpty()) &&
+             ((outstanding.size() >= windowSize) ||
+                  conflicts(outstanding, targetDNs.get(i))))
+        {
+          final LDAPResult result = waitForOldest(outstanding, results);
+          if (result.getResultCode() != ResultCode.SUCCESS)
+          {
+            if (! ResultCode.isConnectionUsable(result.getResultCode()))
+            {
+              connectionUsable = false;
+              resultCode = result.getResultCode();
+              diagnosticMessage = "Processing stopped because the " +
+                   "connection to the server is no longer usable.";
+              stop = true;
+            }
+            else if (! continueOnError)
+            {
+              stop = true;
+            }
+          }
+        }
+
+        if (stop)
+        {
+          break;
+        }
+
+        final LDAPRequest change = changes.get(i);
+        try
+        {
+          outstanding.addLast(new OutstandingChange(change,
+               sendAsync(connection, change), targetDNs.get(i)));
+        }
+        catch (final LDAPException e)
+        {
+          Debug.debugException(e);
+          while (! outstanding.isEmpty())
+          {
+            waitForOldest(outstanding, results);
+          }
+
+          results.add(new ObjectPair<>(change.getOperationType(),
+               e.toLDAPResult()));
+          connectionUsable = false;
+          resultCode = e.getResultCode();
+          diagnosticMessage = "Processing stopped because an error " +
+               "occurred while trying to send a change to the server:  " +
+               StaticUtils.getExceptionMessage(e);
+          stop = true;
+        }
+      }
+
+      while (! outstanding.isEmpty())
+      {
+        final LDAPResult result = waitForOldest(outstanding, results);
+        if (! ResultCode.isConnectionUsable(result.getResultCode()))
+        {
+          connectionUsable = false;
+        }
+      }
+    }
+    finally
+    {
+      if (connectionUsable)
+      {
+        pool.releaseConnection(connection);
+      }
+      else
+      {
+        pool.releaseDefunctConnection(connection);
+      }
+    }
+
+    int successCount = 0;
+    for (final ObjectPair<OperationType,LDAPResult> result : results)
+    {
+      if (result.getSecond().getResultCode() == ResultCode.SUCCESS)
+      {
+        successCount++;
+      }
+    }
+
+    final MultiUpdateChangesApplied changesApplied;
+    if (successCount == changes.size())
+    {
+      changesApplied = MultiUpdateChangesApplied.ALL;
+    }
+    else if (successCount > 0)
+    {
+      changesApplied = MultiUpdateChangesApplied.PARTIAL;
+    }
+    else
+    {
+      changesApplied = MultiUpdateChangesApplied.NONE;
+    }
+
+    return new MultiUpdateExtendedResult(-1, resultCode, diagnosticMessage,
+         null, null, changesApplied, results, StaticUtils.NO_CONTROLS);
+  }
+
+
+
+  /**
+   * Processes the provided changes atomically in an LDAP transaction.
+   *
+   * @param  changes  The changes to process.
+   *
+   * @return  A multi-update extended result with the outcome of each change.
+   *
+   * @throws  LDAPException  If a connection can't be obtained, or if a problem
+   *                         occurs that prevents the outcome of the
+   *                         transaction from being determined.
+   */
+  private MultiUpdateExtendedResult processInTransaction(
+               final List<LDAPRequest> changes)
+          throws LDAPException
+  {
+    final LDAPConnection connection = pool.getConnection();
+    boolean connectionUsable = true;
+    try
+    {
+      final ExtendedResult startResult = connection.processExtendedOperation(
+           new StartTransactionExtendedRequest());
+      if (startResult.getResultCode() != ResultCode.SUCCESS)
+      {
+        connectionUsable =
+             ResultCode.isConnectionUsable(startResult.getResultCode());
+        return new MultiUpdateExtendedResult(-1, startResult.getResultCode(),
+             "Unable to start a transaction:  " +
+                  startResult.getDiagnosticMessage(),
+             startResult.getMatchedDN(), startResult.getReferralURLs(),
+             MultiUpdateChangesApplied.NONE,
+             Collections.<ObjectPair<OperationType,LDAPResult>>emptyList(),
+             StaticUtils.NO_CONTROLS);
+      }
+
+      final ASN1OctetString transactionID =
+           ((StartTransactionExtendedResult) startResult).getTransactionID();
+      final Control transactionControl =
+           new TransactionSpecificationRequestControl(transactionID);
+
+
+      // Send each of the changes as part of the transaction.  The server
+      // should just accept each of them without applying it, so there's no
+      // need to wait for one change to be accepted before sending the next,
+      // but stop sending as soon as one of them is rejected.
+      final List<ObjectPair<OperationType,LDAPResult>> acceptedResults =
+           new ArrayList<>(changes.size());
+      final ArrayDeque<OutstandingChange> outstanding =
+           new ArrayDeque<>(maxOutstandingOperations);
+      final int[] messageIDs = new int[changes.size()];
+      int failedIndex = -1;
+      for (int i=0; i < changes.size(); i++)
+      {
+        while ((failedIndex < 0) &&
+             (outstanding.size() >= maxOutstandingOperations))
+        {
+          final LDAPResult result =
+               waitForOldest(outstanding, acceptedResults);
+          if (result.getResultCode() != ResultCode.SUCCESS)
+          {
+            failedIndex = acceptedResults.size() - 1;
+          }
+        }
+
+        if (failedIndex >= 0)
+        {
+          break;
+        }
+
+        final LDAPRequest change = changes.get(i).duplicate();
+        ((UpdatableLDAPRequest) change).addControl(transactionControl);
+        try
+        {
+          final AsyncRequestID asyncRequestID =
+               sendAsync(connection, change);
+          messageIDs[i] = asyncRequestID.getMessageID();
+          outstanding.addLast(new OutstandingChange(change, asyncRequestID,
+               Collections.<DN>emptyList()));
+        }
+        catch (final LDAPException e)
+        {
+          // The transaction may still be active on the connection, so it
+          // must not be returned to the pool.
+          connectionUsable = false;
+          throw e;
+        }
+      }
+
+      while (! outstanding.isEmpty())
+      {
+        final LDAPResult result = waitForOldest(outstanding, acceptedResults);
+        if ((failedIndex < 0) &&
+             (result.getResultCode() != ResultCode.SUCCESS))
+        {
+          failedIndex = acceptedResults.size() - 1;
+        }
+      }
+
+
+      // If any of the changes was rejected, then abort the transaction.
+      // Otherwise, try to commit it.
+      if (failedIndex >= 0)
+      {
+        final LDAPResult failedResult =
+             acceptedResults.get(failedIndex).getSecond();
+        if (ResultCode.isConnectionUsable(failedResult.getResultCode()))
+        {
+          try
+          {
+            connection.processExtendedOperation(
+                 new EndTransactionExtendedRequest(transactionID, false));
+          }
+          catch (final LDAPException e)
+          {
+            Debug.debugException(e);
+            connectionUsable = false;
+          }
+        }
+        else
+        {
+          connectionUsable = false;
+        }
+
+        return createAbortedResult(changes, failedIndex, failedResult);
+      }
+
+      final EndTransactionExtendedResult endResult =
+           (EndTransactionExtendedResult) connection.processExtendedOperation(
+                new EndTransactionExtendedRequest(transactionID, true));
+      if (endResult.getResultCode() == ResultCode.SUCCESS)
+      {
+        final List<ObjectPair<OperationType,LDAPResult>> results =
+             new ArrayList<>(changes.size());
+        for (int i=0; i < changes.size(); i++)
+        {
+          Control[] responseControls =
+               endResult.getOperationResponseControls(messageIDs[i]);
+          if (responseControls == null)
+          {
+            responseControls = StaticUtils.NO_CONTROLS;
+          }
+
+          results.add(new ObjectPair<>(changes.get(i).getOperationType(),
+               new LDAPResult(messageIDs[i], ResultCode.SUCCESS, null, null,
+                    StaticUtils.NO_STRINGS, responseControls)));
+        }
+
+        return new MultiUpdateExtendedResult(-1, ResultCode.SUCCESS, null,
+             null, null, MultiUpdateChangesApplied.ALL, results,
+             StaticUtils.NO_CONTROLS);
+      }
+
+
+      // The commit failed.  If the server identified the change that caused
+      // it, then report the failure for that change.  Otherwise, report the
+      // failure for the request as a whole.
+      connectionUsable =
+           ResultCode.isConnectionUsable(endResult.getResultCode());
+      for (int i=0; i < changes.size(); i++)
+      {
+        if (messageIDs[i] == endResult.getFailedOpMessageID())
+        {
+          return createAbortedResult(changes, i,
+               new LDAPResult(messageIDs[i], endResult.getResultCode(),
+                    endResult.getDiagnosticMessage(),
+                    endResult.getMatchedDN(), endResult.getReferralURLs(),
+                    endResult.getOperationResponseControls(messageIDs[i])));
+        }
+      }
+
+      return new MultiUpdateExtendedResult(-1, endResult.getResultCode(),
+           "Unable to commit the transaction:  " +
+                endResult.getDiagnosticMessage(),
+           endResult.getMatchedDN(), endResult.getReferralURLs(),
+           MultiUpdateChangesApplied.NONE,
+           Collections.<ObjectPair<OperationType,LDAPResult>>emptyList(),
+           StaticUtils.NO_CONTROLS);
+    }
+    catch (final LDAPException e)
+    {
+      Debug.debugException(e);
+      if (! ResultCode.isConnectionUsable(e.getResultCode()))
+      {
+        connectionUsable = false;
+      }
+
+      throw e;
+    }
+    finally
+    {
+      if (connectionUsable)
+      {
+        pool.releaseConnection(connection);
+      }
+      else
+      {
+        pool.releaseDefunctConnection(connection);
+      }
+    }
+  }
+
+
+
+  /**
+   * Creates a multi-update extended result for a transaction that was aborted
+   * because of a failure in the specified change.
+   *
+   * @param  changes       The changes that were included in the transaction.
+   * @param  failedIndex   The position of the change that failed.
+   * @param  failedResult  The result for the change that failed.
+   *
+   * @return  The multi-update extended result.
+   *
+   * @throws  LDAPException  If a problem occurs while creating the result.
+   */
+  private static MultiUpdateExtendedResult createAbortedResult(
+               final List<LDAPRequest> changes, final int failedIndex,
+               final LDAPResult failedResult)
+          throws LDAPException
+  {
+    final List<ObjectPair<OperationType,LDAPResult>> results =
+         new ArrayList<>(changes.size());
+    for (int i=0; i < changes.size(); i++)
+    {
+      final OperationType operationType = changes.get(i).getOperationType();
+      if (i == failedIndex)
+      {
+        results.add(new ObjectPair<>(operationType, failedResult));
+      }
+      else
+      {
+        results.add(new ObjectPair<>(operationType,
+             new LDAPResult(failedResult.getMessageID(), ResultCode.CANCELED,
+                  TRANSACTION_ABORTED_DIAGNOSTIC_MESSAGE, null,
+                  StaticUtils.NO_STRINGS, StaticUtils.NO_CONTROLS)));
+      }
+    }
+
+    return new MultiUpdateExtendedResult(-1, ResultCode.SUCCESS, null, null,
+         null, MultiUpdateChangesApplied.NONE, results,
+         StaticUtils.NO_CONTROLS);
+  }
+
+
+
+  /**
+   * Indicates whether any of the outstanding changes targets the same entry as
+   * a change with the provided target DNs, or any of its ancestors or
+   * descendants.
+   *
+   * @param  outstanding  The changes that are currently outstanding.
+   * @param  targetDNs    The DNs of the entries targeted by the change to
+   *                      check.
+   *
+   * @return  {@code true} if any of the outstanding changes targets a related
+   *          entry, or {@code false} if not.
+   */
+  private static boolean conflicts(
+               final ArrayDeque<OutstandingChange> outstanding,
+               final List<DN> targetDNs)
+  {
+    for (final OutstandingChange outstandingChange : outstanding)
+    {
+      for (final DN outstandingDN : outstandingChange.getTargetDNs())
+      {
+        for (final DN targetDN : targetDNs)
+        {
+          if (outstandingDN.isAncestorOf(targetDN, true) ||
+               targetDN.isAncestorOf(outstandingDN, false))
+          {
+            return true;
+          }
+        }
+      }
+    }
+
+    return false;
+  }
+
+
+
+  /**
+   * Waits for the oldest outstanding change to complete, removes it from the
+   * set of outstanding changes, and adds its result to the provided list.
+   *
+   * @param  outstanding  The changes that are currently outstanding.  It must
+   *                      not be empty.
+   * @param  results      The list to which the result should be added.
+   *
+   * @return  The result for the change.
+   */
+  private static LDAPResult waitForOldest(
+               final ArrayDeque<OutstandingChange> outstanding,
+               final List<ObjectPair<OperationType,LDAPResult>> results)
+  {
+    final OutstandingChange change = outstanding.removeFirst();
+    final AsyncRequestID asyncRequestID = change.getAsyncRequestID();
+
+    LDAPResult result;
+    try
+    {
+      result = asyncRequestID.get();
+    }
+    catch (final InterruptedException e)
+    {
+      Debug.debugException(e);
+      Thread.currentThread().interrupt();
+      result = new LDAPResult(asyncRequestID.getMessageID(),
+           ResultCode.LOCAL_ERROR,
+           "Interrupted while waiting for the result of the change.", null,
+           StaticUtils.NO_STRINGS, StaticUtils.NO_CONTROLS);
+    }
+
+    results.add(new ObjectPair<>(change.getRequest().getOperationType(),
+         result));
+    return result;
+  }
+
+
+
+  /**
+   * Sends the provided change to the server without waiting for the result.
+   *
+   * @param  connection  The connection to use to send the change.
+   * @param  change      The change to send.
+   *
+   * @return  The async request ID that may be used to retrieve the result.
+   *
+   * @throws  LDAPException  If the change can't be sent, or if it is of an
+   *                         unsupported type.
+   */
+  private static AsyncRequestID sendAsync(final LDAPConnection connection,
+                                          final LDAPRequest change)
+          throws LDAPException
+  {
+    switch (change.getOperationType())
+    {
+      case ADD:
+        return connection.asyncAdd((AddRequest) change, null);
+      case DELETE:
+        return connection.asyncDelete((DeleteRequest) change, null);
+      case MODIFY:
+        return connection.asyncModify((ModifyRequest) change, null);
+      case MODIFY_DN:
+        return connection.asyncModifyDN((ModifyDNRequest) change, null);
+      default:
+        throw new LDAPException(ResultCode.UNWILLING_TO_PERFORM,
+             "Operation type " + change.getOperationType().name() +
+                  " is not supported in a multi-update request.");
+    }
+  }
+
+
+
+  /**
+   * This class holds information about a change that has been sent to the
+   * server but whose result has not yet been retrieved.
+   */
+  private static final class OutstandingChange
+  {
+    // The async request ID for the change.
+    private final AsyncRequestID asyncRequestID;
+
+    // The DNs of the entries targeted by the change.
+    private final List<DN> targetDNs;
+
+    // The change that was sent.
+    private final LDAPRequest request;
+
+
+
+    /**
+     * Creates a new outstanding change with the provided information.
+     *
+     * @param  request         The change that was sent.
+     * @param  asyncRequestID  The async request ID for the change.
+     * @param  targetDNs       The DNs of the entries targeted by the change.
+     */
+    private OutstandingChange(final LDAPRequest request,
+                              final AsyncRequestID asyncRequestID,
+                              final List<DN> targetDNs)
+    {
+      this.request = request;
+      this.asyncRequestID = asyncRequestID;
+      this.targetDNs = targetDNs;
+    }
+
+
+
+    /**
+     * Retrieves the change that was sent.
+     *
+     * @return  The change that was sent.
+     */
+    private LDAPRequest getRequest()
+    {
+      return request;
+    }
+
+
+
+    /**
+     * Retrieves the async request ID for the change.
+     *
+     * @return  The async request ID for the change.
+     */
+    private AsyncRequestID getAsyncRequestID()
+    {
+      return asyncRequestID;
+    }
+
+
+
+    /**
+     * Retrieves the DNs of the entries targeted by the change.
+     *
+     * @return  The DNs of the entries targeted by the change.
+     */
+    private List<DN> getTargetDNs()
+    {
+      return targetDNs;
+    }
+  }
+}
@@ -37,17 +37,31 @@ package com.dirmgr.example.multiupdate;
 
 
 
+import java.io.File;
+import java.io.IOException;
 import java.io.OutputStream;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.Future;
 
 import com.unboundid.ldap.sdk.AddRequest;
+import com.unboundid.ldap.sdk.DN;
 import com.unboundid.ldap.sdk.DeleteRequest;
+import com.unboundid.ldap.sdk.ExtendedRequest;
 import com.unboundid.ldap.sdk.ExtendedResult;
-import com.unboundid.ldap.sdk.LDAPConnection;
+import com.unboundid.ldap.sdk.LDAPConnectionPool;
 import com.unboundid.ldap.sdk.LDAPException;
 import com.unboundid.ldap.sdk.LDAPRequest;
 import com.unboundid.ldap.sdk.LDAPResult;
@@ -55,21 +69,24 @@ import com.unboundid.ldap.sdk.ModifyDNRequest;
 import com.unboundid.ldap.sdk.ModifyRequest;
 import com.unboundid.ldap.sdk.OperationType;
 import com.unboundid.ldap.sdk.ResultCode;
+import com.unboundid.ldap.sdk.RootDSE;
+import com.unboundid.ldap.sdk.controls.PreReadRequestControl;
+import com.unboundid.ldap.sdk.extensions.StartTransactionExtendedRequest;
+import com.unboundid.ldap.sdk.schema.Schema;
+import com.unboundid.ldap.sdk.unboundidds.extensions.MultiUpdateChangesApplied;
 import com.unboundid.ldap.sdk.unboundidds.extensions.MultiUpdateErrorBehavior;
 import com.unboundid.ldap.sdk.unboundidds.extensions.MultiUpdateExtendedRequest;
 import com.unboundid.ldap.sdk.unboundidds.extensions.MultiUpdateExtendedResult;
-import com.unboundid.ldif.LDIFAddChangeRecord;
-import com.unboundid.ldif.LDIFChangeRecord;
-import com.unboundid.ldif.LDIFDeleteChangeRecord;
-import com.unboundid.ldif.LDIFModifyChangeRecord;
-import com.unboundid.ldif.LDIFModifyDNChangeRecord;
-import com.unboundid.ldif.LDIFReader;
+import com.unboundid.util.Debug;
 import com.unboundid.util.LDAPCommandLineTool;
 import com.unboundid.util.ObjectPair;
 import com.unboundid.util.StaticUtils;
 import com.unboundid.util.args.ArgumentException;
 import com.unboundid.util.args.ArgumentParser;
+import com.unboundid.util.args.BooleanArgument;
+import com.unboundid.util.args.DNArgument;
 import com.unboundid.util.args.FileArgument;
+import com.unboundid.util.args.IntegerArgument;
 import com.unboundid.util.args.StringArgument;
 
 
@@ -80,6 +97,70 @@ import com.unboundid.util.args.StringArgument;
  * the UnboundID LDAP SDK for Java.  It provides a simplified version of the
  * ldapmodify tool that only reads the changes to apply from an LDIF file and
  * sends them all to the server in a single multi-update operation.
+ * <BR><BR>
+ * For LDIF files that are too large to send in a single request, the tool can
+ * also operate in a chunked mode in which it reads the LDIF file lazily and
+ * sends a separate multi-update request for each batch of changes, where a
+ * batch is limited by the number of changes that it contains and/or by its
+ * encoded size.  In that case, the selected error behavior applies within each
+ * batch, and with the atomic and abort-on-error behaviors, no further batches
+ * will be sent after one that was not completely successful.
+ * <BR><BR>
+ * The LDIF content may be read from a file or from standard input, and it may
+ * be gzip-compressed.  It is read and parsed on background threads and handed
+ * to the thread that sends the requests through a bounded queue, so that
+ * parsing overlaps with network I/O without reading arbitrarily far ahead.
+ * Each batch is then encoded on another background thread while earlier
+ * batches are still being processed by the server.
+ * <BR><BR>
+ * If a checkpoint file is specified, then after each batch, the tool will
+ * record the position in the LDIF file of the last change that the server has
+ * acknowledged.  If the tool is interrupted, it can be run again with the
+ * resume argument to seek directly to that position and continue with the
+ * next change.
+ * <BR><BR>
+ * The tool can also coalesce the changes in each batch before sending them,
+ * merging consecutive modifications of the same entry, folding modifications
+ * into a preceding add, and dropping an add that is immediately followed by a
+ * delete of the same entry, so that fewer operations need to be processed.
+ * <BR><BR>
+ * If a target response time is specified, then the number of changes in each
+ * batch will be adjusted as the changes are processed, growing while the
+ * server keeps up and shrinking when it does not, without ever exceeding the
+ * maximum encoded size for a batch.
+ * <BR><BR>
+ * If the server does not advertise support for the multi-update extended
+ * operation, then the tool will fall back to sending the changes as individual
+ * operations, using an LDAP transaction for the atomic behavior, and it will
+ * report their results in the same way.
+ * <BR><BR>
+ * Before anything is sent, the tool can also check every add and modify in
+ * the LDIF file against the server schema, which is retrieved once, and report
+ * all of the violations that it finds without applying any of the changes.
+ * <BR><BR>
+ * In sync mode, the LDIF file holds the complete desired state of a subtree
+ * rather than a set of changes.  The entries in the file and in the server
+ * are sorted by DN without holding all of them in memory, and a merge of the
+ * two sorted lists generates only the adds, modifies, and deletes needed to
+ * make the server match the file.
+ * <BR><BR>
+ * The tool can also write an undo log, which is an LDIF file with a record
+ * that reverts each change that was applied.  It is built from pre-read
+ * response controls that the server returns with the results, and it can be
+ * applied in reverse order with the rollback argument.
+ * <BR><BR>
+ * With the continue-on-error behavior, changes that fail with a result code
+ * that indicates a transient problem in the server can be retried in later
+ * batches, with an exponentially increasing delay between attempts, and the
+ * changes that were eventually applied are reported separately from those
+ * that could not be applied.
+ * <BR><BR>
+ * In watch mode, the tool keeps running and applies the changes in LDIF files
+ * as they are dropped into a spool directory, one batch at a time and in the
+ * order of the file names.  Each file is moved to an archive directory once
+ * all of its changes have been acknowledged, so a file that is still in the
+ * spool directory when the tool stops will be processed again, and every
+ * change will be applied at least once.
  */
 public final class MultiUpdateLDAPModify
        extends LDAPCommandLineTool
@@ -109,14 +190,150 @@ public final class MultiUpdateLDAPModify
 
 
 
+  /**
+   * The maximum number of changes to include in the first batch when the
+   * batch size is adjusted based on response time, if no other value is
+   * specified.
+   */
+  private static final int DEFAULT_ADAPTIVE_INITIAL_BATCH_SIZE = 100;
+
+
+
+  /**
+   * The maximum encoded size in bytes for each batch when the batch size is
+   * adjusted based on response time, if no other value is specified.
+   */
+  private static final long DEFAULT_ADAPTIVE_MAX_REQUEST_SIZE_BYTES =
+       4L * 1024L * 1024L;
+
+
+
+  /**
+   * The number of changes that will be checked against the schema in each
+   * task submitted to the fork/join pool.
+   */
+  private static final int SCHEMA_VALIDATION_CHUNK_SIZE = 1000;
+
+
+
+  /**
+   * The maximum number of entries that each sorter may hold in memory in sync
+   * mode, if no other value is specified.
+   */
+  private static final int DEFAULT_MAX_SORT_ENTRIES_IN_MEMORY = 100_000;
+
+
+
+  /**
+   * The delay in milliseconds before the first retry of a change that failed
+   * with a transient result code.
+   */
+  private static final long INITIAL_RETRY_DELAY_MILLIS = 250L;
+
+
+
+  /**
+   * The maximum delay in milliseconds before any retry of a change that failed
+   * with a transient result code.
+   */
+  private static final long MAX_RETRY_DELAY_MILLIS = 30_000L;
+
+
+
   // The argument used to specify the path to the LDIF file containing the
-  // changes to process.
+  // changes to process.  If it is absent, then the changes will be read from
+  // standard input.
   private FileArgument ldifFileArgument;
 
   // The argument that specifies the behavior to exhibit if an error occurs
   // during processing.
   private StringArgument errorBehaviorArgument;
 
+  // The argument used to specify the number of threads to use to parse the
+  // change records.
+  private IntegerArgument numParseThreadsArgument;
+
+  // The argument used to specify the maximum number of changes to include in
+  // each multi-update request.
+  private IntegerArgument maxChangesPerRequestArgument;
+
+  // The argument used to specify the maximum encoded size in bytes for the
+  // changes included in each multi-update request.
+  private IntegerArgument maxRequestSizeBytesArgument;
+
+  // The argument used to specify the target response time for each
+  // multi-update request, which causes the number of changes in each batch to
+  // be adjusted as the changes are processed.
+  private IntegerArgument targetResponseTimeMillisArgument;
+
+  // The argument used to specify the maximum number of multi-update requests
+  // that may be outstanding at any time.
+  private IntegerArgument maxOutstandingRequestsArgument;
+
+  // The argument used to specify the maximum number of individual operations
+  // that may be outstanding on a connection if the server does not support
+  // the multi-update extended operation.
+  private IntegerArgument maxOutstandingOperationsArgument;
+
+  // The argument used to indicate that the batches of changes do not depend on
+  // each other, so that they may be processed concurrently even with the
+  // atomic or abort-on-error behaviors.
+  private BooleanArgument batchesAreIndependentArgument;
+
+  // The argument used to indicate that the dependencies between the changes in
+  // each batch should be analyzed so that independent changes may be sent
+  // concurrently.
+  private BooleanArgument analyzeDependenciesArgument;
+
+  // The argument used to specify the maximum number of times that a change
+  // that failed with a transient result code should be retried.
+  private IntegerArgument maxRetryAttemptsArgument;
+
+  // The argument used to indicate that processing should resume from the
+  // position recorded in the checkpoint file.
+  private BooleanArgument resumeArgument;
+
+  // The argument used to indicate that the changes in each batch should be
+  // coalesced to reduce the number of operations sent to the server.
+  private BooleanArgument coalesceChangesArgument;
+
+  // The argument used to indicate that all of the changes should be checked
+  // against the server schema before any of them are sent.
+  private BooleanArgument validateSchemaArgument;
+
+  // The argument used to specify the base DN of the entries to synchronize
+  // with the LDIF file, which indicates that the LDIF file holds entries
+  // rather than changes.
+  private DNArgument syncBaseDNArgument;
+
+  // The argument used to specify the maximum number of entries that may be
+  // held in memory while sorting them in sync mode.
+  private IntegerArgument maxSortEntriesInMemoryArgument;
+
+  // The argument used to specify the path to a file to which the changes
+  // needed to undo the successfully applied changes should be written.
+  private FileArgument undoLogFileArgument;
+
+  // The argument used to indicate that the LDIF file is an undo log whose
+  // changes should be applied in reverse order.
+  private BooleanArgument rollbackArgument;
+
+  // The argument used to specify the path to a file in which to record the
+  // position of the last change that the server has acknowledged.
+  private FileArgument checkpointFileArgument;
+
+  // The argument used to specify the directory to which LDIF files should be
+  // moved once all of their changes have been acknowledged.
+  private FileArgument archiveDirectoryArgument;
+
+  // The argument used to specify a spool directory that should be watched for
+  // LDIF files containing changes to apply.
+  private FileArgument watchDirectoryArgument;
+
+  // The argument used to specify the length of time in seconds to wait for a
+  // new file to arrive in the spool directory before exiting.
+  private IntegerArgument watchIdleTimeoutSecondsArgument;
+
 
 
   /**
@@ -306,10 +523,12 @@ public final class MultiUpdateLDAPModify
   {
     ldifFileArgument = new FileArgument('f', // Short identifier
          "ldifFile", // Long identifier
-         true, // Is required
+         false, // Not required
          1, // Only one occurrence
          "{path}", // Value placeholder
-         "The path to the LDIF file containing the changes to process.",
+         "The path to the LDIF file containing the changes to process.  " +
+              "The file may optionally be gzip-compressed.  If this is not " +
+              "provided, then the changes will be read from standard input.",
          true, // File must exist
          true, // Parent must exist
          true, // Must be file
@@ -333,6 +552,437 @@ public final class MultiUpdateLDAPModify
          errorBehaviorAllowedValues);
     errorBehaviorArgument.addLongIdentifier("error-behavior", true);
     parser.addArgument(errorBehaviorArgument);
+
+    numParseThreadsArgument = new IntegerArgument(
+         null, // No short identifier
+         "numParseThreads", // Long identifier
+         false, // Not required
+         1, // Only one occurrence
+         "{count}", // Value placeholder
+         "The number of threads to use to parse the change records.  The " +
+              "LDIF content is always read on a separate thread so that " +
+              "reading overlaps with sending changes to the server, and " +
+              "with a value of zero, the records will also be parsed on " +
+              "that thread.",
+         0, // Lower bound
+         Integer.MAX_VALUE, // Upper bound
+         0); // Default value
+    numParseThreadsArgument.addLongIdentifier("num-parse-threads", true);
+    parser.addArgument(numParseThreadsArgument);
+
+    maxChangesPerRequestArgument = new IntegerArgument(
+         null, // No short identifier
+         "maxChangesPerRequest", // Long identifier
+         false, // Not required
+         1, // Only one occurrence
+         "{count}", // Value placeholder
+         "The maximum number of changes to include in each multi-update " +
+              "request.  If this is provided, then the LDIF file will be " +
+              "read lazily and the changes will be sent in a separate " +
+              "request for each batch.",
+         1, // Lower bound
+         Integer.MAX_VALUE); // Upper bound
+    maxChangesPerRequestArgument.addLongIdentifier("max-changes-per-request",
+         true);
+    parser.addArgument(maxChangesPerRequestArgument);
+
+    maxRequestSizeBytesArgument = new IntegerArgument(
+         null, // No short identifier
+         "maxRequestSizeBytes", // Long identifier
+         false, // Not required
+         1, // Only one occurrence
+         "{bytes}", // Value placeholder
+         "The maximum encoded size in bytes for the changes included in " +
+              "each multi-update request.  If this is provided, then the " +
+              "LDIF file will be read lazily and the changes will be sent " +
+              "in a separate request for each batch.  A single change that " +
+              "is larger than this will be sent in a request by itself.",
+         1, // Lower bound
+         Integer.MAX_VALUE); // Upper bound
+    maxRequestSizeBytesArgument.addLongIdentifier("max-request-size-bytes",
+         true);
+    parser.addArgument(maxRequestSizeBytesArgument);
+
+    targetResponseTimeMillisArgument = new IntegerArgument(
+         null, // No short identifier
+         "targetResponseTimeMillis", // Long identifier
+         false, // Not required
+         1, // Only one occurrence
+         "{millis}", // Value placeholder
+         "The target length of time in milliseconds for the server to " +
+              "process each multi-update request.  If this is provided, " +
+              "then the LDIF file will be read lazily, and the number of " +
+              "changes in each batch will be increased a step at a time " +
+              "while requests complete within the target and cut in half " +
+              "when one does not.  The maxChangesPerRequest argument, if " +
+              "provided, sets the size of the first batch and of each " +
+              "step, and the maxRequestSizeBytes argument, if provided, " +
+              "sets a limit on the encoded size of each batch that will " +
+              "never be exceeded.  If those arguments are not provided, " +
+              "then the first batch will have up to " +
+              DEFAULT_ADAPTIVE_INITIAL_BATCH_SIZE + " changes, and each " +
+              "batch will be limited to " +
+              DEFAULT_ADAPTIVE_MAX_REQUEST_SIZE_BYTES + " bytes.",
+         1, // Lower bound
+         Integer.MAX_VALUE); // Upper bound
+    targetResponseTimeMillisArgument.addLongIdentifier(
+         "target-response-time-millis", true);
+    parser.addArgument(targetResponseTimeMillisArgument);
+
+    maxOutstandingRequestsArgument = new IntegerArgument(
+         null, // No short identifier
+         "maxOutstandingRequests", // Long identifier
+         false, // Not required
+         1, // Only one occurrence
+         "{count}", // Value placeholder
+         "The maximum number of multi-update requests that may be in " +
+              "progress at the same time, each on its own connection.  The " +
+              "results will still be reported in the order that the " +
+              "changes were read.  A value greater than one may only be " +
+              "used with the continue-on-error behavior, or if the " +
+              "batchesAreIndependent argument is also provided.",
+         1, // Lower bound
+         Integer.MAX_VALUE, // Upper bound
+         1); // Default value
+    maxOutstandingRequestsArgument.addLongIdentifier(
+         "max-outstanding-requests", true);
+    parser.addArgument(maxOutstandingRequestsArgument);
+
+    maxOutstandingOperationsArgument = new IntegerArgument(
+         null, // No short identifier
+         "maxOutstandingOperations", // Long identifier
+         false, // Not required
+         1, // Only one occurrence
+         "{count}", // Value placeholder
+         "The maximum number of individual operations that may be in " +
+              "progress at the same time on each connection if the server " +
+              "does not support the multi-update extended operation and " +
+              "the changes must be sent as individual operations instead.  " +
+              "This is ignored with the abort-on-error behavior, for which " +
+              "the changes will be sent one at a time.",
+         1, // Lower bound
+         Integer.MAX_VALUE, // Upper bound
+         100); // Default value
+    maxOutstandingOperationsArgument.addLongIdentifier(
+         "max-outstanding-operations", true);
+    parser.addArgument(maxOutstandingOperationsArgument);
+
+    batchesAreIndependentArgument = new BooleanArgument(
+         null, // No short identifier
+         "batchesAreIndependent", // Long identifier
+         1, // Only one occurrence
+         "Indicates that none of the changes in a batch depend on changes " +
+              "in another batch, so that multiple batches may be processed " +
+              "at the same time even with the atomic or abort-on-error " +
+              "behaviors.");
+    batchesAreIndependentArgument.addLongIdentifier(
+         "batches-are-independent", true);
+    parser.addArgument(batchesAreIndependentArgument);
+
+    analyzeDependenciesArgument = new BooleanArgument(
+         null, // No short identifier
+         "analyzeDependencies", // Long identifier
+         1, // Only one occurrence
+         "Indicates that the dependencies between the changes in each batch " +
+              "should be analyzed and reported.  If the " +
+              "maxOutstandingRequests argument has a value greater than " +
+              "one, then each batch will be split into up to that many " +
+              "requests, each containing changes that do not depend on the " +
+              "changes in any of the others, and those requests will be " +
+              "sent at the same time.  Only one batch will be in progress " +
+              "at a time.");
+    analyzeDependenciesArgument.addLongIdentifier("analyze-dependencies",
+         true);
+    parser.addArgument(analyzeDependenciesArgument);
+
+    maxRetryAttemptsArgument = new IntegerArgument(
+         null, // No short identifier
+         "maxRetryAttempts", // Long identifier
+         false, // Not required
+         1, // Only one occurrence
+         "{count}", // Value placeholder
+         "The maximum number of times to retry a change that failed with a " +
+              "busy, unavailable, or time limit exceeded result code.  The " +
+              "changes from each batch that should be retried will be sent " +
+              "again in a later batch after an exponentially increasing " +
+              "delay with random jitter, and a summary at the end will list " +
+              "the changes that were applied after being retried separately " +
+              "from those that could not be applied.  This may only be used " +
+              "with the " + ERROR_BEHAVIOR_CONTINUE_ON_ERROR + " behavior.  " +
+              "A value of zero indicates that changes should not be retried.",
+         0, // Lower bound
+         Integer.MAX_VALUE, // Upper bound
+         0); // Default value
+    maxRetryAttemptsArgument.addLongIdentifier("max-retry-attempts", true);
+    parser.addArgument(maxRetryAttemptsArgument);
+
+    coalesceChangesArgument = new BooleanArgument(
+         null, // No short identifier
+         "coalesceChanges", // Long identifier
+         1, // Only one occurrence
+         "Indicates that the changes in each batch should be coalesced " +
+              "before they are sent, so that consecutive modifications of " +
+              "the same entry are merged, modifications that follow an add " +
+              "are folded into it, and an add that is followed by a delete " +
+              "of the same entry is dropped along with the delete.  This " +
+              "does not alter the final state if all of the changes would " +
+              "have succeeded, but it should not be used if any of them " +
+              "are expected to fail.");
+    coalesceChangesArgument.addLongIdentifier("coalesce-changes", true);
+    parser.addArgument(coalesceChangesArgument);
+
+    validateSchemaArgument = new BooleanArgument(
+         null, // No short identifier
+         "validateSchema", // Long identifier
+         1, // Only one occurrence
+         "Indicates that every add and modify in the LDIF file should be " +
+              "checked against the server schema before any changes are " +
+              "sent, so that all schema violations can be reported without " +
+              "applying any of the changes.  The server schema will be " +
+              "retrieved once, and the changes will be checked on multiple " +
+              "threads.  This requires reading the LDIF file twice.");
+    validateSchemaArgument.addLongIdentifier("validate-schema", true);
+    parser.addArgument(validateSchemaArgument);
+
+    syncBaseDNArgument = new DNArgument(
+         null, // No short identifier
+         "syncBaseDN", // Long identifier
+         false, // Not required
+         1, // Only one occurrence
+         "{dn}", // Value placeholder
+         "The base DN of a subtree to synchronize with the LDIF file.  If " +
+              "this is provided, then the LDIF file must contain the " +
+              "complete desired state of the entries at and below this DN " +
+              "rather than a set of changes.  The entries in the LDIF file " +
+              "will be compared with the entries in the server, and only " +
+              "the adds, modifies, and deletes needed to make the server " +
+              "match the LDIF file will be sent.");
+    syncBaseDNArgument.addLongIdentifier("sync-base-dn", true);
+    parser.addArgument(syncBaseDNArgument);
+
+    maxSortEntriesInMemoryArgument = new IntegerArgument(
+         null, // No short identifier
+         "maxSortEntriesInMemory", // Long identifier
+         false, // Not required
+         1, // Only one occurrence
+         "{count}", // Value placeholder
+         "The maximum number of entries from the LDIF file, and from the " +
+              "server, that may be held in memory while sorting them in " +
+              "sync mode.  Additional entries will be sorted in temporary " +
+              "files.",
+         1, // Lower bound
+         Integer.MAX_VALUE, // Upper bound
+         DEFAULT_MAX_SORT_ENTRIES_IN_MEMORY); // Default value
+    maxSortEntriesInMemoryArgument.addLongIdentifier(
+         "max-sort-entries-in-memory", true);
+    parser.addArgument(maxSortEntriesInMemoryArgument);
+
+    undoLogFileArgument = new FileArgument(null, // No short identifier
+         "undoLogFile", // Long identifier
+         false, // Not required
+         1, // Only one occurrence
+         "{path}", // Value placeholder
+         "The path to an LDIF file to which the changes needed to undo each " +
+              "successfully applied change should be written.  A pre-read " +
+              "request control will be attached to each modify, delete, " +
+              "and modify DN request so that the server returns the " +
+              "original state of the entry.  If the file already exists, " +
+              "then the new records will be appended to it.  The file can " +
+              "later be provided with the rollback argument to revert the " +
+              "changes.",
+         false, // File must exist
+         true, // Parent must exist
+         true, // Must be file
+         false); // Must be directory
+    undoLogFileArgument.addLongIdentifier("undo-log-file", true);
+    parser.addArgument(undoLogFileArgument);
+
+    rollbackArgument = new BooleanArgument(
+         null, // No short identifier
+         "rollback", // Long identifier
+         1, // Only one occurrence
+         "Indicates that the LDIF file is an undo log that was written " +
+              "with the undoLogFile argument, and that its changes should " +
+              "be applied in the reverse of the order in which they appear " +
+              "in order to revert the original changes.");
+    parser.addArgument(rollbackArgument);
+
+    checkpointFileArgument = new FileArgument(null, // No short identifier
+         "checkpointFile", // Long identifier
+         false, // Not required
+         1, // Only one occurrence
+         "{path}", // Value placeholder
+         "The path to a file in which to record the position in the LDIF " +
+              "file of the last change that the server has acknowledged.  " +
+              "It will be updated after each batch, and it may be used with " +
+              "the resume argument to continue processing from that point " +
+              "if the tool is interrupted.",
+         false, // File must exist
+         true, // Parent must exist
+         true, // Must be file
+         false); // Must be directory
+    checkpointFileArgument.addLongIdentifier("checkpoint-file", true);
+    parser.addArgument(checkpointFileArgument);
+
+    resumeArgument = new BooleanArgument(
+         null, // No short identifier
+         "resume", // Long identifier
+         1, // Only one occurrence
+         "Indicates that processing should resume immediately after the last " +
+              "change recorded in the checkpoint file, without reading or " +
+              "parsing any of the changes before it.  If the checkpoint " +
+              "file does not exist, then processing will start at the " +
+              "beginning of the LDIF file.");
+    parser.addArgument(resumeArgument);
+
+    watchDirectoryArgument = new FileArgument(null, // No short identifier
+         "watchDirectory", // Long identifier
+         false, // Not required
+         1, // Only one occurrence
+         "{path}", // Value placeholder
+         "The path to a spool directory that should be watched for LDIF " +
+              "files containing changes to apply.  Files whose names end " +
+              "with .ldif or .ldif.gz will be processed in order of their " +
+              "names as they arrive, and each file will be moved to the " +
+              "archive directory once all of its changes have been " +
+              "acknowledged.  A file should be written under another name " +
+              "and then renamed once it is complete.  The tool will keep " +
+              "running until it is stopped or the idle timeout expires.",
+         true, // File must exist
+         true, // Parent must exist
+         false, // Must be file
+         true); // Must be directory
+    watchDirectoryArgument.addLongIdentifier("watch-directory", true);
+    parser.addArgument(watchDirectoryArgument);
+
+    archiveDirectoryArgument = new FileArgument(null, // No short identifier
+         "archiveDirectory", // Long identifier
+         false, // Not required
+         1, // Only one occurrence
+         "{path}", // Value placeholder
+         "The path to the directory to which files from the watch " +
+              "directory should be moved once all of their changes have " +
+              "been acknowledged.",
+         true, // File must exist
+         true, // Parent must exist
+         false, // Must be file
+         true); // Must be directory
+    archiveDirectoryArgument.addLongIdentifier("archive-directory", true);
+    parser.addArgument(archiveDirectoryArgument);
+
+    watchIdleTimeoutSecondsArgument = new IntegerArgument(
+         null, // No short identifier
+         "watchIdleTimeoutSeconds", // Long identifier
+         false, // Not required
+         1, // Only one occurrence
+         "{seconds}", // Value placeholder
+         "The length of time in seconds to wait for a new file to arrive " +
+              "in the watch directory, once all of the earlier files have " +
+              "been processed, before exiting.  If this is not provided, " +
+              "then the tool will wait indefinitely.",
+         1, // Lower bound
+         Integer.MAX_VALUE); // Upper bound
+    watchIdleTimeoutSecondsArgument.addLongIdentifier(
+         "watch-idle-timeout-seconds", true);
+    parser.addArgument(watchIdleTimeoutSecondsArgument);
+
+    // A checkpoint is only useful if the changes can be read again, so it
+    // can't be used with changes read from standard input.
+    parser.addDependentArgumentSet(checkpointFileArgument, ldifFileArgument);
+    parser.addDependentArgumentSet(validateSchemaArgument, ldifFileArgument);
+    parser.addDependentArgumentSet(resumeArgument, checkpointFileArgument);
+
+    // In sync mode, the changes are generated rather than read from the LDIF
+    // file, so they can't be checkpointed or validated in advance.
+    parser.addDependentArgumentSet(maxSortEntriesInMemoryArgument,
+         syncBaseDNArgument);
+    parser.addExclusiveArgumentSet(syncBaseDNArgument, checkpointFileArgument);
+    parser.addExclusiveArgumentSet(syncBaseDNArgument, validateSchemaArgument);
+
+    // An undo log can only be read in reverse if it is in a file, and its
+    // records don't correspond to checkpoint positions.
+    parser.addDependentArgumentSet(rollbackArgument, ldifFileArgument);
+    parser.addExclusiveArgumentSet(rollbackArgument, syncBaseDNArgument);
+    parser.addExclusiveArgumentSet(rollbackArgument, checkpointFileArgument);
+
+    // In watch mode, the changes come from the files in the spool directory,
+    // and the position in each file is tracked by leaving it in place until
+    // all of its changes have been acknowledged.
+    parser.addDependentArgumentSet(watchDirectoryArgument,
+         archiveDirectoryArgument);
+    parser.addDependentArgumentSet(archiveDirectoryArgument,
+         watchDirectoryArgument);
+    parser.addDependentArgumentSet(watchIdleTimeoutSecondsArgument,
+         watchDirectoryArgument);
+    parser.addExclusiveArgumentSet(watchDirectoryArgument, ldifFileArgument);
+    parser.addExclusiveArgumentSet(watchDirectoryArgument, syncBaseDNArgument);
+  }
+
+
+
+  /**
+   * Performs any necessary processing that should be done to ensure that the
+   * provided set of command-line arguments were valid.  This method will be
+   * called after the basic argument parsing has been performed and after all
+   * LDAP-specific argument validation has been processed.
+   *
+   * @throws  ArgumentException  If there was a problem with the command-line
+   *                             arguments provided to this program.
+   */
+  @Override()
+  public void doExtendedNonLDAPArgumentValidation()
+         throws ArgumentException
+  {
+    // Multiple batches may only be processed concurrently if a failure in one
+    // batch can't affect whether the changes in a later batch should be sent.
+    // If a batch is to be split into independent requests, then it can't be
+    // processed atomically or stop at the first error.
+    final boolean continueOnError = ERROR_BEHAVIOR_CONTINUE_ON_ERROR.
+         equalsIgnoreCase(errorBehaviorArgument.getValue());
+    if ((maxOutstandingRequestsArgument.getValue() > 1) &&
+         analyzeDependenciesArgument.isPresent() && (! continueOnError))
+    {
+      throw new ArgumentException("The " +
+           analyzeDependenciesArgument.getIdentifierString() +
+           " argument may only be used with a " +
+           maxOutstandingRequestsArgument.getIdentifierString() +
+           " value greater than one if the error behavior is " +
+           ERROR_BEHAVIOR_CONTINUE_ON_ERROR + ".");
+    }
+
+    // A change can only be retried later if the changes after it were still
+    // attempted when it failed.
+    if ((maxRetryAttemptsArgument.getValue() > 0) && (! continueOnError))
+    {
+      throw new ArgumentException("The " +
+           maxRetryAttemptsArgument.getIdentifierString() +
+           " argument may only have a value greater than zero if the error " +
+           "behavior is " + ERROR_BEHAVIOR_CONTINUE_ON_ERROR + ".");
+    }
+
+    // A file that is moved into the spool directory to be archived would be
+    // picked up again as a new file.
+    if (watchDirectoryArgument.isPresent() &&
+         watchDirectoryArgument.getValue().getAbsoluteFile().equals(
+              archiveDirectoryArgument.getValue().getAbsoluteFile()))
+    {
+      throw new ArgumentException("The " +
+           watchDirectoryArgument.getIdentifierString() + " and " +
+           archiveDirectoryArgument.getIdentifierString() +
+           " arguments must refer to different directories.");
+    }
+
+    if ((maxOutstandingRequestsArgument.getValue() > 1) &&
+         (! batchesAreIndependentArgument.isPresent()) && (! continueOnError))
+    {
+      throw new ArgumentException("The " +
+           maxOutstandingRequestsArgument.getIdentifierString() +
+           " argument may only have a value greater than one if the " +
+           "error behavior is " + ERROR_BEHAVIOR_CONTINUE_ON_ERROR +
+           " or if the " +
+           batchesAreIndependentArgument.getIdentifierString() +
+           " argument is provided.");
+    }
   }
 
 
@@ -380,246 +1030,2161 @@ public final class MultiUpdateLDAPModify
   public ResultCode doToolProcessing()
   {
     // Select the appropriate error behavior.
-    final MultiUpdateErrorBehavior errorBehavior;
-    final String errorBehaviorValue =
-         StaticUtils.toLowerCase(errorBehaviorArgument.getValue());
-    switch (errorBehaviorValue)
+    final MultiUpdateErrorBehavior errorBehavior = getErrorBehavior();
+    if (errorBehavior == null)
     {
-      case ERROR_BEHAVIOR_ATOMIC:
-        errorBehavior = MultiUpdateErrorBehavior.ATOMIC;
-        break;
-      case ERROR_BEHAVIOR_ABORT_ON_ERROR:
-        errorBehavior = MultiUpdateErrorBehavior.ABORT_ON_ERROR;
-        break;
-      case ERROR_BEHAVIOR_CONTINUE_ON_ERROR:
-        errorBehavior = MultiUpdateErrorBehavior.CONTINUE_ON_ERROR;
-        break;
-      default:
-        err("Invalid error behavior value '", errorBehaviorValue,
-             "'.  It must be one of ", ERROR_BEHAVIOR_ATOMIC, ", ",
-             ERROR_BEHAVIOR_ABORT_ON_ERROR, ", or ",
-             ERROR_BEHAVIOR_CONTINUE_ON_ERROR, ".");
-        return ResultCode.PARAM_ERROR;
+      return ResultCode.PARAM_ERROR;
     }
 
 
-    // Open the LDIF file and read all of the changes that it contains.
-    final List<LDAPRequest> updateRequests = new ArrayList<>(10);
-    try (LDIFReader ldifReader = new LDIFReader(ldifFileArgument.getValue()))
+    // Determine whether the changes should be split into multiple batches.  If
+    // not, then all of the changes will be read into memory and sent in a
+    // single multi-update request.  If a target response time was given, then
+    // the number of changes in each batch will be adjusted as the batches are
+    // processed, but the batches must always have a size limit.  In watch
+    // mode, each batch holds the changes that have arrived since the last one
+    // was read, up to any size limit.
+    final boolean adaptive = targetResponseTimeMillisArgument.isPresent();
+    final boolean watching = watchDirectoryArgument.isPresent();
+    final boolean chunked = (maxChangesPerRequestArgument.isPresent() ||
+         maxRequestSizeBytesArgument.isPresent() || adaptive || watching);
+    final int maxChangesPerRequest = getMaxChangesPerRequest(adaptive);
+    final long maxRequestSizeBytes = getMaxRequestSizeBytes(adaptive);
+    final AdaptiveBatchSizer batchSizer;
+    if (adaptive)
     {
-      while (true)
-      {
-        final LDIFChangeRecord changeRecord = ldifReader.readChangeRecord(true);
-        if (changeRecord == null)
-        {
-          break;
-        }
-
-        switch (changeRecord.getChangeType())
-        {
-          case ADD:
-            updateRequests.add(
-                 ((LDIFAddChangeRecord) changeRecord).toAddRequest());
-            break;
-          case DELETE:
-            updateRequests.add(
-                 ((LDIFDeleteChangeRecord) changeRecord).toDeleteRequest());
-            break;
-          case MODIFY:
-            updateRequests.add(
-                 ((LDIFModifyChangeRecord) changeRecord).toModifyRequest());
-            break;
-          case MODIFY_DN:
-            updateRequests.add(
-                 ((LDIFModifyDNChangeRecord) changeRecord).toModifyDNRequest());
-            break;
-          default:
-            // This should never happen.
-            err("Unsupported change record found in LDIF file '",
-                 ldifFileArgument.getValue().getAbsolutePath(), ":");
-            err(changeRecord.toLDIFString());
-            return ResultCode.PARAM_ERROR;
-        }
-      }
+      batchSizer = new AdaptiveBatchSizer(maxChangesPerRequest,
+           targetResponseTimeMillisArgument.getValue());
     }
-    catch (final Exception e)
+    else
     {
-      err("An error occurred while trying to read from LDIF file '",
-           ldifFileArgument.getValue().getAbsolutePath(), "':  ",
-           StaticUtils.getExceptionMessage(e));
-      return ResultCode.LOCAL_ERROR;
+      batchSizer = null;
     }
 
 
-    // Get a connection to the directory server.
-    MultiUpdateExtendedResult multiUpdateResult;
-    try (LDAPConnection connection = getConnection())
+    // Create the handlers for the modes that are in use.  If changes that
+    // fail with a transient result code should be retried, then they will be
+    // scheduled to be sent again.  If there is a checkpoint file, then
+    // processing may resume from the checkpoint in it, and the checkpoint
+    // will be advanced past the changes that the server acknowledges.  In
+    // sync mode, the entries in the LDIF file are compared with those in the
+    // server to generate the changes, and in watch mode, the changes are read
+    // from the files dropped into a spool directory.
+    final RetryModeHandler retryHandler = createRetryModeHandler();
+    final ResumeModeHandler resumeHandler;
+    final SyncModeHandler syncHandler;
+    try
+    {
+      resumeHandler = openResumeModeHandler();
+      syncHandler = createSyncModeHandler();
+    }
+    catch (final LDAPException e)
     {
-      // Construct-the multi-update extended request.
-      final MultiUpdateExtendedRequest multiUpdateRequest =
-           new MultiUpdateExtendedRequest(errorBehavior, updateRequests);
+      err(e.getMessage());
+      return e.getResultCode();
+    }
 
-      // Send th request and read the response.
-      try
+
+    // Open the source of the changes.  The changes that it contains will be
+    // read and parsed in the background and consumed one batch at a time.
+    final WatchModeHandler watchHandler;
+    final MultiUpdateBatchReader batchReader;
+    try
+    {
+      final ChangeSource changeReader;
+      watchHandler = openWatchModeHandler();
+      if (watchHandler != null)
       {
-        multiUpdateResult = (MultiUpdateExtendedResult)
-             connection.processExtendedOperation(multiUpdateRequest);
+        changeReader = watchHandler.getChangeSource();
       }
-      catch (final LDAPException e)
+      else
       {
-        try
-        {
-          final ExtendedResult genericExtendedResult =
-               new ExtendedResult(e.toLDAPResult());
-          multiUpdateResult =
-               new MultiUpdateExtendedResult(genericExtendedResult);
-        }
-        catch (final LDAPException e2)
-        {
-          err("An error occurred while trying to process the multi-update ",
-               "extended request, and that error result could not be ",
-               "interpreted as a multi-update extended result.  The error was:",
-               StaticUtils.getExceptionMessage(e));
-          return e.getResultCode();
-        }
+        changeReader = openLDIFChangeSource(syncHandler, resumeHandler);
       }
+
+      batchReader = new MultiUpdateBatchReader(changeReader,
+           maxChangesPerRequest, maxRequestSizeBytes,
+           undoLogFileArgument.isPresent());
     }
-    catch (final LDAPException e)
+    catch (final Exception e)
     {
-      err("Unable to connect to the directory server:  ",
-           StaticUtils.getExceptionMessage(e));
-      return e.getResultCode();
+      err("An error occurred while trying to open ", getLDIFSourceName(),
+           ":  ", StaticUtils.getExceptionMessage(e));
+      return ResultCode.LOCAL_ERROR;
     }
 
+    return processBatches(batchReader, errorBehavior, chunked, batchSizer,
+         retryHandler, resumeHandler, syncHandler, watchHandler);
+  }
+
 
-    // Write a summary of the processing that was performed.
-    out("Multi-Update Result Code: ",
-         String.valueOf(multiUpdateResult.getResultCode()));
 
-    if (multiUpdateResult.getDiagnosticMessage() != null)
+  /**
+   * Uses a pool of connections to the directory server to send the batches
+   * of changes read by the provided reader, and reports the results.
+   *
+   * @param  batchReader    The reader to use to read the batches.  It will be
+   *                        closed before this method returns.
+   * @param  errorBehavior  The error behavior to use for the requests.
+   * @param  chunked        Indicates whether the changes are split into
+   *                        multiple batches.
+   * @param  batchSizer     The controller that adjusts the batch size as the
+   *                        batches are processed, or {@code null} if the
+   *                        batch size is fixed.
+   * @param  retryHandler   The handler used to retry changes, or
+   *                        {@code null} if changes are not retried.
+   * @param  resumeHandler  The handler for the checkpoint file, or
+   *                        {@code null} if there is none.
+   * @param  syncHandler    The handler that generates the changes in sync
+   *                        mode, or {@code null} if not in sync mode.
+   * @param  watchHandler   The handler for the spool directory in watch mode,
+   *                        or {@code null} if not in watch mode.
+   *
+   * @return  A result code that indicates whether the processing completed
+   *          successfully.
+   */
+  private ResultCode processBatches(final MultiUpdateBatchReader batchReader,
+                          final MultiUpdateErrorBehavior errorBehavior,
+                          final boolean chunked,
+                          final AdaptiveBatchSizer batchSizer,
+                          final RetryModeHandler retryHandler,
+                          final ResumeModeHandler resumeHandler,
+                          final SyncModeHandler syncHandler,
+                          final WatchModeHandler watchHandler)
+  {
+    final ChangeRetryScheduler retryScheduler;
+    if (retryHandler == null)
     {
-      out("Multi-Update Diagnostic Message: ",
-           multiUpdateResult.getResultCode());
+      retryScheduler = null;
     }
-
-    switch (multiUpdateResult.getChangesApplied())
+    else
     {
-      case ALL:
-        out("All changes were successfully applied.");
-        break;
-      case PARTIAL:
-        out("Only some of the changes were successfully applied.");
-        break;
-      case NONE:
-        out("None of the changes were successfully applied.");
-        break;
-      default:
-        err("Unexpected changesApplied value: ",
-             multiUpdateResult.getChangesApplied().name());
-        break;
+      retryScheduler = retryHandler.getRetryScheduler();
     }
 
-    out();
-
 
-    // Iterate through the requests and results and display information about
-    // each.
-    final Iterator<LDAPRequest> requestIterator = updateRequests.iterator();
-    final Iterator<ObjectPair<OperationType,LDAPResult>> resultIterator =
-         multiUpdateResult.getResults().iterator();
-    while (resultIterator.hasNext())
+    // Get a pool of connections to the directory server and use it to process
+    // the batches of changes.  Up to the configured number of batches may be
+    // in progress at any time, and the next batch will be read and encoded
+    // while earlier ones are being processed, but the results will always be
+    // reported in the order that the batches were read.  The encoding is done
+    // on a separate thread, so that it doesn't delay reading the batch after
+    // that.  If the dependencies between changes are to be analyzed, or if
+    // the changes are read from a spool directory and must be committed in
+    // order, then only one batch will be in progress at a time, but its
+    // independent changes may be split across up to the configured number of
+    // requests.
+    final int maxOutstandingRequests =
+         maxOutstandingRequestsArgument.getValue();
+    final boolean analyzeDependencies =
+         analyzeDependenciesArgument.isPresent();
+    final int maxOutstandingBatches;
+    if (analyzeDependencies || (watchHandler != null))
     {
-      final LDAPRequest request = requestIterator.next();
-      final LDAPResult result = resultIterator.next().getSecond();
+      maxOutstandingBatches = 1;
+    }
+    else
+    {
+      maxOutstandingBatches = maxOutstandingRequests;
+    }
 
-      if (result.getResultCode() == ResultCode.SUCCESS)
+    final ExecutorService executor = Executors.newFixedThreadPool(
+         maxOutstandingRequests,
+         (final Runnable r) ->
+         {
+           final Thread t = new Thread(r, "Multi-Update Request Thread");
+           t.setDaemon(true);
+           return t;
+         });
+    final ArrayDeque<OutstandingBatch> outstandingBatches =
+         new ArrayDeque<>(maxOutstandingBatches);
+
+    final BatchStatistics statistics = new BatchStatistics();
+    MultiUpdateRequestEncoder encoder = null;
+    UndoLogWriter undoLog = null;
+    ResultCode resultCode = ResultCode.SUCCESS;
+    try (MultiUpdateBatchReader reader = batchReader;
+         LDAPConnectionPool pool =
+              getConnectionPool(maxOutstandingRequests,
+                   maxOutstandingRequests))
+    {
+      // See whether the server supports the multi-update extended operation.
+      // If not, then the changes will be sent as individual operations, in a
+      // transaction if they need to be processed atomically.
+      final MultiUpdateFallbackProcessor fallbackProcessor;
+      try
       {
-        switch (request.getOperationType())
-        {
-          case ADD:
-            out("Successfully added ", ((AddRequest) request).getDN());
-            break;
-          case DELETE:
-            out("Successfully deleted ", ((DeleteRequest) request).getDN());
-            break;
-          case MODIFY:
-            out("Successfully modified ", ((ModifyRequest) request).getDN());
-            break;
-          case MODIFY_DN:
-            out("Successfully renamed ", ((ModifyDNRequest) request).getDN());
-            break;
-        }
+        fallbackProcessor = getFallbackProcessor(pool, errorBehavior);
       }
-      else
+      catch (final LDAPException e)
       {
-        switch (request.getOperationType())
-        {
-          case ADD:
-            out("Failed to add ", ((AddRequest) request).getDN());
-            break;
-          case DELETE:
-            out("Failed to delete ", ((DeleteRequest) request).getDN());
-            break;
-          case MODIFY:
-            out("Failed to modify ", ((ModifyRequest) request).getDN());
-            break;
-          case MODIFY_DN:
-            out("Failed to rename ", ((ModifyDNRequest) request).getDN());
-            break;
-        }
+        err(e.getMessage());
+        return e.getResultCode();
+      }
 
-        out("Result Code: ", String.valueOf(result.getResultCode()));
+      if (fallbackProcessor == null)
+      {
+        encoder = new MultiUpdateRequestEncoder();
       }
 
-      if (result.getDiagnosticMessage() != null)
+      if (watchHandler != null)
       {
-        out("Diagnostic Message: ", result.getDiagnosticMessage());
+        watchHandler.prepareConnectionPool(pool);
       }
 
-      if (result.getMatchedDN() != null)
+      if (validateSchemaArgument.isPresent())
       {
-        out("Matched DN: ", result.getMatchedDN());
+        final ResultCode validationResultCode;
+        if (resumeHandler == null)
+        {
+          validationResultCode = validateSchema(pool, 0L, 1L);
+        }
+        else
+        {
+          validationResultCode = validateSchema(pool,
+               resumeHandler.getStartOffset(),
+               resumeHandler.getStartRecordNumber());
+        }
+
+        if (validationResultCode != ResultCode.SUCCESS)
+        {
+          return validationResultCode;
+        }
       }
 
-      if (result.getReferralURLs() != null)
+      if (undoLogFileArgument.isPresent())
       {
-        for (final String url : result.getReferralURLs())
+        try
         {
-          out("Referral URL: ", url);
+          undoLog = openUndoLog(pool);
+        }
+        catch (final LDAPException e)
+        {
+          err(e.getMessage());
+          return e.getResultCode();
         }
       }
 
-      out();
+      OutstandingBatch nextBatch = null;
+      boolean moreToRead = true;
+      ResultCode readResultCode = null;
+      while (true)
+      {
+        // Changes that are due to be retried take precedence over changes
+        // that haven't been read yet.
+        if ((nextBatch == null) && (retryScheduler != null))
+        {
+          final ChangeRetryScheduler.RetryBatch retryBatch =
+               retryScheduler.nextRetryBatch();
+          if (retryBatch != null)
+          {
+            nextBatch = createRetryBatch(retryBatch, encoder, errorBehavior);
+          }
+        }
+
+        // In watch mode, the changes are committed in order, so no more
+        // changes will be read while earlier ones are waiting to be retried.
+        // Running out of changes only means that no more files have arrived
+        // yet.
+        if (moreToRead && (nextBatch == null) &&
+             ((watchHandler == null) || (retryScheduler == null) ||
+                  (! retryScheduler.hasUnresolvedRetries())))
+        {
+          try
+          {
+            nextBatch = readBatch(reader, encoder, errorBehavior,
+                 coalesceChangesArgument.isPresent(), (undoLog != null),
+                 analyzeDependencies, maxOutstandingRequests);
+            if (nextBatch != null)
+            {
+              nextBatch.setBatchSizeLimit(reader.getMaxChangesPerBatch());
+            }
+          }
+          catch (final LDAPException e)
+          {
+            err(e.getMessage());
+            readResultCode = e.getResultCode();
+          }
+
+          moreToRead = ((nextBatch != null) ||
+               ((watchHandler != null) && (readResultCode == null)));
+        }
+
+
+        // If there is room in the window, then send the next batch.  The
+        // batch after it will be read on the next pass through the loop while
+        // the server is working on this one.
+        if ((nextBatch != null) &&
+             (outstandingBatches.size() < maxOutstandingBatches))
+        {
+          if (retryScheduler != null)
+          {
+            retryScheduler.recordSentBatch(nextBatch.getBatch());
+          }
+
+          nextBatch.setResult(submitBatch(executor, pool,
+               fallbackProcessor, errorBehavior, nextBatch));
+          outstandingBatches.addLast(nextBatch);
+          nextBatch = null;
+          continue;
+        }
+
+        if (outstandingBatches.isEmpty())
+        {
+          // If there are changes waiting to be retried, then wait until the
+          // next of them is due.
+          if ((retryScheduler != null) && retryScheduler.hasPendingRetries())
+          {
+            // In watch mode, the changes that won't be retried would be
+            // committed out of order, so stop reading.
+            if ((! retryHandler.awaitNextRetry()) && (watchHandler != null))
+            {
+              watchHandler.stopArchiving();
+              moreToRead = false;
+            }
+
+            continue;
+          }
+
+          // In watch mode, wait for more files to arrive in the spool
+          // directory.
+          if (moreToRead && (watchHandler != null))
+          {
+            try
+            {
+              if (watchHandler.awaitFiles())
+              {
+                continue;
+              }
+            }
+            catch (final LDAPException e)
+            {
+              err(e.getMessage());
+              readResultCode = e.getResultCode();
+            }
+          }
+
+          break;
+        }
+
+
+        // Wait for the oldest outstanding batch to complete and report its
+        // result.
+        final OutstandingBatch completedBatch =
+             outstandingBatches.removeFirst();
+        final MultiUpdateExtendedResult multiUpdateResult;
+        try
+        {
+          multiUpdateResult = awaitBatchResult(completedBatch);
+        }
+        catch (final LDAPException e)
+        {
+          err(e.getMessage());
+          return e.getResultCode();
+        }
+
+        final MultiUpdateBatch batch = completedBatch.getBatch();
+        reportCompletedBatch(completedBatch, multiUpdateResult, chunked,
+             retryScheduler, statistics);
+        if (! batch.getRequests().isEmpty())
+        {
+          if (retryHandler != null)
+          {
+            retryHandler.scheduleRetries(batch, multiUpdateResult);
+          }
+
+          // Retry batches aren't limited by the batch size, so they aren't
+          // used to adjust it.
+          if ((batchSizer != null) && (completedBatch.getRetryAttempt() == 0))
+          {
+            adjustBatchSize(batchSizer, reader, completedBatch);
+          }
+        }
+
+        // A transient failure of the request as a whole doesn't count if its
+        // changes will be retried.
+        if ((resultCode == ResultCode.SUCCESS) &&
+             (multiUpdateResult.getResultCode() != ResultCode.SUCCESS) &&
+             ((retryScheduler == null) || (! ChangeRetryScheduler.isRetryable(
+                  multiUpdateResult.getResultCode()))))
+        {
+          resultCode = multiUpdateResult.getResultCode();
+        }
+
+
+        // Record what became of the changes in this batch.  If that fails,
+        // then don't send any more changes.
+        final ResultCode stopResultCode = recordCompletedBatch(completedBatch,
+             multiUpdateResult, errorBehavior, undoLog, resumeHandler,
+             watchHandler, retryScheduler);
+        if (stopResultCode != null)
+        {
+          if (resultCode == ResultCode.SUCCESS)
+          {
+            resultCode = stopResultCode;
+          }
+
+          nextBatch = null;
+          moreToRead = false;
+          if (watchHandler != null)
+          {
+            watchHandler.stopArchiving();
+          }
+
+          if (retryScheduler != null)
+          {
+            retryScheduler.stopRetrying();
+          }
+        }
+
+
+        // With the atomic and abort-on-error behaviors, don't send any more
+        // batches if any of the changes in this one weren't applied.  Batches
+        // that are already outstanding will still be reported.
+        if ((errorBehavior != MultiUpdateErrorBehavior.CONTINUE_ON_ERROR) &&
+             (multiUpdateResult.getChangesApplied() !=
+                  MultiUpdateChangesApplied.ALL) &&
+             (nextBatch != null))
+        {
+          out("Not all of the changes in batch ", batch.getBatchNumber(),
+               " were applied, so no further batches will be sent.  The ",
+               "first change that will not be sent is change ",
+               nextBatch.getBatch().getFirstChangeNumber(), ".");
+          out();
+          nextBatch = null;
+          moreToRead = false;
+        }
+      }
+
+      reportSummaries(reader, (readResultCode == null), syncHandler,
+           watchHandler, statistics);
+      if (retryHandler != null)
+      {
+        final ResultCode retryResultCode = retryHandler.reportSummary();
+        if ((resultCode == ResultCode.SUCCESS) && (retryResultCode != null))
+        {
+          resultCode = retryResultCode;
+        }
+      }
+
+      if (undoLog != null)
+      {
+        out("Wrote ", undoLog.getRecordCount(), " records to undo log file '",
+             undoLogFileArgument.getValue().getAbsolutePath(), "'.  To ",
+             "revert the changes, provide that file as the LDIF file along ",
+             "with the ", rollbackArgument.getIdentifierString(),
+             " argument.");
+      }
+
+      if (readResultCode != null)
+      {
+        return readResultCode;
+      }
+    }
+    catch (final LDAPException e)
+    {
+      err("Unable to connect to the directory server:  ",
+           StaticUtils.getExceptionMessage(e));
+      return e.getResultCode();
+    }
+    catch (final IOException e)
+    {
+      err("An error occurred while trying to close ", getLDIFSourceName(),
+           ":  ", StaticUtils.getExceptionMessage(e));
+    }
+    finally
+    {
+      executor.shutdownNow();
+
+      if (encoder != null)
+      {
+        encoder.close();
+      }
+
+      if (undoLog != null)
+      {
+        try
+        {
+          undoLog.close();
+        }
+        catch (final IOException e)
+        {
+          Debug.debugException(e);
+          err("An error occurred while trying to close undo log file '",
+               undoLogFileArgument.getValue().getAbsolutePath(), "':  ",
+               StaticUtils.getExceptionMessage(e));
+          if (resultCode == ResultCode.SUCCESS)
+          {
+            resultCode = ResultCode.LOCAL_ERROR;
+          }
+        }
+      }
+    }
+
+    return resultCode;
+  }
+
+
+
+  /**
+   * Retrieves the error behavior selected with the error behavior argument.
+   *
+   * @return  The selected error behavior, or {@code null} if the argument has
+   *          an invalid value.
+   */
+  private MultiUpdateErrorBehavior getErrorBehavior()
+  {
+    final String errorBehaviorValue =
+         StaticUtils.toLowerCase(errorBehaviorArgument.getValue());
+    switch (errorBehaviorValue)
+    {
+      case ERROR_BEHAVIOR_ATOMIC:
+        return MultiUpdateErrorBehavior.ATOMIC;
+      case ERROR_BEHAVIOR_ABORT_ON_ERROR:
+        return MultiUpdateErrorBehavior.ABORT_ON_ERROR;
+      case ERROR_BEHAVIOR_CONTINUE_ON_ERROR:
+        return MultiUpdateErrorBehavior.CONTINUE_ON_ERROR;
+      default:
+        err("Invalid error behavior value '", errorBehaviorValue,
+             "'.  It must be one of ", ERROR_BEHAVIOR_ATOMIC, ", ",
+             ERROR_BEHAVIOR_ABORT_ON_ERROR, ", or ",
+             ERROR_BEHAVIOR_CONTINUE_ON_ERROR, ".");
+        return null;
+    }
+  }
+
+
+
+  /**
+   * Retrieves the maximum number of changes to include in each batch, or in
+   * the first batch if the batch size is adjusted as the batches are
+   * processed.
+   *
+   * @param  adaptive  Indicates whether the batch size is adjusted as the
+   *                   batches are processed.
+   *
+   * @return  The maximum number of changes to include in each batch, or zero
+   *          if there is no limit.
+   */
+  private int getMaxChangesPerRequest(final boolean adaptive)
+  {
+    if (maxChangesPerRequestArgument.isPresent())
+    {
+      return maxChangesPerRequestArgument.getValue();
+    }
+    else if (adaptive)
+    {
+      return DEFAULT_ADAPTIVE_INITIAL_BATCH_SIZE;
+    }
+    else
+    {
+      return 0;
+    }
+  }
+
+
+
+  /**
+   * Retrieves the maximum encoded size of each batch.
+   *
+   * @param  adaptive  Indicates whether the batch size is adjusted as the
+   *                   batches are processed.
+   *
+   * @return  The maximum encoded size in bytes of each batch, or zero if there
+   *          is no limit.
+   */
+  private long getMaxRequestSizeBytes(final boolean adaptive)
+  {
+    if (maxRequestSizeBytesArgument.isPresent())
+    {
+      return maxRequestSizeBytesArgument.getValue();
+    }
+    else if (adaptive)
+    {
+      return DEFAULT_ADAPTIVE_MAX_REQUEST_SIZE_BYTES;
+    }
+    else
+    {
+      return 0L;
+    }
+  }
+
+
+
+  /**
+   * Creates the handler used to retry changes that fail with a transient
+   * result code, if they should be retried.
+   *
+   * @return  The handler used to retry changes, or {@code null} if changes
+   *          should not be retried.
+   */
+  private RetryModeHandler createRetryModeHandler()
+  {
+    if (maxRetryAttemptsArgument.getValue() == 0)
+    {
+      return null;
+    }
+
+    return new RetryModeHandler(this, maxRetryAttemptsArgument.getValue(),
+         INITIAL_RETRY_DELAY_MILLIS, MAX_RETRY_DELAY_MILLIS);
+  }
+
+
+
+  /**
+   * Creates the handler for the checkpoint file, if one was provided, and
+   * reads the checkpoint from which processing should resume.
+   *
+   * @return  The handler for the checkpoint file, or {@code null} if no
+   *          checkpoint file was provided.
+   *
+   * @throws  LDAPException  If the checkpoint file can't be read, or if it was
+   *                         created for a different LDIF file.
+   */
+  private ResumeModeHandler openResumeModeHandler()
+          throws LDAPException
+  {
+    if (! checkpointFileArgument.isPresent())
+    {
+      return null;
+    }
+
+    return ResumeModeHandler.open(this, checkpointFileArgument.getValue(),
+         ldifFileArgument.getValue(), resumeArgument.isPresent());
+  }
+
+
+
+  /**
+   * Creates the handler that generates the changes in sync mode, if the tool
+   * is in sync mode.  The entries from the LDIF file and the server are read
+   * and sorted before this method returns.
+   *
+   * @return  The handler that generates the changes in sync mode, or
+   *          {@code null} if the tool is not in sync mode.
+   *
+   * @throws  LDAPException  If a problem occurs while reading the entries from
+   *                         the LDIF file or the server.
+   */
+  private SyncModeHandler createSyncModeHandler()
+          throws LDAPException
+  {
+    if (! syncBaseDNArgument.isPresent())
+    {
+      return null;
+    }
+
+    return SyncModeHandler.create(this, ldifFileArgument.getValue(),
+         getLDIFSourceName(), syncBaseDNArgument.getValue(),
+         maxSortEntriesInMemoryArgument.getValue());
+  }
+
+
+
+  /**
+   * Creates the handler for the spool directory and opens it, if the tool is
+   * in watch mode.
+   *
+   * @return  The handler for the spool directory, or {@code null} if the tool
+   *          is not in watch mode.
+   *
+   * @throws  IOException  If a problem occurs while opening the spool
+   *                       directory.
+   */
+  private WatchModeHandler openWatchModeHandler()
+          throws IOException
+  {
+    if (! watchDirectoryArgument.isPresent())
+    {
+      return null;
+    }
+
+    final int idleTimeoutSeconds;
+    if (watchIdleTimeoutSecondsArgument.isPresent())
+    {
+      idleTimeoutSeconds = watchIdleTimeoutSecondsArgument.getValue();
+    }
+    else
+    {
+      idleTimeoutSeconds = 0;
+    }
+
+    return new WatchModeHandler(this, watchDirectoryArgument.getValue(),
+         archiveDirectoryArgument.getValue(),
+         numParseThreadsArgument.getValue(), idleTimeoutSeconds);
+  }
+
+
+
+  /**
+   * Opens the source of the changes when they aren't read from a spool
+   * directory.
+   *
+   * @param  syncHandler    The handler that generates the changes in sync
+   *                        mode, or {@code null} if not in sync mode.
+   * @param  resumeHandler  The handler for the checkpoint file, or
+   *                        {@code null} if there is none.
+   *
+   * @return  The source of the changes.
+   *
+   * @throws  IOException  If a problem occurs while opening the LDIF file.
+   */
+  private ChangeSource openLDIFChangeSource(
+                            final SyncModeHandler syncHandler,
+                            final ResumeModeHandler resumeHandler)
+          throws IOException
+  {
+    if (syncHandler != null)
+    {
+      return syncHandler.getChangeSource();
+    }
+    else if (rollbackArgument.isPresent())
+    {
+      return ReverseLDIFChangeReader.open(ldifFileArgument.getValue());
+    }
+    else if ((resumeHandler != null) && (resumeHandler.getStartOffset() > 0L))
+    {
+      return ParallelLDIFChangeReader.open(ldifFileArgument.getValue(),
+           numParseThreadsArgument.getValue(), resumeHandler.getStartOffset(),
+           resumeHandler.getStartRecordNumber());
+    }
+    else
+    {
+      return ParallelLDIFChangeReader.open(ldifFileArgument.getValue(),
+           numParseThreadsArgument.getValue());
+    }
+  }
+
+
+
+  /**
+   * Waits for the server to finish processing the provided batch.
+   *
+   * @param  outstandingBatch  The batch for which to wait.
+   *
+   * @return  The multi-update extended result for the batch.
+   *
+   * @throws  LDAPException  If an error occurred while processing the batch
+   *                         and its result could not be interpreted as a
+   *                         multi-update extended result.
+   */
+  private static MultiUpdateExtendedResult awaitBatchResult(
+                      final OutstandingBatch outstandingBatch)
+          throws LDAPException
+  {
+    try
+    {
+      return outstandingBatch.getResult().get();
+    }
+    catch (final Exception e)
+    {
+      final Throwable cause;
+      if (e instanceof ExecutionException)
+      {
+        cause = e.getCause();
+      }
+      else
+      {
+        cause = e;
+      }
+
+      final ResultCode resultCode;
+      if (cause instanceof LDAPException)
+      {
+        resultCode = ((LDAPException) cause).getResultCode();
+      }
+      else
+      {
+        resultCode = ResultCode.LOCAL_ERROR;
+      }
+
+      throw new LDAPException(resultCode,
+           "An error occurred while trying to process the multi-update " +
+                "extended request, and that error result could not be " +
+                "interpreted as a multi-update extended result.  The error " +
+                "was:" + StaticUtils.getExceptionMessage(cause),
+           cause);
+    }
+  }
+
+
+
+  /**
+   * Reports the result of a batch whose processing has completed, along with
+   * what dependency analysis and change coalescing did to it, and adds them to
+   * the provided statistics.
+   *
+   * @param  completedBatch     The batch whose processing has completed.
+   * @param  multiUpdateResult  The multi-update extended result for the batch.
+   * @param  chunked            Indicates whether the changes were split into
+   *                            multiple batches.
+   * @param  retryScheduler     The scheduler used to retry changes, or
+   *                            {@code null} if changes are not retried.
+   * @param  statistics         The statistics to update for the batch.
+   */
+  private void reportCompletedBatch(final OutstandingBatch completedBatch,
+                    final MultiUpdateExtendedResult multiUpdateResult,
+                    final boolean chunked,
+                    final ChangeRetryScheduler retryScheduler,
+                    final BatchStatistics statistics)
+  {
+    final MultiUpdateBatch batch = completedBatch.getBatch();
+    final ChangeDependencyAnalyzer analyzer =
+         completedBatch.getDependencyAnalyzer();
+    if (analyzer != null)
+    {
+      out("Batch ", batch.getBatchNumber(), " has ",
+           analyzer.getChangeCount(), " changes in ",
+           analyzer.getComponentCount(),
+           " independent components (the largest has ",
+           analyzer.getLargestComponentSize(), " changes) with ",
+           analyzer.getDependencyCount(),
+           " dependencies.  The critical path length is ",
+           analyzer.getCriticalPathLength(), ".  The changes were sent ",
+           "in ", completedBatch.getRequestChanges().size(),
+           " concurrent requests.");
+      statistics.recordDependencyAnalysis(analyzer);
+    }
+
+    final ChangeCoalescer coalescer = completedBatch.getCoalescer();
+    if (coalescer != null)
+    {
+      if (coalescer.getRemovedChangeCount() > 0)
+      {
+        out("Coalescing reduced the ", coalescer.getOriginalChangeCount(),
+             " changes in batch ", batch.getBatchNumber(), " to ",
+             batch.getRequests().size(), " operations.  ",
+             coalescer.getMergedModifyCount(), " modifies were merged ",
+             "into earlier modifies, ", coalescer.getFoldedModifyCount(),
+             " modifies were folded into adds, and ",
+             coalescer.getCancelledChangeCount(), " changes were ",
+             "removed as part of add and delete sequences.");
+      }
+
+      statistics.recordCoalescing(coalescer);
+    }
+
+    if (batch.getRequests().isEmpty())
+    {
+      out("All of the changes in batch ", batch.getBatchNumber(),
+           " cancelled each other out, so nothing was sent to the ",
+           "server.");
+      out();
+    }
+    else if (completedBatch.getRetryAttempt() > 0)
+    {
+      out("Retrying ", batch.getRequests().size(), " changes from batch ",
+           batch.getBatchNumber(), " (attempt ",
+           completedBatch.getRetryAttempt(), " of ",
+           (retryScheduler.getMaxRetryAttempts() + 1), ")");
+      reportBatchResult(batch, multiUpdateResult, false);
+    }
+    else
+    {
+      reportBatchResult(batch, multiUpdateResult, chunked);
+    }
+  }
+
+
+
+  /**
+   * Uses the time that the server took to process the provided batch to
+   * choose the maximum number of changes in the batches that haven't been
+   * read yet, and reports the choice.
+   *
+   * @param  batchSizer      The controller that chooses the batch size.
+   * @param  reader          The reader whose batch size should be updated.
+   * @param  completedBatch  The batch whose processing has completed.  It must
+   *                         have been read from the LDIF file rather than
+   *                         created to retry earlier changes.
+   */
+  private void adjustBatchSize(final AdaptiveBatchSizer batchSizer,
+                               final MultiUpdateBatchReader reader,
+                               final OutstandingBatch completedBatch)
+  {
+    final MultiUpdateBatch batch = completedBatch.getBatch();
+    final int previousBatchSize = batchSizer.getBatchSize();
+    final long responseTimeNanos = completedBatch.getResponseTimeNanos();
+    final int nextBatchSize = batchSizer.update(
+         completedBatch.getBatchSizeLimit(), batch.getChangeCount(),
+         responseTimeNanos);
+    reader.setMaxChangesPerBatch(nextBatchSize);
+
+    final String sizeChange;
+    if (nextBatchSize == previousBatchSize)
+    {
+      sizeChange = "remains " + nextBatchSize;
+    }
+    else
+    {
+      sizeChange = "was changed from " + previousBatchSize + " to " +
+           nextBatchSize;
+    }
+
+    out("Batch ", batch.getBatchNumber(), " had ", batch.getChangeCount(),
+         " changes encoded in approximately ", batch.getEncodedSize(),
+         " bytes and took ", (responseTimeNanos / 1_000_000L), " ms.  The ",
+         "maximum number of changes per batch ", sizeChange, ".");
+    out();
+  }
+
+
+
+  /**
+   * Records what became of the changes in a batch whose processing has
+   * completed.  The changes that were applied are written to the undo log,
+   * the checkpoint is advanced past the changes that were acknowledged, and
+   * the files whose changes have all been applied are archived.
+   *
+   * @param  completedBatch     The batch whose processing has completed.
+   * @param  multiUpdateResult  The multi-update extended result for the batch.
+   * @param  errorBehavior      The error behavior used for the batch.
+   * @param  undoLog            The undo log to which records should be
+   *                            written, or {@code null} if there is none.
+   * @param  resumeHandler      The handler for the checkpoint file, or
+   *                            {@code null} if there is none.
+   * @param  watchHandler       The handler for the spool directory in watch
+   *                            mode, or {@code null} if not in watch mode.
+   * @param  retryScheduler     The scheduler used to retry changes, or
+   *                            {@code null} if changes are not retried.  The
+   *                            results of the batch must already have been
+   *                            passed to it.
+   *
+   * @return  {@code null} if processing may continue, or a result code that
+   *          indicates why no further batches should be sent if not.
+   */
+  private ResultCode recordCompletedBatch(
+                          final OutstandingBatch completedBatch,
+                          final MultiUpdateExtendedResult multiUpdateResult,
+                          final MultiUpdateErrorBehavior errorBehavior,
+                          final UndoLogWriter undoLog,
+                          final ResumeModeHandler resumeHandler,
+                          final WatchModeHandler watchHandler,
+                          final ChangeRetryScheduler retryScheduler)
+  {
+    final MultiUpdateBatch batch = completedBatch.getBatch();
+    final int acknowledgedRequests = getAcknowledgedRequestCount(batch,
+         multiUpdateResult, errorBehavior, retryScheduler);
+    ResultCode stopResultCode = null;
+    if (undoLog != null)
+    {
+      stopResultCode = writeUndoRecords(undoLog, batch, multiUpdateResult);
+    }
+
+    if (resumeHandler != null)
+    {
+      final ResultCode checkpointResultCode = resumeHandler.batchCompleted(
+           batch, acknowledgedRequests, retryScheduler);
+      if (stopResultCode == null)
+      {
+        stopResultCode = checkpointResultCode;
+      }
+    }
+
+    if ((watchHandler != null) && (stopResultCode == null))
+    {
+      stopResultCode = watchHandler.batchCompleted(batch,
+           (completedBatch.getRetryAttempt() > 0), multiUpdateResult,
+           acknowledgedRequests, retryScheduler);
+    }
+
+    return stopResultCode;
+  }
+
+
+
+  /**
+   * Writes records to the undo log for the changes in the provided batch that
+   * were applied.
+   *
+   * @param  undoLog            The undo log to which the records should be
+   *                            written.
+   * @param  batch              The batch whose results were received.
+   * @param  multiUpdateResult  The multi-update extended result for the batch.
+   *
+   * @return  {@code null} if the records were written, or a result code that
+   *          indicates why no further batches should be sent if not.
+   */
+  private ResultCode writeUndoRecords(final UndoLogWriter undoLog,
+                          final MultiUpdateBatch batch,
+                          final MultiUpdateExtendedResult multiUpdateResult)
+  {
+    try
+    {
+      undoLog.writeUndoRecords(batch, multiUpdateResult);
+      return null;
+    }
+    catch (final Exception e)
+    {
+      Debug.debugException(e);
+      err("An error occurred while trying to write to undo log file '",
+           undoLogFileArgument.getValue().getAbsolutePath(), "':  ",
+           StaticUtils.getExceptionMessage(e),
+           ".  No further batches will be sent.");
+      return ResultCode.LOCAL_ERROR;
+    }
+  }
+
+
+
+  /**
+   * Writes the summaries of where the changes came from and what was done to
+   * them before they were sent.
+   *
+   * @param  reader         The reader used to read the batches.
+   * @param  readSucceeded  Indicates whether the changes were read without any
+   *                        errors.
+   * @param  syncHandler    The handler that generated the changes in sync
+   *                        mode, or {@code null} if not in sync mode.
+   * @param  watchHandler   The handler that read the changes from the spool
+   *                        directory in watch mode, or {@code null} if not in
+   *                        watch mode.
+   * @param  statistics     The statistics for the batches that were
+   *                        processed.
+   */
+  private void reportSummaries(final MultiUpdateBatchReader reader,
+                    final boolean readSucceeded,
+                    final SyncModeHandler syncHandler,
+                    final WatchModeHandler watchHandler,
+                    final BatchStatistics statistics)
+  {
+    if (syncHandler != null)
+    {
+      syncHandler.reportSummary();
+    }
+    else if (watchHandler != null)
+    {
+      watchHandler.reportSummary();
+    }
+    else if ((reader.getChangesRead() == 0L) && readSucceeded)
+    {
+      out("There were no changes to process in ", getLDIFSourceName(), ".");
+    }
+
+    if (statistics.removedChangeCount > 0L)
+    {
+      out("Change coalescing summary:  ", statistics.removedChangeCount,
+           " of ", statistics.originalChangeCount, " operations were ",
+           "removed.  ", statistics.mergedModifyCount, " modifies were ",
+           "merged into earlier modifies, ", statistics.foldedModifyCount,
+           " modifies were folded into adds, and ",
+           statistics.cancelledChangeCount, " changes were removed as part ",
+           "of add and delete sequences.");
+    }
+
+    if (statistics.analyzedBatches > 0)
+    {
+      out("Dependency analysis summary:  ", statistics.analyzedBatches,
+           " batches with a total of ", statistics.analyzedComponents,
+           " independent components.  The combined critical path length ",
+           "across all batches is ", statistics.combinedCriticalPathLength,
+           ", and the longest critical path in any single batch is ",
+           statistics.longestCriticalPathLength, ".");
+    }
+  }
+
+
+
+  /**
+   * Reads the next batch of changes from the LDIF file, divides it into one or
+   * more multi-update extended requests, and starts encoding those requests.
+   *
+   * @param  reader               The reader to use to read the batch.
+   * @param  encoder              The encoder to use to encode the requests, or
+   *                              {@code null} if the changes will be sent as
+   *                              individual operations.
+   * @param  errorBehavior        The error behavior to use for the requests.
+   * @param  coalesceChanges      Indicates whether to coalesce the changes in
+   *                              the batch before sending them.
+   * @param  requestPreReads      Indicates whether to attach pre-read request
+   *                              controls to the changes so that an undo log
+   *                              can be written.
+   * @param  analyzeDependencies  Indicates whether to analyze the dependencies
+   *                              between the changes in the batch and split
+   *                              the independent changes into separate
+   *                              requests.
+   * @param  maxLanes             The maximum number of requests into which the
+   *                              batch may be split if dependencies are
+   *                              analyzed.
+   *
+   * @return  The batch that was read, along with the changes to include in
+   *          each request used to send it to the server, or {@code null} if
+   *          there are no more changes to read.
+   *
+   * @throws  LDAPException  If a problem occurs while reading the batch,
+   *                         coalescing it, or analyzing its dependencies.
+   */
+  private OutstandingBatch readBatch(
+               final MultiUpdateBatchReader reader,
+               final MultiUpdateRequestEncoder encoder,
+               final MultiUpdateErrorBehavior errorBehavior,
+               final boolean coalesceChanges,
+               final boolean requestPreReads,
+               final boolean analyzeDependencies, final int maxLanes)
+          throws LDAPException
+  {
+    final MultiUpdateBatch originalBatch;
+    try
+    {
+      originalBatch = reader.nextBatch();
+    }
+    catch (final LDAPException e)
+    {
+      throw e;
+    }
+    catch (final Exception e)
+    {
+      throw new LDAPException(ResultCode.LOCAL_ERROR,
+           "An error occurred while trying to read from " +
+                getLDIFSourceName() + ":  " +
+                StaticUtils.getExceptionMessage(e),
+           e);
+    }
+
+    if (originalBatch == null)
+    {
+      return null;
+    }
+
+    final ChangeCoalescer coalescer;
+    final MultiUpdateBatch batch;
+    if (coalesceChanges)
+    {
+      coalescer = ChangeCoalescer.coalesce(originalBatch);
+      batch = coalescer.getCoalescedBatch();
+    }
+    else
+    {
+      coalescer = null;
+      batch = originalBatch;
+    }
+
+    // The controls must be added after the changes have been coalesced, since
+    // changes with controls can't be coalesced.
+    if (requestPreReads)
+    {
+      for (final LDAPRequest request : batch.getRequests())
+      {
+        UndoLogWriter.addPreReadControl(request);
+      }
+    }
+
+    final ChangeDependencyAnalyzer analyzer;
+    final List<List<Integer>> lanes;
+    final List<List<LDAPRequest>> requestChanges;
+    if (batch.getRequests().isEmpty())
+    {
+      analyzer = null;
+      lanes = null;
+      requestChanges = Collections.emptyList();
+    }
+    else if (! analyzeDependencies)
+    {
+      analyzer = null;
+      lanes = null;
+      requestChanges = Collections.singletonList(batch.getRequests());
+    }
+    else
+    {
+      analyzer = ChangeDependencyAnalyzer.analyze(batch.getRequests());
+      final List<List<Integer>> scheduledLanes =
+           analyzer.scheduleLanes(maxLanes);
+      if (scheduledLanes.size() <= 1)
+      {
+        lanes = null;
+        requestChanges = Collections.singletonList(batch.getRequests());
+      }
+      else
+      {
+        lanes = scheduledLanes;
+        requestChanges = new ArrayList<>(lanes.size());
+        for (final List<Integer> lane : lanes)
+        {
+          final List<LDAPRequest> laneChanges = new ArrayList<>(lane.size());
+          for (final Integer changeIndex : lane)
+          {
+            laneChanges.add(batch.getRequests().get(changeIndex));
+          }
+
+          requestChanges.add(laneChanges);
+        }
+      }
+    }
+
+    // Start encoding the requests on the encoder thread right away, so that it
+    // can happen while earlier batches are still in flight.  There is no need
+    // to encode anything if the changes will be sent as individual operations.
+    final Future<List<ExtendedRequest>> encodedRequests;
+    if ((encoder == null) || requestChanges.isEmpty())
+    {
+      encodedRequests = null;
+    }
+    else
+    {
+      encodedRequests = encoder.encode(errorBehavior, requestChanges);
+    }
+
+    return new OutstandingBatch(batch, coalescer, analyzer, lanes,
+         requestChanges, encodedRequests);
+  }
+
+
+
+  /**
+   * Creates an outstanding batch for the provided retry batch and starts
+   * encoding the request used to send it.  The changes in a retry batch have
+   * already been coalesced and had any controls added, and they are always
+   * sent in a single request.
+   *
+   * @param  retryBatch     The retry batch with the changes to send.
+   * @param  encoder        The encoder to use to encode the request, or
+   *                        {@code null} if the changes will be sent as
+   *                        individual operations.
+   * @param  errorBehavior  The error behavior to use for the request.
+   *
+   * @return  The outstanding batch for the retry batch.
+   */
+  private static OutstandingBatch createRetryBatch(
+               final ChangeRetryScheduler.RetryBatch retryBatch,
+               final MultiUpdateRequestEncoder encoder,
+               final MultiUpdateErrorBehavior errorBehavior)
+  {
+    final MultiUpdateBatch batch = retryBatch.getBatch();
+    final List<List<LDAPRequest>> requestChanges =
+         Collections.singletonList(batch.getRequests());
+
+    final Future<List<ExtendedRequest>> encodedRequests;
+    if (encoder == null)
+    {
+      encodedRequests = null;
+    }
+    else
+    {
+      encodedRequests = encoder.encode(errorBehavior, requestChanges);
+    }
+
+    final OutstandingBatch outstandingBatch = new OutstandingBatch(batch,
+         null, null, null, requestChanges, encodedRequests);
+    outstandingBatch.setRetryAttempt(retryBatch.getAttempt());
+    return outstandingBatch;
+  }
+
+
+
+  /**
+   * Determines how many of the requests at the start of the provided batch the
+   * server has acknowledged, so that they will not need to be sent again if
+   * processing is resumed.  A request is acknowledged if it was successfully
+   * applied, or if it was attempted and failed with the continue-on-error
+   * behavior, since sending it again would not be expected to help, unless
+   * it failed with a transient result code and retries are enabled.  A request
+   * that is waiting to be retried also counts, since the checkpoint tracker
+   * holds the checkpoint until every retry has been resolved.
+   *
+   * @param  batch              The batch of changes that was processed.
+   * @param  multiUpdateResult  The multi-update extended result for the
+   *                            batch.
+   * @param  errorBehavior      The error behavior used for the batch.
+   * @param  retryScheduler     The scheduler used to retry changes, or
+   *                            {@code null} if changes are not retried.  The
+   *                            results of the batch must already have been
+   *                            passed to it.
+   *
+   * @return  The number of requests at the start of the provided batch that
+   *          the server has acknowledged or that are waiting to be retried.
+   */
+  private static int getAcknowledgedRequestCount(
+                      final MultiUpdateBatch batch,
+                      final MultiUpdateExtendedResult multiUpdateResult,
+                      final MultiUpdateErrorBehavior errorBehavior,
+                      final ChangeRetryScheduler retryScheduler)
+  {
+    final List<LDAPRequest> requests = batch.getRequests();
+    final MultiUpdateChangesApplied changesApplied =
+         multiUpdateResult.getChangesApplied();
+    if (changesApplied == MultiUpdateChangesApplied.ALL)
+    {
+      return requests.size();
+    }
+
+    final List<ObjectPair<OperationType,LDAPResult>> results =
+         multiUpdateResult.getResults();
+    final boolean resultsAvailable = (changesApplied != null) &&
+         (errorBehavior != MultiUpdateErrorBehavior.ATOMIC);
+    final boolean failuresAcknowledged =
+         (errorBehavior == MultiUpdateErrorBehavior.CONTINUE_ON_ERROR) &&
+         (multiUpdateResult.getResultCode() == ResultCode.SUCCESS);
+
+    int acknowledgedRequests = 0;
+    while (acknowledgedRequests < requests.size())
+    {
+      if ((retryScheduler != null) &&
+           retryScheduler.isBeingRetried(requests.get(acknowledgedRequests)))
+      {
+        acknowledgedRequests++;
+        continue;
+      }
+
+      if ((! resultsAvailable) || (acknowledgedRequests >= results.size()))
+      {
+        break;
+      }
+
+      final ResultCode resultCode =
+           results.get(acknowledgedRequests).getSecond().getResultCode();
+      if ((resultCode == ResultCode.SUCCESS) ||
+           (failuresAcknowledged && ((retryScheduler == null) ||
+                (! ChangeRetryScheduler.isRetryable(resultCode)))))
+      {
+        acknowledgedRequests++;
+      }
+      else
+      {
+        break;
+      }
+    }
+
+    return acknowledgedRequests;
+  }
+
+
+
+  /**
+   * Retrieves a name for the source from which the changes are read, for use
+   * in messages.
+   *
+   * @return  A name for the source from which the changes are read.
+   */
+  private String getLDIFSourceName()
+  {
+    if (watchDirectoryArgument.isPresent())
+    {
+      return "spool directory '" +
+           watchDirectoryArgument.getValue().getAbsolutePath() + "'";
+    }
+    else if (ldifFileArgument.isPresent())
+    {
+      return "LDIF file '" +
+           ldifFileArgument.getValue().getAbsolutePath() + "'";
+    }
+    else
+    {
+      return "standard input";
+    }
+  }
+
+
+
+  /**
+   * Opens the undo log file, after making sure that the server supports the
+   * pre-read request control needed to write it.  If the server root DSE
+   * can't be retrieved, then the server will be assumed to support it, and
+   * since the control is critical, any change that the server can't return
+   * the original entry for will be rejected rather than applied.
+   *
+   * @param  pool  The connection pool to use to retrieve the root DSE.
+   *
+   * @return  The writer for the undo log.
+   *
+   * @throws  LDAPException  If the server does not support the pre-read
+   *                         request control or the file can't be opened.
+   */
+  private UndoLogWriter openUndoLog(final LDAPConnectionPool pool)
+          throws LDAPException
+  {
+    RootDSE rootDSE = null;
+    try
+    {
+      rootDSE = pool.getRootDSE();
+    }
+    catch (final LDAPException e)
+    {
+      Debug.debugException(e);
+    }
+
+    if ((rootDSE != null) && (! rootDSE.supportsControl(
+         PreReadRequestControl.PRE_READ_REQUEST_OID)))
+    {
+      throw new LDAPException(ResultCode.UNWILLING_TO_PERFORM,
+           "The server does not support the pre-read request control, so " +
+                "an undo log can't be written.");
+    }
+
+    final File undoLogFile = undoLogFileArgument.getValue();
+    try
+    {
+      return new UndoLogWriter(undoLogFile);
+    }
+    catch (final IOException e)
+    {
+      Debug.debugException(e);
+      throw new LDAPException(ResultCode.LOCAL_ERROR,
+           "An error occurred while trying to open undo log file '" +
+                undoLogFile.getAbsolutePath() + "':  " +
+                StaticUtils.getExceptionMessage(e),
+           e);
+    }
+  }
+
+
+
+  /**
+   * Reads all of the changes from the LDIF file and checks the adds and
+   * modifies against the server schema, reporting every violation that is
+   * found.  The schema is retrieved once, and the changes are checked in
+   * chunks on a fork/join pool while the LDIF file is still being read.
+   *
+   * @param  pool               The connection pool to use to retrieve the
+   *                            schema.
+   * @param  startOffset        The byte offset in the LDIF file at which to
+   *                            start reading.
+   * @param  startRecordNumber  The record number of the first change at the
+   *                            start offset.
+   *
+   * @return  {@code ResultCode.SUCCESS} if all of the changes conform to the
+   *          schema, or a result code that indicates why they don't or why
+   *          they couldn't be checked.
+   */
+  private ResultCode validateSchema(final LDAPConnectionPool pool,
+                                    final long startOffset,
+                                    final long startRecordNumber)
+  {
+    final long startTime = System.nanoTime();
+    final Schema schema;
+    try
+    {
+      schema = pool.getSchema();
+    }
+    catch (final LDAPException e)
+    {
+      Debug.debugException(e);
+      err("An error occurred while trying to retrieve the server schema:  ",
+           StaticUtils.getExceptionMessage(e));
+      return e.getResultCode();
+    }
+
+    if (schema == null)
+    {
+      err("Unable to retrieve the server schema, so the changes can't be ",
+           "validated.");
+      return ResultCode.NO_SUCH_OBJECT;
+    }
+
+
+    // Hand the changes off to the pool in chunks, and report the problems in
+    // each chunk in order once it has been checked.  Only a limited number of
+    // chunks may be outstanding so that the reader doesn't get too far ahead.
+    final ChangeSchemaValidator validator = new ChangeSchemaValidator(schema);
+    final ForkJoinPool forkJoinPool = new ForkJoinPool();
+    final int maxOutstandingChunks = 2 * forkJoinPool.getParallelism();
+    final ArrayDeque<ForkJoinTask<List<ObjectPair<ParsedLDIFChange,
+         List<String>>>>> outstandingChunks =
+         new ArrayDeque<>(maxOutstandingChunks);
+    long changesExamined = 0L;
+    long invalidChanges = 0L;
+    try (ParallelLDIFChangeReader changeReader = ParallelLDIFChangeReader.open(
+              ldifFileArgument.getValue(), numParseThreadsArgument.getValue(),
+              startOffset, startRecordNumber))
+    {
+      List<ParsedLDIFChange> chunk =
+           new ArrayList<>(SCHEMA_VALIDATION_CHUNK_SIZE);
+      while (true)
+      {
+        final ParsedLDIFChange change = changeReader.read();
+        if (change != null)
+        {
+          chunk.add(change);
+          changesExamined++;
+        }
+
+        if ((chunk.size() >= SCHEMA_VALIDATION_CHUNK_SIZE) ||
+             ((change == null) && (! chunk.isEmpty())))
+        {
+          if (outstandingChunks.size() >= maxOutstandingChunks)
+          {
+            invalidChanges +=
+                 reportSchemaViolations(outstandingChunks.removeFirst().join());
+          }
+
+          final List<ParsedLDIFChange> changes = chunk;
+          outstandingChunks.addLast(forkJoinPool.submit(
+               () -> validateChanges(validator, changes)));
+          chunk = new ArrayList<>(SCHEMA_VALIDATION_CHUNK_SIZE);
+        }
+
+        if (change == null)
+        {
+          break;
+        }
+      }
+
+      while (! outstandingChunks.isEmpty())
+      {
+        invalidChanges +=
+             reportSchemaViolations(outstandingChunks.removeFirst().join());
+      }
+    }
+    catch (final Exception e)
+    {
+      Debug.debugException(e);
+      err("An error occurred while trying to read the changes to validate ",
+           "from ", getLDIFSourceName(), ":  ",
+           StaticUtils.getExceptionMessage(e));
+      return ResultCode.LOCAL_ERROR;
+    }
+    finally
+    {
+      forkJoinPool.shutdownNow();
+    }
+
+    final long elapsedMillis = (System.nanoTime() - startTime) / 1_000_000L;
+    if (invalidChanges > 0L)
+    {
+      err("Schema validation found problems with ", invalidChanges,
+           " of the ", changesExamined, " changes in ", elapsedMillis,
+           " ms.  None of the changes were sent to the server.");
+      return ResultCode.CONSTRAINT_VIOLATION;
+    }
+
+    out("Schema validation found no problems with the ", changesExamined,
+         " changes in ", elapsedMillis, " ms.");
+    out();
+    return ResultCode.SUCCESS;
+  }
+
+
+
+  /**
+   * Checks the provided changes against the schema.
+   *
+   * @param  validator  The validator to use to check the changes.
+   * @param  changes    The changes to check.
+   *
+   * @return  A list of the changes that violate the schema, each paired with
+   *          the reasons that it does so.
+   */
+  private static List<ObjectPair<ParsedLDIFChange,List<String>>>
+               validateChanges(final ChangeSchemaValidator validator,
+                               final List<ParsedLDIFChange> changes)
+  {
+    final List<ObjectPair<ParsedLDIFChange,List<String>>> invalidChanges =
+         new ArrayList<>(10);
+    for (final ParsedLDIFChange change : changes)
+    {
+      final List<String> problems = validator.validate(change.getRequest());
+      if (! problems.isEmpty())
+      {
+        invalidChanges.add(new ObjectPair<>(change, problems));
+      }
+    }
+
+    return invalidChanges;
+  }
+
+
+
+  /**
+   * Writes information about the provided changes that violate the schema.
+   *
+   * @param  invalidChanges  The changes that violate the schema, each paired
+   *                         with the reasons that it does so.
+   *
+   * @return  The number of changes that violate the schema.
+   */
+  private int reportSchemaViolations(
+       final List<ObjectPair<ParsedLDIFChange,List<String>>> invalidChanges)
+  {
+    for (final ObjectPair<ParsedLDIFChange,List<String>> p : invalidChanges)
+    {
+      final ParsedLDIFChange change = p.getFirst();
+      final LDAPRequest request = change.getRequest();
+      if (request.getOperationType() == OperationType.ADD)
+      {
+        err("Change ", change.getRecordNumber(), ", which adds entry ",
+             ((AddRequest) request).getDN(), ", violates the server schema:");
+      }
+      else
+      {
+        err("Change ", change.getRecordNumber(), ", which modifies entry ",
+             ((ModifyRequest) request).getDN(),
+             ", violates the server schema:");
+      }
+
+      for (final String problem : p.getSecond())
+      {
+        err("     ", problem);
+      }
+
+      err();
+    }
+
+    return invalidChanges.size();
+  }
+
+
+
+  /**
+   * Examines the server root DSE to determine whether the server supports the
+   * multi-update extended operation and, if not, how the changes should be
+   * sent instead.
+   *
+   * @param  pool           The connection pool to use to communicate with the
+   *                        server.
+   * @param  errorBehavior  The error behavior to use for the changes.
+   *
+   * @return  The fallback processor that should be used to send the changes,
+   *          or {@code null} if the server supports the multi-update extended
+   *          operation (or if its root DSE can't be retrieved, in which case
+   *          the multi-update extended operation will be attempted anyway).
+   *
+   * @throws  LDAPException  If the server does not support any means of
+   *                         processing the changes with the requested error
+   *                         behavior.
+   */
+  private MultiUpdateFallbackProcessor getFallbackProcessor(
+               final LDAPConnectionPool pool,
+               final MultiUpdateErrorBehavior errorBehavior)
+          throws LDAPException
+  {
+    final RootDSE rootDSE;
+    try
+    {
+      rootDSE = pool.getRootDSE();
+    }
+    catch (final LDAPException e)
+    {
+      Debug.debugException(e);
+      return null;
+    }
+
+    if ((rootDSE == null) || rootDSE.supportsExtendedOperation(
+         MultiUpdateExtendedRequest.MULTI_UPDATE_REQUEST_OID))
+    {
+      return null;
+    }
+
+    final boolean useTransactions = rootDSE.supportsExtendedOperation(
+         StartTransactionExtendedRequest.START_TRANSACTION_REQUEST_OID);
+    final MultiUpdateFallbackProcessor fallbackProcessor =
+         new MultiUpdateFallbackProcessor(pool, useTransactions,
+              maxOutstandingOperationsArgument.getValue());
+    switch (errorBehavior)
+    {
+      case ATOMIC:
+        if (! useTransactions)
+        {
+          throw new LDAPException(ResultCode.UNWILLING_TO_PERFORM,
+               "The server does not support the multi-update extended " +
+                    "operation or LDAP transactions, so the changes can't " +
+                    "be processed atomically.");
+        }
+
+        out("The server does not support the multi-update extended ",
+             "operation, so the changes in each batch will be processed in ",
+             "an LDAP transaction.");
+        break;
+
+      case ABORT_ON_ERROR:
+        out("The server does not support the multi-update extended ",
+             "operation, so the changes will be sent as individual ",
+             "operations, one at a time.");
+        break;
+
+      case CONTINUE_ON_ERROR:
+      default:
+        out("The server does not support the multi-update extended ",
+             "operation, so the changes will be sent as individual ",
+             "operations, with up to ",
+             fallbackProcessor.getMaxOutstandingOperations(),
+             " in progress at a time on each connection.");
+        break;
+    }
+
+    out();
+    return fallbackProcessor;
+  }
+
+
+
+  /**
+   * Sends the requests for the provided batch using the given executor.
+   *
+   * @param  executor           The executor to use to send the requests.
+   * @param  pool               The connection pool to use to communicate with
+   *                            the server.
+   * @param  fallbackProcessor  The fallback processor to use to send the
+   *                            changes as individual operations, or
+   *                            {@code null} if the server supports the
+   *                            multi-update extended operation.
+   * @param  errorBehavior      The error behavior to use for the requests.
+   * @param  batch              The batch to send.
+   *
+   * @return  A future that will provide the result for the batch.  If the
+   *          batch was split into multiple requests, then the result will
+   *          combine the results of all of them, in the order that the changes
+   *          were read.
+   */
+  private static Future<MultiUpdateExtendedResult> submitBatch(
+                      final ExecutorService executor,
+                      final LDAPConnectionPool pool,
+                      final MultiUpdateFallbackProcessor fallbackProcessor,
+                      final MultiUpdateErrorBehavior errorBehavior,
+                      final OutstandingBatch batch)
+  {
+    // If all of the changes in the batch were coalesced away, then there is
+    // nothing to send, so treat the batch as if all of its changes had been
+    // applied.
+    final int numRequests = batch.getRequestChanges().size();
+    if (numRequests == 0)
+    {
+      final CompletableFuture<MultiUpdateExtendedResult> future =
+           new CompletableFuture<>();
+      try
+      {
+        future.complete(new MultiUpdateExtendedResult(-1, ResultCode.SUCCESS,
+             null, null, null, MultiUpdateChangesApplied.ALL,
+             Collections.<ObjectPair<OperationType,LDAPResult>>emptyList(),
+             StaticUtils.NO_CONTROLS));
+      }
+      catch (final LDAPException e)
+      {
+        future.completeExceptionally(e);
+      }
+
+      return future;
+    }
+
+    // Keep track of how long the server takes to process the batch, in case
+    // that is used to choose the size of later batches.  The timer starts when
+    // a task begins to send the batch rather than when it is submitted, so
+    // that time spent waiting for a thread isn't counted.  With multiple
+    // lanes, the batch isn't complete until all of them are, and it is timed
+    // from the lane that started first.
+    if (numRequests == 1)
+    {
+      return executor.submit(() ->
+           {
+             final long startTime = System.nanoTime();
+             try
+             {
+               return processBatch(pool, fallbackProcessor, errorBehavior,
+                    batch, 0);
+             }
+             finally
+             {
+               batch.setResponseTimeNanos(System.nanoTime() - startTime);
+             }
+           });
+    }
+
+    final List<CompletableFuture<MultiUpdateExtendedResult>> laneFutures =
+         new ArrayList<>(numRequests);
+    final long[] laneStartTimes = new long[numRequests];
+    for (int i=0; i < numRequests; i++)
+    {
+      final int requestIndex = i;
+      laneFutures.add(CompletableFuture.supplyAsync(
+           () ->
+           {
+             laneStartTimes[requestIndex] = System.nanoTime();
+             try
+             {
+               return processBatch(pool, fallbackProcessor, errorBehavior,
+                    batch, requestIndex);
+             }
+             catch (final LDAPException e)
+             {
+               throw new CompletionException(e);
+             }
+           },
+           executor));
+    }
+
+    final CompletableFuture<?>[] laneFutureArray =
+         new CompletableFuture<?>[laneFutures.size()];
+    return CompletableFuture.allOf(laneFutures.toArray(laneFutureArray))
+         .thenApply((final Void v) ->
+         {
+           final long stopTime = System.nanoTime();
+           long responseTimeNanos = 0L;
+           for (final long laneStartTime : laneStartTimes)
+           {
+             responseTimeNanos =
+                  Math.max(responseTimeNanos, (stopTime - laneStartTime));
+           }
+
+           batch.setResponseTimeNanos(responseTimeNanos);
+           final List<MultiUpdateExtendedResult> laneResults =
+                new ArrayList<>(laneFutures.size());
+           for (final CompletableFuture<MultiUpdateExtendedResult> f :
+                laneFutures)
+           {
+             laneResults.add(f.join());
+           }
+
+           try
+           {
+             return mergeLaneResults(batch, laneResults);
+           }
+           catch (final LDAPException e)
+           {
+             throw new CompletionException(e);
+           }
+         });
+  }
+
+
+
+  /**
+   * Combines the results of the requests used to send the independent lanes of
+   * a batch into a single result, with the per-change results in the order
+   * that the changes were read.
+   *
+   * @param  batch        The batch that was split into lanes.
+   * @param  laneResults  The results for each of the lanes, in the same order
+   *                      as the lanes.
+   *
+   * @return  The combined result.
+   *
+   * @throws  LDAPException  If a problem occurs while creating the combined
+   *                         result.
+   */
+  private static MultiUpdateExtendedResult mergeLaneResults(
+                      final OutstandingBatch batch,
+                      final List<MultiUpdateExtendedResult> laneResults)
+          throws LDAPException
+  {
+    final List<LDAPRequest> changes = batch.getBatch().getRequests();
+    final List<ObjectPair<OperationType,LDAPResult>> mergedResults =
+         new ArrayList<>(changes.size());
+    for (int i=0; i < changes.size(); i++)
+    {
+      mergedResults.add(null);
+    }
+
+    ResultCode resultCode = ResultCode.SUCCESS;
+    String diagnosticMessage = null;
+    boolean anyApplied = false;
+    boolean allApplied = true;
+    for (int l=0; l < laneResults.size(); l++)
+    {
+      final MultiUpdateExtendedResult laneResult = laneResults.get(l);
+      if ((resultCode == ResultCode.SUCCESS) &&
+           (laneResult.getResultCode() != ResultCode.SUCCESS))
+      {
+        resultCode = laneResult.getResultCode();
+        diagnosticMessage = laneResult.getDiagnosticMessage();
+      }
+
+      final MultiUpdateChangesApplied changesApplied =
+           laneResult.getChangesApplied();
+      if (changesApplied != MultiUpdateChangesApplied.ALL)
+      {
+        allApplied = false;
+      }
+      if ((changesApplied == MultiUpdateChangesApplied.ALL) ||
+           (changesApplied == MultiUpdateChangesApplied.PARTIAL))
+      {
+        anyApplied = true;
+      }
+
+
+      // Put each change's result in its original position.  If the request
+      // for the lane failed as a whole, then it may not include a result for
+      // every change, so use the request's result for any that are missing.
+      final List<Integer> lane = batch.getLanes().get(l);
+      final List<ObjectPair<OperationType,LDAPResult>> laneChangeResults =
+           laneResult.getResults();
+      for (int i=0; i < lane.size(); i++)
+      {
+        final int changeIndex = lane.get(i);
+        if (i < laneChangeResults.size())
+        {
+          mergedResults.set(changeIndex, laneChangeResults.get(i));
+        }
+        else
+        {
+          final ResultCode laneResultCode;
+          if (laneResult.getResultCode() == ResultCode.SUCCESS)
+          {
+            laneResultCode = ResultCode.OTHER;
+          }
+          else
+          {
+            laneResultCode = laneResult.getResultCode();
+          }
+
+          final StringBuilder message = new StringBuilder(
+               "The multi-update request that included this change did not " +
+                    "return a result for it.");
+          if (laneResult.getDiagnosticMessage() != null)
+          {
+            message.append("  ");
+            message.append(laneResult.getDiagnosticMessage());
+          }
+
+          mergedResults.set(changeIndex, new ObjectPair<>(
+               changes.get(changeIndex).getOperationType(),
+               new LDAPResult(laneResult.getMessageID(), laneResultCode,
+                    message.toString(), null, StaticUtils.NO_STRINGS,
+                    StaticUtils.NO_CONTROLS)));
+        }
+      }
+    }
+
+    final MultiUpdateChangesApplied changesApplied;
+    if (allApplied)
+    {
+      changesApplied = MultiUpdateChangesApplied.ALL;
+    }
+    else if (anyApplied)
+    {
+      changesApplied = MultiUpdateChangesApplied.PARTIAL;
+    }
+    else
+    {
+      changesApplied = MultiUpdateChangesApplied.NONE;
+    }
+
+    return new MultiUpdateExtendedResult(-1, resultCode, diagnosticMessage,
+         null, null, changesApplied, mergedResults, StaticUtils.NO_CONTROLS);
+  }
+
+
+
+  /**
+   * Sends one of the multi-update extended requests for the provided batch to
+   * the server and reads the response.  If the server does not support the
+   * multi-update extended operation, then the changes will be sent with the
+   * given fallback processor instead.
+   *
+   * @param  pool               The connection pool to use to communicate with
+   *                            the server.
+   * @param  fallbackProcessor  The fallback processor to use to send the
+   *                            changes as individual operations, or
+   *                            {@code null} if the server supports the
+   *                            multi-update extended operation.
+   * @param  errorBehavior      The error behavior to use for the request.
+   * @param  batch              The batch that includes the request.
+   * @param  requestIndex       The index of the request to send.
+   *
+   * @return  The multi-update extended result read from the server, or one
+   *          created from the results of the individual operations.
+   *
+   * @throws  LDAPException  If a problem occurs while encoding the request, or
+   *                         while processing it if the error result could not
+   *                         be interpreted as a multi-update extended result.
+   */
+  private static MultiUpdateExtendedResult processBatch(
+                      final LDAPConnectionPool pool,
+                      final MultiUpdateFallbackProcessor fallbackProcessor,
+                      final MultiUpdateErrorBehavior errorBehavior,
+                      final OutstandingBatch batch, final int requestIndex)
+          throws LDAPException
+  {
+    if (fallbackProcessor != null)
+    {
+      try
+      {
+        return fallbackProcessor.process(errorBehavior,
+             batch.getRequestChanges().get(requestIndex));
+      }
+      catch (final LDAPException e)
+      {
+        final ExtendedResult genericExtendedResult =
+             new ExtendedResult(e.toLDAPResult());
+        return new MultiUpdateExtendedResult(genericExtendedResult);
+      }
+    }
+
+    // The request will normally have been encoded by the time that it is
+    // needed, since encoding starts as soon as the batch is read.
+    final ExtendedRequest request;
+    try
+    {
+      request = batch.getEncodedRequests().get().get(requestIndex);
+    }
+    catch (final Exception e)
+    {
+      Debug.debugException(e);
+      throw new LDAPException(ResultCode.ENCODING_ERROR,
+           "An error occurred while trying to encode the multi-update " +
+                "extended request for batch " +
+                batch.getBatch().getBatchNumber() + ":  " +
+                StaticUtils.getExceptionMessage(e),
+           e);
+    }
+
+    try
+    {
+      return new MultiUpdateExtendedResult(
+           pool.processExtendedOperation(request));
+    }
+    catch (final LDAPException e)
+    {
+      final ExtendedResult genericExtendedResult =
+           new ExtendedResult(e.toLDAPResult());
+      return new MultiUpdateExtendedResult(genericExtendedResult);
     }
+  }
 
 
-    // There may be additional requests that weren't processed.  If so, then
-    // just indicate that they were not attempted.
-    while (requestIterator.hasNext())
+
+  /**
+   * Writes information about the result of processing the provided batch.
+   *
+   * @param  batch              The batch of changes that was processed.
+   * @param  multiUpdateResult  The multi-update extended result for the batch.
+   * @param  writeBatchHeader   Indicates whether to write a line that
+   *                            identifies the batch and the changes that it
+   *                            included before the result details.
+   */
+  private void reportBatchResult(final MultiUpdateBatch batch,
+                    final MultiUpdateExtendedResult multiUpdateResult,
+                    final boolean writeBatchHeader)
+  {
+    // Write a summary of the processing that was performed.
+    if (writeBatchHeader)
+    {
+      out("Batch ", batch.getBatchNumber(), " (changes ",
+           batch.getFirstChangeNumber(), " through ",
+           batch.getLastChangeNumber(), ", approximately ",
+           batch.getEncodedSize(), " bytes)");
+    }
+
+    out("Multi-Update Result Code: ",
+         String.valueOf(multiUpdateResult.getResultCode()));
+
+    if (multiUpdateResult.getDiagnosticMessage() != null)
+    {
+      out("Multi-Update Diagnostic Message: ",
+           multiUpdateResult.getDiagnosticMessage());
+    }
+
+    final MultiUpdateChangesApplied changesApplied =
+         multiUpdateResult.getChangesApplied();
+    if (changesApplied == null)
+    {
+      out("None of the changes were successfully applied.");
+    }
+    else
+    {
+      switch (changesApplied)
+      {
+        case ALL:
+          out("All changes were successfully applied.");
+          break;
+        case PARTIAL:
+          out("Only some of the changes were successfully applied.");
+          break;
+        case NONE:
+          out("None of the changes were successfully applied.");
+          break;
+        default:
+          err("Unexpected changesApplied value: ", changesApplied.name());
+          break;
+      }
+    }
+
+    out();
+
+
+    // Iterate through the requests and results and display information about
+    // each.
+    final Iterator<LDAPRequest> requestIterator =
+         batch.getRequests().iterator();
+    final Iterator<ObjectPair<OperationType,LDAPResult>> resultIterator =
+         multiUpdateResult.getResults().iterator();
+    while (resultIterator.hasNext() && requestIterator.hasNext())
     {
       final LDAPRequest request = requestIterator.next();
+      final LDAPResult result = resultIterator.next().getSecond();
+
+      if (result.getResultCode() == ResultCode.SUCCESS)
+      {
+        switch (request.getOperationType())
+        {
+          case ADD:
+            out("Successfully added ", ((AddRequest) request).getDN());
+            break;
+          case DELETE:
+            out("Successfully deleted ", ((DeleteRequest) request).getDN());
+            break;
+          case MODIFY:
+            out("Successfully modified ", ((ModifyRequest) request).getDN());
+            break;
+          case MODIFY_DN:
+            out("Successfully renamed ", ((ModifyDNRequest) request).getDN());
+            break;
+        }
+      }
+      else
+      {
         switch (request.getOperationType())
         {
           case ADD:
-            out("Did not attempt to add ", ((AddRequest) request).getDN());
+            out("Failed to add ", ((AddRequest) request).getDN());
             break;
           case DELETE:
-            out("Did not attempt to delete ",
-                 ((DeleteRequest) request).getDN());
+            out("Failed to delete ", ((DeleteRequest) request).getDN());
             break;
           case MODIFY:
-            out("Did not attempt to modify ",
-                 ((ModifyRequest) request).getDN());
+            out("Failed to modify ", ((ModifyRequest) request).getDN());
             break;
           case MODIFY_DN:
-            out("Did not attempt to rename ",
-                 ((ModifyDNRequest) request).getDN());
+            out("Failed to rename ", ((ModifyDNRequest) request).getDN());
             break;
         }
+
+        out("Result Code: ", String.valueOf(result.getResultCode()));
+      }
+
+      if (result.getDiagnosticMessage() != null)
+      {
+        out("Diagnostic Message: ", result.getDiagnosticMessage());
+      }
+
+      if (result.getMatchedDN() != null)
+      {
+        out("Matched DN: ", result.getMatchedDN());
+      }
+
+      if (result.getReferralURLs() != null)
+      {
+        for (final String url : result.getReferralURLs())
+        {
+          out("Referral URL: ", url);
+        }
+      }
+
+      out();
     }
 
 
-    return multiUpdateResult.getResultCode();
+    // There may be additional requests that weren't processed.  If so, then
+    // just indicate that they were not attempted.
+    while (requestIterator.hasNext())
+    {
+      final LDAPRequest request = requestIterator.next();
+      switch (request.getOperationType())
+      {
+        case ADD:
+          out("Did not attempt to add ", ((AddRequest) request).getDN());
+          break;
+        case DELETE:
+          out("Did not attempt to delete ",
+               ((DeleteRequest) request).getDN());
+          break;
+        case MODIFY:
+          out("Did not attempt to modify ",
+               ((ModifyRequest) request).getDN());
+          break;
+        case MODIFY_DN:
+          out("Did not attempt to rename ",
+               ((ModifyDNRequest) request).getDN());
+          break;
+      }
+    }
   }
 
 
@@ -637,7 +3202,7 @@ public final class MultiUpdateLDAPModify
   @Override()
   public LinkedHashMap<String[],String> getExampleUsages()
   {
-    final LinkedHashMap<String[],String> examples = new LinkedHashMap<>(1);
+    final LinkedHashMap<String[],String> examples = new LinkedHashMap<>(4);
     examples.put(
          new String[]
          {
@@ -647,6 +3212,437 @@ public final class MultiUpdateLDAPModify
          "Uses the multi-update extended operation in an attempt to apply " +
               "all changes in the changes.ldif file as a single atomic unit.");
 
+    examples.put(
+         new String[]
+         {
+           "--ldifFile", "changes.ldif",
+           "--errorBehavior", "continue-on-error",
+           "--maxChangesPerRequest", "1000",
+           "--maxRequestSizeBytes", "4194304"
+         },
+         "Reads the changes.ldif file in batches of up to 1000 changes or " +
+              "4 megabytes, whichever is smaller, and sends a separate " +
+              "multi-update request for each batch.");
+
+    examples.put(
+         new String[]
+         {
+           "--ldifFile", "changes.ldif",
+           "--errorBehavior", "continue-on-error",
+           "--maxChangesPerRequest", "1000",
+           "--maxOutstandingRequests", "4"
+         },
+         "Reads the changes.ldif file in batches of up to 1000 changes and " +
+              "keeps up to four multi-update requests in progress at the " +
+              "same time over separate connections.");
+
+    examples.put(
+         new String[]
+         {
+           "--ldifFile", "changes.ldif",
+           "--errorBehavior", "abort-on-error",
+           "--maxChangesPerRequest", "1000",
+           "--checkpointFile", "changes.checkpoint",
+           "--resume"
+         },
+         "Reads the changes.ldif file in batches of up to 1000 changes, " +
+              "starting immediately after the last change recorded in the " +
+              "changes.checkpoint file if it exists, and updates that file " +
+              "after each batch.");
+
+    examples.put(
+         new String[]
+         {
+           "--watchDirectory", "spool",
+           "--archiveDirectory", "archive",
+           "--errorBehavior", "continue-on-error",
+           "--maxChangesPerRequest", "1000"
+         },
+         "Applies the changes in each LDIF file that arrives in the spool " +
+              "directory, in batches of up to 1000 changes, and moves the " +
+              "file to the archive directory once all of its changes have " +
+              "been acknowledged.");
+
     return examples;
   }
+
+
+
+  /**
+   * This class accumulates the dependency analysis and change coalescing
+   * statistics for all of the batches, so that they can be summarized once
+   * processing is complete.
+   */
+  private static final class BatchStatistics
+  {
+    // The number of batches whose dependencies were analyzed.
+    private int analyzedBatches;
+
+    // The length of the longest critical path in any single batch.
+    private int longestCriticalPathLength;
+
+    // The total number of independent components in the analyzed batches.
+    private long analyzedComponents;
+
+    // The combined length of the critical paths in the analyzed batches.
+    private long combinedCriticalPathLength;
+
+    // The number of changes that were read before they were coalesced.
+    private long originalChangeCount;
+
+    // The number of changes that were removed by coalescing.
+    private long removedChangeCount;
+
+    // The number of modifies that were merged into earlier modifies.
+    private long mergedModifyCount;
+
+    // The number of modifies that were folded into adds.
+    private long foldedModifyCount;
+
+    // The number of changes that were removed as part of add and delete
+    // sequences.
+    private long cancelledChangeCount;
+
+
+
+    /**
+     * Creates a new set of statistics with all of the counts set to zero.
+     */
+    private BatchStatistics()
+    {
+      analyzedBatches = 0;
+      longestCriticalPathLength = 0;
+      analyzedComponents = 0L;
+      combinedCriticalPathLength = 0L;
+      originalChangeCount = 0L;
+      removedChangeCount = 0L;
+      mergedModifyCount = 0L;
+      foldedModifyCount = 0L;
+      cancelledChangeCount = 0L;
+    }
+
+
+
+    /**
+     * Adds the results of analyzing the dependencies in a batch.
+     *
+     * @param  analyzer  The analyzer with the dependencies between the
+     *                   changes in the batch.
+     */
+    private void recordDependencyAnalysis(
+                      final ChangeDependencyAnalyzer analyzer)
+    {
+      analyzedBatches++;
+      analyzedComponents += analyzer.getComponentCount();
+      combinedCriticalPathLength += analyzer.getCriticalPathLength();
+      longestCriticalPathLength = Math.max(longestCriticalPathLength,
+           analyzer.getCriticalPathLength());
+    }
+
+
+
+    /**
+     * Adds the results of coalescing the changes in a batch.
+     *
+     * @param  coalescer  The coalescer that was used to coalesce the changes
+     *                    in the batch.
+     */
+    private void recordCoalescing(final ChangeCoalescer coalescer)
+    {
+      originalChangeCount += coalescer.getOriginalChangeCount();
+      removedChangeCount += coalescer.getRemovedChangeCount();
+      mergedModifyCount += coalescer.getMergedModifyCount();
+      foldedModifyCount += coalescer.getFoldedModifyCount();
+      cancelledChangeCount += coalescer.getCancelledChangeCount();
+    }
+  }
+
+
+
+  /**
+   * This class holds information about a batch of changes that has been read
+   * from the LDIF file, along with the multi-update requests used to send it
+   * and the result of processing those requests once they have been sent.
+   */
+  private static final class OutstandingBatch
+  {
+    // The analyzer with the dependencies between the changes in the batch.
+    private final ChangeDependencyAnalyzer dependencyAnalyzer;
+
+    // The coalescer that was used to coalesce the changes in the batch.
+    private final ChangeCoalescer coalescer;
+
+    // The indexes of the changes included in each of the requests, if the
+    // batch was split into independent lanes.
+    private final List<List<Integer>> lanes;
+
+    // The changes to include in each of the multi-update requests used to
+    // send the batch.
+    private final List<List<LDAPRequest>> requestChanges;
+
+    // The future that will provide the encoded multi-update requests.
+    private final Future<List<ExtendedRequest>> encodedRequests;
+
+    // The batch of changes.
+    private final MultiUpdateBatch batch;
+
+    // The future that will provide the result of processing the request.
+    private Future<MultiUpdateExtendedResult> result;
+
+    // The length of time in nanoseconds between sending the batch and
+    // receiving the result for it.  It is set by the thread that sends the
+    // batch and read by the thread that reports the result.
+    private volatile long responseTimeNanos;
+
+    // The maximum number of changes that the batch was allowed to contain
+    // when it was read.
+    private int batchSizeLimit;
+
+    // The number of the attempt for which the changes in the batch are being
+    // sent, or zero if the batch was read from the LDIF file.
+    private int retryAttempt;
+
+
+
+    /**
+     * Creates a new outstanding batch with the provided information.
+     *
+     * @param  batch               The batch of changes.
+     * @param  coalescer           The coalescer that was used to coalesce the
+     *                             changes in the batch.  It may be
+     *                             {@code null} if the changes were not
+     *                             coalesced.
+     * @param  dependencyAnalyzer  The analyzer with the dependencies between
+     *                             the changes in the batch.  It may be
+     *                             {@code null} if dependencies were not
+     *                             analyzed.
+     * @param  lanes               The indexes of the changes included in each
+     *                             of the requests.  It may be {@code null} if
+     *                             the batch is sent in a single request.
+     * @param  requestChanges      The changes to include in each of the
+     *                             multi-update requests used to send the
+     *                             batch.
+     * @param  encodedRequests     The future that will provide the encoded
+     *                             multi-update requests.  It may be
+     *                             {@code null} if the changes will be sent as
+     *                             individual operations or there are no
+     *                             requests to send.
+     */
+    private OutstandingBatch(final MultiUpdateBatch batch,
+                 final ChangeCoalescer coalescer,
+                 final ChangeDependencyAnalyzer dependencyAnalyzer,
+                 final List<List<Integer>> lanes,
+                 final List<List<LDAPRequest>> requestChanges,
+                 final Future<List<ExtendedRequest>> encodedRequests)
+    {
+      this.batch = batch;
+      this.coalescer = coalescer;
+      this.dependencyAnalyzer = dependencyAnalyzer;
+      this.lanes = lanes;
+      this.requestChanges = requestChanges;
+      this.encodedRequests = encodedRequests;
+
+      result = null;
+      responseTimeNanos = 0L;
+      batchSizeLimit = Integer.MAX_VALUE;
+      retryAttempt = 0;
+    }
+
+
+
+    /**
+     * Retrieves the batch of changes.
+     *
+     * @return  The batch of changes.
+     */
+    private MultiUpdateBatch getBatch()
+    {
+      return batch;
+    }
+
+
+
+    /**
+     * Retrieves the coalescer that was used to coalesce the changes in the
+     * batch.
+     *
+     * @return  The coalescer that was used to coalesce the changes in the
+     *          batch, or {@code null} if the changes were not coalesced.
+     */
+    private ChangeCoalescer getCoalescer()
+    {
+      return coalescer;
+    }
+
+
+
+    /**
+     * Retrieves the analyzer with the dependencies between the changes in the
+     * batch.
+     *
+     * @return  The analyzer with the dependencies between the changes in the
+     *          batch, or {@code null} if dependencies were not analyzed.
+     */
+    private ChangeDependencyAnalyzer getDependencyAnalyzer()
+    {
+      return dependencyAnalyzer;
+    }
+
+
+
+    /**
+     * Retrieves the indexes of the changes included in each of the requests.
+     *
+     * @return  The indexes of the changes included in each of the requests, or
+     *          {@code null} if the batch is sent in a single request.
+     */
+    private List<List<Integer>> getLanes()
+    {
+      return lanes;
+    }
+
+
+
+    /**
+     * Retrieves the changes to include in each of the multi-update requests
+     * used to send the batch.
+     *
+     * @return  The changes to include in each of the multi-update requests
+     *          used to send the batch.
+     */
+    private List<List<LDAPRequest>> getRequestChanges()
+    {
+      return requestChanges;
+    }
+
+
+
+    /**
+     * Retrieves the future that will provide the encoded multi-update requests
+     * used to send the batch.
+     *
+     * @return  The future that will provide the encoded multi-update requests,
+     *          or {@code null} if the changes will be sent as individual
+     *          operations or there are no requests to send.
+     */
+    private Future<List<ExtendedRequest>> getEncodedRequests()
+    {
+      return encodedRequests;
+    }
+
+
+
+    /**
+     * Retrieves the future that will provide the result of processing the
+     * batch.
+     *
+     * @return  The future that will provide the result of processing the
+     *          batch, or {@code null} if the batch has not been sent.
+     */
+    private Future<MultiUpdateExtendedResult> getResult()
+    {
+      return result;
+    }
+
+
+
+    /**
+     * Specifies the future that will provide the result of processing the
+     * batch.
+     *
+     * @param  result  The future that will provide the result of processing
+     *                 the batch.
+     */
+    private void setResult(final Future<MultiUpdateExtendedResult> result)
+    {
+      this.result = result;
+    }
+
+
+
+    /**
+     * Retrieves the length of time between sending the batch and receiving the
+     * result for it.
+     *
+     * @return  The length of time in nanoseconds between sending the batch and
+     *          receiving the result for it, or zero if the result has not been
+     *          received or nothing was sent.
+     */
+    private long getResponseTimeNanos()
+    {
+      return responseTimeNanos;
+    }
+
+
+
+    /**
+     * Specifies the length of time between sending the batch and receiving the
+     * result for it.
+     *
+     * @param  responseTimeNanos  The length of time in nanoseconds between
+     *                            sending the batch and receiving the result
+     *                            for it.
+     */
+    private void setResponseTimeNanos(final long responseTimeNanos)
+    {
+      this.responseTimeNanos = responseTimeNanos;
+    }
+
+
+
+    /**
+     * Retrieves the maximum number of changes that the batch was allowed to
+     * contain when it was read.
+     *
+     * @return  The maximum number of changes that the batch was allowed to
+     *          contain when it was read.
+     */
+    private int getBatchSizeLimit()
+    {
+      return batchSizeLimit;
+    }
+
+
+
+    /**
+     * Specifies the maximum number of changes that the batch was allowed to
+     * contain when it was read.
+     *
+     * @param  batchSizeLimit  The maximum number of changes that the batch was
+     *                         allowed to contain when it was read.
+     */
+    private void setBatchSizeLimit(final int batchSizeLimit)
+    {
+      this.batchSizeLimit = batchSizeLimit;
+    }
+
+
+
+    /**
+     * Retrieves the number of the attempt for which the changes in the batch
+     * are being sent.
+     *
+     * @return  The number of the attempt for which the changes in the batch
+     *          are being sent, or zero if the batch was read from the LDIF
+     *          file rather than created to retry changes.
+     */
+    private int getRetryAttempt()
+    {
+      return retryAttempt;
+    }
+
+
+
+    /**
+     * Specifies the number of the attempt for which the changes in the batch
+     * are being sent.
+     *
+     * @param  retryAttempt  The number of the attempt for which the changes in
+     *                       the batch are being sent.
+     */
+    private void setRetryAttempt(final int retryAttempt)
+    {
+      this.retryAttempt = retryAttempt;
+    }
+  }
 }
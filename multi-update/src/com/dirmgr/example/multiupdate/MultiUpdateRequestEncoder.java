@@ -0,0 +1,224 @@
+/*
+ * Copyright 2019 Neil A. Wilson
+ * All Rights Reserved.
+ */
+/*
+ * Copyright (C) 2019 Neil A. Wilson
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPLv2 only)
+ * or the terms of the GNU Lesser General Public License (LGPLv2.1 only)
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, see <http://www.gnu.org/licenses>.
+ */
+/*
+ * Copyright 2019 Neil A. Wilson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dirmgr.example.multiupdate;
+
+
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.unboundid.asn1.ASN1Buffer;
+import com.unboundid.asn1.ASN1BufferSequence;
+import com.unboundid.asn1.ASN1OctetString;
+import com.unboundid.ldap.sdk.AddRequest;
+import com.unboundid.ldap.sdk.Control;
+import com.unboundid.ldap.sdk.DeleteRequest;
+import com.unboundid.ldap.sdk.ExtendedRequest;
+import com.unboundid.ldap.sdk.LDAPRequest;
+import com.unboundid.ldap.sdk.ModifyDNRequest;
+import com.unboundid.ldap.sdk.ModifyRequest;
+import com.unboundid.ldap.sdk.unboundidds.extensions.MultiUpdateErrorBehavior;
+import com.unboundid.ldap.sdk.unboundidds.extensions.MultiUpdateExtendedRequest;
+import com.unboundid.util.ThreadSafety;
+import com.unboundid.util.ThreadSafetyLevel;
+
+
+
+/**
+ * This class provides a mechanism for encoding multi-update extended requests
+ * on a dedicated background thread, so that a batch can be encoded while
+ * earlier batches are still being sent to and processed by the server, and
+ * without holding up the thread that reads and assembles the batches.
+ * <BR><BR>
+ * The {@code MultiUpdateExtendedRequest} constructor encodes its value by
+ * building a tree of ASN.1 elements for every change and then encoding that
+ * tree, which creates a lot of short-lived objects for large batches.  This
+ * class instead writes the value for each request directly into an ASN.1
+ * buffer that is reused for every request, and wraps the result in a generic
+ * extended request with the multi-update request OID.  The encoded value is
+ * identical to the one that the SDK would have created, and the server's
+ * response can be decoded with the {@code MultiUpdateExtendedResult}
+ * constructor that takes a generic extended result.
+ */
+@ThreadSafety(level=ThreadSafetyLevel.COMPLETELY_THREADSAFE)
+public final class MultiUpdateRequestEncoder
+       implements Closeable
+{
+  // The buffer used to encode the requests.  It is only accessed by the
+  // encoder thread.  A maximum size of zero means that it will never shrink
+  // when it is cleared, so it will grow to the size of the largest request
+  // and be reused for every request after that.
+  private final ASN1Buffer buffer;
+
+  // The executor that provides the encoder thread.
+  private final ExecutorService executor;
+
+
+
+  /**
+   * Creates a new multi-update request encoder, along with the thread that it
+   * will use to encode requests.
+   */
+  public MultiUpdateRequestEncoder()
+  {
+    buffer = new ASN1Buffer(0);
+    executor = Executors.newSingleThreadExecutor(
+         (final Runnable r) ->
+         {
+           final Thread t = new Thread(r, "Multi-Update Encoder Thread");
+           t.setDaemon(true);
+           return t;
+         });
+  }
+
+
+
+  /**
+   * Encodes a multi-update extended request for each of the provided lists of
+   * changes on the encoder thread.  Requests are encoded in the order that
+   * this method is called.
+   *
+   * @param  errorBehavior   The error behavior to use for the requests.  It
+   *                         must not be {@code null}.
+   * @param  requestChanges  The changes to include in each of the requests.
+   *                         Each list must contain only add, delete, modify,
+   *                         and modify DN requests.  None of the requests
+   *                         should be altered until the encoding has
+   *                         completed.
+   *
+   * @return  A future that will provide the encoded requests, in the same
+   *          order as the provided lists of changes.
+   */
+  public Future<List<ExtendedRequest>> encode(
+              final MultiUpdateErrorBehavior errorBehavior,
+              final List<List<LDAPRequest>> requestChanges)
+  {
+    return executor.submit(() ->
+         {
+           final List<ExtendedRequest> requests =
+                new ArrayList<>(requestChanges.size());
+           for (final List<LDAPRequest> changes : requestChanges)
+           {
+             requests.add(encodeRequest(buffer, errorBehavior, changes));
+           }
+
+           return requests;
+         });
+  }
+
+
+
+  /**
+   * Encodes a multi-update extended request with the provided information,
+   * using the given buffer.
+   *
+   * @param  buffer         The buffer to use to encode the request.  It will
+   *                        be cleared before it is used.  It must not be
+   *                        {@code null}.
+   * @param  errorBehavior  The error behavior to use for the request.  It must
+   *                        not be {@code null}.
+   * @param  changes        The changes to include in the request.  It must
+   *                        contain only add, delete, modify, and modify DN
+   *                        requests.
+   *
+   * @return  A generic extended request with the multi-update request OID and
+   *          the encoded value.
+   */
+  static ExtendedRequest encodeRequest(final ASN1Buffer buffer,
+                              final MultiUpdateErrorBehavior errorBehavior,
+                              final List<LDAPRequest> changes)
+  {
+    buffer.clear();
+
+    final ASN1BufferSequence valueSequence = buffer.beginSequence();
+    buffer.addEnumerated(errorBehavior.intValue());
+
+    final ASN1BufferSequence requestsSequence = buffer.beginSequence();
+    for (final LDAPRequest change : changes)
+    {
+      final ASN1BufferSequence requestSequence = buffer.beginSequence();
+      switch (change.getOperationType())
+      {
+        case ADD:
+          ((AddRequest) change).writeTo(buffer);
+          break;
+        case DELETE:
+          ((DeleteRequest) change).writeTo(buffer);
+          break;
+        case MODIFY:
+          ((ModifyRequest) change).writeTo(buffer);
+          break;
+        case MODIFY_DN:
+          ((ModifyDNRequest) change).writeTo(buffer);
+          break;
+        default:
+          throw new IllegalArgumentException("Unsupported change type " +
+               change.getOperationType().name() + " for a multi-update " +
+               "extended request.");
+      }
+
+      if (change.hasControl())
+      {
+        buffer.addElement(Control.encodeControls(change.getControls()));
+      }
+
+      requestSequence.end();
+    }
+
+    requestsSequence.end();
+    valueSequence.end();
+
+    return new ExtendedRequest(
+         MultiUpdateExtendedRequest.MULTI_UPDATE_REQUEST_OID,
+         new ASN1OctetString(buffer.toByteArray()));
+  }
+
+
+
+  /**
+   * Stops the encoder thread.  Any requests that have not yet been encoded
+   * will be discarded.
+   */
+  @Override()
+  public void close()
+  {
+    executor.shutdownNow();
+  }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright 2019 Neil A. Wilson
+ * All Rights Reserved.
+ */
+/*
+ * Copyright (C) 2019 Neil A. Wilson
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPLv2 only)
+ * or the terms of the GNU Lesser General Public License (LGPLv2.1 only)
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, see <http://www.gnu.org/licenses>.
+ */
+/*
+ * Copyright 2019 Neil A. Wilson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dirmgr.example.multiupdate;
+
+
+
+import java.io.FilterInputStream;
+import java.io.InputStream;
+
+import com.unboundid.util.ThreadSafety;
+import com.unboundid.util.ThreadSafetyLevel;
+
+
+
+/**
+ * This class provides an input stream that reads everything from another
+ * input stream, but doesn't close that stream when it is closed.  It is used
+ * when reading changes from standard input, so that closing the reader
+ * doesn't also close {@code System.in} for the rest of the program.
+ */
+@ThreadSafety(level=ThreadSafetyLevel.NOT_THREADSAFE)
+final class NonClosingInputStream
+       extends FilterInputStream
+{
+  /**
+   * Creates a new instance of this input stream that wraps the provided
+   * stream.
+   *
+   * @param  inputStream  The input stream from which everything should be
+   *                      read.  It will not be closed when this stream is
+   *                      closed.
+   */
+  NonClosingInputStream(final InputStream inputStream)
+  {
+    super(inputStream);
+  }
+
+
+
+  /**
+   * Leaves the wrapped input stream open.
+   */
+  @Override()
+  public void close()
+  {
+    // No implementation is required.
+  }
+}
@@ -0,0 +1,827 @@
+/*
+ * Copyright 2019 Neil A. Wilson
+ * All Rights Reserved.
+ */
+/*
+ * Copyright (C) 2019 Neil A. Wilson
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPLv2 only)
+ * or the terms of the GNU Lesser General Public License (LGPLv2.1 only)
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, see <http://www.gnu.org/licenses>.
+ */
+/*
+ * Copyright 2019 Neil A. Wilson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dirmgr.example.multiupdate;
+
+
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPInputStream;
+
+import com.unboundid.ldap.sdk.LDAPException;
+import com.unboundid.ldif.LDIFChangeRecord;
+import com.unboundid.ldif.LDIFException;
+import com.unboundid.ldif.LDIFReader;
+import com.unboundid.util.Debug;
+import com.unboundid.util.StaticUtils;
+import com.unboundid.util.ThreadSafety;
+import com.unboundid.util.ThreadSafetyLevel;
+
+
+
+/**
+ * This class provides a pipeline for reading change records from an LDIF
+ * source and converting them to LDAP requests, so that the work of reading and
+ * parsing the LDIF can overlap with the work of sending the changes to the
+ * server.  A dedicated reader thread splits the raw input into records and
+ * hands groups of records to a pool of parse threads.  The pending groups are
+ * held in a bounded queue in the order that they were read, so the changes are
+ * always returned in their original order, and the reader thread will block
+ * rather than read too far ahead of the consumer.
+ * <BR><BR>
+ * The input may be read from a file or from standard input, and it will
+ * automatically be decompressed if it is gzip-compressed.  Each change that is
+ * returned includes its record number and the byte offset at which it ends,
+ * so that processing can later be resumed from that point.
+ */
+@ThreadSafety(level=ThreadSafetyLevel.NOT_THREADSAFE)
+public final class ParallelLDIFChangeReader
+       implements ChangeSource
+{
+  /**
+   * The number of change records that will be handed to a parse thread at a
+   * time.
+   */
+  private static final int RECORDS_PER_PARSE_TASK = 100;
+
+
+
+  /**
+   * The size in bytes of the buffer used to read the input.
+   */
+  private static final int READ_BUFFER_SIZE = 65_536;
+
+
+
+  /**
+   * A completed future that the reader thread will add to the queue to
+   * indicate that the end of the input has been reached.
+   */
+  private static final Future<List<ParsedLDIFChange>> END_OF_INPUT =
+       CompletableFuture.completedFuture(null);
+
+
+
+  // The queue that holds the groups of changes that have been read, in the
+  // order that they were read.
+  private final BlockingQueue<Future<List<ParsedLDIFChange>>> queue;
+
+  // The buffer used to read the input.
+  private final byte[] readBuffer;
+
+  // The buffer used to hold the bytes of the line currently being read.
+  private byte[] lineBuffer;
+
+  // Indicates whether the end of the input has been reached by the consumer.
+  private boolean endOfInput;
+
+  // The executor service for the parse threads, if there are any.
+  private final ExecutorService parseExecutor;
+
+  // The input stream from which the LDIF content will be read.
+  private final InputStream inputStream;
+
+  // The position of the next unread byte in the read buffer.
+  private int readBufferPos;
+
+  // The number of valid bytes in the read buffer.
+  private int readBufferLimit;
+
+  // The number of bytes in the line currently being read.
+  private int lineLength;
+
+  // An iterator over the group of changes currently being consumed.
+  private Iterator<ParsedLDIFChange> currentGroup;
+
+  // The number of lines that have been read from the input.
+  private long lineNumber;
+
+  // The byte offset of the next byte to read from the input.
+  private long offset;
+
+  // The thread that reads the input and splits it into records.
+  private final Thread readerThread;
+
+  // Indicates whether this reader has been closed.
+  private volatile boolean closed;
+
+
+
+  /**
+   * Creates a new parallel LDIF change reader that will read from the provided
+   * input stream.
+   *
+   * @param  inputStream           The input stream from which to read the LDIF
+   *                               content.  It must not be {@code null}, and
+   *                               it must already have been decompressed if
+   *                               necessary.
+   * @param  numParseThreads       The number of threads to use to parse the
+   *                               change records.  If this is zero, then the
+   *                               records will be parsed on the reader thread.
+   * @param  startOffset           The byte offset of the input stream's
+   *                               current position within the LDIF content.
+   * @param  startRecordNumber     The one-based record number of the first
+   *                               change record that will be read from the
+   *                               input stream.
+   */
+  public ParallelLDIFChangeReader(final InputStream inputStream,
+                                  final int numParseThreads,
+                                  final long startOffset,
+                                  final long startRecordNumber)
+  {
+    this.inputStream = inputStream;
+
+    offset = startOffset;
+    lineNumber = 0L;
+    readBuffer = new byte[READ_BUFFER_SIZE];
+    readBufferPos = 0;
+    readBufferLimit = 0;
+    lineBuffer = new byte[1024];
+    lineLength = 0;
+    currentGroup = Collections.emptyIterator();
+    endOfInput = false;
+    closed = false;
+
+    if (numParseThreads > 0)
+    {
+      parseExecutor = Executors.newFixedThreadPool(numParseThreads,
+           (final Runnable r) ->
+           {
+             final Thread t = new Thread(r, "LDIF Change Parse Thread");
+             t.setDaemon(true);
+             return t;
+           });
+      queue = new ArrayBlockingQueue<>(numParseThreads * 4);
+    }
+    else
+    {
+      parseExecutor = null;
+      queue = new ArrayBlockingQueue<>(4);
+    }
+
+    readerThread = new Thread(() -> readRecords(startRecordNumber),
+         "LDIF Change Reader Thread");
+    readerThread.setDaemon(true);
+    readerThread.start();
+  }
+
+
+
+  /**
+   * Opens the specified LDIF file, or standard input, for reading.  If the
+   * content is gzip-compressed, then it will be transparently decompressed.
+   *
+   * @param  ldifFile         The LDIF file to read.  It may be {@code null} if
+   *                          the LDIF content should be read from standard
+   *                          input.
+   * @param  numParseThreads  The number of threads to use to parse the change
+   *                          records.  If this is zero, then the records will
+   *                          be parsed on the reader thread.
+   *
+   * @return  The parallel LDIF change reader that was created.
+   *
+   * @throws  IOException  If a problem occurs while opening the input.
+   */
+  public static ParallelLDIFChangeReader open(final File ldifFile,
+                                              final int numParseThreads)
+         throws IOException
+  {
+    final InputStream rawInputStream;
+    if (ldifFile == null)
+    {
+      rawInputStream = new NonClosingInputStream(System.in);
+    }
+    else
+    {
+      rawInputStream = new FileInputStream(ldifFile);
+    }
+
+    return new ParallelLDIFChangeReader(decompressIfNecessary(rawInputStream),
+         numParseThreads, 0L, 1L);
+  }
+
+
+
+  /**
+   * Opens the specified LDIF file for reading, starting at the given byte
+   * offset.  For an uncompressed file, the reader will seek directly to that
+   * offset, so none of the data before it will be read.  A gzip-compressed
+   * file cannot be positioned directly, so the data before that offset will
+   * be decompressed and discarded, but it will not be parsed.
+   *
+   * @param  ldifFile           The LDIF file to read.  It must not be
+   *                            {@code null}.
+   * @param  numParseThreads    The number of threads to use to parse the
+   *                            change records.  If this is zero, then the
+   *                            records will be parsed on the reader thread.
+   * @param  startOffset        The byte offset at which to start reading.  It
+   *                            must be the end offset of a change record
+   *                            previously read from the same file.  For a
+   *                            compressed file, this is the offset in the
+   *                            uncompressed data.
+   * @param  startRecordNumber  The one-based record number of the first change
+   *                            record at or after the start offset.
+   *
+   * @return  The parallel LDIF change reader that was created.
+   *
+   * @throws  IOException  If a problem occurs while opening the file, or if the
+   *                       start offset is not valid for the file.
+   */
+  public static ParallelLDIFChangeReader open(final File ldifFile,
+                                              final int numParseThreads,
+                                              final long startOffset,
+                                              final long startRecordNumber)
+         throws IOException
+  {
+    if (startOffset <= 0L)
+    {
+      final InputStream inputStream =
+           decompressIfNecessary(new FileInputStream(ldifFile));
+      return new ParallelLDIFChangeReader(inputStream, numParseThreads, 0L,
+           startRecordNumber);
+    }
+
+    final FileInputStream fileInputStream = new FileInputStream(ldifFile);
+    try
+    {
+      final FileChannel channel = fileInputStream.getChannel();
+      final byte[] header = new byte[2];
+      final boolean compressed =
+           (fileInputStream.read(header) == 2) &&
+           ((header[0] & 0xFF) == 0x1F) && ((header[1] & 0xFF) == 0x8B);
+
+      final InputStream inputStream;
+      if (compressed)
+      {
+        channel.position(0L);
+        inputStream = new GZIPInputStream(
+             new BufferedInputStream(fileInputStream, READ_BUFFER_SIZE),
+             READ_BUFFER_SIZE);
+        long remaining = startOffset;
+        while (remaining > 0L)
+        {
+          final long skipped = inputStream.skip(remaining);
+          if (skipped <= 0L)
+          {
+            throw new IOException("Unable to skip to byte offset " +
+                 startOffset + " in LDIF file '" +
+                 ldifFile.getAbsolutePath() + "' because the uncompressed " +
+                 "data is shorter than that.");
+          }
+
+          remaining -= skipped;
+        }
+      }
+      else
+      {
+        // Make sure that the offset is within the file and immediately
+        // follows the end of a line, which should be the case for any offset
+        // at which a change record ended.
+        if (startOffset > channel.size())
+        {
+          throw new IOException("Unable to seek to byte offset " +
+               startOffset + " in LDIF file '" + ldifFile.getAbsolutePath() +
+               "' because the file is only " + channel.size() +
+               " bytes long.");
+        }
+
+        channel.position(startOffset - 1L);
+        if ((startOffset < channel.size()) && (fileInputStream.read() != '\n'))
+        {
+          throw new IOException("Byte offset " + startOffset +
+               " in LDIF file '" + ldifFile.getAbsolutePath() +
+               "' is not at the end of a change record.  The file may " +
+               "have been altered.");
+        }
+
+        channel.position(startOffset);
+        inputStream = fileInputStream;
+      }
+
+      return new ParallelLDIFChangeReader(inputStream, numParseThreads,
+           startOffset, startRecordNumber);
+    }
+    catch (final IOException e)
+    {
+      Debug.debugException(e);
+      fileInputStream.close();
+      throw e;
+    }
+  }
+
+
+
+  /**
+   * Wraps the provided input stream so that it will be decompressed if it
+   * starts with the gzip magic number.
+   *
+   * @param  inputStream  The input stream to examine.
+   *
+   * @return  An input stream that may be used to read the uncompressed data.
+   *
+   * @throws  IOException  If a problem occurs while reading from the input
+   *                       stream.
+   */
+  static InputStream decompressIfNecessary(final InputStream inputStream)
+         throws IOException
+  {
+    final BufferedInputStream bufferedInputStream =
+         new BufferedInputStream(inputStream, READ_BUFFER_SIZE);
+    bufferedInputStream.mark(2);
+    final int firstByte = bufferedInputStream.read();
+    final int secondByte = bufferedInputStream.read();
+    bufferedInputStream.reset();
+
+    if ((firstByte == 0x1F) && (secondByte == 0x8B))
+    {
+      return new GZIPInputStream(bufferedInputStream, READ_BUFFER_SIZE);
+    }
+    else
+    {
+      return bufferedInputStream;
+    }
+  }
+
+
+
+  /**
+   * Reads the next change from the LDIF source.
+   *
+   * @return  The next change from the LDIF source, or {@code null} if there are
+   *          no more changes to read.
+   *
+   * @throws  IOException  If a problem occurs while reading from the LDIF
+   *                       source.
+   *
+   * @throws  LDIFException  If the LDIF source contains a malformed change
+   *                         record.
+   *
+   * @throws  LDAPException  If the LDIF source contains a change record that
+   *                         cannot be included in a multi-update request.
+   */
+  @Override()
+  public ParsedLDIFChange read()
+         throws IOException, LDIFException, LDAPException
+  {
+    while (! currentGroup.hasNext())
+    {
+      if (endOfInput)
+      {
+        return null;
+      }
+
+      final List<ParsedLDIFChange> group;
+      try
+      {
+        group = queue.take().get();
+      }
+      catch (final InterruptedException e)
+      {
+        Debug.debugException(e);
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted while waiting for the next " +
+             "change record to be read.", e);
+      }
+      catch (final ExecutionException e)
+      {
+        Debug.debugException(e);
+        endOfInput = true;
+
+        final Throwable cause = e.getCause();
+        if (cause instanceof IOException)
+        {
+          throw (IOException) cause;
+        }
+        else if (cause instanceof LDIFException)
+        {
+          throw (LDIFException) cause;
+        }
+        else if (cause instanceof LDAPException)
+        {
+          throw (LDAPException) cause;
+        }
+        else
+        {
+          throw new IOException(StaticUtils.getExceptionMessage(cause), cause);
+        }
+      }
+
+      if (group == null)
+      {
+        endOfInput = true;
+        return null;
+      }
+
+      currentGroup = group.iterator();
+    }
+
+    return currentGroup.next();
+  }
+
+
+
+  /**
+   * Closes this reader and the underlying input stream (unless that is
+   * standard input), and stops the reader and parse threads.  The reader
+   * thread is not waited for, since it may be blocked reading from standard
+   * input, but it will exit the next time it tries to add to the queue.
+   *
+   * @throws  IOException  If a problem occurs while closing the input stream.
+   */
+  @Override()
+  public void close()
+         throws IOException
+  {
+    closed = true;
+    readerThread.interrupt();
+    if (parseExecutor != null)
+    {
+      parseExecutor.shutdownNow();
+    }
+
+    queue.clear();
+    inputStream.close();
+  }
+
+
+
+  /**
+   * Reads the raw input, splits it into change records, and adds groups of
+   * those records to the queue to be parsed.  This method is invoked by the
+   * reader thread.
+   *
+   * @param  startRecordNumber  The one-based record number of the first change
+   *                            record that will be read.
+   */
+  private void readRecords(final long startRecordNumber)
+  {
+    try
+    {
+      long recordNumber = startRecordNumber;
+      long firstLineNumber = 1L;
+      boolean recordHasContent = false;
+      boolean lastWasComment = false;
+      boolean versionAllowed = (offset == 0L);
+      final List<String> recordLines = new ArrayList<>(20);
+      List<RawRecord> group = new ArrayList<>(RECORDS_PER_PARSE_TASK);
+      while (! closed)
+      {
+        final String line = readLine();
+        if ((line == null) || line.isEmpty())
+        {
+          // A blank line or the end of the input marks the end of a record.
+          // Records that only contain comments will be ignored.
+          if (recordHasContent)
+          {
+            final String[] lines = new String[recordLines.size()];
+            group.add(new RawRecord(recordNumber++, firstLineNumber, offset,
+                 recordLines.toArray(lines)));
+            if (group.size() >= RECORDS_PER_PARSE_TASK)
+            {
+              queue.put(submitGroup(group));
+              group = new ArrayList<>(RECORDS_PER_PARSE_TASK);
+            }
+          }
+
+          recordLines.clear();
+          recordHasContent = false;
+          lastWasComment = false;
+          firstLineNumber = lineNumber + 1L;
+
+          if (line == null)
+          {
+            break;
+          }
+          else
+          {
+            continue;
+          }
+        }
+
+        if (line.charAt(0) == '#')
+        {
+          lastWasComment = true;
+        }
+        else if ((line.charAt(0) == ' ') && (! recordHasContent))
+        {
+          // This is either the continuation of a comment, which is fine, or
+          // a malformed record, which the parser will reject.
+          if (! lastWasComment)
+          {
+            recordHasContent = true;
+          }
+        }
+        else if (versionAllowed && (! recordHasContent) &&
+             StaticUtils.toLowerCase(line).startsWith("version:"))
+        {
+          // Skip the optional version line at the start of the LDIF content,
+          // along with any comments before it, so that the first record's
+          // line numbers are counted from the line after it.
+          versionAllowed = false;
+          recordLines.clear();
+          lastWasComment = false;
+          firstLineNumber = lineNumber + 1L;
+          continue;
+        }
+        else
+        {
+          lastWasComment = false;
+          recordHasContent = true;
+          versionAllowed = false;
+        }
+
+        recordLines.add(line);
+      }
+
+      if (! group.isEmpty())
+      {
+        queue.put(submitGroup(group));
+      }
+
+      queue.put(END_OF_INPUT);
+    }
+    catch (final InterruptedException e)
+    {
+      // This will only happen if the reader is being closed.
+      Debug.debugException(e);
+    }
+    catch (final Exception e)
+    {
+      Debug.debugException(e);
+
+      final CompletableFuture<List<ParsedLDIFChange>> failure =
+           new CompletableFuture<>();
+      failure.completeExceptionally(e);
+      try
+      {
+        if (! closed)
+        {
+          queue.put(failure);
+        }
+      }
+      catch (final InterruptedException ie)
+      {
+        Debug.debugException(ie);
+      }
+    }
+  }
+
+
+
+  /**
+   * Arranges for the provided group of raw records to be parsed, either by the
+   * parse threads or immediately on the current thread.
+   *
+   * @param  group  The group of records to parse.
+   *
+   * @return  A future that will provide the parsed changes.
+   */
+  private Future<List<ParsedLDIFChange>> submitGroup(
+                                              final List<RawRecord> group)
+  {
+    if (parseExecutor != null)
+    {
+      return parseExecutor.submit(() -> parseGroup(group));
+    }
+
+    final CompletableFuture<List<ParsedLDIFChange>> future =
+         new CompletableFuture<>();
+    try
+    {
+      future.complete(parseGroup(group));
+    }
+    catch (final Exception e)
+    {
+      Debug.debugException(e);
+      future.completeExceptionally(e);
+    }
+
+    return future;
+  }
+
+
+
+  /**
+   * Parses the provided group of raw records.
+   *
+   * @param  group  The group of records to parse.
+   *
+   * @return  The parsed changes.
+   *
+   * @throws  LDIFException  If any of the records is malformed.
+   *
+   * @throws  LDAPException  If any of the records cannot be included in a
+   *                         multi-update request.
+   */
+  private static List<ParsedLDIFChange> parseGroup(final List<RawRecord> group)
+          throws LDIFException, LDAPException
+  {
+    final List<ParsedLDIFChange> changes = new ArrayList<>(group.size());
+    for (final RawRecord r : group)
+    {
+      final LDIFChangeRecord changeRecord;
+      try
+      {
+        changeRecord = LDIFReader.decodeChangeRecord(true, r.lines);
+      }
+      catch (final LDIFException e)
+      {
+        Debug.debugException(e);
+        throw new LDIFException(
+             "Unable to parse change record " + r.recordNumber +
+                  " starting at line " + r.firstLineNumber + ":  " +
+                  e.getMessage(),
+             r.firstLineNumber + e.getLineNumber(), false, e);
+      }
+
+      changes.add(new ParsedLDIFChange(r.recordNumber, r.endOffset,
+           MultiUpdateBatchReader.toLDAPRequest(changeRecord)));
+    }
+
+    return changes;
+  }
+
+
+
+  /**
+   * Reads the next line from the input, updating the byte offset and line
+   * number.  The line terminator, which may be either a line feed or a carriage
+   * return followed by a line feed, will not be included.
+   *
+   * @return  The line that was read, or {@code null} if the end of the input
+   *          has been reached.
+   *
+   * @throws  IOException  If a problem occurs while reading from the input.
+   */
+  private String readLine()
+          throws IOException
+  {
+    lineLength = 0;
+    boolean readAny = false;
+    while (true)
+    {
+      if (readBufferPos >= readBufferLimit)
+      {
+        readBufferPos = 0;
+        readBufferLimit = inputStream.read(readBuffer);
+        if (readBufferLimit < 0)
+        {
+          readBufferLimit = 0;
+          if (readAny)
+          {
+            break;
+          }
+          else
+          {
+            return null;
+          }
+        }
+      }
+
+      readAny = true;
+      final int start = readBufferPos;
+      while ((readBufferPos < readBufferLimit) &&
+           (readBuffer[readBufferPos] != '\n'))
+      {
+        readBufferPos++;
+      }
+
+      appendToLine(start, readBufferPos - start);
+      if (readBufferPos < readBufferLimit)
+      {
+        // Consume the line feed.
+        readBufferPos++;
+        offset += (readBufferPos - start);
+        break;
+      }
+      else
+      {
+        offset += (readBufferPos - start);
+      }
+    }
+
+    lineNumber++;
+    int length = lineLength;
+    if ((length > 0) && (lineBuffer[length - 1] == '\r'))
+    {
+      length--;
+    }
+
+    return new String(lineBuffer, 0, length, StandardCharsets.UTF_8);
+  }
+
+
+
+  /**
+   * Appends the specified portion of the read buffer to the line buffer,
+   * growing the line buffer if necessary.
+   *
+   * @param  start   The position in the read buffer of the first byte to
+   *                 append.
+   * @param  length  The number of bytes to append.
+   */
+  private void appendToLine(final int start, final int length)
+  {
+    if (lineLength + length > lineBuffer.length)
+    {
+      final byte[] newLineBuffer =
+           new byte[Math.max(lineBuffer.length * 2, lineLength + length)];
+      System.arraycopy(lineBuffer, 0, newLineBuffer, 0, lineLength);
+      lineBuffer = newLineBuffer;
+    }
+
+    System.arraycopy(readBuffer, start, lineBuffer, lineLength, length);
+    lineLength += length;
+  }
+
+
+
+  /**
+   * This class holds the unparsed lines of a change record.
+   */
+  private static final class RawRecord
+  {
+    // The byte offset immediately after the end of the record.
+    private final long endOffset;
+
+    // The line number of the first line of the record.
+    private final long firstLineNumber;
+
+    // The one-based position of the record in the LDIF source.
+    private final long recordNumber;
+
+    // The lines that make up the record.
+    private final String[] lines;
+
+
+
+    /**
+     * Creates a new raw record with the provided information.
+     *
+     * @param  recordNumber     The one-based position of the record in the
+     *                          LDIF source.
+     * @param  firstLineNumber  The line number of the first line of the
+     *                          record.
+     * @param  endOffset        The byte offset immediately after the end of
+     *                          the record.
+     * @param  lines            The lines that make up the record.
+     */
+    private RawRecord(final long recordNumber, final long firstLineNumber,
+                      final long endOffset, final String[] lines)
+    {
+      this.recordNumber = recordNumber;
+      this.firstLineNumber = firstLineNumber;
+      this.endOffset = endOffset;
+      this.lines = lines;
+    }
+  }
+}
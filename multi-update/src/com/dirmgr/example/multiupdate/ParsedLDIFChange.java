@@ -0,0 +1,123 @@
+/*
+ * Copyright 2019 Neil A. Wilson
+ * All Rights Reserved.
+ */
+/*
+ * Copyright (C) 2019 Neil A. Wilson
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPLv2 only)
+ * or the terms of the GNU Lesser General Public License (LGPLv2.1 only)
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, see <http://www.gnu.org/licenses>.
+ */
+/*
+ * Copyright 2019 Neil A. Wilson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dirmgr.example.multiupdate;
+
+
+
+import com.unboundid.ldap.sdk.LDAPRequest;
+import com.unboundid.util.ThreadSafety;
+import com.unboundid.util.ThreadSafetyLevel;
+
+
+
+/**
+ * This class holds a change record that has been read from an LDIF source and
+ * converted to an LDAP request, along with information about where the record
+ * appeared in that source.
+ */
+@ThreadSafety(level=ThreadSafetyLevel.COMPLETELY_THREADSAFE)
+public final class ParsedLDIFChange
+{
+  // The request created from the change record.
+  private final LDAPRequest request;
+
+  // The byte offset in the LDIF source immediately after the end of the change
+  // record and any blank line that terminated it.
+  private final long endOffset;
+
+  // The one-based position of the change record in the LDIF source.
+  private final long recordNumber;
+
+
+
+  /**
+   * Creates a new parsed LDIF change with the provided information.
+   *
+   * @param  recordNumber  The one-based position of the change record in the
+   *                       LDIF source.
+   * @param  endOffset     The byte offset in the LDIF source immediately after
+   *                       the end of the change record and any blank line
+   *                       that terminated it.
+   * @param  request       The request created from the change record.
+   */
+  public ParsedLDIFChange(final long recordNumber, final long endOffset,
+                          final LDAPRequest request)
+  {
+    this.recordNumber = recordNumber;
+    this.endOffset = endOffset;
+    this.request = request;
+  }
+
+
+
+  /**
+   * Retrieves the one-based position of the change record in the LDIF source.
+   *
+   * @return  The one-based position of the change record in the LDIF source.
+   */
+  public long getRecordNumber()
+  {
+    return recordNumber;
+  }
+
+
+
+  /**
+   * Retrieves the byte offset in the LDIF source immediately after the end of
+   * the change record and any blank line that terminated it.  Reading may be
+   * resumed at this offset to skip this change and all changes before it.
+   * For compressed input, the offset is in the uncompressed data.
+   *
+   * @return  The byte offset in the LDIF source immediately after the end of
+   *          the change record.
+   */
+  public long getEndOffset()
+  {
+    return endOffset;
+  }
+
+
+
+  /**
+   * Retrieves the request created from the change record.
+   *
+   * @return  The request created from the change record.
+   */
+  public LDAPRequest getRequest()
+  {
+    return request;
+  }
+}
@@ -0,0 +1,262 @@
+/*
+ * Copyright 2019 Neil A. Wilson
+ * All Rights Reserved.
+ */
+/*
+ * Copyright (C) 2019 Neil A. Wilson
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPLv2 only)
+ * or the terms of the GNU Lesser General Public License (LGPLv2.1 only)
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, see <http://www.gnu.org/licenses>.
+ */
+/*
+ * Copyright 2019 Neil A. Wilson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dirmgr.example.multiupdate;
+
+
+
+import java.io.File;
+import java.io.IOException;
+
+import com.unboundid.ldap.sdk.LDAPException;
+import com.unboundid.ldap.sdk.ResultCode;
+import com.unboundid.util.CommandLineTool;
+import com.unboundid.util.Debug;
+import com.unboundid.util.StaticUtils;
+import com.unboundid.util.ThreadSafety;
+import com.unboundid.util.ThreadSafetyLevel;
+
+
+
+/**
+ * This class handles the parts of a {@link MultiUpdateLDAPModify} run that
+ * are specific to checkpointing and resuming.  It reads the checkpoint from
+ * which processing should resume, if any, to find the position in the LDIF
+ * file of the first change that hasn't been acknowledged, and it uses a
+ * {@link CheckpointTracker} to advance the checkpoint past the changes that
+ * the server acknowledges as the batches are processed.
+ */
+@ThreadSafety(level=ThreadSafetyLevel.NOT_THREADSAFE)
+public final class ResumeModeHandler
+{
+  // The tracker that keeps the checkpoint file up to date.
+  private final CheckpointTracker checkpointTracker;
+
+  // The tool used to write messages.
+  private final CommandLineTool tool;
+
+  // The byte offset in the LDIF file at which to start reading.
+  private final long startOffset;
+
+  // The record number of the first change to read.
+  private final long startRecordNumber;
+
+
+
+  /**
+   * Creates a new resume mode handler with the provided information.
+   *
+   * @param  tool               The tool used to write messages.
+   * @param  checkpointTracker  The tracker that keeps the checkpoint file up
+   *                            to date.
+   * @param  startOffset        The byte offset in the LDIF file at which to
+   *                            start reading.
+   * @param  startRecordNumber  The record number of the first change to read.
+   */
+  private ResumeModeHandler(final CommandLineTool tool,
+                            final CheckpointTracker checkpointTracker,
+                            final long startOffset,
+                            final long startRecordNumber)
+  {
+    this.tool = tool;
+    this.checkpointTracker = checkpointTracker;
+    this.startOffset = startOffset;
+    this.startRecordNumber = startRecordNumber;
+  }
+
+
+
+  /**
+   * Creates a resume mode handler for the provided checkpoint file, reading
+   * the checkpoint from which processing should resume if appropriate.
+   *
+   * @param  tool            The tool used to write messages.
+   * @param  checkpointFile  The checkpoint file provided to the tool.
+   * @param  ldifFile        The LDIF file from which the changes are read.
+   * @param  resume          Indicates whether processing should resume from
+   *                         the checkpoint in the file, if it exists, rather
+   *                         than starting at the beginning of the LDIF file.
+   *
+   * @return  The resume mode handler that was created.
+   *
+   * @throws  LDAPException  If the checkpoint file can't be read, or if it was
+   *                         created for a different LDIF file.
+   */
+  public static ResumeModeHandler open(final CommandLineTool tool,
+                                       final File checkpointFile,
+                                       final File ldifFile,
+                                       final boolean resume)
+         throws LDAPException
+  {
+    final String ldifFilePath = ldifFile.getAbsolutePath();
+    final MultiUpdateCheckpoint checkpoint =
+         readResumeCheckpoint(checkpointFile, ldifFilePath, resume);
+
+    long startOffset = 0L;
+    long startRecordNumber = 1L;
+    if (checkpoint != null)
+    {
+      startOffset = checkpoint.getByteOffset();
+      startRecordNumber = checkpoint.getRecordNumber() + 1L;
+      tool.out("Resuming processing after change ",
+           checkpoint.getRecordNumber(), " at byte offset ", startOffset,
+           " of the LDIF file.");
+      tool.out();
+    }
+
+    return new ResumeModeHandler(tool,
+         new CheckpointTracker(checkpointFile, ldifFilePath), startOffset,
+         startRecordNumber);
+  }
+
+
+
+  /**
+   * Reads the checkpoint from which processing should resume, if any.
+   *
+   * @param  checkpointFile  The checkpoint file provided to the tool.
+   * @param  ldifFilePath    The absolute path to the LDIF file from which the
+   *                         changes are read.
+   * @param  resume          Indicates whether processing should resume from
+   *                         the checkpoint.
+   *
+   * @return  The checkpoint from which processing should resume, or
+   *          {@code null} if processing should start at the beginning of the
+   *          LDIF file.
+   *
+   * @throws  LDAPException  If the checkpoint file can't be read, or if it was
+   *                         created for a different LDIF file.
+   */
+  private static MultiUpdateCheckpoint readResumeCheckpoint(
+                      final File checkpointFile, final String ldifFilePath,
+                      final boolean resume)
+          throws LDAPException
+  {
+    if ((! resume) || (! checkpointFile.exists()))
+    {
+      return null;
+    }
+
+    final MultiUpdateCheckpoint checkpoint;
+    try
+    {
+      checkpoint = MultiUpdateCheckpoint.read(checkpointFile);
+    }
+    catch (final Exception e)
+    {
+      Debug.debugException(e);
+      throw new LDAPException(ResultCode.LOCAL_ERROR,
+           "An error occurred while trying to read checkpoint file '" +
+                checkpointFile.getAbsolutePath() + "':  " +
+                StaticUtils.getExceptionMessage(e),
+           e);
+    }
+
+    if (! checkpoint.getLDIFFilePath().equals(ldifFilePath))
+    {
+      throw new LDAPException(ResultCode.PARAM_ERROR,
+           "Checkpoint file '" + checkpointFile.getAbsolutePath() +
+                "' was created for LDIF file '" +
+                checkpoint.getLDIFFilePath() + "' rather than '" +
+                ldifFilePath + "'.");
+    }
+
+    return checkpoint;
+  }
+
+
+
+  /**
+   * Retrieves the byte offset in the LDIF file at which to start reading.
+   *
+   * @return  The byte offset in the LDIF file at which to start reading, or
+   *          zero to start at the beginning.
+   */
+  public long getStartOffset()
+  {
+    return startOffset;
+  }
+
+
+
+  /**
+   * Retrieves the record number of the first change to read.
+   *
+   * @return  The record number of the first change to read.
+   */
+  public long getStartRecordNumber()
+  {
+    return startRecordNumber;
+  }
+
+
+
+  /**
+   * Advances the checkpoint past the requests at the start of the provided
+   * batch that the server has acknowledged, once there are no unresolved
+   * retries.
+   *
+   * @param  batch                 The batch whose results were received.
+   * @param  acknowledgedRequests  The number of requests at the start of the
+   *                               batch that the server has acknowledged or
+   *                               that are waiting to be retried.
+   * @param  retryScheduler        The scheduler used to retry changes, or
+   *                               {@code null} if changes are not retried.
+   *
+   * @return  {@code null} if the checkpoint was advanced or didn't need to
+   *          be, or a result code that indicates why no further batches
+   *          should be sent if it couldn't be written.
+   */
+  public ResultCode batchCompleted(final MultiUpdateBatch batch,
+                                   final int acknowledgedRequests,
+                                   final ChangeRetryScheduler retryScheduler)
+  {
+    try
+    {
+      checkpointTracker.batchCompleted(batch, acknowledgedRequests,
+           retryScheduler);
+      return null;
+    }
+    catch (final IOException e)
+    {
+      Debug.debugException(e);
+      tool.err("An error occurred while trying to write checkpoint file '",
+           checkpointTracker.getCheckpointFile().getAbsolutePath(), "':  ",
+           StaticUtils.getExceptionMessage(e),
+           ".  No further batches will be sent.");
+      return ResultCode.LOCAL_ERROR;
+    }
+  }
+}
@@ -0,0 +1,295 @@
+/*
+ * Copyright 2019 Neil A. Wilson
+ * All Rights Reserved.
+ */
+/*
+ * Copyright (C) 2019 Neil A. Wilson
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPLv2 only)
+ * or the terms of the GNU Lesser General Public License (LGPLv2.1 only)
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, see <http://www.gnu.org/licenses>.
+ */
+/*
+ * Copyright 2019 Neil A. Wilson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dirmgr.example.multiupdate;
+
+
+
+import java.util.List;
+
+import com.unboundid.ldap.sdk.AddRequest;
+import com.unboundid.ldap.sdk.DeleteRequest;
+import com.unboundid.ldap.sdk.LDAPRequest;
+import com.unboundid.ldap.sdk.ModifyDNRequest;
+import com.unboundid.ldap.sdk.ModifyRequest;
+import com.unboundid.ldap.sdk.ResultCode;
+import com.unboundid.ldap.sdk.unboundidds.extensions.MultiUpdateExtendedResult;
+import com.unboundid.util.CommandLineTool;
+import com.unboundid.util.Debug;
+import com.unboundid.util.ThreadSafety;
+import com.unboundid.util.ThreadSafetyLevel;
+
+
+
+/**
+ * This class handles the parts of a {@link MultiUpdateLDAPModify} run that
+ * are specific to retrying changes that fail with a transient result code.
+ * It schedules those changes to be sent again with a {@link
+ * ChangeRetryScheduler}, reports when they are scheduled, waits until the
+ * next of them is due, and writes a summary of what became of them once
+ * processing is complete.
+ */
+@ThreadSafety(level=ThreadSafetyLevel.NOT_THREADSAFE)
+public final class RetryModeHandler
+{
+  // The scheduler used to retry changes.
+  private final ChangeRetryScheduler retryScheduler;
+
+  // The tool used to write messages.
+  private final CommandLineTool tool;
+
+
+
+  /**
+   * Creates a new retry mode handler with the provided information.
+   *
+   * @param  tool                   The tool used to write messages.
+   * @param  maxRetryAttempts       The maximum number of times that a change
+   *                                will be retried.  It must be greater than
+   *                                zero.
+   * @param  initialDelayMillis     The delay in milliseconds before the
+   *                                first retry of a change.
+   * @param  maxDelayMillis         The maximum delay in milliseconds before
+   *                                any retry.
+   */
+  public RetryModeHandler(final CommandLineTool tool,
+                          final int maxRetryAttempts,
+                          final long initialDelayMillis,
+                          final long maxDelayMillis)
+  {
+    this.tool = tool;
+
+    retryScheduler = new ChangeRetryScheduler(maxRetryAttempts,
+         initialDelayMillis, maxDelayMillis);
+  }
+
+
+
+  /**
+   * Retrieves the scheduler used to retry changes.
+   *
+   * @return  The scheduler used to retry changes.
+   */
+  public ChangeRetryScheduler getRetryScheduler()
+  {
+    return retryScheduler;
+  }
+
+
+
+  /**
+   * Waits until the next batch of changes to retry is due.
+   *
+   * @return  {@code true} if the next batch is due, or {@code false} if the
+   *          thread was interrupted, in which case none of the changes
+   *          waiting to be retried will be retried.
+   */
+  public boolean awaitNextRetry()
+  {
+    try
+    {
+      Thread.sleep(retryScheduler.getMillisUntilNextRetry());
+      return true;
+    }
+    catch (final InterruptedException e)
+    {
+      Debug.debugException(e);
+      Thread.currentThread().interrupt();
+      tool.err("Interrupted while waiting to retry changes that failed with ",
+           "a transient result code.  They will not be retried.");
+      retryScheduler.stopRetrying();
+      return false;
+    }
+  }
+
+
+
+  /**
+   * Schedules any changes in the provided batch that failed with a transient
+   * result code to be retried in a later batch.
+   *
+   * @param  batch              The batch whose results were received.
+   * @param  multiUpdateResult  The multi-update extended result for the batch.
+   */
+  public void scheduleRetries(final MultiUpdateBatch batch,
+                   final MultiUpdateExtendedResult multiUpdateResult)
+  {
+    final ChangeRetryScheduler.RetryBatch scheduledRetry =
+         retryScheduler.processResults(batch, multiUpdateResult);
+    if (scheduledRetry != null)
+    {
+      tool.out(scheduledRetry.getBatch().getRequests().size(),
+           " changes from batch ", batch.getBatchNumber(),
+           " failed with a transient result code and will be sent ",
+           "again in approximately ", scheduledRetry.getDelayMillis(),
+           " ms.");
+      tool.out();
+    }
+  }
+
+
+
+  /**
+   * Writes a summary of the changes that were retried after failing with a
+   * transient result code, listing the changes that were eventually applied
+   * separately from those that could not be applied.
+   *
+   * @return  The result code for the first change that still failed with a
+   *          transient result code when it was last attempted, or
+   *          {@code null} if there were no such changes.
+   */
+  public ResultCode reportSummary()
+  {
+    final List<ChangeRetryScheduler.ChangeOutcome> recoveredChanges =
+         retryScheduler.getRecoveredChanges();
+    final List<ChangeRetryScheduler.ChangeOutcome> permanentFailures =
+         retryScheduler.getPermanentFailures();
+
+    // Every change that failed with a transient result code either succeeded
+    // eventually or is now listed as a permanent failure.
+    final long transientFailureCount =
+         retryScheduler.getTransientFailureCount();
+    final long unrecoveredChangeCount =
+         transientFailureCount - recoveredChanges.size();
+    long supersededChangeCount = 0L;
+    for (final ChangeRetryScheduler.ChangeOutcome outcome : permanentFailures)
+    {
+      if (outcome.wasSuperseded())
+      {
+        supersededChangeCount++;
+      }
+    }
+
+    final String supersededString;
+    if (supersededChangeCount == 0L)
+    {
+      supersededString = ".  ";
+    }
+    else
+    {
+      supersededString = ", including " + supersededChangeCount +
+           " that were not retried because a later change to the same " +
+           "entry had already been sent.  ";
+    }
+
+    tool.out("Retry summary:  ", transientFailureCount, " changes failed with ",
+         "a transient result code.  ", recoveredChanges.size(),
+         " of them were applied after being retried, and ",
+         unrecoveredChangeCount, " could not be applied", supersededString,
+         (permanentFailures.size() - unrecoveredChangeCount), " other ",
+         "changes failed with a result code that does not allow retrying.");
+
+    if (! recoveredChanges.isEmpty())
+    {
+      tool.out();
+      tool.out("Changes applied after being retried:");
+      for (final ChangeRetryScheduler.ChangeOutcome outcome : recoveredChanges)
+      {
+        tool.out("  ", describeChange(outcome.getRequest()), " from batch ",
+             outcome.getBatchNumber(), " was applied on attempt ",
+             outcome.getAttempts(), ".");
+      }
+    }
+
+    if (! permanentFailures.isEmpty())
+    {
+      tool.out();
+      tool.out("Changes that could not be applied:");
+      for (final ChangeRetryScheduler.ChangeOutcome outcome : permanentFailures)
+      {
+        final String attemptsString;
+        if (outcome.wasSuperseded())
+        {
+          attemptsString = " on attempt " + outcome.getAttempts() +
+               " and was not retried because a later change to the same " +
+               "entry had already been sent.";
+        }
+        else if (outcome.getAttempts() == 1)
+        {
+          attemptsString = " on its only attempt.";
+        }
+        else
+        {
+          attemptsString = " after " + outcome.getAttempts() + " attempts.";
+        }
+
+        tool.out("  ", describeChange(outcome.getRequest()), " from batch ",
+             outcome.getBatchNumber(), " failed with result code ",
+             String.valueOf(outcome.getResultCode()), attemptsString);
+      }
+    }
+
+    tool.out();
+
+
+    // Transient failures were left out of the result code for the batches in
+    // which they occurred, so use the first one that was never resolved.
+    for (final ChangeRetryScheduler.ChangeOutcome outcome : permanentFailures)
+    {
+      if (ChangeRetryScheduler.isRetryable(outcome.getResultCode()))
+      {
+        return outcome.getResultCode();
+      }
+    }
+
+    return null;
+  }
+
+
+
+  /**
+   * Retrieves a brief description of the provided change for use in messages.
+   *
+   * @param  request  The request used to send the change.
+   *
+   * @return  A brief description of the provided change.
+   */
+  private static String describeChange(final LDAPRequest request)
+  {
+    switch (request.getOperationType())
+    {
+      case ADD:
+        return "Add of " + ((AddRequest) request).getDN();
+      case DELETE:
+        return "Delete of " + ((DeleteRequest) request).getDN();
+      case MODIFY:
+        return "Modify of " + ((ModifyRequest) request).getDN();
+      case MODIFY_DN:
+        return "Modify DN of " + ((ModifyDNRequest) request).getDN();
+      default:
+        return String.valueOf(request);
+    }
+  }
+}
@@ -0,0 +1,300 @@
+/*
+ * Copyright 2019 Neil A. Wilson
+ * All Rights Reserved.
+ */
+/*
+ * Copyright (C) 2019 Neil A. Wilson
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPLv2 only)
+ * or the terms of the GNU Lesser General Public License (LGPLv2.1 only)
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, see <http://www.gnu.org/licenses>.
+ */
+/*
+ * Copyright 2019 Neil A. Wilson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dirmgr.example.multiupdate;
+
+
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.unboundid.ldap.sdk.LDAPException;
+import com.unboundid.ldif.LDIFChangeRecord;
+import com.unboundid.ldif.LDIFException;
+import com.unboundid.ldif.LDIFReader;
+import com.unboundid.util.ThreadSafety;
+import com.unboundid.util.ThreadSafetyLevel;
+
+
+
+/**
+ * This class provides a change source that reads the change records in an
+ * LDIF file in the reverse of the order in which they appear, which is the
+ * order in which the records in an undo log written by an
+ * {@link UndoLogWriter} need to be applied.  When the reader is opened, it
+ * makes a single pass through the file to find the position of each record,
+ * and it then reads each record directly from its position as it is needed.
+ * Only the positions are held in memory, so the amount of memory required is
+ * proportional to the number of records rather than to their size.
+ * <BR><BR>
+ * Because the records must be read from arbitrary positions, the file cannot
+ * be compressed.
+ */
+@ThreadSafety(level=ThreadSafetyLevel.NOT_THREADSAFE)
+public final class ReverseLDIFChangeReader
+       implements ChangeSource
+{
+  /**
+   * The size in bytes of the buffer used to find the records in the file.
+   */
+  private static final int READ_BUFFER_SIZE = 65_536;
+
+
+
+  // The channel used to read the records.
+  private final FileChannel channel;
+
+  // The index of the next record to read.
+  private int nextRecordIndex;
+
+  // The byte offsets at which each record starts and ends.
+  private final long[] endOffsets;
+  private final long[] startOffsets;
+
+  // The number of change records that have been returned.
+  private long changesRead;
+
+  // The file used to read the records.
+  private final RandomAccessFile randomAccessFile;
+
+
+
+  /**
+   * Creates a new reverse LDIF change reader with the provided information.
+   *
+   * @param  randomAccessFile  The file from which to read the records.
+   * @param  startOffsets      The byte offsets at which each record starts.
+   * @param  endOffsets        The byte offsets at which each record ends.
+   * @param  recordCount       The number of records in the file.
+   */
+  private ReverseLDIFChangeReader(final RandomAccessFile randomAccessFile,
+                                  final long[] startOffsets,
+                                  final long[] endOffsets,
+                                  final int recordCount)
+  {
+    this.randomAccessFile = randomAccessFile;
+    this.startOffsets = startOffsets;
+    this.endOffsets = endOffsets;
+
+    channel = randomAccessFile.getChannel();
+    nextRecordIndex = recordCount - 1;
+    changesRead = 0L;
+  }
+
+
+
+  /**
+   * Opens the specified LDIF file so that its change records can be read in
+   * reverse order.
+   *
+   * @param  ldifFile  The LDIF file to read.  It must not be {@code null}, and
+   *                   it must not be compressed.
+   *
+   * @return  The reverse LDIF change reader that was created.
+   *
+   * @throws  IOException  If a problem occurs while reading the file, or if it
+   *                       is compressed.
+   */
+  public static ReverseLDIFChangeReader open(final File ldifFile)
+         throws IOException
+  {
+    long[] startOffsets = new long[1024];
+    long[] endOffsets = new long[1024];
+    int recordCount = 0;
+
+    try (InputStream inputStream = new BufferedInputStream(
+              new FileInputStream(ldifFile), READ_BUFFER_SIZE))
+    {
+      // A record is a sequence of non-empty lines, and records are separated
+      // by one or more empty lines.
+      long offset = 0L;
+      long lineStart = 0L;
+      boolean lineEmpty = true;
+      boolean inRecord = false;
+      while (true)
+      {
+        final int b = inputStream.read();
+        if ((offset == 0L) && (b == 0x1F))
+        {
+          throw new IOException("LDIF file '" + ldifFile.getAbsolutePath() +
+               "' appears to be compressed, so it can't be read in reverse " +
+               "order.");
+        }
+
+        if ((b == '\n') || (b < 0))
+        {
+          if (lineEmpty)
+          {
+            if (inRecord)
+            {
+              endOffsets[recordCount] = lineStart;
+              recordCount++;
+              inRecord = false;
+            }
+          }
+          else if (! inRecord)
+          {
+            if (recordCount == startOffsets.length)
+            {
+              startOffsets = Arrays.copyOf(startOffsets, recordCount * 2);
+              endOffsets = Arrays.copyOf(endOffsets, recordCount * 2);
+            }
+
+            startOffsets[recordCount] = lineStart;
+            inRecord = true;
+          }
+
+          if (b < 0)
+          {
+            if (inRecord)
+            {
+              endOffsets[recordCount] = offset;
+              recordCount++;
+            }
+
+            break;
+          }
+
+          offset++;
+          lineStart = offset;
+          lineEmpty = true;
+          continue;
+        }
+
+        if (b != '\r')
+        {
+          lineEmpty = false;
+        }
+
+        offset++;
+      }
+    }
+
+    return new ReverseLDIFChangeReader(new RandomAccessFile(ldifFile, "r"),
+         startOffsets, endOffsets, recordCount);
+  }
+
+
+
+  /**
+   * Reads the next change record, working backward from the end of the file.
+   *
+   * @return  The next change record, or {@code null} if all of the records
+   *          have been read.
+   *
+   * @throws  IOException  If a problem occurs while reading from the file.
+   *
+   * @throws  LDIFException  If the file contains a malformed change record.
+   *
+   * @throws  LDAPException  If the file contains a change record that cannot
+   *                         be included in a multi-update request.
+   */
+  @Override()
+  public ParsedLDIFChange read()
+         throws IOException, LDIFException, LDAPException
+  {
+    while (nextRecordIndex >= 0)
+    {
+      final long startOffset = startOffsets[nextRecordIndex];
+      final ByteBuffer buffer = ByteBuffer.allocate(
+           (int) (endOffsets[nextRecordIndex] - startOffset));
+      nextRecordIndex--;
+
+      while (buffer.hasRemaining())
+      {
+        if (channel.read(buffer, startOffset + buffer.position()) < 0)
+        {
+          throw new IOException("The LDIF file ended unexpectedly.  It may " +
+               "have been altered after it was opened.");
+        }
+      }
+
+      // Remove any comments, along with their continuation lines, since a
+      // record that only has comments is not a change record.
+      final List<String> lines = new ArrayList<>(20);
+      boolean inComment = false;
+      for (final String line : new String(buffer.array(),
+           StandardCharsets.UTF_8).split("\r?\n"))
+      {
+        if (line.startsWith("#"))
+        {
+          inComment = true;
+        }
+        else if (! (inComment && line.startsWith(" ")))
+        {
+          inComment = false;
+          lines.add(line);
+        }
+      }
+
+      if (lines.isEmpty())
+      {
+        continue;
+      }
+
+      final LDIFChangeRecord changeRecord = LDIFReader.decodeChangeRecord(
+           lines.toArray(new String[lines.size()]));
+      changesRead++;
+      return new ParsedLDIFChange(changesRead, -1L,
+           MultiUpdateBatchReader.toLDAPRequest(changeRecord));
+    }
+
+    return null;
+  }
+
+
+
+  /**
+   * Closes the LDIF file.
+   *
+   * @throws  IOException  If a problem occurs while closing the file.
+   */
+  @Override()
+  public void close()
+         throws IOException
+  {
+    randomAccessFile.close();
+  }
+}
@@ -0,0 +1,608 @@
+/*
+ * Copyright 2019 Neil A. Wilson
+ * All Rights Reserved.
+ */
+/*
+ * Copyright (C) 2019 Neil A. Wilson
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPLv2 only)
+ * or the terms of the GNU Lesser General Public License (LGPLv2.1 only)
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, see <http://www.gnu.org/licenses>.
+ */
+/*
+ * Copyright 2019 Neil A. Wilson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dirmgr.example.multiupdate;
+
+
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+import com.unboundid.ldap.sdk.LDAPException;
+import com.unboundid.ldif.LDIFException;
+import com.unboundid.util.Debug;
+import com.unboundid.util.ObjectPair;
+import com.unboundid.util.StaticUtils;
+import com.unboundid.util.ThreadSafety;
+import com.unboundid.util.ThreadSafetyLevel;
+
+
+
+/**
+ * This class provides a change source that reads LDIF files as they are
+ * dropped into a spool directory, so that a single long-running process can
+ * apply them over a persistent connection.  Files are processed one at a time
+ * in the order of their names, and a file is considered ready as soon as it
+ * appears in the directory with a name that ends with ".ldif" or ".ldif.gz",
+ * so files should be written under some other name and then renamed.  Files
+ * whose names start with a period are ignored.
+ * <BR><BR>
+ * A {@code WatchService} is used to find out when new files arrive, but the
+ * contents of the directory are always listed again after an event, so a
+ * missed or overflowed event can't cause a file to be skipped.  The
+ * {@link #read} method never waits for a new file.  It returns {@code null}
+ * when all of the files that have arrived so far have been read, so that a
+ * partial batch can be sent right away, and the {@link #awaitFiles} method
+ * can then be used to wait for more.
+ * <BR><BR>
+ * The changes are numbered consecutively across all of the files.  Once the
+ * outcome of every change up to a given number is known, the
+ * {@link #archiveFilesCompletedThrough} method moves the files that have been
+ * completely read and whose changes are all covered to the archive directory,
+ * unless any of their changes could not be applied, in which case they are
+ * left in the spool directory and are not read again until the tool is run
+ * again.  A file is never archived before all of its changes have been
+ * applied, so if processing is interrupted, any file that is still in the
+ * spool directory will be processed again from the beginning, and each change
+ * will be applied at least once.
+ */
+@ThreadSafety(level=ThreadSafetyLevel.NOT_THREADSAFE)
+public final class SpoolDirectoryChangeSource
+       implements ChangeSource
+{
+  // The files that have been completely read but not yet archived, in the
+  // order in which they were read, along with the number of the last change
+  // in each.
+  private final ArrayDeque<ObjectPair<File,Long>> completedFiles;
+
+  // The directory to which files should be moved once their changes have been
+  // acknowledged.
+  private final File archiveDirectory;
+
+  // The spool directory.
+  private final File spoolDirectory;
+
+  // The file that is currently being read.
+  private File currentFile;
+
+  // The number of threads to use to parse the change records in each file.
+  private final int numParseThreads;
+
+  // The number of files that have been archived.
+  private long archivedFileCount;
+
+  // The number of the last change in the most recently archived or unapplied
+  // file.
+  private long lastHandledChangeNumber;
+
+  // The number of the last change that has been read.
+  private long lastChangeNumber;
+
+  // The reader for the file that is currently being read.
+  private ParallelLDIFChangeReader currentReader;
+
+  // The names of the files that have been read or are being read but have not
+  // yet been archived, including those left in the spool directory because
+  // some of their changes could not be applied, so that they won't be read
+  // again.
+  private final Set<String> openedFileNames;
+
+  // The names of the files that are waiting to be read, in the order in which
+  // they should be read.
+  private final TreeSet<String> pendingFileNames;
+
+  // The number of files that were left in the spool directory because some
+  // of their changes could not be applied.
+  private long unappliedFileCount;
+
+  // The watch service used to find out when new files arrive.
+  private final WatchService watchService;
+
+
+
+  /**
+   * Creates a new spool directory change source with the provided
+   * information.
+   *
+   * @param  spoolDirectory    The directory into which LDIF files will be
+   *                           dropped.
+   * @param  archiveDirectory  The directory to which files should be moved
+   *                           once their changes have been acknowledged.
+   * @param  numParseThreads   The number of threads to use to parse the change
+   *                           records in each file.
+   * @param  watchService      The watch service used to find out when new
+   *                           files arrive.
+   */
+  private SpoolDirectoryChangeSource(final File spoolDirectory,
+                                     final File archiveDirectory,
+                                     final int numParseThreads,
+                                     final WatchService watchService)
+  {
+    this.spoolDirectory = spoolDirectory;
+    this.archiveDirectory = archiveDirectory;
+    this.numParseThreads = numParseThreads;
+    this.watchService = watchService;
+
+    completedFiles = new ArrayDeque<>(10);
+    openedFileNames = new HashSet<>(10);
+    pendingFileNames = new TreeSet<>();
+    currentFile = null;
+    currentReader = null;
+    archivedFileCount = 0L;
+    lastHandledChangeNumber = 0L;
+    lastChangeNumber = 0L;
+    unappliedFileCount = 0L;
+  }
+
+
+
+  /**
+   * Starts watching the provided spool directory and creates a change source
+   * that will read the files in it, starting with any files that are already
+   * there.
+   *
+   * @param  spoolDirectory    The directory into which LDIF files will be
+   *                           dropped.  It must not be {@code null}.
+   * @param  archiveDirectory  The directory to which files should be moved
+   *                           once their changes have been acknowledged.  It
+   *                           must not be {@code null}, and it should not be
+   *                           the same as the spool directory.
+   * @param  numParseThreads   The number of threads to use to parse the change
+   *                           records in each file.
+   *
+   * @return  The change source that was created.
+   *
+   * @throws  IOException  If a problem occurs while starting to watch the
+   *                       spool directory or while listing its contents.
+   */
+  public static SpoolDirectoryChangeSource open(final File spoolDirectory,
+                                                final File archiveDirectory,
+                                                final int numParseThreads)
+         throws IOException
+  {
+    final WatchService watchService =
+         FileSystems.getDefault().newWatchService();
+    try
+    {
+      // Start watching before listing the directory, so that a file that
+      // arrives in between will still trigger an event.
+      spoolDirectory.toPath().register(watchService,
+           StandardWatchEventKinds.ENTRY_CREATE,
+           StandardWatchEventKinds.ENTRY_MODIFY);
+
+      final SpoolDirectoryChangeSource source = new SpoolDirectoryChangeSource(
+           spoolDirectory, archiveDirectory, numParseThreads, watchService);
+      source.scanDirectory();
+      return source;
+    }
+    catch (final IOException e)
+    {
+      Debug.debugException(e);
+      watchService.close();
+      throw e;
+    }
+  }
+
+
+
+  /**
+   * {@inheritDoc}
+   * <BR><BR>
+   * This method will not wait for new files to arrive.  If all of the files
+   * that have arrived have been read, then it will return {@code null}, but a
+   * later call may return more changes.  The end offset for each change is
+   * its offset within the file from which it was read.
+   */
+  @Override()
+  public ParsedLDIFChange read()
+         throws IOException, LDIFException, LDAPException
+  {
+    while (true)
+    {
+      if (currentReader != null)
+      {
+        final ParsedLDIFChange change = readFromCurrentFile();
+        if (change != null)
+        {
+          lastChangeNumber++;
+          return new ParsedLDIFChange(lastChangeNumber, change.getEndOffset(),
+               change.getRequest());
+        }
+
+        currentReader.close();
+        currentReader = null;
+        completedFiles.addLast(new ObjectPair<>(currentFile, lastChangeNumber));
+        currentFile = null;
+      }
+
+      processWatchEvents();
+      final String nextFileName = pendingFileNames.pollFirst();
+      if (nextFileName == null)
+      {
+        return null;
+      }
+
+      currentFile = new File(spoolDirectory, nextFileName);
+      openedFileNames.add(nextFileName);
+      currentReader =
+           ParallelLDIFChangeReader.open(currentFile, numParseThreads);
+    }
+  }
+
+
+
+  /**
+   * Reads the next change from the file that is currently being read.  The
+   * message for any exception will include the path to the file.
+   *
+   * @return  The next change from the file that is currently being read, or
+   *          {@code null} if the end of the file has been reached.
+   *
+   * @throws  IOException  If a problem occurs while reading from the file.
+   *
+   * @throws  LDIFException  If the file contains a malformed LDIF record.
+   *
+   * @throws  LDAPException  If a change cannot be created or cannot be
+   *                         included in a multi-update request.
+   */
+  private ParsedLDIFChange readFromCurrentFile()
+          throws IOException, LDIFException, LDAPException
+  {
+    final String prefix =
+         "Error in file '" + currentFile.getAbsolutePath() + "':  ";
+    try
+    {
+      return currentReader.read();
+    }
+    catch (final IOException e)
+    {
+      Debug.debugException(e);
+      throw new IOException(prefix + StaticUtils.getExceptionMessage(e), e);
+    }
+    catch (final LDIFException e)
+    {
+      Debug.debugException(e);
+      throw new LDIFException(prefix + e.getMessage(), e.getLineNumber(),
+           e.mayContinueReading(), e);
+    }
+    catch (final LDAPException e)
+    {
+      Debug.debugException(e);
+      throw new LDAPException(e.getResultCode(), prefix + e.getMessage(), e);
+    }
+  }
+
+
+
+  /**
+   * Waits for a new file to arrive in the spool directory if there aren't any
+   * that are waiting to be read.
+   *
+   * @param  timeoutMillis  The maximum length of time in milliseconds to wait.
+   *                        A value that is less than or equal to zero
+   *                        indicates that it should wait indefinitely.
+   *
+   * @return  {@code true} if there is at least one file waiting to be read, or
+   *          {@code false} if the timeout expired first.
+   *
+   * @throws  IOException  If a problem occurs while listing the contents of
+   *                       the spool directory.
+   *
+   * @throws  InterruptedException  If the thread is interrupted while
+   *                                waiting.
+   */
+  public boolean awaitFiles(final long timeoutMillis)
+         throws IOException, InterruptedException
+  {
+    processWatchEvents();
+    if ((currentReader != null) || (! pendingFileNames.isEmpty()))
+    {
+      return true;
+    }
+
+    final long stopTimeNanos =
+         System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+    while (true)
+    {
+      final WatchKey key;
+      if (timeoutMillis <= 0L)
+      {
+        key = watchService.take();
+      }
+      else
+      {
+        final long remainingNanos = stopTimeNanos - System.nanoTime();
+        if (remainingNanos <= 0L)
+        {
+          return false;
+        }
+
+        key = watchService.poll(remainingNanos, TimeUnit.NANOSECONDS);
+        if (key == null)
+        {
+          return false;
+        }
+      }
+
+      key.pollEvents();
+      key.reset();
+      scanDirectory();
+      if (! pendingFileNames.isEmpty())
+      {
+        return true;
+      }
+    }
+  }
+
+
+
+  /**
+   * Moves each file that has been completely read and whose changes have all
+   * been applied to the archive directory.  If the archive directory already
+   * contains a file with the same name, then a numeric suffix will be
+   * appended to the name of the archived file.  A file with any change that
+   * could not be applied is left in the spool directory instead.
+   *
+   * @param  resolvedChangeNumber  The number of the last change for which it
+   *                               and every change before it are known to
+   *                               have been applied or not.
+   * @param  unappliedChanges      The ranges of change numbers covered by the
+   *                               changes that could not be applied, mapped
+   *                               from the first change number in each range
+   *                               to the last.  The ranges that end in a file
+   *                               that is handled will be removed from it.
+   * @param  unappliedFiles        A list to which each file that was left in
+   *                               the spool directory will be added, along
+   *                               with the number of its changes that could
+   *                               not be applied.
+   *
+   * @return  The files that were archived, in their new location, along with
+   *          the number of changes that each one contained.
+   *
+   * @throws  IOException  If a problem occurs while moving a file.  Any files
+   *                       before it will have been handled.
+   */
+  public List<ObjectPair<File,Long>> archiveFilesCompletedThrough(
+              final long resolvedChangeNumber,
+              final NavigableMap<Long,Long> unappliedChanges,
+              final List<ObjectPair<File,Long>> unappliedFiles)
+         throws IOException
+  {
+    final List<ObjectPair<File,Long>> archivedFiles = new ArrayList<>(1);
+    long firstChangeNumber = lastHandledChangeNumber + 1L;
+    while ((! completedFiles.isEmpty()) &&
+         (completedFiles.peekFirst().getSecond() <= resolvedChangeNumber))
+    {
+      final ObjectPair<File,Long> completedFile = completedFiles.peekFirst();
+      final File file = completedFile.getFirst();
+      final long lastFileChangeNumber = completedFile.getSecond();
+
+      // A range may start in an earlier file, so begin with the one that
+      // starts at or before the first change in this file.
+      long unappliedChangeCount = 0L;
+      final Long firstRangeKey = unappliedChanges.floorKey(firstChangeNumber);
+      final NavigableMap<Long,Long> ranges = unappliedChanges.subMap(
+           ((firstRangeKey == null) ? firstChangeNumber : firstRangeKey), true,
+           lastFileChangeNumber, true);
+      final Iterator<Map.Entry<Long,Long>> iterator =
+           ranges.entrySet().iterator();
+      while (iterator.hasNext())
+      {
+        final Map.Entry<Long,Long> range = iterator.next();
+        final long first = Math.max(range.getKey(), firstChangeNumber);
+        final long last = Math.min(range.getValue(), lastFileChangeNumber);
+        if (last >= first)
+        {
+          unappliedChangeCount += (last - first + 1L);
+        }
+
+        if (range.getValue() <= lastFileChangeNumber)
+        {
+          iterator.remove();
+        }
+      }
+
+      if (unappliedChangeCount > 0L)
+      {
+        // Leave the file where it is, but don't read it again.
+        completedFiles.removeFirst();
+        unappliedFileCount++;
+        unappliedFiles.add(new ObjectPair<>(file, unappliedChangeCount));
+      }
+      else
+      {
+        File archivedFile = new File(archiveDirectory, file.getName());
+        for (int i=1; archivedFile.exists(); i++)
+        {
+          archivedFile =
+               new File(archiveDirectory, file.getName() + '.' + i);
+        }
+
+        Files.move(file.toPath(), archivedFile.toPath());
+        completedFiles.removeFirst();
+        openedFileNames.remove(file.getName());
+        archivedFileCount++;
+        archivedFiles.add(new ObjectPair<>(archivedFile,
+             (lastFileChangeNumber - firstChangeNumber + 1L)));
+      }
+
+      lastHandledChangeNumber = lastFileChangeNumber;
+      firstChangeNumber = lastFileChangeNumber + 1L;
+    }
+
+    return archivedFiles;
+  }
+
+
+
+  /**
+   * Retrieves the number of files that have been archived.
+   *
+   * @return  The number of files that have been archived.
+   */
+  public long getArchivedFileCount()
+  {
+    return archivedFileCount;
+  }
+
+
+
+  /**
+   * Retrieves the number of files that were left in the spool directory
+   * because some of their changes could not be applied.
+   *
+   * @return  The number of files that were left in the spool directory
+   *          because some of their changes could not be applied.
+   */
+  public long getUnappliedFileCount()
+  {
+    return unappliedFileCount;
+  }
+
+
+
+  /**
+   * Retrieves the number of changes that have been read from all of the
+   * files.
+   *
+   * @return  The number of changes that have been read from all of the files.
+   */
+  public long getChangeCount()
+  {
+    return lastChangeNumber;
+  }
+
+
+
+  /**
+   * Processes any watch events that have already been received and, if there
+   * were any, lists the contents of the spool directory again to find the
+   * files that should be read.
+   *
+   * @throws  IOException  If a problem occurs while listing the contents of
+   *                       the spool directory.
+   */
+  private void processWatchEvents()
+          throws IOException
+  {
+    boolean eventsReceived = false;
+    WatchKey key = watchService.poll();
+    while (key != null)
+    {
+      key.pollEvents();
+      key.reset();
+      eventsReceived = true;
+      key = watchService.poll();
+    }
+
+    if (eventsReceived)
+    {
+      scanDirectory();
+    }
+  }
+
+
+
+  /**
+   * Lists the contents of the spool directory and adds any LDIF files that
+   * haven't already been read to the set of files waiting to be read.
+   *
+   * @throws  IOException  If a problem occurs while listing the contents of
+   *                       the spool directory.
+   */
+  private void scanDirectory()
+          throws IOException
+  {
+    final File[] files = spoolDirectory.listFiles();
+    if (files == null)
+    {
+      throw new IOException("Unable to list the contents of spool directory " +
+           "'" + spoolDirectory.getAbsolutePath() + "'.");
+    }
+
+    for (final File file : files)
+    {
+      final String name = file.getName();
+      if (name.startsWith(".") || openedFileNames.contains(name) ||
+           (! file.isFile()))
+      {
+        continue;
+      }
+
+      if (name.endsWith(".ldif") || name.endsWith(".ldif.gz"))
+      {
+        pendingFileNames.add(name);
+      }
+    }
+  }
+
+
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override()
+  public void close()
+         throws IOException
+  {
+    try
+    {
+      if (currentReader != null)
+      {
+        currentReader.close();
+        currentReader = null;
+      }
+    }
+    finally
+    {
+      watchService.close();
+    }
+  }
+}
@@ -0,0 +1,322 @@
+/*
+ * Copyright 2019 Neil A. Wilson
+ * All Rights Reserved.
+ */
+/*
+ * Copyright (C) 2019 Neil A. Wilson
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPLv2 only)
+ * or the terms of the GNU Lesser General Public License (LGPLv2.1 only)
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, see <http://www.gnu.org/licenses>.
+ */
+/*
+ * Copyright 2019 Neil A. Wilson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dirmgr.example.multiupdate;
+
+
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import com.unboundid.ldap.sdk.LDAPRequest;
+import com.unboundid.ldap.sdk.LDAPResult;
+import com.unboundid.ldap.sdk.OperationType;
+import com.unboundid.ldap.sdk.ResultCode;
+import com.unboundid.ldap.sdk.unboundidds.extensions.MultiUpdateChangesApplied;
+import com.unboundid.ldap.sdk.unboundidds.extensions.MultiUpdateExtendedResult;
+import com.unboundid.util.ObjectPair;
+import com.unboundid.util.ThreadSafety;
+import com.unboundid.util.ThreadSafetyLevel;
+
+
+
+/**
+ * This class decides what to do with the files read from a spool directory
+ * once the results for all of their changes have been received.  A file is
+ * moved to the archive directory only if every one of its changes was
+ * applied.  A file with a change that could not be applied, either because it
+ * failed with the continue-on-error behavior or because its retries were
+ * abandoned, is left in the spool directory so that it can be dealt with and
+ * processed again, and it is reported.  A file with a change that is still
+ * waiting to be retried is not handled until the retry has been resolved.
+ * <BR><BR>
+ * If the server doesn't acknowledge all of the changes in a batch, for
+ * example when a change fails with the atomic or abort-on-error behavior,
+ * then archiving stops for good, so that the file containing those changes,
+ * and every file after it, will be processed again from the beginning the
+ * next time the tool is run.
+ */
+@ThreadSafety(level=ThreadSafetyLevel.NOT_THREADSAFE)
+public final class SpoolFileArchiver
+{
+  // Indicates whether files may still be archived.
+  private boolean enabled;
+
+  // The number of the last change in the most recent batch read from the
+  // spool directory whose results have been received.
+  private long completedChangeNumber;
+
+  // The range of change numbers covered by each change that is waiting to be
+  // retried.
+  private final Map<LDAPRequest,ObjectPair<Long,Long>> retriedChanges;
+
+  // The spool directory change source whose files are archived.
+  private final SpoolDirectoryChangeSource spoolSource;
+
+  // The ranges of change numbers covered by the changes that could not be
+  // applied, mapped from the first change number in each range to the last.
+  private final TreeMap<Long,Long> unappliedChanges;
+
+
+
+  /**
+   * Creates a new spool file archiver for the provided change source.
+   *
+   * @param  spoolSource  The spool directory change source whose files are
+   *                      archived.
+   */
+  public SpoolFileArchiver(final SpoolDirectoryChangeSource spoolSource)
+  {
+    this.spoolSource = spoolSource;
+
+    enabled = true;
+    completedChangeNumber = 0L;
+    retriedChanges = new HashMap<>(10);
+    unappliedChanges = new TreeMap<>();
+  }
+
+
+
+  /**
+   * Indicates whether files may still be archived.
+   *
+   * @return  {@code true} if files may still be archived, or {@code false} if
+   *          archiving has been stopped.
+   */
+  public boolean isEnabled()
+  {
+    return enabled;
+  }
+
+
+
+  /**
+   * Stops archiving files, so that any files that haven't been archived yet
+   * will be processed again the next time the tool is run.
+   */
+  public void disable()
+  {
+    enabled = false;
+  }
+
+
+
+  /**
+   * Records which of the changes in the provided batch were applied.  A change
+   * that wasn't applied is remembered until it has been retried if the
+   * scheduler is still retrying it, and otherwise the file that contains it
+   * won't be archived.  Any earlier change that the scheduler has stopped
+   * retrying since the last batch is also treated as one that wasn't applied.
+   *
+   * @param  batch              The batch whose results were received.  It may
+   *                            be a batch read from the spool directory or a
+   *                            retry batch.
+   * @param  retryBatch         Indicates whether the batch was created to
+   *                            retry earlier changes.
+   * @param  multiUpdateResult  The multi-update extended result for the
+   *                            batch.
+   * @param  acknowledged       Indicates whether the server acknowledged all
+   *                            of the changes in the batch, counting those
+   *                            that are waiting to be retried.  It is ignored
+   *                            for a retry batch.
+   * @param  retryScheduler     The scheduler used to retry changes, or
+   *                            {@code null} if changes are not retried.  The
+   *                            results of the batch must already have been
+   *                            passed to it.
+   *
+   * @return  {@code true} if files may still be archived, or {@code false} if
+   *          archiving has been stopped, either by this batch or earlier.
+   */
+  public boolean batchCompleted(final MultiUpdateBatch batch,
+                      final boolean retryBatch,
+                      final MultiUpdateExtendedResult multiUpdateResult,
+                      final boolean acknowledged,
+                      final ChangeRetryScheduler retryScheduler)
+  {
+    if (! enabled)
+    {
+      return false;
+    }
+
+    if (! retryBatch)
+    {
+      if (! acknowledged)
+      {
+        enabled = false;
+        return false;
+      }
+
+      completedChangeNumber = batch.getLastChangeNumber();
+    }
+
+    final List<LDAPRequest> requests = batch.getRequests();
+    for (int i=0; i < requests.size(); i++)
+    {
+      final LDAPRequest request = requests.get(i);
+      final ObjectPair<Long,Long> changeNumbers;
+      if (retryBatch)
+      {
+        changeNumbers = retriedChanges.remove(request);
+      }
+      else
+      {
+        changeNumbers = new ObjectPair<>(
+             (batch.getCheckpointChangeNumber(i) + 1L),
+             batch.getCheckpointChangeNumber(i + 1));
+      }
+
+      if ((changeNumbers == null) || wasApplied(multiUpdateResult, i))
+      {
+        continue;
+      }
+
+      if ((retryScheduler != null) && retryScheduler.isBeingRetried(request))
+      {
+        retriedChanges.put(request, changeNumbers);
+      }
+      else
+      {
+        unappliedChanges.put(changeNumbers.getFirst(),
+             changeNumbers.getSecond());
+      }
+    }
+
+    // A change whose retry was cancelled by a later conflicting change, or
+    // that was dropped when retrying stopped, was never applied.
+    final Iterator<Map.Entry<LDAPRequest,ObjectPair<Long,Long>>> iterator =
+         retriedChanges.entrySet().iterator();
+    while (iterator.hasNext())
+    {
+      final Map.Entry<LDAPRequest,ObjectPair<Long,Long>> e = iterator.next();
+      if ((retryScheduler == null) ||
+           (! retryScheduler.isBeingRetried(e.getKey())))
+      {
+        unappliedChanges.put(e.getValue().getFirst(),
+             e.getValue().getSecond());
+        iterator.remove();
+      }
+    }
+
+    return true;
+  }
+
+
+
+  /**
+   * Indicates whether the change at the specified position in a batch was
+   * applied.
+   *
+   * @param  multiUpdateResult  The multi-update extended result for the
+   *                            batch.
+   * @param  index              The position of the change in the batch.
+   *
+   * @return  {@code true} if the change was applied, or {@code false} if not.
+   */
+  private static boolean wasApplied(
+                      final MultiUpdateExtendedResult multiUpdateResult,
+                      final int index)
+  {
+    final MultiUpdateChangesApplied changesApplied =
+         multiUpdateResult.getChangesApplied();
+    if (changesApplied == MultiUpdateChangesApplied.ALL)
+    {
+      return true;
+    }
+    else if (changesApplied != MultiUpdateChangesApplied.PARTIAL)
+    {
+      return false;
+    }
+
+    final List<ObjectPair<OperationType,LDAPResult>> results =
+         multiUpdateResult.getResults();
+    return ((index < results.size()) &&
+         (results.get(index).getSecond().getResultCode() ==
+              ResultCode.SUCCESS));
+  }
+
+
+
+  /**
+   * Handles each file that has been completely read and whose changes have
+   * all been resolved, so that none of them are still outstanding or waiting
+   * to be retried.  A file whose changes were all applied is moved to the
+   * archive directory, and a file with any change that could not be applied
+   * is left in the spool directory.
+   *
+   * @param  unappliedFiles  A list to which each file that was left in the
+   *                         spool directory will be added, along with the
+   *                         number of its changes that could not be applied.
+   *
+   * @return  The files that were archived, in their new location, along with
+   *          the number of changes that each one contained.  It will be empty
+   *          if archiving has been stopped.
+   *
+   * @throws  IOException  If a problem occurs while moving a file.  Archiving
+   *                       will be stopped.
+   */
+  public List<ObjectPair<File,Long>> archiveCompletedFiles(
+              final List<ObjectPair<File,Long>> unappliedFiles)
+         throws IOException
+  {
+    if (! enabled)
+    {
+      return Collections.emptyList();
+    }
+
+    long resolvedChangeNumber = completedChangeNumber;
+    for (final ObjectPair<Long,Long> changeNumbers : retriedChanges.values())
+    {
+      resolvedChangeNumber =
+           Math.min(resolvedChangeNumber, (changeNumbers.getFirst() - 1L));
+    }
+
+    try
+    {
+      return spoolSource.archiveFilesCompletedThrough(resolvedChangeNumber,
+           unappliedChanges, unappliedFiles);
+    }
+    catch (final IOException e)
+    {
+      enabled = false;
+      throw e;
+    }
+  }
+}
@@ -0,0 +1,795 @@
+/*
+ * Copyright 2019 Neil A. Wilson
+ * All Rights Reserved.
+ */
+/*
+ * Copyright (C) 2019 Neil A. Wilson
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPLv2 only)
+ * or the terms of the GNU Lesser General Public License (LGPLv2.1 only)
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, see <http://www.gnu.org/licenses>.
+ */
+/*
+ * Copyright 2019 Neil A. Wilson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dirmgr.example.multiupdate;
+
+
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.unboundid.asn1.ASN1OctetString;
+import com.unboundid.ldap.sdk.AddRequest;
+import com.unboundid.ldap.sdk.DN;
+import com.unboundid.ldap.sdk.DeleteRequest;
+import com.unboundid.ldap.sdk.Entry;
+import com.unboundid.ldap.sdk.EntrySourceException;
+import com.unboundid.ldap.sdk.Filter;
+import com.unboundid.ldap.sdk.LDAPConnection;
+import com.unboundid.ldap.sdk.LDAPEntrySource;
+import com.unboundid.ldap.sdk.LDAPException;
+import com.unboundid.ldap.sdk.LDAPRequest;
+import com.unboundid.ldap.sdk.Modification;
+import com.unboundid.ldap.sdk.ModifyRequest;
+import com.unboundid.ldap.sdk.ResultCode;
+import com.unboundid.ldap.sdk.SearchRequest;
+import com.unboundid.ldap.sdk.SearchScope;
+import com.unboundid.ldap.sdk.controls.SimplePagedResultsControl;
+import com.unboundid.ldap.sdk.schema.ObjectClassDefinition;
+import com.unboundid.ldap.sdk.schema.Schema;
+import com.unboundid.ldif.LDIFException;
+import com.unboundid.ldif.LDIFReader;
+import com.unboundid.util.Debug;
+import com.unboundid.util.StaticUtils;
+import com.unboundid.util.ThreadSafety;
+import com.unboundid.util.ThreadSafetyLevel;
+
+
+
+/**
+ * This class provides a change source that generates the changes needed to
+ * make the entries at and below a base DN in the directory server match the
+ * entries in an LDIF file that holds their complete desired state.  The
+ * entries from the LDIF file and the entries returned by a subtree search of
+ * the server are each sorted by DN with an {@link ExternalEntrySorter}, and the
+ * two sorted streams are then merged:
+ * <UL>
+ *   <LI>An entry that is only in the LDIF file is added.</LI>
+ *   <LI>An entry that is in both places is compared with
+ *       {@link Entry#diff}, and if they differ, it is modified so that only
+ *       the attribute values that changed are sent.</LI>
+ *   <LI>An entry that is only in the server is deleted.</LI>
+ * </UL>
+ * Because the entries are sorted hierarchically, the adds and modifies are
+ * generated in an order that puts each parent before its children.  The
+ * deletes are held back until all of the adds and modifies have been
+ * generated, and they are then generated in the reverse order, so that each
+ * entry is deleted before its parent.  The deletes are written to temporary
+ * files in chunks so that they don't need to be held in memory either.
+ * <BR><BR>
+ * The amount of memory used is bounded by the maximum number of entries that
+ * the sorters may hold in memory, regardless of the number of entries being
+ * compared.  The server is searched with the simple paged results control,
+ * so that it never has to return more than one page of entries for a single
+ * search, and the entries in each page are added to the sorter as they are
+ * returned.  The generated changes are not tied to positions in the LDIF file,
+ * so they can't be used with a checkpoint.
+ */
+@ThreadSafety(level=ThreadSafetyLevel.NOT_THREADSAFE)
+public final class SyncChangeGenerator
+       implements ChangeSource
+{
+  /**
+   * The maximum number of entries to request in each page of the search for
+   * the entries in the server.
+   */
+  private static final int SEARCH_PAGE_SIZE = 1000;
+
+
+
+  // Indicates whether all of the adds and modifies have been generated.
+  private boolean mergeComplete;
+
+  // The position in the current chunk of deletes of the last delete that was
+  // generated.  The deletes in a chunk are generated from the end backward.
+  private int deleteIndex;
+
+  // The maximum number of deletes to hold in memory before writing them to a
+  // temporary file.
+  private final int maxEntriesInMemory;
+
+  // The counts of the changes that have been generated.
+  private long addCount;
+  private long changeCount;
+  private long deleteCount;
+  private long modifyCount;
+
+  // The number of entries that were the same in the LDIF file and the server.
+  private long unchangedCount;
+
+  // The next entry from the LDIF file, and the next entry from the server.
+  private Entry desiredEntry;
+  private Entry liveEntry;
+
+  // The sorters that hold the entries from the LDIF file and from the server.
+  private final ExternalEntrySorter desiredEntries;
+  private final ExternalEntrySorter liveEntries;
+
+  // The schema to use when comparing entries, if one is available.
+  private final Schema schema;
+
+  // The temporary files holding chunks of deletes that have been written
+  // because there were too many to hold in memory, in the order that they
+  // were written.
+  private final List<File> deleteChunkFiles;
+
+  // The DNs of the entries to delete that are currently held in memory.
+  // Before the merge is complete, these are the most recently found entries
+  // that only exist in the server.  After that, it is the chunk of deletes
+  // currently being generated.
+  private List<String> deleteChunk;
+
+
+
+  /**
+   * Creates a new sync change generator with the provided sorted entries.
+   *
+   * @param  desiredEntries      The sorted entries from the LDIF file.
+   * @param  liveEntries         The sorted entries from the server.
+   * @param  schema              The schema to use when comparing entries.
+   * @param  maxEntriesInMemory  The maximum number of deletes to hold in
+   *                             memory.
+   */
+  private SyncChangeGenerator(final ExternalEntrySorter desiredEntries,
+                              final ExternalEntrySorter liveEntries,
+                              final Schema schema,
+                              final int maxEntriesInMemory)
+  {
+    this.desiredEntries = desiredEntries;
+    this.liveEntries = liveEntries;
+    this.schema = schema;
+    this.maxEntriesInMemory = maxEntriesInMemory;
+
+    deleteChunkFiles = new ArrayList<>(10);
+    deleteChunk = new ArrayList<>(Math.min(maxEntriesInMemory, 1000));
+    deleteIndex = 0;
+    mergeComplete = false;
+    desiredEntry = null;
+    liveEntry = null;
+    addCount = 0L;
+    changeCount = 0L;
+    deleteCount = 0L;
+    modifyCount = 0L;
+    unchangedCount = 0L;
+  }
+
+
+
+  /**
+   * Creates a new sync change generator that will compare the entries in the
+   * provided LDIF file with the entries at and below the given base DN in the
+   * directory server.  All of the entries will be read and sorted before this
+   * method returns, but the changes will not be generated until they are
+   * read.
+   *
+   * @param  ldifFile            The LDIF file containing the desired state of
+   *                             the entries.  It may be gzip-compressed.  It
+   *                             may be {@code null} if the entries should be
+   *                             read from standard input.
+   * @param  connection          The connection to use to search for the
+   *                             current entries in the server.  It must not be
+   *                             {@code null}, and it will not be closed.
+   * @param  baseDN              The base DN of the entries to synchronize.
+   *                             Every entry in the LDIF file must be at or
+   *                             below this DN.  It must not be {@code null}.
+   * @param  schema              The schema to use when comparing DNs and
+   *                             attribute values.  It may be {@code null} if
+   *                             no schema is available.
+   * @param  maxEntriesInMemory  The maximum number of entries that each sorter,
+   *                             and the list of deletes, may hold in memory
+   *                             before writing them to a temporary file.  It
+   *                             must be greater than zero.
+   *
+   * @return  The sync change generator that was created.
+   *
+   * @throws  IOException  If a problem occurs while reading the LDIF file or
+   *                       writing a temporary file.
+   *
+   * @throws  LDIFException  If the LDIF file contains a malformed entry.
+   *
+   * @throws  LDAPException  If a problem occurs while searching the server, or
+   *                         if the LDIF file has an entry that is outside of
+   *                         the base DN.
+   */
+  public static SyncChangeGenerator create(final File ldifFile,
+                                           final LDAPConnection connection,
+                                           final DN baseDN,
+                                           final Schema schema,
+                                           final int maxEntriesInMemory)
+         throws IOException, LDIFException, LDAPException
+  {
+    final ExternalEntrySorter desiredEntries =
+         new ExternalEntrySorter(schema, maxEntriesInMemory);
+    final ExternalEntrySorter liveEntries =
+         new ExternalEntrySorter(schema, maxEntriesInMemory);
+    final SyncChangeGenerator generator =
+         new SyncChangeGenerator(desiredEntries, liveEntries, schema,
+              maxEntriesInMemory);
+    try
+    {
+      readDesiredEntries(ldifFile, baseDN, schema, desiredEntries);
+      readLiveEntries(connection, baseDN, liveEntries);
+
+      generator.desiredEntry = desiredEntries.next();
+      generator.liveEntry = liveEntries.next();
+      return generator;
+    }
+    catch (final IOException | LDIFException | LDAPException e)
+    {
+      Debug.debugException(e);
+      generator.close();
+      throw e;
+    }
+  }
+
+
+
+  /**
+   * Reads the entries from the LDIF file into the provided sorter.
+   *
+   * @param  ldifFile  The LDIF file to read, or {@code null} to read from
+   *                   standard input.
+   * @param  baseDN    The base DN of the entries to synchronize.
+   * @param  schema    The schema to use when reading the entries.
+   * @param  sorter    The sorter to which the entries should be added.
+   *
+   * @throws  IOException  If a problem occurs while reading the LDIF file or
+   *                       writing a temporary file.
+   *
+   * @throws  LDIFException  If the LDIF file contains a malformed entry.
+   *
+   * @throws  LDAPException  If the LDIF file has an entry with a malformed DN
+   *                         or one that is outside of the base DN.
+   */
+  private static void readDesiredEntries(final File ldifFile, final DN baseDN,
+                                         final Schema schema,
+                                         final ExternalEntrySorter sorter)
+          throws IOException, LDIFException, LDAPException
+  {
+    final InputStream rawInputStream;
+    if (ldifFile == null)
+    {
+      rawInputStream = new NonClosingInputStream(System.in);
+    }
+    else
+    {
+      rawInputStream = new FileInputStream(ldifFile);
+    }
+
+    try (LDIFReader reader = new LDIFReader(
+              ParallelLDIFChangeReader.decompressIfNecessary(rawInputStream)))
+    {
+      reader.setSchema(schema);
+      while (true)
+      {
+        final Entry entry = reader.readEntry();
+        if (entry == null)
+        {
+          return;
+        }
+
+        if (! entry.getParsedDN().isDescendantOf(baseDN, true))
+        {
+          throw new LDAPException(ResultCode.PARAM_ERROR,
+               "The LDIF data contains entry " + entry.getDN() +
+                    ", which is not at or below sync base DN " + baseDN +
+                    ".");
+        }
+
+        sorter.add(entry);
+      }
+    }
+  }
+
+
+
+  /**
+   * Searches for the entries at and below the base DN in the server and adds
+   * them to the provided sorter.  The search is performed one page at a time
+   * with the simple paged results control, and the entries in each page are
+   * processed as they are returned rather than being collected in memory.  If
+   * the server doesn't support the control, then it will return all of the
+   * entries in a single page.
+   *
+   * @param  connection  The connection to use to perform the search.
+   * @param  baseDN      The base DN for the search.
+   * @param  sorter      The sorter to which the entries should be added.
+   *
+   * @throws  IOException  If a problem occurs while writing a temporary file.
+   *
+   * @throws  LDAPException  If a problem occurs while processing the search.
+   */
+  private static void readLiveEntries(final LDAPConnection connection,
+                                      final DN baseDN,
+                                      final ExternalEntrySorter sorter)
+          throws IOException, LDAPException
+  {
+    ASN1OctetString cookie = null;
+    while (true)
+    {
+      final SearchRequest searchRequest = new SearchRequest(baseDN.toString(),
+           SearchScope.SUB, Filter.createPresenceFilter("objectClass"), "*");
+      searchRequest.addControl(
+           new SimplePagedResultsControl(SEARCH_PAGE_SIZE, cookie, false));
+
+      final LDAPEntrySource entrySource =
+           new LDAPEntrySource(connection, searchRequest, false);
+      final SimplePagedResultsControl responseControl;
+      try
+      {
+        if (! readLiveEntryPage(entrySource, baseDN, sorter))
+        {
+          return;
+        }
+
+        responseControl =
+             SimplePagedResultsControl.get(entrySource.getSearchResult());
+      }
+      finally
+      {
+        entrySource.close();
+      }
+
+      if ((responseControl == null) ||
+           (! responseControl.moreResultsToReturn()))
+      {
+        return;
+      }
+
+      cookie = responseControl.getCookie();
+    }
+  }
+
+
+
+  /**
+   * Adds the entries returned for one page of the search for the entries in
+   * the server to the provided sorter.
+   *
+   * @param  entrySource  The entry source for the page.
+   * @param  baseDN       The base DN for the search.
+   * @param  sorter       The sorter to which the entries should be added.
+   *
+   * @return  {@code true} if all of the entries in the page were read, or
+   *          {@code false} if the base entry doesn't exist, so that there are
+   *          no entries in the server.
+   *
+   * @throws  IOException  If a problem occurs while writing a temporary file.
+   *
+   * @throws  LDAPException  If a problem occurs while processing the search.
+   */
+  private static boolean readLiveEntryPage(
+                              final LDAPEntrySource entrySource,
+                              final DN baseDN,
+                              final ExternalEntrySorter sorter)
+          throws IOException, LDAPException
+  {
+    while (true)
+    {
+      final Entry entry;
+      try
+      {
+        entry = entrySource.nextEntry();
+      }
+      catch (final EntrySourceException e)
+      {
+        Debug.debugException(e);
+        if (e.mayContinueReading())
+        {
+          // This is probably a search result reference, which can be
+          // ignored.
+          continue;
+        }
+
+        final Throwable cause = e.getCause();
+        if ((cause instanceof LDAPException) &&
+             (((LDAPException) cause).getResultCode() ==
+                  ResultCode.NO_SUCH_OBJECT))
+        {
+          // The base entry doesn't exist yet, so everything in the LDIF
+          // file will need to be added.
+          return false;
+        }
+
+        throw new LDAPException(ResultCode.LOCAL_ERROR,
+             "An error occurred while searching for the entries at and " +
+                  "below " + baseDN + ":  " +
+                  StaticUtils.getExceptionMessage(e),
+             e);
+      }
+
+      if (entry == null)
+      {
+        return true;
+      }
+
+      sorter.add(entry);
+    }
+  }
+
+
+
+  /**
+   * Retrieves the next change needed to synchronize the entries.
+   *
+   * @return  The next change needed to synchronize the entries, or
+   *          {@code null} if all of the changes have been generated.
+   *
+   * @throws  IOException  If a problem occurs while reading or writing a
+   *                       temporary file.
+   *
+   * @throws  LDIFException  If a temporary file contains a malformed entry.
+   *
+   * @throws  LDAPException  If the LDIF file contains more than one entry with
+   *                         the same DN.
+   */
+  @Override()
+  public ParsedLDIFChange read()
+         throws IOException, LDIFException, LDAPException
+  {
+    while (! mergeComplete)
+    {
+      final int comparison;
+      if (desiredEntry == null)
+      {
+        if (liveEntry == null)
+        {
+          mergeComplete = true;
+          deleteIndex = deleteChunk.size();
+          break;
+        }
+
+        comparison = 1;
+      }
+      else if (liveEntry == null)
+      {
+        comparison = -1;
+      }
+      else
+      {
+        comparison =
+             desiredEntry.getParsedDN().compareTo(liveEntry.getParsedDN());
+      }
+
+      if (comparison < 0)
+      {
+        final Entry entryToAdd = desiredEntry;
+        advanceDesiredEntry();
+        addCount++;
+        return createChange(new AddRequest(entryToAdd));
+      }
+      else if (comparison > 0)
+      {
+        addDelete(liveEntry.getDN());
+        liveEntry = liveEntries.next();
+      }
+      else
+      {
+        final List<Modification> mods = Entry.diff(liveEntry,
+             addSuperiorObjectClasses(desiredEntry), true);
+        final String dn = liveEntry.getDN();
+        advanceDesiredEntry();
+        liveEntry = liveEntries.next();
+        if (mods.isEmpty())
+        {
+          unchangedCount++;
+        }
+        else
+        {
+          modifyCount++;
+          return createChange(new ModifyRequest(dn, mods));
+        }
+      }
+    }
+
+
+    // Generate the deletes in the reverse of the order in which they were
+    // found, working backward through the chunks that were written to disk.
+    while (deleteIndex == 0)
+    {
+      if (deleteChunkFiles.isEmpty())
+      {
+        return null;
+      }
+
+      final File chunkFile =
+           deleteChunkFiles.remove(deleteChunkFiles.size() - 1);
+      deleteChunk = readDeleteChunk(chunkFile);
+      deleteIndex = deleteChunk.size();
+      if (! chunkFile.delete())
+      {
+        chunkFile.deleteOnExit();
+      }
+    }
+
+    deleteIndex--;
+    deleteCount++;
+    return createChange(new DeleteRequest(deleteChunk.get(deleteIndex)));
+  }
+
+
+
+  /**
+   * Retrieves the number of entries that were read from the LDIF file.
+   *
+   * @return  The number of entries that were read from the LDIF file.
+   */
+  public long getDesiredEntryCount()
+  {
+    return desiredEntries.getEntryCount();
+  }
+
+
+
+  /**
+   * Retrieves the number of entries that were read from the server.
+   *
+   * @return  The number of entries that were read from the server.
+   */
+  public long getLiveEntryCount()
+  {
+    return liveEntries.getEntryCount();
+  }
+
+
+
+  /**
+   * Retrieves the number of add requests that have been generated so far.
+   *
+   * @return  The number of add requests that have been generated so far.
+   */
+  public long getAddCount()
+  {
+    return addCount;
+  }
+
+
+
+  /**
+   * Retrieves the number of modify requests that have been generated so far.
+   *
+   * @return  The number of modify requests that have been generated so far.
+   */
+  public long getModifyCount()
+  {
+    return modifyCount;
+  }
+
+
+
+  /**
+   * Retrieves the number of delete requests that have been generated so far.
+   *
+   * @return  The number of delete requests that have been generated so far.
+   */
+  public long getDeleteCount()
+  {
+    return deleteCount;
+  }
+
+
+
+  /**
+   * Retrieves the number of entries found so far that are the same in the
+   * LDIF file and in the server, and therefore don't need to be changed.
+   *
+   * @return  The number of entries found so far that don't need to be
+   *          changed.
+   */
+  public long getUnchangedCount()
+  {
+    return unchangedCount;
+  }
+
+
+
+  /**
+   * Closes the sorters and deletes any temporary files.
+   */
+  @Override()
+  public void close()
+  {
+    desiredEntries.close();
+    liveEntries.close();
+
+    for (final File f : deleteChunkFiles)
+    {
+      if (! f.delete())
+      {
+        f.deleteOnExit();
+      }
+    }
+
+    deleteChunkFiles.clear();
+    deleteChunk.clear();
+    deleteIndex = 0;
+  }
+
+
+
+  /**
+   * Reads the next entry from the LDIF file, making sure that it doesn't have
+   * the same DN as the previous one.
+   *
+   * @throws  IOException  If a problem occurs while reading a temporary file.
+   *
+   * @throws  LDIFException  If a temporary file contains a malformed entry.
+   *
+   * @throws  LDAPException  If the LDIF file contains more than one entry with
+   *                         the same DN.
+   */
+  private void advanceDesiredEntry()
+          throws IOException, LDIFException, LDAPException
+  {
+    final DN previousDN = desiredEntry.getParsedDN();
+    desiredEntry = desiredEntries.next();
+    if ((desiredEntry != null) && desiredEntry.getParsedDN().equals(previousDN))
+    {
+      throw new LDAPException(ResultCode.PARAM_ERROR,
+           "The LDIF data contains more than one entry with DN " +
+                desiredEntry.getDN() + ".");
+    }
+  }
+
+
+
+  /**
+   * Retrieves a copy of the provided entry that includes all of the superior
+   * classes of its object classes.  The server adds any that are missing when
+   * an entry is added, so they shouldn't be removed just because the LDIF
+   * file leaves them out.
+   *
+   * @param  entry  The entry to examine.
+   *
+   * @return  A copy of the entry that includes all of the superior object
+   *          classes, or the provided entry if no schema is available.
+   */
+  private Entry addSuperiorObjectClasses(final Entry entry)
+  {
+    if (schema == null)
+    {
+      return entry;
+    }
+
+    final Entry e = entry.duplicate();
+    for (final String objectClass : entry.getObjectClassValues())
+    {
+      final ObjectClassDefinition d = schema.getObjectClass(objectClass);
+      if (d != null)
+      {
+        for (final ObjectClassDefinition superior :
+             d.getSuperiorClasses(schema, true))
+        {
+          e.addAttribute("objectClass", superior.getNameOrOID());
+        }
+      }
+    }
+
+    return e;
+  }
+
+
+
+  /**
+   * Records that the specified entry needs to be deleted.  If there are too
+   * many deletes to hold in memory, then the ones in memory will be written
+   * to a temporary file.
+   *
+   * @param  dn  The DN of the entry to delete.
+   *
+   * @throws  IOException  If a problem occurs while writing the temporary
+   *                       file.
+   */
+  private void addDelete(final String dn)
+          throws IOException
+  {
+    deleteChunk.add(dn);
+    if (deleteChunk.size() < maxEntriesInMemory)
+    {
+      return;
+    }
+
+    final File chunkFile = File.createTempFile("multi-update-deletes-", ".dat");
+    chunkFile.deleteOnExit();
+    deleteChunkFiles.add(chunkFile);
+
+    try (DataOutputStream outputStream = new DataOutputStream(
+              new BufferedOutputStream(new FileOutputStream(chunkFile))))
+    {
+      outputStream.writeInt(deleteChunk.size());
+      for (final String s : deleteChunk)
+      {
+        outputStream.writeUTF(s);
+      }
+    }
+
+    deleteChunk.clear();
+  }
+
+
+
+  /**
+   * Reads a chunk of deletes from the provided temporary file.
+   *
+   * @param  chunkFile  The file to read.
+   *
+   * @return  The DNs of the entries to delete, in the order that they were
+   *          found.
+   *
+   * @throws  IOException  If a problem occurs while reading the file.
+   */
+  private static List<String> readDeleteChunk(final File chunkFile)
+          throws IOException
+  {
+    try (DataInputStream inputStream = new DataInputStream(
+              new BufferedInputStream(new FileInputStream(chunkFile))))
+    {
+      final int size = inputStream.readInt();
+      final List<String> dns = new ArrayList<>(size);
+      for (int i=0; i < size; i++)
+      {
+        dns.add(inputStream.readUTF());
+      }
+
+      return dns;
+    }
+  }
+
+
+
+  /**
+   * Wraps the provided request in a parsed LDIF change with the next change
+   * number.  The change doesn't correspond to a position in the LDIF file, so
+   * its end offset will be -1.
+   *
+   * @param  request  The request to wrap.
+   *
+   * @return  The parsed LDIF change that was created.
+   */
+  private ParsedLDIFChange createChange(final LDAPRequest request)
+  {
+    changeCount++;
+    return new ParsedLDIFChange(changeCount, -1L, request);
+  }
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright 2019 Neil A. Wilson
+ * All Rights Reserved.
+ */
+/*
+ * Copyright (C) 2019 Neil A. Wilson
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPLv2 only)
+ * or the terms of the GNU Lesser General Public License (LGPLv2.1 only)
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, see <http://www.gnu.org/licenses>.
+ */
+/*
+ * Copyright 2019 Neil A. Wilson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dirmgr.example.multiupdate;
+
+
+
+import java.io.File;
+
+import com.unboundid.ldap.sdk.DN;
+import com.unboundid.ldap.sdk.LDAPConnection;
+import com.unboundid.ldap.sdk.LDAPException;
+import com.unboundid.ldap.sdk.ResultCode;
+import com.unboundid.util.CommandLineTool;
+import com.unboundid.util.Debug;
+import com.unboundid.util.LDAPCommandLineTool;
+import com.unboundid.util.StaticUtils;
+import com.unboundid.util.ThreadSafety;
+import com.unboundid.util.ThreadSafetyLevel;
+
+
+
+/**
+ * This class handles the parts of a {@link MultiUpdateLDAPModify} run that
+ * are specific to sync mode, in which the changes are generated by comparing
+ * the complete desired state of a subtree in an LDIF file with its current
+ * state in the server.  It creates the {@link SyncChangeGenerator} that
+ * provides those changes and writes a summary of them once processing is
+ * complete.
+ */
+@ThreadSafety(level=ThreadSafetyLevel.NOT_THREADSAFE)
+public final class SyncModeHandler
+{
+  // The generator that provides the changes.
+  private final SyncChangeGenerator generator;
+
+  // The tool used to write messages.
+  private final CommandLineTool tool;
+
+
+
+  /**
+   * Creates a new sync mode handler with the provided information.
+   *
+   * @param  tool       The tool used to write messages.
+   * @param  generator  The generator that provides the changes.
+   */
+  private SyncModeHandler(final CommandLineTool tool,
+                          final SyncChangeGenerator generator)
+  {
+    this.tool = tool;
+    this.generator = generator;
+  }
+
+
+
+  /**
+   * Creates a sync mode handler whose change generator will compare the
+   * entries in the LDIF file with the entries at and below the sync base DN
+   * in the server.  A separate connection is used to retrieve the schema and
+   * search for the entries, and it is closed once all of the entries have
+   * been sorted.
+   *
+   * @param  tool                    The tool used to write messages and to
+   *                                 establish the connection.
+   * @param  ldifFile                The LDIF file with the desired state of
+   *                                 the entries, or {@code null} if it should
+   *                                 be read from standard input.
+   * @param  ldifSourceName          A name for the source of the entries, for
+   *                                 use in messages.
+   * @param  baseDN                  The base DN of the subtree to
+   *                                 synchronize.
+   * @param  maxSortEntriesInMemory  The maximum number of entries that may be
+   *                                 held in memory while sorting them.
+   *
+   * @return  The sync mode handler that was created.
+   *
+   * @throws  LDAPException  If a problem occurs while reading the entries from
+   *                         the LDIF file or the server.
+   */
+  public static SyncModeHandler create(final LDAPCommandLineTool tool,
+                                       final File ldifFile,
+                                       final String ldifSourceName,
+                                       final DN baseDN,
+                                       final int maxSortEntriesInMemory)
+         throws LDAPException
+  {
+    final long startTime = System.nanoTime();
+    final SyncChangeGenerator generator;
+    try (LDAPConnection connection = tool.getConnection())
+    {
+      generator = SyncChangeGenerator.create(ldifFile, connection, baseDN,
+           connection.getSchema(), maxSortEntriesInMemory);
+    }
+    catch (final LDAPException e)
+    {
+      Debug.debugException(e);
+      throw new LDAPException(e.getResultCode(),
+           "An error occurred while trying to compare the entries in " +
+                ldifSourceName + " with the entries at and below " +
+                baseDN + ":  " + StaticUtils.getExceptionMessage(e),
+           e);
+    }
+    catch (final Exception e)
+    {
+      Debug.debugException(e);
+      throw new LDAPException(ResultCode.LOCAL_ERROR,
+           "An error occurred while trying to compare the entries in " +
+                ldifSourceName + " with the entries at and below " +
+                baseDN + ":  " + StaticUtils.getExceptionMessage(e),
+           e);
+    }
+
+    tool.out("Sorted ", generator.getDesiredEntryCount(), " entries from ",
+         ldifSourceName, " and ", generator.getLiveEntryCount(),
+         " entries at and below ", baseDN, " from the server in ",
+         ((System.nanoTime() - startTime) / 1_000_000L), " ms.");
+    tool.out();
+    return new SyncModeHandler(tool, generator);
+  }
+
+
+
+  /**
+   * Retrieves the change source that provides the generated changes.
+   *
+   * @return  The change source that provides the generated changes.
+   */
+  public SyncChangeGenerator getChangeSource()
+  {
+    return generator;
+  }
+
+
+
+  /**
+   * Writes a summary of the changes that were generated.
+   */
+  public void reportSummary()
+  {
+    tool.out("Sync summary:  ", generator.getAddCount(), " adds, ",
+         generator.getModifyCount(), " modifies, and ",
+         generator.getDeleteCount(), " deletes were generated.  ",
+         generator.getUnchangedCount(), " entries were already up to date.");
+  }
+}
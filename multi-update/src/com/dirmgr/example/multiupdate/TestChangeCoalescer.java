@@ -0,0 +1,506 @@
+/*
+ * Copyright 2019 Neil A. Wilson
+ * All Rights Reserved.
+ */
+/*
+ * Copyright (C) 2019 Neil A. Wilson
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPLv2 only)
+ * or the terms of the GNU Lesser General Public License (LGPLv2.1 only)
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, see <http://www.gnu.org/licenses>.
+ */
+/*
+ * Copyright 2019 Neil A. Wilson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dirmgr.example.multiupdate;
+
+
+
+import java.util.Arrays;
+import java.util.List;
+
+import com.unboundid.ldap.sdk.AddRequest;
+import com.unboundid.ldap.sdk.Control;
+import com.unboundid.ldap.sdk.DeleteRequest;
+import com.unboundid.ldap.sdk.Entry;
+import com.unboundid.ldap.sdk.LDAPException;
+import com.unboundid.ldap.sdk.LDAPRequest;
+import com.unboundid.ldap.sdk.Modification;
+import com.unboundid.ldap.sdk.ModificationType;
+import com.unboundid.ldap.sdk.ModifyRequest;
+import com.unboundid.ldap.sdk.OperationType;
+import com.unboundid.ldif.LDIFException;
+
+
+
+/**
+ * This class performs some basic testing of the {@link ChangeCoalescer}
+ * class.  Each test coalesces a batch whose change records are numbered from
+ * 101, and in which the record with number 100 + n ends at byte offset
+ * 1000 * n, so that the checkpoint information in the coalesced batch can be
+ * checked against the positions of the original records.
+ */
+public class TestChangeCoalescer
+{
+  /**
+   * The record number of the first change in each test batch.
+   */
+  private static final long FIRST_CHANGE_NUMBER = 101L;
+
+
+
+  /**
+   * An arbitrary control to include in changes that should not be coalesced.
+   */
+  private static final Control TEST_CONTROL = new Control("1.2.3.4");
+
+
+
+  /**
+   * Runs the tests.
+   *
+   * @param  args  The provided command-line arguments.
+   *
+   * @throws  Exception  If an unexpected problem occurs.
+   */
+  public static void main(final String... args)
+         throws Exception
+  {
+    // Modifies that follow an add of the same entry should be folded into
+    // it, so that only the add remains.
+    ChangeCoalescer coalescer = coalesce(
+         new AddRequest(userEntry("fold")),
+         new ModifyRequest(userDN("fold"), new Modification(
+              ModificationType.REPLACE, "description", "folded")),
+         new ModifyRequest(userDN("fold"), new Modification(
+              ModificationType.ADD, "mail", "fold@example.com")));
+    assertCounts(coalescer, 3, 2, 0, 2, 0);
+    assertRequestTypes(coalescer, OperationType.ADD);
+    final Entry foldedEntry = ((AddRequest)
+         coalescer.getCoalescedBatch().getRequests().get(0)).toEntry();
+    MultiUpdateTestUtils.assertTrue(
+         foldedEntry.hasAttributeValue("description", "folded") &&
+         foldedEntry.hasAttributeValue("mail", "fold@example.com"),
+         "Expected the modifications to be folded into the added entry, " +
+              "got " + foldedEntry);
+    assertCheckpoints(coalescer, 0, 3);
+    System.out.println("Modifies were folded into the preceding add.");
+
+
+    // Consecutive modifies to the same entry should be merged, but a change
+    // to a different entry should end the run.
+    coalescer = coalesce(
+         new ModifyRequest(userDN("merge"), new Modification(
+              ModificationType.REPLACE, "description", "first")),
+         new ModifyRequest(userDN("merge"), new Modification(
+              ModificationType.REPLACE, "description", "second")),
+         new AddRequest(userEntry("other")),
+         new ModifyRequest(userDN("merge"), new Modification(
+              ModificationType.REPLACE, "description", "third")));
+    assertCounts(coalescer, 4, 1, 1, 0, 0);
+    assertRequestTypes(coalescer, OperationType.MODIFY, OperationType.ADD,
+         OperationType.MODIFY);
+    final List<Modification> mergedModifications = ((ModifyRequest)
+         coalescer.getCoalescedBatch().getRequests().get(0)).
+              getModifications();
+    MultiUpdateTestUtils.assertTrue(
+         (mergedModifications.size() == 2) &&
+         mergedModifications.get(0).getValues()[0].equals("first") &&
+         mergedModifications.get(1).getValues()[0].equals("second"),
+         "Expected the merged modify to have both modifications in order, " +
+              "got " + mergedModifications);
+    assertCheckpoints(coalescer, 0, 2, 3, 4);
+    System.out.println("Consecutive modifies were merged.");
+
+
+    // If the modifications can't be applied to the added entry locally, then
+    // the add should be left alone and the modifies should be merged into a
+    // single modify that follows it.  The first request only covers the add,
+    // so acknowledging it must not checkpoint past the modifies.
+    coalescer = coalesce(
+         new AddRequest(userEntry("unfoldable")),
+         new ModifyRequest(userDN("unfoldable"), new Modification(
+              ModificationType.ADD, "sn", "User")),
+         new ModifyRequest(userDN("unfoldable"), new Modification(
+              ModificationType.REPLACE, "description", "unfolded")));
+    assertCounts(coalescer, 3, 1, 1, 0, 0);
+    assertRequestTypes(coalescer, OperationType.ADD, OperationType.MODIFY);
+    MultiUpdateTestUtils.assertTrue(
+         ! ((AddRequest) coalescer.getCoalescedBatch().getRequests().
+              get(0)).hasAttribute("description"),
+         "Expected the add to be sent unchanged when the fold failed");
+    MultiUpdateTestUtils.assertTrue(
+         ((ModifyRequest) coalescer.getCoalescedBatch().getRequests().
+              get(1)).getModifications().size() == 2,
+         "Expected both modifications in the modify after a failed fold");
+    assertCheckpoints(coalescer, 0, 1, 3);
+    System.out.println("A failed fold left the add alone and merged the " +
+         "modifies that followed it.");
+
+
+    // A parent that is added and deleted around the add and delete of a
+    // child should be removed along with the child.  Since the removed
+    // changes come first, acknowledging no requests already covers them.
+    coalescer = coalesce(
+         new AddRequest(ouEntry("parent")),
+         new AddRequest(childEntry("child", "parent")),
+         new DeleteRequest(childDN("child", "parent")),
+         new DeleteRequest(ouDN("parent")),
+         new AddRequest(userEntry("survivor")));
+    assertCounts(coalescer, 5, 4, 0, 0, 4);
+    assertRequestTypes(coalescer, OperationType.ADD);
+    assertCheckpoints(coalescer, 4, 5);
+
+    // The same sequence after a change that is kept should be covered when
+    // that change is acknowledged.
+    coalescer = coalesce(
+         new AddRequest(userEntry("survivor")),
+         new AddRequest(ouEntry("parent")),
+         new AddRequest(childEntry("child", "parent")),
+         new DeleteRequest(childDN("child", "parent")),
+         new DeleteRequest(ouDN("parent")));
+    assertCounts(coalescer, 5, 4, 0, 0, 4);
+    assertRequestTypes(coalescer, OperationType.ADD);
+    assertCheckpoints(coalescer, 0, 5);
+    System.out.println("A parent added and deleted around a child was " +
+         "removed along with the child.");
+
+
+    // Changes with controls must never be merged, folded, or cancelled, and
+    // they must not allow later changes to be combined with them.
+    coalescer = coalesce(
+         new ModifyRequest(userDN("controls"), new Modification(
+              ModificationType.REPLACE, "description", "first")),
+         withControl(new ModifyRequest(userDN("controls"), new Modification(
+              ModificationType.REPLACE, "description", "second"))),
+         new ModifyRequest(userDN("controls"), new Modification(
+              ModificationType.REPLACE, "description", "third")),
+         withControl(new AddRequest(userEntry("controlled.add"))),
+         new ModifyRequest(userDN("controlled.add"), new Modification(
+              ModificationType.REPLACE, "description", "not folded")),
+         new AddRequest(userEntry("controlled.delete")),
+         withControl(new DeleteRequest(userDN("controlled.delete"))));
+    assertCounts(coalescer, 7, 0, 0, 0, 0);
+    assertRequestTypes(coalescer, OperationType.MODIFY, OperationType.MODIFY,
+         OperationType.MODIFY, OperationType.ADD, OperationType.MODIFY,
+         OperationType.ADD, OperationType.DELETE);
+    assertCheckpoints(coalescer, 0, 1, 2, 3, 4, 5, 6, 7);
+    System.out.println("Changes with controls were not coalesced.");
+
+
+    System.out.println("All tests yielded the expected results.");
+  }
+
+
+
+  /**
+   * Creates a batch with the provided changes and coalesces it.
+   *
+   * @param  changes  The changes to include in the batch.
+   *
+   * @return  The change coalescer with the coalesced batch.
+   *
+   * @throws  LDAPException  If a problem occurs while coalescing the batch.
+   */
+  private static ChangeCoalescer coalesce(final LDAPRequest... changes)
+          throws LDAPException
+  {
+    final long[] checkpointChangeNumbers = new long[changes.length + 1];
+    final long[] checkpointOffsets = new long[changes.length + 1];
+    for (int i=0; i <= changes.length; i++)
+    {
+      checkpointChangeNumbers[i] = FIRST_CHANGE_NUMBER + i - 1L;
+      checkpointOffsets[i] = 1000L * i;
+    }
+
+    return ChangeCoalescer.coalesce(new MultiUpdateBatch(1,
+         FIRST_CHANGE_NUMBER, FIRST_CHANGE_NUMBER + changes.length - 1L,
+         Arrays.asList(changes), checkpointChangeNumbers, checkpointOffsets,
+         0L));
+  }
+
+
+
+  /**
+   * Ensures that the provided coalescer reports the expected counts.
+   *
+   * @param  coalescer          The change coalescer to check.
+   * @param  originalCount      The expected number of original changes.
+   * @param  removedCount       The expected number of removed changes.
+   * @param  mergedCount        The expected number of merged modifies.
+   * @param  foldedCount        The expected number of folded modifies.
+   * @param  cancelledCount     The expected number of cancelled changes.
+   *
+   * @throws  AssertionError  If any of the counts is not what was expected.
+   */
+  private static void assertCounts(final ChangeCoalescer coalescer,
+                                   final int originalCount,
+                                   final int removedCount,
+                                   final int mergedCount,
+                                   final int foldedCount,
+                                   final int cancelledCount)
+          throws AssertionError
+  {
+    final String counts = "original=" + coalescer.getOriginalChangeCount() +
+         ", removed=" + coalescer.getRemovedChangeCount() +
+         ", merged=" + coalescer.getMergedModifyCount() +
+         ", folded=" + coalescer.getFoldedModifyCount() +
+         ", cancelled=" + coalescer.getCancelledChangeCount();
+    MultiUpdateTestUtils.assertTrue(
+         (coalescer.getOriginalChangeCount() == originalCount) &&
+         (coalescer.getRemovedChangeCount() == removedCount) &&
+         (coalescer.getMergedModifyCount() == mergedCount) &&
+         (coalescer.getFoldedModifyCount() == foldedCount) &&
+         (coalescer.getCancelledChangeCount() == cancelledCount),
+         "Unexpected coalescer counts:  " + counts);
+  }
+
+
+
+  /**
+   * Ensures that the coalesced batch has requests of the expected types.
+   *
+   * @param  coalescer      The change coalescer to check.
+   * @param  expectedTypes  The expected type of each request in the
+   *                        coalesced batch.
+   *
+   * @throws  AssertionError  If the requests are not what was expected.
+   */
+  private static void assertRequestTypes(final ChangeCoalescer coalescer,
+                           final OperationType... expectedTypes)
+          throws AssertionError
+  {
+    final List<LDAPRequest> requests =
+         coalescer.getCoalescedBatch().getRequests();
+    MultiUpdateTestUtils.assertTrue(requests.size() == expectedTypes.length,
+         "Expected " + expectedTypes.length + " coalesced requests, got " +
+              requests);
+    for (int i=0; i < expectedTypes.length; i++)
+    {
+      MultiUpdateTestUtils.assertTrue(
+           requests.get(i).getOperationType() == expectedTypes[i],
+           "Expected coalesced request " + i + " to be a " +
+                expectedTypes[i] + ", got " + requests.get(i));
+    }
+  }
+
+
+
+  /**
+   * Ensures that the coalesced batch has the expected checkpoint information.
+   * For each number of acknowledged requests, the checkpoint change number
+   * must be the number of the last original record that is covered, and the
+   * checkpoint offset must be the offset immediately after that record (or
+   * -1 if no records are covered).
+   *
+   * @param  coalescer         The change coalescer to check.
+   * @param  processedChanges  The number of original changes that are
+   *                           covered once each number of requests has been
+   *                           acknowledged, indexed by the number of
+   *                           acknowledged requests.
+   *
+   * @throws  AssertionError  If the checkpoint information is not what was
+   *                          expected.
+   */
+  private static void assertCheckpoints(final ChangeCoalescer coalescer,
+                                        final int... processedChanges)
+          throws AssertionError
+  {
+    final MultiUpdateBatch batch = coalescer.getCoalescedBatch();
+    MultiUpdateTestUtils.assertTrue(
+         batch.getRequests().size() + 1 == processedChanges.length,
+         "Expected " + (processedChanges.length - 1) + " coalesced " +
+              "requests, got " + batch.getRequests().size());
+    for (int r=0; r < processedChanges.length; r++)
+    {
+      final long expectedChangeNumber =
+           FIRST_CHANGE_NUMBER + processedChanges[r] - 1L;
+      final long expectedOffset;
+      if (processedChanges[r] == 0)
+      {
+        expectedOffset = -1L;
+      }
+      else
+      {
+        expectedOffset = 1000L * processedChanges[r];
+      }
+
+      MultiUpdateTestUtils.assertTrue(
+           (batch.getCheckpointChangeNumber(r) == expectedChangeNumber) &&
+           (batch.getCheckpointOffset(r) == expectedOffset),
+           "Expected checkpoint " + expectedChangeNumber + " at offset " +
+                expectedOffset + " after " + r + " acknowledged requests, " +
+                "got " + batch.getCheckpointChangeNumber(r) + " at offset " +
+                batch.getCheckpointOffset(r));
+    }
+  }
+
+
+
+  /**
+   * Adds the test control to the provided request.
+   *
+   * @param  <T>      The type of request.
+   * @param  request  The request to which the control should be added.
+   *
+   * @return  The provided request.
+   */
+  private static <T extends LDAPRequest> T withControl(final T request)
+  {
+    if (request instanceof AddRequest)
+    {
+      ((AddRequest) request).addControl(TEST_CONTROL);
+    }
+    else if (request instanceof ModifyRequest)
+    {
+      ((ModifyRequest) request).addControl(TEST_CONTROL);
+    }
+    else
+    {
+      ((DeleteRequest) request).addControl(TEST_CONTROL);
+    }
+
+    return request;
+  }
+
+
+
+  /**
+   * Creates a user entry with the provided user ID.
+   *
+   * @param  userID  The user ID for the user.
+   *
+   * @return  The user entry.
+   *
+   * @throws  LDIFException  If the entry cannot be created.
+   */
+  private static Entry userEntry(final String userID)
+          throws LDIFException
+  {
+    return new Entry(
+         "dn: " + userDN(userID),
+         "objectClass: top",
+         "objectClass: person",
+         "objectClass: organizationalPerson",
+         "objectClass: inetOrgPerson",
+         "uid: " + userID,
+         "givenName: Test",
+         "sn: User",
+         "cn: Test User");
+  }
+
+
+
+  /**
+   * Retrieves the DN for the user with the provided user ID.
+   *
+   * @param  userID  The user ID for which to retrieve the DN.
+   *
+   * @return  The DN for the user with the provided user ID.
+   */
+  private static String userDN(final String userID)
+  {
+    return "uid=" + userID + ",ou=People,dc=example,dc=com";
+  }
+
+
+
+  /**
+   * Creates an organizational unit entry with the provided name below
+   * dc=example,dc=com.
+   *
+   * @param  ou  The name of the organizational unit.
+   *
+   * @return  The organizational unit entry.
+   *
+   * @throws  LDIFException  If the entry cannot be created.
+   */
+  private static Entry ouEntry(final String ou)
+          throws LDIFException
+  {
+    return new Entry(
+         "dn: " + ouDN(ou),
+         "objectClass: top",
+         "objectClass: organizationalUnit",
+         "ou: " + ou);
+  }
+
+
+
+  /**
+   * Retrieves the DN for the organizational unit with the provided name.
+   *
+   * @param  ou  The name of the organizational unit.
+   *
+   * @return  The DN for the organizational unit with the provided name.
+   */
+  private static String ouDN(final String ou)
+  {
+    return "ou=" + ou + ",dc=example,dc=com";
+  }
+
+
+
+  /**
+   * Creates a user entry with the provided user ID below the specified
+   * organizational unit.
+   *
+   * @param  userID  The user ID for the user.
+   * @param  ou      The name of the parent organizational unit.
+   *
+   * @return  The user entry.
+   *
+   * @throws  LDIFException  If the entry cannot be created.
+   */
+  private static Entry childEntry(final String userID, final String ou)
+          throws LDIFException
+  {
+    return new Entry(
+         "dn: " + childDN(userID, ou),
+         "objectClass: top",
+         "objectClass: person",
+         "objectClass: organizationalPerson",
+         "objectClass: inetOrgPerson",
+         "uid: " + userID,
+         "givenName: Test",
+         "sn: User",
+         "cn: Test User");
+  }
+
+
+
+  /**
+   * Retrieves the DN for the user with the provided user ID below the
+   * specified organizational unit.
+   *
+   * @param  userID  The user ID for the user.
+   * @param  ou      The name of the parent organizational unit.
+   *
+   * @return  The DN for the user below the organizational unit.
+   */
+  private static String childDN(final String userID, final String ou)
+  {
+    return "uid=" + userID + "," + ouDN(ou);
+  }
+}
@@ -0,0 +1,460 @@
+/*
+ * Copyright 2019 Neil A. Wilson
+ * All Rights Reserved.
+ */
+/*
+ * Copyright (C) 2019 Neil A. Wilson
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPLv2 only)
+ * or the terms of the GNU Lesser General Public License (LGPLv2.1 only)
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, see <http://www.gnu.org/licenses>.
+ */
+/*
+ * Copyright 2019 Neil A. Wilson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dirmgr.example.multiupdate;
+
+
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.unboundid.ldap.sdk.AddRequest;
+import com.unboundid.ldap.sdk.Attribute;
+import com.unboundid.ldap.sdk.DeleteRequest;
+import com.unboundid.ldap.sdk.LDAPRequest;
+import com.unboundid.ldap.sdk.LDAPResult;
+import com.unboundid.ldap.sdk.Modification;
+import com.unboundid.ldap.sdk.ModificationType;
+import com.unboundid.ldap.sdk.ModifyRequest;
+import com.unboundid.ldap.sdk.OperationType;
+import com.unboundid.ldap.sdk.ResultCode;
+import com.unboundid.ldap.sdk.unboundidds.extensions.MultiUpdateChangesApplied;
+import com.unboundid.ldap.sdk.unboundidds.extensions.MultiUpdateExtendedResult;
+import com.unboundid.util.ObjectPair;
+import com.unboundid.util.StaticUtils;
+
+
+
+/**
+ * This class performs some basic testing of the {@link ChangeRetryScheduler}
+ * class, and in particular of the rules that keep a retried change from
+ * overtaking a later change that conflicts with it, whether that change
+ * targets the same entry, an ancestor, or a descendant.  It also ensures that
+ * a {@link CheckpointTracker} holds the checkpoint while a retry is
+ * unresolved and advances it once the retry succeeds.
+ */
+public class TestChangeRetryScheduler
+{
+  /**
+   * The number of the next batch to create.
+   */
+  private static int nextBatchNumber = 1;
+
+
+
+  /**
+   * Runs the tests.
+   *
+   * @param  args  The provided command-line arguments.
+   *
+   * @throws  Exception  If an unexpected problem occurs.
+   */
+  public static void main(final String... args)
+         throws Exception
+  {
+    // A later change to the same entry cancels a waiting retry.
+    assertSupersededBySentChange(modify("uid=same,dc=example,dc=com"),
+         modify("uid=same,dc=example,dc=com"), true);
+    System.out.println("A change to the same entry cancelled a retry.");
+
+
+    // A change to a descendant cancels a waiting retry of an add of its
+    // ancestor, and a delete of an ancestor cancels a waiting retry of a
+    // change to its descendant.
+    assertSupersededBySentChange(add("ou=Parent,dc=example,dc=com"),
+         add("uid=child,ou=Parent,dc=example,dc=com"), true);
+    assertSupersededBySentChange(
+         modify("uid=child,ou=Parent,dc=example,dc=com"),
+         new DeleteRequest("ou=Parent,dc=example,dc=com"), true);
+    System.out.println("Changes to an ancestor or descendant cancelled " +
+         "retries.");
+
+
+    // Modifies of an entry and of its descendant don't conflict, and neither
+    // do changes to entries in separate subtrees.
+    assertSupersededBySentChange(modify("ou=Parent,dc=example,dc=com"),
+         modify("uid=child,ou=Parent,dc=example,dc=com"), false);
+    assertSupersededBySentChange(add("ou=Parent,dc=example,dc=com"),
+         add("uid=other,ou=Other,dc=example,dc=com"), false);
+    System.out.println("Changes that don't conflict left retries alone.");
+
+
+    // Within a batch, an add of a parent can't be retried if a later change to
+    // its child succeeded, but it can be retried along with that change if
+    // both of them failed.
+    ChangeRetryScheduler scheduler = createScheduler();
+    final LDAPRequest parentAdd = add("ou=Parent,dc=example,dc=com");
+    final LDAPRequest childAdd = add("uid=child,ou=Parent,dc=example,dc=com");
+    MultiUpdateBatch batch = sendBatch(scheduler, parentAdd, childAdd);
+    MultiUpdateTestUtils.assertTrue(
+         scheduler.processResults(batch, createResult(batch, ResultCode.BUSY,
+              ResultCode.SUCCESS)) == null,
+         "Expected the add of the parent not to be retried");
+    assertPermanentFailures(scheduler, true);
+
+    scheduler = createScheduler();
+    batch = sendBatch(scheduler, parentAdd, childAdd);
+    final ChangeRetryScheduler.RetryBatch retryBatch = scheduler.processResults(
+         batch, createResult(batch, ResultCode.BUSY, ResultCode.BUSY));
+    MultiUpdateTestUtils.assertTrue(
+         (retryBatch != null) &&
+         retryBatch.getBatch().getRequests().equals(
+              Arrays.asList(parentAdd, childAdd)),
+         "Expected both adds to be retried together in their original order");
+    assertPermanentFailures(scheduler);
+    System.out.println("Conflicting changes within a batch were only retried " +
+         "together.");
+
+
+    // A change can't be retried if a batch that was sent after it, but whose
+    // results haven't been processed, includes a change to a descendant.
+    scheduler = createScheduler();
+    batch = sendBatch(scheduler, add("ou=Parent,dc=example,dc=com"));
+    sendBatch(scheduler, modify("uid=child,ou=Parent,dc=example,dc=com"));
+    MultiUpdateTestUtils.assertTrue(
+         scheduler.processResults(batch,
+              createResult(batch, ResultCode.BUSY)) == null,
+         "Expected the add not to be retried after a change to a " +
+              "descendant was sent");
+    assertPermanentFailures(scheduler, true);
+    System.out.println("A change to a descendant in a later outstanding " +
+         "batch prevented a retry.");
+
+
+    // The checkpoint is held while a change waits to be retried.  It advances
+    // past every acknowledged change once the retry succeeds, but it never
+    // moves past the change if the retry fails.
+    assertCheckpointAfterRetry(ResultCode.SUCCESS, true);
+    assertCheckpointAfterRetry(ResultCode.NO_SUCH_OBJECT, false);
+    System.out.println("The checkpoint advanced after a recovered retry and " +
+         "was frozen after a failed one.");
+
+    System.out.println("All tests yielded the expected results.");
+  }
+
+
+
+  /**
+   * Ensures that a change that fails with a transient result code is or is
+   * not superseded when another change is sent while it waits to be retried.
+   *
+   * @param  failedChange        The change that fails and is scheduled to be
+   *                             retried.
+   * @param  laterChange         The change that is sent while the failed
+   *                             change is waiting.
+   * @param  expectSuperseded    Indicates whether the failed change is expected
+   *                             to be superseded by the later change.
+   *
+   * @throws  Exception  If the failed change isn't handled as expected.
+   */
+  private static void assertSupersededBySentChange(
+                           final LDAPRequest failedChange,
+                           final LDAPRequest laterChange,
+                           final boolean expectSuperseded)
+          throws Exception
+  {
+    final ChangeRetryScheduler scheduler = createScheduler();
+    final MultiUpdateBatch failedBatch = sendBatch(scheduler, failedChange);
+    MultiUpdateTestUtils.assertTrue(
+         scheduler.processResults(failedBatch,
+              createResult(failedBatch, ResultCode.BUSY)) != null,
+         "Expected " + failedChange + " to be scheduled for a retry");
+
+    final MultiUpdateBatch laterBatch = sendBatch(scheduler, laterChange);
+    scheduler.processResults(laterBatch,
+         createResult(laterBatch, ResultCode.SUCCESS));
+
+    if (expectSuperseded)
+    {
+      MultiUpdateTestUtils.assertTrue(! scheduler.hasUnresolvedRetries(),
+           "Expected the retry of " + failedChange + " to be cancelled by " +
+                laterChange);
+      assertPermanentFailures(scheduler, true);
+    }
+    else
+    {
+      while (scheduler.getMillisUntilNextRetry() > 0L)
+      {
+        Thread.sleep(scheduler.getMillisUntilNextRetry());
+      }
+
+      final ChangeRetryScheduler.RetryBatch retryBatch =
+           scheduler.nextRetryBatch();
+      MultiUpdateTestUtils.assertTrue(
+           (retryBatch != null) &&
+           retryBatch.getBatch().getRequests().equals(
+                Arrays.asList(failedChange)),
+           "Expected " + failedChange + " to still be retried after " +
+                laterChange);
+      assertPermanentFailures(scheduler);
+    }
+  }
+
+
+
+  /**
+   * Ensures that the checkpoint is held while the first change in a batch is
+   * waiting to be retried, even after a later batch is acknowledged, and that
+   * it is or is not advanced once the retry has completed.
+   *
+   * @param  retryResultCode   The result code for the retried change.
+   * @param  expectAdvanced    Indicates whether the checkpoint is expected to
+   *                           be advanced past both batches once the retry
+   *                           has completed.
+   *
+   * @throws  Exception  If the checkpoint isn't handled as expected.
+   */
+  private static void assertCheckpointAfterRetry(
+                           final ResultCode retryResultCode,
+                           final boolean expectAdvanced)
+          throws Exception
+  {
+    final File checkpointFile = File.createTempFile("checkpoint-", ".txt");
+    checkpointFile.delete();
+    checkpointFile.deleteOnExit();
+
+    final ChangeRetryScheduler scheduler = createScheduler();
+    final CheckpointTracker tracker =
+         new CheckpointTracker(checkpointFile, "changes.ldif");
+
+    final MultiUpdateBatch firstBatch = sendBatch(scheduler,
+         add("uid=first,dc=example,dc=com"),
+         add("uid=second,dc=example,dc=com"));
+    scheduler.processResults(firstBatch,
+         createResult(firstBatch, ResultCode.BUSY, ResultCode.SUCCESS));
+    tracker.batchCompleted(firstBatch, 2, scheduler);
+
+    final MultiUpdateBatch secondBatch = sendBatch(scheduler,
+         add("uid=third,dc=example,dc=com"));
+    scheduler.processResults(secondBatch,
+         createResult(secondBatch, ResultCode.SUCCESS));
+    tracker.batchCompleted(secondBatch, 1, scheduler);
+    MultiUpdateTestUtils.assertTrue(! checkpointFile.exists(),
+         "Expected the checkpoint to be held while a retry is unresolved");
+
+    while (scheduler.getMillisUntilNextRetry() > 0L)
+    {
+      Thread.sleep(scheduler.getMillisUntilNextRetry());
+    }
+
+    final MultiUpdateBatch retryBatch =
+         scheduler.nextRetryBatch().getBatch();
+    scheduler.recordSentBatch(retryBatch);
+    scheduler.processResults(retryBatch,
+         createResult(retryBatch, retryResultCode));
+    tracker.batchCompleted(retryBatch, 1, scheduler);
+
+    if (expectAdvanced)
+    {
+      MultiUpdateTestUtils.assertTrue(
+           checkpointFile.exists() &&
+           (MultiUpdateCheckpoint.read(checkpointFile).getRecordNumber() ==
+                secondBatch.getLastChangeNumber()),
+           "Expected the checkpoint to advance past change " +
+                secondBatch.getLastChangeNumber() + " after the retry " +
+                "succeeded");
+      MultiUpdateTestUtils.assertTrue(! tracker.isFrozen(),
+           "Expected the checkpoint not to be frozen after the retry " +
+                "succeeded");
+    }
+    else
+    {
+      MultiUpdateTestUtils.assertTrue(! checkpointFile.exists(),
+           "Expected the checkpoint not to advance after the retry failed");
+      MultiUpdateTestUtils.assertTrue(tracker.isFrozen(),
+           "Expected the checkpoint to be frozen after the retry failed");
+    }
+  }
+
+
+
+  /**
+   * Ensures that the provided scheduler has recorded the expected permanent
+   * failures.
+   *
+   * @param  scheduler           The scheduler to examine.
+   * @param  expectedSuperseded  Whether each expected permanent failure should
+   *                             have been superseded by a later change.
+   */
+  private static void assertPermanentFailures(
+                           final ChangeRetryScheduler scheduler,
+                           final boolean... expectedSuperseded)
+  {
+    final List<ChangeRetryScheduler.ChangeOutcome> failures =
+         scheduler.getPermanentFailures();
+    MultiUpdateTestUtils.assertTrue(
+         failures.size() == expectedSuperseded.length,
+         "Expected " + expectedSuperseded.length + " permanent failures, got " +
+              failures.size());
+    for (int i=0; i < expectedSuperseded.length; i++)
+    {
+      MultiUpdateTestUtils.assertTrue(
+           failures.get(i).wasSuperseded() == expectedSuperseded[i],
+           "Expected permanent failure " + i + " to have superseded=" +
+                expectedSuperseded[i]);
+    }
+  }
+
+
+
+  /**
+   * Creates a scheduler that allows three retries with a short delay.
+   *
+   * @return  The scheduler that was created.
+   */
+  private static ChangeRetryScheduler createScheduler()
+  {
+    return new ChangeRetryScheduler(3, 1L, 1L);
+  }
+
+
+
+  /**
+   * Creates a batch with the provided changes and records that it was sent.
+   *
+   * @param  scheduler  The scheduler to which the batch is sent.
+   * @param  changes    The changes to include in the batch.
+   *
+   * @return  The batch that was created.
+   */
+  private static MultiUpdateBatch sendBatch(
+                                       final ChangeRetryScheduler scheduler,
+                                       final LDAPRequest... changes)
+  {
+    final long firstChangeNumber = nextBatchNumber * 100L;
+    final long[] checkpointChangeNumbers = new long[changes.length + 1];
+    final long[] checkpointOffsets = new long[changes.length + 1];
+    for (int i=0; i < checkpointChangeNumbers.length; i++)
+    {
+      checkpointChangeNumbers[i] = firstChangeNumber + i - 1L;
+      checkpointOffsets[i] = 1000L * (firstChangeNumber + i - 1L);
+    }
+
+    final MultiUpdateBatch batch = new MultiUpdateBatch(nextBatchNumber++,
+         firstChangeNumber, (firstChangeNumber + changes.length - 1L),
+         Arrays.asList(changes), checkpointChangeNumbers, checkpointOffsets,
+         0L);
+    scheduler.recordSentBatch(batch);
+    return batch;
+  }
+
+
+
+  /**
+   * Creates a multi-update result for the provided batch with the given
+   * result code for each change.
+   *
+   * @param  batch        The batch for which to create the result.
+   * @param  resultCodes  The result code for each change in the batch.
+   *
+   * @return  The result that was created.
+   *
+   * @throws  Exception  If the result cannot be created.
+   */
+  private static MultiUpdateExtendedResult createResult(
+                      final MultiUpdateBatch batch,
+                      final ResultCode... resultCodes)
+          throws Exception
+  {
+    final List<ObjectPair<OperationType,LDAPResult>> results =
+         new ArrayList<>(resultCodes.length);
+    boolean allSucceeded = true;
+    boolean anySucceeded = false;
+    for (int i=0; i < resultCodes.length; i++)
+    {
+      results.add(new ObjectPair<>(
+           batch.getRequests().get(i).getOperationType(),
+           new LDAPResult(-1, resultCodes[i])));
+      allSucceeded &= (resultCodes[i] == ResultCode.SUCCESS);
+      anySucceeded |= (resultCodes[i] == ResultCode.SUCCESS);
+    }
+
+    final MultiUpdateChangesApplied changesApplied;
+    if (allSucceeded)
+    {
+      changesApplied = MultiUpdateChangesApplied.ALL;
+    }
+    else if (anySucceeded)
+    {
+      changesApplied = MultiUpdateChangesApplied.PARTIAL;
+    }
+    else
+    {
+      changesApplied = MultiUpdateChangesApplied.NONE;
+    }
+
+    return new MultiUpdateExtendedResult(-1, ResultCode.SUCCESS, null, null,
+         null, changesApplied, results, StaticUtils.NO_CONTROLS);
+  }
+
+
+
+  /**
+   * Creates an add request for an organizational unit or user entry with the
+   * provided DN.
+   *
+   * @param  dn  The DN of the entry to add.
+   *
+   * @return  The add request that was created.
+   */
+  private static AddRequest add(final String dn)
+  {
+    if (dn.startsWith("ou="))
+    {
+      return new AddRequest(dn,
+           new Attribute("objectClass", "organizationalUnit"));
+    }
+
+    return new AddRequest(dn, new Attribute("objectClass", "account"));
+  }
+
+
+
+  /**
+   * Creates a modify request that replaces the description of the entry with
+   * the provided DN.
+   *
+   * @param  dn  The DN of the entry to modify.
+   *
+   * @return  The modify request that was created.
+   */
+  private static ModifyRequest modify(final String dn)
+  {
+    return new ModifyRequest(dn, new Modification(ModificationType.REPLACE,
+         "description", "modified"));
+  }
+}
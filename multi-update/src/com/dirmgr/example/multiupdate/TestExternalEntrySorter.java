@@ -0,0 +1,180 @@
+/*
+ * Copyright 2019 Neil A. Wilson
+ * All Rights Reserved.
+ */
+/*
+ * Copyright (C) 2019 Neil A. Wilson
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPLv2 only)
+ * or the terms of the GNU Lesser General Public License (LGPLv2.1 only)
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, see <http://www.gnu.org/licenses>.
+ */
+/*
+ * Copyright 2019 Neil A. Wilson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dirmgr.example.multiupdate;
+
+
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import com.unboundid.ldap.sdk.DN;
+import com.unboundid.ldap.sdk.Entry;
+
+
+
+/**
+ * This class performs some basic testing of the {@link ExternalEntrySorter}
+ * class, and in particular ensures that the entries are returned in
+ * hierarchical order when there are more sorted runs than can be merged at
+ * once.
+ */
+public class TestExternalEntrySorter
+{
+  /**
+   * Runs the tests.
+   *
+   * @param  args  The provided command-line arguments.
+   *
+   * @throws  Exception  If an unexpected problem occurs.
+   */
+  public static void main(final String... args)
+         throws Exception
+  {
+    // Entries that fit in memory are sorted without any temporary files.
+    assertSorted(100, 1000, 4, 0, 0);
+    System.out.println("Entries that fit in memory were sorted.");
+
+
+    // Runs that can all be merged at once don't need any extra passes.
+    assertSorted(100, 30, 4, 4, 0);
+    System.out.println("Runs that fit within the fan-in were merged " +
+         "directly.");
+
+
+    // With more runs than the fan-in, the runs are merged into larger runs
+    // first, in as many passes as needed.
+    assertSorted(100, 10, 4, 10, 1);
+    assertSorted(500, 5, 2, 100, 6);
+    System.out.println("Runs beyond the fan-in were merged in multiple " +
+         "passes.");
+
+    System.out.println("All tests yielded the expected results.");
+  }
+
+
+
+  /**
+   * Adds entries in a random order to a sorter with the provided limits and
+   * ensures that they are returned in sorted order.
+   *
+   * @param  numUsers            The number of user entries to add below the
+   *                             two organizational units.
+   * @param  maxEntriesInMemory  The maximum number of entries that the sorter
+   *                             may hold in memory.
+   * @param  maxMergeFanIn       The maximum number of runs that the sorter may
+   *                             merge at once.
+   * @param  expectedRuns        The expected number of runs written from the
+   *                             in-memory buffer.
+   * @param  expectedPasses      The expected number of extra merge passes.
+   *
+   * @throws  Exception  If the entries are not sorted as expected.
+   */
+  private static void assertSorted(final int numUsers,
+                                   final int maxEntriesInMemory,
+                                   final int maxMergeFanIn,
+                                   final int expectedRuns,
+                                   final int expectedPasses)
+          throws Exception
+  {
+    final List<Entry> entries = new ArrayList<>(numUsers + 2);
+    entries.add(new Entry(
+         "dn: ou=People,dc=example,dc=com",
+         "objectClass: organizationalUnit",
+         "ou: People"));
+    entries.add(new Entry(
+         "dn: ou=Contractors,ou=People,dc=example,dc=com",
+         "objectClass: organizationalUnit",
+         "ou: Contractors"));
+    for (int i=0; i < (numUsers - 2); i++)
+    {
+      final String parentDN;
+      if ((i % 3) == 0)
+      {
+        parentDN = "ou=Contractors,ou=People,dc=example,dc=com";
+      }
+      else
+      {
+        parentDN = "ou=People,dc=example,dc=com";
+      }
+
+      entries.add(new Entry(
+           "dn: uid=user." + i + ',' + parentDN,
+           "objectClass: account",
+           "uid: user." + i));
+    }
+    Collections.shuffle(entries, new Random(numUsers));
+
+    try (ExternalEntrySorter sorter =
+              new ExternalEntrySorter(null, maxEntriesInMemory, maxMergeFanIn))
+    {
+      for (final Entry e : entries)
+      {
+        sorter.add(e);
+      }
+
+      DN previousDN = null;
+      int count = 0;
+      Entry entry = sorter.next();
+      while (entry != null)
+      {
+        final DN dn = entry.getParsedDN();
+        MultiUpdateTestUtils.assertTrue(
+             (previousDN == null) || (previousDN.compareTo(dn) < 0),
+             "Expected entry " + dn + " to come after " + previousDN);
+        MultiUpdateTestUtils.assertTrue(
+             (previousDN == null) || (! previousDN.isDescendantOf(dn, false)),
+             "Expected entry " + dn + " to come before its descendant " +
+                  previousDN);
+
+        previousDN = dn;
+        count++;
+        entry = sorter.next();
+      }
+
+      MultiUpdateTestUtils.assertTrue(count == entries.size(),
+           "Expected " + entries.size() + " sorted entries, got " + count);
+      MultiUpdateTestUtils.assertTrue(sorter.getRunCount() == expectedRuns,
+           "Expected " + expectedRuns + " sorted runs, got " +
+                sorter.getRunCount());
+      MultiUpdateTestUtils.assertTrue(
+           sorter.getMergePassCount() == expectedPasses,
+           "Expected " + expectedPasses + " merge passes, got " +
+                sorter.getMergePassCount());
+    }
+  }
+}
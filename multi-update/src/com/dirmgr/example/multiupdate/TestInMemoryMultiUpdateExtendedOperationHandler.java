@@ -0,0 +1,443 @@
+/*
+ * Copyright 2019 Neil A. Wilson
+ * All Rights Reserved.
+ */
+/*
+ * Copyright (C) 2019 Neil A. Wilson
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPLv2 only)
+ * or the terms of the GNU Lesser General Public License (LGPLv2.1 only)
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, see <http://www.gnu.org/licenses>.
+ */
+/*
+ * Copyright 2019 Neil A. Wilson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dirmgr.example.multiupdate;
+
+
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.PrintWriter;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import com.unboundid.ldap.listener.InMemoryDirectoryServer;
+import com.unboundid.ldap.listener.InMemoryDirectoryServerConfig;
+import com.unboundid.ldap.sdk.AddRequest;
+import com.unboundid.ldap.sdk.DeleteRequest;
+import com.unboundid.ldap.sdk.Entry;
+import com.unboundid.ldap.sdk.Filter;
+import com.unboundid.ldap.sdk.LDAPConnection;
+import com.unboundid.ldap.sdk.LDAPRequest;
+import com.unboundid.ldap.sdk.LDAPResult;
+import com.unboundid.ldap.sdk.Modification;
+import com.unboundid.ldap.sdk.ModificationType;
+import com.unboundid.ldap.sdk.ModifyDNRequest;
+import com.unboundid.ldap.sdk.ModifyRequest;
+import com.unboundid.ldap.sdk.OperationType;
+import com.unboundid.ldap.sdk.ResultCode;
+import com.unboundid.ldap.sdk.SearchResult;
+import com.unboundid.ldap.sdk.SearchResultEntry;
+import com.unboundid.ldap.sdk.SearchScope;
+import com.unboundid.ldap.sdk.controls.SubtreeDeleteRequestControl;
+import com.unboundid.ldap.sdk.unboundidds.extensions.MultiUpdateChangesApplied;
+import com.unboundid.ldap.sdk.unboundidds.extensions.MultiUpdateErrorBehavior;
+import com.unboundid.ldap.sdk.unboundidds.extensions.MultiUpdateExtendedRequest;
+import com.unboundid.ldap.sdk.unboundidds.extensions.MultiUpdateExtendedResult;
+import com.unboundid.util.LDAPTestUtils;
+import com.unboundid.util.ObjectPair;
+
+
+
+/**
+ * This class demonstrates how to use the
+ * {@link InMemoryMultiUpdateExtendedOperationHandler} and performs some basic
+ * testing of it, both by sending multi-update requests directly and by running
+ * the {@link MultiUpdateLDAPModify} tool against an in-memory directory server
+ * instance.
+ */
+public class TestInMemoryMultiUpdateExtendedOperationHandler
+{
+  /**
+   * Creates an in-memory directory server instance with the multi-update
+   * extended operation handler and runs some tests against it.
+   *
+   * @param  args  The provided command-line arguments.
+   *
+   * @throws  Exception  If an unexpected problem occurs.
+   */
+  public static void main(final String... args)
+         throws Exception
+  {
+    final InMemoryDirectoryServerConfig config =
+         new InMemoryDirectoryServerConfig("dc=example,dc=com");
+    config.addExtendedOperationHandler(
+         new InMemoryMultiUpdateExtendedOperationHandler());
+
+    final InMemoryDirectoryServer ds = new InMemoryDirectoryServer(config);
+    ds.startListening();
+
+    try (final LDAPConnection conn = ds.getConnection())
+    {
+      conn.add(
+           "dn: dc=example,dc=com",
+           "objectClass: top",
+           "objectClass: domain",
+           "dc: example");
+      conn.add(
+           "dn: ou=People,dc=example,dc=com",
+           "objectClass: top",
+           "objectClass: organizationalUnit",
+           "ou: People");
+
+
+      // An atomic request in which every change succeeds should apply all of
+      // them.
+      MultiUpdateExtendedResult result = process(conn,
+           MultiUpdateErrorBehavior.ATOMIC,
+           new AddRequest(userEntry("atomic.one")),
+           new AddRequest(userEntry("atomic.two")),
+           new ModifyRequest(userDN("atomic.one"), new Modification(
+                ModificationType.REPLACE, "description", "modified")));
+      System.out.println("Expected atomic success result was " + result);
+      assertChangeResults(result, MultiUpdateChangesApplied.ALL,
+           ResultCode.SUCCESS, ResultCode.SUCCESS, ResultCode.SUCCESS);
+      LDAPTestUtils.assertEntryExists(conn, userDN("atomic.one"),
+           "(description=modified)");
+      LDAPTestUtils.assertEntryExists(conn, userDN("atomic.two"));
+
+
+      // An atomic request with a failed change should roll back the changes
+      // before it, and it should not attempt the changes after it.
+      result = process(conn,
+           MultiUpdateErrorBehavior.ATOMIC,
+           new AddRequest(userEntry("atomic.three")),
+           new DeleteRequest(userDN("atomic.two")),
+           new DeleteRequest(userDN("missing")),
+           new AddRequest(userEntry("atomic.four")));
+      System.out.println("Expected atomic failure result was " + result);
+      assertChangeResults(result, MultiUpdateChangesApplied.NONE,
+           ResultCode.CANCELED, ResultCode.CANCELED, ResultCode.NO_SUCH_OBJECT,
+           ResultCode.CANCELED);
+      LDAPTestUtils.assertEntryMissing(conn, userDN("atomic.three"));
+      LDAPTestUtils.assertEntryExists(conn, userDN("atomic.two"));
+      LDAPTestUtils.assertEntryMissing(conn, userDN("atomic.four"));
+
+
+      // An atomic request that fails after changes of every type should leave
+      // every entry as it was, apart from the modifiersName and
+      // modifyTimestamp attributes.  The first request is reverted entirely
+      // by undoing each change, and the second uses the subtree delete
+      // control, so the changes from that point on are reverted by restoring
+      // a snapshot.
+      final Map<String,Entry> entriesBeforeRollback = getEntries(conn);
+      final LDAPRequest[] changesOfEveryType =
+      {
+        new AddRequest(
+             "dn: ou=Rollback,dc=example,dc=com",
+             "objectClass: top",
+             "objectClass: organizationalUnit",
+             "ou: Rollback"),
+        new AddRequest(
+             "dn: uid=rollback.child,ou=Rollback,dc=example,dc=com",
+             "objectClass: top",
+             "objectClass: person",
+             "objectClass: organizationalPerson",
+             "objectClass: inetOrgPerson",
+             "uid: rollback.child",
+             "givenName: Rollback",
+             "sn: Child",
+             "cn: Rollback Child"),
+        new ModifyRequest(userDN("atomic.one"),
+             new Modification(ModificationType.REPLACE, "description",
+                  "rolled back"),
+             new Modification(ModificationType.ADD, "mail",
+                  "atomic.one@example.com")),
+        new ModifyDNRequest(userDN("atomic.two"), "uid=atomic.renamed", true,
+             "ou=Rollback,dc=example,dc=com"),
+        new DeleteRequest(userDN("atomic.one"))
+      };
+
+      result = process(conn, MultiUpdateErrorBehavior.ATOMIC,
+           changesOfEveryType[0], changesOfEveryType[1],
+           changesOfEveryType[2], changesOfEveryType[3],
+           changesOfEveryType[4], new DeleteRequest(userDN("missing")));
+      System.out.println("Expected atomic rollback result was " + result);
+      assertChangeResults(result, MultiUpdateChangesApplied.NONE,
+           ResultCode.CANCELED, ResultCode.CANCELED, ResultCode.CANCELED,
+           ResultCode.CANCELED, ResultCode.CANCELED,
+           ResultCode.NO_SUCH_OBJECT);
+      MultiUpdateTestUtils.assertTrue(
+           getEntries(conn).equals(entriesBeforeRollback),
+           "Expected the server content to be unchanged after reverting " +
+                "changes of every type, but it was " + getEntries(conn));
+
+      final DeleteRequest subtreeDelete =
+           new DeleteRequest("ou=Rollback,dc=example,dc=com");
+      subtreeDelete.addControl(new SubtreeDeleteRequestControl());
+      result = process(conn, MultiUpdateErrorBehavior.ATOMIC,
+           changesOfEveryType[0], changesOfEveryType[1],
+           changesOfEveryType[2], changesOfEveryType[3], subtreeDelete,
+           changesOfEveryType[4], new DeleteRequest(userDN("missing")));
+      System.out.println("Expected atomic subtree delete rollback result " +
+           "was " + result);
+      assertChangeResults(result, MultiUpdateChangesApplied.NONE,
+           ResultCode.CANCELED, ResultCode.CANCELED, ResultCode.CANCELED,
+           ResultCode.CANCELED, ResultCode.CANCELED, ResultCode.CANCELED,
+           ResultCode.NO_SUCH_OBJECT);
+      MultiUpdateTestUtils.assertTrue(
+           getEntries(conn).equals(entriesBeforeRollback),
+           "Expected the server content to be unchanged after reverting " +
+                "a subtree delete, but it was " + getEntries(conn));
+
+
+      // An abort-on-error request should keep the changes before a failure,
+      // and it should not attempt the changes after it.
+      result = process(conn,
+           MultiUpdateErrorBehavior.ABORT_ON_ERROR,
+           new AddRequest(userEntry("abort.one")),
+           new AddRequest(userEntry("abort.one")),
+           new AddRequest(userEntry("abort.two")));
+      System.out.println("Expected abort-on-error result was " + result);
+      assertChangeResults(result, MultiUpdateChangesApplied.PARTIAL,
+           ResultCode.SUCCESS, ResultCode.ENTRY_ALREADY_EXISTS);
+      LDAPTestUtils.assertEntryExists(conn, userDN("abort.one"));
+      LDAPTestUtils.assertEntryMissing(conn, userDN("abort.two"));
+
+
+      // A continue-on-error request should attempt every change.
+      result = process(conn,
+           MultiUpdateErrorBehavior.CONTINUE_ON_ERROR,
+           new DeleteRequest(userDN("missing")),
+           new AddRequest(userEntry("continue.one")),
+           new ModifyRequest(userDN("continue.one"), new Modification(
+                ModificationType.DELETE, "description")));
+      System.out.println("Expected continue-on-error result was " + result);
+      assertChangeResults(result, MultiUpdateChangesApplied.PARTIAL,
+           ResultCode.NO_SUCH_OBJECT, ResultCode.SUCCESS,
+           ResultCode.NO_SUCH_ATTRIBUTE);
+      LDAPTestUtils.assertEntryExists(conn, userDN("continue.one"));
+
+
+      // A continue-on-error request in which every change fails should report
+      // that none of the changes were applied.
+      result = process(conn,
+           MultiUpdateErrorBehavior.CONTINUE_ON_ERROR,
+           new DeleteRequest(userDN("missing")),
+           new AddRequest(userEntry("continue.one")));
+      System.out.println("Expected continue-on-error failure result was " +
+           result);
+      assertChangeResults(result, MultiUpdateChangesApplied.NONE,
+           ResultCode.NO_SUCH_OBJECT, ResultCode.ENTRY_ALREADY_EXISTS);
+
+
+      // Run the multi-update ldapmodify tool against the server in chunked
+      // mode.  The first batch should be applied, and the second one should
+      // be rolled back because of its failed change.
+      final File ldifFile = File.createTempFile("multi-update-", ".ldif");
+      ldifFile.deleteOnExit();
+      try (PrintWriter w = new PrintWriter(ldifFile))
+      {
+        w.println("dn: " + userDN("tool.one"));
+        w.println("changetype: add");
+        w.println("objectClass: inetOrgPerson");
+        w.println("uid: tool.one");
+        w.println("cn: Tool One");
+        w.println("sn: One");
+        w.println();
+        w.println("dn: " + userDN("tool.one"));
+        w.println("changetype: modify");
+        w.println("replace: description");
+        w.println("description: modified");
+        w.println();
+        w.println("dn: " + userDN("tool.two"));
+        w.println("changetype: add");
+        w.println("objectClass: inetOrgPerson");
+        w.println("uid: tool.two");
+        w.println("cn: Tool Two");
+        w.println("sn: Two");
+        w.println();
+        w.println("dn: " + userDN("missing"));
+        w.println("changetype: delete");
+      }
+
+      final ByteArrayOutputStream toolOutput = new ByteArrayOutputStream();
+      final ResultCode toolResultCode = MultiUpdateLDAPModify.main(toolOutput,
+           toolOutput,
+           "--hostname", "localhost",
+           "--port", String.valueOf(ds.getListenPort()),
+           "--ldifFile", ldifFile.getAbsolutePath(),
+           "--errorBehavior", "atomic",
+           "--maxChangesPerRequest", "2");
+      System.out.println("Expected tool output was:");
+      System.out.println(toolOutput.toString("UTF-8"));
+      LDAPTestUtils.assertResultCodeEquals(
+           new LDAPResult(-1, toolResultCode), ResultCode.SUCCESS);
+      LDAPTestUtils.assertEntryExists(conn, userDN("tool.one"),
+           "(description=modified)");
+      LDAPTestUtils.assertEntryMissing(conn, userDN("tool.two"));
+
+      System.out.println("All tests yielded the expected results.");
+    }
+    finally
+    {
+      ds.shutDown(true);
+    }
+  }
+
+
+
+  /**
+   * Retrieves all of the entries in the server, with their operational
+   * attributes other than modifiersName and modifyTimestamp.
+   *
+   * @param  conn  The connection to use to retrieve the entries.
+   *
+   * @return  A map of the entries in the server, keyed by normalized DN.
+   *
+   * @throws  Exception  If an unexpected problem occurs.
+   */
+  private static Map<String,Entry> getEntries(final LDAPConnection conn)
+          throws Exception
+  {
+    final SearchResult searchResult = conn.search("dc=example,dc=com",
+         SearchScope.SUB, Filter.createPresenceFilter("objectClass"), "*",
+         "+");
+    final Map<String,Entry> entries = new TreeMap<>();
+    for (final SearchResultEntry searchEntry :
+         searchResult.getSearchEntries())
+    {
+      final Entry entry = searchEntry.duplicate();
+      entry.removeAttribute("modifiersName");
+      entry.removeAttribute("modifyTimestamp");
+      entries.put(entry.getParsedDN().toNormalizedString(), entry);
+    }
+
+    return entries;
+  }
+
+
+
+  /**
+   * Sends a multi-update extended request with the provided changes.
+   *
+   * @param  conn           The connection to use to send the request.
+   * @param  errorBehavior  The error behavior for the request.
+   * @param  changes        The changes to include in the request.
+   *
+   * @return  The multi-update extended result.
+   *
+   * @throws  Exception  If an unexpected problem occurs.
+   */
+  private static MultiUpdateExtendedResult process(
+                      final LDAPConnection conn,
+                      final MultiUpdateErrorBehavior errorBehavior,
+                      final LDAPRequest... changes)
+          throws Exception
+  {
+    final MultiUpdateExtendedRequest request =
+         new MultiUpdateExtendedRequest(errorBehavior, changes);
+    final MultiUpdateExtendedResult result =
+         (MultiUpdateExtendedResult) conn.processExtendedOperation(request);
+    LDAPTestUtils.assertResultCodeEquals(result, ResultCode.SUCCESS);
+    return result;
+  }
+
+
+
+  /**
+   * Ensures that the provided multi-update result indicates the expected set
+   * of changes were applied and has the expected result for each change.
+   *
+   * @param  result          The multi-update result to examine.
+   * @param  changesApplied  The expected changes applied value.
+   * @param  resultCodes     The expected result code for each change.
+   *
+   * @throws  AssertionError  If the result does not match what was expected.
+   */
+  private static void assertChangeResults(
+                           final MultiUpdateExtendedResult result,
+                           final MultiUpdateChangesApplied changesApplied,
+                           final ResultCode... resultCodes)
+          throws AssertionError
+  {
+    MultiUpdateTestUtils.assertTrue(
+         result.getChangesApplied() == changesApplied,
+         "Expected changes applied " + changesApplied + " but got " +
+              result.getChangesApplied());
+
+    final List<ObjectPair<OperationType,LDAPResult>> changeResults =
+         result.getResults();
+    MultiUpdateTestUtils.assertTrue(changeResults.size() == resultCodes.length,
+         "Expected " + resultCodes.length + " change results but got " +
+              changeResults.size());
+
+    for (int i=0; i < resultCodes.length; i++)
+    {
+      LDAPTestUtils.assertResultCodeEquals(changeResults.get(i).getSecond(),
+           resultCodes[i]);
+    }
+  }
+
+
+
+  /**
+   * Creates a user entry with the provided user ID.
+   *
+   * @param  userID  The user ID for the user.
+   *
+   * @return  The lines that comprise the user entry.
+   */
+  private static String[] userEntry(final String userID)
+  {
+    return new String[]
+    {
+      "dn: " + userDN(userID),
+      "objectClass: top",
+      "objectClass: person",
+      "objectClass: organizationalPerson",
+      "objectClass: inetOrgPerson",
+      "uid: " + userID,
+      "givenName: Test",
+      "sn: User",
+      "cn: Test User"
+    };
+  }
+
+
+
+  /**
+   * Retrieves the DN for the user with the provided user ID.
+   *
+   * @param  userID  The user ID for which to retrieve the DN.
+   *
+   * @return  The DN for the user with the provided user ID.
+   */
+  private static String userDN(final String userID)
+  {
+    return "uid=" + userID + ",ou=People,dc=example,dc=com";
+  }
+}
@@ -0,0 +1,225 @@
+/*
+ * Copyright 2019 Neil A. Wilson
+ * All Rights Reserved.
+ */
+/*
+ * Copyright (C) 2019 Neil A. Wilson
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPLv2 only)
+ * or the terms of the GNU Lesser General Public License (LGPLv2.1 only)
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, see <http://www.gnu.org/licenses>.
+ */
+/*
+ * Copyright 2019 Neil A. Wilson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dirmgr.example.multiupdate;
+
+
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.unboundid.ldap.sdk.ModifyRequest;
+import com.unboundid.ldif.LDIFException;
+import com.unboundid.util.StaticUtils;
+
+
+
+/**
+ * This class performs some basic testing of the
+ * {@link ParallelLDIFChangeReader} class, including the line numbers that it
+ * reports for malformed records in LDIF content that starts with a version
+ * line, and its handling of standard input.
+ */
+public class TestParallelLDIFChangeReader
+{
+  /**
+   * Runs the tests.
+   *
+   * @param  args  The provided command-line arguments.
+   *
+   * @throws  Exception  If an unexpected problem occurs.
+   */
+  public static void main(final String... args)
+         throws Exception
+  {
+    // Valid content with a version line should yield every change, with
+    // record numbers that don't count the version line.
+    try (ParallelLDIFChangeReader reader = createReader(
+              "version: 1",
+              "dn: uid=test.1,ou=People,dc=example,dc=com",
+              "changetype: modify",
+              "replace: description",
+              "description: first",
+              "",
+              "dn: uid=test.2,ou=People,dc=example,dc=com",
+              "changetype: delete"))
+    {
+      final ParsedLDIFChange firstChange = reader.read();
+      MultiUpdateTestUtils.assertTrue(
+           (firstChange != null) && (firstChange.getRecordNumber() == 1L) &&
+           (firstChange.getRequest() instanceof ModifyRequest),
+           "Expected the first change to be a modify, got " + firstChange);
+      final ParsedLDIFChange secondChange = reader.read();
+      MultiUpdateTestUtils.assertTrue(
+           (secondChange != null) && (secondChange.getRecordNumber() == 2L),
+           "Expected a second change, got " + secondChange);
+      MultiUpdateTestUtils.assertTrue(reader.read() == null,
+           "Expected the end of the input after two changes");
+    }
+    System.out.println("Content with a version line was read.");
+
+
+    // A malformed record right after the version line starts on line 2.
+    assertMalformedRecordLine(2L,
+         "version: 1",
+         "dn: uid=test.1,ou=People,dc=example,dc=com",
+         "changetype: bogus");
+
+    // The same should be true if comments come before the version line.
+    assertMalformedRecordLine(4L,
+         "# A comment before the version line.",
+         "# Another comment.",
+         "version: 1",
+         "dn: uid=test.1,ou=People,dc=example,dc=com",
+         "changetype: bogus");
+
+    // A malformed record that follows a valid one is numbered from the line
+    // after the blank line that separates them.
+    assertMalformedRecordLine(7L,
+         "version: 1",
+         "dn: uid=test.1,ou=People,dc=example,dc=com",
+         "changetype: modify",
+         "replace: description",
+         "description: first",
+         "",
+         "dn: uid=test.2,ou=People,dc=example,dc=com",
+         "changetype: bogus");
+    System.out.println("Malformed records were reported at the expected " +
+         "lines.");
+
+
+    // Closing a reader that was opened on standard input must leave standard
+    // input open.
+    final AtomicBoolean standardInputClosed = new AtomicBoolean(false);
+    final InputStream standardInput = System.in;
+    try
+    {
+      System.setIn(new ByteArrayInputStream(StaticUtils.getBytes(
+           "dn: uid=test.1,ou=People,dc=example,dc=com" + StaticUtils.EOL +
+                "changetype: delete" + StaticUtils.EOL))
+      {
+        @Override()
+        public void close()
+        {
+          standardInputClosed.set(true);
+        }
+      });
+
+      try (ParallelLDIFChangeReader reader =
+                ParallelLDIFChangeReader.open(null, 0))
+      {
+        MultiUpdateTestUtils.assertTrue(reader.read() != null,
+             "Expected a change to be read from standard input");
+      }
+
+      MultiUpdateTestUtils.assertTrue(! standardInputClosed.get(),
+           "Expected standard input to be left open");
+    }
+    finally
+    {
+      System.setIn(standardInput);
+    }
+    System.out.println("Standard input was left open.");
+
+    System.out.println("All tests yielded the expected results.");
+  }
+
+
+
+  /**
+   * Ensures that reading the provided LDIF content fails because of a
+   * malformed record, and that the failure reports the line on which that
+   * record starts.
+   *
+   * @param  expectedFirstLine  The line on which the malformed record should
+   *                            be reported to start.
+   * @param  ldifLines          The lines of LDIF content to read.
+   *
+   * @throws  Exception  If the failure doesn't report the expected line.
+   */
+  private static void assertMalformedRecordLine(final long expectedFirstLine,
+                                                final String... ldifLines)
+          throws Exception
+  {
+    try (ParallelLDIFChangeReader reader = createReader(ldifLines))
+    {
+      while (reader.read() != null)
+      {
+        // Keep reading until the malformed record is reached.
+      }
+
+      throw new AssertionError("Expected a malformed record to be rejected");
+    }
+    catch (final LDIFException e)
+    {
+      MultiUpdateTestUtils.assertTrue(
+           e.getMessage().contains("starting at line " + expectedFirstLine +
+                ":"),
+           "Expected the record to be reported at line " + expectedFirstLine +
+                ", got " + e.getMessage());
+      MultiUpdateTestUtils.assertTrue(e.getLineNumber() == expectedFirstLine,
+           "Expected the exception to have line number " +
+                expectedFirstLine + ", got " + e.getLineNumber());
+    }
+  }
+
+
+
+  /**
+   * Creates a reader for the provided LDIF content, parsing the records on
+   * the reader thread.
+   *
+   * @param  ldifLines  The lines of LDIF content to read.
+   *
+   * @return  The reader that was created.
+   */
+  private static ParallelLDIFChangeReader createReader(
+                                               final String... ldifLines)
+  {
+    final StringBuilder buffer = new StringBuilder();
+    for (final String line : ldifLines)
+    {
+      buffer.append(line);
+      buffer.append(StaticUtils.EOL);
+    }
+
+    return new ParallelLDIFChangeReader(
+         new ByteArrayInputStream(
+              buffer.toString().getBytes(StandardCharsets.UTF_8)),
+         0, 0L, 1L);
+  }
+}
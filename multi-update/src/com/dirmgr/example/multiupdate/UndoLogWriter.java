@@ -0,0 +1,403 @@
+/*
+ * Copyright 2019 Neil A. Wilson
+ * All Rights Reserved.
+ */
+/*
+ * Copyright (C) 2019 Neil A. Wilson
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPLv2 only)
+ * or the terms of the GNU Lesser General Public License (LGPLv2.1 only)
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, see <http://www.gnu.org/licenses>.
+ */
+/*
+ * Copyright 2019 Neil A. Wilson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dirmgr.example.multiupdate;
+
+
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.unboundid.ldap.sdk.AddRequest;
+import com.unboundid.ldap.sdk.Attribute;
+import com.unboundid.ldap.sdk.DN;
+import com.unboundid.ldap.sdk.DeleteRequest;
+import com.unboundid.ldap.sdk.LDAPException;
+import com.unboundid.ldap.sdk.LDAPRequest;
+import com.unboundid.ldap.sdk.LDAPResult;
+import com.unboundid.ldap.sdk.Modification;
+import com.unboundid.ldap.sdk.ModificationType;
+import com.unboundid.ldap.sdk.ModifyDNRequest;
+import com.unboundid.ldap.sdk.ModifyRequest;
+import com.unboundid.ldap.sdk.OperationType;
+import com.unboundid.ldap.sdk.RDN;
+import com.unboundid.ldap.sdk.ReadOnlyEntry;
+import com.unboundid.ldap.sdk.ResultCode;
+import com.unboundid.ldap.sdk.UpdatableLDAPRequest;
+import com.unboundid.ldap.sdk.controls.PreReadRequestControl;
+import com.unboundid.ldap.sdk.controls.PreReadResponseControl;
+import com.unboundid.ldap.sdk.unboundidds.extensions.MultiUpdateExtendedResult;
+import com.unboundid.ldif.LDIFAddChangeRecord;
+import com.unboundid.ldif.LDIFChangeRecord;
+import com.unboundid.ldif.LDIFDeleteChangeRecord;
+import com.unboundid.ldif.LDIFModifyChangeRecord;
+import com.unboundid.ldif.LDIFModifyDNChangeRecord;
+import com.unboundid.ldif.LDIFWriter;
+import com.unboundid.util.ObjectPair;
+import com.unboundid.util.StaticUtils;
+import com.unboundid.util.ThreadSafety;
+import com.unboundid.util.ThreadSafetyLevel;
+
+
+
+/**
+ * This class provides a mechanism for writing an undo log, which is an LDIF
+ * file containing the changes needed to revert the changes that were
+ * successfully applied.  Applying the records in an undo log in the reverse of
+ * the order in which they were written will return the affected entries to the
+ * state they were in before the original changes were applied.
+ * <BR><BR>
+ * The inverse of an add is a delete of the same entry, but the other types of
+ * changes depend on the state of the entry before the change was applied.
+ * The {@link #addPreReadControl} method attaches a pre-read request control to
+ * those changes, so that the server will return the relevant parts of the
+ * entry as it was just before it was altered, in the same operation that
+ * alters it.  The inverses are computed as follows:
+ * <UL>
+ *   <LI>For a delete, the pre-read control requests all user attributes, and
+ *       the inverse is an add of the entry that was returned.</LI>
+ *   <LI>For a modify, the pre-read control requests only the attributes that
+ *       were modified, and the inverse replaces each of them with the values
+ *       that were returned, or removes it if it wasn't present.</LI>
+ *   <LI>For a modify DN, the pre-read control requests the attributes in the
+ *       new RDN, and the inverse renames the entry back to its original RDN
+ *       and parent.  The new RDN values are only removed if the entry didn't
+ *       already have them.</LI>
+ * </UL>
+ * Operational attributes are not restored, so a re-added entry will have a
+ * new entryUUID and creation timestamp, for example.
+ */
+@ThreadSafety(level=ThreadSafetyLevel.NOT_THREADSAFE)
+public final class UndoLogWriter
+       implements Closeable
+{
+  // The number of undo records that have been written.
+  private long recordCount;
+
+  // The writer for the undo log.
+  private final LDIFWriter writer;
+
+
+
+  /**
+   * Creates a new undo log writer that will write to the specified file.  If
+   * the file already exists, then the new records will be appended to it, so
+   * that the undo log for a run that is resumed from a checkpoint will cover
+   * all of its changes.
+   *
+   * @param  undoLogFile  The file to which the undo records should be
+   *                      written.  It must not be {@code null}.
+   *
+   * @throws  IOException  If a problem occurs while opening the file.
+   */
+  public UndoLogWriter(final File undoLogFile)
+         throws IOException
+  {
+    writer = new LDIFWriter(new FileOutputStream(undoLogFile, true));
+    recordCount = 0L;
+  }
+
+
+
+  /**
+   * Attaches a pre-read request control to the provided request, if it is
+   * needed to compute the inverse of that request.  The control will be marked
+   * critical so that the change will not be applied if the server cannot
+   * return the information needed to undo it.
+   *
+   * @param  request  The request to which the control should be added.  It
+   *                  must not be {@code null}.
+   *
+   * @throws  LDAPException  If the new RDN of a modify DN request cannot be
+   *                         parsed.
+   */
+  public static void addPreReadControl(final LDAPRequest request)
+         throws LDAPException
+  {
+    final PreReadRequestControl control = createPreReadControl(request);
+    if (control != null)
+    {
+      ((UpdatableLDAPRequest) request).addControl(control);
+    }
+  }
+
+
+
+  /**
+   * Creates the pre-read request control that the {@link #addPreReadControl}
+   * method would attach to the provided request, without attaching it.  This
+   * may be used to account for the size of the control before it is added.
+   *
+   * @param  request  The request for which to create the control.  It must
+   *                  not be {@code null}.
+   *
+   * @return  The pre-read request control for the provided request, or
+   *          {@code null} if the request doesn't need one.
+   *
+   * @throws  LDAPException  If the new RDN of a modify DN request cannot be
+   *                         parsed.
+   */
+  public static PreReadRequestControl createPreReadControl(
+                                           final LDAPRequest request)
+         throws LDAPException
+  {
+    final String[] attributes;
+    switch (request.getOperationType())
+    {
+      case DELETE:
+        attributes = new String[] { "*" };
+        break;
+      case MODIFY:
+        final Map<String,String> names = new LinkedHashMap<>(10);
+        for (final Modification m :
+             ((ModifyRequest) request).getModifications())
+        {
+          names.put(StaticUtils.toLowerCase(m.getAttributeName()),
+               m.getAttributeName());
+        }
+        attributes = names.values().toArray(StaticUtils.NO_STRINGS);
+        break;
+      case MODIFY_DN:
+        attributes =
+             new RDN(((ModifyDNRequest) request).getNewRDN()).
+                  getAttributeNames();
+        break;
+      default:
+        // An add can be undone without knowing anything about the entry.
+        return null;
+    }
+
+    return new PreReadRequestControl(true, attributes);
+  }
+
+
+
+  /**
+   * Writes undo records for all of the changes in the provided batch that were
+   * successfully applied, and flushes them to the undo log.
+   *
+   * @param  batch              The batch of changes that was processed.  It
+   *                            must not be {@code null}.
+   * @param  multiUpdateResult  The result of processing the batch.  It must
+   *                            not be {@code null}.
+   *
+   * @throws  IOException  If a problem occurs while writing to the undo log.
+   *
+   * @throws  LDAPException  If the undo record for a successful change cannot
+   *                         be created.
+   */
+  public void writeUndoRecords(
+                   final MultiUpdateBatch batch,
+                   final MultiUpdateExtendedResult multiUpdateResult)
+         throws IOException, LDAPException
+  {
+    final Iterator<LDAPRequest> requestIterator =
+         batch.getRequests().iterator();
+    final Iterator<ObjectPair<OperationType,LDAPResult>> resultIterator =
+         multiUpdateResult.getResults().iterator();
+    try
+    {
+      while (resultIterator.hasNext() && requestIterator.hasNext())
+      {
+        final LDAPRequest request = requestIterator.next();
+        final LDAPResult result = resultIterator.next().getSecond();
+        if (result.getResultCode() == ResultCode.SUCCESS)
+        {
+          writer.writeChangeRecord(createUndoRecord(request, result));
+          recordCount++;
+        }
+      }
+    }
+    finally
+    {
+      writer.flush();
+    }
+  }
+
+
+
+  /**
+   * Retrieves the number of undo records that have been written.
+   *
+   * @return  The number of undo records that have been written.
+   */
+  public long getRecordCount()
+  {
+    return recordCount;
+  }
+
+
+
+  /**
+   * Closes the undo log.
+   *
+   * @throws  IOException  If a problem occurs while closing the undo log.
+   */
+  @Override()
+  public void close()
+         throws IOException
+  {
+    writer.close();
+  }
+
+
+
+  /**
+   * Creates a change record that will revert the provided change.
+   *
+   * @param  request  The change that was successfully applied.  It must not be
+   *                  {@code null}, and unless it is an add request, it must
+   *                  have been sent with the control added by the
+   *                  {@link #addPreReadControl} method.
+   * @param  result   The result of applying the change.  It must not be
+   *                  {@code null}.
+   *
+   * @return  The change record that will revert the provided change.
+   *
+   * @throws  LDAPException  If the result does not include a valid pre-read
+   *                         response control, or if a DN or RDN cannot be
+   *                         parsed.
+   */
+  static LDIFChangeRecord createUndoRecord(final LDAPRequest request,
+                                           final LDAPResult result)
+         throws LDAPException
+  {
+    if (request.getOperationType() == OperationType.ADD)
+    {
+      return new LDIFDeleteChangeRecord(((AddRequest) request).getDN());
+    }
+
+    final PreReadResponseControl preReadResponse =
+         PreReadResponseControl.get(result);
+    if (preReadResponse == null)
+    {
+      throw new LDAPException(ResultCode.CONTROL_NOT_FOUND,
+           "The result for the " + request.getOperationType().name() +
+                " operation did not include a pre-read response control, " +
+                "so the change can't be undone.");
+    }
+
+    final ReadOnlyEntry entry = preReadResponse.getEntry();
+    switch (request.getOperationType())
+    {
+      case DELETE:
+        return new LDIFAddChangeRecord(entry);
+
+      case MODIFY:
+        final ModifyRequest modifyRequest = (ModifyRequest) request;
+        final Map<String,Modification> inverseMods = new LinkedHashMap<>(10);
+        for (final Modification m : modifyRequest.getModifications())
+        {
+          final String name = m.getAttributeName();
+          final String lowerName = StaticUtils.toLowerCase(name);
+          if (inverseMods.containsKey(lowerName))
+          {
+            continue;
+          }
+
+          final Attribute a = entry.getAttribute(name);
+          if ((a == null) || (! a.hasValue()))
+          {
+            inverseMods.put(lowerName,
+                 new Modification(ModificationType.REPLACE, name));
+          }
+          else
+          {
+            inverseMods.put(lowerName,
+                 new Modification(ModificationType.REPLACE, name,
+                      a.getRawValues()));
+          }
+        }
+
+        return new LDIFModifyChangeRecord(modifyRequest.getDN(),
+             new ArrayList<>(inverseMods.values()));
+
+      case MODIFY_DN:
+        final ModifyDNRequest modifyDNRequest = (ModifyDNRequest) request;
+        final DN originalDN = entry.getParsedDN();
+        final RDN newRDN = new RDN(modifyDNRequest.getNewRDN());
+        final DN newParentDN;
+        if (modifyDNRequest.getNewSuperiorDN() == null)
+        {
+          newParentDN = originalDN.getParent();
+        }
+        else
+        {
+          newParentDN = new DN(modifyDNRequest.getNewSuperiorDN());
+        }
+
+        // The values in the new RDN should only be removed when the entry is
+        // renamed back if they weren't in the entry before.
+        boolean hadNewRDNValues = true;
+        final String[] names = newRDN.getAttributeNames();
+        final byte[][] values = newRDN.getByteArrayAttributeValues();
+        for (int i=0; i < names.length; i++)
+        {
+          if (! entry.hasAttributeValue(names[i], values[i]))
+          {
+            hadNewRDNValues = false;
+            break;
+          }
+        }
+
+        final String originalParentDN;
+        if (modifyDNRequest.getNewSuperiorDN() == null)
+        {
+          originalParentDN = null;
+        }
+        else
+        {
+          originalParentDN = String.valueOf(originalDN.getParent());
+        }
+
+        return new LDIFModifyDNChangeRecord(
+             new DN(newRDN, newParentDN).toString(),
+             originalDN.getRDNString(), (! hadNewRDNValues),
+             originalParentDN);
+
+      default:
+        // This should never happen.
+        throw new LDAPException(ResultCode.NOT_SUPPORTED,
+             "Unsupported operation type " +
+                  request.getOperationType().name() + '.');
+    }
+  }
+}
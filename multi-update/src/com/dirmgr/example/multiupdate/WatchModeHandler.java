@@ -0,0 +1,314 @@
+/*
+ * Copyright 2019 Neil A. Wilson
+ * All Rights Reserved.
+ */
+/*
+ * Copyright (C) 2019 Neil A. Wilson
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPLv2 only)
+ * or the terms of the GNU Lesser General Public License (LGPLv2.1 only)
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, see <http://www.gnu.org/licenses>.
+ */
+/*
+ * Copyright 2019 Neil A. Wilson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dirmgr.example.multiupdate;
+
+
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.unboundid.ldap.sdk.LDAPConnectionPool;
+import com.unboundid.ldap.sdk.LDAPException;
+import com.unboundid.ldap.sdk.ResultCode;
+import com.unboundid.ldap.sdk.unboundidds.extensions.MultiUpdateExtendedResult;
+import com.unboundid.util.CommandLineTool;
+import com.unboundid.util.Debug;
+import com.unboundid.util.ObjectPair;
+import com.unboundid.util.StaticUtils;
+import com.unboundid.util.ThreadSafety;
+import com.unboundid.util.ThreadSafetyLevel;
+
+
+
+/**
+ * This class handles the parts of a {@link MultiUpdateLDAPModify} run that
+ * are specific to watch mode, in which the changes are read from LDIF files
+ * as they are dropped into a spool directory.  It opens the
+ * {@link SpoolDirectoryChangeSource}, waits for more files to arrive once the
+ * earlier ones have been read, uses a {@link SpoolFileArchiver} to move the
+ * files whose changes have all been applied to the archive directory, and
+ * writes a summary once processing is complete.
+ */
+@ThreadSafety(level=ThreadSafetyLevel.NOT_THREADSAFE)
+public final class WatchModeHandler
+{
+  // The directory to which the files whose changes have all been applied are
+  // moved.
+  private final File archiveDirectory;
+
+  // The spool directory.
+  private final File spoolDirectory;
+
+  // The length of time in seconds to wait for a new file to arrive, or zero
+  // to wait indefinitely.
+  private final int idleTimeoutSeconds;
+
+  // The archiver that decides what to do with each file once the results for
+  // all of its changes have been received.
+  private final SpoolFileArchiver archiver;
+
+  // The change source that reads the files in the spool directory.
+  private final SpoolDirectoryChangeSource spoolSource;
+
+  // The tool used to write messages.
+  private final CommandLineTool tool;
+
+
+
+  /**
+   * Creates a new watch mode handler and opens the spool directory.
+   *
+   * @param  tool                The tool used to write messages.
+   * @param  spoolDirectory      The spool directory to watch.
+   * @param  archiveDirectory    The directory to which the files whose
+   *                             changes have all been applied should be
+   *                             moved.
+   * @param  numParseThreads     The number of threads to use to parse the
+   *                             change records in each file.
+   * @param  idleTimeoutSeconds  The length of time in seconds to wait for a
+   *                             new file to arrive once all of the earlier
+   *                             files have been processed, or zero to wait
+   *                             indefinitely.
+   *
+   * @throws  IOException  If a problem occurs while opening the spool
+   *                       directory.
+   */
+  public WatchModeHandler(final CommandLineTool tool,
+                          final File spoolDirectory,
+                          final File archiveDirectory,
+                          final int numParseThreads,
+                          final int idleTimeoutSeconds)
+         throws IOException
+  {
+    this.tool = tool;
+    this.spoolDirectory = spoolDirectory;
+    this.archiveDirectory = archiveDirectory;
+    this.idleTimeoutSeconds = idleTimeoutSeconds;
+
+    spoolSource = SpoolDirectoryChangeSource.open(spoolDirectory,
+         archiveDirectory, numParseThreads);
+    archiver = new SpoolFileArchiver(spoolSource);
+  }
+
+
+
+  /**
+   * Retrieves the change source that reads the files in the spool directory.
+   *
+   * @return  The change source that reads the files in the spool directory.
+   */
+  public SpoolDirectoryChangeSource getChangeSource()
+  {
+    return spoolSource;
+  }
+
+
+
+  /**
+   * Prepares the provided connection pool for use in watch mode.  The
+   * connections may sit idle long enough for the server or a firewall to
+   * close them, so a request that fails because its connection is no longer
+   * valid will be tried again on a new one.  The changes in it may be applied
+   * twice, which is already possible if the tool is stopped before their file
+   * is archived.
+   *
+   * @param  pool  The connection pool used to send the changes.
+   */
+  public void prepareConnectionPool(final LDAPConnectionPool pool)
+  {
+    pool.setRetryFailedOperationsDueToInvalidConnections(true);
+  }
+
+
+
+  /**
+   * Waits for more files to arrive in the spool directory.
+   *
+   * @return  {@code true} if more files arrived, or {@code false} if no files
+   *          arrived within the timeout or the thread was interrupted, in
+   *          which case processing should end.
+   *
+   * @throws  LDAPException  If a problem occurs while waiting for files.
+   */
+  public boolean awaitFiles()
+         throws LDAPException
+  {
+    final String spoolDirectoryPath = spoolDirectory.getAbsolutePath();
+    try
+    {
+      if (spoolSource.awaitFiles(idleTimeoutSeconds * 1000L))
+      {
+        return true;
+      }
+
+      tool.out("No new files arrived in spool directory '",
+           spoolDirectoryPath, "' within ", idleTimeoutSeconds, " seconds.");
+      tool.out();
+      return false;
+    }
+    catch (final InterruptedException e)
+    {
+      Debug.debugException(e);
+      Thread.currentThread().interrupt();
+      tool.err("Interrupted while waiting for new files to arrive in spool ",
+           "directory '", spoolDirectoryPath, "'.");
+      return false;
+    }
+    catch (final IOException e)
+    {
+      Debug.debugException(e);
+      throw new LDAPException(ResultCode.LOCAL_ERROR,
+           "An error occurred while waiting for new files to arrive in " +
+                "spool directory '" + spoolDirectoryPath + "':  " +
+                StaticUtils.getExceptionMessage(e),
+           e);
+    }
+  }
+
+
+
+  /**
+   * Records which of the changes in the provided batch were applied, moves
+   * the files whose changes have all been applied to the archive directory,
+   * and reports the files that were left in the spool directory because some
+   * of their changes could not be applied.  A file with a change that is still
+   * waiting to be retried is not handled until the retry has been resolved.
+   *
+   * @param  batch                 The batch whose results were received.
+   * @param  retryBatch            Indicates whether the batch was created to
+   *                               retry changes from an earlier batch.
+   * @param  multiUpdateResult     The multi-update extended result for the
+   *                               batch.
+   * @param  acknowledgedRequests  The number of requests at the start of the
+   *                               batch that the server has acknowledged or
+   *                               that are waiting to be retried.
+   * @param  retryScheduler        The scheduler used to retry changes, or
+   *                               {@code null} if changes are not retried.
+   *
+   * @return  {@code null} if files may still be archived, or a result code
+   *          that indicates why no more changes should be read if not.
+   */
+  public ResultCode batchCompleted(final MultiUpdateBatch batch,
+                         final boolean retryBatch,
+                         final MultiUpdateExtendedResult multiUpdateResult,
+                         final int acknowledgedRequests,
+                         final ChangeRetryScheduler retryScheduler)
+  {
+    if (! archiver.isEnabled())
+    {
+      return null;
+    }
+
+    if (! archiver.batchCompleted(batch, retryBatch, multiUpdateResult,
+         (acknowledgedRequests == batch.getRequests().size()),
+         retryScheduler))
+    {
+      tool.err("The server did not acknowledge all of the changes in batch ",
+           batch.getBatchNumber(), ", so no more changes will be read.  The ",
+           "files that have not been archived will be processed again from ",
+           "the beginning the next time the tool is run.");
+      return ResultCode.OTHER;
+    }
+
+    try
+    {
+      final List<ObjectPair<File,Long>> unappliedFiles = new ArrayList<>(1);
+      for (final ObjectPair<File,Long> archivedFile :
+           archiver.archiveCompletedFiles(unappliedFiles))
+      {
+        tool.out("Moved a processed file with ", archivedFile.getSecond(),
+             " changes to '", archivedFile.getFirst().getAbsolutePath(),
+             "'.");
+        tool.out();
+      }
+
+      for (final ObjectPair<File,Long> unappliedFile : unappliedFiles)
+      {
+        tool.err("Left file '", unappliedFile.getFirst().getAbsolutePath(),
+             "' in the spool directory because ", unappliedFile.getSecond(),
+             " of its changes could not be applied.  It will be processed ",
+             "again from the beginning the next time the tool is run.");
+        tool.err();
+      }
+
+      return null;
+    }
+    catch (final IOException e)
+    {
+      Debug.debugException(e);
+      tool.err("An error occurred while trying to move a processed file to ",
+           "archive directory '", archiveDirectory.getAbsolutePath(), "':  ",
+           StaticUtils.getExceptionMessage(e),
+           ".  No more changes will be read.");
+      return ResultCode.LOCAL_ERROR;
+    }
+  }
+
+
+
+  /**
+   * Stops moving files to the archive directory, so that any file that has
+   * not already been archived will be processed again from the beginning the
+   * next time the tool is run.  This should be used when changes will no
+   * longer be committed in order.
+   */
+  public void stopArchiving()
+  {
+    archiver.disable();
+  }
+
+
+
+  /**
+   * Writes a summary of the changes that were read from the spool directory
+   * and the files that were archived or left in it.
+   */
+  public void reportSummary()
+  {
+    tool.out("Watch summary:  ", spoolSource.getChangeCount(), " changes ",
+         "were read from spool directory '", spoolDirectory.getAbsolutePath(),
+         "', and ", spoolSource.getArchivedFileCount(), " files were moved ",
+         "to archive directory '", archiveDirectory.getAbsolutePath(), "'.");
+    if (spoolSource.getUnappliedFileCount() > 0L)
+    {
+      tool.err(spoolSource.getUnappliedFileCount(), " files were left in the ",
+           "spool directory because some of their changes could not be ",
+           "applied.");
+    }
+  }
+}